@@ -48,6 +48,22 @@ public class SessionState {
     }
 
 
+    /**
+     * Makes the specified session the current session of this thread.  This
+     * allows worker threads to operate on behalf of the session that issued
+     * a query, so that they see the same transaction state.  Workers should
+     * call {@link #remove} when they are done.
+     *
+     * @param state the session-state for this local thread
+     */
+    public static void set(SessionState state) {
+        if (state == null)
+            throw new IllegalArgumentException("state cannot be null");
+
+        threadLocalState.set(state);
+    }
+
+
     /**
      * Removes the session-state from the thread's thread-local storage.
      */
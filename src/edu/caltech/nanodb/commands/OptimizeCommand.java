@@ -1,9 +1,16 @@
 package edu.caltech.nanodb.commands;
 
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
 
+import edu.caltech.nanodb.indexes.IndexUpdater;
+import edu.caltech.nanodb.relations.TableInfo;
 import edu.caltech.nanodb.server.NanoDBServer;
+import edu.caltech.nanodb.storage.TableManager;
+import edu.caltech.nanodb.storage.TupleFile;
+import edu.caltech.nanodb.storage.heapfile.HeapTupleFile;
 
 
 /**
@@ -58,7 +65,46 @@ public class OptimizeCommand extends Command {
 
     @Override
     public void execute(NanoDBServer server) throws ExecutionException {
-        throw new ExecutionException("Not yet implemented!");
+
+        // Make sure that all the tables are valid.
+
+        TableManager tableManager =
+            server.getStorageManager().getTableManager();
+
+        ArrayList<TableInfo> tableInfos = new ArrayList<>();
+
+        for (String table : tableNames) {
+            try {
+                TableInfo tableInfo = tableManager.openTable(table);
+                tableInfos.add(tableInfo);
+            }
+            catch (IOException ioe) {
+                throw new ExecutionException("Could not open table " + table, ioe);
+            }
+        }
+
+        // Now, optimize each table.  For heap files this vacuums old tuple
+        // versions that no transaction can see anymore, along with the
+        // index entries that refer to them.
+
+        IndexUpdater indexUpdater = new IndexUpdater(server.getStorageManager());
+        for (TableInfo tableInfo : tableInfos) {
+            try {
+                out.println("Optimizing table " + tableInfo.getTableName());
+                TupleFile tupleFile = tableInfo.getTupleFile();
+                if (tupleFile instanceof HeapTupleFile) {
+                    ((HeapTupleFile) tupleFile).vacuum(tuple ->
+                        indexUpdater.removeRowFromIndexes(tableInfo, tuple));
+                }
+                else {
+                    tupleFile.optimize();
+                }
+            }
+            catch (IOException ioe) {
+                throw new ExecutionException("Could not optimize table " +
+                    tableInfo.getTableName(), ioe);
+            }
+        }
     }
 
 
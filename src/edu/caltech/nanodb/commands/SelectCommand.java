@@ -6,6 +6,7 @@ import java.io.IOException;
 import org.apache.log4j.Logger;
 
 import edu.caltech.nanodb.client.SessionState;
+import edu.caltech.nanodb.plannodes.PlanUtils;
 import edu.caltech.nanodb.queryast.SelectClause;
 import edu.caltech.nanodb.queryeval.Planner;
 import edu.caltech.nanodb.queryeval.PlannerFactory;
@@ -78,6 +79,10 @@ public class SelectCommand extends QueryCommand {
         // Create a plan for executing the SQL query.
         Planner planner = PlannerFactory.getPlanner(storageManager);
         plan = planner.makePlan(selClause, null);
+
+        // Scan large tables in parallel.  This is only done for SELECT
+        // statements, since other commands modify the tables they read.
+        plan = PlanUtils.addExchangeNodes(plan);
     }
 
 
@@ -128,8 +128,8 @@ public class UpdateCommand extends QueryCommand {
             }
 
             eventDispatcher.fireBeforeRowUpdated(tableInfo, tuple, newTuple);
-            tupleFile.updateTuple(tuple, newValues);
-            eventDispatcher.fireAfterRowUpdated(tableInfo, oldTuple, tuple);
+            Tuple updated = tupleFile.updateTuple(tuple, newValues);
+            eventDispatcher.fireAfterRowUpdated(tableInfo, oldTuple, updated);
         }
 
         public void finish() {
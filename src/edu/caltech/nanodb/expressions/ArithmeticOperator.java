@@ -187,8 +187,24 @@ public class ArithmeticOperator extends Expression {
      * @throws ExpressionException if the operand type is unrecognized
      */
     private static Double evalDoubles(Type type, Double aObj, Double bObj) {
-        double a = aObj.doubleValue();
-        double b = bObj.doubleValue();
+        return Double.valueOf(
+            evalDoubleValues(type, aObj.doubleValue(), bObj.doubleValue()));
+    }
+
+
+    /**
+     * This helper implements the arithmetic operations for <tt>double</tt>
+     * values, without boxing them.
+     *
+     * @param type the arithmetic operation to perform
+     * @param a the first operand value for the operation
+     * @param b the second operand value for the operation
+     *
+     * @return the result of the arithmetic operation
+     *
+     * @throws ExpressionException if the operand type is unrecognized
+     */
+    public static double evalDoubleValues(Type type, double a, double b) {
         double result;
 
         switch (type) {
@@ -222,7 +238,7 @@ public class ArithmeticOperator extends Expression {
             throw new ExpressionException("Unrecognized arithmetic type " + type);
         }
 
-        return Double.valueOf(result);
+        return result;
     }
 
 
@@ -302,6 +318,25 @@ public class ArithmeticOperator extends Expression {
             return new Double(result);
         }
 
+        return Long.valueOf(evalLongValues(type, a, b));
+    }
+
+
+    /**
+     * This helper implements the arithmetic operations for <tt>long</tt>
+     * values, without boxing them.  Division is not supported, since it
+     * produces a <tt>double</tt>; callers must divide the values as
+     * <tt>double</tt>s themselves.
+     *
+     * @param type the arithmetic operation to perform
+     * @param a the first operand value for the operation
+     * @param b the second operand value for the operation
+     *
+     * @return the result of the arithmetic operation
+     *
+     * @throws ExpressionException if the operand type is unrecognized
+     */
+    public static long evalLongValues(Type type, long a, long b) {
         long result;
 
         switch (type) {
@@ -317,7 +352,7 @@ public class ArithmeticOperator extends Expression {
             result = a * b;
             break;
 
-        // Division is handled separately.
+        // Division is handled by the caller.
 
         case REMAINDER:
             result = a % b;
@@ -332,7 +367,7 @@ public class ArithmeticOperator extends Expression {
             throw new ExpressionException("Unrecognized arithmetic type " + type);
         }
 
-        return Long.valueOf(result);
+        return result;
     }
 
 
@@ -359,6 +394,25 @@ public class ArithmeticOperator extends Expression {
             return new Double(result);
         }
 
+        return Integer.valueOf(evalIntValues(type, a, b));
+    }
+
+
+    /**
+     * This helper implements the arithmetic operations for <tt>int</tt>
+     * values, without boxing them.  Division is not supported, since it
+     * produces a <tt>double</tt>; callers must divide the values as
+     * <tt>double</tt>s themselves.
+     *
+     * @param type the arithmetic operation to perform
+     * @param a the first operand value for the operation
+     * @param b the second operand value for the operation
+     *
+     * @return the result of the arithmetic operation
+     *
+     * @throws ExpressionException if the operand type is unrecognized
+     */
+    public static int evalIntValues(Type type, int a, int b) {
         int result;
 
         switch (type) {
@@ -374,7 +428,7 @@ public class ArithmeticOperator extends Expression {
             result = a * b;
             break;
 
-        // Division is handled separately.
+        // Division is handled by the caller.
 
         case REMAINDER:
             result = a % b;
@@ -389,7 +443,37 @@ public class ArithmeticOperator extends Expression {
             throw new ExpressionException("Unrecognized arithmetic type " + type);
         }
 
-        return Integer.valueOf(result);
+        return result;
+    }
+
+
+    /**
+     * Returns the type of this arithmetic operator.
+     *
+     * @return the type of the arithmetic operation
+     */
+    public Type getType() {
+        return type;
+    }
+
+
+    /**
+     * Returns the left expression.
+     *
+     * @return the left expression
+     */
+    public Expression getLeftExpression() {
+        return leftExpr;
+    }
+
+
+    /**
+     * Returns the right expression.
+     *
+     * @return the right expression
+     */
+    public Expression getRightExpression() {
+        return rightExpr;
     }
 
 
@@ -0,0 +1,134 @@
+package edu.caltech.nanodb.expressions;
+
+
+import edu.caltech.nanodb.relations.Tuple;
+
+
+/**
+ * An expression that has been compiled by {@link ExpressionCompiler} for
+ * evaluation against tuples of a specific schema.  Column references have
+ * already been resolved to column indexes, so evaluating a compiled
+ * expression doesn't need to look up any column names in an
+ * {@link Environment}.
+ * <p>
+ * A compiled expression whose operands are all <tt>INTEGER</tt>,
+ * <tt>BIGINT</tt> or <tt>DOUBLE</tt> columns or literals also reports the
+ * kind of primitive value it produces from {@link #getValueKind}, so that
+ * callers can evaluate it with {@link #evaluatePrimitive} without boxing the
+ * result, or any of the intermediate values used to compute it.
+ */
+public abstract class CompiledExpression {
+
+    /** The expression only produces objects. */
+    public static final int OBJECT_VALUE = 0;
+
+    /** The expression produces <tt>int</tt> values. */
+    public static final int INT_VALUE = 1;
+
+    /** The expression produces <tt>long</tt> values. */
+    public static final int LONG_VALUE = 2;
+
+    /** The expression produces <tt>double</tt> values. */
+    public static final int DOUBLE_VALUE = 3;
+
+
+    /**
+     * The result of the last successful call to {@link #evaluatePrimitive},
+     * for expressions that produce <tt>int</tt> or <tt>long</tt> values.
+     */
+    protected long longResult;
+
+    /**
+     * The result of the last successful call to {@link #evaluatePrimitive},
+     * for expressions that produce <tt>double</tt> values.
+     */
+    protected double doubleResult;
+
+
+    /**
+     * Evaluates the expression against a tuple.
+     *
+     * @param tuple a tuple with the schema the expression was compiled for
+     *
+     * @return the result of the expression, or {@code null} if the result
+     *         is <tt>NULL</tt>
+     *
+     * @throws ExpressionException if the expression cannot be evaluated
+     */
+    public abstract Object evaluate(Tuple tuple) throws ExpressionException;
+
+
+    /**
+     * Evaluates the expression against a tuple as a predicate, in the same
+     * way as {@link Expression#evaluatePredicate}.
+     *
+     * @param tuple a tuple with the schema the expression was compiled for
+     *
+     * @return true if the predicate is satisfied, or false if it is not
+     *         satisfied or is <tt>NULL</tt>
+     *
+     * @throws ExpressionException if the expression cannot be evaluated
+     */
+    public boolean evaluatePredicate(Tuple tuple) throws ExpressionException {
+        Object result = evaluate(tuple);
+        if (result == null)
+            return false;   // TODO:  This is UNKNOWN, not FALSE.
+        else
+            return TypeConverter.getBooleanValue(result);
+    }
+
+
+    /**
+     * Returns the kind of primitive value that {@link #evaluatePrimitive}
+     * produces, which is determined from the schema when the expression is
+     * compiled.
+     *
+     * @return one of {@link #INT_VALUE}, {@link #LONG_VALUE} or
+     *         {@link #DOUBLE_VALUE}, or {@link #OBJECT_VALUE} if the
+     *         expression can only be evaluated with {@link #evaluate}
+     */
+    public int getValueKind() {
+        return OBJECT_VALUE;
+    }
+
+
+    /**
+     * Evaluates the expression against a tuple without boxing the result.
+     * If this returns true, the result is available from
+     * {@link #getLongResult} or {@link #getDoubleResult}, depending on the
+     * expression's {@link #getValueKind value kind}.  If it returns false,
+     * the result is <tt>NULL</tt>, or the tuple holds a value of another
+     * type than the schema describes, and the caller must use
+     * {@link #evaluate} instead.  Expressions that produce primitive values
+     * have no side effects, so evaluating them again is safe.
+     *
+     * @param tuple a tuple with the schema the expression was compiled for
+     *
+     * @return true if a primitive result was computed, or false otherwise
+     *
+     * @throws ExpressionException if the expression cannot be evaluated
+     */
+    public boolean evaluatePrimitive(Tuple tuple) throws ExpressionException {
+        return false;
+    }
+
+
+    /**
+     * Returns the result of the last successful call to
+     * {@link #evaluatePrimitive}, for expressions that produce <tt>int</tt>
+     * or <tt>long</tt> values.
+     */
+    public long getLongResult() {
+        return longResult;
+    }
+
+
+    /**
+     * Returns the result of the last successful call to
+     * {@link #evaluatePrimitive} as a <tt>double</tt>, for expressions that
+     * produce any kind of primitive value.
+     */
+    public double getDoubleResult() {
+        return (getValueKind() == DOUBLE_VALUE) ? doubleResult : longResult;
+    }
+}
@@ -77,7 +77,10 @@ public class Environment {
 
 
     public void addParentEnvironment(Environment env) {
-        parents.add(env);
+        // Plan nodes may share an environment, so the same parent can be
+        // added to it more than once.
+        if (!parents.contains(env))
+            parents.add(env);
     }
 
 
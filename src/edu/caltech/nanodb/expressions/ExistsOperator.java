@@ -46,6 +46,11 @@ public class ExistsOperator extends SubqueryOperator {
         if (subqueryPlan == null)
             throw new IllegalStateException("No execution plan for subquery");
 
+        TupleLiteral key = getCorrelationKey(env);
+        Boolean exists = (Boolean) getCachedResult(key);
+        if (exists != null)
+            return exists;
+
         try {
             subqueryPlan.initialize();
 
@@ -56,11 +61,14 @@ public class ExistsOperator extends SubqueryOperator {
 
             subqueryPlan.cleanUp();
 
-            return Boolean.valueOf(tuple != null);
+            exists = Boolean.valueOf(tuple != null);
         }
         catch (IOException e) {
             throw new ExpressionException("Error while evaluating subquery", e);
         }
+
+        cacheResult(key, exists);
+        return exists;
     }
 
 
@@ -0,0 +1,515 @@
+package edu.caltech.nanodb.expressions;
+
+
+import java.util.SortedMap;
+
+import edu.caltech.nanodb.relations.ColumnInfo;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.Tuple;
+
+
+/**
+ * <p>
+ * This class compiles expressions into {@link CompiledExpression} objects
+ * that evaluate them against tuples of a specific schema.  Each column
+ * reference is resolved to the index of the column in the schema once, when
+ * the expression is compiled, instead of being looked up by name in an
+ * {@link Environment} for every tuple.  Literals, comparisons, Boolean
+ * operators, arithmetic operators and <tt>IS NULL</tt> operators are
+ * compiled into evaluator objects that produce the same results as the
+ * corresponding expression classes.
+ * </p>
+ * <p>
+ * Any other expression, such as a function call or a subquery, is evaluated
+ * by setting up an environment holding the tuple and calling
+ * {@link Expression#evaluate}, just as plan nodes do for uncompiled
+ * expressions.  The same happens for a column reference that isn't found
+ * exactly once in the schema, so that a column from an enclosing query is
+ * still resolved through the environment's parents, and an ambiguous column
+ * reference is still reported when it is evaluated.
+ * </p>
+ * <p>
+ * Columns of type <tt>INTEGER</tt>, <tt>BIGINT</tt> and <tt>DOUBLE</tt>, and
+ * literals of the corresponding Java types, are compiled into evaluators
+ * that can produce primitive values, and so are arithmetic operators and
+ * comparisons over them, so that such expressions are evaluated without
+ * boxing any intermediate values.  The kind of each value is chosen from
+ * the schema, but derived columns (such as <tt>AVG</tt> results) may hold
+ * values of another type than their column type claims, so each primitive
+ * evaluation checks the type of the column values it reads, and falls back
+ * to evaluating objects if they aren't what the schema describes.
+ * </p>
+ */
+public class ExpressionCompiler {
+
+    /** Evaluates a column of the tuple. */
+    private static class ColumnEvaluator extends CompiledExpression {
+        private final int colIndex;
+
+        private final int valueKind;
+
+        ColumnEvaluator(int colIndex, int valueKind) {
+            this.colIndex = colIndex;
+            this.valueKind = valueKind;
+        }
+
+        public Object evaluate(Tuple tuple) {
+            return tuple.getColumnValue(colIndex);
+        }
+
+        public int getValueKind() {
+            return valueKind;
+        }
+
+        public boolean evaluatePrimitive(Tuple tuple) {
+            Object value = tuple.getColumnValue(colIndex);
+
+            switch (valueKind) {
+            case INT_VALUE:
+                if (value instanceof Integer) {
+                    longResult = (Integer) value;
+                    return true;
+                }
+                break;
+
+            case LONG_VALUE:
+                if (value instanceof Long) {
+                    longResult = (Long) value;
+                    return true;
+                }
+                break;
+
+            case DOUBLE_VALUE:
+                if (value instanceof Double) {
+                    doubleResult = (Double) value;
+                    return true;
+                }
+                break;
+            }
+
+            return false;
+        }
+    }
+
+
+    /** Evaluates to a constant value. */
+    private static class ConstantEvaluator extends CompiledExpression {
+        private final Object value;
+
+        private final int valueKind;
+
+        ConstantEvaluator(Object value) {
+            this.value = value;
+
+            if (value instanceof Integer) {
+                valueKind = INT_VALUE;
+                longResult = (Integer) value;
+            }
+            else if (value instanceof Long) {
+                valueKind = LONG_VALUE;
+                longResult = (Long) value;
+            }
+            else if (value instanceof Double) {
+                valueKind = DOUBLE_VALUE;
+                doubleResult = (Double) value;
+            }
+            else {
+                valueKind = OBJECT_VALUE;
+            }
+        }
+
+        public Object evaluate(Tuple tuple) {
+            return value;
+        }
+
+        public int getValueKind() {
+            return valueKind;
+        }
+
+        public boolean evaluatePrimitive(Tuple tuple) {
+            return valueKind != OBJECT_VALUE;
+        }
+    }
+
+
+    /** Evaluates a comparison, like {@link CompareOperator#evaluate}. */
+    private static class CompareEvaluator extends CompiledExpression {
+        private final CompareOperator.Type type;
+
+        private final CompiledExpression left;
+
+        private final CompiledExpression right;
+
+        /** True if both operands can produce primitive values. */
+        private final boolean primitive;
+
+        /**
+         * True if the operands are compared as <tt>double</tt>s, because
+         * one of them produces <tt>double</tt> values.
+         */
+        private final boolean compareDoubles;
+
+        CompareEvaluator(CompareOperator.Type type, CompiledExpression left,
+                         CompiledExpression right) {
+            this.type = type;
+            this.left = left;
+            this.right = right;
+
+            primitive = (left.getValueKind() != OBJECT_VALUE &&
+                         right.getValueKind() != OBJECT_VALUE);
+            compareDoubles = (left.getValueKind() == DOUBLE_VALUE ||
+                              right.getValueKind() == DOUBLE_VALUE);
+        }
+
+        @SuppressWarnings("unchecked")
+        public Object evaluate(Tuple tuple) {
+            // Integers are compared as longs, and any other numbers as
+            // doubles, which is what TypeConverter.coerceComparison() would
+            // convert them to.
+            if (primitive && left.evaluatePrimitive(tuple) &&
+                right.evaluatePrimitive(tuple)) {
+                int compResult;
+                if (compareDoubles) {
+                    compResult = Double.compare(left.getDoubleResult(),
+                        right.getDoubleResult());
+                }
+                else {
+                    compResult = Long.compare(left.getLongResult(),
+                        right.getLongResult());
+                }
+
+                return Boolean.valueOf(test(compResult));
+            }
+
+            Object lhsValue = left.evaluate(tuple);
+            Object rhsValue = right.evaluate(tuple);
+            if (lhsValue == null || rhsValue == null)
+                return null;
+
+            TypeConverter.Pair coerced =
+                TypeConverter.coerceComparison(lhsValue, rhsValue);
+
+            @SuppressWarnings("unchecked")
+            Comparable<Object> lhsComp = (Comparable<Object>) coerced.value1;
+            return Boolean.valueOf(test(lhsComp.compareTo(coerced.value2)));
+        }
+
+        private boolean test(int compResult) {
+            switch (type) {
+            case EQUALS:
+                return (compResult == 0);
+
+            case NOT_EQUALS:
+                return (compResult != 0);
+
+            case LESS_THAN:
+                return (compResult < 0);
+
+            case GREATER_THAN:
+                return (compResult > 0);
+
+            case LESS_OR_EQUAL:
+                return (compResult <= 0);
+
+            case GREATER_OR_EQUAL:
+                return (compResult >= 0);
+
+            default:
+                throw new ExpressionException(
+                    "Unrecognized comparison type " + type);
+            }
+        }
+    }
+
+
+    /**
+     * Evaluates an <tt>AND</tt> or <tt>OR</tt> expression, like
+     * {@link BooleanOperator#evaluate}, stopping at the first term that
+     * decides the result.
+     */
+    private static class AndOrEvaluator extends CompiledExpression {
+        private final boolean isAnd;
+
+        private final CompiledExpression[] terms;
+
+        AndOrEvaluator(boolean isAnd, CompiledExpression[] terms) {
+            this.isAnd = isAnd;
+            this.terms = terms;
+        }
+
+        public Object evaluate(Tuple tuple) {
+            for (CompiledExpression term : terms) {
+                boolean termValue = term.evaluatePredicate(tuple);
+                if (termValue != isAnd)
+                    return Boolean.valueOf(termValue);
+            }
+
+            return Boolean.valueOf(isAnd);
+        }
+    }
+
+
+    /** Evaluates a <tt>NOT</tt> expression. */
+    private static class NotEvaluator extends CompiledExpression {
+        private final CompiledExpression term;
+
+        NotEvaluator(CompiledExpression term) {
+            this.term = term;
+        }
+
+        public Object evaluate(Tuple tuple) {
+            return Boolean.valueOf(!term.evaluatePredicate(tuple));
+        }
+    }
+
+
+    /** Evaluates an arithmetic operation, like {@link ArithmeticOperator}. */
+    private static class ArithmeticEvaluator extends CompiledExpression {
+        private final ArithmeticOperator.Type type;
+
+        private final CompiledExpression left;
+
+        private final CompiledExpression right;
+
+        private final int valueKind;
+
+        ArithmeticEvaluator(ArithmeticOperator.Type type,
+                            CompiledExpression left,
+                            CompiledExpression right) {
+            this.type = type;
+            this.left = left;
+            this.right = right;
+
+            // Like ArithmeticOperator.evalObjects(), integers are promoted
+            // to longs and longs to doubles, and dividing integers produces
+            // a double.  The value kinds are numbered in this order.
+            int leftKind = left.getValueKind();
+            int rightKind = right.getValueKind();
+            if (leftKind == OBJECT_VALUE || rightKind == OBJECT_VALUE)
+                valueKind = OBJECT_VALUE;
+            else if (type == ArithmeticOperator.Type.DIVIDE)
+                valueKind = DOUBLE_VALUE;
+            else
+                valueKind = Math.max(leftKind, rightKind);
+        }
+
+        public int getValueKind() {
+            return valueKind;
+        }
+
+        public boolean evaluatePrimitive(Tuple tuple) {
+            if (valueKind == OBJECT_VALUE || !left.evaluatePrimitive(tuple) ||
+                !right.evaluatePrimitive(tuple)) {
+                return false;
+            }
+
+            switch (valueKind) {
+            case INT_VALUE:
+                longResult = ArithmeticOperator.evalIntValues(type,
+                    (int) left.getLongResult(), (int) right.getLongResult());
+                break;
+
+            case LONG_VALUE:
+                longResult = ArithmeticOperator.evalLongValues(type,
+                    left.getLongResult(), right.getLongResult());
+                break;
+
+            default:
+                doubleResult = ArithmeticOperator.evalDoubleValues(type,
+                    left.getDoubleResult(), right.getDoubleResult());
+            }
+
+            return true;
+        }
+
+        public Object evaluate(Tuple tuple) {
+            if (valueKind != OBJECT_VALUE && evaluatePrimitive(tuple)) {
+                switch (valueKind) {
+                case INT_VALUE:
+                    return Integer.valueOf((int) longResult);
+
+                case LONG_VALUE:
+                    return Long.valueOf(longResult);
+
+                default:
+                    return Double.valueOf(doubleResult);
+                }
+            }
+
+            Object lhsValue = left.evaluate(tuple);
+            Object rhsValue = right.evaluate(tuple);
+            if (lhsValue == null || rhsValue == null)
+                return null;
+
+            return ArithmeticOperator.evalObjects(type, lhsValue, rhsValue);
+        }
+    }
+
+
+    /** Evaluates an <tt>IS NULL</tt> or <tt>IS NOT NULL</tt> expression. */
+    private static class IsNullEvaluator extends CompiledExpression {
+        private final CompiledExpression expr;
+
+        private final boolean invert;
+
+        IsNullEvaluator(CompiledExpression expr, boolean invert) {
+            this.expr = expr;
+            this.invert = invert;
+        }
+
+        public Object evaluate(Tuple tuple) {
+            boolean result;
+            if (expr.getValueKind() != OBJECT_VALUE &&
+                expr.evaluatePrimitive(tuple)) {
+                result = false;
+            }
+            else {
+                result = (expr.evaluate(tuple) == null);
+            }
+
+            return Boolean.valueOf(result != invert);
+        }
+    }
+
+
+    /** Evaluates an expression that isn't compiled against an environment. */
+    private static class EnvironmentEvaluator extends CompiledExpression {
+        private final Expression expr;
+
+        private final Schema schema;
+
+        private final Environment env;
+
+        EnvironmentEvaluator(Expression expr, Schema schema, Environment env) {
+            this.expr = expr;
+            this.schema = schema;
+            this.env = env;
+        }
+
+        public Object evaluate(Tuple tuple) {
+            env.clear();
+            env.addTuple(schema, tuple);
+            return expr.evaluate(env);
+        }
+    }
+
+
+    /**
+     * Compiles an expression for evaluation against tuples of a schema.
+     *
+     * @param expr the expression to compile
+     * @param schema the schema of the tuples the expression is evaluated
+     *        against
+     * @param env the environment to evaluate the parts of the expression
+     *        that can't be compiled in; it is cleared before each use, but
+     *        its parent environments are used to resolve columns of
+     *        enclosing queries
+     *
+     * @return the compiled expression
+     */
+    public static CompiledExpression compile(Expression expr, Schema schema,
+                                             Environment env) {
+        if (expr == null)
+            throw new IllegalArgumentException("expr cannot be null");
+
+        if (schema == null)
+            throw new IllegalArgumentException("schema cannot be null");
+
+        if (env == null)
+            throw new IllegalArgumentException("env cannot be null");
+
+        return compileExpr(expr, schema, env);
+    }
+
+
+    private static CompiledExpression compileExpr(Expression expr,
+        Schema schema, Environment env) {
+
+        // Subclasses of these expression classes may evaluate themselves
+        // differently, so only the classes themselves are compiled.
+        Class<?> exprClass = expr.getClass();
+
+        if (exprClass == ColumnValue.class) {
+            ColumnName colName = ((ColumnValue) expr).getColumnName();
+            if (!colName.isColumnWildcard()) {
+                SortedMap<Integer, ColumnInfo> found =
+                    schema.findColumns(colName);
+                if (found.size() == 1) {
+                    return new ColumnEvaluator(found.firstKey(),
+                        getValueKind(found.get(found.firstKey())));
+                }
+            }
+        }
+        else if (exprClass == LiteralValue.class) {
+            return new ConstantEvaluator(expr.evaluate((Environment) null));
+        }
+        else if (exprClass == CompareOperator.class) {
+            CompareOperator cmp = (CompareOperator) expr;
+            return new CompareEvaluator(cmp.getType(),
+                compileExpr(cmp.getLeftExpression(), schema, env),
+                compileExpr(cmp.getRightExpression(), schema, env));
+        }
+        else if (exprClass == BooleanOperator.class) {
+            BooleanOperator boolOp = (BooleanOperator) expr;
+            int numTerms = boolOp.getNumTerms();
+            CompiledExpression[] terms = new CompiledExpression[numTerms];
+            for (int i = 0; i < numTerms; i++)
+                terms[i] = compileExpr(boolOp.getTerm(i), schema, env);
+
+            // Malformed operators are left to report their errors when they
+            // are evaluated.
+            switch (boolOp.getType()) {
+            case AND_EXPR:
+                if (numTerms > 0)
+                    return new AndOrEvaluator(true, terms);
+                break;
+
+            case OR_EXPR:
+                if (numTerms > 0)
+                    return new AndOrEvaluator(false, terms);
+                break;
+
+            case NOT_EXPR:
+                if (numTerms == 1)
+                    return new NotEvaluator(terms[0]);
+                break;
+            }
+        }
+        else if (exprClass == ArithmeticOperator.class) {
+            ArithmeticOperator arith = (ArithmeticOperator) expr;
+            return new ArithmeticEvaluator(arith.getType(),
+                compileExpr(arith.getLeftExpression(), schema, env),
+                compileExpr(arith.getRightExpression(), schema, env));
+        }
+        else if (exprClass == IsNullOperator.class) {
+            IsNullOperator isNull = (IsNullOperator) expr;
+            return new IsNullEvaluator(
+                compileExpr(isNull.getExpression(), schema, env),
+                isNull.isInverted());
+        }
+
+        return new EnvironmentEvaluator(expr, schema, env);
+    }
+
+
+    /**
+     * Returns the kind of primitive value that a column of the specified
+     * type holds, or {@link CompiledExpression#OBJECT_VALUE} if its values
+     * are only evaluated as objects.
+     */
+    private static int getValueKind(ColumnInfo colInfo) {
+        switch (colInfo.getType().getBaseType()) {
+        case INTEGER:
+            return CompiledExpression.INT_VALUE;
+
+        case BIGINT:
+            return CompiledExpression.LONG_VALUE;
+
+        case DOUBLE:
+            return CompiledExpression.DOUBLE_VALUE;
+
+        default:
+            return CompiledExpression.OBJECT_VALUE;
+        }
+    }
+}
@@ -2,6 +2,8 @@ package edu.caltech.nanodb.expressions;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
 
 import edu.caltech.nanodb.queryast.SelectClause;
 import edu.caltech.nanodb.relations.ColumnInfo;
@@ -21,6 +23,12 @@ import edu.caltech.nanodb.relations.Tuple;
  * The <tt>expr NOT IN (...)</tt> operator is translated into <tt>NOT (expr IN
  * (...))</tt> by the parser.
  * </p>
+ * <p>
+ * The values that the subquery produces are read into a {@link ValueSet},
+ * which is cached for the values that the subquery references from
+ * enclosing queries.  The values are kept in a hash set when they are all
+ * numbers or all strings, so that each row only costs a hash lookup.
+ * </p>
  */
 public class InSubqueryOperator extends SubqueryOperator {
     /**
@@ -30,6 +38,35 @@ public class InSubqueryOperator extends SubqueryOperator {
     Expression expr;
 
 
+    /** The non-<tt>NULL</tt> values produced by one evaluation of the subquery. */
+    private static class ValueSet {
+        /** The values, in the order the subquery produced them. */
+        ArrayList<Object> values = new ArrayList<>();
+
+        /**
+         * The {@link TypeConverter#getHashKeyValue hash keys} of
+         * {@link #values}, if the values are all of the same
+         * {@link #getHashKind kind}.
+         */
+        HashSet<Object> valueSet;
+
+        /** The kind of values in {@link #valueSet}, or {@code null} if none. */
+        Class<?> valueSetKind;
+
+        /** Returns true if one of the values is equal to the specified value. */
+        boolean contains(Object obj) {
+            if (valueSetKind != null && getHashKind(obj) == valueSetKind)
+                return valueSet.contains(TypeConverter.getHashKeyValue(obj));
+
+            for (Object value : values) {
+                if (CompareOperator.areObjectsEqual(obj, value))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+
     public InSubqueryOperator(Expression expr, SelectClause subquery) {
         if (expr == null)
             throw new IllegalArgumentException("expr must be specified");
@@ -42,6 +79,18 @@ public class InSubqueryOperator extends SubqueryOperator {
     }
 
 
+    /**
+     * Returns the expression that is checked against the results of the
+     * subquery.
+     *
+     * @return the expression on the lefthand side of the <tt>IN</tt>
+     *         operator
+     */
+    public Expression getExpression() {
+        return expr;
+    }
+
+
     public ColumnInfo getColumnInfo(Schema schema) throws SchemaNameException {
         // Comparisons always return Boolean values, so just pass a Boolean
         // value in to the TypeConverter to get out the corresponding SQL type.
@@ -72,6 +121,27 @@ public class InSubqueryOperator extends SubqueryOperator {
         if (subqueryPlan == null)
             throw new IllegalStateException("No execution plan for subquery");
 
+        TupleLiteral key = getCorrelationKey(env);
+        ValueSet values = (ValueSet) getCachedResult(key);
+        if (values == null) {
+            values = readValues();
+            cacheResult(key, values);
+        }
+
+        return Boolean.valueOf(values.contains(exprObj));
+    }
+
+
+    /**
+     * Reads the values produced by the subquery, and adds them to a hash set
+     * if they are all of the same kind.
+     */
+    private ValueSet readValues() throws ExpressionException {
+        ValueSet result = new ValueSet();
+        HashSet<Object> newValueSet = new HashSet<>();
+        Class<?> kind = null;
+        boolean sameKind = true;
+
         try {
             subqueryPlan.initialize();
             while (true) {
@@ -82,16 +152,56 @@ public class InSubqueryOperator extends SubqueryOperator {
                 Object tupObj = tup.getColumnValue(0);
                 tup.unpin();
 
-                if (CompareOperator.areObjectsEqual(exprObj, tupObj))
-                    return Boolean.TRUE;
+                // NULLs are never equal to anything.
+                if (tupObj == null)
+                    continue;
+
+                result.values.add(tupObj);
+
+                Class<?> tupKind = getHashKind(tupObj);
+                if (result.values.size() == 1)
+                    kind = tupKind;
+                else if (tupKind != kind)
+                    sameKind = false;
+
+                if (sameKind && kind != null)
+                    newValueSet.add(TypeConverter.getHashKeyValue(tupObj));
             }
+            subqueryPlan.cleanUp();
         }
         catch (IOException e) {
             throw new ExpressionException("Error while evaluating subquery", e);
         }
 
-        // If we got here, nothing matched.
-        return Boolean.FALSE;
+        if (sameKind && kind != null) {
+            result.valueSet = newValueSet;
+            result.valueSetKind = kind;
+        }
+        return result;
+    }
+
+
+    /**
+     * Returns the kind of a value for hashing.  Values of the same kind are
+     * equal exactly when their {@link TypeConverter#getHashKeyValue hash
+     * keys} are equal.
+     *
+     * @param value the value to classify
+     *
+     * @return {@code Number.class} for integer and floating-point values,
+     *         {@code String.class} for strings, or {@code null} for values
+     *         that must be compared one by one
+     */
+    private static Class<?> getHashKind(Object value) {
+        if (value instanceof Integer || value instanceof Long ||
+            value instanceof Short || value instanceof Byte ||
+            value instanceof Double || value instanceof Float) {
+            return Number.class;
+        }
+        else if (value instanceof String) {
+            return String.class;
+        }
+        return null;
     }
 
 
@@ -136,6 +136,18 @@ public class InValuesOperator extends Expression {
     }
 
 
+    /**
+     * Returns the expression that is checked against the list of values on
+     * the righthand side of the <tt>IN</tt> operator.
+     *
+     * @return the expression on the lefthand side of the <tt>IN</tt>
+     *         operation
+     */
+    public Expression getExpression() {
+        return expr;
+    }
+
+
     /**
      * If the <tt>IN</tt> operation has a list of values on the righthand side,
      * this will be the list of values.  Otherwise, this will be <tt>null</tt>.
@@ -25,6 +25,18 @@ public class IsNullOperator extends Expression {
     }
 
 
+    /** Returns the expression that is checked for <tt>NULL</tt>. */
+    public Expression getExpression() {
+        return expr;
+    }
+
+
+    /** Returns true if the operator computes <tt>IS NOT NULL</tt>. */
+    public boolean isInverted() {
+        return invert;
+    }
+
+
     @Override
     public ColumnInfo getColumnInfo(Schema schema) throws SchemaNameException {
         // This operator always returns Boolean values, so just pass a Boolean
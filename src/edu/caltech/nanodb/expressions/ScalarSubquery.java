@@ -15,24 +15,12 @@ import edu.caltech.nanodb.relations.Tuple;
  * predicate.
  */
 public class ScalarSubquery extends SubqueryOperator {
-    /** The cached result of evaluating the scalar subquery. */
-    Object result;
-
-
-    /**
-     * A flag indicating whether the subquery has been evaluated, and
-     * therefore whether {@link #result} is valid or not.
-     */
-    boolean evaluated;
-
 
     public ScalarSubquery(SelectClause subquery) {
         if (subquery == null)
             throw new IllegalArgumentException("subquery cannot be null");
 
         this.subquery = subquery;
-
-        this.evaluated = false;
     }
 
 
@@ -51,51 +39,61 @@ public class ScalarSubquery extends SubqueryOperator {
     }
 
 
+    /**
+     * Evaluates the subquery, which must produce exactly one row.  The
+     * result is cached for the values that the subquery references from
+     * enclosing queries.
+     */
     public Object evaluate(Environment env) {
         if (subqueryPlan == null)
             throw new IllegalStateException("No execution plan for subquery");
 
-        if (!evaluated) {
+        TupleLiteral key = getCorrelationKey(env);
+        if (isResultCached(key))
+            return getCachedResult(key);
+
+        Object result;
+        try {
             // Initialize the subquery plan so that it can be evaluated.
             subqueryPlan.initialize();
 
-            try {
-                // Get the first tuple from the subquery, and make sure it has
-                // exactly one row and one column.
-
-                Tuple t1 = subqueryPlan.getNextTuple();
-                if (t1 == null) {
-                    throw new ExpressionException(
-                        "Scalar subquery must produce exactly one row (got 0)");
-                }
-
-                int numCols = t1.getColumnCount();
-                if (numCols != 1) {
-                    t1.unpin();
-                    throw new ExpressionException(
-                        "Scalar subquery must produce exactly one column (got " +
-                            numCols + " instead)");
-                }
-
-                // Make sure the subquery plan doesn't generate a second tuple!
-
-                Tuple t2 = subqueryPlan.getNextTuple();
-                if (t2 != null) {
-                    t1.unpin();
-                    t2.unpin();
-                    throw new ExpressionException(
-                        "Scalar subquery must produce exactly one row (got > 1)");
-                }
-
-                result = t1.getColumnValue(0);
+            // Get the first tuple from the subquery, and make sure it has
+            // exactly one row and one column.
+
+            Tuple t1 = subqueryPlan.getNextTuple();
+            if (t1 == null) {
+                throw new ExpressionException(
+                    "Scalar subquery must produce exactly one row (got 0)");
+            }
+
+            int numCols = t1.getColumnCount();
+            if (numCols != 1) {
                 t1.unpin();
-                evaluated = true;
+                throw new ExpressionException(
+                    "Scalar subquery must produce exactly one column (got " +
+                        numCols + " instead)");
             }
-            catch (IOException e) {
-                throw new ExpressionException("Error while evaluating subquery", e);
+
+            // Make sure the subquery plan doesn't generate a second tuple!
+
+            Tuple t2 = subqueryPlan.getNextTuple();
+            if (t2 != null) {
+                t1.unpin();
+                t2.unpin();
+                throw new ExpressionException(
+                    "Scalar subquery must produce exactly one row (got > 1)");
             }
+
+            result = t1.getColumnValue(0);
+            t1.unpin();
+
+            subqueryPlan.cleanUp();
+        }
+        catch (IOException e) {
+            throw new ExpressionException("Error while evaluating subquery", e);
         }
 
+        cacheResult(key, result);
         return result;
     }
 
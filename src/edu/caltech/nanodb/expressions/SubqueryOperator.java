@@ -1,5 +1,8 @@
 package edu.caltech.nanodb.expressions;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import edu.caltech.nanodb.queryast.SelectClause;
 import edu.caltech.nanodb.plannodes.PlanNode;
 
@@ -18,6 +21,18 @@ import edu.caltech.nanodb.plannodes.PlanNode;
  * operators with joins, semijoins, etc. wherever it can.
  * </p>
  * <p>
+ * A subquery produces the same results for every row that has the same
+ * values in the columns that the subquery references from enclosing queries,
+ * so subclasses cache what they need from the results of the subquery,
+ * keyed on those values.  A subquery that isn't correlated with any
+ * enclosing query is therefore only evaluated once, and a correlated
+ * subquery is evaluated once for each distinct combination of values, as
+ * long as the combinations fit in the cache.  At most
+ * {@link #MAX_CACHED_RESULTS} results are cached; the least recently used
+ * result is dropped to make room for a new one.  The cached results are
+ * discarded when a new plan is set with {@link #setSubqueryPlan}.
+ * </p>
+ * <p>
  * <b>Note that all subqueries are considered "black boxes" to the
  * expression-traversal mechanism.</b>  That is, traversing an expression
  * that contains a subquery will not descend into the subquery's expressions.
@@ -30,6 +45,10 @@ import edu.caltech.nanodb.plannodes.PlanNode;
  */
 public abstract class SubqueryOperator extends Expression {
 
+    /** The maximum number of results cached for a correlated subquery. */
+    public static final int MAX_CACHED_RESULTS = 1000;
+
+
     /**
      * This is the parsed representation of the subquery that the operator
      * uses for its operation.
@@ -45,6 +64,21 @@ public abstract class SubqueryOperator extends Expression {
     protected PlanNode subqueryPlan;
 
 
+    /**
+     * The columns that the subquery references from enclosing queries, in
+     * the order of the values of the cache keys, or {@code null} if they
+     * haven't been collected yet.
+     */
+    private ColumnName[] correlatedColumns;
+
+
+    /**
+     * The cached results of the subquery, keyed on the values of
+     * {@link #correlatedColumns}, with the most recently used result last.
+     */
+    private LinkedHashMap<TupleLiteral, Object> cachedResults;
+
+
     /**
      * Returns the parsed representation of the subquery that is used by this
      * operator.
@@ -64,6 +98,95 @@ public abstract class SubqueryOperator extends Expression {
      */
     public void setSubqueryPlan(PlanNode plan) {
         subqueryPlan = plan;
+        clearCachedResults();
+    }
+
+
+    /**
+     * Discards any results of the subquery that the operator has cached, so
+     * that the subquery is evaluated again the next time it is needed.
+     */
+    protected void clearCachedResults() {
+        correlatedColumns = null;
+        cachedResults = null;
+    }
+
+
+    /**
+     * Returns the key that results of the subquery are cached under for the
+     * current row of an environment, which holds the values of the columns
+     * that the subquery references from enclosing queries.  Numbers are
+     * {@link TypeConverter#getHashKeyValue normalized}, since the subquery
+     * produces the same results for numbers that compare as equal.
+     *
+     * @param env the environment the subquery is evaluated against
+     *
+     * @return the cache key for the current row of the environment
+     */
+    protected TupleLiteral getCorrelationKey(Environment env) {
+        if (correlatedColumns == null) {
+            correlatedColumns = subquery.getCorrelatedColumns().toArray(
+                new ColumnName[0]);
+        }
+
+        TupleLiteral key = new TupleLiteral(correlatedColumns.length);
+        for (int i = 0; i < correlatedColumns.length; i++) {
+            Object value = env.getColumnValue(correlatedColumns[i]);
+            key.setColumnValue(i, TypeConverter.getHashKeyValue(value));
+        }
+
+        return key;
+    }
+
+
+    /**
+     * Returns true if a result of the subquery is cached under a key.
+     *
+     * @param key the key from {@link #getCorrelationKey}
+     *
+     * @return true if a result is cached under the key
+     */
+    protected boolean isResultCached(TupleLiteral key) {
+        return cachedResults != null && cachedResults.containsKey(key);
+    }
+
+
+    /**
+     * Returns the result of the subquery cached under a key.
+     *
+     * @param key the key from {@link #getCorrelationKey}
+     *
+     * @return the cached result, or {@code null} if none is cached
+     */
+    protected Object getCachedResult(TupleLiteral key) {
+        if (cachedResults == null)
+            return null;
+
+        return cachedResults.get(key);
+    }
+
+
+    /**
+     * Caches a result of the subquery under a key, dropping the least
+     * recently used result if the cache is full.
+     *
+     * @param key the key from {@link #getCorrelationKey}
+     *
+     * @param result the result to cache, which may be {@code null}
+     */
+    protected void cacheResult(TupleLiteral key, Object result) {
+        if (cachedResults == null) {
+            cachedResults = new LinkedHashMap<TupleLiteral, Object>(16, 0.75f,
+                /* accessOrder */ true) {
+                @Override
+                protected boolean removeEldestEntry(
+                    Map.Entry<TupleLiteral, Object> eldest) {
+                    return size() > MAX_CACHED_RESULTS;
+                }
+            };
+        }
+
+        cachedResults.put(key, result);
     }
 
 
@@ -1,6 +1,7 @@
 package edu.caltech.nanodb.expressions;
 
 
+import java.math.BigDecimal;
 import java.util.HashMap;
 
 import edu.caltech.nanodb.relations.ColumnType;
@@ -411,6 +412,118 @@ public class TypeConverter {
     }
 
 
+    /**
+     * This method reports whether a numeric value lies outside the range of
+     * an integer SQL type.  Converting such a value to the type with
+     * {@link #getValueOfType} would wrap it around to an unrelated value, so
+     * callers that compare converted values must check this first.
+     * Floating-point values are clamped to the type's range when they are
+     * converted, so they are never reported as out of range.
+     *
+     * @param obj the input value to check
+     *
+     * @param type the SQL type the value will be converted to
+     *
+     * @return a negative number if the value is smaller than the type's
+     *         smallest value, a positive number if it is larger than the
+     *         type's largest value, or 0 otherwise, including when the type
+     *         isn't an integer type or the value isn't an integer
+     */
+    public static int compareToTypeRange(Object obj, SQLDataType type) {
+        long min, max;
+        switch (type) {
+            case TINYINT:
+                min = Byte.MIN_VALUE;
+                max = Byte.MAX_VALUE;
+                break;
+
+            case SMALLINT:
+                min = Short.MIN_VALUE;
+                max = Short.MAX_VALUE;
+                break;
+
+            case INTEGER:
+                min = Integer.MIN_VALUE;
+                max = Integer.MAX_VALUE;
+                break;
+
+            case BIGINT:
+                min = Long.MIN_VALUE;
+                max = Long.MAX_VALUE;
+                break;
+
+            default:
+                return 0;
+        }
+
+        if (obj instanceof Byte || obj instanceof Short ||
+            obj instanceof Integer || obj instanceof Long) {
+            long value = ((Number) obj).longValue();
+            if (value < min)
+                return -1;
+            else if (value > max)
+                return 1;
+        }
+        else if (obj instanceof BigDecimal) {
+            BigDecimal value = (BigDecimal) obj;
+            if (value.compareTo(BigDecimal.valueOf(min)) < 0)
+                return -1;
+            else if (value.compareTo(BigDecimal.valueOf(max)) > 0)
+                return 1;
+        }
+
+        return 0;
+    }
+
+
+    /**
+     * This method converts the input value into the Java type that values of
+     * the specified SQL type are stored as, so that it can be compared
+     * directly with stored values, e.g. as part of an index search key.
+     * Values of types without a conversion here are returned unchanged.
+     * Integer values outside the range of an integer type wrap around, so
+     * use {@link #compareToTypeRange} to check them beforehand.
+     *
+     * @param obj the input value to cast
+     *
+     * @param type the SQL type to convert the value to
+     *
+     * @return the input value cast to the Java type of the SQL type
+     *
+     * @throws TypeCastException if the input value cannot be cast to the
+     *         SQL type
+     */
+    public static Object getValueOfType(Object obj, SQLDataType type) {
+        switch (type) {
+            case TINYINT:
+                return getByteValue(obj);
+
+            case SMALLINT:
+                return getShortValue(obj);
+
+            case INTEGER:
+                return getIntegerValue(obj);
+
+            case BIGINT:
+                return getLongValue(obj);
+
+            case FLOAT:
+                return getFloatValue(obj);
+
+            case DOUBLE:
+                return getDoubleValue(obj);
+
+            case CHAR:
+            case VARCHAR:
+            case TEXT:
+                return getStringValue(obj);
+
+            default:
+                return obj;
+        }
+    }
+
+
     /**
      * This function takes two arguments and coerces them to be the same numeric
      * type, for use with arithmetic operations.
@@ -574,4 +687,34 @@ public class TypeConverter {
 
         return colType;
     }
+
+
+    /**
+     * Converts a value into a canonical representation, so that values that
+     * SQL considers equal are also equal as Java objects, and can be hashed.
+     * Integral values are represented as {@code Long}s, and floating-point
+     * values as {@code Long}s if they are whole numbers, or {@code Double}s
+     * otherwise.  Other values are returned unchanged.
+     *
+     * @param value the value to convert
+     *
+     * @return the canonical representation of the value
+     */
+    public static Object getHashKeyValue(Object value) {
+        if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            if (d == Math.rint(d) && Math.abs(d) < 0x1p62)
+                return (long) d;
+
+            return d;
+        }
+        else if (value instanceof BigDecimal) {
+            return ((BigDecimal) value).stripTrailingZeros();
+        }
+        else if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+
+        return value;
+    }
 }
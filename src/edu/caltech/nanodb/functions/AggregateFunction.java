@@ -41,6 +41,75 @@ public abstract class AggregateFunction extends ScalarFunction {
     public abstract void addValue(Object value);
 
 
+    /**
+     * Adds an <tt>INTEGER</tt> value to the aggregate function.  This has
+     * the same effect as passing the boxed value to {@link #addValue}, which
+     * is what this default implementation does; aggregates that keep
+     * primitive state override it so that adding a value doesn't allocate
+     * anything.
+     *
+     * @param value the value to add to the aggregate function
+     */
+    public void addIntValue(int value) {
+        addValue(Integer.valueOf(value));
+    }
+
+
+    /**
+     * Adds a <tt>BIGINT</tt> value to the aggregate function.  This has the
+     * same effect as passing the boxed value to {@link #addValue}.
+     *
+     * @param value the value to add to the aggregate function
+     */
+    public void addLongValue(long value) {
+        addValue(Long.valueOf(value));
+    }
+
+
+    /**
+     * Adds a <tt>DOUBLE</tt> value to the aggregate function.  This has the
+     * same effect as passing the boxed value to {@link #addValue}.
+     *
+     * @param value the value to add to the aggregate function
+     */
+    public void addDoubleValue(double value) {
+        addValue(Double.valueOf(value));
+    }
+
+
+    /**
+     * Returns true if this aggregate function's state can be combined with
+     * the state of another instance by {@link #mergeState}, so that the
+     * aggregate can be computed over parts of its input separately.  This
+     * default implementation returns false.
+     *
+     * @return true if {@link #mergeState} is supported
+     */
+    public boolean supportsMerge() {
+        return false;
+    }
+
+
+    /**
+     * Merges the state of another instance of the same aggregate function
+     * into this one.  Afterward, this function's result is the same as if
+     * it had also been handed all of the values that were handed to the
+     * other function, except that <tt>DOUBLE</tt> values may be summed in a
+     * different order.  The other function shouldn't be used afterward,
+     * since its state may now be shared with this one.
+     *
+     * @param other another instance of the same aggregate function, computed
+     *        over another part of the input
+     *
+     * @throws UnsupportedOperationException if the aggregate function
+     *         doesn't {@link #supportsMerge support merging}
+     */
+    public void mergeState(AggregateFunction other) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() +
+            " doesn't support merging aggregate state");
+    }
+
+
     /**
      * Returns the aggregated result computed for this aggregate function.
      * Generally, if aggregate functions receive no non-<tt>null</tt> inputs
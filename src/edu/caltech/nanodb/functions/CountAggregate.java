@@ -100,6 +100,90 @@ public class CountAggregate extends AggregateFunction {
     }
 
 
+    @Override
+    public void addIntValue(int value) {
+        // Distinct values must be boxed to be remembered.
+        if (distinct)
+            addValue(Integer.valueOf(value));
+        else
+            countValue();
+    }
+
+
+    @Override
+    public void addLongValue(long value) {
+        if (distinct)
+            addValue(Long.valueOf(value));
+        else
+            countValue();
+    }
+
+
+    @Override
+    public void addDoubleValue(double value) {
+        if (distinct)
+            addValue(Double.valueOf(value));
+        else
+            countValue();
+    }
+
+
+    /** Counts a non-<tt>NULL</tt> value for a non-distinct count. */
+    private void countValue() {
+        if (count == -1)
+            count = 0;
+
+        count++;
+    }
+
+
+    /**
+     * Sorted distinct counts can't be merged, since the same value may be
+     * counted in both parts of the input.
+     */
+    @Override
+    public boolean supportsMerge() {
+        return !(distinct && sortedInputs);
+    }
+
+
+    @Override
+    public void mergeState(AggregateFunction other) {
+        if (!supportsMerge())
+            super.mergeState(other);
+
+        CountAggregate otherCount = (CountAggregate) other;
+        if (otherCount.count == -1)
+            return;
+
+        if (count == -1)
+            count = 0;
+
+        if (distinct) {
+            for (Object value : otherCount.valuesSeen) {
+                if (valuesSeen.add(value))
+                    count++;
+            }
+        }
+        else {
+            count += otherCount.count;
+        }
+    }
+
+
+    /**
+     * Each copy of the function needs its own set of distinct values.
+     */
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        CountAggregate aggFn = (CountAggregate) super.clone();
+        if (distinct)
+            aggFn.valuesSeen = new HashSet<Object>(valuesSeen);
+
+        return aggFn;
+    }
+
+
     @Override
     public Object getResult() {
         // A value of -1 indicates a NULL result.
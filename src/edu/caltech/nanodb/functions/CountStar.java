@@ -33,6 +33,18 @@ public class CountStar extends AggregateFunction {
     }
 
 
+    @Override
+    public boolean supportsMerge() {
+        return true;
+    }
+
+
+    @Override
+    public void mergeState(AggregateFunction other) {
+        count += ((CountStar) other).count;
+    }
+
+
     @Override
     public Object getResult() {
         return Integer.valueOf(count);
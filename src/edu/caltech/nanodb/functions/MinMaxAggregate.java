@@ -23,9 +23,43 @@ public class MinMaxAggregate extends AggregateFunction {
     private int minimumSwitch;
 
 
+    /** No value has been added yet. */
+    private static final int NO_RESULT = 0;
+
+    /** The result is an <tt>Integer</tt>, stored in {@link #longResult}. */
+    private static final int INT_RESULT = 1;
+
+    /** The result is a <tt>Long</tt>, stored in {@link #longResult}. */
+    private static final int LONG_RESULT = 2;
+
+    /** The result is a <tt>Double</tt>, stored in {@link #doubleResult}. */
+    private static final int DOUBLE_RESULT = 3;
+
+    /** The result is some other kind of object, stored in {@link #result}. */
+    private static final int OBJECT_RESULT = 4;
+
+
+    /**
+     * The kind of value the result currently is.  As long as all values are
+     * <tt>Integer</tt>s, <tt>Long</tt>s or <tt>Double</tt>s, the result is
+     * kept in a primitive variable so that adding values doesn't allocate any
+     * objects.
+     */
+    private int resultKind;
+
+
+    /** The result, if it is an <tt>Integer</tt> or a <tt>Long</tt>. */
+    private long longResult;
+
+
+    /** The result, if it is a <tt>Double</tt>. */
+    private double doubleResult;
+
+
     /**
-     * The actual result of the aggregate function, or <tt>null</tt> if the
-     * function hasn't been handed a non-<tt>NULL</tt> value yet.
+     * The actual result of the aggregate function, if it is some other kind
+     * of value, or <tt>null</tt> if the function hasn't been handed a
+     * non-<tt>NULL</tt> value yet.
      */
     private Comparable result;
 
@@ -40,18 +74,83 @@ public class MinMaxAggregate extends AggregateFunction {
 
     @Override
     public void clearResult() {
+        resultKind = NO_RESULT;
         result = null;
     }
 
 
     @Override
-    @SuppressWarnings("unchecked")
     public void addValue(Object value) {
         // NULL values are ignored by aggregate functions.
         if (value == null)
             return;
 
-        Comparable comparable = (Comparable) value;
+        if (value instanceof Integer)
+            addIntValue((Integer) value);
+        else if (value instanceof Long)
+            addLongValue((Long) value);
+        else if (value instanceof Double)
+            addDoubleValue((Double) value);
+        else
+            addObject((Comparable) value);
+    }
+
+
+    @Override
+    public void addIntValue(int value) {
+        if (resultKind == NO_RESULT) {
+            resultKind = INT_RESULT;
+            longResult = value;
+        }
+        else if (resultKind == INT_RESULT) {
+            if (minimumSwitch * Long.compare(longResult, value) > 0)
+                longResult = value;
+        }
+        else {
+            addObject(Integer.valueOf(value));
+        }
+    }
+
+
+    @Override
+    public void addLongValue(long value) {
+        if (resultKind == NO_RESULT) {
+            resultKind = LONG_RESULT;
+            longResult = value;
+        }
+        else if (resultKind == LONG_RESULT) {
+            if (minimumSwitch * Long.compare(longResult, value) > 0)
+                longResult = value;
+        }
+        else {
+            addObject(Long.valueOf(value));
+        }
+    }
+
+
+    @Override
+    public void addDoubleValue(double value) {
+        if (resultKind == NO_RESULT) {
+            resultKind = DOUBLE_RESULT;
+            doubleResult = value;
+        }
+        else if (resultKind == DOUBLE_RESULT) {
+            // Double.compare() orders values just like Double.compareTo().
+            if (minimumSwitch * Double.compare(doubleResult, value) > 0)
+                doubleResult = value;
+        }
+        else {
+            addObject(Double.valueOf(value));
+        }
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private void addObject(Comparable comparable) {
+        if (resultKind != OBJECT_RESULT) {
+            result = (Comparable) getResult();
+            resultKind = OBJECT_RESULT;
+        }
 
         // compareTo() returns positive value if LHS > RHS.  If configured to do
         // minimum, if LHS > RHS then we want to replace LHS.  If configured to
@@ -62,9 +161,35 @@ public class MinMaxAggregate extends AggregateFunction {
     }
 
 
+    @Override
+    public boolean supportsMerge() {
+        return true;
+    }
+
+
+    @Override
+    public void mergeState(AggregateFunction other) {
+        // The other function's result is the only one of its values that
+        // can change this function's result.
+        addValue(other.getResult());
+    }
+
+
     @Override
     public Object getResult() {
-        return result;
+        switch (resultKind) {
+        case INT_RESULT:
+            return Integer.valueOf((int) longResult);
+
+        case LONG_RESULT:
+            return Long.valueOf(longResult);
+
+        case DOUBLE_RESULT:
+            return Double.valueOf(doubleResult);
+
+        default:
+            return result;
+        }
     }
 
 
@@ -2,6 +2,7 @@ package edu.caltech.nanodb.functions;
 
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import edu.caltech.nanodb.expressions.ArithmeticOperator;
@@ -17,9 +18,37 @@ import edu.caltech.nanodb.relations.Schema;
  */
 public class StdDevVarAggregate extends AggregateFunction {
 
+    /** No values have been added yet. */
+    private static final int NO_VALUES = 0;
+
+    /** All values are <tt>Integer</tt>s, stored in {@link #longValues}. */
+    private static final int INT_VALUES = 1;
+
+    /** All values are <tt>Long</tt>s, stored in {@link #longValues}. */
+    private static final int LONG_VALUES = 2;
+
+    /** All values are <tt>Double</tt>s, stored in {@link #doubleValues}. */
+    private static final int DOUBLE_VALUES = 3;
+
+    /** The values are some other kind of objects, stored in {@link #values}. */
+    private static final int OBJECT_VALUES = 4;
+
+
     private boolean computeStdDev;
 
-    private Object sum;
+    /**
+     * The kind of values that have been added.  As long as all values are
+     * of the same primitive type, they are stored in an array of primitives
+     * instead of a list of objects.
+     */
+    private int valuesKind;
+
+    private long[] longValues;
+
+    private double[] doubleValues;
+
+    /** The number of values in the primitive array. */
+    private int numValues;
 
     private ArrayList<Object> values;
 
@@ -31,7 +60,10 @@ public class StdDevVarAggregate extends AggregateFunction {
 
     @Override
     public void clearResult() {
-        sum = null;
+        valuesKind = NO_VALUES;
+        longValues = null;
+        doubleValues = null;
+        numValues = 0;
         values = null;
     }
 
@@ -41,33 +73,152 @@ public class StdDevVarAggregate extends AggregateFunction {
         if (value == null)
             return;
 
-        if (values == null) {
-            // This is the first value. Create a new array list and store it.
-            values = new ArrayList<Object>();
-            values.add(value);
-        } else {
-            // Store the new value
-            values.add(value);
-        }
-                
-        if (sum == null) {
-            // This is the first value.  Store it.
-            sum = value;
+        if (value instanceof Integer)
+            addIntValue((Integer) value);
+        else if (value instanceof Long)
+            addLongValue((Long) value);
+        else if (value instanceof Double)
+            addDoubleValue((Double) value);
+        else
+            addObject(value);
+    }
+
+
+    @Override
+    public void addIntValue(int value) {
+        if (valuesKind == NO_VALUES)
+            valuesKind = INT_VALUES;
+
+        if (valuesKind == INT_VALUES)
+            addLong(value);
+        else
+            addObject(Integer.valueOf(value));
+    }
+
+
+    @Override
+    public void addLongValue(long value) {
+        if (valuesKind == NO_VALUES)
+            valuesKind = LONG_VALUES;
+
+        if (valuesKind == LONG_VALUES)
+            addLong(value);
+        else
+            addObject(Long.valueOf(value));
+    }
+
+
+    @Override
+    public void addDoubleValue(double value) {
+        if (valuesKind == NO_VALUES)
+            valuesKind = DOUBLE_VALUES;
+
+        if (valuesKind != DOUBLE_VALUES) {
+            addObject(Double.valueOf(value));
+            return;
         }
-        else {
-            // Add in the new value.
-            sum = ArithmeticOperator.evalObjects(ArithmeticOperator.Type.ADD,
-                sum, value);
+
+        if (doubleValues == null)
+            doubleValues = new double[16];
+        else if (numValues == doubleValues.length)
+            doubleValues = Arrays.copyOf(doubleValues, 2 * numValues);
+
+        doubleValues[numValues] = value;
+        numValues++;
+    }
+
+
+    private void addLong(long value) {
+        if (longValues == null)
+            longValues = new long[16];
+        else if (numValues == longValues.length)
+            longValues = Arrays.copyOf(longValues, 2 * numValues);
+
+        longValues[numValues] = value;
+        numValues++;
+    }
+
+
+    /**
+     * Adds a value that isn't of the same primitive type as the values
+     * before it, moving any values in the primitive arrays into the list of
+     * objects first.
+     */
+    private void addObject(Object value) {
+        if (valuesKind != OBJECT_VALUES) {
+            values = new ArrayList<Object>(numValues + 1);
+            for (int i = 0; i < numValues; i++) {
+                if (valuesKind == INT_VALUES)
+                    values.add(Integer.valueOf((int) longValues[i]));
+                else if (valuesKind == LONG_VALUES)
+                    values.add(Long.valueOf(longValues[i]));
+                else
+                    values.add(Double.valueOf(doubleValues[i]));
+            }
+
+            valuesKind = OBJECT_VALUES;
+            longValues = null;
+            doubleValues = null;
+            numValues = 0;
         }
+
+        values.add(value);
     }
 
     
+    @Override
+    public boolean supportsMerge() {
+        return true;
+    }
+
+
+    /**
+     * Adds all of the other function's values to this one, so that the
+     * result is computed over all of the values in the same way.
+     */
+    @Override
+    public void mergeState(AggregateFunction other) {
+        StdDevVarAggregate otherFn = (StdDevVarAggregate) other;
+
+        switch (otherFn.valuesKind) {
+        case INT_VALUES:
+            for (int i = 0; i < otherFn.numValues; i++)
+                addIntValue((int) otherFn.longValues[i]);
+            break;
+
+        case LONG_VALUES:
+            for (int i = 0; i < otherFn.numValues; i++)
+                addLongValue(otherFn.longValues[i]);
+            break;
+
+        case DOUBLE_VALUES:
+            for (int i = 0; i < otherFn.numValues; i++)
+                addDoubleValue(otherFn.doubleValues[i]);
+            break;
+
+        case OBJECT_VALUES:
+            for (Object value : otherFn.values)
+                addValue(value);
+            break;
+        }
+    }
+
+
     @Override
     public Object getResult() {
-        if (sum == null || values == null)
+        if (valuesKind == NO_VALUES)
             return null;
+        else if (valuesKind != OBJECT_VALUES)
+            return getPrimitiveResult();
         else {
             int count = values.size();
+
+            Object sum = values.get(0);
+            for (int i = 1; i < count; i++) {
+                sum = ArithmeticOperator.evalObjects(
+                    ArithmeticOperator.Type.ADD, sum, values.get(i));
+            }
+
             // Compute average from the sum and count.
             Object avg = ArithmeticOperator.evalObjects(
                 ArithmeticOperator.Type.DIVIDE, sum, Integer.valueOf(count));
@@ -95,6 +246,58 @@ public class StdDevVarAggregate extends AggregateFunction {
             }
         }
     }
+
+
+    /**
+     * Computes the result from the array of primitive values, producing the
+     * same result as computing it with objects:  the sum wraps around in the
+     * same way, and the average and the residuals are <tt>double</tt>s.
+     */
+    private Object getPrimitiveResult() {
+        int count = numValues;
+
+        double avg;
+        if (valuesKind == INT_VALUES) {
+            int sum = 0;
+            for (int i = 0; i < count; i++)
+                sum += (int) longValues[i];
+
+            avg = (double) sum / (double) count;
+        }
+        else if (valuesKind == LONG_VALUES) {
+            long sum = 0;
+            for (int i = 0; i < count; i++)
+                sum += longValues[i];
+
+            avg = (double) sum / (double) count;
+        }
+        else {
+            double sum = doubleValues[0];
+            for (int i = 1; i < count; i++)
+                sum += doubleValues[i];
+
+            avg = sum / count;
+        }
+
+        // Compute the sum of the square of the residuals.
+        double sumSquaresResids = 0;
+        for (int i = 0; i < count; i++) {
+            double value = (valuesKind == DOUBLE_VALUES) ?
+                doubleValues[i] : (double) longValues[i];
+            double square = Math.pow(value - avg, 2);
+
+            if (i == 0)
+                sumSquaresResids = square;
+            else
+                sumSquaresResids += square;
+        }
+
+        double var = sumSquaresResids / count;
+        if (computeStdDev)
+            return Double.valueOf(Math.pow(var, .5));
+        else
+            return Double.valueOf(var);
+    }
     
     
     @Override
@@ -24,7 +24,41 @@ public class SumAvgAggregate extends AggregateFunction {
     private boolean computeAverage;
 
 
-    /** Contains the actual value of the sum */
+    /** The sum has no values in it yet. */
+    private static final int NO_SUM = 0;
+
+    /** The sum is an <tt>int</tt>, stored in {@link #longSum}. */
+    private static final int INT_SUM = 1;
+
+    /** The sum is a <tt>long</tt>, stored in {@link #longSum}. */
+    private static final int LONG_SUM = 2;
+
+    /** The sum is a <tt>double</tt>, stored in {@link #doubleSum}. */
+    private static final int DOUBLE_SUM = 3;
+
+    /** The sum is some other kind of object, stored in {@link #sum}. */
+    private static final int OBJECT_SUM = 4;
+
+
+    /**
+     * The kind of value the sum currently is.  Sums of <tt>Integer</tt>,
+     * <tt>Long</tt> and <tt>Double</tt> values are kept in primitive
+     * variables, promoted in the same way as
+     * {@link ArithmeticOperator#evalObjects} would promote them, so that
+     * adding values to the sum doesn't allocate any objects.
+     */
+    private int sumKind;
+
+
+    /** Contains the value of an <tt>int</tt> or <tt>long</tt> sum. */
+    private long longSum;
+
+
+    /** Contains the value of a <tt>double</tt> sum. */
+    private double doubleSum;
+
+
+    /** Contains the actual value of the sum, for other kinds of values */
     private Object sum;
 
 
@@ -51,6 +85,7 @@ public class SumAvgAggregate extends AggregateFunction {
 
     @Override
     public void clearResult() {
+        sumKind = NO_SUM;
         sum = null;
         count = 0;
         if (distinct)
@@ -70,34 +105,244 @@ public class SumAvgAggregate extends AggregateFunction {
         else if (distinct)
             set.add(value);
 
-        if (sum == null) {
+        if (value instanceof Integer)
+            addInt((Integer) value);
+        else if (value instanceof Long)
+            addLong((Long) value);
+        else if (value instanceof Double)
+            addDouble((Double) value);
+        else
+            addObject(value);
+
+        if (computeAverage)
+            count++;
+    }
+
+
+    @Override
+    public void addIntValue(int value) {
+        // Distinct values must be boxed to be remembered.
+        if (distinct) {
+            addValue(Integer.valueOf(value));
+            return;
+        }
+
+        addInt(value);
+        if (computeAverage)
+            count++;
+    }
+
+
+    @Override
+    public void addLongValue(long value) {
+        if (distinct) {
+            addValue(Long.valueOf(value));
+            return;
+        }
+
+        addLong(value);
+        if (computeAverage)
+            count++;
+    }
+
+
+    @Override
+    public void addDoubleValue(double value) {
+        if (distinct) {
+            addValue(Double.valueOf(value));
+            return;
+        }
+
+        addDouble(value);
+        if (computeAverage)
+            count++;
+    }
+
+
+    private void addInt(int value) {
+        switch (sumKind) {
+        case NO_SUM:
+            sumKind = INT_SUM;
+            longSum = value;
+            break;
+
+        case INT_SUM:
+            // Integer sums wrap around, just like adding Integers does.
+            longSum = (int) longSum + value;
+            break;
+
+        case LONG_SUM:
+            longSum += value;
+            break;
+
+        case DOUBLE_SUM:
+            doubleSum += value;
+            break;
+
+        default:
+            addObject(Integer.valueOf(value));
+        }
+    }
+
+
+    private void addLong(long value) {
+        switch (sumKind) {
+        case NO_SUM:
+            sumKind = LONG_SUM;
+            longSum = value;
+            break;
+
+        case INT_SUM:
+        case LONG_SUM:
+            sumKind = LONG_SUM;
+            longSum += value;
+            break;
+
+        case DOUBLE_SUM:
+            doubleSum += value;
+            break;
+
+        default:
+            addObject(Long.valueOf(value));
+        }
+    }
+
+
+    private void addDouble(double value) {
+        switch (sumKind) {
+        case NO_SUM:
+            sumKind = DOUBLE_SUM;
+            doubleSum = value;
+            break;
+
+        case INT_SUM:
+        case LONG_SUM:
+            sumKind = DOUBLE_SUM;
+            doubleSum = longSum + value;
+            break;
+
+        case DOUBLE_SUM:
+            doubleSum += value;
+            break;
+
+        default:
+            addObject(Double.valueOf(value));
+        }
+    }
+
+
+    private void addObject(Object value) {
+        if (sumKind == NO_SUM) {
             // This is the first value.  Store it.
             sum = value;
         }
         else {
             // Add in the new value.
             sum = ArithmeticOperator.evalObjects(ArithmeticOperator.Type.ADD,
-                sum, value);
+                getSum(), value);
         }
 
-        if (computeAverage)
-            count++;
+        sumKind = OBJECT_SUM;
+    }
+
+
+    /** Returns the sum as an object. */
+    private Object getSum() {
+        switch (sumKind) {
+        case INT_SUM:
+            return Integer.valueOf((int) longSum);
+
+        case LONG_SUM:
+            return Long.valueOf(longSum);
+
+        case DOUBLE_SUM:
+            return Double.valueOf(doubleSum);
+
+        default:
+            return sum;
+        }
+    }
+
+
+    @Override
+    public boolean supportsMerge() {
+        return true;
+    }
+
+
+    @Override
+    public void mergeState(AggregateFunction other) {
+        SumAvgAggregate otherSum = (SumAvgAggregate) other;
+
+        if (distinct) {
+            // Only the values that this function hasn't seen are added.
+            for (Object value : otherSum.set)
+                addValue(value);
+
+            return;
+        }
+
+        switch (otherSum.sumKind) {
+        case NO_SUM:
+            return;
+
+        case INT_SUM:
+            addInt((int) otherSum.longSum);
+            break;
+
+        case LONG_SUM:
+            addLong(otherSum.longSum);
+            break;
+
+        case DOUBLE_SUM:
+            addDouble(otherSum.doubleSum);
+            break;
+
+        default:
+            addObject(otherSum.sum);
+        }
+
+        count += otherSum.count;
+    }
+
+
+    /**
+     * Each copy of the function needs its own set of distinct values.
+     */
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        SumAvgAggregate aggFn = (SumAvgAggregate) super.clone();
+        if (distinct)
+            aggFn.set = new HashSet<Object>(set);
+
+        return aggFn;
     }
 
 
     @Override
     public Object getResult() {
-        if (sum == null) {
+        if (sumKind == NO_SUM) {
             return null;
         }
         else if (computeAverage) {
-            // Compute average from the sum and count.
-            return ArithmeticOperator.evalObjects(
-                ArithmeticOperator.Type.DIVIDE, sum, Integer.valueOf(count));
+            // Compute average from the sum and count.  Dividing integers
+            // produces a double, just as it does for Integers and Longs.
+            switch (sumKind) {
+            case INT_SUM:
+            case LONG_SUM:
+                return Double.valueOf((double) longSum / (double) count);
+
+            case DOUBLE_SUM:
+                return Double.valueOf(doubleSum / count);
+
+            default:
+                return ArithmeticOperator.evalObjects(
+                    ArithmeticOperator.Type.DIVIDE, sum, Integer.valueOf(count));
+            }
         }
         else {
             // Just return the sum.
-            return sum;
+            return getSum();
         }
     }
 
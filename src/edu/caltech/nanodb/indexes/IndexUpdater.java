@@ -5,6 +5,7 @@ import java.io.IOException;
 
 import org.apache.log4j.Logger;
 
+import edu.caltech.nanodb.expressions.TupleComparator;
 import edu.caltech.nanodb.expressions.TupleLiteral;
 import edu.caltech.nanodb.relations.ColumnRefs;
 import edu.caltech.nanodb.relations.TableConstraintType;
@@ -13,9 +14,14 @@ import edu.caltech.nanodb.relations.TableSchema;
 import edu.caltech.nanodb.relations.Tuple;
 import edu.caltech.nanodb.server.EventDispatchException;
 import edu.caltech.nanodb.server.RowEventListener;
+import edu.caltech.nanodb.storage.FilePointer;
+import edu.caltech.nanodb.storage.InvalidFilePointerException;
+import edu.caltech.nanodb.storage.SequentialTupleFile;
 import edu.caltech.nanodb.storage.TupleFile;
 import edu.caltech.nanodb.storage.PageTuple;
 import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.storage.heapfile.HeapFilePageTuple;
+import edu.caltech.nanodb.storage.heapfile.HeapTupleFile;
 
 
 /**
@@ -71,8 +77,10 @@ public class IndexUpdater implements RowEventListener {
                 "oldTuple must be castable to PageTuple");
         }
 
-        // Remove the old row from any indexes on the table.
-        removeRowFromIndexes(tblFileInfo, (PageTuple) oldTuple);
+        // Remove the old row from any indexes on the table, unless other
+        // snapshots may still see it.
+        if (!keepsOldVersions(tblFileInfo))
+            removeRowFromIndexes(tblFileInfo, (PageTuple) oldTuple);
     }
 
     @Override
@@ -95,8 +103,10 @@ public class IndexUpdater implements RowEventListener {
                 "oldTuple must be castable to PageTuple");
         }
 
-        // Remove the old row from any indexes on the table.
-        removeRowFromIndexes(tblFileInfo, (PageTuple) oldTuple);
+        // Remove the old row from any indexes on the table, unless other
+        // snapshots may still see it.
+        if (!keepsOldVersions(tblFileInfo))
+            removeRowFromIndexes(tblFileInfo, (PageTuple) oldTuple);
     }
 
     @Override
@@ -105,6 +115,98 @@ public class IndexUpdater implements RowEventListener {
     }
 
 
+    /**
+     * Returns true if the table keeps the old versions of rows that are
+     * updated or deleted.  The index entries of those versions must then be
+     * kept as well, so that index scans from older snapshots can still find
+     * them; they are removed when the table is vacuumed.  Readers of the
+     * index skip the versions they can't see.
+     *
+     * @param tblFileInfo details of the table being updated
+     *
+     * @return true if the table keeps old versions of its rows
+     */
+    private static boolean keepsOldVersions(TableInfo tblFileInfo) {
+        TupleFile tupleFile = tblFileInfo.getTupleFile();
+        return tupleFile instanceof HeapTupleFile &&
+            ((HeapTupleFile) tupleFile).keepsOldVersions();
+    }
+
+
+    /**
+     * Looks for an existing row of the table whose values in an index's
+     * columns are the same as the specified key.  Since the index may still
+     * refer to versions of rows that have been deleted, every entry with the
+     * key is examined until one refers to a row that hasn't been deleted.
+     *
+     * @param tblFileInfo details of the table being updated
+     *
+     * @param uniqueKey the key values to look for, without a tuple pointer
+     *
+     * @param idxTupleFile the index's tuple file
+     *
+     * @return the index entry of an existing row with the key, or
+     *         {@code null} if there is none
+     *
+     * @throws IOException if the index or the table couldn't be read
+     */
+    private PageTuple findExistingRow(TableInfo tblFileInfo, Tuple uniqueKey,
+        TupleFile idxTupleFile) throws IOException {
+
+        PageTuple idxTup = IndexUtils.findTupleInIndex(uniqueKey, idxTupleFile);
+        if (!keepsOldVersions(tblFileInfo))
+            return idxTup;
+
+        HeapTupleFile heapFile = (HeapTupleFile) tblFileInfo.getTupleFile();
+        while (idxTup != null) {
+            FilePointer fptr = (FilePointer)
+                idxTup.getColumnValue(idxTup.getColumnCount() - 1);
+
+            HeapFilePageTuple version;
+            try {
+                version = (HeapFilePageTuple) heapFile.getTuple(fptr);
+            }
+            catch (InvalidFilePointerException e) {
+                throw new IOException("Index references a nonexistent " +
+                    "tuple at " + fptr, e);
+            }
+            boolean deleted = heapFile.isDeleted(version);
+            version.unpin();
+
+            if (!deleted)
+                return idxTup;
+
+            // Only sequential indexes keep the entries with the same key
+            // together; otherwise the first entry is all we can check.
+            PageTuple nextTup = null;
+            if (idxTupleFile instanceof SequentialTupleFile) {
+                nextTup = (PageTuple) idxTupleFile.getNextTuple(idxTup);
+                if (nextTup != null && !hasKey(nextTup, uniqueKey)) {
+                    nextTup.unpin();
+                    nextTup = null;
+                }
+            }
+
+            idxTup.unpin();
+            idxTup = nextTup;
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Returns true if an index entry starts with the specified key values.
+     */
+    private static boolean hasKey(Tuple idxTup, Tuple key) {
+        TupleLiteral prefix = new TupleLiteral();
+        for (int i = 0; i < key.getColumnCount(); i++)
+            prefix.addValue(idxTup.getColumnValue(i));
+
+        return TupleComparator.comparePartialTuples(prefix, key) == 0;
+    }
+
+
     /**
      * This helper method handles the case when a tuple is being added to the
      * table, after the row has already been added to the table.  All indexes
@@ -126,22 +228,28 @@ public class IndexUpdater implements RowEventListener {
                     indexDef.getIndexName());
 
                 TupleFile tupleFile = indexInfo.getTupleFile();
-                // Enforce unique constraints.
-                switch (indexInfo.getTableColumnRefs().getConstraintType()) {
-                case PRIMARY_KEY:
-                case FOREIGN_KEY:
-                case UNIQUE:
-                    // Don't match tuple pointer.
-                    Tuple uniqueKey = IndexUtils.makeTableSearchKey(indexDef, ptup, false);
-                    Tuple existing = IndexUtils.findTupleInIndex(uniqueKey, tupleFile);
-                    if (existing != null) {
-                        throw new IOException("Adding tuple " +
-                            ptup.toString() +
-                            " violates PK, FK, or unique constraint because tuple " +
-                            existing.toString() + " already exists in " +
-                            tblFileInfo.getTableName());
+                // Enforce unique constraints.  Indexes made with CREATE INDEX
+                // don't have a constraint type.
+                TableConstraintType constraintType =
+                    indexInfo.getTableColumnRefs().getConstraintType();
+                if (constraintType != null) {
+                    switch (constraintType) {
+                    case PRIMARY_KEY:
+                    case FOREIGN_KEY:
+                    case UNIQUE:
+                        // Don't match tuple pointer.
+                        Tuple uniqueKey = IndexUtils.makeTableSearchKey(indexDef, ptup, false);
+                        Tuple existing = findExistingRow(tblFileInfo,
+                            uniqueKey, tupleFile);
+                        if (existing != null) {
+                            throw new IOException("Adding tuple " +
+                                ptup.toString() +
+                                " violates PK, FK, or unique constraint because tuple " +
+                                existing.toString() + " already exists in " +
+                                tblFileInfo.getTableName());
+                        }
+                        break;
                     }
-                    break;
                 }
                 // Add value
                 Tuple key = IndexUtils.makeTableSearchKey(indexDef, ptup, true);
@@ -157,15 +265,17 @@ public class IndexUpdater implements RowEventListener {
 
 
     /**
-     * This helper method handles the case when a tuple is being removed from
-     * the table, before the row has actually been removed from the table.
-     * All indexes on the table are updated to remove the row.
+     * This method handles the case when a tuple is being removed from the
+     * table, before the row has actually been removed from the table.  All
+     * indexes on the table are updated to remove the row.  It is also used
+     * when tables that keep old versions of rows are vacuumed, to remove the
+     * index entries of each version that is removed.
      *
      * @param tblFileInfo details of the table being updated
      *
      * @param ptup the tuple about to be removed from the table
      */
-    private void removeRowFromIndexes(TableInfo tblFileInfo, PageTuple ptup) {
+    public void removeRowFromIndexes(TableInfo tblFileInfo, PageTuple ptup) {
 
         logger.debug("Removing tuple " + ptup + " from indexes for table " +
             tblFileInfo.getTableName());
@@ -186,7 +296,7 @@ public class IndexUpdater implements RowEventListener {
                         ptup.toString() + " from " + tblFileInfo.getTableName() +
                         " failed because it doesn't exist in index " + indexDef.toString());
                 }
-                tupleFile.deleteTuple(ptup);
+                tupleFile.deleteTuple(existing);
             }
             catch (IOException e) {
                 throw new EventDispatchException("Couldn't update index " +
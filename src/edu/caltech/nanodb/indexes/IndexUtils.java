@@ -20,6 +20,7 @@ import edu.caltech.nanodb.relations.TableSchema;
 import edu.caltech.nanodb.relations.Tuple;
 import edu.caltech.nanodb.storage.FilePointer;
 import edu.caltech.nanodb.storage.HashedTupleFile;
+import edu.caltech.nanodb.storage.InvalidFilePointerException;
 import edu.caltech.nanodb.storage.PageTuple;
 import edu.caltech.nanodb.storage.SequentialTupleFile;
 import edu.caltech.nanodb.storage.TupleFile;
@@ -373,7 +374,10 @@ public class IndexUtils {
                     " appears multiple times in the index.");
             }
 
-            if (!tableTuples.contains(fptr)) {
+            // Entries for old versions of rows are kept until the table is
+            // vacuumed, so they may refer to tuples the scan didn't see.
+            if (!tableTuples.contains(fptr) &&
+                !tupleExists(tableTupleFile, fptr)) {
                 errors.add(
                     "Index references a nonexistent tuple at location " +
                     fptr + ".");
@@ -396,4 +400,24 @@ public class IndexUtils {
 
         return errors;
     }
+
+
+    /**
+     * Returns true if a tuple file holds a tuple at the specified location,
+     * whether or not the current transaction can see it.
+     */
+    private static boolean tupleExists(TupleFile tupleFile, FilePointer fptr)
+        throws IOException {
+
+        try {
+            Tuple tup = tupleFile.getTuple(fptr);
+            if (tup instanceof PageTuple)
+                ((PageTuple) tup).unpin();
+
+            return true;
+        }
+        catch (InvalidFilePointerException e) {
+            return false;
+        }
+    }
 }
@@ -0,0 +1,362 @@
+package edu.caltech.nanodb.plannodes;
+
+
+import java.util.ArrayList;
+
+import edu.caltech.nanodb.expressions.BooleanOperator;
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.CompareOperator;
+import edu.caltech.nanodb.expressions.CompiledExpression;
+import edu.caltech.nanodb.expressions.Environment;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.ExpressionCompiler;
+import edu.caltech.nanodb.expressions.LiteralValue;
+
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.SchemaNameException;
+
+
+/**
+ * This class applies a predicate to a {@link TupleBatch}, removing the rows
+ * that don't satisfy it from the batch's selection vector.  The predicate is
+ * split into its conjuncts.  Conjuncts that compare a numeric column to a
+ * numeric literal are evaluated with a tight loop over the column's vector
+ * of primitives; all other conjuncts are compiled with
+ * {@link ExpressionCompiler} and evaluated one row at a time.
+ */
+public class BatchPredicate {
+
+    /** A conjunct of the form <tt>column op literal</tt>. */
+    private static class ColumnComparison {
+        /** The conjunct, for evaluating it on columns stored as objects. */
+        CompiledExpression term;
+
+        int colIndex;
+
+        CompareOperator.Type type;
+
+        /** True if the literal is an integer, so longs can be compared. */
+        boolean integral;
+
+        long longValue;
+
+        double doubleValue;
+    }
+
+
+    /** The predicate that this object applies. */
+    private Expression predicate;
+
+    /** The schema of the batches that the predicate is applied to. */
+    private Schema schema;
+
+    /** The conjuncts that compare a column to a numeric literal. */
+    private ArrayList<ColumnComparison> comparisons = new ArrayList<>();
+
+    /** The conjuncts that are evaluated one row at a time. */
+    private ArrayList<CompiledExpression> otherTerms = new ArrayList<>();
+
+
+    /** The environment that conjuncts which can't be compiled use. */
+    private Environment env;
+
+
+    /**
+     * Prepares a predicate for evaluation against batches.
+     *
+     * @param predicate the predicate to apply
+     * @param schema the schema of the batches the predicate is applied to
+     * @param env the environment to evaluate the parts of the predicate in
+     *        that can't be compiled
+     */
+    public BatchPredicate(Expression predicate, Schema schema,
+                          Environment env) {
+        if (predicate == null)
+            throw new IllegalArgumentException("predicate cannot be null");
+
+        if (schema == null)
+            throw new IllegalArgumentException("schema cannot be null");
+
+        this.predicate = predicate;
+        this.schema = schema;
+        this.env = env;
+
+        if (predicate instanceof BooleanOperator &&
+            ((BooleanOperator) predicate).getType() ==
+                BooleanOperator.Type.AND_EXPR) {
+            BooleanOperator andOp = (BooleanOperator) predicate;
+            for (int i = 0; i < andOp.getNumTerms(); i++)
+                addTerm(andOp.getTerm(i));
+        }
+        else {
+            addTerm(predicate);
+        }
+    }
+
+
+    public Expression getPredicate() {
+        return predicate;
+    }
+
+
+    public Schema getSchema() {
+        return schema;
+    }
+
+
+    /** Returns the number of conjuncts that are evaluated on vectors. */
+    public int getNumColumnComparisons() {
+        return comparisons.size();
+    }
+
+
+    private void addTerm(Expression term) {
+        ColumnComparison comparison = makeColumnComparison(term);
+        if (comparison != null)
+            comparisons.add(comparison);
+        else
+            otherTerms.add(ExpressionCompiler.compile(term, schema, env));
+    }
+
+
+    /**
+     * Returns a column comparison for a conjunct of the form
+     * <tt>column op literal</tt> or <tt>literal op column</tt>, where the
+     * column is in the batch's schema and the literal is a number, or
+     * {@code null} if the conjunct isn't of that form.
+     */
+    private ColumnComparison makeColumnComparison(Expression term) {
+        if (!(term instanceof CompareOperator))
+            return null;
+
+        CompareOperator cmp = (CompareOperator) term;
+        Expression lhs = cmp.getLeftExpression();
+        Expression rhs = cmp.getRightExpression();
+        CompareOperator.Type type = cmp.getType();
+
+        if (lhs instanceof LiteralValue && rhs instanceof ColumnValue) {
+            Expression tmp = lhs;
+            lhs = rhs;
+            rhs = tmp;
+            type = flip(type);
+        }
+
+        if (!(lhs instanceof ColumnValue && rhs instanceof LiteralValue))
+            return null;
+
+        Object value = rhs.evaluate(null);
+        boolean integral = (value instanceof Integer ||
+            value instanceof Long || value instanceof Short ||
+            value instanceof Byte);
+
+        if (!integral && !(value instanceof Double || value instanceof Float))
+            return null;
+
+        int colIndex;
+        try {
+            colIndex = schema.getColumnIndex(
+                ((ColumnValue) lhs).getColumnName());
+        }
+        catch (SchemaNameException e) {
+            // Let row-at-a-time evaluation report the problem.
+            return null;
+        }
+
+        // The column may come from an enclosing query's environment.
+        if (colIndex < 0)
+            return null;
+
+        ColumnComparison comparison = new ColumnComparison();
+        comparison.term = ExpressionCompiler.compile(term, schema, env);
+        comparison.colIndex = colIndex;
+        comparison.type = type;
+        comparison.integral = integral;
+        comparison.longValue = ((Number) value).longValue();
+        comparison.doubleValue = ((Number) value).doubleValue();
+
+        return comparison;
+    }
+
+
+    /** Returns the comparison with its operands swapped. */
+    private static CompareOperator.Type flip(CompareOperator.Type type) {
+        switch (type) {
+        case LESS_THAN:
+            return CompareOperator.Type.GREATER_THAN;
+
+        case GREATER_THAN:
+            return CompareOperator.Type.LESS_THAN;
+
+        case LESS_OR_EQUAL:
+            return CompareOperator.Type.GREATER_OR_EQUAL;
+
+        case GREATER_OR_EQUAL:
+            return CompareOperator.Type.LESS_OR_EQUAL;
+
+        default:
+            return type;
+        }
+    }
+
+
+    /**
+     * Removes the rows that don't satisfy the predicate from the selection
+     * vector of a batch.
+     *
+     * @param batch the batch to filter
+     */
+    public void apply(TupleBatch batch) {
+        for (ColumnComparison comparison : comparisons) {
+            if (batch.getNumSelected() == 0)
+                return;
+
+            switch (batch.getColumnKind(comparison.colIndex)) {
+            case TupleBatch.INT_COLUMN:
+            case TupleBatch.LONG_COLUMN:
+                if (comparison.integral)
+                    applyLongComparison(batch, comparison);
+                else
+                    applyDoubleComparison(batch, comparison);
+                break;
+
+            case TupleBatch.DOUBLE_COLUMN:
+                applyDoubleComparison(batch, comparison);
+                break;
+
+            default:
+                applyTerm(batch, comparison.term);
+            }
+        }
+
+        for (CompiledExpression term : otherTerms) {
+            if (batch.getNumSelected() == 0)
+                return;
+
+            applyTerm(batch, term);
+        }
+    }
+
+
+    private static void applyLongComparison(TupleBatch batch,
+                                            ColumnComparison comparison) {
+        int colIndex = comparison.colIndex;
+        boolean[] nulls = batch.getNullFlags(colIndex);
+        int[] intValues = null;
+        long[] longValues = null;
+        if (batch.getColumnKind(colIndex) == TupleBatch.INT_COLUMN)
+            intValues = batch.getIntColumn(colIndex);
+        else
+            longValues = batch.getLongColumn(colIndex);
+
+        long literal = comparison.longValue;
+        int[] selection = batch.getSelection();
+        int numSelected = batch.getNumSelected();
+        int numKept = 0;
+
+        for (int i = 0; i < numSelected; i++) {
+            int row = selection[i];
+
+            // Comparisons with NULL are never true.
+            if (nulls[row])
+                continue;
+
+            long value = (intValues != null) ? intValues[row] : longValues[row];
+            if (compare(comparison.type, Long.compare(value, literal))) {
+                selection[numKept] = row;
+                numKept++;
+            }
+        }
+
+        batch.setNumSelected(numKept);
+    }
+
+
+    private static void applyDoubleComparison(TupleBatch batch,
+                                              ColumnComparison comparison) {
+        int colIndex = comparison.colIndex;
+        boolean[] nulls = batch.getNullFlags(colIndex);
+        int kind = batch.getColumnKind(colIndex);
+        int[] intValues = null;
+        long[] longValues = null;
+        double[] doubleValues = null;
+        if (kind == TupleBatch.INT_COLUMN)
+            intValues = batch.getIntColumn(colIndex);
+        else if (kind == TupleBatch.LONG_COLUMN)
+            longValues = batch.getLongColumn(colIndex);
+        else
+            doubleValues = batch.getDoubleColumn(colIndex);
+
+        double literal = comparison.doubleValue;
+        int[] selection = batch.getSelection();
+        int numSelected = batch.getNumSelected();
+        int numKept = 0;
+
+        for (int i = 0; i < numSelected; i++) {
+            int row = selection[i];
+            if (nulls[row])
+                continue;
+
+            double value;
+            if (doubleValues != null)
+                value = doubleValues[row];
+            else if (intValues != null)
+                value = intValues[row];
+            else
+                value = longValues[row];
+
+            if (compare(comparison.type, Double.compare(value, literal))) {
+                selection[numKept] = row;
+                numKept++;
+            }
+        }
+
+        batch.setNumSelected(numKept);
+    }
+
+
+    private static boolean compare(CompareOperator.Type type, int compResult) {
+        switch (type) {
+        case EQUALS:
+            return compResult == 0;
+
+        case NOT_EQUALS:
+            return compResult != 0;
+
+        case LESS_THAN:
+            return compResult < 0;
+
+        case GREATER_THAN:
+            return compResult > 0;
+
+        case LESS_OR_EQUAL:
+            return compResult <= 0;
+
+        case GREATER_OR_EQUAL:
+            return compResult >= 0;
+
+        default:
+            throw new IllegalArgumentException(
+                "Unrecognized comparison type " + type);
+        }
+    }
+
+
+    /** Evaluates a conjunct against each selected row of a batch. */
+    private static void applyTerm(TupleBatch batch, CompiledExpression term) {
+        TupleBatch.RowView rowView = batch.getRowView(0);
+        int[] selection = batch.getSelection();
+        int numSelected = batch.getNumSelected();
+        int numKept = 0;
+
+        for (int i = 0; i < numSelected; i++) {
+            int row = selection[i];
+            rowView.setRow(row);
+            if (term.evaluatePredicate(rowView)) {
+                selection[numKept] = row;
+                numKept++;
+            }
+        }
+
+        batch.setNumSelected(numKept);
+    }
+}
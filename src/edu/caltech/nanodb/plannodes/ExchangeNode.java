@@ -0,0 +1,723 @@
+package edu.caltech.nanodb.plannodes;
+
+
+import java.io.IOException;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.client.SessionState;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.ExpressionProcessor;
+import edu.caltech.nanodb.expressions.OrderByExpression;
+import edu.caltech.nanodb.expressions.SubqueryOperator;
+import edu.caltech.nanodb.queryast.SelectValue;
+import edu.caltech.nanodb.queryeval.PlanCost;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.storage.heapfile.HeapTupleFile;
+
+
+/**
+ * This plan node evaluates its subplan in parallel.  The heap file that the
+ * subplan scans is split into ranges of pages, and a copy of the subplan is
+ * evaluated over each range on a shared pool of worker threads.  The batches
+ * that the copies produce are gathered into a single stream of results, in
+ * no particular order.
+ * <p>
+ * Since each copy of the subplan only sees part of the input, the subplan
+ * may only consist of {@link SimpleFilterNode}s, {@link ProjectNode}s and
+ * {@link RenameNode}s above a {@link FileScanNode} over a heap file; see
+ * {@link #isPartitionable}.  The workers evaluate the copies on behalf of
+ * the session that evaluates this node, so that they see the same
+ * transaction state.
+ * <p>
+ * Callers should either use {@link #getNextTuple} or {@link #getNextBatch}
+ * to read the results of this node, but not both.  Alternatively, a parent
+ * node can have each partition's batches handed to a
+ * {@link PartitionConsumer} on the worker that produces them, by calling
+ * {@link #consumePartitions}.
+ */
+public class ExchangeNode extends PlanNode {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(ExchangeNode.class);
+
+
+    /**
+     * How long a worker waits for room in the queue before checking whether
+     * it has been cancelled.
+     */
+    private static final long OFFER_TIMEOUT_MS = 100;
+
+
+    /** The number of batches each partition may have waiting in the queue. */
+    private static final int BATCHES_PER_PARTITION = 2;
+
+
+    /** A marker that a worker adds to the queue when it is done. */
+    private static final TupleBatch END_OF_PARTITION =
+        new TupleBatch(new Schema(), 1);
+
+
+    /**
+     * The pool of worker threads shared by all exchange nodes, which is
+     * created when it is first needed.
+     */
+    private static ForkJoinPool workerPool;
+
+
+    /** Looks for subqueries in an expression. */
+    private static class SubqueryFinder implements ExpressionProcessor {
+        boolean found;
+
+        public void enter(Expression e) {
+            if (e instanceof SubqueryOperator)
+                found = true;
+        }
+
+        public Expression leave(Expression e) {
+            return e;
+        }
+    }
+
+
+    /**
+     * Consumes the batches of one partition of the subplan, on the worker
+     * thread that evaluates the partition.  Each consumer is only used by
+     * one worker, so it doesn't need to be thread-safe.
+     */
+    public interface PartitionConsumer {
+        /**
+         * Consumes a batch produced by the partition's copy of the subplan.
+         * The batch is refilled after this method returns, so it must not
+         * be retained.
+         *
+         * @param batch the next batch of the partition
+         *
+         * @return true to continue evaluating the partition, or false to
+         *         stop evaluating it
+         *
+         * @throws IOException if the batch cannot be consumed
+         */
+        boolean consumeBatch(TupleBatch batch) throws IOException;
+    }
+
+
+    /** Evaluates one partition of the subplan on a worker thread. */
+    private class PartitionWorker implements Runnable {
+        /** The copy of the subplan to evaluate. */
+        private PlanNode plan;
+
+        /** The session that the subplan is evaluated on behalf of. */
+        private SessionState session;
+
+        /**
+         * The consumer of the partition's batches, or {@code null} if they
+         * are added to the queue.
+         */
+        private PartitionConsumer consumer;
+
+
+        PartitionWorker(PlanNode plan, SessionState session,
+                        PartitionConsumer consumer) {
+            this.plan = plan;
+            this.session = session;
+            this.consumer = consumer;
+        }
+
+
+        @Override
+        public void run() {
+            SessionState.set(session);
+            try {
+                plan.initialize();
+                while (!cancelled) {
+                    TupleBatch batch = plan.getNextBatch();
+                    if (batch == null)
+                        break;
+
+                    if (consumer != null) {
+                        if (!consumer.consumeBatch(batch))
+                            break;
+
+                        continue;
+                    }
+
+                    // The subplan will refill its batch, so queue a copy.
+                    if (!enqueue(batch.copy()))
+                        break;
+                }
+            }
+            catch (Throwable t) {
+                recordFailure(t);
+            }
+            finally {
+                try {
+                    plan.cleanUp();
+                }
+                catch (Throwable t) {
+                    recordFailure(t);
+                }
+
+                enqueue(END_OF_PARTITION);
+                SessionState.remove();
+            }
+        }
+    }
+
+
+    /** The maximum number of partitions to evaluate in parallel. */
+    private int numPartitions;
+
+
+    /**
+     * The copies of the subplan being evaluated, one per partition, or
+     * {@code null} if evaluation hasn't started yet.
+     */
+    private PlanNode[] partitionPlans;
+
+
+    /** The tasks evaluating each partition. */
+    private Future<?>[] workers;
+
+
+    /** The batches produced by the workers, waiting to be consumed. */
+    private ArrayBlockingQueue<TupleBatch> queue;
+
+
+    /** The number of partitions whose workers have finished. */
+    private int numPartitionsDone;
+
+
+    /** Set when the workers should stop producing results. */
+    private volatile boolean cancelled;
+
+
+    /** The first exception thrown by a worker, or {@code null} if none. */
+    private volatile Throwable failure;
+
+
+    /** The batch that {@link #getNextTuple} is producing tuples from. */
+    private TupleBatch currentBatch;
+
+
+    /** The row of {@link #currentBatch} that is produced next. */
+    private int currentRow;
+
+
+    /** True if all of the workers' results have been produced. */
+    private boolean done;
+
+
+    /**
+     * Constructs an exchange node that evaluates a subplan in parallel.
+     *
+     * @param subplan the subplan to evaluate, which must be
+     *        {@link #isPartitionable partitionable}
+     * @param numPartitions the maximum number of partitions to evaluate in
+     *        parallel, which must be positive
+     */
+    public ExchangeNode(PlanNode subplan, int numPartitions) {
+        super(OperationType.EXCHANGE, subplan);
+
+        if (!isPartitionable(subplan)) {
+            throw new IllegalArgumentException(
+                "subplan cannot be evaluated in partitions:  " + subplan);
+        }
+
+        if (numPartitions <= 0) {
+            throw new IllegalArgumentException(
+                "numPartitions must be positive; got " + numPartitions);
+        }
+
+        this.numPartitions = numPartitions;
+    }
+
+
+    /**
+     * Returns true if a plan can be evaluated in partitions by an exchange
+     * node.  This is the case if the plan consists of filter, project and
+     * rename nodes above a file-scan over a heap file, since each of those
+     * nodes produces its results from one input tuple at a time.  The
+     * nodes' expressions may not contain subqueries, since the plans of
+     * subqueries can't be shared between workers.
+     *
+     * @param plan the plan to examine
+     *
+     * @return true if the plan can be evaluated in partitions
+     */
+    public static boolean isPartitionable(PlanNode plan) {
+        return getPartitionedScan(plan) != null;
+    }
+
+
+    /**
+     * Returns the file-scan node at the bottom of a partitionable plan, or
+     * {@code null} if the plan isn't partitionable.
+     */
+    private static FileScanNode getPartitionedScan(PlanNode plan) {
+        SubqueryFinder finder = new SubqueryFinder();
+
+        while (plan instanceof SimpleFilterNode ||
+               plan instanceof ProjectNode || plan instanceof RenameNode) {
+            if (plan instanceof SimpleFilterNode) {
+                ((SimpleFilterNode) plan).predicate.traverse(finder);
+            }
+            else if (plan instanceof ProjectNode) {
+                for (SelectValue value :
+                     ((ProjectNode) plan).getSelectValues()) {
+                    if (value.isScalarSubquery())
+                        return null;
+
+                    if (value.isExpression())
+                        value.getExpression().traverse(finder);
+                }
+            }
+
+            plan = plan.leftChild;
+        }
+
+        if (!(plan instanceof FileScanNode) ||
+            !((FileScanNode) plan).supportsPageRanges()) {
+            return null;
+        }
+
+        FileScanNode scan = (FileScanNode) plan;
+        if (scan.predicate != null)
+            scan.predicate.traverse(finder);
+
+        return finder.found ? null : scan;
+    }
+
+
+    /**
+     * Returns true if an expression contains a subquery, and so can't be
+     * evaluated by the workers.
+     */
+    static boolean containsSubquery(Expression expr) {
+        SubqueryFinder finder = new SubqueryFinder();
+        expr.traverse(finder);
+        return finder.found;
+    }
+
+
+    /** Returns the pool of worker threads, creating it if necessary. */
+    private static synchronized ForkJoinPool getWorkerPool() {
+        if (workerPool == null)
+            workerPool = new ForkJoinPool(PlanUtils.getParallelism());
+
+        return workerPool;
+    }
+
+
+    /** Returns the maximum number of partitions evaluated in parallel. */
+    public int getNumPartitions() {
+        return numPartitions;
+    }
+
+
+    /** The results of the partitions are interleaved, so they are unordered. */
+    public List<OrderByExpression> resultsOrderedBy() {
+        return null;
+    }
+
+
+    /** This node doesn't support marking. */
+    public boolean supportsMarking() {
+        return false;
+    }
+
+
+    /** This node doesn't require marking from its child. */
+    public boolean requiresLeftMarking() {
+        return false;
+    }
+
+
+    /** This node doesn't require marking from its child. */
+    public boolean requiresRightMarking() {
+        return false;
+    }
+
+
+    /**
+     * The exchange node produces the same schema and statistics as its
+     * subplan.  The subplan's CPU cost is divided among the partitions.
+     */
+    public void prepare() {
+        leftChild.prepare();
+
+        schema = leftChild.getSchema();
+        stats = leftChild.getStats();
+
+        cost = new PlanCost(leftChild.getCost());
+        cost.cpuCost /= numPartitions;
+    }
+
+
+    @Override
+    public void initialize() {
+        super.initialize();
+
+        stopWorkers();
+
+        numPartitionsDone = 0;
+        failure = null;
+        currentBatch = null;
+        currentRow = 0;
+        done = false;
+    }
+
+
+    @Override
+    public Tuple getNextTuple() throws IllegalStateException, IOException {
+        // The workers' batches are compacted, so all of their rows are
+        // selected.
+        while (currentBatch == null ||
+               currentRow >= currentBatch.getNumSelected()) {
+            currentBatch = getNextBatch();
+            currentRow = 0;
+            if (currentBatch == null)
+                return null;
+        }
+
+        Tuple tup = currentBatch.getTuple(currentRow);
+        currentRow++;
+        return tup;
+    }
+
+
+    /**
+     * Returns the next batch produced by any of the workers, starting the
+     * workers if they haven't been started yet.  The batches are copies, so
+     * they remain valid after the next call.
+     */
+    @Override
+    public TupleBatch getNextBatch() throws IllegalStateException, IOException {
+        if (done)
+            return null;
+
+        if (partitionPlans == null)
+            startWorkers(null);
+
+        while (numPartitionsDone < partitionPlans.length) {
+            TupleBatch batch = takeBatch();
+            if (batch == END_OF_PARTITION)
+                numPartitionsDone++;
+            else
+                return batch;
+        }
+
+        done = true;
+        return null;
+    }
+
+
+    /**
+     * Evaluates the subplan in partitions, handing each partition's batches
+     * to a consumer on the worker thread that produces them, instead of
+     * gathering them.  This returns once all of the partitions have been
+     * consumed.  The number of partitions is at most the number of
+     * consumers; any consumers beyond the number of partitions aren't used.
+     *
+     * @param consumers the consumer of each partition's batches
+     *
+     * @throws IOException if the subplan cannot be evaluated, or a consumer
+     *         fails
+     * @throws IllegalStateException if the node's results are being read
+     */
+    public void consumePartitions(PartitionConsumer[] consumers)
+        throws IOException {
+
+        if (partitionPlans != null) {
+            throw new IllegalStateException(
+                "The exchange node's results are already being read");
+        }
+
+        if (consumers.length == 0)
+            throw new IllegalArgumentException("No consumers were given");
+
+        startWorkers(consumers);
+        try {
+            // Only the workers' end-of-partition markers are queued.
+            while (numPartitionsDone < partitionPlans.length) {
+                takeBatch();
+                numPartitionsDone++;
+            }
+        }
+        finally {
+            stopWorkers();
+        }
+    }
+
+
+    /**
+     * Takes the next batch from the queue, and reports the failure of any
+     * worker.
+     */
+    private TupleBatch takeBatch() throws IOException {
+        TupleBatch batch;
+        try {
+            batch = queue.take();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stopWorkers();
+            throw new IOException(
+                "Interrupted while waiting for parallel workers", e);
+        }
+
+        if (failure != null) {
+            stopWorkers();
+            reportFailure();
+        }
+
+        return batch;
+    }
+
+
+    /**
+     * Splits the data pages of the heap file into ranges, and starts a
+     * worker for a copy of the subplan over each range.
+     *
+     * @param consumers the consumer of each partition's batches, or
+     *        {@code null} if the batches are gathered into the queue
+     */
+    private void startWorkers(PartitionConsumer[] consumers)
+        throws IOException {
+        HeapTupleFile tupleFile =
+            (HeapTupleFile) getPartitionedScan(leftChild).getTupleFile();
+
+        // Page 0 is the header page.
+        int numDataPages = Math.max(1,
+            tupleFile.getDBFile().getNumPages() - 1);
+        int n = Math.min(numPartitions, numDataPages);
+        if (consumers != null)
+            n = Math.min(n, consumers.length);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format(
+                "Evaluating %d data pages in %d partitions", numDataPages, n));
+        }
+
+        partitionPlans = new PlanNode[n];
+        for (int i = 0; i < n; i++) {
+            int startPageNo = 1 + (int) ((long) i * numDataPages / n);
+            int endPageNo = 1 + (int) ((long) (i + 1) * numDataPages / n);
+
+            // The last partition also picks up any pages added to the file
+            // after the ranges were computed.
+            if (i == n - 1)
+                endPageNo = Integer.MAX_VALUE;
+
+            PlanNode plan = leftChild.duplicate();
+            getPartitionedScan(plan).setPageRange(startPageNo, endPageNo);
+            partitionPlans[i] = plan;
+        }
+
+        queue = new ArrayBlockingQueue<>(n * BATCHES_PER_PARTITION);
+        numPartitionsDone = 0;
+        cancelled = false;
+
+        SessionState session = SessionState.get();
+        ForkJoinPool pool = getWorkerPool();
+        workers = new Future<?>[n];
+        for (int i = 0; i < n; i++) {
+            PartitionConsumer consumer =
+                (consumers != null) ? consumers[i] : null;
+            workers[i] = pool.submit(
+                new PartitionWorker(partitionPlans[i], session, consumer));
+        }
+    }
+
+
+    /**
+     * Adds a batch to the queue, waiting for room if necessary.
+     *
+     * @param batch the batch to add
+     *
+     * @return true if the batch was added, or false if the workers were
+     *         cancelled first
+     */
+    private boolean enqueue(TupleBatch batch) {
+        boolean interrupted = false;
+        try {
+            while (!cancelled) {
+                try {
+                    if (queue.offer(batch, OFFER_TIMEOUT_MS,
+                                    TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+                catch (InterruptedException e) {
+                    // The consumer relies on every worker reporting that it
+                    // is done, so keep trying.
+                    interrupted = true;
+                }
+            }
+
+            return false;
+        }
+        finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /** Records an exception thrown by a worker, if it is the first one. */
+    private synchronized void recordFailure(Throwable t) {
+        if (failure == null)
+            failure = t;
+        else
+            logger.warn("Parallel worker also failed", t);
+    }
+
+
+    /** Rethrows the exception that a worker failed with. */
+    private void reportFailure() throws IOException {
+        Throwable t = failure;
+        if (t instanceof IOException)
+            throw (IOException) t;
+
+        if (t instanceof RuntimeException)
+            throw (RuntimeException) t;
+
+        if (t instanceof Error)
+            throw (Error) t;
+
+        throw new IOException("Parallel worker failed", t);
+    }
+
+
+    /**
+     * Stops any workers that are still running, and waits for them to clean
+     * up their copies of the subplan.  The queue is drained while waiting,
+     * so that no worker remains blocked on it.
+     */
+    private void stopWorkers() {
+        if (workers == null)
+            return;
+
+        cancelled = true;
+
+        boolean interrupted = false;
+        for (Future<?> worker : workers) {
+            while (true) {
+                queue.clear();
+                try {
+                    worker.get(OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    break;
+                }
+                catch (TimeoutException e) {
+                    // Keep draining the queue until the worker is done.
+                }
+                catch (ExecutionException e) {
+                    // Workers record their own failures.
+                    break;
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        partitionPlans = null;
+        workers = null;
+        queue = null;
+    }
+
+
+    /**
+     * The exchange node doesn't support marking.
+     *
+     * @throws UnsupportedOperationException always.
+     */
+    public void markCurrentPosition() {
+        throw new UnsupportedOperationException(
+            "Exchange node doesn't support marking");
+    }
+
+
+    /**
+     * The exchange node doesn't support marking.
+     *
+     * @throws UnsupportedOperationException always.
+     */
+    public void resetToLastMark() {
+        throw new UnsupportedOperationException(
+            "Exchange node doesn't support marking");
+    }
+
+
+    /** Stops the workers if they are still running. */
+    public void cleanUp() {
+        stopWorkers();
+        currentBatch = null;
+    }
+
+
+    @Override
+    public String toString() {
+        return "Exchange[partitions:  " + numPartitions + "]";
+    }
+
+
+    /**
+     * Checks if the argument is an exchange node with the same number of
+     * partitions and the same subplan.
+     *
+     * @param obj the object to which we are comparing
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof ExchangeNode) {
+            ExchangeNode other = (ExchangeNode) obj;
+            return numPartitions == other.numPartitions &&
+                   leftChild.equals(other.leftChild);
+        }
+
+        return false;
+    }
+
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 31 * hash + numPartitions;
+        hash = 31 * hash + leftChild.hashCode();
+        return hash;
+    }
+
+
+    /**
+     * Creates a copy of this exchange node and its subtree.  The copy
+     * starts its own workers when it is evaluated.
+     */
+    @Override
+    protected PlanNode clone() throws CloneNotSupportedException {
+        ExchangeNode node = (ExchangeNode) super.clone();
+
+        node.partitionPlans = null;
+        node.workers = null;
+        node.queue = null;
+        node.numPartitionsDone = 0;
+        node.cancelled = false;
+        node.failure = null;
+        node.currentBatch = null;
+        node.currentRow = 0;
+        node.done = false;
+
+        return node;
+    }
+}
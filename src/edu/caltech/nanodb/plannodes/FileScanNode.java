@@ -16,11 +16,18 @@ import edu.caltech.nanodb.queryeval.TableStats;
 import edu.caltech.nanodb.relations.TableInfo;
 import edu.caltech.nanodb.relations.Tuple;
 import edu.caltech.nanodb.storage.FilePointer;
+import edu.caltech.nanodb.storage.PageTuple;
+import edu.caltech.nanodb.storage.PagePredicate;
+import edu.caltech.nanodb.storage.SequentialTupleFile;
 import edu.caltech.nanodb.storage.TupleFile;
 import edu.caltech.nanodb.storage.InvalidFilePointerException;
+import edu.caltech.nanodb.storage.heapfile.HeapFileCursor;
+import edu.caltech.nanodb.storage.heapfile.HeapFilePageTuple;
+import edu.caltech.nanodb.storage.heapfile.HeapTupleFile;
 
 import edu.caltech.nanodb.expressions.Expression;
 import edu.caltech.nanodb.expressions.OrderByExpression;
+import edu.caltech.nanodb.expressions.PredicateUtils;
 
 
 /**
@@ -36,6 +43,21 @@ import edu.caltech.nanodb.expressions.OrderByExpression;
  * ability to look up tuples based on various values, the {@link IndexScanNode}
  * should be used instead.
  * </p>
+ * <p>
+ * When a heap file is scanned, the conjuncts of the predicate that compare a
+ * column to a literal are evaluated directly against the file's data pages
+ * with a {@link PagePredicate}, so that only the tuples satisfying them are
+ * constructed.  The rest of the predicate is evaluated against those tuples.
+ * Heap files are read through a {@link HeapFileCursor}, so the node returns
+ * the same tuple object for every tuple of the scan; like any plan node's
+ * tuples, it is only valid until the next tuple is requested.
+ * </p>
+ * <p>
+ * The planner may also tell the node which of the file's columns the query
+ * uses, with {@link #setProjectedColumns}.  The other columns of the tuples
+ * the node produces then read as <tt>NULL</tt>, so that they aren't decoded
+ * when the tuples are evaluated or copied by the nodes above.
+ * </p>
  */
 public class FileScanNode extends SelectNode {
 
@@ -71,6 +93,50 @@ public class FileScanNode extends SelectNode {
     private boolean jumpToMarkedTuple;
 
 
+    /**
+     * The first data page to scan, or 0 if the whole file is scanned.  Page
+     * ranges are only supported for heap files, so that a scan can be split
+     * into partitions that are scanned in parallel.
+     */
+    private int startPageNo;
+
+
+    /** The page after the last data page to scan, if a range is set. */
+    private int endPageNo;
+
+
+    /**
+     * True once the predicate has been split into {@link #pagePredicate}
+     * and {@link #tuplePredicate}.  This is done when the predicate is
+     * first used after the node is initialized, since the planner may still
+     * change the predicate before then.
+     */
+    private boolean predicateSplit;
+
+
+    /**
+     * The conjuncts of the predicate that are evaluated directly against the
+     * data pages of a heap file, so that tuples failing them are never
+     * constructed, or {@code null} if there are no such conjuncts.
+     */
+    private PagePredicate pagePredicate;
+
+
+    /** The rest of the predicate, which is evaluated against tuples. */
+    private Expression tuplePredicate;
+
+
+    /**
+     * The columns of the file that are read from the scanned tuples, or
+     * {@code null} if all columns are read.
+     */
+    private boolean[] projectedColumns;
+
+
+    /** The cursor reading a heap file, once the scan has started. */
+    private HeapFileCursor cursor;
+
+
     /**
      * Construct a file scan node that traverses a table file.
      *
@@ -107,6 +173,90 @@ public class FileScanNode extends SelectNode {
     }
 
 
+    /**
+     * Returns the table being scanned, or {@code null} if the node is
+     * scanning an index.
+     *
+     * @return the table being scanned, or {@code null}
+     */
+    public TableInfo getTableInfo() {
+        return tableInfo;
+    }
+
+
+    /**
+     * Returns the tuple file being scanned.
+     *
+     * @return the tuple file being scanned
+     */
+    public TupleFile getTupleFile() {
+        return tupleFile;
+    }
+
+
+    /**
+     * Returns true if this node can scan a range of its file's pages, which
+     * is the case when it scans a heap file.
+     *
+     * @return true if {@link #setPageRange} may be called on this node
+     */
+    public boolean supportsPageRanges() {
+        return tupleFile instanceof HeapTupleFile;
+    }
+
+
+    /**
+     * Restricts the scan to a range of the heap file's data pages.  This
+     * must be called before the node is initialized.
+     *
+     * @param startPageNo the first data page to scan, which must be at
+     *        least 1
+     * @param endPageNo the page after the last data page to scan; pages past
+     *        the end of the file are ignored
+     *
+     * @throws IllegalStateException if the node doesn't scan a heap file
+     */
+    public void setPageRange(int startPageNo, int endPageNo) {
+        if (!supportsPageRanges()) {
+            throw new IllegalStateException(
+                "Page ranges can only be scanned in heap files");
+        }
+
+        if (startPageNo < 1 || endPageNo < startPageNo) {
+            throw new IllegalArgumentException("Invalid page range " +
+                startPageNo + " to " + endPageNo);
+        }
+
+        this.startPageNo = startPageNo;
+        this.endPageNo = endPageNo;
+    }
+
+
+    /**
+     * Restricts the columns that are read from the scanned tuples to the
+     * ones the query uses.  The other columns of the tuples produced by this
+     * node read as <tt>NULL</tt>, so nothing above this node may use them.
+     *
+     * @param projectedColumns an array with a {@code true} element for each
+     *        column of the file that is used, or {@code null} if all columns
+     *        are used
+     */
+    public void setProjectedColumns(boolean[] projectedColumns) {
+        this.projectedColumns = projectedColumns;
+    }
+
+
+    /**
+     * Returns the columns that are read from the scanned tuples, or
+     * {@code null} if all columns are read.
+     *
+     * @return the columns that are read from the scanned tuples
+     */
+    public boolean[] getProjectedColumns() {
+        return projectedColumns;
+    }
+
+
     /**
      * Returns true if the passed-in object is a <tt>FileScanNode</tt> with
      * the same predicate and table.
@@ -159,6 +309,11 @@ public class FileScanNode extends SelectNode {
         // The tuple file doesn't need to be copied since it's immutable.
         node.tupleFile = tupleFile;
 
+        node.predicateSplit = false;
+        node.pagePredicate = null;
+        node.tuplePredicate = null;
+        node.cursor = null;
+
         return node;
     }
 
@@ -183,6 +338,12 @@ public class FileScanNode extends SelectNode {
         if (predicate != null)
             buf.append(", pred:  ").append(predicate.toString());
 
+        if (startPageNo > 0) {
+            buf.append(", pages:  ").append(startPageNo).append('-');
+            if (endPageNo < Integer.MAX_VALUE)
+                buf.append(endPageNo - 1);
+        }
+
         buf.append("]");
 
         return buf.toString();
@@ -190,12 +351,13 @@ public class FileScanNode extends SelectNode {
 
 
     /**
-     * Currently we will always say that the file-scan node produces unsorted
-     * results.  In actuality, a file scan's results will be sorted if the table
-     * file uses a sequential format, but currently we don't have any sequential
-     * file formats.
+     * A file scan's results are sorted if the table file uses a sequential
+     * format, such as a B<sup>+</sup> tree file; otherwise they are unsorted.
      */
     public List<OrderByExpression> resultsOrderedBy() {
+        if (tupleFile instanceof SequentialTupleFile)
+            return ((SequentialTupleFile) tupleFile).getOrderSpec();
+
         return null;
     }
 
@@ -247,11 +409,74 @@ public class FileScanNode extends SelectNode {
         // Reset our marking state.
         markedTuple = null;
         jumpToMarkedTuple = false;
+
+        predicateSplit = false;
+        pagePredicate = null;
+        tuplePredicate = null;
+
+        closeCursor();
+    }
+
+
+    /**
+     * Splits the predicate into the conjuncts that can be evaluated against
+     * the data pages of a heap file, and the rest of the predicate.
+     */
+    private void splitPredicate() {
+        predicateSplit = true;
+        pagePredicate = null;
+        tuplePredicate = predicate;
+
+        if (predicate == null || !(tupleFile instanceof HeapTupleFile))
+            return;
+
+        ArrayList<Expression> conjuncts = new ArrayList<>();
+        PredicateUtils.collectConjuncts(predicate, conjuncts);
+
+        PagePredicate pagePred = new PagePredicate(schema);
+        ArrayList<Expression> otherConjuncts = new ArrayList<>();
+        for (Expression conjunct : conjuncts) {
+            if (!pagePred.addConjunct(conjunct))
+                otherConjuncts.add(conjunct);
+        }
+
+        if (!pagePred.isEmpty()) {
+            pagePredicate = pagePred;
+            tuplePredicate = PredicateUtils.makePredicate(otherConjuncts);
+
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("Evaluating %d conjuncts of " +
+                    "predicate %s against data pages",
+                    pagePred.getNumConjuncts(), predicate));
+            }
+        }
+    }
+
+
+    /**
+     * Returns the part of the predicate that isn't evaluated against the
+     * data pages of the file.
+     */
+    @Override
+    protected Expression getTuplePredicate() {
+        if (!predicateSplit)
+            splitPredicate();
+
+        return tuplePredicate;
     }
 
 
     public void cleanUp() {
-        // Nothing to do!
+        closeCursor();
+    }
+
+
+    /** Releases the page held by the heap file cursor, if there is one. */
+    private void closeCursor() {
+        if (cursor != null) {
+            cursor.close();
+            cursor = null;
+        }
     }
 
 
@@ -274,13 +499,44 @@ public class FileScanNode extends SelectNode {
             }
             jumpToMarkedTuple = false;
 
+            // Continue the scan after the marked tuple.
+            if (cursor != null)
+                cursor.moveTo((HeapFilePageTuple) currentTuple);
+
+            projectCurrentTuple();
             return;
         }
 
-        if (currentTuple == null)   // Get the first tuple.
+        if (!predicateSplit)
+            splitPredicate();
+
+        if (tupleFile instanceof HeapTupleFile) {
+            // Only scan the range of pages we were given, if any, and skip
+            // the tuples that fail the page predicate.
+            if (cursor == null) {
+                HeapTupleFile heapFile = (HeapTupleFile) tupleFile;
+                int end = (startPageNo > 0) ? endPageNo : Integer.MAX_VALUE;
+                cursor = heapFile.openCursor(Math.max(startPageNo, 1), end,
+                                             pagePredicate);
+            }
+            currentTuple = cursor.next();
+        }
+        else if (currentTuple == null)   // Get the first tuple.
             currentTuple = tupleFile.getFirstTuple();
         else                        // Get the next tuple.
             currentTuple = tupleFile.getNextTuple(currentTuple);
+
+        projectCurrentTuple();
+    }
+
+
+    /**
+     * Restricts the columns read from the current tuple to the projected
+     * columns, if a projection was set.
+     */
+    private void projectCurrentTuple() {
+        if (projectedColumns != null && currentTuple instanceof PageTuple)
+            ((PageTuple) currentTuple).setProjectedColumns(projectedColumns);
     }
 
 
@@ -299,5 +555,8 @@ public class FileScanNode extends SelectNode {
 
         logger.debug("Resetting to previously marked position in tuple-stream.");
         jumpToMarkedTuple = true;
+
+        // The scan may have reached the end of the file since the mark.
+        done = false;
     }
 }
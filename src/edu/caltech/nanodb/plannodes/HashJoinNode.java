@@ -0,0 +1,1038 @@
+package edu.caltech.nanodb.plannodes;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.OrderByExpression;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.expressions.TypeConverter;
+import edu.caltech.nanodb.queryeval.ColumnStats;
+import edu.caltech.nanodb.queryeval.PlanCost;
+import edu.caltech.nanodb.queryeval.SelectivityEstimator;
+import edu.caltech.nanodb.relations.JoinType;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.SpillFile;
+
+
+/**
+ * <p>
+ * This plan node implements a hash join operation, which evaluates equijoins
+ * in time linear in the size of its inputs.  The join predicate is split into
+ * <em>join keys</em>, conjuncts of the form <tt>expr1 = expr2</tt> where one
+ * side only refers to the left child and the other side only refers to the
+ * right child, and a <em>residual predicate</em> made up of the remaining
+ * conjuncts.  The right child is the <em>build</em> input; its tuples are
+ * loaded into a hash table keyed on the join-key values.  The left child is
+ * the <em>probe</em> input; each of its tuples is looked up in the hash
+ * table, and the residual predicate is applied to the candidates found.
+ * Tuples with a <tt>NULL</tt> join-key value never match anything.
+ * </p>
+ * <p>
+ * Inner, left-outer, right-outer, semi- and anti-joins are supported.
+ * Semi- and anti-joins only produce the columns of the left child.
+ * </p>
+ * <p>
+ * An anti-join can also be made {@link #setNullAware null-aware}, so that
+ * it evaluates <tt>expr NOT IN (subquery)</tt> with the subquery as the
+ * build input.  If the subquery produces a <tt>NULL</tt> then no probe
+ * tuple is produced, and probe tuples with a <tt>NULL</tt> key are only
+ * produced if the subquery is empty.
+ * </p>
+ * <p>
+ * If the build input doesn't fit in {@link PlanUtils#getWorkMemSize} bytes,
+ * the node becomes a hybrid hash join:  tuples are divided into partitions
+ * by hashing their join keys, and all but the first partition are written
+ * to {@link SpillFile}s.  Probe tuples falling into a spilled partition are
+ * spilled as well, and once the probe input is exhausted each spilled
+ * partition is joined in turn.  If a partition still doesn't fit, it is
+ * partitioned again with a different hash function.
+ * </p>
+ * <p>
+ * The build input is always read a batch at a time.  When this node's own
+ * results are read with {@link #getNextBatch}, the probe input is read a
+ * batch at a time as well, and the joined rows are stored directly in the
+ * result batch.
+ * </p>
+ */
+public class HashJoinNode extends ThetaJoinNode {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(HashJoinNode.class);
+
+
+    /** The largest number of partitions a single pass will spill to. */
+    private static final int MAX_PARTITIONS = 64;
+
+
+    /**
+     * The number of times a partition may be repartitioned.  Beyond this, the
+     * partition's tuples probably share a single join key, and splitting it
+     * further won't help; it is simply joined in memory.
+     */
+    private static final int MAX_PARTITION_DEPTH = 3;
+
+
+    /** An estimate of the memory used by each hash-table entry. */
+    private static final int ENTRY_OVERHEAD = 32;
+
+
+    /** A tuple in the hash table, along with whether it has been joined. */
+    private static class BuildEntry {
+        Tuple tuple;
+
+        boolean matched;
+
+        BuildEntry(Tuple tuple) {
+            this.tuple = tuple;
+        }
+    }
+
+
+    /** The build and probe tuples of a partition that was spilled to disk. */
+    private static class Partition {
+        SpillFile buildFile;
+
+        SpillFile probeFile;
+
+        int depth;
+
+        Partition(SpillFile buildFile, SpillFile probeFile, int depth) {
+            this.buildFile = buildFile;
+            this.probeFile = probeFile;
+            this.depth = depth;
+        }
+    }
+
+
+    /** The hash table holding the build tuples of the current pass. */
+    private HashMap<TupleLiteral, ArrayList<BuildEntry>> hashTable;
+
+
+    /** An estimate of the memory used by the hash table. */
+    private long memoryUsed;
+
+
+    /** The number of partitions in the current pass, or 0 if not spilling. */
+    private int numPartitions;
+
+
+    /**
+     * The build-side spill files of the current pass, indexed by partition.
+     * A {@code null} entry means the partition is in memory.
+     */
+    private SpillFile[] buildFiles;
+
+
+    /** The probe-side spill files of the current pass, indexed by partition. */
+    private SpillFile[] probeFiles;
+
+
+    /** The spilled partition being joined, or {@code null} on the first pass. */
+    private Partition currentPartition;
+
+
+    /** Spilled partitions that still need to be joined. */
+    private LinkedList<Partition> pendingPartitions;
+
+
+    /** The current probe tuple. */
+    private Tuple probeTuple;
+
+
+    /** The build tuples with the same join key as {@link #probeTuple}. */
+    private List<BuildEntry> probeMatches;
+
+
+    /** The index of the next entry in {@link #probeMatches} to consider. */
+    private int matchIndex;
+
+
+    /** True if {@link #probeTuple} has been joined with some build tuple. */
+    private boolean probeMatched;
+
+
+    /** Set to true when all probe tuples of the current pass are consumed. */
+    private boolean probeDone;
+
+
+    /** Used to find unmatched build tuples for right-outer joins. */
+    private Iterator<ArrayList<BuildEntry>> unmatchedLists;
+
+
+    /** The build-tuple list currently being scanned for unmatched tuples. */
+    private Iterator<BuildEntry> unmatchedEntries;
+
+
+    /**
+     * The left and right tuples of the result found by {@link #nextResult}.
+     * For semi- and anti-joins the result is just the left tuple, and the
+     * right tuple is {@code null}.
+     */
+    private Tuple resultLeft;
+
+
+    /** The right tuple of the result found by {@link #nextResult}. */
+    private Tuple resultRight;
+
+
+    /** Set to true when we have exhausted all tuples from our subplans. */
+    private boolean done;
+
+
+    /** True if this is a null-aware anti-join. */
+    private boolean nullAware;
+
+
+    /** True if the build input produced no tuples at all. */
+    private boolean buildEmpty;
+
+
+    /** True if the build input produced a tuple with a <tt>NULL</tt> key. */
+    private boolean buildHasNullKey;
+
+
+    public HashJoinNode(PlanNode leftChild, PlanNode rightChild,
+                        JoinType joinType, Expression predicate) {
+
+        super(leftChild, rightChild, joinType, predicate);
+    }
+
+
+    /**
+     * Specifies whether this anti-join is null-aware, evaluating
+     * <tt>NOT IN</tt> semantics instead of <tt>NOT EXISTS</tt> semantics.
+     * Null-aware anti-joins must have a single join key and no residual
+     * predicate.
+     *
+     * @param nullAware true if the anti-join should be null-aware
+     *
+     * @throws IllegalStateException if this node isn't an anti-join
+     */
+    public void setNullAware(boolean nullAware) {
+        if (nullAware && joinType != JoinType.ANTIJOIN) {
+            throw new IllegalStateException(
+                "Only anti-joins can be null-aware");
+        }
+        this.nullAware = nullAware;
+    }
+
+
+    /** Returns true if this is a null-aware anti-join. */
+    public boolean isNullAware() {
+        return nullAware;
+    }
+
+
+    /**
+     * Checks if the argument is a plan node tree with the same structure, but
+     * not necessarily the same references.
+     *
+     * @param obj the object to which we are comparing
+     */
+    @Override
+    public boolean equals(Object obj) {
+
+        if (obj instanceof HashJoinNode) {
+            HashJoinNode other = (HashJoinNode) obj;
+
+            return joinType == other.joinType &&
+                nullAware == other.nullAware &&
+                schemaSwapped == other.schemaSwapped &&
+                (predicate != null ? predicate.equals(other.predicate) :
+                    other.predicate == null) &&
+                leftChild.equals(other.leftChild) &&
+                rightChild.equals(other.rightChild);
+        }
+
+        return false;
+    }
+
+
+    /** Computes the hash-code of the hash-join plan node. */
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 31 * hash + joinType.hashCode();
+        hash = 31 * hash + (nullAware ? 1 : 0);
+        hash = 31 * hash + (predicate != null ? predicate.hashCode() : 0);
+        hash = 31 * hash + leftChild.hashCode();
+        hash = 31 * hash + rightChild.hashCode();
+        return hash;
+    }
+
+
+    /**
+     * Returns a string representing this hash join's vital information.
+     *
+     * @return a string representing this plan-node.
+     */
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+
+        buf.append("HashJoin[");
+
+        if (predicate != null)
+            buf.append("pred:  ").append(predicate);
+        else
+            buf.append("no pred");
+
+        if (joinType != JoinType.INNER)
+            buf.append(" (").append(joinType).append(')');
+
+        if (nullAware)
+            buf.append(" (null-aware)");
+
+        if (schemaSwapped)
+            buf.append(" (schema swapped)");
+
+        buf.append(']');
+
+        return buf.toString();
+    }
+
+
+    /**
+     * Creates a copy of this plan node and its subtrees.
+     */
+    @Override
+    protected PlanNode clone() throws CloneNotSupportedException {
+        HashJoinNode node = (HashJoinNode) super.clone();
+
+        // Clone the predicate.
+        if (predicate != null)
+            node.predicate = predicate.duplicate();
+        else
+            node.predicate = null;
+
+        // The join keys are derived from the predicate by prepare().
+        node.leftKeys = null;
+        node.rightKeys = null;
+        node.residualPredicate = null;
+
+        return node;
+    }
+
+
+    /**
+     * The order of the probe input is preserved by the first pass, but not by
+     * spilled partitions, so we just report that the results are not ordered.
+     */
+    @Override
+    public List<OrderByExpression> resultsOrderedBy() {
+        return null;
+    }
+
+
+    /** Hash joins don't support marking. */
+    public boolean supportsMarking() {
+        return false;
+    }
+
+
+    /** True if the node requires that its left child supports marking. */
+    public boolean requiresLeftMarking() {
+        return false;
+    }
+
+
+    /** True if the node requires that its right child supports marking. */
+    public boolean requiresRightMarking() {
+        return false;
+    }
+
+
+    @Override
+    public void prepare() {
+        // Need to prepare the left and right child-nodes before we can do
+        // our own work.
+        leftChild.prepare();
+        rightChild.prepare();
+
+        // Use the parent class' helper-function to prepare the schema.
+        prepareSchemaStats();
+
+        findJoinKeys();
+
+        PlanCost leftCost = leftChild.getCost();
+        PlanCost rightCost = rightChild.getCost();
+
+        float selectivity =
+            SelectivityEstimator.estimateSelectivity(predicate, schema, stats);
+        float tupleProd = leftCost.numTuples * rightCost.numTuples;
+        float tupleSize = leftCost.tupleSize + rightCost.tupleSize;
+
+        float numTuples;
+        switch (joinType) {
+            case CROSS:
+            case INNER:
+                numTuples = selectivity * tupleProd;
+                break;
+            case LEFT_OUTER:
+                numTuples = selectivity * tupleProd +
+                    (1 - selectivity) * leftCost.numTuples;
+                break;
+            case RIGHT_OUTER:
+                numTuples = selectivity * tupleProd +
+                    (1 - selectivity) * rightCost.numTuples;
+                break;
+            case SEMIJOIN:
+                numTuples = selectivity * leftCost.numTuples;
+                break;
+            case ANTIJOIN:
+                numTuples = (1 - selectivity) * leftCost.numTuples;
+                break;
+            case FULL_OUTER:
+            default:
+                throw new IllegalArgumentException(
+                    "This type of join not supported by node.");
+        }
+
+        if (joinType == JoinType.SEMIJOIN || joinType == JoinType.ANTIJOIN) {
+            // Only the left tuples are produced.
+            schema = leftSchema;
+            stats = new ArrayList<ColumnStats>(leftStats);
+            tupleSize = leftCost.tupleSize;
+        }
+
+        // Each input tuple is hashed once, each build tuple is also inserted
+        // into the hash table, and each pair of tuples with matching keys is
+        // checked against the residual predicate.
+        float cpuCost = leftCost.cpuCost + rightCost.cpuCost;
+        cpuCost += leftCost.numTuples + 2 * rightCost.numTuples;
+        cpuCost += selectivity * tupleProd;
+
+        long numBlockIOs = leftCost.numBlockIOs + rightCost.numBlockIOs;
+
+        // If the build input doesn't fit in memory, the fraction of both
+        // inputs that is spilled must be written out and read back in.
+        float buildBytes = rightCost.numTuples * rightCost.tupleSize;
+        long workMem = PlanUtils.getWorkMemSize();
+        if (buildBytes > workMem) {
+            float spilledFraction = 1 - workMem / buildBytes;
+            float spilledBytes = spilledFraction *
+                (buildBytes + leftCost.numTuples * leftCost.tupleSize);
+
+            numBlockIOs += 2 * (long) Math.ceil(spilledBytes /
+                DBFile.DEFAULT_PAGESIZE);
+            cpuCost += 2 * spilledFraction *
+                (leftCost.numTuples + rightCost.numTuples);
+        }
+
+        cost = new PlanCost(numTuples, tupleSize, cpuCost, numBlockIOs);
+    }
+
+
+    public void initialize() {
+        super.initialize();
+
+        deleteSpillFiles();
+
+        hashTable = null;
+        memoryUsed = 0;
+        numPartitions = 0;
+        buildFiles = null;
+        probeFiles = null;
+        currentPartition = null;
+        pendingPartitions = new LinkedList<Partition>();
+
+        probeTuple = null;
+        probeMatches = null;
+        probeDone = false;
+        unmatchedLists = null;
+        unmatchedEntries = null;
+        resultLeft = null;
+        resultRight = null;
+
+        done = false;
+        buildEmpty = true;
+        buildHasNullKey = false;
+    }
+
+
+    /**
+     * Returns the next joined tuple that satisfies the join condition.
+     *
+     * @return the next joined tuple that satisfies the join condition.
+     *
+     * @throws IOException if a db file failed to open at some point
+     */
+    public Tuple getNextTuple() throws IOException {
+        if (!nextResult())
+            return null;
+
+        if (resultRight == null)
+            return resultLeft;
+
+        return joinTuples(resultLeft, resultRight);
+    }
+
+
+    /**
+     * Reads the probe input a batch at a time, and stores each result
+     * directly in the batch rather than building a joined tuple for it.
+     */
+    @Override
+    public TupleBatch getNextBatch() throws IOException {
+        readLeftBatches = true;
+
+        TupleBatch batch = clearResultBatch();
+        while (!batch.isFull() && nextResult()) {
+            if (resultRight == null)
+                batch.addTuple(resultLeft);
+            else
+                addJoinedRow(batch, resultLeft, resultRight);
+        }
+
+        return (batch.getNumSelected() > 0) ? batch : null;
+    }
+
+
+    /**
+     * Finds the next result of the join, and stores its tuples in
+     * {@link #resultLeft} and {@link #resultRight}.
+     *
+     * @return true if a result was found, or false if the join is done
+     *
+     * @throws IOException if a db file failed to open at some point
+     */
+    private boolean nextResult() throws IOException {
+        if (done)
+            return false;
+
+        if (hashTable == null) {
+            startPass(null);
+
+            // NOT IN is never true if the subquery produced a NULL.
+            if (nullAware && buildHasNullKey) {
+                finishPass();
+                done = true;
+                return false;
+            }
+        }
+
+        while (true) {
+            if (!probeDone) {
+                if (probe())
+                    return true;
+
+                probeDone = true;
+            }
+
+            if (joinType == JoinType.RIGHT_OUTER && nextUnmatchedBuildTuple())
+                return true;
+
+            finishPass();
+
+            if (pendingPartitions.isEmpty()) {
+                done = true;
+                return false;
+            }
+
+            startPass(pendingPartitions.removeFirst());
+        }
+    }
+
+
+    /**
+     * Loads the build tuples of a pass into the hash table, spilling
+     * partitions to disk as needed, and then prepares to read the probe
+     * tuples of the pass.
+     *
+     * @param partition the spilled partition to join, or {@code null} to
+     *        join the child plans
+     *
+     * @throws IOException if an IO error occurs
+     */
+    private void startPass(Partition partition) throws IOException {
+        currentPartition = partition;
+        hashTable = new HashMap<TupleLiteral, ArrayList<BuildEntry>>();
+        memoryUsed = 0;
+        numPartitions = 0;
+        buildFiles = null;
+        probeFiles = null;
+
+        if (partition == null) {
+            // Read the build plan's results a batch at a time.  Each build
+            // tuple is copied out of the batch, since the batch is reused.
+            while (true) {
+                TupleBatch batch = rightChild.getNextBatch();
+                if (batch == null)
+                    break;
+
+                int[] selection = batch.getSelection();
+                for (int i = 0; i < batch.getNumSelected(); i++)
+                    addBuildTuple(batch.getTuple(selection[i]));
+            }
+        }
+        else {
+            partition.buildFile.startReading();
+            while (true) {
+                Tuple tup = partition.buildFile.getNextTuple();
+                if (tup == null)
+                    break;
+
+                if (tup.isDiskBacked()) {
+                    Tuple copy = new TupleLiteral(tup);
+                    if (tup.isPinned())
+                        tup.unpin();
+
+                    tup = copy;
+                }
+
+                addBuildTuple(tup);
+            }
+        }
+
+        if (partition != null) {
+            partition.buildFile.delete();
+            partition.buildFile = null;
+            partition.probeFile.startReading();
+        }
+
+        if (numPartitions > 0 && logger.isDebugEnabled()) {
+            logger.debug(String.format("Hash join spilled build tuples " +
+                "into %d partitions at depth %d", numPartitions, getDepth()));
+        }
+
+        probeTuple = null;
+        probeDone = false;
+        unmatchedLists = null;
+        unmatchedEntries = null;
+    }
+
+
+    /** Returns the partitioning depth of the current pass. */
+    private int getDepth() {
+        return (currentPartition != null) ? currentPartition.depth : 0;
+    }
+
+
+    /**
+     * Adds a build tuple to the hash table or to its spilled partition.
+     * Build tuples with <tt>NULL</tt> keys are dropped unless they must be
+     * reported as unmatched.
+     */
+    private void addBuildTuple(Tuple tup) throws IOException {
+        TupleLiteral key = computeKey(rightKeys, rightSchema, tup);
+        buildEmpty = false;
+
+        // Build tuples with NULL keys can't join with anything, so we only
+        // need them to report as unmatched.
+        if (hasNullValue(key) && joinType != JoinType.RIGHT_OUTER) {
+            if (nullAware)
+                buildHasNullKey = true;
+
+            return;
+        }
+
+        addBuildTuple(key, tup);
+    }
+
+
+    private void addBuildTuple(TupleLiteral key, Tuple tup) throws IOException {
+        int partition = getPartition(key);
+        if (buildFiles != null && buildFiles[partition] != null) {
+            buildFiles[partition].addTuple(tup);
+            return;
+        }
+
+        ArrayList<BuildEntry> entries = hashTable.get(key);
+        if (entries == null) {
+            entries = new ArrayList<BuildEntry>(1);
+            hashTable.put(key, entries);
+            memoryUsed += PlanUtils.estimateMemorySize(key);
+        }
+        entries.add(new BuildEntry(tup));
+        memoryUsed += PlanUtils.estimateMemorySize(tup) + ENTRY_OVERHEAD;
+
+        if (memoryUsed > PlanUtils.getWorkMemSize())
+            spillPartitions();
+    }
+
+
+    /**
+     * Called when the hash table exceeds the memory budget.  The first time
+     * this happens in a pass, the build tuples are divided into partitions,
+     * and every partition except the first is spilled to disk.  If the first
+     * partition also outgrows the budget, it is spilled too.
+     */
+    private void spillPartitions() throws IOException {
+        int depth = getDepth();
+        if (depth >= MAX_PARTITION_DEPTH) {
+            // Repartitioning hasn't helped, so just use more memory.
+            return;
+        }
+
+        if (numPartitions == 0) {
+            // Size the partitions so that each is likely to fit in memory,
+            // based on the average size of the build tuples seen so far.
+            float estimatedTuples;
+            if (currentPartition == null)
+                estimatedTuples = rightChild.getCost().numTuples;
+            else
+                estimatedTuples = currentPartition.buildFile.getNumTuples();
+
+            float avgSize = (float) memoryUsed / Math.max(1, hashTableSize());
+            float estimatedBytes =
+                Math.max(memoryUsed, estimatedTuples * avgSize);
+
+            numPartitions = (int) Math.ceil(
+                estimatedBytes / PlanUtils.getWorkMemSize()) + 1;
+            numPartitions = Math.max(2, Math.min(MAX_PARTITIONS, numPartitions));
+
+            buildFiles = new SpillFile[numPartitions];
+            probeFiles = new SpillFile[numPartitions];
+
+            for (int i = 1; i < numPartitions; i++)
+                spillPartition(i);
+        }
+        else if (buildFiles[0] == null) {
+            spillPartition(0);
+        }
+    }
+
+
+    /** Returns the number of build tuples in the hash table. */
+    private int hashTableSize() {
+        int size = 0;
+        for (ArrayList<BuildEntry> entries : hashTable.values())
+            size += entries.size();
+
+        return size;
+    }
+
+
+    /** Moves all build tuples of the specified partition to disk. */
+    private void spillPartition(int partition) throws IOException {
+        buildFiles[partition] = new SpillFile("hashjoin");
+        probeFiles[partition] = new SpillFile("hashjoin");
+
+        Iterator<Map.Entry<TupleLiteral, ArrayList<BuildEntry>>> iter =
+            hashTable.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<TupleLiteral, ArrayList<BuildEntry>> mapEntry =
+                iter.next();
+
+            if (getPartition(mapEntry.getKey()) != partition)
+                continue;
+
+            memoryUsed -= PlanUtils.estimateMemorySize(mapEntry.getKey());
+            for (BuildEntry entry : mapEntry.getValue()) {
+                buildFiles[partition].addTuple(entry.tuple);
+                memoryUsed -=
+                    PlanUtils.estimateMemorySize(entry.tuple) + ENTRY_OVERHEAD;
+            }
+            iter.remove();
+        }
+    }
+
+
+    /**
+     * Returns the partition that a join key falls into in the current pass.
+     * Each partitioning depth uses a different hash function, so that a
+     * partition that is too large is split up when it is partitioned again.
+     */
+    private int getPartition(TupleLiteral key) {
+        if (numPartitions == 0)
+            return 0;
+
+        int h = key.hashCode() + 0x9e3779b9 * (getDepth() + 1);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+
+        return (h & Integer.MAX_VALUE) % numPartitions;
+    }
+
+
+    /**
+     * Finds the next result produced by the probe tuples of the current
+     * pass, returning false once they have all been consumed.
+     */
+    private boolean probe() throws IOException {
+        while (true) {
+            if (probeTuple == null) {
+                probeTuple = nextProbeTuple();
+                if (probeTuple == null)
+                    return false;
+            }
+
+            if (joinType == JoinType.SEMIJOIN ||
+                joinType == JoinType.ANTIJOIN) {
+                boolean found = false;
+                for (BuildEntry entry : probeMatches) {
+                    if (canJoinTuples(probeTuple, entry.tuple)) {
+                        found = true;
+                        break;
+                    }
+                }
+
+                Tuple tup = probeTuple;
+                probeTuple = null;
+
+                if (found == (joinType == JoinType.SEMIJOIN)) {
+                    setResult(tup, null);
+                    return true;
+                }
+
+                continue;
+            }
+
+            while (matchIndex < probeMatches.size()) {
+                BuildEntry entry = probeMatches.get(matchIndex);
+                matchIndex++;
+
+                if (canJoinTuples(probeTuple, entry.tuple)) {
+                    entry.matched = true;
+                    probeMatched = true;
+                    setResult(probeTuple, entry.tuple);
+                    return true;
+                }
+            }
+
+            Tuple tup = probeTuple;
+            probeTuple = null;
+
+            if (joinType == JoinType.LEFT_OUTER && !probeMatched) {
+                setResult(tup, new TupleLiteral(rightSchema.numColumns()));
+                return true;
+            }
+        }
+    }
+
+
+    private void setResult(Tuple left, Tuple right) {
+        resultLeft = left;
+        resultRight = right;
+    }
+
+
+    /**
+     * Returns the next probe tuple that falls into an in-memory partition,
+     * setting {@link #probeMatches} to the build tuples with the same key.
+     * Probe tuples falling into spilled partitions are written to disk.
+     */
+    private Tuple nextProbeTuple() throws IOException {
+        while (true) {
+            Tuple tup;
+            if (currentPartition == null)
+                tup = nextLeftTuple();
+            else
+                tup = currentPartition.probeFile.getNextTuple();
+
+            if (tup == null)
+                return null;
+
+            probeMatched = false;
+            matchIndex = 0;
+
+            TupleLiteral key = computeKey(leftKeys, leftSchema, tup);
+            if (hasNullValue(key)) {
+                // NULL NOT IN (subquery) is only true if the subquery is
+                // empty.
+                if (nullAware && !buildEmpty)
+                    continue;
+
+                probeMatches = Collections.emptyList();
+                return tup;
+            }
+
+            int partition = getPartition(key);
+            if (probeFiles != null && probeFiles[partition] != null) {
+                probeFiles[partition].addTuple(tup);
+                continue;
+            }
+
+            probeMatches = hashTable.get(key);
+            if (probeMatches == null)
+                probeMatches = Collections.emptyList();
+
+            return tup;
+        }
+    }
+
+
+    /**
+     * Finds the next build tuple of the current pass that wasn't joined with
+     * any probe tuple, padded with <tt>NULL</tt>s on the left, returning
+     * false once there are no more.
+     */
+    private boolean nextUnmatchedBuildTuple() {
+        if (unmatchedLists == null)
+            unmatchedLists = hashTable.values().iterator();
+
+        while (true) {
+            if (unmatchedEntries != null) {
+                while (unmatchedEntries.hasNext()) {
+                    BuildEntry entry = unmatchedEntries.next();
+                    if (!entry.matched) {
+                        setResult(new TupleLiteral(leftSchema.numColumns()),
+                            entry.tuple);
+                        return true;
+                    }
+                }
+            }
+
+            if (!unmatchedLists.hasNext())
+                return false;
+
+            unmatchedEntries = unmatchedLists.next().iterator();
+        }
+    }
+
+
+    /**
+     * Queues up the partitions spilled during the current pass, and releases
+     * the resources of the current pass.
+     */
+    private void finishPass() {
+        int depth = getDepth();
+        if (currentPartition != null) {
+            currentPartition.probeFile.delete();
+            currentPartition = null;
+        }
+
+        if (buildFiles != null) {
+            for (int i = 0; i < numPartitions; i++) {
+                if (buildFiles[i] == null)
+                    continue;
+
+                if (isPartitionNeeded(buildFiles[i], probeFiles[i])) {
+                    pendingPartitions.add(new Partition(buildFiles[i],
+                        probeFiles[i], depth + 1));
+                }
+                else {
+                    buildFiles[i].delete();
+                    probeFiles[i].delete();
+                }
+            }
+
+            buildFiles = null;
+            probeFiles = null;
+        }
+
+        hashTable.clear();
+    }
+
+
+    /**
+     * Returns true if joining a spilled partition can produce any results.
+     */
+    private boolean isPartitionNeeded(SpillFile buildFile,
+                                      SpillFile probeFile) {
+        boolean hasBuild = buildFile.getNumTuples() > 0;
+        boolean hasProbe = probeFile.getNumTuples() > 0;
+
+        if (hasBuild && joinType == JoinType.RIGHT_OUTER)
+            return true;
+
+        if (hasProbe && (joinType == JoinType.LEFT_OUTER ||
+                         joinType == JoinType.ANTIJOIN))
+            return true;
+
+        return hasBuild && hasProbe;
+    }
+
+
+    /**
+     * Evaluates the join-key expressions against a tuple, producing a tuple
+     * of normalized key values that can be hashed and compared.
+     */
+    private TupleLiteral computeKey(List<Expression> keys, Schema tupSchema,
+                                    Tuple tup) {
+        TupleLiteral key = evaluateKey(keys, tupSchema, tup);
+        for (int i = 0; i < key.getColumnCount(); i++)
+            key.setColumnValue(i, TypeConverter.getHashKeyValue(key.getColumnValue(i)));
+
+        return key;
+    }
+
+
+    /**
+     * Combines the left tuple and the right tuple.  Semi- and anti-joins
+     * never call this, since they produce left tuples unchanged.
+     */
+    @Override
+    protected Tuple joinTuples(Tuple left, Tuple right) {
+        TupleLiteral joinedTuple = new TupleLiteral();
+
+        if (!schemaSwapped) {
+            joinedTuple.appendTuple(left);
+            joinedTuple.appendTuple(right);
+        }
+        else {
+            joinedTuple.appendTuple(right);
+            joinedTuple.appendTuple(left);
+        }
+
+        return joinedTuple;
+    }
+
+
+    /** Deletes any spill files left over from the last evaluation. */
+    private void deleteSpillFiles() {
+        if (currentPartition != null) {
+            if (currentPartition.buildFile != null)
+                currentPartition.buildFile.delete();
+
+            currentPartition.probeFile.delete();
+            currentPartition = null;
+        }
+
+        if (buildFiles != null) {
+            for (int i = 0; i < numPartitions; i++) {
+                if (buildFiles[i] != null) {
+                    buildFiles[i].delete();
+                    probeFiles[i].delete();
+                }
+            }
+            buildFiles = null;
+            probeFiles = null;
+        }
+
+        if (pendingPartitions != null) {
+            for (Partition partition : pendingPartitions) {
+                partition.buildFile.delete();
+                partition.probeFile.delete();
+            }
+            pendingPartitions.clear();
+        }
+    }
+
+
+    /** Hash joins don't support marking. */
+    public void markCurrentPosition() {
+        throw new UnsupportedOperationException(
+            "Hash-join plan-node doesn't support marking.");
+    }
+
+
+    /** Hash joins don't support marking. */
+    public void resetToLastMark() {
+        throw new UnsupportedOperationException(
+            "Hash-join plan-node doesn't support marking.");
+    }
+
+
+    public void cleanUp() {
+        deleteSpillFiles();
+        hashTable = null;
+
+        leftChild.cleanUp();
+        rightChild.cleanUp();
+    }
+}
@@ -3,25 +3,86 @@ package edu.caltech.nanodb.plannodes;
 
 import java.io.IOException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
 
 import org.apache.log4j.Logger;
 
+import edu.caltech.nanodb.expressions.ColumnName;
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.CompiledExpression;
 import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.ExpressionCompiler;
+import edu.caltech.nanodb.expressions.ExpressionException;
 import edu.caltech.nanodb.expressions.FunctionCall;
 import edu.caltech.nanodb.expressions.OrderByExpression;
 import edu.caltech.nanodb.expressions.TupleLiteral;
 
+import edu.caltech.nanodb.functions.AggregateFunction;
+import edu.caltech.nanodb.functions.CountStar;
+
 import edu.caltech.nanodb.queryeval.PlanCost;
+import edu.caltech.nanodb.relations.ColumnInfo;
 import edu.caltech.nanodb.relations.Tuple;
 
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.SpillFile;
+
 
 /**
+ * <p>
  * Implements grouping and aggregation by using hashing as a method to
  * identify groups.
+ * </p>
+ * <p>
+ * Each group's aggregate state is held as an array of aggregate functions,
+ * in the order of the node's aggregates.  If the hash table grows beyond
+ * {@link PlanUtils#getWorkMemSize} bytes, the groups already in the table
+ * continue to be computed in memory, but input tuples for any new group are
+ * hashed into partitions that are spilled to {@link SpillFile}s.  Once the
+ * in-memory groups have been produced, each spilled partition is aggregated
+ * in the same way, spilling again if it is still too large.
+ * </p>
+ * <p>
+ * The child's tuples are read a batch at a time.  The groups of a batch's
+ * rows are found first, and then each aggregate is updated for all of the
+ * rows.  When an aggregate's argument is an <tt>INTEGER</tt>,
+ * <tt>BIGINT</tt> or <tt>DOUBLE</tt> column, its values are handed to the
+ * aggregate function straight from the batch's vector of primitives, and
+ * other arguments are {@link ExpressionCompiler compiled}, so that common
+ * aggregates don't allocate any objects for each input row.
+ * </p>
+ * <p>
+ * When the child is an {@link ExchangeNode} and every aggregate
+ * {@link AggregateFunction#supportsMerge supports merging}, the input is
+ * aggregated in two phases:  each partition of the input is aggregated into
+ * a hash table of its own by the worker that evaluates it, and the
+ * partitions' groups are then merged.  If a partition's table becomes full,
+ * the workers spill the input tuples of new groups to shared spill files,
+ * just as a serial pass would.  The merged state of any group whose spill
+ * file isn't empty is then set aside for that file's pass, which adds the
+ * spilled tuples to it; that way each group is still produced once.
+ * </p>
+ *
+ * @design Groups keep their state in cloned {@link AggregateFunction}
+ *         objects rather than in fixed-width accumulators packed into
+ *         arrays, and spill files hold input tuples rather than partial
+ *         states.  Aggregate state isn't always fixed-width:
+ *         <tt>DISTINCT</tt> aggregates keep sets of values,
+ *         <tt>MIN</tt>/<tt>MAX</tt> of strings keep objects, and sums
+ *         change kind as <tt>INTEGER</tt>s are promoted.  Nor can every
+ *         aggregate's state be serialized, since functions only expose
+ *         their results.  The numeric aggregates keep their state in
+ *         primitive fields, so a group of them costs one small object per
+ *         aggregate, which {@link #getGroupSize} charges against the memory
+ *         budget.  Spilling input tuples means a group's state never has to
+ *         be read back from disk and merged.
  */
 public class HashedGroupAggregateNode extends GroupAggregateNode {
 
@@ -29,9 +90,398 @@ public class HashedGroupAggregateNode extends GroupAggregateNode {
     private static Logger logger = Logger.getLogger(HashedGroupAggregateNode.class);
 
 
-    private LinkedHashMap<TupleLiteral, Map<String, FunctionCall>> computedAggregates;
+    /** The largest number of partitions a single pass will spill to. */
+    private static final int MAX_PARTITIONS = 64;
+
+
+    /**
+     * The number of times input tuples may be repartitioned.  Beyond this,
+     * the partition's groups are simply computed in memory.
+     */
+    private static final int MAX_PARTITION_DEPTH = 3;
+
+
+    /** An estimate of the memory used by each group in the hash table. */
+    private static final int GROUP_OVERHEAD = 48;
+
+
+    /** An estimate of the memory used by each aggregate of a group. */
+    private static final int AGGREGATE_OVERHEAD = 32;
+
+
+    /** The input tuples of groups that were spilled to disk. */
+    private static class Partition {
+        SpillFile file;
+
+        int depth;
+
+        /**
+         * The partial state of groups of this partition that were aggregated
+         * before the partition was spilled, or {@code null}.  The
+         * partition's pass starts from this state.
+         */
+        LinkedHashMap<TupleLiteral, AggregateFunction[]> groups;
+
+        Partition(SpillFile file, int depth) {
+            this.file = file;
+            this.depth = depth;
+        }
+    }
+
+
+    /**
+     * A hash table of groups and their aggregate state, along with the
+     * scratch space used to add input rows to it.  Each pass aggregates its
+     * input into a table of its own.  When the child is an
+     * {@link ExchangeNode}, each partition of the input may also be
+     * aggregated into a table of its own by the worker that evaluates it,
+     * and the partitions' tables are then merged.
+     */
+    private class GroupTable implements ExchangeNode.PartitionConsumer {
+        /** The groups, and their aggregate state. */
+        LinkedHashMap<TupleLiteral, AggregateFunction[]> groups =
+            new LinkedHashMap<>();
+
+        /** An estimate of the memory used by the hash table. */
+        long memoryUsed;
+
+        /** The memory that the hash table may use before it is full. */
+        private long memoryLimit;
+
+        /**
+         * True if the table aggregates one partition of the input on a
+         * worker thread.  Such tables share the pass's spill files.
+         */
+        private boolean parallel;
+
+        /**
+         * Set once the table is full, after which the input tuples of new
+         * groups are spilled to the current pass's partitions.
+         */
+        private boolean spilling;
+
+        /**
+         * The compiled argument of each aggregate function, or {@code null}
+         * for <tt>COUNT(*)</tt>, which ignores its argument.
+         */
+        private CompiledExpression[] compiledArgs;
+
+        /**
+         * A tuple that is reused to hold the group values of each input
+         * tuple while its group is looked up in the hash table.
+         */
+        private TupleLiteral groupProbe;
+
+        /**
+         * The groups of the selected rows of the batch being aggregated, or
+         * {@code null} for rows whose groups were spilled.
+         */
+        private AggregateFunction[][] batchGroups;
+
+
+        /**
+         * Creates an empty table, compiling the argument of each aggregate
+         * function against the input schema.  The arguments are compiled for
+         * each table since compiled expressions can't be shared between
+         * threads.
+         */
+        GroupTable(long memoryLimit, boolean parallel) {
+            this.memoryLimit = memoryLimit;
+            this.parallel = parallel;
+
+            compiledArgs = new CompiledExpression[aggregateArgs.length];
+            for (int i = 0; i < aggregateArgs.length; i++) {
+                if (!(aggregateFunctions[i] instanceof CountStar)) {
+                    compiledArgs[i] = ExpressionCompiler.compile(
+                        aggregateArgs[i], inputSchema, environment);
+                }
+            }
+
+            groupProbe = new TupleLiteral(groupColumns.length);
+        }
+
+
+        /**
+         * Aggregates a batch of one partition of the input, on the worker
+         * thread that evaluates the partition.
+         */
+        @Override
+        public boolean consumeBatch(TupleBatch batch) throws IOException {
+            addInputBatch(batch);
+            return true;
+        }
+
+
+        /**
+         * Adds the selected rows of a batch to the aggregates of their groups,
+         * spilling the rows of any groups that aren't in memory.  The groups of
+         * all of the rows are found first, and then each aggregate is updated
+         * for all of the rows, with a loop over the primitive values of its
+         * argument column if it has one.
+         */
+        void addInputBatch(TupleBatch batch) throws IOException {
+            int[] selection = batch.getSelection();
+            int numSelected = batch.getNumSelected();
+            TupleBatch.RowView row = batch.getRowView(0);
+
+            if (batchGroups == null || batchGroups.length < numSelected)
+                batchGroups = new AggregateFunction[batch.getCapacity()][];
+
+            for (int i = 0; i < numSelected; i++) {
+                row.setRow(selection[i]);
+                batchGroups[i] = findGroup(row);
+            }
+
+            for (int iAgg = 0; iAgg < aggregateFunctions.length; iAgg++) {
+                int colIndex = aggregateColumns[iAgg];
+                int kind = TupleBatch.OBJECT_COLUMN;
+                boolean[] nulls = null;
+                if (colIndex >= 0) {
+                    kind = batch.getColumnKind(colIndex);
+                    nulls = batch.getNullFlags(colIndex);
+                }
+
+                switch (kind) {
+                case TupleBatch.INT_COLUMN:
+                    int[] intValues = batch.getIntColumn(colIndex);
+                    for (int i = 0; i < numSelected; i++) {
+                        if (batchGroups[i] == null)
+                            continue;
+
+                        int r = selection[i];
+                        if (nulls[r])
+                            batchGroups[i][iAgg].addValue(null);
+                        else
+                            batchGroups[i][iAgg].addIntValue(intValues[r]);
+                    }
+                    break;
+
+                case TupleBatch.LONG_COLUMN:
+                    long[] longValues = batch.getLongColumn(colIndex);
+                    for (int i = 0; i < numSelected; i++) {
+                        if (batchGroups[i] == null)
+                            continue;
+
+                        int r = selection[i];
+                        if (nulls[r])
+                            batchGroups[i][iAgg].addValue(null);
+                        else
+                            batchGroups[i][iAgg].addLongValue(longValues[r]);
+                    }
+                    break;
+
+                case TupleBatch.DOUBLE_COLUMN:
+                    double[] doubleValues = batch.getDoubleColumn(colIndex);
+                    for (int i = 0; i < numSelected; i++) {
+                        if (batchGroups[i] == null)
+                            continue;
+
+                        int r = selection[i];
+                        if (nulls[r])
+                            batchGroups[i][iAgg].addValue(null);
+                        else
+                            batchGroups[i][iAgg].addDoubleValue(doubleValues[r]);
+                    }
+                    break;
+
+                default:
+                    for (int i = 0; i < numSelected; i++) {
+                        if (batchGroups[i] == null)
+                            continue;
+
+                        row.setRow(selection[i]);
+                        addArgValue(batchGroups[i][iAgg], iAgg, row);
+                    }
+                }
+            }
+
+            // Don't hold on to the groups longer than necessary.
+            Arrays.fill(batchGroups, 0, numSelected, null);
+        }
+
+
+        /**
+         * Adds an input tuple to the aggregates of its group, or spills it to
+         * its partition if the group isn't in memory and the hash table is full.
+         */
+        void addInputTuple(Tuple inputTuple) throws IOException {
+            AggregateFunction[] groupAggregates = findGroup(inputTuple);
+
+            // Now that we know the group, and we have aggregate functions to do
+            // the computation, update each aggregate with the tuple's current
+            // value.
+            if (groupAggregates != null) {
+                for (int i = 0; i < groupAggregates.length; i++)
+                    addArgValue(groupAggregates[i], i, inputTuple);
+            }
+        }
+
+
+        /**
+         * Returns the aggregate functions of an input tuple's group, creating
+         * them if the group isn't in the hash table yet.  If the hash table is
+         * full, the input tuple of a new group is spilled to its partition
+         * instead, and {@code null} is returned.
+         */
+        AggregateFunction[] findGroup(Tuple inputTuple)
+            throws IOException {
 
-    private Iterator<TupleLiteral> groupIterator;
+            // Get the group values for the current row.
+            TupleLiteral groupValues = null;
+            if (groupColumns.length > 0) {
+                for (int i = 0; i < groupColumns.length; i++) {
+                    groupProbe.setColumnValue(i,
+                        inputTuple.getColumnValue(groupColumns[i]));
+                }
+                groupValues = groupProbe;
+            }
+
+            // Look up the aggregate functions for this group, or create them if
+            // they don't already exist.
+            AggregateFunction[] groupAggregates = groups.get(groupValues);
+            if (groupAggregates == null) {
+                if (spilling) {
+                    // The workers of a parallel pass share the spill files.
+                    SpillFile file = partitionFiles[getPartition(groupValues)];
+                    synchronized (file) {
+                        file.addTuple(inputTuple);
+                    }
+                    return null;
+                }
+
+                // The probe tuple is reused, so the group needs its own copy.
+                if (groupValues != null)
+                    groupValues = new TupleLiteral(groupValues);
+
+                groupAggregates = newGroupAggregates();
+                groups.put(groupValues, groupAggregates);
+
+                memoryUsed += getGroupSize(groupValues);
+                if (memoryUsed > memoryLimit &&
+                    getDepth() < MAX_PARTITION_DEPTH) {
+                    startSpilling(this);
+                    spilling = true;
+                }
+            }
+
+            return groupAggregates;
+        }
+
+
+        /**
+         * Evaluates an aggregate function's argument against an input tuple and
+         * adds it to the aggregate, without boxing it if it is a primitive
+         * value.
+         */
+        void addArgValue(AggregateFunction aggFn, int iAgg, Tuple tuple) {
+            CompiledExpression arg = compiledArgs[iAgg];
+            if (arg == null) {
+                // COUNT(*) counts every row, whatever its argument is.
+                aggFn.addValue(null);
+                return;
+            }
+
+            switch (arg.getValueKind()) {
+            case CompiledExpression.INT_VALUE:
+                if (arg.evaluatePrimitive(tuple)) {
+                    aggFn.addIntValue((int) arg.getLongResult());
+                    return;
+                }
+                break;
+
+            case CompiledExpression.LONG_VALUE:
+                if (arg.evaluatePrimitive(tuple)) {
+                    aggFn.addLongValue(arg.getLongResult());
+                    return;
+                }
+                break;
+
+            case CompiledExpression.DOUBLE_VALUE:
+                if (arg.evaluatePrimitive(tuple)) {
+                    aggFn.addDoubleValue(arg.getDoubleResult());
+                    return;
+                }
+                break;
+            }
+
+            aggFn.addValue(arg.evaluate(tuple));
+        }
+
+
+        /**
+         * Merges another table's groups into this one, combining the
+         * aggregate state of the groups that are in both tables.
+         */
+        void merge(GroupTable other) {
+            for (Map.Entry<TupleLiteral, AggregateFunction[]> entry :
+                 other.groups.entrySet()) {
+                AggregateFunction[] groupAggregates =
+                    groups.get(entry.getKey());
+
+                if (groupAggregates == null) {
+                    groups.put(entry.getKey(), entry.getValue());
+                    memoryUsed += getGroupSize(entry.getKey());
+                }
+                else {
+                    AggregateFunction[] otherAggregates = entry.getValue();
+                    for (int i = 0; i < groupAggregates.length; i++)
+                        groupAggregates[i].mergeState(otherAggregates[i]);
+                }
+            }
+
+            other.groups.clear();
+        }
+    }
+
+
+    /**
+     * The aggregate functions that each group's state is cloned from, in the
+     * order that the aggregates appear in the output.
+     */
+    private AggregateFunction[] aggregateFunctions;
+
+    /** The argument of each aggregate function. */
+    private Expression[] aggregateArgs;
+
+    /**
+     * The index of the input column that each aggregate function's argument
+     * is, or -1 if the argument is anything other than a column.
+     */
+    private int[] aggregateColumns;
+
+    /** The index of each grouping column in the input schema. */
+    private int[] groupColumns;
+
+    /**
+     * The groups of the current pass, and their aggregate state, or
+     * {@code null} if the first pass hasn't started yet.
+     */
+    private GroupTable table;
+
+    private Iterator<Map.Entry<TupleLiteral, AggregateFunction[]>> groupIterator;
+
+    /**
+     * The number of partitions that the current pass spills new groups to,
+     * or 0 if the hash table hasn't outgrown the memory budget.
+     */
+    private int numPartitions;
+
+    /** The spill file for each partition of the current pass. */
+    private SpillFile[] partitionFiles;
+
+    /**
+     * The groups of each partition of the current pass that were aggregated
+     * in parallel before the partition was spilled, or {@code null} if there
+     * are none.  See {@link Partition#groups}.
+     */
+    private ArrayList<LinkedHashMap<TupleLiteral, AggregateFunction[]>>
+        partitionGroups;
+
+    /** The partition being aggregated, or {@code null} for the child's input. */
+    private Partition currentPartition;
+
+    /** The partitions waiting to be aggregated. */
+    private LinkedList<Partition> pendingPartitions = new LinkedList<>();
 
 
     private boolean done;
@@ -66,6 +516,27 @@ public class HashedGroupAggregateNode extends GroupAggregateNode {
     }
 
 
+    /**
+     * Creates a copy of this plan node and its subtrees.
+     */
+    @Override
+    protected PlanNode clone() throws CloneNotSupportedException {
+        HashedGroupAggregateNode node =
+            (HashedGroupAggregateNode) super.clone();
+
+        // The copy evaluates its aggregates with its own state.
+        node.table = null;
+        node.groupIterator = null;
+        node.partitionFiles = null;
+        node.partitionGroups = null;
+        node.numPartitions = 0;
+        node.currentPartition = null;
+        node.pendingPartitions = new LinkedList<>();
+
+        return node;
+    }
+
+
     // Use parent javadocs.
     @Override
     public String toString() {
@@ -121,81 +592,412 @@ public class HashedGroupAggregateNode extends GroupAggregateNode {
      * @throws IllegalStateException if a plan node is not properly initialized
      */
     public Tuple getNextTuple() throws IllegalStateException, IOException {
+        Map.Entry<TupleLiteral, AggregateFunction[]> entry = nextGroup();
+        if (entry == null)
+            return null;
+
+        // Construct the result tuple from the group, and from the computed
+        // aggregate values.
+        return generateOutputTuple(entry.getKey(), entry.getValue());
+    }
+
+
+    /**
+     * Stores the group values and aggregate results of each group directly
+     * in the batch, rather than building a result tuple for each group.
+     */
+    @Override
+    public TupleBatch getNextBatch()
+        throws IllegalStateException, IOException {
+
+        TupleBatch batch = clearResultBatch();
+        while (!batch.isFull()) {
+            Map.Entry<TupleLiteral, AggregateFunction[]> entry = nextGroup();
+            if (entry == null)
+                break;
+
+            int row = batch.addRow();
+            int col = 0;
+
+            TupleLiteral groupValues = entry.getKey();
+            if (groupValues != null) {
+                for (int i = 0; i < groupValues.getColumnCount(); i++)
+                    batch.setValue(col++, row, groupValues.getColumnValue(i));
+            }
+
+            for (AggregateFunction aggFn : entry.getValue())
+                batch.setValue(col++, row, aggFn.getResult());
+        }
+
+        return (batch.getNumSelected() > 0) ? batch : null;
+    }
+
+
+    /**
+     * Returns the next group produced by this node, aggregating the input
+     * and any spilled partitions as needed, or {@code null} once every
+     * group has been produced.
+     *
+     * @return the next group's values and aggregate functions
+     *
+     * @throws IOException if an IO error occurs
+     */
+    private Map.Entry<TupleLiteral, AggregateFunction[]> nextGroup()
+        throws IOException {
+
         if (done)
             return null;
 
-        TupleLiteral result = null;
+        if (table == null)
+            startPass(null);
 
-        if (computedAggregates == null) {
-            computeAggregates();
-            groupIterator = computedAggregates.keySet().iterator();
+        while (true) {
+            if (groupIterator.hasNext())
+                return groupIterator.next();
+
+            // All groups of this pass have been produced, so move on to the
+            // next spilled partition, if there is one.
+            finishPass();
+
+            if (pendingPartitions.isEmpty()) {
+                done = true;
+                return null;
+            }
+
+            startPass(pendingPartitions.removeFirst());
         }
+    }
+
 
-        if (groupIterator.hasNext()) {
-            // Construct the result tuple from the group, and from the
-            // computed aggregate values.
+    /**
+     * This helper function iterates through <u>all</u> tuples of a pass,
+     * using an internal hash table to compute the grouping and aggregate
+     * results that this plan-node will output.  Tuples for groups that don't
+     * fit in memory are spilled to partitions for later passes.
+     *
+     * @param partition the spilled partition to aggregate, or {@code null}
+     *        to aggregate the child plan's tuples
+     *
+     * @throws IOException if an IO error occurs
+     */
+    private void startPass(Partition partition) throws IOException {
+        currentPartition = partition;
+        table = new GroupTable(PlanUtils.getWorkMemSize(), false);
+        numPartitions = 0;
+        partitionFiles = null;
+
+        if (partition == null) {
+            if (canAggregatePartitions()) {
+                aggregatePartitions();
+            }
+            else {
+                // Read the child plan's results a batch at a time.
+                while (true) {
+                    TupleBatch batch = leftChild.getNextBatch();
+                    if (batch == null)
+                        break;
+
+                    table.addInputBatch(batch);
+                }
+            }
 
-            TupleLiteral group = groupIterator.next();
-            Map<String, FunctionCall> groupAggregates = computedAggregates.get(group);
-            result = generateOutputTuple(group, groupAggregates);
+            // Aggregating without grouping always produces one row, even if
+            // the input is empty; e.g. MAX() is NULL and COUNT(*) is 0.
+            if (groupColumns.length == 0 && table.groups.isEmpty())
+                table.groups.put(null, newGroupAggregates());
         }
         else {
-            // No more groups.
-            done = true;
+            // Start from the state of the partition's groups that were
+            // aggregated before it was spilled.
+            if (partition.groups != null) {
+                for (Map.Entry<TupleLiteral, AggregateFunction[]> entry :
+                     partition.groups.entrySet()) {
+                    table.groups.put(entry.getKey(), entry.getValue());
+                    table.memoryUsed += getGroupSize(entry.getKey());
+                }
+                partition.groups = null;
+            }
+
+            partition.file.startReading();
+            while (true) {
+                Tuple inputTuple = partition.file.getNextTuple();
+                if (inputTuple == null)
+                    break;
+
+                table.addInputTuple(inputTuple);
+            }
+
+            partition.file.delete();
+            partition.file = null;
         }
 
-        return result;
+        if (numPartitions > 0 && logger.isDebugEnabled()) {
+            logger.debug(String.format("Hashed aggregate spilled new groups " +
+                "into %d partitions at depth %d, after %d groups",
+                numPartitions, getDepth(), table.groups.size()));
+        }
+
+        groupIterator = table.groups.entrySet().iterator();
     }
 
 
     /**
-     * This helper function iterates through <u>all</u> tuples generated by
-     * the subplan, using an internal hash table to compute the grouping and
-     * aggregate results that this plan-node will output.
+     * Returns true if the input can be aggregated in parallel.  This is the
+     * case if the child is an {@link ExchangeNode}, and the state of each
+     * aggregate can be merged.  The aggregates' arguments may not contain
+     * subqueries, since the workers evaluate them.
+     */
+    private boolean canAggregatePartitions() {
+        if (!(leftChild instanceof ExchangeNode))
+            return false;
+
+        for (int i = 0; i < aggregateFunctions.length; i++) {
+            if (!aggregateFunctions[i].supportsMerge() ||
+                ExchangeNode.containsSubquery(aggregateArgs[i])) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Aggregates the input in two phases.  First, each partition of the
+     * child exchange node is aggregated into a table of its own by the
+     * worker that evaluates it, so that the workers don't contend for a
+     * shared table.  Then the partitions' tables are merged into the pass's
+     * table.  Each partition's table gets an equal share of the memory
+     * budget.  Once a table is full, its worker spills the input tuples of
+     * new groups to the pass's partitions, which are shared by all of the
+     * workers.
      *
-     * @throws IOException
+     * @throws IOException if an IO error occurs
      */
-    private void computeAggregates() throws IOException {
-        Tuple inputTuple;
+    private void aggregatePartitions() throws IOException {
+        ExchangeNode exchange = (ExchangeNode) leftChild;
+        int n = exchange.getNumPartitions();
+
+        GroupTable[] partitionTables = new GroupTable[n];
+        for (int i = 0; i < n; i++) {
+            partitionTables[i] =
+                new GroupTable(PlanUtils.getWorkMemSize() / n, true);
+        }
 
-        computedAggregates = new LinkedHashMap<>();
+        exchange.consumePartitions(partitionTables);
 
-        // Pull tuples from the left child until we run out.
-        while ((inputTuple = leftChild.getNextTuple()) != null) {
-            environment.clear();
-            environment.addTuple(inputSchema, inputTuple);
+        for (GroupTable partitionTable : partitionTables)
+            table.merge(partitionTable);
 
-            // Get the group values for the current row.
-            TupleLiteral groupValues = evaluateGroupByExprs();
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Merged the groups of %d partitions " +
+                "into %d groups", n, table.groups.size()));
+        }
 
-            // logger.debug("Group values = " + groupValues);
+        if (numPartitions > 0)
+            setAsideSpilledGroups();
+    }
 
-            // Look up the collection of aggregate functions for this group,
-            // or create one if it doesn't already exist.
-            Map<String, FunctionCall> groupAggregates = computedAggregates.get(groupValues);
-            if (groupAggregates == null) {
-                groupAggregates = new LinkedHashMap<String, FunctionCall>();
 
-                // logger.debug(" * Creating new computed aggregates for this group");
+    /**
+     * Called after the input has been aggregated in parallel with some of it
+     * spilled.  A group may be in one worker's table while its input tuples
+     * from another worker were spilled, so the merged state of each group
+     * whose partition isn't empty is moved out of the pass's table, to be
+     * completed by the partition's pass.
+     */
+    private void setAsideSpilledGroups() {
+        partitionGroups = new ArrayList<>(numPartitions);
+        for (int i = 0; i < numPartitions; i++)
+            partitionGroups.add(null);
+
+        int numSetAside = 0;
+        Iterator<Map.Entry<TupleLiteral, AggregateFunction[]>> iter =
+            table.groups.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<TupleLiteral, AggregateFunction[]> entry = iter.next();
+            int p = getPartition(entry.getKey());
+            if (partitionFiles[p].getNumTuples() == 0)
+                continue;
+
+            LinkedHashMap<TupleLiteral, AggregateFunction[]> groups =
+                partitionGroups.get(p);
+            if (groups == null) {
+                groups = new LinkedHashMap<>();
+                partitionGroups.set(p, groups);
+            }
+            groups.put(entry.getKey(), entry.getValue());
 
-                // Clone each aggregate function, since aggregates keep some
-                // internal scratch space for computation.
-                for (String name : aggregates.keySet()) {
-                    FunctionCall fnCall = aggregates.get(name);
-                    groupAggregates.put(name, (FunctionCall) fnCall.duplicate());
-                }
+            table.memoryUsed -= getGroupSize(entry.getKey());
+            iter.remove();
+            numSetAside++;
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Set aside %d groups for the passes " +
+                "over %d spilled partitions", numSetAside, numPartitions));
+        }
+    }
+
+
+    /**
+     * Queues the partitions spilled during the current pass so that they
+     * will be aggregated, and releases the pass's hash table.
+     */
+    private void finishPass() {
+        int depth = getDepth();
+        for (int i = 0; i < numPartitions; i++) {
+            if (partitionFiles[i].getNumTuples() == 0) {
+                partitionFiles[i].delete();
+                continue;
+            }
+
+            Partition partition = new Partition(partitionFiles[i], depth + 1);
+            if (partitionGroups != null)
+                partition.groups = partitionGroups.get(i);
+
+            pendingPartitions.add(partition);
+        }
 
-                computedAggregates.put(groupValues, groupAggregates);
+        table.groups.clear();
+        numPartitions = 0;
+        partitionFiles = null;
+        partitionGroups = null;
+        currentPartition = null;
+    }
+
+
+    /** Returns the partitioning depth of the current pass. */
+    private int getDepth() {
+        return (currentPartition != null) ? currentPartition.depth : 0;
+    }
+
+
+    /**
+     * Called when a hash table first exceeds its memory budget in a pass.
+     * The groups in the hash table stay there, but the input tuples of new
+     * groups will be spilled to partitions from now on.  When the input is
+     * aggregated in parallel, the first worker whose table is full creates
+     * the partitions, and the other workers use the same ones.
+     *
+     * @param full the hash table that is full
+     */
+    private synchronized void startSpilling(GroupTable full)
+        throws IOException {
+
+        if (numPartitions > 0)
+            return;
+
+        // Size the partitions so that each is likely to fit in memory, based
+        // on the average size of the groups seen so far.
+        float estimatedGroups = estimatedNumTuples;
+        if (currentPartition != null)
+            estimatedGroups = currentPartition.file.getNumTuples();
+
+        float avgSize = (float) full.memoryUsed / full.groups.size();
+        float remainingBytes = Math.max(avgSize,
+            (estimatedGroups - full.groups.size()) * avgSize);
+
+        int n = (int) Math.ceil(remainingBytes / PlanUtils.getWorkMemSize());
+        n = Math.max(2, Math.min(MAX_PARTITIONS, n));
+
+        partitionFiles = new SpillFile[n];
+        for (int i = 0; i < n; i++)
+            partitionFiles[i] = new SpillFile("hashagg");
+
+        // Other workers check this to see whether the files exist yet.
+        numPartitions = n;
+    }
+
+
+    /**
+     * Returns the partition that a group falls into in the current pass.
+     * Each partitioning depth uses a different hash function, so that a
+     * partition that is too large is split up when it is partitioned again.
+     */
+    private int getPartition(TupleLiteral groupValues) {
+        int h = (groupValues != null ? groupValues.hashCode() : 0) +
+            0x9e3779b9 * (getDepth() + 1);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+
+        return (h & Integer.MAX_VALUE) % numPartitions;
+    }
+
+
+    /**
+     * Creates the aggregate state for a new group, by cloning each aggregate
+     * function, since aggregates keep some internal scratch space for
+     * computation.
+     */
+    private AggregateFunction[] newGroupAggregates() {
+        AggregateFunction[] groupAggregates =
+            new AggregateFunction[aggregateFunctions.length];
+
+        try {
+            for (int i = 0; i < aggregateFunctions.length; i++) {
+                groupAggregates[i] =
+                    (AggregateFunction) aggregateFunctions[i].clone();
             }
+        }
+        catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+
+        return groupAggregates;
+    }
+
 
-            // Now that we know the group, and we have aggregate functions to
-            // do the computation, update each aggregate with the tuple's
-            // current value.
-            updateAggregates(groupAggregates);
+    /** Returns an estimate of the memory used by a group in a hash table. */
+    private long getGroupSize(TupleLiteral groupValues) {
+        long size = GROUP_OVERHEAD +
+            AGGREGATE_OVERHEAD * aggregateFunctions.length;
+        if (groupValues != null)
+            size += PlanUtils.estimateMemorySize(groupValues);
 
-            // Now that we are done with the current tuple, unpin it.
-            // inputTuple.unpin();
+        return size;
+    }
+
+
+    private TupleLiteral generateOutputTuple(TupleLiteral groupValues,
+        AggregateFunction[] groupAggregates) {
+
+        // Construct the result tuple from the group, and from the computed
+        // aggregate values.
+        TupleLiteral result = new TupleLiteral();
+        if (groupValues != null)
+            result.appendTuple(groupValues);
+
+        for (AggregateFunction aggFn : groupAggregates)
+            result.addValue(aggFn.getResult());
+
+        return result;
+    }
+
+
+    /** Deletes any spill files left over from the last evaluation. */
+    private void deleteSpillFiles() {
+        if (currentPartition != null && currentPartition.file != null)
+            currentPartition.file.delete();
+
+        currentPartition = null;
+        partitionGroups = null;
+
+        if (partitionFiles != null) {
+            for (int i = 0; i < numPartitions; i++)
+                partitionFiles[i].delete();
+
+            partitionFiles = null;
         }
+        numPartitions = 0;
+
+        for (Partition partition : pendingPartitions)
+            partition.file.delete();
+
+        pendingPartitions.clear();
     }
 
 
@@ -207,6 +1009,29 @@ public class HashedGroupAggregateNode extends GroupAggregateNode {
         // plan-node, since it is a complicated operation.
         prepareSchemaStats();
 
+        // Each group's state is cloned from these aggregate functions.
+        aggregateFunctions = new AggregateFunction[aggregates.size()];
+        aggregateArgs = new Expression[aggregates.size()];
+        aggregateColumns = new int[aggregates.size()];
+        int i = 0;
+        for (FunctionCall call : aggregates.values()) {
+            List<Expression> args = call.getArguments();
+            if (args.size() != 1) {
+                throw new ExpressionException("Aggregate functions " +
+                    "currently require exactly one argument.");
+            }
+
+            aggregateFunctions[i] = (AggregateFunction) call.getFunction();
+            aggregateArgs[i] = args.get(0);
+            aggregateColumns[i] = getColumnIndex(aggregateArgs[i]);
+            i++;
+        }
+
+        // Grouping expressions are always column references.
+        groupColumns = new int[groupByExprs.size()];
+        for (i = 0; i < groupColumns.length; i++)
+            groupColumns[i] = getColumnIndex(groupByExprs.get(i));
+
         // Grab the left child's cost, then update the cost based on the cost
         // of hashing and computing aggregates.
         PlanCost childCost = leftChild.getCost();
@@ -223,6 +1048,21 @@ public class HashedGroupAggregateNode extends GroupAggregateNode {
 
             // Assume that computing each aggregate value costs one unit.
             cost.cpuCost += estimatedNumTuples * aggregates.size();
+
+            // If the groups don't fit in memory, the input tuples of the
+            // groups that don't fit must be written out and read back in.
+            float groupBytes = estimatedNumTuples * (childCost.tupleSize +
+                GROUP_OVERHEAD + AGGREGATE_OVERHEAD * aggregates.size());
+            long workMem = PlanUtils.getWorkMemSize();
+            if (groupBytes > workMem) {
+                float spilledFraction = 1 - workMem / groupBytes;
+                float spilledBytes = spilledFraction *
+                    childCost.numTuples * childCost.tupleSize;
+
+                cost.numBlockIOs += 2 * (long) Math.ceil(spilledBytes /
+                    DBFile.DEFAULT_PAGESIZE);
+                cost.cpuCost += 2 * spilledFraction * childCost.numTuples;
+            }
         }
         else {
             logger.info(
@@ -233,6 +1073,23 @@ public class HashedGroupAggregateNode extends GroupAggregateNode {
     }
 
 
+    /**
+     * Returns the index of the input column that an expression refers to, or
+     * -1 if the expression isn't a reference to a single input column.
+     */
+    private int getColumnIndex(Expression expr) {
+        if (expr.getClass() != ColumnValue.class)
+            return -1;
+
+        ColumnName colName = ((ColumnValue) expr).getColumnName();
+        if (colName.isColumnWildcard())
+            return -1;
+
+        SortedMap<Integer, ColumnInfo> found = inputSchema.findColumns(colName);
+        return (found.size() == 1) ? found.firstKey() : -1;
+    }
+
+
     /**
      * Does any initialization the node might need.  This could include
      * resetting state variables or starting the node over from the beginning.
@@ -242,7 +1099,8 @@ public class HashedGroupAggregateNode extends GroupAggregateNode {
         super.initialize();
 
         // Clear our state.
-        computedAggregates = null;
+        deleteSpillFiles();
+        table = null;
         groupIterator = null;
         done = false;
 
@@ -278,7 +1136,8 @@ public class HashedGroupAggregateNode extends GroupAggregateNode {
      */
     public void cleanUp() {
         // Clear our state.
-        computedAggregates = null;
+        deleteSpillFiles();
+        table = null;
         groupIterator = null;
         leftChild.cleanUp();
     }
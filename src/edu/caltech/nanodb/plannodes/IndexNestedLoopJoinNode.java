@@ -0,0 +1,736 @@
+package edu.caltech.nanodb.plannodes;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.OrderByExpression;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.expressions.TypeCastException;
+import edu.caltech.nanodb.expressions.TypeConverter;
+import edu.caltech.nanodb.indexes.IndexInfo;
+import edu.caltech.nanodb.indexes.IndexManager;
+import edu.caltech.nanodb.queryeval.ColumnStats;
+import edu.caltech.nanodb.queryeval.PlanCost;
+import edu.caltech.nanodb.queryeval.SelectivityEstimator;
+import edu.caltech.nanodb.relations.ColumnRefs;
+import edu.caltech.nanodb.relations.JoinType;
+import edu.caltech.nanodb.relations.SQLDataType;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.SchemaNameException;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.storage.FilePointer;
+import edu.caltech.nanodb.storage.InvalidFilePointerException;
+import edu.caltech.nanodb.storage.SequentialTupleFile;
+import edu.caltech.nanodb.storage.TupleFile;
+import edu.caltech.nanodb.storage.heapfile.HeapFilePageTuple;
+import edu.caltech.nanodb.storage.heapfile.HeapTupleFile;
+
+
+/**
+ * <p>
+ * This plan node implements an index nested-loop join.  Rather than scanning
+ * the whole inner relation for every outer tuple, the join evaluates the
+ * outer tuple's join keys and looks them up in an ordered index on the inner
+ * table, using {@link SequentialTupleFile#findFirstTupleEquals}.  Each index
+ * entry's <tt>#TUPLE_PTR</tt> column is then used to fetch the inner tuple
+ * from the table.  The cost is thus proportional to the number of outer
+ * tuples times the depth of the index, so this is a good choice when the
+ * outer relation is small and the inner relation is large.
+ * </p>
+ * <p>
+ * The left child is the outer relation.  The right child must be a leaf
+ * plan over the indexed table:  a {@link FileScanNode}, optionally renamed
+ * by a {@link RenameNode}, and optionally filtered by a
+ * {@link SimpleFilterNode}.  The right child is never evaluated; it only
+ * supplies the inner schema and statistics, and the predicates of its scan
+ * and filter nodes are applied to the fetched inner tuples.
+ * </p>
+ * <p>
+ * The index is probed with the longest prefix of its columns that the join
+ * keys (see {@link ThetaJoinNode#findJoinKeys}) compare against.  The entire
+ * join predicate is still checked against each pair of tuples.  Inner,
+ * left-outer, semi- and anti-joins are supported.  Semi- and anti-joins only
+ * produce the columns of the left child.
+ * </p>
+ */
+public class IndexNestedLoopJoinNode extends ThetaJoinNode {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger =
+        Logger.getLogger(IndexNestedLoopJoinNode.class);
+
+
+    /** The index on the inner table that is probed for each outer tuple. */
+    private IndexInfo indexInfo;
+
+
+    /**
+     * The expressions evaluated against outer tuples to produce the search
+     * key, one per leading column of the index that is used.
+     */
+    private ArrayList<Expression> probeExprs;
+
+
+    /** The types of the index columns that the search key is made of. */
+    private ArrayList<SQLDataType> probeTypes;
+
+
+    /** The index of the <tt>#TUPLE_PTR</tt> column in the index's schema. */
+    private int tuplePtrIndex;
+
+
+    /** The inner table's tuple file, which index entries point into. */
+    private TupleFile tableTupleFile;
+
+
+    /** The schema of the inner table's tuple file. */
+    private Schema tableSchema;
+
+
+    /**
+     * The predicate of the inner file-scan, evaluated against
+     * {@link #tableSchema}, or {@code null} if none.
+     */
+    private Expression scanPredicate;
+
+
+    /**
+     * The predicate of the filter over the inner file-scan, evaluated against
+     * {@link #rightSchema}, or {@code null} if none.
+     */
+    private Expression filterPredicate;
+
+
+    /** The current outer tuple. */
+    private Tuple outerTuple;
+
+
+    /** The search key computed from {@link #outerTuple}. */
+    private TupleLiteral searchKey;
+
+
+    /** The current index entry, or {@code null} if none has been read yet. */
+    private Tuple indexTuple;
+
+
+    /** True once all index entries matching the search key have been read. */
+    private boolean probeDone;
+
+
+    /** True if {@link #outerTuple} has been joined with some inner tuple. */
+    private boolean outerMatched;
+
+
+    /** Set to true when we have exhausted all tuples from the outer plan. */
+    private boolean done;
+
+
+    /**
+     * Constructs an index nested-loop join.
+     *
+     * @param leftChild the outer relation
+     *
+     * @param rightChild a leaf plan over the table that the index is on
+     *
+     * @param indexInfo an index on the table scanned by the right child
+     *
+     * @param joinType the type of join to perform
+     *
+     * @param predicate the join predicate
+     */
+    public IndexNestedLoopJoinNode(PlanNode leftChild, PlanNode rightChild,
+        IndexInfo indexInfo, JoinType joinType, Expression predicate) {
+
+        super(leftChild, rightChild, joinType, predicate);
+
+        if (indexInfo == null)
+            throw new IllegalArgumentException("indexInfo cannot be null");
+
+        this.indexInfo = indexInfo;
+    }
+
+
+    /**
+     * Checks if the argument is a plan node tree with the same structure, but
+     * not necessarily the same references.
+     *
+     * @param obj the object to which we are comparing
+     */
+    @Override
+    public boolean equals(Object obj) {
+
+        if (obj instanceof IndexNestedLoopJoinNode) {
+            IndexNestedLoopJoinNode other = (IndexNestedLoopJoinNode) obj;
+
+            return joinType == other.joinType &&
+                schemaSwapped == other.schemaSwapped &&
+                indexInfo.getTupleFile().equals(
+                    other.indexInfo.getTupleFile()) &&
+                (predicate != null ? predicate.equals(other.predicate) :
+                    other.predicate == null) &&
+                leftChild.equals(other.leftChild) &&
+                rightChild.equals(other.rightChild);
+        }
+
+        return false;
+    }
+
+
+    /** Computes the hash-code of the index nested-loop join plan node. */
+    @Override
+    public int hashCode() {
+        int hash = 13;
+        hash = 31 * hash + joinType.hashCode();
+        hash = 31 * hash + indexInfo.getTupleFile().hashCode();
+        hash = 31 * hash + (predicate != null ? predicate.hashCode() : 0);
+        hash = 31 * hash + leftChild.hashCode();
+        hash = 31 * hash + rightChild.hashCode();
+        return hash;
+    }
+
+
+    /**
+     * Returns a string representing this join's vital information.
+     *
+     * @return a string representing this plan-node.
+     */
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+
+        buf.append("IndexNestedLoop[index:  ");
+        buf.append(indexInfo.getTableName()).append('.');
+        buf.append(indexInfo.getIndexName());
+
+        if (predicate != null)
+            buf.append(", pred:  ").append(predicate);
+
+        if (joinType != JoinType.INNER)
+            buf.append(" (").append(joinType).append(')');
+
+        if (schemaSwapped)
+            buf.append(" (schema swapped)");
+
+        buf.append(']');
+
+        return buf.toString();
+    }
+
+
+    /**
+     * Creates a copy of this plan node and its subtrees.
+     */
+    @Override
+    protected PlanNode clone() throws CloneNotSupportedException {
+        IndexNestedLoopJoinNode node = (IndexNestedLoopJoinNode) super.clone();
+
+        // Clone the predicate.
+        if (predicate != null)
+            node.predicate = predicate.duplicate();
+        else
+            node.predicate = null;
+
+        // The search key and inner predicates are derived by prepare().
+        node.leftKeys = null;
+        node.rightKeys = null;
+        node.residualPredicate = null;
+        node.probeExprs = null;
+        node.probeTypes = null;
+
+        return node;
+    }
+
+
+    /** The results are produced in the order of the outer relation. */
+    @Override
+    public List<OrderByExpression> resultsOrderedBy() {
+        return leftChild.resultsOrderedBy();
+    }
+
+
+    /** Index nested-loop joins don't support marking. */
+    public boolean supportsMarking() {
+        return false;
+    }
+
+
+    /** True if the node requires that its left child supports marking. */
+    public boolean requiresLeftMarking() {
+        return false;
+    }
+
+
+    /** True if the node requires that its right child supports marking. */
+    public boolean requiresRightMarking() {
+        return false;
+    }
+
+
+    /**
+     * Returns the number of leading index columns that the index is probed
+     * with.  This is only valid after {@link #prepare} has been called.  If
+     * it is zero, the join keys don't cover the first column of the index,
+     * and the index cannot be used for this join.
+     *
+     * @return the number of index columns used to probe the index
+     */
+    public int getNumProbeColumns() {
+        return probeExprs.size();
+    }
+
+
+    @Override
+    public void prepare() {
+        // Need to prepare the left and right child-nodes before we can do
+        // our own work.
+        leftChild.prepare();
+        rightChild.prepare();
+
+        // Use the parent class' helper-function to prepare the schema.
+        prepareSchemaStats();
+
+        findJoinKeys();
+        findInnerPredicates();
+        findProbeColumns();
+
+        PlanCost leftCost = leftChild.getCost();
+        PlanCost rightCost = rightChild.getCost();
+
+        float selectivity =
+            SelectivityEstimator.estimateSelectivity(predicate, schema, stats);
+        float tupleProd = leftCost.numTuples * rightCost.numTuples;
+        float tupleSize = leftCost.tupleSize + rightCost.tupleSize;
+
+        float numTuples;
+        switch (joinType) {
+            case CROSS:
+            case INNER:
+                numTuples = selectivity * tupleProd;
+                break;
+            case LEFT_OUTER:
+                numTuples = selectivity * tupleProd +
+                    (1 - selectivity) * leftCost.numTuples;
+                break;
+            case SEMIJOIN:
+                numTuples = selectivity * leftCost.numTuples;
+                break;
+            case ANTIJOIN:
+                numTuples = (1 - selectivity) * leftCost.numTuples;
+                break;
+            case RIGHT_OUTER:
+            case FULL_OUTER:
+            default:
+                throw new IllegalArgumentException(
+                    "This type of join not supported by node.");
+        }
+
+        if (joinType == JoinType.SEMIJOIN || joinType == JoinType.ANTIJOIN) {
+            // Only the left tuples are produced.
+            schema = leftSchema;
+            stats = new ArrayList<ColumnStats>(leftStats);
+            tupleSize = leftCost.tupleSize;
+        }
+
+        // Each outer tuple descends the index once, and then fetches each
+        // matching inner tuple from the table.  Since we can't tell how
+        // selective the probe columns are on their own, assume the join
+        // predicate is a good estimate of the number of matches.
+        float innerTuples = rightCost.numTuples;
+        float descentCost = (float) Math.ceil(
+            Math.log(Math.max(2, innerTuples)) / Math.log(2));
+        float matchesPerProbe = selectivity * innerTuples;
+
+        float cpuCost = leftCost.cpuCost;
+        cpuCost += leftCost.numTuples * (descentCost + matchesPerProbe);
+
+        long numBlockIOs = leftCost.numBlockIOs;
+        numBlockIOs += (long) Math.ceil(
+            leftCost.numTuples * (1 + matchesPerProbe));
+
+        cost = new PlanCost(numTuples, tupleSize, cpuCost, numBlockIOs);
+    }
+
+
+    /**
+     * Finds the predicates of the right child's scan and filter nodes, so
+     * that they can be applied to the inner tuples fetched through the
+     * index.
+     *
+     * @throws IllegalArgumentException if the right child isn't a leaf plan
+     *         over the indexed table
+     */
+    private void findInnerPredicates() {
+        FileScanNode scan = PlanUtils.getLeafScan(rightChild);
+        if (scan == null || scan.getTableInfo() != indexInfo.getTableInfo()) {
+            throw new IllegalArgumentException("The right child must be a " +
+                "scan of table " + indexInfo.getTableName());
+        }
+
+        filterPredicate = null;
+        if (rightChild instanceof SimpleFilterNode)
+            filterPredicate = ((SimpleFilterNode) rightChild).predicate;
+
+        scanPredicate = scan.predicate;
+        tableTupleFile = indexInfo.getTableInfo().getTupleFile();
+        tableSchema = tableTupleFile.getSchema();
+    }
+
+
+    /**
+     * Finds the longest prefix of the index's columns that the join keys
+     * compare against, and the outer expressions that supply their values.
+     */
+    private void findProbeColumns() {
+        probeExprs = new ArrayList<Expression>();
+        probeTypes = new ArrayList<SQLDataType>();
+
+        Schema indexSchema = indexInfo.getTupleFile().getSchema();
+        tuplePtrIndex = indexSchema.getColumnIndex(
+            IndexManager.COLNAME_TUPLEPTR);
+
+        // The inner tuples have the same columns as the table, so the index's
+        // column references can be used with the right schema.
+        ColumnRefs indexCols = indexInfo.getTableColumnRefs();
+        for (int i = 0; i < indexCols.size(); i++) {
+            Expression probeExpr = null;
+            for (int j = 0; j < rightKeys.size(); j++) {
+                if (getColumnIndex(rightKeys.get(j)) == indexCols.getCol(i)) {
+                    probeExpr = leftKeys.get(j);
+                    break;
+                }
+            }
+
+            if (probeExpr == null)
+                break;
+
+            probeExprs.add(probeExpr);
+            probeTypes.add(
+                indexSchema.getColumnInfo(i).getType().getBaseType());
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Probing index %s.%s with %s",
+                indexInfo.getTableName(), indexInfo.getIndexName(),
+                probeExprs));
+        }
+    }
+
+
+    /**
+     * Returns the index of the right-schema column that an expression refers
+     * to, or -1 if the expression isn't a simple column reference.
+     */
+    private int getColumnIndex(Expression expr) {
+        if (!(expr instanceof ColumnValue))
+            return -1;
+
+        try {
+            return rightSchema.getColumnIndex(
+                ((ColumnValue) expr).getColumnName());
+        }
+        catch (SchemaNameException e) {
+            return -1;
+        }
+    }
+
+
+    public void initialize() {
+        super.initialize();
+
+        outerTuple = null;
+        searchKey = null;
+        indexTuple = null;
+        probeDone = true;
+        outerMatched = false;
+        done = false;
+    }
+
+
+    /**
+     * Returns the next joined tuple that satisfies the join condition.
+     *
+     * @return the next joined tuple that satisfies the join condition.
+     *
+     * @throws IOException if a db file failed to open at some point
+     */
+    public Tuple getNextTuple() throws IOException {
+        if (done)
+            return null;
+
+        while (true) {
+            // The outer tuple is only advanced at the start of a call, since
+            // semi- and anti-joins return the outer tuple itself.
+            if (outerTuple == null) {
+                outerTuple = leftChild.getNextTuple();
+                if (outerTuple == null) {
+                    done = true;
+                    return null;
+                }
+
+                startProbe();
+            }
+
+            Tuple innerTuple;
+            while ((innerTuple = nextInnerTuple()) != null) {
+                boolean matched = canJoinTuples(outerTuple, innerTuple);
+
+                // The joined tuple is a copy, so the inner tuple can always
+                // be released.
+                Tuple joined = null;
+                if (matched && joinType != JoinType.SEMIJOIN &&
+                    joinType != JoinType.ANTIJOIN) {
+                    joined = joinTuples(outerTuple, innerTuple);
+                }
+                unpinTuple(innerTuple);
+
+                if (!matched)
+                    continue;
+
+                outerMatched = true;
+                if (joined != null)
+                    return joined;
+
+                // Semi- and anti-joins only need one match.
+                break;
+            }
+
+            Tuple tup = outerTuple;
+            outerTuple = null;
+            finishProbe();
+
+            switch (joinType) {
+                case LEFT_OUTER:
+                    if (!outerMatched) {
+                        return joinTuples(tup,
+                            new TupleLiteral(rightSchema.numColumns()));
+                    }
+                    break;
+
+                case SEMIJOIN:
+                    if (outerMatched)
+                        return tup;
+                    break;
+
+                case ANTIJOIN:
+                    if (!outerMatched)
+                        return tup;
+                    break;
+
+                default:
+                    // Do nothing.
+            }
+        }
+    }
+
+
+    /**
+     * Computes the search key for the current outer tuple.  An outer tuple
+     * with a <tt>NULL</tt> search-key value can't match any inner tuple, so
+     * no probe is done for it.
+     */
+    private void startProbe() {
+        outerMatched = false;
+        indexTuple = null;
+
+        searchKey = evaluateKey(probeExprs, leftSchema, outerTuple);
+        probeDone = hasNullValue(searchKey);
+        if (probeDone)
+            return;
+
+        // The index compares values without coercing them, so convert the
+        // key values to the types of the index columns.  If this changes a
+        // value, the join predicate will reject the inner tuples it finds.
+        // A value outside the range of its column's type can't match any
+        // inner tuple, and would wrap around if it were converted.
+        try {
+            for (int i = 0; i < searchKey.getColumnCount(); i++) {
+                Object value = searchKey.getColumnValue(i);
+                SQLDataType type = probeTypes.get(i);
+                if (TypeConverter.compareToTypeRange(value, type) != 0) {
+                    probeDone = true;
+                    return;
+                }
+
+                searchKey.setColumnValue(i,
+                    TypeConverter.getValueOfType(value, type));
+            }
+        }
+        catch (TypeCastException e) {
+            probeDone = true;
+        }
+    }
+
+
+    /**
+     * Returns the next inner tuple whose index entry matches the search key
+     * and that satisfies the inner plan's predicates, or {@code null} if
+     * there are no more.
+     */
+    private Tuple nextInnerTuple() throws IOException {
+        SequentialTupleFile indexFile =
+            (SequentialTupleFile) indexInfo.getTupleFile();
+
+        while (!probeDone) {
+            Tuple prevIndexTuple = indexTuple;
+            if (prevIndexTuple == null)
+                indexTuple = indexFile.findFirstTupleEquals(searchKey);
+            else
+                indexTuple = indexFile.getNextTuple(prevIndexTuple);
+
+            unpinTuple(prevIndexTuple);
+
+            if (indexTuple == null || !matchesSearchKey(indexTuple)) {
+                finishProbe();
+                break;
+            }
+
+            FilePointer fptr =
+                (FilePointer) indexTuple.getColumnValue(tuplePtrIndex);
+
+            Tuple innerTuple;
+            try {
+                innerTuple = tableTupleFile.getTuple(fptr);
+            }
+            catch (InvalidFilePointerException e) {
+                throw new IOException("Index " + indexInfo.getIndexName() +
+                    " references a nonexistent tuple at " + fptr, e);
+            }
+
+            if (isInnerTupleSelected(innerTuple))
+                return innerTuple;
+
+            unpinTuple(innerTuple);
+        }
+
+        return null;
+    }
+
+
+    /** Returns true if an index entry's leading columns match the key. */
+    private boolean matchesSearchKey(Tuple tup) {
+        for (int i = 0; i < searchKey.getColumnCount(); i++) {
+            Object keyValue = searchKey.getColumnValue(i);
+            Object value = tup.getColumnValue(i);
+            if (value == null)
+                return false;
+
+            TypeConverter.Pair p =
+                TypeConverter.coerceComparison(keyValue, value);
+
+            @SuppressWarnings("unchecked")
+            Comparable<Object> comparable = (Comparable<Object>) p.value1;
+            if (comparable.compareTo(p.value2) != 0)
+                return false;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Returns true if an inner tuple fetched through the index is visible to
+     * the current transaction and satisfies the inner plan's predicates.
+     */
+    private boolean isInnerTupleSelected(Tuple tup) {
+        if (tableTupleFile instanceof HeapTupleFile &&
+            !((HeapTupleFile) tableTupleFile).isVisible(
+                (HeapFilePageTuple) tup)) {
+            return false;
+        }
+
+        if (scanPredicate != null) {
+            environment.clear();
+            environment.addTuple(tableSchema, tup);
+            if (!scanPredicate.evaluatePredicate(environment))
+                return false;
+        }
+
+        if (filterPredicate != null) {
+            environment.clear();
+            environment.addTuple(rightSchema, tup);
+            if (!filterPredicate.evaluatePredicate(environment))
+                return false;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Checks the entire join predicate, since the index is probed with only
+     * some of the join keys.
+     */
+    @Override
+    protected boolean canJoinTuples(Tuple leftTuple, Tuple rightTuple) {
+        if (predicate == null)
+            return true;
+
+        environment.clear();
+        environment.addTuple(leftSchema, leftTuple);
+        environment.addTuple(rightSchema, rightTuple);
+
+        return predicate.evaluatePredicate(environment);
+    }
+
+
+    /** Releases the index entry of the current probe, if any. */
+    private void finishProbe() {
+        unpinTuple(indexTuple);
+        indexTuple = null;
+        probeDone = true;
+    }
+
+
+    private static void unpinTuple(Tuple tup) {
+        if (tup != null && tup.isPinned())
+            tup.unpin();
+    }
+
+
+    /**
+     * Combines the left tuple and the right tuple.  Semi- and anti-joins
+     * never call this, since they produce left tuples unchanged.
+     */
+    @Override
+    protected Tuple joinTuples(Tuple left, Tuple right) {
+        TupleLiteral joinedTuple = new TupleLiteral();
+
+        if (!schemaSwapped) {
+            joinedTuple.appendTuple(left);
+            joinedTuple.appendTuple(right);
+        }
+        else {
+            joinedTuple.appendTuple(right);
+            joinedTuple.appendTuple(left);
+        }
+
+        return joinedTuple;
+    }
+
+
+    /** Index nested-loop joins don't support marking. */
+    public void markCurrentPosition() {
+        throw new UnsupportedOperationException(
+            "Index nested-loop join plan-node doesn't support marking.");
+    }
+
+
+    /** Index nested-loop joins don't support marking. */
+    public void resetToLastMark() {
+        throw new UnsupportedOperationException(
+            "Index nested-loop join plan-node doesn't support marking.");
+    }
+
+
+    public void cleanUp() {
+        finishProbe();
+
+        // The right child is never evaluated, so it has nothing to clean up.
+        leftChild.cleanUp();
+    }
+}
@@ -0,0 +1,891 @@
+package edu.caltech.nanodb.plannodes;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.expressions.ArithmeticOperator;
+import edu.caltech.nanodb.expressions.ColumnName;
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.CompareOperator;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.ExpressionException;
+import edu.caltech.nanodb.expressions.InValuesOperator;
+import edu.caltech.nanodb.expressions.LiteralValue;
+import edu.caltech.nanodb.expressions.OrderByExpression;
+import edu.caltech.nanodb.expressions.PredicateUtils;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.expressions.TypeCastException;
+import edu.caltech.nanodb.expressions.TypeConverter;
+import edu.caltech.nanodb.indexes.IndexInfo;
+import edu.caltech.nanodb.indexes.IndexManager;
+import edu.caltech.nanodb.queryeval.ColumnStats;
+import edu.caltech.nanodb.queryeval.PlanCost;
+import edu.caltech.nanodb.queryeval.SelectivityEstimator;
+import edu.caltech.nanodb.queryeval.TableStats;
+import edu.caltech.nanodb.relations.ColumnInfo;
+import edu.caltech.nanodb.relations.SQLDataType;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.SchemaNameException;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.storage.FilePointer;
+import edu.caltech.nanodb.storage.InvalidFilePointerException;
+import edu.caltech.nanodb.storage.SequentialTupleFile;
+import edu.caltech.nanodb.storage.TupleFile;
+import edu.caltech.nanodb.storage.heapfile.HeapFilePageTuple;
+import edu.caltech.nanodb.storage.heapfile.HeapTupleFile;
+
+
+/**
+ * <p>
+ * A select plan-node that uses an ordered index to read only the tuples of a
+ * table whose first index column falls within a list of key ranges.  For
+ * each range, the index is searched for the first entry in the range, and
+ * then the index's entries are read in order until one falls beyond the
+ * range.  Each entry's <tt>#TUPLE_PTR</tt> column is used to fetch the
+ * corresponding tuple from the table, which is then checked against the
+ * node's optional predicate.
+ * </p>
+ * <p>
+ * The key ranges are usually computed with {@link #findKeyRanges} from the
+ * conjuncts of a predicate that compare the column to constants, such as
+ * <tt>=</tt>, <tt>&lt;</tt>, <tt>BETWEEN</tt> and <tt>IN</tt> lists.  Since
+ * the ranges only cover the first index column, the node's predicate should
+ * still include all of the conjuncts; the ranges are just a superset of the
+ * tuples that the predicate selects.
+ * </p>
+ */
+public class IndexScanNode extends SelectNode {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(IndexScanNode.class);
+
+
+    /**
+     * A range of values of the first column of an index.  Bounds are values
+     * of the index column's type, and a {@code null} bound means that the
+     * range is unbounded on that side.  Key ranges are immutable.
+     */
+    public static class KeyRange {
+        /** The lower bound of the range, or {@code null} if unbounded. */
+        private final Object low;
+
+        /** True if the lower bound is part of the range. */
+        private final boolean lowInclusive;
+
+        /** The upper bound of the range, or {@code null} if unbounded. */
+        private final Object high;
+
+        /** True if the upper bound is part of the range. */
+        private final boolean highInclusive;
+
+
+        public KeyRange(Object low, boolean lowInclusive, Object high,
+                        boolean highInclusive) {
+            this.low = low;
+            this.lowInclusive = (low != null) && lowInclusive;
+            this.high = high;
+            this.highInclusive = (high != null) && highInclusive;
+        }
+
+
+        /** Constructs a key range containing a single value. */
+        public KeyRange(Object value) {
+            this(value, true, value, true);
+        }
+
+
+        /** Constructs a key range containing every value. */
+        public KeyRange() {
+            this(null, false, null, false);
+        }
+
+
+        public Object getLow() {
+            return low;
+        }
+
+
+        public boolean isLowInclusive() {
+            return lowInclusive;
+        }
+
+
+        public Object getHigh() {
+            return high;
+        }
+
+
+        public boolean isHighInclusive() {
+            return highInclusive;
+        }
+
+
+        /**
+         * Returns true if a value is beyond the upper bound of this range.
+         *
+         * @param value a non-{@code null} value of the index column's type
+         *
+         * @return true if the value is after every value in this range
+         */
+        public boolean isAfterRange(Object value) {
+            if (high == null)
+                return false;
+
+            int cmp = compareValues(value, high);
+            return cmp > 0 || (cmp == 0 && !highInclusive);
+        }
+
+
+        /**
+         * Returns the intersection of this range and another range, or
+         * {@code null} if the ranges don't overlap.
+         *
+         * @param other the range to intersect with this range
+         *
+         * @return the values in both ranges, or {@code null} if there are none
+         */
+        public KeyRange intersect(KeyRange other) {
+            Object newLow = low;
+            boolean newLowInclusive = lowInclusive;
+            if (other.low != null) {
+                int cmp = (low == null) ? -1 : compareValues(low, other.low);
+                if (cmp < 0 || (cmp == 0 && !other.lowInclusive)) {
+                    newLow = other.low;
+                    newLowInclusive = other.lowInclusive;
+                }
+            }
+
+            Object newHigh = high;
+            boolean newHighInclusive = highInclusive;
+            if (other.high != null) {
+                int cmp = (high == null) ? 1 : compareValues(high, other.high);
+                if (cmp > 0 || (cmp == 0 && !other.highInclusive)) {
+                    newHigh = other.high;
+                    newHighInclusive = other.highInclusive;
+                }
+            }
+
+            if (newLow != null && newHigh != null) {
+                int cmp = compareValues(newLow, newHigh);
+                if (cmp > 0 || (cmp == 0 && !(newLowInclusive && newHighInclusive)))
+                    return null;
+            }
+
+            return new KeyRange(newLow, newLowInclusive, newHigh,
+                newHighInclusive);
+        }
+
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof KeyRange) {
+                KeyRange other = (KeyRange) obj;
+                return lowInclusive == other.lowInclusive &&
+                    highInclusive == other.highInclusive &&
+                    (low != null ? low.equals(other.low) : other.low == null) &&
+                    (high != null ? high.equals(other.high) : other.high == null);
+            }
+
+            return false;
+        }
+
+
+        @Override
+        public int hashCode() {
+            int hash = 17;
+            hash = 31 * hash + (low != null ? low.hashCode() : 0);
+            hash = 31 * hash + (lowInclusive ? 1 : 0);
+            hash = 31 * hash + (high != null ? high.hashCode() : 0);
+            hash = 31 * hash + (highInclusive ? 1 : 0);
+            return hash;
+        }
+
+
+        @Override
+        public String toString() {
+            if (low != null && high != null && lowInclusive && highInclusive &&
+                compareValues(low, high) == 0) {
+                return "{" + low + "}";
+            }
+
+            return (lowInclusive ? "[" : "(") + (low != null ? low : "*") +
+                ", " + (high != null ? high : "*") + (highInclusive ? "]" : ")");
+        }
+    }
+
+
+    /** Orders key ranges by their lower bounds. */
+    private static final Comparator<KeyRange> RANGE_ORDER =
+        new Comparator<KeyRange>() {
+            @Override
+            public int compare(KeyRange r1, KeyRange r2) {
+                if (r1.low == null || r2.low == null) {
+                    if (r1.low == null && r2.low == null)
+                        return 0;
+
+                    return (r1.low == null) ? -1 : 1;
+                }
+
+                int cmp = compareValues(r1.low, r2.low);
+                if (cmp == 0 && r1.lowInclusive != r2.lowInclusive)
+                    cmp = r1.lowInclusive ? -1 : 1;
+
+                return cmp;
+            }
+        };
+
+
+    /** A marker returned when an expression isn't a constant value. */
+    private static final Object NOT_CONSTANT = new Object();
+
+
+    /** The index being used to find tuples. */
+    private IndexInfo indexInfo;
+
+
+    /**
+     * The disjoint ranges of the first index column that tuples are read
+     * from, in increasing order.
+     */
+    private List<KeyRange> keyRanges;
+
+
+    /** The index file, which must be a sequential tuple file. */
+    private SequentialTupleFile indexFile;
+
+
+    /** The table's tuple file, which index entries point into. */
+    private TupleFile tableTupleFile;
+
+
+    /** The index of the <tt>#TUPLE_PTR</tt> column in the index's schema. */
+    private int tuplePtrIndex;
+
+
+    /** The index of the current key range in {@link #keyRanges}. */
+    private int rangeIndex;
+
+
+    /**
+     * The current index entry, or {@code null} if the current key range
+     * hasn't been searched for yet.
+     */
+    private Tuple indexTuple;
+
+
+    /**
+     * Constructs an index scan node that reads the tuples of a table whose
+     * first index column falls within the specified key ranges.
+     *
+     * @param indexInfo the index to use, which must be an ordered index
+     *
+     * @param keyRanges the ranges of the first index column to read, which
+     *        must not overlap
+     *
+     * @param predicate an optional predicate for selection, or {@code null}
+     *        if all tuples within the key ranges should be produced
+     */
+    public IndexScanNode(IndexInfo indexInfo, List<KeyRange> keyRanges,
+                         Expression predicate) {
+        super(predicate);
+
+        if (indexInfo == null)
+            throw new IllegalArgumentException("indexInfo cannot be null");
+
+        if (keyRanges == null)
+            throw new IllegalArgumentException("keyRanges cannot be null");
+
+        if (!(indexInfo.getTupleFile() instanceof SequentialTupleFile)) {
+            throw new IllegalArgumentException("Index " +
+                indexInfo.getIndexName() + " is not an ordered index");
+        }
+
+        this.indexInfo = indexInfo;
+
+        this.keyRanges = new ArrayList<>(keyRanges);
+        Collections.sort(this.keyRanges, RANGE_ORDER);
+
+        indexFile = (SequentialTupleFile) indexInfo.getTupleFile();
+        tableTupleFile = indexInfo.getTableInfo().getTupleFile();
+        tuplePtrIndex = indexFile.getSchema().getColumnIndex(
+            IndexManager.COLNAME_TUPLEPTR);
+    }
+
+
+    /**
+     * Returns the key ranges of the first index column that this node reads.
+     *
+     * @return the key ranges, in increasing order
+     */
+    public List<KeyRange> getKeyRanges() {
+        return Collections.unmodifiableList(keyRanges);
+    }
+
+
+    /**
+     * Returns true if the passed-in object is an <tt>IndexScanNode</tt> with
+     * the same index, key ranges and predicate.
+     *
+     * @param obj the object to check for equality
+     *
+     * @return true if the passed-in object is equal to this object; false
+     *         otherwise
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof IndexScanNode) {
+            IndexScanNode other = (IndexScanNode) obj;
+            return indexFile.equals(other.indexFile) &&
+                keyRanges.equals(other.keyRanges) &&
+                (predicate != null ? predicate.equals(other.predicate) :
+                    other.predicate == null);
+        }
+
+        return false;
+    }
+
+
+    /** Computes the hash-code of the index scan plan node. */
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 31 * hash + (predicate != null ? predicate.hashCode() : 0);
+        hash = 31 * hash + indexFile.hashCode();
+        hash = 31 * hash + keyRanges.hashCode();
+        return hash;
+    }
+
+
+    /**
+     * Creates a copy of this index scan node.  The index information and the
+     * key ranges are immutable, so they are shared with the copy.
+     */
+    @Override
+    protected PlanNode clone() throws CloneNotSupportedException {
+        return super.clone();
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+
+        buf.append("IndexScan[index:  ").append(indexInfo.getTableName());
+        buf.append('.').append(indexInfo.getIndexName());
+        buf.append(", ranges:  ").append(keyRanges);
+
+        if (predicate != null)
+            buf.append(", pred:  ").append(predicate.toString());
+
+        buf.append("]");
+
+        return buf.toString();
+    }
+
+
+    /**
+     * The tuples are produced in the order of the index's columns, since the
+     * key ranges are read in increasing order.
+     */
+    public List<OrderByExpression> resultsOrderedBy() {
+        ArrayList<OrderByExpression> orderSpec = new ArrayList<>();
+
+        Schema tableSchema = tableTupleFile.getSchema();
+        for (int colIndex : indexInfo.getTableColumnRefs().getCols()) {
+            ColumnInfo colInfo = tableSchema.getColumnInfo(colIndex);
+            orderSpec.add(new OrderByExpression(new ColumnValue(
+                new ColumnName(colInfo.getTableName(), colInfo.getName()))));
+        }
+
+        return orderSpec;
+    }
+
+
+    /** This node doesn't support marking. */
+    public boolean supportsMarking() {
+        return false;
+    }
+
+
+    /** This node has no children so of course it doesn't require marking. */
+    public boolean requiresLeftMarking() {
+        return false;
+    }
+
+
+    /** This node has no children so of course it doesn't require marking. */
+    public boolean requiresRightMarking() {
+        return false;
+    }
+
+
+    // Inherit javadocs from base class.
+    public void prepare() {
+        // Grab the schema and statistics from the table file.
+
+        schema = tableTupleFile.getSchema();
+
+        TableStats tableStats = tableTupleFile.getStats();
+        ArrayList<ColumnStats> fileStats = tableStats.getAllColumnStats();
+
+        // Estimate how many index entries fall within the key ranges.
+        int keyColIndex = indexInfo.getTableColumnRefs().getCol(0);
+        SQLDataType keyType =
+            schema.getColumnInfo(keyColIndex).getType().getBaseType();
+
+        float rangeSelectivity = 0;
+        if (keyColIndex < fileStats.size()) {
+            ColumnStats keyStats = fileStats.get(keyColIndex);
+            for (KeyRange range : keyRanges) {
+                rangeSelectivity += SelectivityEstimator.estimateRangeSelectivity(
+                    range.low, range.high, keyType, keyStats);
+            }
+        }
+        else {
+            rangeSelectivity = keyRanges.size() *
+                SelectivityEstimator.DEFAULT_SELECTIVITY;
+        }
+        rangeSelectivity = Math.min(rangeSelectivity, 1.0f);
+
+        float numEntries = rangeSelectivity * tableStats.numTuples;
+
+        // The predicate usually includes the conjuncts that the key ranges
+        // came from, so it can't select more tuples than the ranges hold.
+        float numTuples = Math.min(numEntries,
+            SelectivityEstimator.estimateSelectivity(predicate, schema,
+                fileStats) * tableStats.numTuples);
+
+        // Each key range requires a search down the index, and then each
+        // index entry in the range is read, and its tuple fetched and
+        // checked against the predicate.
+        float searchCost = (float) Math.ceil(
+            Math.log(Math.max(2, tableStats.numTuples)) / Math.log(2));
+        float cpuCost = keyRanges.size() * searchCost + 2 * numEntries;
+
+        // Tuples are fetched in index order rather than table order, so
+        // assume that each one requires a separate page read.
+        long numBlockIOs = keyRanges.size() + (long) Math.ceil(numEntries);
+
+        cost = new PlanCost(numTuples, tableStats.avgTupleSize, cpuCost,
+            numBlockIOs);
+
+        stats = fileStats;
+    }
+
+
+    public void initialize() {
+        super.initialize();
+
+        rangeIndex = 0;
+        indexTuple = null;
+    }
+
+
+    public void cleanUp() {
+        unpinTuple(indexTuple);
+        indexTuple = null;
+    }
+
+
+    /**
+     * Advances the current tuple to the table tuple of the next index entry
+     * within the key ranges.
+     *
+     * @throws IOException if the index or the table couldn't be read
+     */
+    protected void advanceCurrentTuple() throws IOException {
+        while (rangeIndex < keyRanges.size()) {
+            KeyRange range = keyRanges.get(rangeIndex);
+
+            Tuple prevIndexTuple = indexTuple;
+            if (prevIndexTuple == null)
+                indexTuple = findFirstInRange(range);
+            else
+                indexTuple = indexFile.getNextTuple(prevIndexTuple);
+
+            unpinTuple(prevIndexTuple);
+
+            Object key = (indexTuple != null) ?
+                indexTuple.getColumnValue(0) : null;
+
+            if (indexTuple == null || (key != null && range.isAfterRange(key))) {
+                // Move on to the next key range.
+                unpinTuple(indexTuple);
+                indexTuple = null;
+                rangeIndex++;
+                continue;
+            }
+
+            // NULL keys sort first, so they are only seen when the range has
+            // no lower bound.  They never satisfy a comparison.
+            if (key == null)
+                continue;
+
+            FilePointer fptr =
+                (FilePointer) indexTuple.getColumnValue(tuplePtrIndex);
+
+            Tuple tup;
+            try {
+                tup = tableTupleFile.getTuple(fptr);
+            }
+            catch (InvalidFilePointerException e) {
+                throw new IOException("Index " + indexInfo.getIndexName() +
+                    " references a nonexistent tuple at " + fptr, e);
+            }
+
+            // The index refers to every version of a tuple, so skip the
+            // versions that the current transaction can't see.
+            if (tableTupleFile instanceof HeapTupleFile &&
+                !((HeapTupleFile) tableTupleFile).isVisible(
+                    (HeapFilePageTuple) tup)) {
+                unpinTuple(tup);
+                continue;
+            }
+
+            currentTuple = tup;
+            return;
+        }
+
+        currentTuple = null;
+    }
+
+
+    /**
+     * Returns the first index entry at or after the start of a key range, or
+     * {@code null} if there is none.
+     */
+    private Tuple findFirstInRange(KeyRange range) throws IOException {
+        if (range.low == null)
+            return indexFile.getFirstTuple();
+
+        TupleLiteral searchKey = new TupleLiteral(range.low);
+        if (range.lowInclusive) {
+            Tuple tup = indexFile.findFirstTupleEquals(searchKey);
+            if (tup != null)
+                return tup;
+        }
+
+        return indexFile.findFirstTupleGreaterThan(searchKey);
+    }
+
+
+    private static void unpinTuple(Tuple tup) {
+        if (tup != null && tup.isPinned())
+            tup.unpin();
+    }
+
+
+    /** This node doesn't support marking. */
+    public void markCurrentPosition() {
+        throw new UnsupportedOperationException(
+            "Index scan plan-node doesn't support marking.");
+    }
+
+
+    /** This node doesn't support marking. */
+    public void resetToLastMark() {
+        throw new UnsupportedOperationException(
+            "Index scan plan-node doesn't support marking.");
+    }
+
+
+    /**
+     * Finds the key ranges of a column that contain every tuple selected by
+     * a predicate, using the predicate's conjuncts that compare the column
+     * to constant values.  Comparisons (other than <tt>!=</tt>) and
+     * <tt>IN</tt> lists of constants are used; <tt>BETWEEN</tt> is parsed
+     * into two comparisons, so it is used as well.  Constants are converted
+     * to the column's type, widening a range where the conversion loses
+     * information.
+     *
+     * @param predicate the predicate to find key ranges for
+     *
+     * @param schema the schema that the predicate is evaluated against
+     *
+     * @param colIndex the index of the column in the schema
+     *
+     * @return a list of disjoint key ranges in increasing order, which may be
+     *         empty if the predicate can't select any tuples, or {@code null}
+     *         if no conjunct restricts the column
+     */
+    public static List<KeyRange> findKeyRanges(Expression predicate,
+        Schema schema, int colIndex) {
+
+        if (predicate == null)
+            return null;
+
+        SQLDataType colType =
+            schema.getColumnInfo(colIndex).getType().getBaseType();
+
+        HashSet<Expression> conjuncts = new HashSet<>();
+        PredicateUtils.collectConjuncts(predicate, conjuncts);
+
+        List<KeyRange> ranges = null;
+        for (Expression conjunct : conjuncts) {
+            List<KeyRange> conjunctRanges =
+                getConjunctRanges(conjunct, schema, colIndex, colType);
+            if (conjunctRanges == null)
+                continue;
+
+            if (ranges == null) {
+                ranges = conjunctRanges;
+                continue;
+            }
+
+            // Both the conjunct's ranges and the ranges so far are disjoint,
+            // so their pairwise intersections are disjoint too.
+            List<KeyRange> intersection = new ArrayList<>();
+            for (KeyRange r1 : ranges) {
+                for (KeyRange r2 : conjunctRanges) {
+                    KeyRange r = r1.intersect(r2);
+                    if (r != null)
+                        intersection.add(r);
+                }
+            }
+            ranges = intersection;
+        }
+
+        if (ranges != null) {
+            Collections.sort(ranges, RANGE_ORDER);
+
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("Key ranges of column %s for " +
+                    "predicate %s:  %s", schema.getColumnInfo(colIndex),
+                    predicate, ranges));
+            }
+        }
+
+        return ranges;
+    }
+
+
+    /**
+     * Returns the key ranges of a column that a single conjunct selects, or
+     * {@code null} if the conjunct doesn't restrict the column in a way that
+     * key ranges can express.
+     */
+    private static List<KeyRange> getConjunctRanges(Expression conjunct,
+        Schema schema, int colIndex, SQLDataType colType) {
+
+        ArrayList<KeyRange> ranges = new ArrayList<>();
+
+        if (conjunct instanceof CompareOperator) {
+            CompareOperator comp = (CompareOperator) conjunct;
+            CompareOperator.Type compType = comp.getType();
+
+            Object value;
+            if (isColumn(comp.getLeftExpression(), schema, colIndex)) {
+                value = getConstantValue(comp.getRightExpression());
+            }
+            else if (isColumn(comp.getRightExpression(), schema, colIndex)) {
+                value = getConstantValue(comp.getLeftExpression());
+                compType = flipComparison(compType);
+            }
+            else {
+                return null;
+            }
+
+            if (value == NOT_CONSTANT || compType == null ||
+                compType == CompareOperator.Type.NOT_EQUALS) {
+                return null;
+            }
+
+            // Comparisons with NULL are never true.
+            if (value == null)
+                return ranges;
+
+            // A value outside the range of the column's type is larger or
+            // smaller than every key, so the column is either unrestricted
+            // or can't match at all.
+            int outOfRange = TypeConverter.compareToTypeRange(value, colType);
+            if (outOfRange != 0) {
+                boolean allMatch;
+                switch (compType) {
+                    case LESS_THAN:
+                    case LESS_OR_EQUAL:
+                        allMatch = (outOfRange > 0);
+                        break;
+
+                    case GREATER_THAN:
+                    case GREATER_OR_EQUAL:
+                        allMatch = (outOfRange < 0);
+                        break;
+
+                    default:
+                        allMatch = false;
+                }
+
+                if (allMatch)
+                    ranges.add(new KeyRange());
+
+                return ranges;
+            }
+
+            // If the conversion changes the value, make the bound inclusive
+            // so that the range still holds every matching value.
+            Object key;
+            boolean exact;
+            try {
+                key = TypeConverter.getValueOfType(value, colType);
+                exact = (compareValues(key, value) == 0);
+            }
+            catch (TypeCastException e) {
+                return null;
+            }
+
+            switch (compType) {
+                case EQUALS:
+                    if (exact)
+                        ranges.add(new KeyRange(key));
+                    break;
+
+                case LESS_THAN:
+                    ranges.add(new KeyRange(null, false, key, !exact));
+                    break;
+
+                case LESS_OR_EQUAL:
+                    ranges.add(new KeyRange(null, false, key, true));
+                    break;
+
+                case GREATER_THAN:
+                    ranges.add(new KeyRange(key, !exact, null, false));
+                    break;
+
+                case GREATER_OR_EQUAL:
+                    ranges.add(new KeyRange(key, true, null, false));
+                    break;
+
+                default:
+                    return null;
+            }
+
+            return ranges;
+        }
+        else if (conjunct instanceof InValuesOperator) {
+            InValuesOperator in = (InValuesOperator) conjunct;
+            if (!isColumn(in.getExpression(), schema, colIndex))
+                return null;
+
+            ArrayList<Object> keys = new ArrayList<>();
+            for (Expression valueExpr : in.getValues()) {
+                Object value = getConstantValue(valueExpr);
+                if (value == NOT_CONSTANT)
+                    return null;
+
+                if (value == null ||
+                    TypeConverter.compareToTypeRange(value, colType) != 0) {
+                    continue;
+                }
+
+                // A value that changes on conversion can't match the column.
+                Object key;
+                try {
+                    key = TypeConverter.getValueOfType(value, colType);
+                    if (compareValues(key, value) != 0)
+                        continue;
+                }
+                catch (TypeCastException e) {
+                    return null;
+                }
+
+                boolean duplicate = false;
+                for (Object other : keys) {
+                    if (compareValues(key, other) == 0) {
+                        duplicate = true;
+                        break;
+                    }
+                }
+
+                if (!duplicate)
+                    keys.add(key);
+            }
+
+            for (Object key : keys)
+                ranges.add(new KeyRange(key));
+
+            return ranges;
+        }
+
+        return null;
+    }
+
+
+    /** Returns true if an expression is a reference to the column. */
+    private static boolean isColumn(Expression expr, Schema schema,
+                                    int colIndex) {
+        if (!(expr instanceof ColumnValue))
+            return false;
+
+        try {
+            return schema.getColumnIndex(
+                ((ColumnValue) expr).getColumnName()) == colIndex;
+        }
+        catch (SchemaNameException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Returns the value of an expression made up of literals, or
+     * {@link #NOT_CONSTANT} if the expression isn't such an expression.
+     */
+    private static Object getConstantValue(Expression expr) {
+        if (!(expr instanceof LiteralValue || expr instanceof ArithmeticOperator) ||
+            expr.hasSymbols()) {
+            return NOT_CONSTANT;
+        }
+
+        try {
+            return expr.evaluate();
+        }
+        catch (ExpressionException e) {
+            return NOT_CONSTANT;
+        }
+    }
+
+
+    /**
+     * Returns the comparison that results from swapping the sides of a
+     * comparison, or {@code null} if it can't be swapped.
+     */
+    private static CompareOperator.Type flipComparison(
+        CompareOperator.Type compType) {
+
+        switch (compType) {
+            case EQUALS:
+            case NOT_EQUALS:
+                return compType;
+
+            case LESS_THAN:
+                return CompareOperator.Type.GREATER_THAN;
+
+            case LESS_OR_EQUAL:
+                return CompareOperator.Type.GREATER_OR_EQUAL;
+
+            case GREATER_THAN:
+                return CompareOperator.Type.LESS_THAN;
+
+            case GREATER_OR_EQUAL:
+                return CompareOperator.Type.LESS_OR_EQUAL;
+
+            default:
+                return null;
+        }
+    }
+
+
+    /** Compares two non-{@code null} values after coercing them. */
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object value1, Object value2) {
+        TypeConverter.Pair p = TypeConverter.coerceComparison(value1, value2);
+        return ((Comparable<Object>) p.value1).compareTo(p.value2);
+    }
+}
@@ -0,0 +1,608 @@
+package edu.caltech.nanodb.plannodes;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.OrderByExpression;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.expressions.TypeConverter;
+import edu.caltech.nanodb.queryeval.ColumnStats;
+import edu.caltech.nanodb.queryeval.PlanCost;
+import edu.caltech.nanodb.queryeval.SelectivityEstimator;
+import edu.caltech.nanodb.relations.JoinType;
+import edu.caltech.nanodb.relations.Tuple;
+
+
+/**
+ * <p>
+ * This plan node implements a sort-merge join operation.  Both children must
+ * produce their tuples in ascending order of the join keys (see
+ * {@link ThetaJoinNode#findJoinKeys}), with <tt>NULL</tt>s first; the
+ * planner ensures this by putting {@link SortNode}s on top of inputs that
+ * aren't already ordered.  The two inputs are then scanned in step, and each
+ * left tuple is compared against the <em>run</em> of right tuples that have
+ * the same join-key values, with the residual predicate applied to each
+ * pair.  Tuples with a <tt>NULL</tt> join-key value never match anything.
+ * </p>
+ * <p>
+ * When several left tuples have the same join key, the run of right tuples
+ * is scanned again for each of them, using {@link #markCurrentPosition} and
+ * {@link #resetToLastMark} on the right child.  Therefore the right child
+ * must support marking.
+ * </p>
+ * <p>
+ * Inner, left-outer, semi- and anti-joins are supported.  Right-outer joins
+ * can be evaluated as left-outer joins with the children swapped.  Semi- and
+ * anti-joins only produce the columns of the left child.
+ * </p>
+ */
+public class MergeJoinNode extends ThetaJoinNode {
+
+    /** The current left tuple. */
+    private Tuple leftTuple;
+
+
+    /** The join-key values of {@link #leftTuple}. */
+    private TupleLiteral leftKey;
+
+
+    /** True if {@link #leftTuple} has been joined with some right tuple. */
+    private boolean leftMatched;
+
+
+    /** True if the next left tuple must be fetched before continuing. */
+    private boolean needNextLeft;
+
+
+    /** The current right tuple, or {@code null} if the right child is done. */
+    private Tuple rightTuple;
+
+
+    /** The join-key values of {@link #rightTuple}. */
+    private TupleLiteral rightKey;
+
+
+    /**
+     * The join-key values of the run of right tuples that the right child's
+     * mark is positioned at the start of, or {@code null} if the current
+     * left tuple isn't being joined with a run.
+     */
+    private TupleLiteral runKey;
+
+
+    /**
+     * True if the right child must be advanced before continuing, because
+     * the current right tuple was returned as part of a result.
+     */
+    private boolean needNextRight;
+
+
+    /**
+     * The left and right tuples of the result found by {@link #nextResult}.
+     * For semi- and anti-joins the result is just the left tuple, and the
+     * right tuple is {@code null}.
+     */
+    private Tuple resultLeft;
+
+
+    /** The right tuple of the result found by {@link #nextResult}. */
+    private Tuple resultRight;
+
+
+    /** Set to true once the first right tuple has been fetched. */
+    private boolean started;
+
+
+    /** Set to true when we have exhausted all tuples from our subplans. */
+    private boolean done;
+
+
+    public MergeJoinNode(PlanNode leftChild, PlanNode rightChild,
+                         JoinType joinType, Expression predicate) {
+
+        super(leftChild, rightChild, joinType, predicate);
+    }
+
+
+    /**
+     * Checks if the argument is a plan node tree with the same structure, but
+     * not necessarily the same references.
+     *
+     * @param obj the object to which we are comparing
+     */
+    @Override
+    public boolean equals(Object obj) {
+
+        if (obj instanceof MergeJoinNode) {
+            MergeJoinNode other = (MergeJoinNode) obj;
+
+            return joinType == other.joinType &&
+                schemaSwapped == other.schemaSwapped &&
+                (predicate != null ? predicate.equals(other.predicate) :
+                    other.predicate == null) &&
+                leftChild.equals(other.leftChild) &&
+                rightChild.equals(other.rightChild);
+        }
+
+        return false;
+    }
+
+
+    /** Computes the hash-code of the merge-join plan node. */
+    @Override
+    public int hashCode() {
+        int hash = 11;
+        hash = 31 * hash + joinType.hashCode();
+        hash = 31 * hash + (predicate != null ? predicate.hashCode() : 0);
+        hash = 31 * hash + leftChild.hashCode();
+        hash = 31 * hash + rightChild.hashCode();
+        return hash;
+    }
+
+
+    /**
+     * Returns a string representing this merge join's vital information.
+     *
+     * @return a string representing this plan-node.
+     */
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+
+        buf.append("MergeJoin[");
+
+        if (predicate != null)
+            buf.append("pred:  ").append(predicate);
+        else
+            buf.append("no pred");
+
+        if (joinType != JoinType.INNER)
+            buf.append(" (").append(joinType).append(')');
+
+        if (schemaSwapped)
+            buf.append(" (schema swapped)");
+
+        buf.append(']');
+
+        return buf.toString();
+    }
+
+
+    /**
+     * Creates a copy of this plan node and its subtrees.
+     */
+    @Override
+    protected PlanNode clone() throws CloneNotSupportedException {
+        MergeJoinNode node = (MergeJoinNode) super.clone();
+
+        // Clone the predicate.
+        if (predicate != null)
+            node.predicate = predicate.duplicate();
+        else
+            node.predicate = null;
+
+        // The join keys are derived from the predicate by prepare().
+        node.leftKeys = null;
+        node.rightKeys = null;
+        node.residualPredicate = null;
+
+        return node;
+    }
+
+
+    /**
+     * The left tuples are produced in the order of the left child, so the
+     * results have the same ordering as the left child.
+     */
+    @Override
+    public List<OrderByExpression> resultsOrderedBy() {
+        return leftChild.resultsOrderedBy();
+    }
+
+
+    /** Merge joins don't support marking. */
+    public boolean supportsMarking() {
+        return false;
+    }
+
+
+    /** True if the node requires that its left child supports marking. */
+    public boolean requiresLeftMarking() {
+        return false;
+    }
+
+
+    /**
+     * Runs of right tuples are rescanned for left tuples with the same join
+     * key, so the right child must support marking.
+     */
+    public boolean requiresRightMarking() {
+        return true;
+    }
+
+
+    @Override
+    public void prepare() {
+        // Need to prepare the left and right child-nodes before we can do
+        // our own work.
+        leftChild.prepare();
+        rightChild.prepare();
+
+        // Use the parent class' helper-function to prepare the schema.
+        prepareSchemaStats();
+
+        findJoinKeys();
+
+        PlanCost leftCost = leftChild.getCost();
+        PlanCost rightCost = rightChild.getCost();
+
+        float selectivity =
+            SelectivityEstimator.estimateSelectivity(predicate, schema, stats);
+        float tupleProd = leftCost.numTuples * rightCost.numTuples;
+        float tupleSize = leftCost.tupleSize + rightCost.tupleSize;
+
+        float numTuples;
+        switch (joinType) {
+            case CROSS:
+            case INNER:
+                numTuples = selectivity * tupleProd;
+                break;
+            case LEFT_OUTER:
+                numTuples = selectivity * tupleProd +
+                    (1 - selectivity) * leftCost.numTuples;
+                break;
+            case SEMIJOIN:
+                numTuples = selectivity * leftCost.numTuples;
+                break;
+            case ANTIJOIN:
+                numTuples = (1 - selectivity) * leftCost.numTuples;
+                break;
+            case RIGHT_OUTER:
+            case FULL_OUTER:
+            default:
+                throw new IllegalArgumentException(
+                    "This type of join not supported by node.");
+        }
+
+        if (joinType == JoinType.SEMIJOIN || joinType == JoinType.ANTIJOIN) {
+            // Only the left tuples are produced.
+            schema = leftSchema;
+            stats = new ArrayList<ColumnStats>(leftStats);
+            tupleSize = leftCost.tupleSize;
+        }
+
+        // Each input tuple is read once, and each pair of tuples with
+        // matching keys is checked against the residual predicate.  The
+        // cost of sorting the inputs is included in the children's costs.
+        float cpuCost = leftCost.cpuCost + rightCost.cpuCost;
+        cpuCost += leftCost.numTuples + rightCost.numTuples;
+        cpuCost += selectivity * tupleProd;
+
+        long numBlockIOs = leftCost.numBlockIOs + rightCost.numBlockIOs;
+
+        cost = new PlanCost(numTuples, tupleSize, cpuCost, numBlockIOs);
+    }
+
+
+    public void initialize() {
+        super.initialize();
+
+        leftTuple = null;
+        leftKey = null;
+        leftMatched = false;
+        needNextLeft = true;
+
+        rightTuple = null;
+        rightKey = null;
+        runKey = null;
+        needNextRight = false;
+
+        resultLeft = null;
+        resultRight = null;
+
+        started = false;
+        done = false;
+    }
+
+
+    /**
+     * Returns the next joined tuple that satisfies the join condition.
+     *
+     * @return the next joined tuple that satisfies the join condition.
+     *
+     * @throws IOException if a db file failed to open at some point
+     */
+    public Tuple getNextTuple() throws IOException {
+        if (!nextResult())
+            return null;
+
+        if (resultRight == null)
+            return resultLeft;
+
+        return joinTuples(resultLeft, resultRight);
+    }
+
+
+    /**
+     * Reads the left input a batch at a time, and stores each result
+     * directly in the batch rather than building a joined tuple for it.  The
+     * right input is still read a tuple at a time, since runs of right
+     * tuples are rescanned using marking.
+     */
+    @Override
+    public TupleBatch getNextBatch() throws IOException {
+        readLeftBatches = true;
+
+        TupleBatch batch = clearResultBatch();
+        while (!batch.isFull() && nextResult()) {
+            if (resultRight == null)
+                batch.addTuple(resultLeft);
+            else
+                addJoinedRow(batch, resultLeft, resultRight);
+        }
+
+        return (batch.getNumSelected() > 0) ? batch : null;
+    }
+
+
+    /**
+     * Finds the next result of the join, and stores its tuples in
+     * {@link #resultLeft} and {@link #resultRight}.
+     *
+     * @return true if a result was found, or false if the join is done
+     *
+     * @throws IOException if a db file failed to open at some point
+     */
+    private boolean nextResult() throws IOException {
+        if (done)
+            return false;
+
+        if (!started) {
+            started = true;
+            advanceRight();
+        }
+
+        // The tuples of a result are only advanced at the start of the next
+        // call, since the children may reuse them once they are advanced.
+        if (needNextRight) {
+            needNextRight = false;
+            advanceRight();
+        }
+
+        while (true) {
+            if (needNextLeft) {
+                needNextLeft = false;
+                if (!advanceLeft()) {
+                    done = true;
+                    return false;
+                }
+            }
+
+            if (runKey != null) {
+                // The left tuple has the same key as the run of right tuples
+                // starting at the right child's mark.
+                while (rightTuple != null &&
+                       compareKeys(leftKey, rightKey) == 0) {
+                    if (canJoinTuples(leftTuple, rightTuple)) {
+                        leftMatched = true;
+
+                        // Semi- and anti-joins only need one match.
+                        if (joinType == JoinType.SEMIJOIN ||
+                            joinType == JoinType.ANTIJOIN) {
+                            break;
+                        }
+
+                        needNextRight = true;
+                        setResult(leftTuple, rightTuple);
+                        return true;
+                    }
+
+                    advanceRight();
+                }
+
+                needNextLeft = true;
+                if (finishLeftTuple())
+                    return true;
+
+                continue;
+            }
+
+            int compare = 0;
+            if (rightTuple != null && !hasNullValue(leftKey))
+                compare = compareKeys(leftKey, rightKey);
+
+            if (rightTuple == null || hasNullValue(leftKey) || compare < 0) {
+                // No right tuple can match the left tuple.
+                if (rightTuple == null && (joinType == JoinType.INNER ||
+                    joinType == JoinType.CROSS ||
+                    joinType == JoinType.SEMIJOIN)) {
+                    // No remaining left tuple can produce a result.
+                    done = true;
+                    return false;
+                }
+
+                needNextLeft = true;
+                if (finishLeftTuple())
+                    return true;
+            }
+            else if (compare > 0) {
+                advanceRight();
+            }
+            else {
+                // Found the start of a run of right tuples that match the
+                // left tuple.
+                rightChild.markCurrentPosition();
+                runKey = rightKey;
+            }
+        }
+    }
+
+
+    /**
+     * Fetches the next left tuple.  If the previous left tuple was joined
+     * with a run of right tuples, the right child is reset to the start of
+     * the run if the new left tuple has the same key, or moved past the run
+     * otherwise.
+     *
+     * @return true if there is another left tuple, or false if the left child
+     *         is exhausted
+     *
+     * @throws IOException if a db file failed to open at some point
+     */
+    private boolean advanceLeft() throws IOException {
+        leftTuple = nextLeftTuple();
+        leftMatched = false;
+
+        if (leftTuple == null) {
+            leftKey = null;
+            return false;
+        }
+
+        leftKey = evaluateKey(leftKeys, leftSchema, leftTuple);
+
+        if (runKey != null) {
+            if (!hasNullValue(leftKey) && compareKeys(leftKey, runKey) == 0) {
+                rightChild.resetToLastMark();
+                advanceRight();
+            }
+            else {
+                while (rightTuple != null && compareKeys(rightKey, runKey) == 0)
+                    advanceRight();
+
+                runKey = null;
+            }
+        }
+
+        return true;
+    }
+
+
+    /** Fetches the next right tuple, and computes its join-key values. */
+    private void advanceRight() throws IOException {
+        rightTuple = rightChild.getNextTuple();
+        if (rightTuple != null)
+            rightKey = evaluateKey(rightKeys, rightSchema, rightTuple);
+        else
+            rightKey = null;
+    }
+
+
+    /**
+     * Finds the result that the current left tuple produces once all right
+     * tuples it could join with have been considered, returning false if it
+     * produces nothing more.
+     */
+    private boolean finishLeftTuple() {
+        switch (joinType) {
+            case LEFT_OUTER:
+                if (!leftMatched) {
+                    setResult(leftTuple,
+                        new TupleLiteral(rightSchema.numColumns()));
+                    return true;
+                }
+                break;
+
+            case SEMIJOIN:
+                if (leftMatched) {
+                    setResult(leftTuple, null);
+                    return true;
+                }
+                break;
+
+            case ANTIJOIN:
+                if (!leftMatched) {
+                    setResult(leftTuple, null);
+                    return true;
+                }
+                break;
+
+            default:
+                // Do nothing.
+        }
+
+        return false;
+    }
+
+
+    private void setResult(Tuple left, Tuple right) {
+        resultLeft = left;
+        resultRight = right;
+    }
+
+
+    /**
+     * Compares two join keys in the same way that the inputs are sorted:
+     * column by column, with <tt>NULL</tt>s before all other values.
+     */
+    private static int compareKeys(TupleLiteral key1, TupleLiteral key2) {
+        for (int i = 0; i < key1.getColumnCount(); i++) {
+            Object value1 = key1.getColumnValue(i);
+            Object value2 = key2.getColumnValue(i);
+
+            int compareResult;
+            if (value1 == null) {
+                compareResult = (value2 == null) ? 0 : -1;
+            }
+            else if (value2 == null) {
+                compareResult = 1;
+            }
+            else {
+                TypeConverter.Pair p =
+                    TypeConverter.coerceComparison(value1, value2);
+
+                @SuppressWarnings("unchecked")
+                Comparable<Object> comparable = (Comparable<Object>) p.value1;
+                compareResult = comparable.compareTo(p.value2);
+            }
+
+            if (compareResult != 0)
+                return compareResult;
+        }
+
+        return 0;
+    }
+
+
+    /**
+     * Combines the left tuple and the right tuple.  Semi- and anti-joins
+     * never call this, since they produce left tuples unchanged.
+     */
+    @Override
+    protected Tuple joinTuples(Tuple left, Tuple right) {
+        TupleLiteral joinedTuple = new TupleLiteral();
+
+        if (!schemaSwapped) {
+            joinedTuple.appendTuple(left);
+            joinedTuple.appendTuple(right);
+        }
+        else {
+            joinedTuple.appendTuple(right);
+            joinedTuple.appendTuple(left);
+        }
+
+        return joinedTuple;
+    }
+
+
+    /** Merge joins don't support marking. */
+    public void markCurrentPosition() {
+        throw new UnsupportedOperationException(
+            "Merge-join plan-node doesn't support marking.");
+    }
+
+
+    /** Merge joins don't support marking. */
+    public void resetToLastMark() {
+        throw new UnsupportedOperationException(
+            "Merge-join plan-node doesn't support marking.");
+    }
+
+
+    public void cleanUp() {
+        leftChild.cleanUp();
+        rightChild.cleanUp();
+    }
+}
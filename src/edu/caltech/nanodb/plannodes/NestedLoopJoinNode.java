@@ -29,7 +29,13 @@ public class NestedLoopJoinNode extends ThetaJoinNode {
 
     /** Most recently retrieved tuple of the left relation. */
     private Tuple leftTuple;
-    private Tuple prevLeftTuple;
+
+    /**
+     * True if {@link #leftTuple} has joined with some right tuple.  This is
+     * tracked with a flag rather than by remembering the tuple, since child
+     * nodes may return the same tuple object for every tuple they produce.
+     */
+    private boolean leftMatched;
 
     /** Most recently retrieved tuple of the right relation. */
     private Tuple rightTuple;
@@ -58,7 +64,9 @@ public class NestedLoopJoinNode extends ThetaJoinNode {
         if (obj instanceof NestedLoopJoinNode) {
             NestedLoopJoinNode other = (NestedLoopJoinNode) obj;
 
-            return predicate.equals(other.predicate) &&
+            return joinType == other.joinType &&
+                (predicate != null ? predicate.equals(other.predicate) :
+                    other.predicate == null) &&
                 leftChild.equals(other.leftChild) &&
                 rightChild.equals(other.rightChild);
         }
@@ -71,6 +79,7 @@ public class NestedLoopJoinNode extends ThetaJoinNode {
     @Override
     public int hashCode() {
         int hash = 7;
+        hash = 31 * hash + joinType.hashCode();
         hash = 31 * hash + (predicate != null ? predicate.hashCode() : 0);
         hash = 31 * hash + leftChild.hashCode();
         hash = 31 * hash + rightChild.hashCode();
@@ -94,6 +103,9 @@ public class NestedLoopJoinNode extends ThetaJoinNode {
         else
             buf.append("no pred");
 
+        if (joinType != JoinType.INNER)
+            buf.append(" (").append(joinType).append(')');
+
         if (schemaSwapped)
             buf.append(" (schema swapped)");
 
@@ -187,6 +199,13 @@ public class NestedLoopJoinNode extends ThetaJoinNode {
                 throw new IllegalArgumentException("This type of join not supported by node.");
         }
 
+        if (joinType == JoinType.SEMIJOIN || joinType == JoinType.ANTIJOIN) {
+            // Only the left tuples are produced.
+            schema = leftSchema;
+            stats = new ArrayList<ColumnStats>(leftStats);
+            tupleSize = leftChild.cost.tupleSize;
+        }
+
         // Need to compute child nodes
         float cpuCost = leftChild.cost.cpuCost + rightChild.cost.cpuCost;
         // Need to iterate through every possible combination of tuples
@@ -205,7 +224,7 @@ public class NestedLoopJoinNode extends ThetaJoinNode {
 
         done = false;
         leftTuple = null;
-        prevLeftTuple = null;
+        leftMatched = false;
         rightTuple = null;
     }
 
@@ -220,6 +239,10 @@ public class NestedLoopJoinNode extends ThetaJoinNode {
     public Tuple getNextTuple() throws IOException {
         if (done)
             return null;
+
+        if (joinType == JoinType.SEMIJOIN || joinType == JoinType.ANTIJOIN)
+            return getNextSemiOrAntiJoinTuple();
+
         while (getTuplesToJoin()) {
             switch (joinType) {
                 case CROSS:
@@ -232,28 +255,23 @@ public class NestedLoopJoinNode extends ThetaJoinNode {
                         // Output leftTuple attached null values if this
                         // leftTuple hasn't been returned
                         rightChild.initialize();
-                        Tuple currLeft = leftTuple;
-                        leftTuple = leftChild.getNextTuple();
-                        if (currLeft != prevLeftTuple) {
-                            prevLeftTuple = currLeft;
-                            return joinTuples(currLeft,
+                        Tuple result = null;
+                        if (!leftMatched) {
+                            // Join before advancing the left child, which
+                            // may reuse the tuple object.
+                            result = joinTuples(leftTuple,
                                     new TupleLiteral(rightSchema.numColumns()));
                         }
-                        else {
-                            continue;
-                        }
+                        leftTuple = leftChild.getNextTuple();
+                        leftMatched = false;
+                        if (result != null)
+                            return result;
                     }
                     else {
-                        prevLeftTuple = leftTuple;
+                        leftMatched = true;
                         return joinTuples(leftTuple, rightTuple);
                     }
-                case SEMIJOIN:
-                case ANTIJOIN:
-                    // Return current tuple and increment leftTuple
-                    Tuple currLeft = leftTuple;
-                    leftTuple = leftChild.getNextTuple();
-                    rightChild.initialize();
-                    return leftTuple;
+                    break;
                 case RIGHT_OUTER:
                 case FULL_OUTER:
                 default:
@@ -264,6 +282,40 @@ public class NestedLoopJoinNode extends ThetaJoinNode {
     }
 
 
+    /**
+     * Returns the next left tuple that joins with some right tuple, for
+     * semijoins, or that doesn't join with any right tuple, for antijoins.
+     * The right relation is only scanned until the first match is found.
+     *
+     * @return the next left tuple to produce, or {@code null} if there are
+     *         no more
+     *
+     * @throws IOException if a db file failed to open at some point
+     */
+    private Tuple getNextSemiOrAntiJoinTuple() throws IOException {
+        while (true) {
+            leftTuple = leftChild.getNextTuple();
+            if (leftTuple == null) {
+                done = true;
+                return null;
+            }
+
+            rightChild.initialize();
+            boolean matched = false;
+            while (!matched) {
+                rightTuple = rightChild.getNextTuple();
+                if (rightTuple == null)
+                    break;
+
+                matched = canJoinTuples();
+            }
+
+            if (matched == (joinType == JoinType.SEMIJOIN))
+                return leftTuple;
+        }
+    }
+
+
     /**
      * This helper function implements the logic that sets {@link #leftTuple}
      * and {@link #rightTuple} based on the nested-loop logic.
@@ -286,35 +338,20 @@ public class NestedLoopJoinNode extends ThetaJoinNode {
         // Get next rightTuple
         rightTuple = rightChild.getNextTuple();
 
-        if (joinType == joinType.ANTIJOIN) {
-            while (leftTuple != null && rightTuple != null) {
-                // Matches at least one tuple on right
-                if (validTuples()) {
-                    // Check next left tuple
-                    leftTuple = leftChild.getNextTuple();
-                    rightChild.initialize();
-                }
+        while (leftTuple != null) {
+            if (validTuples()) {
+                return true;
+            }
+            // Increment rightTuple
+            if (rightTuple != null) {
                 rightTuple = rightChild.getNextTuple();
             }
-            // No matches
-            return leftTuple != null;
-        }
-        else {
-            while (leftTuple != null) {
-                if (validTuples()) {
-                    return true;
-                }
-                // Increment rightTuple
-                if (rightTuple != null) {
-                    rightTuple = rightChild.getNextTuple();
-                }
-                // If we reached the end of rightChild, go back to to beginning
-                // and increment left tuple
-                else {
-                    rightChild.initialize();
-                    rightTuple = rightChild.getNextTuple();
-                    leftTuple = leftChild.getNextTuple();
-                }
+            // If we reached the end of rightChild, go back to to beginning
+            // and increment left tuple
+            else {
+                rightChild.initialize();
+                rightTuple = rightChild.getNextTuple();
+                leftTuple = leftChild.getNextTuple();
             }
         }
         return false;
@@ -336,10 +373,6 @@ public class NestedLoopJoinNode extends ThetaJoinNode {
                 return rightTuple != null && canJoinTuples();
             case LEFT_OUTER:
                 return rightTuple == null || canJoinTuples();
-            case SEMIJOIN:
-                return rightTuple != null && canJoinTuples();
-            case ANTIJOIN:
-                return canJoinTuples();
             default:
                 throw new IOException("This type of join not supported by node.");
 
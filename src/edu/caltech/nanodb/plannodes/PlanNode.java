@@ -49,7 +49,10 @@ public abstract class PlanNode implements Cloneable {
         MATERIALIZE,
 
         /** A limit-offset plan-node. */
-        LIMITOFFSET
+        LIMITOFFSET,
+
+        /** An exchange operator, which evaluates its subplan in parallel. */
+        EXCHANGE
 
     }
 
@@ -108,6 +111,13 @@ public abstract class PlanNode implements Cloneable {
     protected Environment environment = new Environment();
 
 
+    /**
+     * The batch that this node's results are stored in by
+     * {@link #getNextBatch}, which is allocated the first time it is used.
+     */
+    private TupleBatch rowBatch;
+
+
     /**
      * Constructs a PlanNode with a given operation type.  This method will be
      * called by subclass constructors.
@@ -344,6 +354,62 @@ public abstract class PlanNode implements Cloneable {
         throws IllegalStateException, IOException;
 
 
+    /**
+     * <p>
+     * Gets the next batch of rows produced by this plan node, so that
+     * operations can process many rows at a time instead of calling
+     * {@link #getNextTuple} once per row.  Only the rows in the batch's
+     * selection vector are part of the results.  The batch belongs to this
+     * node, and is only valid until the next call to this method.
+     * </p>
+     * <p>
+     * This implementation fills a batch by calling {@link #getNextTuple}
+     * and copying each tuple, so that every plan node supports batches.
+     * Plan nodes that can produce batches more efficiently should override
+     * it.  A consumer must use either this method or {@link #getNextTuple}
+     * for all the results it reads between calls to {@link #initialize},
+     * and cannot mark a position in the results while it reads batches.
+     * </p>
+     *
+     * @return the next batch of rows produced by this plan, which has at
+     *         least one selected row, or <tt>null</tt> if the plan has
+     *         finished producing rows.
+     *
+     * @throws IOException if table data cannot be read from the filesystem
+     * @throws IllegalStateException if a plan node is not properly initialized
+     */
+    public TupleBatch getNextBatch()
+        throws IllegalStateException, IOException {
+
+        TupleBatch batch = clearResultBatch();
+        while (!batch.isFull()) {
+            Tuple tup = getNextTuple();
+            if (tup == null)
+                break;
+
+            batch.addTuple(tup);
+        }
+
+        return (batch.getNumSelected() > 0) ? batch : null;
+    }
+
+
+    /**
+     * Returns an empty batch with this node's schema, for an implementation
+     * of {@link #getNextBatch} to store results in.  The same batch is
+     * returned on every call, so it is only valid until the next call.
+     *
+     * @return an empty batch with this node's schema
+     */
+    protected TupleBatch clearResultBatch() {
+        if (rowBatch == null || rowBatch.getSchema() != schema)
+            rowBatch = new TupleBatch(schema);
+
+        rowBatch.clear();
+        return rowBatch;
+    }
+
+
     /**
      * Marks the current tuple in the tuple-stream produced by this node.  The
      * {@link #resetToLastMark} method can be used to return to this tuple.
@@ -525,6 +591,7 @@ public abstract class PlanNode implements Cloneable {
 
         // Environment is used for execution.
         node.environment = new Environment();
+        node.rowBatch = null;
 
         // Copy the children if applicable.
         if (this.leftChild != null)
@@ -1,8 +1,12 @@
 package edu.caltech.nanodb.plannodes;
 
 
+import java.io.IOException;
+
 import edu.caltech.nanodb.expressions.BooleanOperator;
 import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.storage.heapfile.HeapTupleFile;
 
 
 /**
@@ -10,6 +14,40 @@ import edu.caltech.nanodb.expressions.Expression;
  * analyzing and manipulating query execution plans.
  */
 public class PlanUtils {
+    /**
+     * The system property that can be used to specify how many bytes of
+     * memory a single plan node may use for hash tables and other working
+     * data, before it must spill to disk.
+     */
+    public static final String PROP_WORK_MEM = "nanodb.workmem";
+
+
+    /** The default working-memory size is 4MB. */
+    public static final long DEFAULT_WORK_MEM = 4 * 1024 * 1024;
+
+
+    /**
+     * The system property that can be used to specify how many worker
+     * threads may evaluate parts of a query plan in parallel.  A value of 1
+     * disables parallel evaluation.  The default is the number of processors
+     * available to the JVM.
+     */
+    public static final String PROP_PARALLELISM = "nanodb.parallelism";
+
+
+    /**
+     * The system property that can be used to specify how many data pages a
+     * table must have before scans of it are split into partitions that are
+     * evaluated in parallel.
+     */
+    public static final String PROP_PARALLEL_MIN_PAGES =
+        "nanodb.parallel.minpages";
+
+
+    /** By default, tables of 64 pages or more are scanned in parallel. */
+    public static final int DEFAULT_PARALLEL_MIN_PAGES = 64;
+
+
     /**
      * This class should not be instantiated.
      */
@@ -90,4 +128,169 @@ public class PlanUtils {
 
         return plan;
     }
+
+
+    /**
+     * If a plan is a leaf plan that reads a single table, returns the
+     * file-scan node at the bottom of the plan.  Leaf plans consist of a
+     * {@link FileScanNode}, optionally renamed by a {@link RenameNode}, and
+     * optionally filtered by a {@link SimpleFilterNode} above that.
+     *
+     * @param plan the plan to examine
+     *
+     * @return the file-scan node that the leaf plan reads, or {@code null} if
+     *         the plan isn't a leaf plan
+     */
+    public static FileScanNode getLeafScan(PlanNode plan) {
+        if (plan instanceof SimpleFilterNode)
+            plan = plan.leftChild;
+
+        if (plan instanceof RenameNode)
+            plan = plan.leftChild;
+
+        if (plan instanceof FileScanNode)
+            return (FileScanNode) plan;
+
+        return null;
+    }
+
+
+    /**
+     * Adds exchange nodes to a plan, so that the parts of the plan that scan
+     * large heap files are evaluated in parallel.  Each maximal
+     * {@link ExchangeNode#isPartitionable partitionable} subplan that scans
+     * at least {@link #getParallelMinPages} data pages is wrapped in an
+     * exchange node.  Only subplans that are read once from start to finish
+     * are considered, so the inner inputs of nested-loop joins and inputs
+     * that must support marking are left alone.
+     * <p>
+     * The plan must already be prepared.  Plans that modify the tables
+     * they read should not be parallelized.
+     *
+     * @param plan the plan to add exchange nodes to
+     *
+     * @return the (possibly new) top plan-node of the plan
+     *
+     * @throws IOException if an IO error occurs while checking the sizes of
+     *         the files that the plan scans
+     */
+    public static PlanNode addExchangeNodes(PlanNode plan) throws IOException {
+        int parallelism = getParallelism();
+        if (parallelism <= 1)
+            return plan;
+
+        return addExchangeNodes(plan, parallelism);
+    }
+
+
+    private static PlanNode addExchangeNodes(PlanNode plan, int parallelism)
+        throws IOException {
+
+        if (plan instanceof ExchangeNode)
+            return plan;
+
+        if (ExchangeNode.isPartitionable(plan)) {
+            HeapTupleFile tupleFile =
+                (HeapTupleFile) getBottomNode(plan).getTupleFile();
+
+            // Page 0 is the header page.
+            int numDataPages = tupleFile.getDBFile().getNumPages() - 1;
+            if (numDataPages < getParallelMinPages())
+                return plan;
+
+            ExchangeNode exchange = new ExchangeNode(plan, parallelism);
+            exchange.prepare();
+            return exchange;
+        }
+
+        if (plan.leftChild != null && !plan.requiresLeftMarking())
+            plan.leftChild = addExchangeNodes(plan.leftChild, parallelism);
+
+        // Hash joins read both of their inputs once, but other joins may
+        // scan their right input many times.
+        if (plan.rightChild != null && plan instanceof HashJoinNode &&
+            !plan.requiresRightMarking()) {
+            plan.rightChild = addExchangeNodes(plan.rightChild, parallelism);
+        }
+
+        return plan;
+    }
+
+
+    /** Returns the file-scan node at the bottom of a chain of nodes. */
+    private static FileScanNode getBottomNode(PlanNode plan) {
+        while (!(plan instanceof FileScanNode))
+            plan = plan.leftChild;
+
+        return (FileScanNode) plan;
+    }
+
+
+    /**
+     * Returns the number of bytes of memory a single plan node may use for
+     * its working data, as specified by the {@link #PROP_WORK_MEM} property.
+     *
+     * @return the working-memory size in bytes
+     */
+    public static long getWorkMemSize() {
+        return Long.getLong(PROP_WORK_MEM, DEFAULT_WORK_MEM);
+    }
+
+
+    /**
+     * Returns the number of worker threads that may evaluate parts of a
+     * query plan in parallel, as specified by the {@link #PROP_PARALLELISM}
+     * property.
+     *
+     * @return the degree of parallelism, which is at least 1
+     */
+    public static int getParallelism() {
+        int parallelism = Integer.getInteger(PROP_PARALLELISM,
+            Runtime.getRuntime().availableProcessors());
+        return Math.max(1, parallelism);
+    }
+
+
+    /**
+     * Returns the number of data pages a table must have before scans of it
+     * are evaluated in parallel, as specified by the
+     * {@link #PROP_PARALLEL_MIN_PAGES} property.
+     *
+     * @return the minimum number of data pages for a parallel scan
+     */
+    public static int getParallelMinPages() {
+        return Integer.getInteger(PROP_PARALLEL_MIN_PAGES,
+            DEFAULT_PARALLEL_MIN_PAGES);
+    }
+
+
+    /**
+     * Makes a rough estimate of how many bytes of memory a tuple occupies
+     * when it is held in memory as a
+     * {@link edu.caltech.nanodb.expressions.TupleLiteral}.  This is used by
+     * plan nodes to decide when their working data exceeds
+     * {@link #getWorkMemSize}.
+     *
+     * @param tuple the tuple to estimate the size of
+     *
+     * @return an estimate of the tuple's in-memory size in bytes
+     */
+    public static long estimateMemorySize(Tuple tuple) {
+        // Object header, value list, and backing array.
+        long size = 48;
+
+        int numCols = tuple.getColumnCount();
+        for (int i = 0; i < numCols; i++) {
+            Object value = tuple.getColumnValue(i);
+
+            // Array slot, plus the boxed value if there is one.
+            size += 8;
+            if (value instanceof String)
+                size += 40 + 2 * ((String) value).length();
+            else if (value != null)
+                size += 16;
+        }
+
+        return size;
+    }
 }
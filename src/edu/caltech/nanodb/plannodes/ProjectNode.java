@@ -59,6 +59,23 @@ public class ProjectNode extends PlanNode {
     private List<ColumnInfo> nonWildcardColumnInfos;
 
 
+    /**
+     * If every value of the projection is a column of the input or a
+     * wildcard, this array holds the index in the input schema of each
+     * column of the results, so that batches can be projected without
+     * evaluating any expressions.  Otherwise, this is {@code null}.
+     */
+    private int[] projectedColumns;
+
+
+    /**
+     * The expressions of the projection, compiled for evaluation against
+     * input tuples, or {@code null} before the first tuple is projected.
+     * Wildcard values have no compiled expression.
+     */
+    private CompiledExpression[] compiledValues;
+
+
     /** Current tuple the node is projecting (in NON-projected form). */
     private Tuple currentTuple;
 
@@ -123,6 +140,16 @@ public class ProjectNode extends PlanNode {
     }
 
 
+    /**
+     * Returns the projection specification of this node.
+     *
+     * @return the expressions specifying how input tuples are projected
+     */
+    public List<SelectValue> getSelectValues() {
+        return projectionSpec;
+    }
+
+
     /**
      * This helper method sets the {@link #projectIsTrivial} flag based on
      * whether the passed-in projection specification is a single wildcard
@@ -214,6 +241,9 @@ public class ProjectNode extends PlanNode {
 
         stats = new ArrayList<ColumnStats>();
 
+        ArrayList<Integer> inputColumns = new ArrayList<>();
+        boolean allColumns = true;
+
         for (SelectValue selVal : projectionSpec) {
             if (selVal.isWildcard()) {
                 ColumnName wildcard = selVal.getWildcard();
@@ -227,12 +257,17 @@ public class ProjectNode extends PlanNode {
                     schema.append(found.values());
                     for (Integer idx : found.keySet())
                         stats.add(inputStats.get(idx));
+
+                    inputColumns.addAll(found.keySet());
                 }
                 else {
                     // No table is specified, so this is all columns in the
                     // child schema.
                     schema.append(inputSchema);
                     stats.addAll(inputStats);
+
+                    for (int i = 0; i < inputSchema.numColumns(); i++)
+                        inputColumns.add(i);
                 }
             }
             else if (selVal.isExpression()) {
@@ -252,12 +287,15 @@ public class ProjectNode extends PlanNode {
                     int colIndex = inputSchema.getColumnIndex(colValue.getColumnName());
                     colInfo = inputSchema.getColumnInfo(colIndex);
                     stats.add(inputStats.get(colIndex));
+
+                    inputColumns.add(colIndex);
                 }
                 else {
                     // This is a more complicated expression.  Guess the schema,
                     // and assume that every row will have a distinct value.
 
                     colInfo = expr.getColumnInfo(inputSchema);
+                    allColumns = false;
 
                     // TODO:  We could be more sophisticated about this...
                     ColumnStats colStat = new ColumnStats();
@@ -296,6 +334,13 @@ public class ProjectNode extends PlanNode {
                     "Scalar subquery support is currently incomplete.");
             }
         }
+
+        projectedColumns = null;
+        if (allColumns) {
+            projectedColumns = new int[inputColumns.size()];
+            for (int i = 0; i < projectedColumns.length; i++)
+                projectedColumns[i] = inputColumns.get(i);
+        }
     }
 
 
@@ -361,6 +406,33 @@ public class ProjectNode extends PlanNode {
     }
 
 
+    /**
+     * If the projection only selects columns of the input, each batch of the
+     * subplan is projected by presenting its column vectors in the order of
+     * this node's schema, without copying any values.  Otherwise, batches
+     * are filled one projected tuple at a time.
+     */
+    @Override
+    public TupleBatch getNextBatch() throws IOException {
+        if (leftChild == null || projectedColumns == null)
+            return super.getNextBatch();
+
+        if (done)
+            return null;
+
+        TupleBatch input = leftChild.getNextBatch();
+        if (input == null) {
+            done = true;
+            return null;
+        }
+
+        if (isTrivial())
+            return input;
+
+        return TupleBatch.project(input, schema, projectedColumns);
+    }
+
+
     /** Helper function that advances the current tuple reference in the node.
      *
      * @throws java.lang.IllegalStateException if this is a node no child.
@@ -388,8 +460,8 @@ public class ProjectNode extends PlanNode {
 
         // The projection is *not* trivial, so we need to do some evaluatin'.
 
-        environment.clear();
-        environment.addTuple(inputSchema, tuple);
+        if (compiledValues == null)
+            compileValues();
 
         // Create an empty tuple to add values to.
         TupleLiteral newTuple = new TupleLiteral();
@@ -399,7 +471,8 @@ public class ProjectNode extends PlanNode {
         Iterator<ColumnInfo> iterNonWildcardCols =
             nonWildcardColumnInfos.iterator();
 
-        for (SelectValue selVal : projectionSpec) {
+        for (int iVal = 0; iVal < projectionSpec.size(); iVal++) {
+            SelectValue selVal = projectionSpec.get(iVal);
             if (selVal.isWildcard()) {
                 // This value is a wildcard.  Find the columns that match the
                 // wildcard, then add their values one by one.
@@ -430,12 +503,14 @@ public class ProjectNode extends PlanNode {
 
                 // Get the result of the projection for this value.
 
-                Object result = expr.evaluate(environment);
+                Object result = compiledValues[iVal].evaluate(tuple);
                 ColumnInfo colInfo = iterNonWildcardCols.next();
 
-                logger.debug(String.format(
-                    "Expression:  %s \tColInfo:  %s\tAlias:  %s",
-                    expr, colInfo, alias));
+                if (logger.isDebugEnabled()) {
+                    logger.debug(String.format(
+                        "Expression:  %s \tColInfo:  %s\tAlias:  %s",
+                        expr, colInfo, alias));
+                }
 
                 // Add the result to the tuple.
 
@@ -463,11 +538,29 @@ public class ProjectNode extends PlanNode {
     }
 
 
+    /**
+     * Compiles the expressions of the projection against the input schema,
+     * so that column references are resolved once rather than for every
+     * tuple.
+     */
+    private void compileValues() {
+        compiledValues = new CompiledExpression[projectionSpec.size()];
+        for (int i = 0; i < compiledValues.length; i++) {
+            SelectValue selVal = projectionSpec.get(i);
+            if (selVal.isExpression()) {
+                compiledValues[i] = ExpressionCompiler.compile(
+                    selVal.getExpression(), inputSchema, environment);
+            }
+        }
+    }
+
+
     /** Do initialization for the select operation.  Resets state variables. */
     public void initialize() {
         super.initialize();
 
         done = false;
+        compiledValues = null;
         currentTuple = null;
 
         if (leftChild != null)
@@ -553,6 +646,7 @@ public class ProjectNode extends PlanNode {
             newList.add(newSel);
         }
         node.projectionSpec = newList;
+        node.compiledValues = null;
 
         return node;
     }
@@ -41,21 +41,31 @@ public class RenameNode extends PlanNode {
 
     @Override
     public List<OrderByExpression> resultsOrderedBy() {
+        List<OrderByExpression> childOrder = leftChild.resultsOrderedBy();
+        if (childOrder == null)
+            return null;
+
         List<OrderByExpression> resultsOrderedBy = new ArrayList<OrderByExpression>();
 
         logger.debug("Renaming table name in ORDER BY expression");
 
-        for (OrderByExpression orderByExpr : leftChild.resultsOrderedBy()) {
+        for (OrderByExpression orderByExpr : childOrder) {
             Expression expr = orderByExpr.getExpression().duplicate();
 
+            // Only column references can be renamed; the ordering on the
+            // columns before this one still holds, though.
+            if (!(expr instanceof ColumnValue))
+                break;
+
             ((ColumnValue) expr).setColumnName(new ColumnName(
                     resultTableName,
                     expr.getColumnInfo(leftChild.getSchema()).getName()));
 
-            resultsOrderedBy.add(new OrderByExpression(expr));
+            resultsOrderedBy.add(
+                new OrderByExpression(expr, orderByExpr.isAscending()));
         }
 
-        return resultsOrderedBy;
+        return resultsOrderedBy.isEmpty() ? null : resultsOrderedBy;
     }
 
     @Override
@@ -5,7 +5,9 @@ import java.io.IOException;
 
 import edu.caltech.nanodb.relations.Tuple;
 
+import edu.caltech.nanodb.expressions.CompiledExpression;
 import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.ExpressionCompiler;
 
 
 /**
@@ -23,7 +25,23 @@ public abstract class SelectNode extends PlanNode {
 
 
     /** True if we have finished scanning or pulling tuples from children. */
-    private boolean done;
+    protected boolean done;
+
+
+    /**
+     * The predicate, compiled for evaluation against this node's tuples.
+     * It is compiled when it is first used after the node is initialized,
+     * since the planner may still change the predicate before then.
+     */
+    private CompiledExpression compiledPredicate;
+
+
+    /** The batch filled by {@link #getNextBatch}. */
+    private TupleBatch batch;
+
+
+    /** The predicate, prepared for evaluation against batches. */
+    private BatchPredicate batchPredicate;
 
 
     /**
@@ -57,6 +75,10 @@ public abstract class SelectNode extends PlanNode {
         else
             node.predicate = null;
 
+        node.compiledPredicate = null;
+        node.batch = null;
+        node.batchPredicate = null;
+
         return node;
     }
 
@@ -68,6 +90,9 @@ public abstract class SelectNode extends PlanNode {
 
         currentTuple = null;
         done = false;
+
+        compiledPredicate = null;
+        batchPredicate = null;
     }
 
 
@@ -116,6 +141,52 @@ public abstract class SelectNode extends PlanNode {
     }
 
 
+    /**
+     * Gets the next batch of tuples selected by the predicate.  The batch is
+     * filled from {@link #advanceCurrentTuple}, and the predicate is then
+     * applied to the whole batch.
+     *
+     * @return the next batch of selected tuples, or <tt>null</tt> if there
+     *         are no more tuples
+     *
+     * @throws java.io.IOException if a db file failed to open at some point
+     */
+    @Override
+    public TupleBatch getNextBatch() throws IllegalStateException, IOException {
+        if (done)
+            return null;
+
+        if (batch == null || batch.getSchema() != schema)
+            batch = new TupleBatch(schema);
+
+        while (true) {
+            batch.clear();
+            while (!batch.isFull()) {
+                if (currentTuple != null && currentTuple.isPinned())
+                    currentTuple.unpin();
+
+                advanceCurrentTuple();
+                if (currentTuple == null) {
+                    done = true;
+                    break;
+                }
+
+                batch.addTuple(currentTuple);
+            }
+
+            if (currentTuple != null && currentTuple.isPinned())
+                currentTuple.unpin();
+
+            selectBatchRows(batch);
+            if (batch.getNumSelected() > 0)
+                return batch;
+
+            if (done)
+                return null;
+        }
+    }
+
+
     /** Helper function that advances the current tuple reference in the node.
      *
      * @throws java.lang.IllegalStateException if this is a node with no
@@ -126,15 +197,52 @@ public abstract class SelectNode extends PlanNode {
         throws IllegalStateException, IOException;
 
 
+    /**
+     * Returns the part of the predicate that must be evaluated against the
+     * tuples produced by {@link #advanceCurrentTuple}.  By default this is
+     * the whole predicate, but a node that applies some of the predicate
+     * while it produces tuples only needs to evaluate the rest of it.
+     *
+     * @return the predicate to evaluate against tuples, or {@code null} if
+     *         all tuples are selected
+     */
+    protected Expression getTuplePredicate() {
+        return predicate;
+    }
+
+
     protected boolean isTupleSelected(Tuple tuple) {
         // If the predicate was not set, return true.
-        if (predicate == null)
+        Expression tuplePredicate = getTuplePredicate();
+        if (tuplePredicate == null)
             return true;
 
-        // Set up the environment and then evaluate the predicate!
+        if (compiledPredicate == null) {
+            compiledPredicate =
+                ExpressionCompiler.compile(tuplePredicate, schema, environment);
+        }
+
+        return compiledPredicate.evaluatePredicate(tuple);
+    }
+
+
+    /**
+     * Removes the rows that aren't selected by the predicate from a batch's
+     * selection vector.
+     *
+     * @param batch a batch of rows with this node's schema
+     */
+    protected void selectBatchRows(TupleBatch batch) {
+        // If the predicate was not set, every row is selected.
+        Expression tuplePredicate = getTuplePredicate();
+        if (tuplePredicate == null)
+            return;
+
+        if (batchPredicate == null) {
+            batchPredicate =
+                new BatchPredicate(tuplePredicate, schema, environment);
+        }
 
-        environment.clear();
-        environment.addTuple(schema, tuple);
-        return predicate.evaluatePredicate(environment);
+        batchPredicate.apply(batch);
     }
 }
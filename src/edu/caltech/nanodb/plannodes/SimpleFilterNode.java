@@ -144,6 +144,29 @@ public class SimpleFilterNode extends SelectNode {
     }
 
 
+    /**
+     * Filters the batches produced by the subplan, rather than filling
+     * batches one tuple at a time.
+     */
+    @Override
+    public TupleBatch getNextBatch() throws IOException {
+        if (done)
+            return null;
+
+        while (true) {
+            TupleBatch batch = leftChild.getNextBatch();
+            if (batch == null) {
+                done = true;
+                return null;
+            }
+
+            selectBatchRows(batch);
+            if (batch.getNumSelected() > 0)
+                return batch;
+        }
+    }
+
+
     /**
      * The simple filter node relies on marking/reset support in its subplan.
      */
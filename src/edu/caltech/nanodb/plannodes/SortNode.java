@@ -4,6 +4,7 @@ package edu.caltech.nanodb.plannodes;
 import java.io.IOException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -17,24 +18,230 @@ import edu.caltech.nanodb.queryeval.PlanCost;
 
 import edu.caltech.nanodb.relations.Tuple;
 
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.SpillFile;
+
 
 /**
- * This plan node provides a simple in-memory sort operation for use in
- * ORDER BY clauses.
+ * <p>
+ * This plan node provides a sort operation for use in ORDER BY clauses, and
+ * for plan nodes that require sorted inputs.
+ * </p>
+ * <p>
+ * If the input fits in {@link PlanUtils#getWorkMemSize} bytes, it is simply
+ * sorted in memory.  Otherwise this node performs an external merge sort:
+ * the input is read in memory-sized runs, each of which is sorted and
+ * written to a {@link SpillFile}.  The runs are then merged with a loser
+ * tree.  If there are more runs than can be merged at once, groups of runs
+ * are first merged into longer runs until few enough remain.
+ * </p>
+ *
+ * @design Runs are written to {@link SpillFile}s rather than to temporary
+ *         {@link edu.caltech.nanodb.storage.DBFile}s in the Buffer Manager.
+ *         A run is written once from start to end and then read once from
+ *         start to end, so caching its pages gains nothing, and the pages
+ *         would only evict the table and index pages that other sessions
+ *         are using.  Run pages also need none of the Buffer Manager's
+ *         other services:  they are never shared between sessions, never
+ *         logged, and never recovered after a crash.  The memory used to
+ *         read runs is still bounded, since {@link #getMergeFanIn} charges
+ *         each run's read buffer against the working memory.  The hash
+ *         join and the hashed aggregate spill the same way.
  */
 public class SortNode extends PlanNode {
     /** A logging object for reporting anything interesting that happens. */
     private static Logger logger = Logger.getLogger(SortNode.class);
 
+    /** An estimate of the memory used by each tuple held for sorting. */
+    private static final int ENTRY_OVERHEAD = 16;
+
+    /**
+     * An estimate of the memory used to read each run while runs are being
+     * merged.  This is the size of a spill file's read buffer.
+     */
+    private static final int RUN_BUFFER_SIZE = 8192;
+
+
+    /**
+     * This class merges several sorted runs into a single sorted sequence,
+     * using a loser tree.  Each internal node of the tree records the run
+     * that lost the comparison at that node, and the overall winner is kept
+     * at the root, so that replacing the winner takes only
+     * <em>log<sub>2</sub>k</em> comparisons for <em>k</em> runs.
+     */
+    private static class RunMerger {
+        /** The spilled runs being merged. */
+        private List<SpillFile> runs;
+
+        /** A run held in memory, which is merged after the spilled runs. */
+        private List<Tuple> memoryRun;
+
+        /** The index of the next tuple to read from {@link #memoryRun}. */
+        private int memoryRunIndex;
+
+        /** The comparator that orders the runs' tuples. */
+        private TupleComparator comparator;
+
+        /** The total number of runs being merged. */
+        private int numRuns;
+
+        /**
+         * The next tuple from each run, or {@code null} if the run is
+         * exhausted.
+         */
+        private Tuple[] heads;
+
+        /**
+         * The loser tree.  Element 0 is the index of the run holding the
+         * smallest next tuple; the other elements are the internal nodes of
+         * the tree, and hold the indexes of the runs that lost there.
+         */
+        private int[] tree;
+
+
+        /**
+         * Starts merging the specified runs.
+         *
+         * @param runs the spilled runs to merge, which must each be sorted
+         * @param memoryRun an additional sorted run held in memory, or
+         *        {@code null} if there is none
+         * @param comparator the comparator that orders the runs' tuples
+         *
+         * @throws IOException if a run cannot be read
+         */
+        RunMerger(List<SpillFile> runs, List<Tuple> memoryRun,
+                  TupleComparator comparator) throws IOException {
+            this.runs = runs;
+            this.memoryRun = memoryRun;
+            this.comparator = comparator;
+
+            numRuns = runs.size() + (memoryRun != null ? 1 : 0);
+            heads = new Tuple[numRuns];
+            for (SpillFile run : runs)
+                run.startReading();
+
+            for (int i = 0; i < numRuns; i++)
+                heads[i] = readRun(i);
+
+            // Every node starts out holding the index numRuns, a virtual run
+            // that beats all others.  Adjusting for each real run pushes the
+            // virtual run up and out of the tree.
+            tree = new int[numRuns];
+            Arrays.fill(tree, numRuns);
+            for (int i = numRuns - 1; i >= 0; i--)
+                adjust(i);
+        }
+
+
+        /**
+         * Returns the next tuple in the merged sequence, or {@code null} if
+         * all runs are exhausted.
+         *
+         * @return the next tuple in the merged sequence
+         *
+         * @throws IOException if a run cannot be read
+         */
+        Tuple getNextTuple() throws IOException {
+            int winner = tree[0];
+            Tuple tup = heads[winner];
+            if (tup == null)
+                return null;
+
+            heads[winner] = readRun(winner);
+            adjust(winner);
+            return tup;
+        }
+
+
+        /** Reads the next tuple of the specified run. */
+        private Tuple readRun(int run) throws IOException {
+            if (run < runs.size())
+                return runs.get(run).getNextTuple();
+
+            if (memoryRunIndex < memoryRun.size())
+                return memoryRun.get(memoryRunIndex++);
+
+            return null;
+        }
+
+
+        /**
+         * Replays the matches on the path from the specified run's leaf to
+         * the root, after the run's next tuple has changed.
+         */
+        private void adjust(int run) {
+            int winner = run;
+            for (int node = (run + numRuns) / 2; node > 0; node /= 2) {
+                if (beats(tree[node], winner)) {
+                    int loser = winner;
+                    winner = tree[node];
+                    tree[node] = loser;
+                }
+            }
+            tree[0] = winner;
+        }
+
+
+        /**
+         * Returns true if run <tt>a</tt>'s next tuple comes before run
+         * <tt>b</tt>'s.  Exhausted runs come after all others, and ties go
+         * to the earlier run so that the merge is stable.
+         */
+        private boolean beats(int a, int b) {
+            if (a == numRuns)
+                return true;
+            if (b == numRuns)
+                return false;
+
+            if (heads[a] == null)
+                return false;
+            if (heads[b] == null)
+                return true;
+
+            int cmp = comparator.compare(heads[a], heads[b]);
+            return cmp < 0 || (cmp == 0 && a < b);
+        }
+    }
+
+
     /** A specification of the ordering of the results of this plan node. */
     private List<OrderByExpression> orderByExprs;
 
     /**
-     * This array receives all tuples from the child plan node, and then they
-     * are sorted and passed along to the parent from this array.
+     * This array receives tuples from the child plan node.  If the input
+     * fits in memory, they are sorted and passed along to the parent from
+     * this array.  Otherwise it holds the run currently being formed.
      */
     private ArrayList<Tuple> sortedResults;
 
+    /** An estimate of the memory used by the tuples in the current run. */
+    private long memoryUsed;
+
+    /** The runs that have been sorted and spilled to disk. */
+    private List<SpillFile> runs;
+
+    /**
+     * The merger that produces the results once the input has been spilled,
+     * or {@code null} if the input was sorted in memory.
+     */
+    private RunMerger merger;
+
+    /** The tuple most recently returned from the merged runs. */
+    private Tuple lastTuple;
+
+    /**
+     * When the input has been spilled, the tuples returned since the last
+     * mark, starting with the marked tuple, so that they can be returned
+     * again after {@link #resetToLastMark}.
+     */
+    private ArrayList<Tuple> markedTuples;
+
+    /**
+     * The number of tuples in {@link #markedTuples} that have been returned
+     * since the last mark or reset.
+     */
+    private int markedTuplesIndex;
+
     /**
      * The comparator that imposes the ordering specification of the sort node.
      */
@@ -43,6 +250,9 @@ public class SortNode extends PlanNode {
     /** The index of the current tuple in the sorted results. */
     private int currentTupleIndex;
 
+    /** The index of the marked tuple in the sorted results, or -1 if none. */
+    private int markedTupleIndex;
+
     /**
      * A flag indicating whether the sort node has generate all of its output or not.
      */
@@ -76,9 +286,13 @@ public class SortNode extends PlanNode {
     }
 
 
-    /** The sort plan-node doesn't support marking. */
+    /**
+     * The sort plan-node supports marking.  If the input was sorted in
+     * memory, the results are simply revisited.  Otherwise the tuples
+     * returned since the mark are held in memory.
+     */
     public boolean supportsMarking() {
-        return false;
+        return true;
     }
 
 
@@ -118,7 +332,21 @@ public class SortNode extends PlanNode {
             cost = new PlanCost(childCost);
 
             // Sorting in memory is an N*log(N) operation.
-            cost.cpuCost += cost.numTuples * (float) Math.log(cost.numTuples);
+            if (cost.numTuples > 1)
+                cost.cpuCost += cost.numTuples * (float) Math.log(cost.numTuples);
+
+            // If the input doesn't fit in memory, each merge pass writes out
+            // and reads back the entire input.
+            float inputBytes = cost.numTuples * cost.tupleSize;
+            long workMem = PlanUtils.getWorkMemSize();
+            if (inputBytes > workMem) {
+                double numRuns = Math.ceil(inputBytes / workMem);
+                int numPasses = (int) Math.max(1, Math.ceil(
+                    Math.log(numRuns) / Math.log(getMergeFanIn())));
+
+                cost.numBlockIOs += 2 * numPasses * (long) Math.ceil(
+                    inputBytes / DBFile.DEFAULT_PAGESIZE);
+            }
         }
         else {
             logger.info(
@@ -139,7 +367,14 @@ public class SortNode extends PlanNode {
     public void initialize() {
         super.initialize();
 
+        deleteRuns();
+
         sortedResults = null;
+        memoryUsed = 0;
+        merger = null;
+        lastTuple = null;
+        markedTuples = null;
+        markedTupleIndex = -1;
         done = false;
 
         leftChild.initialize();
@@ -165,6 +400,9 @@ public class SortNode extends PlanNode {
         if (sortedResults == null)
             prepareSortedResults();
 
+        if (merger != null)
+            return getNextMergedTuple();
+
         Tuple tup = null;
         if (currentTupleIndex < sortedResults.size()) {
             tup = sortedResults.get(currentTupleIndex);
@@ -178,8 +416,36 @@ public class SortNode extends PlanNode {
     }
 
 
+    /**
+     * Returns the next tuple from the merged runs, or from the tuples saved
+     * since the last mark if the node has been reset to the mark.
+     */
+    private Tuple getNextMergedTuple() throws IOException {
+        Tuple tup;
+        if (markedTuples != null && markedTuplesIndex < markedTuples.size()) {
+            tup = markedTuples.get(markedTuplesIndex);
+            markedTuplesIndex++;
+        }
+        else {
+            tup = merger.getNextTuple();
+            if (tup != null && markedTuples != null) {
+                markedTuples.add(tup);
+                markedTuplesIndex++;
+            }
+        }
+
+        if (tup == null)
+            done = true;
+
+        lastTuple = tup;
+        return tup;
+    }
+
+
     private void prepareSortedResults() throws IOException {
         sortedResults = new ArrayList<Tuple>();
+        runs = new ArrayList<SpillFile>();
+        long workMem = PlanUtils.getWorkMemSize();
         while (true) {
             // Get the next tuple.  If it's not cacheable then make a copy
             // of it before storing it away.  (This is cheating; we are
@@ -192,37 +458,167 @@ public class SortNode extends PlanNode {
 
             if (tup.isDiskBacked()) {
                 Tuple copy = new TupleLiteral(tup);
-                tup.unpin();
+                if (tup.isPinned())
+                    tup.unpin();
+
                 tup = copy;
             }
 
             sortedResults.add(tup);
+
+            memoryUsed += PlanUtils.estimateMemorySize(tup) + ENTRY_OVERHEAD;
+            if (memoryUsed > workMem)
+                spillRun();
         }
 
         Collections.sort(sortedResults, comparator);
 
         currentTupleIndex = 0;
+
+        if (!runs.isEmpty()) {
+            // The last run stays in memory, and is merged with the others.
+            mergeRunsToFanIn();
+            merger = new RunMerger(runs, sortedResults, comparator);
+        }
     }
 
 
-    /** The sort plan-node doesn't support marking. */
+    /**
+     * Sorts the tuples held in memory, and writes them to a new run on disk.
+     */
+    private void spillRun() throws IOException {
+        Collections.sort(sortedResults, comparator);
+
+        SpillFile run = new SpillFile("sort");
+        runs.add(run);
+        for (Tuple tup : sortedResults)
+            run.addTuple(tup);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Spilled run %d of %d tuples",
+                runs.size(), sortedResults.size()));
+        }
+
+        sortedResults.clear();
+        memoryUsed = 0;
+    }
+
+
+    /**
+     * Merges groups of adjacent runs into longer runs, until there are few
+     * enough runs left to be merged at once along with the run held in
+     * memory.  Adjacent runs are merged so that the runs stay in the order
+     * of the input, which keeps the sort stable.
+     */
+    private void mergeRunsToFanIn() throws IOException {
+        int fanIn = getMergeFanIn();
+        while (runs.size() >= fanIn) {
+            List<SpillFile> mergedRuns = new ArrayList<SpillFile>();
+            for (int i = 0; i < runs.size(); i += fanIn) {
+                List<SpillFile> group =
+                    runs.subList(i, Math.min(i + fanIn, runs.size()));
+                if (group.size() == 1) {
+                    mergedRuns.add(group.get(0));
+                    continue;
+                }
+
+                SpillFile mergedRun = new SpillFile("sort");
+                RunMerger groupMerger = new RunMerger(group, null, comparator);
+                while (true) {
+                    Tuple tup = groupMerger.getNextTuple();
+                    if (tup == null)
+                        break;
+
+                    mergedRun.addTuple(tup);
+                }
+
+                for (SpillFile run : group)
+                    run.delete();
+
+                mergedRuns.add(mergedRun);
+            }
+
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("Merged %d runs into %d runs",
+                    runs.size(), mergedRuns.size()));
+            }
+
+            runs = mergedRuns;
+        }
+    }
+
+
+    /**
+     * Returns the number of runs that may be merged at once, which is
+     * limited by the memory needed to read each run.
+     */
+    private static int getMergeFanIn() {
+        return (int) Math.max(2,
+            PlanUtils.getWorkMemSize() / RUN_BUFFER_SIZE);
+    }
+
+
+    /** Deletes any runs left over from the last evaluation. */
+    private void deleteRuns() {
+        if (runs != null) {
+            for (SpillFile run : runs)
+                run.delete();
+
+            runs = null;
+        }
+    }
+
+
+    /**
+     * Marks the tuple most recently returned by {@link #getNextTuple}, so
+     * that it will be returned again after {@link #resetToLastMark}.
+     */
     public void markCurrentPosition() {
-        throw new UnsupportedOperationException(
-            "Sort plan-node doesn't support marking.");
+        if (merger != null) {
+            if (lastTuple == null)
+                throw new IllegalStateException("There is no current tuple!");
+
+            // Tuples before the mark will never be returned again.
+            markedTuples = new ArrayList<Tuple>();
+            markedTuples.add(lastTuple);
+            markedTuplesIndex = 1;
+            return;
+        }
+
+        if (sortedResults == null || currentTupleIndex == 0)
+            throw new IllegalStateException("There is no current tuple!");
+
+        markedTupleIndex = currentTupleIndex - 1;
     }
 
 
-    /** The sort plan-node doesn't support marking. */
     public void resetToLastMark() {
-        throw new UnsupportedOperationException(
-            "Sort plan-node doesn't support marking.");
+        if (merger != null) {
+            if (markedTuples == null)
+                throw new IllegalStateException("There is no last-marked tuple!");
+
+            markedTuplesIndex = 0;
+            done = false;
+            return;
+        }
+
+        if (markedTupleIndex == -1)
+            throw new IllegalStateException("There is no last-marked tuple!");
+
+        currentTupleIndex = markedTupleIndex;
+        done = false;
     }
 
 
     /** Clean up after evaluation of the sort plan-node. */
     public void cleanUp() {
-        // Allow this collection to be garbage-collected.
+        // Allow these collections to be garbage-collected.
         sortedResults = null;
+        merger = null;
+        lastTuple = null;
+        markedTuples = null;
+
+        deleteRuns();
 
         leftChild.cleanUp();
     }
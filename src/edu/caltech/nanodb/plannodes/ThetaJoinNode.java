@@ -1,15 +1,24 @@
 package edu.caltech.nanodb.plannodes;
 
 
+import edu.caltech.nanodb.expressions.ColumnName;
+import edu.caltech.nanodb.expressions.CompareOperator;
 import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.PredicateUtils;
 import edu.caltech.nanodb.expressions.TupleLiteral;
 
 import edu.caltech.nanodb.queryeval.ColumnStats;
 import edu.caltech.nanodb.relations.JoinType;
+import edu.caltech.nanodb.relations.SQLDataType;
 import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.SchemaNameException;
 import edu.caltech.nanodb.relations.Tuple;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
 
 
 /**
@@ -17,6 +26,9 @@ import java.util.ArrayList;
  * operation.  This is the relational algebra ThetaJoin operator.
  */
 public abstract class ThetaJoinNode extends PlanNode {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(ThetaJoinNode.class);
+
 
     /** The type of the join operation to perform. */
     public JoinType joinType;
@@ -59,6 +71,48 @@ public abstract class ThetaJoinNode extends PlanNode {
     protected boolean schemaSwapped = false;
 
 
+    /**
+     * The join-key expressions that are evaluated against left tuples, as
+     * found by {@link #findJoinKeys}.
+     */
+    protected ArrayList<Expression> leftKeys;
+
+
+    /**
+     * The join-key expressions that are evaluated against right tuples, as
+     * found by {@link #findJoinKeys}.
+     */
+    protected ArrayList<Expression> rightKeys;
+
+
+    /**
+     * The part of the join predicate that isn't covered by the join keys, or
+     * {@code null} if the join keys cover the entire predicate.
+     */
+    protected Expression residualPredicate;
+
+
+    /**
+     * True if {@link #nextLeftTuple} reads the left subplan's results a
+     * batch at a time.  Subclasses set this when their own results are read
+     * with {@link #getNextBatch}, since a consumer reads all of a plan's
+     * results either a tuple at a time or a batch at a time.
+     */
+    protected boolean readLeftBatches;
+
+
+    /** The batch of left tuples being read by {@link #nextLeftTuple}. */
+    private TupleBatch leftBatch;
+
+
+    /** The index in the selection vector of the next row of the batch. */
+    private int leftBatchIndex;
+
+
+    /** The view of the current row of {@link #leftBatch}. */
+    private TupleBatch.RowView leftRow;
+
+
     /**
      * Constructs a ThetaJoinNode that joins the tuples from the left and right
      * subplans, using the specified join type and join predicate.
@@ -116,6 +170,65 @@ public abstract class ThetaJoinNode extends PlanNode {
     }
 
 
+    /**
+     * Stores the combination of the left tuple and the right tuple as a new
+     * row of a batch, taking {@link #schemaSwapped} into account in the same
+     * way as {@link #joinTuples}, but without building a joined tuple.
+     *
+     * @param batch the batch to add the row to
+     * @param left the left tuple
+     * @param right the right tuple
+     */
+    protected void addJoinedRow(TupleBatch batch, Tuple left, Tuple right) {
+        Tuple first = left;
+        Tuple second = right;
+        if (schemaSwapped) {
+            first = right;
+            second = left;
+        }
+
+        int row = batch.addRow();
+        int numFirst = first.getColumnCount();
+        for (int i = 0; i < numFirst; i++)
+            batch.setValue(i, row, first.getColumnValue(i));
+
+        for (int i = 0; i < second.getColumnCount(); i++)
+            batch.setValue(numFirst + i, row, second.getColumnValue(i));
+    }
+
+
+    /**
+     * Returns the next tuple produced by the left subplan.  If
+     * {@link #readLeftBatches} is set, the left subplan's results are read a
+     * batch at a time, and the tuple returned is a view of a row in the
+     * current batch, which is only valid until the next call.
+     *
+     * @return the next left tuple, or {@code null} if the left subplan has
+     *         finished producing tuples
+     *
+     * @throws IOException if a db file failed to open at some point
+     */
+    protected Tuple nextLeftTuple() throws IOException {
+        if (!readLeftBatches)
+            return leftChild.getNextTuple();
+
+        while (leftBatch == null ||
+               leftBatchIndex == leftBatch.getNumSelected()) {
+            leftBatch = leftChild.getNextBatch();
+            if (leftBatch == null)
+                return null;
+
+            leftBatchIndex = 0;
+            leftRow = leftBatch.getRowView(0);
+        }
+
+        leftRow.setRow(leftBatch.getSelection()[leftBatchIndex]);
+        leftBatchIndex++;
+
+        return leftRow;
+    }
+
+
     /**
      * Do initialization for the join operation. Resets state variables.
      * Initialize both children.
@@ -123,6 +236,10 @@ public abstract class ThetaJoinNode extends PlanNode {
     public void initialize() {
         super.initialize();
 
+        readLeftBatches = false;
+        leftBatch = null;
+        leftRow = null;
+
         if (joinType == JoinType.FULL_OUTER) {
             throw new UnsupportedOperationException(
                 "We don't support joins of type " + joinType + " yet!");
@@ -191,4 +308,214 @@ public abstract class ThetaJoinNode extends PlanNode {
     public boolean isSwapped() {
         return schemaSwapped;
     }
+
+
+    /**
+     * This helper method can be used by the {@link #prepare} method of join
+     * nodes that match tuples on their join-key values, such as hash joins and
+     * merge joins.  The join predicate is split into <em>join keys</em>,
+     * conjuncts of the form <tt>expr1 = expr2</tt> where one side only refers
+     * to the left child and the other side only refers to the right child,
+     * and a <em>residual predicate</em> made up of the remaining conjuncts.
+     * The {@link #leftSchema} and {@link #rightSchema} fields must already be
+     * set, e.g. by {@link #prepareSchemaStats}.
+     */
+    protected void findJoinKeys() {
+        leftKeys = new ArrayList<Expression>();
+        rightKeys = new ArrayList<Expression>();
+
+        ArrayList<Expression> conjuncts = new ArrayList<Expression>();
+        PredicateUtils.collectConjuncts(predicate, conjuncts);
+
+        ArrayList<Expression> residual = new ArrayList<Expression>();
+        for (Expression conjunct : conjuncts) {
+            if (!addJoinKey(conjunct))
+                residual.add(conjunct);
+        }
+
+        residualPredicate = PredicateUtils.makePredicate(residual);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Join keys %s = %s, residual %s",
+                leftKeys, rightKeys, residualPredicate));
+        }
+    }
+
+
+    /**
+     * Adds the conjunct to the join keys if it is an equality comparison
+     * between a left-side and a right-side expression of compatible types.
+     *
+     * @param conjunct the conjunct of the join predicate to examine
+     *
+     * @return true if the conjunct was added to the join keys
+     */
+    private boolean addJoinKey(Expression conjunct) {
+        if (!(conjunct instanceof CompareOperator))
+            return false;
+
+        CompareOperator cmp = (CompareOperator) conjunct;
+        if (cmp.getType() != CompareOperator.Type.EQUALS)
+            return false;
+
+        Expression leftExpr = cmp.getLeftExpression();
+        Expression rightExpr = cmp.getRightExpression();
+        if (usesOnlySchema(leftExpr, rightSchema) &&
+            usesOnlySchema(rightExpr, leftSchema)) {
+            Expression tmp = leftExpr;
+            leftExpr = rightExpr;
+            rightExpr = tmp;
+        }
+        else if (!usesOnlySchema(leftExpr, leftSchema) ||
+                 !usesOnlySchema(rightExpr, rightSchema)) {
+            return false;
+        }
+
+        SQLDataType leftType, rightType;
+        try {
+            leftType = leftExpr.getColumnInfo(leftSchema).getType().getBaseType();
+            rightType =
+                rightExpr.getColumnInfo(rightSchema).getType().getBaseType();
+        }
+        catch (SchemaNameException e) {
+            return false;
+        }
+
+        // Only use keys whose equality doesn't depend on type coercions
+        // beyond widening one number to another, so that equal keys also
+        // hash the same way and sort into the same position.
+        boolean compatible = (leftType == rightType) ||
+            (isKeyNumber(leftType) && isKeyNumber(rightType)) ||
+            (SQLDataType.isString(leftType) && SQLDataType.isString(rightType));
+
+        if (!compatible)
+            return false;
+
+        leftKeys.add(leftExpr);
+        rightKeys.add(rightExpr);
+        return true;
+    }
+
+
+    private static boolean isKeyNumber(SQLDataType type) {
+        return SQLDataType.isNumber(type) && type != SQLDataType.NUMERIC;
+    }
+
+
+    /**
+     * Returns true if the expression refers to at least one column, and all
+     * of the columns it refers to are in the specified schema.
+     */
+    private static boolean usesOnlySchema(Expression expr, Schema schema) {
+        ArrayList<ColumnName> symbols = new ArrayList<ColumnName>();
+        expr.getAllSymbols(symbols);
+
+        if (symbols.isEmpty())
+            return false;
+
+        for (ColumnName colName : symbols) {
+            try {
+                if (colName.isColumnWildcard() ||
+                    schema.getColumnIndex(colName) == -1) {
+                    return false;
+                }
+            }
+            catch (SchemaNameException e) {
+                // The column name is ambiguous in this schema.
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Returns the number of join keys found in the join predicate.  This is
+     * only valid after {@link #prepare} has been called on a node that uses
+     * join keys.  Such a node with no join keys still produces correct
+     * results, but must compare every pair of tuples, so the planner should
+     * only choose it when this is nonzero.
+     *
+     * @return the number of join keys found in the join predicate
+     */
+    public int getNumJoinKeys() {
+        return leftKeys.size();
+    }
+
+
+    /**
+     * Returns the join-key expressions that are evaluated against tuples of
+     * the left child.  This is only valid after {@link #prepare} has been
+     * called on a node that uses join keys.
+     *
+     * @return the join-key expressions of the left child
+     */
+    public List<Expression> getLeftJoinKeys() {
+        return leftKeys;
+    }
+
+
+    /**
+     * Returns the join-key expressions that are evaluated against tuples of
+     * the right child.  This is only valid after {@link #prepare} has been
+     * called on a node that uses join keys.
+     *
+     * @return the join-key expressions of the right child
+     */
+    public List<Expression> getRightJoinKeys() {
+        return rightKeys;
+    }
+
+
+    /**
+     * Evaluates the join-key expressions against a tuple.
+     *
+     * @param keys the join-key expressions to evaluate
+     * @param tupSchema the schema of the tuple
+     * @param tup the tuple to compute the key of
+     *
+     * @return a tuple holding the values of the join keys
+     */
+    protected TupleLiteral evaluateKey(List<Expression> keys, Schema tupSchema,
+                                       Tuple tup) {
+        environment.clear();
+        environment.addTuple(tupSchema, tup);
+
+        TupleLiteral key = new TupleLiteral(keys.size());
+        for (int i = 0; i < keys.size(); i++)
+            key.setColumnValue(i, keys.get(i).evaluate(environment));
+
+        return key;
+    }
+
+
+    /**
+     * Returns true if any value in the key is <tt>NULL</tt>.  Such keys never
+     * match anything.
+     */
+    protected static boolean hasNullValue(TupleLiteral key) {
+        for (int i = 0; i < key.getColumnCount(); i++) {
+            if (key.isNullValue(i))
+                return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Returns true if a pair of tuples whose join keys match also satisfies
+     * the residual predicate.
+     */
+    protected boolean canJoinTuples(Tuple leftTuple, Tuple rightTuple) {
+        // If there is no residual predicate, matching keys are enough.
+        if (residualPredicate == null)
+            return true;
+
+        environment.clear();
+        environment.addTuple(leftSchema, leftTuple);
+        environment.addTuple(rightSchema, rightTuple);
+
+        return residualPredicate.evaluatePredicate(environment);
+    }
 }
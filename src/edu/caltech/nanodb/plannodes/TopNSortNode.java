@@ -0,0 +1,321 @@
+package edu.caltech.nanodb.plannodes;
+
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.expressions.OrderByExpression;
+import edu.caltech.nanodb.expressions.TupleComparator;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+
+import edu.caltech.nanodb.queryeval.PlanCost;
+
+import edu.caltech.nanodb.relations.Tuple;
+
+
+/**
+ * This plan node produces only the first <em>N</em> tuples of its input in
+ * sorted order, for queries with both ORDER BY and LIMIT clauses.  Rather
+ * than sorting the entire input, the node keeps a heap of the <em>N</em>
+ * smallest tuples seen so far, so that it takes <em>O(n log N)</em> time
+ * and only needs memory for <em>N</em> tuples.  Tuples that compare as
+ * equal are produced in the order they were read, as a {@link SortNode}
+ * would produce them.
+ */
+public class TopNSortNode extends PlanNode {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(TopNSortNode.class);
+
+
+    /** A tuple in the heap, along with the order it was read in. */
+    private static class HeapEntry {
+        Tuple tuple;
+
+        long sequence;
+
+        HeapEntry(Tuple tuple, long sequence) {
+            this.tuple = tuple;
+            this.sequence = sequence;
+        }
+    }
+
+
+    /** A specification of the ordering of the results of this plan node. */
+    private List<OrderByExpression> orderByExprs;
+
+    /** The maximum number of tuples this node produces. */
+    private int maxTuples;
+
+    /** The tuples to produce, in sorted order. */
+    private ArrayList<Tuple> sortedResults;
+
+    /**
+     * The comparator that imposes the ordering specification of the sort node.
+     */
+    private TupleComparator comparator;
+
+    /** The index of the current tuple in the sorted results. */
+    private int currentTupleIndex;
+
+    /** The index of the marked tuple in the sorted results, or -1 if none. */
+    private int markedTupleIndex;
+
+    /**
+     * A flag indicating whether the sort node has generated all of its
+     * output or not.
+     */
+    private boolean done;
+
+
+    /**
+     * Constructs a top-<em>N</em> sort node.
+     *
+     * @param subplan the subplan that produces the results to sort
+     * @param orderByExprs a specification of how the results should be ordered
+     * @param maxTuples the number of tuples to produce, which must be positive
+     */
+    public TopNSortNode(PlanNode subplan, List<OrderByExpression> orderByExprs,
+                        int maxTuples) {
+        super(PlanNode.OperationType.SORT, subplan);
+
+        if (orderByExprs == null)
+            throw new IllegalArgumentException("orderByExprs cannot be null");
+
+        if (orderByExprs.isEmpty()) {
+            throw new IllegalArgumentException(
+                "orderByExprs must include at least one expression");
+        }
+
+        if (maxTuples <= 0) {
+            throw new IllegalArgumentException(
+                "maxTuples must be positive; got " + maxTuples);
+        }
+
+        this.orderByExprs = orderByExprs;
+        this.maxTuples = maxTuples;
+    }
+
+
+    /** Returns the maximum number of tuples this node produces. */
+    public int getMaxTuples() {
+        return maxTuples;
+    }
+
+
+    public List<OrderByExpression> resultsOrderedBy() {
+        return orderByExprs;
+    }
+
+
+    /**
+     * The top-<em>N</em> sort node supports marking, since all of its
+     * results are held in memory.
+     */
+    public boolean supportsMarking() {
+        return true;
+    }
+
+
+    /** This node doesn't require marking from its child. */
+    public boolean requiresLeftMarking() {
+        return false;
+    }
+
+
+    /** This node doesn't require marking from its child. */
+    public boolean requiresRightMarking() {
+        return false;
+    }
+
+
+    /**
+     * The top-<em>N</em> sort node produces the same schema as its child
+     * plan-node, so this method simply caches the subplan's schema object.
+     */
+    public void prepare() {
+        leftChild.prepare();
+
+        schema = leftChild.getSchema();
+        stats = leftChild.getStats();
+
+        // Each input tuple may be inserted into a heap of at most N tuples,
+        // which is an N*log(N) operation, and the N results are then sorted.
+        PlanCost childCost = leftChild.getCost();
+        if (childCost != null) {
+            cost = new PlanCost(childCost);
+
+            float heapSize = Math.min(cost.numTuples, maxTuples);
+            if (heapSize > 1) {
+                float logHeapSize = (float) Math.log(heapSize);
+                cost.cpuCost += (cost.numTuples + heapSize) * logHeapSize;
+            }
+            cost.numTuples = heapSize;
+        }
+        else {
+            logger.info(
+                "Child's cost not available; not computing this node's cost.");
+        }
+
+        comparator = new TupleComparator(schema, orderByExprs);
+    }
+
+
+    public void initialize() {
+        super.initialize();
+
+        sortedResults = null;
+        markedTupleIndex = -1;
+        done = false;
+
+        leftChild.initialize();
+    }
+
+
+    public Tuple getNextTuple() throws IllegalStateException, IOException {
+        if (done)
+            return null;
+
+        if (sortedResults == null)
+            prepareSortedResults();
+
+        Tuple tup = null;
+        if (currentTupleIndex < sortedResults.size()) {
+            tup = sortedResults.get(currentTupleIndex);
+            currentTupleIndex++;
+        }
+        else {
+            done = true;
+        }
+
+        return tup;
+    }
+
+
+    private void prepareSortedResults() throws IOException {
+        // The heap is ordered with the largest tuple first, so that it can
+        // be evicted when a smaller tuple arrives.  Of tuples that compare
+        // as equal, the one read last is treated as the largest.
+        Comparator<HeapEntry> heapOrder = new Comparator<HeapEntry>() {
+            public int compare(HeapEntry a, HeapEntry b) {
+                int cmp = comparator.compare(b.tuple, a.tuple);
+                if (cmp == 0)
+                    cmp = Long.compare(b.sequence, a.sequence);
+
+                return cmp;
+            }
+        };
+
+        PriorityQueue<HeapEntry> heap =
+            new PriorityQueue<HeapEntry>(maxTuples, heapOrder);
+
+        long sequence = 0;
+        while (true) {
+            Tuple tup = leftChild.getNextTuple();
+            if (tup == null)
+                break;
+
+            if (heap.size() == maxTuples &&
+                comparator.compare(tup, heap.peek().tuple) >= 0) {
+                // The tuple can't be among the first N.
+                if (tup.isPinned())
+                    tup.unpin();
+
+                continue;
+            }
+
+            if (tup.isDiskBacked()) {
+                Tuple copy = new TupleLiteral(tup);
+                if (tup.isPinned())
+                    tup.unpin();
+
+                tup = copy;
+            }
+
+            heap.add(new HeapEntry(tup, sequence));
+            sequence++;
+
+            if (heap.size() > maxTuples)
+                heap.poll();
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Kept %d of %d tuples read",
+                heap.size(), sequence));
+        }
+
+        ArrayList<HeapEntry> entries = new ArrayList<HeapEntry>(heap);
+        Collections.sort(entries, Collections.reverseOrder(heapOrder));
+
+        sortedResults = new ArrayList<Tuple>(entries.size());
+        for (HeapEntry entry : entries)
+            sortedResults.add(entry.tuple);
+
+        currentTupleIndex = 0;
+    }
+
+
+    /**
+     * Marks the tuple most recently returned by {@link #getNextTuple}, so
+     * that it will be returned again after {@link #resetToLastMark}.
+     */
+    public void markCurrentPosition() {
+        if (sortedResults == null || currentTupleIndex == 0)
+            throw new IllegalStateException("There is no current tuple!");
+
+        markedTupleIndex = currentTupleIndex - 1;
+    }
+
+
+    public void resetToLastMark() {
+        if (markedTupleIndex == -1)
+            throw new IllegalStateException("There is no last-marked tuple!");
+
+        currentTupleIndex = markedTupleIndex;
+        done = false;
+    }
+
+
+    /** Clean up after evaluation of the top-<em>N</em> sort plan-node. */
+    public void cleanUp() {
+        // Allow this collection to be garbage-collected.
+        sortedResults = null;
+
+        leftChild.cleanUp();
+    }
+
+
+    @Override
+    public String toString() {
+        return "TopNSort[" + orderByExprs + ", n:  " + maxTuples + "]";
+    }
+
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof TopNSortNode) {
+            TopNSortNode other = (TopNSortNode) obj;
+
+            return maxTuples == other.maxTuples &&
+                   orderByExprs.equals(other.orderByExprs) &&
+                   leftChild.equals(other.leftChild);
+        }
+        return false;
+    }
+
+
+    @Override
+    public int hashCode() {
+        int hash = 17;
+        hash = 31 * hash + orderByExprs.hashCode();
+        hash = 31 * hash + maxTuples;
+        hash = 31 * hash + leftChild.hashCode();
+        return hash;
+    }
+}
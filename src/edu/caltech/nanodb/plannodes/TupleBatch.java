@@ -0,0 +1,644 @@
+package edu.caltech.nanodb.plannodes;
+
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.Tuple;
+
+import edu.caltech.nanodb.storage.FilePointer;
+
+
+/**
+ * <p>
+ * A batch of rows produced by {@link PlanNode#getNextBatch}, stored as one
+ * vector of values per column.  <tt>INTEGER</tt>, <tt>BIGINT</tt> and
+ * <tt>DOUBLE</tt> columns are stored in arrays of primitives, so that
+ * filters and aggregates can process them without boxing each value; the
+ * values of all other columns are stored as objects.  Each column also has
+ * an array of flags indicating which of its values are <tt>NULL</tt>.
+ * </p>
+ * <p>
+ * Filtering a batch doesn't move any values around.  Instead, the batch has
+ * a <em>selection vector</em> holding the indexes of the rows that are still
+ * part of the batch, in increasing order.  Consumers of a batch should only
+ * look at the rows listed in the selection vector.
+ * </p>
+ * <p>
+ * The batch is always a copy of the data it holds, so it never pins any
+ * disk pages.
+ * </p>
+ */
+public class TupleBatch {
+
+    /** The default number of rows in a batch. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+
+    /** The values of a column are stored as objects. */
+    public static final int OBJECT_COLUMN = 0;
+
+    /** The values of a column are stored in an <tt>int[]</tt> array. */
+    public static final int INT_COLUMN = 1;
+
+    /** The values of a column are stored in a <tt>long[]</tt> array. */
+    public static final int LONG_COLUMN = 2;
+
+    /** The values of a column are stored in a <tt>double[]</tt> array. */
+    public static final int DOUBLE_COLUMN = 3;
+
+
+    /**
+     * A view of one row of the batch as a {@link Tuple}, so that the row can
+     * be evaluated against expressions, or handed to code that works with
+     * tuples.  The view reads its values from the batch, so it is only
+     * valid until the batch is refilled.
+     */
+    public class RowView implements Tuple {
+        /** The index of the row in the batch that this view presents. */
+        private int row;
+
+        private RowView(int row) {
+            this.row = row;
+        }
+
+        /** Changes the row of the batch that this view presents. */
+        public void setRow(int row) {
+            this.row = row;
+        }
+
+        public int getRow() {
+            return row;
+        }
+
+        public boolean isDiskBacked() {
+            return false;
+        }
+
+        /** The rows of a batch aren't pinned, so this is a no-op. */
+        public void pin() {
+            // No-op.
+        }
+
+        /** The rows of a batch aren't pinned, so this is a no-op. */
+        public void unpin() {
+            // No-op.
+        }
+
+        public int getPinCount() {
+            return 0;
+        }
+
+        public boolean isPinned() {
+            return false;
+        }
+
+        public int getColumnCount() {
+            return numColumns;
+        }
+
+        public boolean isNullValue(int colIndex) {
+            return isNull(colIndex, row);
+        }
+
+        public Object getColumnValue(int colIndex) {
+            return getValue(colIndex, row);
+        }
+
+        public void setColumnValue(int colIndex, Object value) {
+            setValue(colIndex, row, value);
+        }
+
+        public FilePointer getExternalReference() {
+            throw new UnsupportedOperationException(
+                "Rows of a tuple batch don't have external references.");
+        }
+
+        @Override
+        public String toString() {
+            return new TupleLiteral(this).toString();
+        }
+    }
+
+
+    /** The schema of the rows in the batch. */
+    private Schema schema;
+
+    /** The number of columns in the batch. */
+    private int numColumns;
+
+    /** The maximum number of rows the batch can hold. */
+    private int capacity;
+
+    /** The number of rows that have been added to the batch. */
+    private int numRows;
+
+    /** How the values of each column are stored. */
+    private int[] columnKinds;
+
+    /** The vectors of each column; only one is non-null per column. */
+    private int[][] intColumns;
+
+    private long[][] longColumns;
+
+    private double[][] doubleColumns;
+
+    private Object[][] objectColumns;
+
+    /** For each column, flags indicating which of its values are NULL. */
+    private boolean[][] nullColumns;
+
+    /** The indexes of the rows that are part of the batch, in order. */
+    private int[] selection;
+
+    /** The number of entries of {@link #selection} that are in use. */
+    private int numSelected;
+
+
+    /**
+     * Constructs an empty batch with the default capacity.
+     *
+     * @param schema the schema of the rows in the batch
+     */
+    public TupleBatch(Schema schema) {
+        this(schema, DEFAULT_CAPACITY);
+    }
+
+
+    /**
+     * Constructs an empty batch.
+     *
+     * @param schema the schema of the rows in the batch
+     * @param capacity the maximum number of rows in the batch, which must
+     *        be positive
+     */
+    public TupleBatch(Schema schema, int capacity) {
+        if (schema == null)
+            throw new IllegalArgumentException("schema cannot be null");
+
+        if (capacity <= 0) {
+            throw new IllegalArgumentException(
+                "capacity must be positive; got " + capacity);
+        }
+
+        this.schema = schema;
+        this.capacity = capacity;
+
+        numColumns = schema.numColumns();
+        columnKinds = new int[numColumns];
+        intColumns = new int[numColumns][];
+        longColumns = new long[numColumns][];
+        doubleColumns = new double[numColumns][];
+        objectColumns = new Object[numColumns][];
+        nullColumns = new boolean[numColumns][];
+
+        for (int i = 0; i < numColumns; i++) {
+            switch (schema.getColumnInfo(i).getType().getBaseType()) {
+            case INTEGER:
+                columnKinds[i] = INT_COLUMN;
+                intColumns[i] = new int[capacity];
+                break;
+
+            case BIGINT:
+                columnKinds[i] = LONG_COLUMN;
+                longColumns[i] = new long[capacity];
+                break;
+
+            case DOUBLE:
+                columnKinds[i] = DOUBLE_COLUMN;
+                doubleColumns[i] = new double[capacity];
+                break;
+
+            default:
+                columnKinds[i] = OBJECT_COLUMN;
+                objectColumns[i] = new Object[capacity];
+            }
+
+            nullColumns[i] = new boolean[capacity];
+        }
+
+        selection = new int[capacity];
+    }
+
+
+    /**
+     * Constructs a batch that presents some of the columns of another batch.
+     * The column vectors and the selection vector are shared with the other
+     * batch rather than copied.
+     *
+     * @param input the batch to present the columns of
+     * @param schema the schema of the new batch
+     * @param colIndexes the index in the input batch of each column of the
+     *        new batch
+     *
+     * @return a batch presenting the specified columns of the input batch
+     */
+    public static TupleBatch project(TupleBatch input, Schema schema,
+                                     int[] colIndexes) {
+        if (schema.numColumns() != colIndexes.length) {
+            throw new IllegalArgumentException("The schema has " +
+                schema.numColumns() + " columns, but " + colIndexes.length +
+                " column indexes were specified");
+        }
+
+        TupleBatch batch = new TupleBatch();
+        batch.schema = schema;
+        batch.numColumns = colIndexes.length;
+        batch.capacity = input.capacity;
+        batch.numRows = input.numRows;
+        batch.selection = input.selection;
+        batch.numSelected = input.numSelected;
+
+        batch.columnKinds = new int[colIndexes.length];
+        batch.intColumns = new int[colIndexes.length][];
+        batch.longColumns = new long[colIndexes.length][];
+        batch.doubleColumns = new double[colIndexes.length][];
+        batch.objectColumns = new Object[colIndexes.length][];
+        batch.nullColumns = new boolean[colIndexes.length][];
+
+        for (int i = 0; i < colIndexes.length; i++) {
+            int iCol = colIndexes[i];
+            batch.columnKinds[i] = input.columnKinds[iCol];
+            batch.intColumns[i] = input.intColumns[iCol];
+            batch.longColumns[i] = input.longColumns[iCol];
+            batch.doubleColumns[i] = input.doubleColumns[iCol];
+            batch.objectColumns[i] = input.objectColumns[iCol];
+            batch.nullColumns[i] = input.nullColumns[iCol];
+        }
+
+        return batch;
+    }
+
+
+    /**
+     * Returns a copy of the selected rows of this batch, which remains valid
+     * after this batch is refilled.  The rows are stored contiguously in the
+     * copy, and all of them are selected.
+     *
+     * @return a copy of the selected rows of the batch
+     */
+    public TupleBatch copy() {
+        TupleBatch copy = new TupleBatch();
+        copy.schema = schema;
+        copy.numColumns = numColumns;
+        copy.capacity = Math.max(1, numSelected);
+        copy.numRows = numSelected;
+        copy.numSelected = numSelected;
+
+        copy.selection = new int[copy.capacity];
+        for (int i = 0; i < numSelected; i++)
+            copy.selection[i] = i;
+
+        copy.columnKinds = columnKinds.clone();
+        copy.intColumns = new int[numColumns][];
+        copy.longColumns = new long[numColumns][];
+        copy.doubleColumns = new double[numColumns][];
+        copy.objectColumns = new Object[numColumns][];
+        copy.nullColumns = new boolean[numColumns][];
+
+        for (int iCol = 0; iCol < numColumns; iCol++) {
+            boolean[] nulls = new boolean[copy.capacity];
+            for (int i = 0; i < numSelected; i++)
+                nulls[i] = nullColumns[iCol][selection[i]];
+            copy.nullColumns[iCol] = nulls;
+
+            switch (columnKinds[iCol]) {
+            case INT_COLUMN:
+                int[] ints = new int[copy.capacity];
+                for (int i = 0; i < numSelected; i++)
+                    ints[i] = intColumns[iCol][selection[i]];
+                copy.intColumns[iCol] = ints;
+                break;
+
+            case LONG_COLUMN:
+                long[] longs = new long[copy.capacity];
+                for (int i = 0; i < numSelected; i++)
+                    longs[i] = longColumns[iCol][selection[i]];
+                copy.longColumns[iCol] = longs;
+                break;
+
+            case DOUBLE_COLUMN:
+                double[] doubles = new double[copy.capacity];
+                for (int i = 0; i < numSelected; i++)
+                    doubles[i] = doubleColumns[iCol][selection[i]];
+                copy.doubleColumns[iCol] = doubles;
+                break;
+
+            default:
+                Object[] objects = new Object[copy.capacity];
+                for (int i = 0; i < numSelected; i++)
+                    objects[i] = objectColumns[iCol][selection[i]];
+                copy.objectColumns[iCol] = objects;
+            }
+        }
+
+        return copy;
+    }
+
+
+    /** Used by {@link #project} to construct a batch sharing vectors. */
+    private TupleBatch() {
+    }
+
+
+    public Schema getSchema() {
+        return schema;
+    }
+
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+
+    /**
+     * Returns the number of rows that have been added to the batch, whether
+     * or not they are selected.
+     *
+     * @return the number of rows that have been added to the batch
+     */
+    public int getNumRows() {
+        return numRows;
+    }
+
+
+    /** Returns true if no more rows can be added to the batch. */
+    public boolean isFull() {
+        return numRows == capacity;
+    }
+
+
+    /** Removes all rows from the batch, so that it can be refilled. */
+    public void clear() {
+        numRows = 0;
+        numSelected = 0;
+    }
+
+
+    /**
+     * Adds a copy of a tuple's values to the end of the batch.  The new row
+     * is selected.  The caller remains responsible for unpinning the tuple.
+     *
+     * @param tuple the tuple to add to the batch
+     *
+     * @throws IllegalStateException if the batch is full
+     */
+    public void addTuple(Tuple tuple) {
+        int row = addRow();
+        for (int i = 0; i < numColumns; i++)
+            setValue(i, row, tuple.getColumnValue(i));
+    }
+
+
+    /**
+     * Adds a row to the end of the batch, so that a plan node can store its
+     * results in the batch without building a tuple for each of them.  The
+     * new row is selected, and the caller must set every column of the row
+     * with {@link #setValue}.
+     *
+     * @return the index of the new row in the batch
+     *
+     * @throws IllegalStateException if the batch is full
+     */
+    public int addRow() {
+        if (numRows == capacity)
+            throw new IllegalStateException("The batch is full");
+
+        int row = numRows;
+        numRows++;
+
+        selection[numSelected] = row;
+        numSelected++;
+
+        return row;
+    }
+
+
+    /**
+     * Returns how the values of a column are stored; one of
+     * {@link #OBJECT_COLUMN}, {@link #INT_COLUMN}, {@link #LONG_COLUMN} or
+     * {@link #DOUBLE_COLUMN}.
+     *
+     * @param colIndex the index of the column
+     *
+     * @return how the values of the column are stored
+     */
+    public int getColumnKind(int colIndex) {
+        return columnKinds[colIndex];
+    }
+
+
+    /**
+     * Returns the values of an {@link #INT_COLUMN} column.  Values of rows
+     * that are <tt>NULL</tt> are unspecified.
+     */
+    public int[] getIntColumn(int colIndex) {
+        checkColumnKind(colIndex, INT_COLUMN);
+        return intColumns[colIndex];
+    }
+
+
+    /**
+     * Returns the values of a {@link #LONG_COLUMN} column.  Values of rows
+     * that are <tt>NULL</tt> are unspecified.
+     */
+    public long[] getLongColumn(int colIndex) {
+        checkColumnKind(colIndex, LONG_COLUMN);
+        return longColumns[colIndex];
+    }
+
+
+    /**
+     * Returns the values of a {@link #DOUBLE_COLUMN} column.  Values of rows
+     * that are <tt>NULL</tt> are unspecified.
+     */
+    public double[] getDoubleColumn(int colIndex) {
+        checkColumnKind(colIndex, DOUBLE_COLUMN);
+        return doubleColumns[colIndex];
+    }
+
+
+    /** Returns the values of an {@link #OBJECT_COLUMN} column. */
+    public Object[] getObjectColumn(int colIndex) {
+        checkColumnKind(colIndex, OBJECT_COLUMN);
+        return objectColumns[colIndex];
+    }
+
+
+    /** Returns the flags indicating which values of a column are NULL. */
+    public boolean[] getNullFlags(int colIndex) {
+        return nullColumns[colIndex];
+    }
+
+
+    private void checkColumnKind(int colIndex, int kind) {
+        if (columnKinds[colIndex] != kind) {
+            throw new IllegalStateException("Column " + colIndex +
+                " is stored as kind " + columnKinds[colIndex] + ", not " +
+                kind);
+        }
+    }
+
+
+    public boolean isNull(int colIndex, int row) {
+        return nullColumns[colIndex][row];
+    }
+
+
+    /**
+     * Returns the value of a column in a row of the batch, boxing the value
+     * if the column is stored as primitives.
+     *
+     * @param colIndex the index of the column
+     * @param row the index of the row in the batch
+     *
+     * @return the value, or {@code null} if it is <tt>NULL</tt>
+     */
+    public Object getValue(int colIndex, int row) {
+        if (nullColumns[colIndex][row])
+            return null;
+
+        switch (columnKinds[colIndex]) {
+        case INT_COLUMN:
+            return intColumns[colIndex][row];
+
+        case LONG_COLUMN:
+            return longColumns[colIndex][row];
+
+        case DOUBLE_COLUMN:
+            return doubleColumns[colIndex][row];
+
+        default:
+            return objectColumns[colIndex][row];
+        }
+    }
+
+
+    /**
+     * Sets the value of a column in a row of the batch.  If the value isn't
+     * of the Java type that the column's primitives hold, the column is
+     * converted to store objects, so that no value is changed by storing it.
+     *
+     * @param colIndex the index of the column
+     * @param row the index of the row in the batch
+     * @param value the value, or {@code null} for <tt>NULL</tt>
+     */
+    public void setValue(int colIndex, int row, Object value) {
+        boolean isNull = (value == null);
+        nullColumns[colIndex][row] = isNull;
+        if (isNull)
+            return;
+
+        switch (columnKinds[colIndex]) {
+        case INT_COLUMN:
+            if (value instanceof Integer) {
+                intColumns[colIndex][row] = (Integer) value;
+                return;
+            }
+            break;
+
+        case LONG_COLUMN:
+            if (value instanceof Long) {
+                longColumns[colIndex][row] = (Long) value;
+                return;
+            }
+            break;
+
+        case DOUBLE_COLUMN:
+            if (value instanceof Double) {
+                doubleColumns[colIndex][row] = (Double) value;
+                return;
+            }
+            break;
+
+        default:
+            objectColumns[colIndex][row] = value;
+            return;
+        }
+
+        convertToObjectColumn(colIndex);
+        objectColumns[colIndex][row] = value;
+    }
+
+
+    /**
+     * Converts a column stored as primitives into a column stored as
+     * objects, boxing the values of the rows added so far.
+     */
+    private void convertToObjectColumn(int colIndex) {
+        Object[] values = new Object[nullColumns[colIndex].length];
+        for (int row = 0; row < numRows; row++)
+            values[row] = getValue(colIndex, row);
+
+        columnKinds[colIndex] = OBJECT_COLUMN;
+        objectColumns[colIndex] = values;
+        intColumns[colIndex] = null;
+        longColumns[colIndex] = null;
+        doubleColumns[colIndex] = null;
+    }
+
+
+    /**
+     * Returns the selection vector of the batch.  The first
+     * {@link #getNumSelected} entries are the indexes of the rows that are
+     * part of the batch, in increasing order.  Filters may overwrite the
+     * vector in place and then call {@link #setNumSelected}.
+     *
+     * @return the selection vector of the batch
+     */
+    public int[] getSelection() {
+        return selection;
+    }
+
+
+    /** Returns the number of rows that are part of the batch. */
+    public int getNumSelected() {
+        return numSelected;
+    }
+
+
+    /**
+     * Sets the number of entries in the selection vector that are in use,
+     * after a filter has rewritten the vector.
+     *
+     * @param numSelected the number of rows that are part of the batch
+     */
+    public void setNumSelected(int numSelected) {
+        if (numSelected < 0 || numSelected > numRows) {
+            throw new IllegalArgumentException("numSelected must be " +
+                "between 0 and " + numRows + "; got " + numSelected);
+        }
+
+        this.numSelected = numSelected;
+    }
+
+
+    /**
+     * Returns a view of a row of the batch as a tuple.  The view can be
+     * moved to other rows with {@link RowView#setRow}.
+     *
+     * @param row the index of the row in the batch
+     *
+     * @return a view of the row as a tuple
+     */
+    public RowView getRowView(int row) {
+        return new RowView(row);
+    }
+
+
+    /**
+     * Returns a copy of a row of the batch, which remains valid after the
+     * batch is refilled.
+     *
+     * @param row the index of the row in the batch
+     *
+     * @return a copy of the row
+     */
+    public TupleLiteral getTuple(int row) {
+        TupleLiteral tup = new TupleLiteral(numColumns);
+        for (int i = 0; i < numColumns; i++)
+            tup.setColumnValue(i, getValue(i, row));
+
+        return tup;
+    }
+}
@@ -337,6 +337,24 @@ public class SelectClause {
     }
 
 
+    /**
+     * Returns true if every column this query references from an enclosing
+     * query is a column of the specified query.  This is also true if the
+     * query isn't correlated at all.
+     *
+     * @param selClause the enclosing query to check for
+     *
+     * @return true if the query is only correlated with {@code selClause}
+     */
+    public boolean isCorrelatedOnlyWith(SelectClause selClause) {
+        for (SelectClause clause : correlatedWith.values()) {
+            if (clause != selClause)
+                return false;
+        }
+        return true;
+    }
+
+
     /**
      * This method computes the resulting schema from this query, and in the
      * process it performs various semantic checks as well.
@@ -565,15 +583,11 @@ public class SelectClause {
                     // parent query, not this query.
                     assert clause != this;
 
-                    // Sanity-check:  have we already seen this column name?
-                    // If so, make sure that we find the same clause each time
-                    if (correlatedWith.containsKey(colName) &&
-                        correlatedWith.get(colName) != clause) {
-                        throw new IllegalStateException(String.format(
-                            "Column name %s is associated with two " +
-                            "different queries", colName));
-                    }
-                    correlatedWith.put(colName, clause);
+                    // The queries between this query and the parent query
+                    // are correlated with the parent query too, since this
+                    // query is evaluated as part of them.
+                    for (SelectClause q = this; q != clause; q = q.parentSelect)
+                        q.addCorrelatedColumn(colName, clause);
                 }
 
                 return;
@@ -606,6 +620,26 @@ public class SelectClause {
     }
 
 
+    /**
+     * Records that this query references a column of an enclosing query.
+     *
+     * @param colName the column referenced from the enclosing query
+     *
+     * @param clause the enclosing query that produces the column
+     */
+    private void addCorrelatedColumn(ColumnName colName, SelectClause clause) {
+        // Sanity-check:  have we already seen this column name?
+        // If so, make sure that we find the same clause each time
+        if (correlatedWith.containsKey(colName) &&
+            correlatedWith.get(colName) != clause) {
+            throw new IllegalStateException(String.format(
+                "Column name %s is associated with two " +
+                "different queries", colName));
+        }
+        correlatedWith.put(colName, clause);
+    }
+
+
     @Override
     public String toString() {
         StringBuilder buf = new StringBuilder();
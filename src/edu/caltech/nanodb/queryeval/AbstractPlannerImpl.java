@@ -6,8 +6,6 @@ import java.util.ArrayList;
 import java.util.List;
 
 import edu.caltech.nanodb.expressions.Expression;
-import edu.caltech.nanodb.expressions.ExistsOperator;
-import edu.caltech.nanodb.expressions.InSubqueryOperator;
 import edu.caltech.nanodb.plannodes.*;
 import org.apache.log4j.Logger;
 
@@ -169,111 +167,4 @@ public abstract class AbstractPlannerImpl implements Planner {
         resPlan.prepare();
         return resPlan;
     }
-
-    /**
-     * Decorrolate AST if it fits one of the known correlated subquery forms.
-     *
-     * @param selClause an object describing the query to be performed.
-     *
-     * @return updated AST with one fewer correlated subquery
-     *
-     */
-    public SelectClause decorrelate(SelectClause selClause) {
-        if (isDecorrelatableIn(selClause)) {
-            selClause = decorrelateIn(selClause);
-        }
-        else if (isDecorrelatableExists(selClause)) {
-            selClause = decorrelateExists(selClause);
-        }
-        return selClause;
-    }
-
-    /**
-     * Decorrolate AST to remove correlated subquery in in-clause.
-     *
-     * @param selClause an object describing the query to be performed.
-     *
-     * @return updated AST with one fewer correlated subquery
-     *
-     */
-    public SelectClause decorrelateIn(SelectClause selClause) {
-        FromClause leftFrom = selClause.getFromClause();
-        Expression whereExpr = selClause.getWhereExpr();
-
-        SelectClause subquery = ((InSubqueryOperator) whereExpr).getSubquery();
-        FromClause rightFrom = subquery.getFromClause();
-        Expression condition = subquery.getWhereExpr();
-
-        FromClause newFrom =
-                new FromClause(leftFrom, rightFrom, JoinType.SEMIJOIN);
-        newFrom.setOnExpression(condition);
-
-        selClause.setFromClause(newFrom);
-        selClause.setWhereExpr(null);
-        return selClause;
-    }
-
-    /**
-     * Decorrolate AST to remove correlated subquery in exists-clause.
-     *
-     * @param selClause an object describing the query to be performed.
-     *
-     * @return updated AST with one fewer correlated subquery
-     *
-     */
-    public SelectClause decorrelateExists(SelectClause selClause) {
-        FromClause leftFrom = selClause.getFromClause();
-        Expression whereExpr = selClause.getWhereExpr();
-        ExistsOperator existsOperator = (ExistsOperator) whereExpr;
-
-        SelectClause subquery = existsOperator.getSubquery();
-        Expression condition = subquery.getWhereExpr();
-        subquery.setWhereExpr(null);
-        FromClause rightFrom = subquery.getFromClause();
-
-        FromClause newFrom =
-                new FromClause(leftFrom, rightFrom, JoinType.SEMIJOIN);
-        newFrom.setOnExpression(condition);
-
-        selClause.setFromClause(newFrom);
-        return selClause;
-    }
-
-    /**
-     * Return true if query has correlated subquery in in-clause.
-     *
-     * @param selClause an object describing the query to be performed.
-     *
-     * @return updated AST with one fewer correlated subquery
-     *
-     */
-    public boolean isDecorrelatableIn(SelectClause selClause) {
-        // Check if subquery inside where clause
-        Expression whereExpr = selClause.getWhereExpr();
-        if (whereExpr != null && whereExpr instanceof InSubqueryOperator) {
-            SelectClause sq = ((InSubqueryOperator) whereExpr).getSubquery();
-            return sq.isCorrelated();
-        }
-
-        return false;
-    }
-
-    /**
-     * Return true if query has correlated subquery in exists-clause.
-     *
-     * @param selClause an object describing the query to be performed.
-     *
-     * @return updated AST with one fewer correlated subquery
-     *
-     */
-    public boolean isDecorrelatableExists(SelectClause selClause) {
-        // Check if subquery inside where clause
-        Expression whereExpr = selClause.getWhereExpr();
-        if (whereExpr != null && whereExpr instanceof ExistsOperator) {
-            SelectClause sq = ((ExistsOperator) whereExpr).getSubquery();
-            return sq.isCorrelated();
-        }
-
-        return false;
-    }
 }
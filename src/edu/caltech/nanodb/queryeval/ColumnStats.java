@@ -10,7 +10,17 @@ package edu.caltech.nanodb.queryeval;
  *   <li>the number of <tt>NULL</tt> values in the column</li>
  *   <li>the minimum value for the column</li>
  *   <li>the maximum value for the column</li>
+ *   <li>the number of non-<tt>NULL</tt> values in the column</li>
+ *   <li>the column's most common values, and how many times each occurs</li>
+ *   <li>an equi-depth histogram of the column's other values, for types that
+ *       support comparison estimates</li>
  * </ul>
+ * The last three describe the distribution of the column's values, so that
+ * selectivity estimates don't have to assume the values are uniformly
+ * distributed.  Each bucket of the histogram holds the same number of rows;
+ * the histogram is stored as the values at the bucket boundaries, from the
+ * smallest to the largest value outside the most-common-values list.
+ * <p>
  * The {@link ColumnStatsCollector} class can be used to easily collect these
  * statistics for a particular column of a table.
  */
@@ -42,6 +52,35 @@ public class ColumnStats {
      */
     private Object maxValue;
 
+
+    /**
+     * The total number of non-<tt>NULL</tt> values for this column in the
+     * table, or -1 if the number is unknown.
+     */
+    private int numNonNullValues;
+
+
+    /**
+     * The most common values of this column in the table, or <tt>null</tt> if
+     * they are unknown.
+     */
+    private Object[] mostCommonValues;
+
+
+    /**
+     * The number of times each of the {@link #mostCommonValues} occurs in the
+     * column, or <tt>null</tt> if they are unknown.
+     */
+    private int[] mostCommonCounts;
+
+
+    /**
+     * The bucket boundaries of an equi-depth histogram of the column's
+     * non-<tt>NULL</tt> values that aren't among the most common values, or
+     * <tt>null</tt> if there is no histogram.
+     */
+    private Object[] histogramBounds;
+
     /**
      * Indicates that the number of values is unknown.
      */
@@ -58,6 +97,7 @@ public class ColumnStats {
         numNullValues = UNKNOWN_NUM_VALUES;
         minValue = UNKNOWN_OBJECT;
         maxValue = UNKNOWN_OBJECT;
+        numNonNullValues = UNKNOWN_NUM_VALUES;
     }
 
 
@@ -79,6 +119,7 @@ public class ColumnStats {
         setNumNullValues(numNullValues);
         setMinValue(minValue);
         setMaxValue(maxValue);
+        numNonNullValues = UNKNOWN_NUM_VALUES;
     }
 
 
@@ -201,4 +242,134 @@ public class ColumnStats {
     public boolean hasDifferentMinMaxValues() {
         return hasMinMaxValues() && (!minValue.equals(maxValue));
     }
+
+
+    /**
+     * Returns the number of non-<tt>NULL</tt> values for the column, or -1 if
+     * the number is unknown.
+     *
+     * @return the number of non-<tt>NULL</tt> values for the column, or -1 if
+     *         the number is unknown
+     */
+    public int getNumNonNullValues() {
+        return numNonNullValues;
+    }
+
+
+    /**
+     * Sets the number of non-<tt>NULL</tt> values for the column.
+     *
+     * @param num the number of non-<tt>NULL</tt> values in the table for the
+     *        column, or -1 if the number is unknown
+     */
+    public void setNumNonNullValues(int num) {
+        if (num < -1) {
+            throw new IllegalArgumentException(
+                "Number of non-NULL values must be >= -1; got " + num);
+        }
+
+        numNonNullValues = num;
+    }
+
+
+    /**
+     * Returns the most common values of the column, or <tt>null</tt> if they
+     * are unknown.
+     *
+     * @return the most common values of the column
+     */
+    public Object[] getMostCommonValues() {
+        return mostCommonValues;
+    }
+
+
+    /**
+     * Returns the number of times each of the column's most common values
+     * occurs, or <tt>null</tt> if they are unknown.
+     *
+     * @return the number of times each of the most common values occurs
+     */
+    public int[] getMostCommonCounts() {
+        return mostCommonCounts;
+    }
+
+
+    /**
+     * Sets the most common values of the column, and the number of times each
+     * one occurs.
+     *
+     * @param values the most common values, or <tt>null</tt> if unknown
+     * @param counts the number of times each value occurs, or <tt>null</tt>
+     *        if unknown
+     */
+    public void setMostCommonValues(Object[] values, int[] counts) {
+        if ((values == null) != (counts == null) ||
+            (values != null && values.length != counts.length)) {
+            throw new IllegalArgumentException(
+                "Must specify a count for each of the most common values");
+        }
+
+        mostCommonValues = values;
+        mostCommonCounts = counts;
+    }
+
+
+    /**
+     * Returns the bucket boundaries of the column's equi-depth histogram, or
+     * <tt>null</tt> if there is no histogram.
+     *
+     * @return the bucket boundaries of the column's histogram
+     */
+    public Object[] getHistogramBounds() {
+        return histogramBounds;
+    }
+
+
+    /**
+     * Sets the bucket boundaries of the column's equi-depth histogram.
+     *
+     * @param bounds the bucket boundaries, in increasing order, or
+     *        <tt>null</tt> if there is no histogram
+     */
+    public void setHistogramBounds(Object[] bounds) {
+        if (bounds != null && bounds.length < 2) {
+            throw new IllegalArgumentException(
+                "A histogram must have at least two bucket boundaries; got " +
+                bounds.length);
+        }
+
+        histogramBounds = bounds;
+    }
+
+
+    /**
+     * Returns <tt>true</tt> if this column-stats object describes the
+     * distribution of the column's values; that is, if it has the number of
+     * non-<tt>NULL</tt> values and the most common values.  The histogram may
+     * still be missing if the column's type doesn't support comparison
+     * estimates, or if every value is among the most common values.
+     *
+     * @return <tt>true</tt> if this column-stats object describes the
+     *         distribution of the column's values
+     */
+    public boolean hasDistribution() {
+        return numNonNullValues != UNKNOWN_NUM_VALUES &&
+            mostCommonValues != null;
+    }
+
+
+    /**
+     * Returns the number of non-<tt>NULL</tt> values that aren't among the
+     * most common values; these are the values that the histogram describes.
+     *
+     * @return the number of values that aren't among the most common values
+     */
+    public int getNumOtherValues() {
+        int num = numNonNullValues;
+        if (mostCommonCounts != null) {
+            for (int count : mostCommonCounts)
+                num -= count;
+        }
+        return num;
+    }
 }
@@ -4,7 +4,9 @@ package edu.caltech.nanodb.queryeval;
 import edu.caltech.nanodb.relations.SQLDataType;
 import edu.caltech.nanodb.storage.TableManager;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 
 /**
@@ -12,7 +14,9 @@ import java.util.HashSet;
  * table being analyzed by the {@link TableManager#analyzeTable}
  * method.  Instances of the class compute the number of distinct values, the
  * number of non-<tt>NULL</tt> values, and for appropriate data types, the
- * minimum and maximum values for the column.
+ * minimum and maximum values for the column.  The number of times each value
+ * occurs is also counted, so that the column's most common values and an
+ * equi-depth histogram of its other values can be computed.
  * <p>
  * The class also makes it very easy to construct a {@link ColumnStats} object
  * from the result of the analysis.
@@ -24,15 +28,43 @@ import java.util.HashSet;
  */
 public class ColumnStatsCollector {
 
+    /** The maximum number of most common values recorded for a column. */
+    public static final int MAX_MOST_COMMON_VALUES = 10;
+
+
+    /** The maximum number of buckets in a column's histogram. */
+    public static final int MAX_HISTOGRAM_BUCKETS = 10;
+
+
+    /**
+     * The longest string value that is recorded as one of a column's most
+     * common values.  Statistics are stored in the table's header page, so
+     * long values are left out to keep them small.
+     */
+    public static final int MAX_STATS_STRING_LENGTH = 32;
+
+
+    /**
+     * A value is only recorded as one of the most common values if it occurs
+     * at least this many times as often as the average value, unless all of
+     * the column's values can be recorded.
+     */
+    private static final float MOST_COMMON_FACTOR = 1.25f;
+
+
     /** The SQL data-type for the column that stats are being collected for. */
     private SQLDataType sqlType;
 
 
     /**
-     * The set of all values seen in this column.  This set could obviously
-     * occupy a large amount of memory for large tables.
+     * The number of times each value has been seen in this column.  This map
+     * could obviously occupy a large amount of memory for large tables.
      */
-    private HashSet<Object> uniqueValues;
+    private HashMap<Object, Integer> valueCounts;
+
+
+    /** A count of the number of non-<tt>NULL</tt> values seen. */
+    private int numNonNullValues;
 
     /**
      * A count of the number of <tt>NULL</tt> values seen in the column-values.
@@ -62,8 +94,9 @@ public class ColumnStatsCollector {
      */
     public ColumnStatsCollector(SQLDataType sqlType) {
         this.sqlType = sqlType;
-        uniqueValues = new HashSet<Object>();
+        valueCounts = new HashMap<Object, Integer>();
         numNullValues = 0;
+        numNonNullValues = 0;
         minValue = null;
         maxValue = null;
     }
@@ -100,8 +133,9 @@ public class ColumnStatsCollector {
                     maxValue = comp;
             }
 
-            // Update the set of unique values.
-            uniqueValues.add(value);
+            // Update the count of this value.
+            valueCounts.merge(value, 1, Integer::sum);
+            numNonNullValues++;
         }
     }
 
@@ -124,7 +158,17 @@ public class ColumnStatsCollector {
      *         column
      */
     public int getNumUniqueValues() {
-        return uniqueValues.size();
+        return valueCounts.size();
+    }
+
+
+    /**
+     * Returns the number of non-<tt>NULL</tt> values seen for the column.
+     *
+     * @return the number of non-<tt>NULL</tt> values seen for the column
+     */
+    public int getNumNonNullValues() {
+        return numNonNullValues;
     }
 
 
@@ -160,7 +204,93 @@ public class ColumnStatsCollector {
      *         collected by this object
      */
     public ColumnStats getColumnStats() {
-        return new ColumnStats(getNumUniqueValues(), numNullValues,
-            minValue, maxValue);
+        ColumnStats stats = new ColumnStats(getNumUniqueValues(),
+            numNullValues, minValue, maxValue);
+        stats.setNumNonNullValues(numNonNullValues);
+
+        // Order the values from most to least common.
+        ArrayList<Map.Entry<Object, Integer>> entries =
+            new ArrayList<>(valueCounts.entrySet());
+        entries.sort((e1, e2) -> e2.getValue().compareTo(e1.getValue()));
+
+        // If every value can be recorded then the distribution is exact;
+        // otherwise, only record the values that are noticeably more common
+        // than the average.
+        boolean recordAll = entries.size() <= MAX_MOST_COMMON_VALUES;
+        float minCount = MOST_COMMON_FACTOR * numNonNullValues /
+            Math.max(1, entries.size());
+
+        ArrayList<Map.Entry<Object, Integer>> common = new ArrayList<>();
+        ArrayList<Map.Entry<Object, Integer>> others = new ArrayList<>();
+        for (Map.Entry<Object, Integer> entry : entries) {
+            Object value = entry.getKey();
+            if (common.size() < MAX_MOST_COMMON_VALUES &&
+                (recordAll || entry.getValue() >= minCount) &&
+                !(value instanceof String &&
+                  ((String) value).length() > MAX_STATS_STRING_LENGTH)) {
+                common.add(entry);
+            }
+            else {
+                others.add(entry);
+            }
+        }
+
+        Object[] mcvValues = new Object[common.size()];
+        int[] mcvCounts = new int[common.size()];
+        for (int i = 0; i < common.size(); i++) {
+            mcvValues[i] = common.get(i).getKey();
+            mcvCounts[i] = common.get(i).getValue();
+        }
+        stats.setMostCommonValues(mcvValues, mcvCounts);
+
+        if (!others.isEmpty() &&
+            SelectivityEstimator.typeSupportsCompareEstimates(sqlType)) {
+            stats.setHistogramBounds(computeHistogramBounds(others));
+        }
+
+        return stats;
+    }
+
+
+    /**
+     * Computes the bucket boundaries of an equi-depth histogram over the
+     * specified values.  The boundaries are the values found at evenly
+     * spaced positions in the sorted sequence of all occurrences of the
+     * values, including the smallest and largest values.
+     *
+     * @param entries the values to build the histogram over, and the number
+     *        of times each occurs
+     *
+     * @return the bucket boundaries of the histogram
+     */
+    @SuppressWarnings("unchecked")
+    private static Object[] computeHistogramBounds(
+        ArrayList<Map.Entry<Object, Integer>> entries) {
+
+        entries.sort((e1, e2) ->
+            ((Comparable) e1.getKey()).compareTo(e2.getKey()));
+
+        long numRows = 0;
+        for (Map.Entry<Object, Integer> entry : entries)
+            numRows += entry.getValue();
+
+        int numBuckets = Math.min(MAX_HISTOGRAM_BUCKETS, entries.size());
+        if (numBuckets < 1)
+            numBuckets = 1;
+
+        Object[] bounds = new Object[numBuckets + 1];
+        int iEntry = 0;
+        long rowsBefore = 0;   // Occurrences of the values before iEntry.
+        for (int i = 0; i <= numBuckets; i++) {
+            // The position of this boundary among all the occurrences.
+            long pos = i * (numRows - 1) / numBuckets;
+            while (rowsBefore + entries.get(iEntry).getValue() <= pos) {
+                rowsBefore += entries.get(iEntry).getValue();
+                iEntry++;
+            }
+            bounds[i] = entries.get(iEntry).getKey();
+        }
+
+        return bounds;
     }
 }
@@ -6,20 +6,27 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
 import edu.caltech.nanodb.expressions.*;
+import edu.caltech.nanodb.functions.AggregateFunction;
+import edu.caltech.nanodb.indexes.IndexInfo;
+import edu.caltech.nanodb.indexes.IndexManager;
 import edu.caltech.nanodb.plannodes.*;
 import edu.caltech.nanodb.queryast.SelectValue;
 import edu.caltech.nanodb.relations.JoinType;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.SchemaNameException;
 import org.apache.log4j.Logger;
 
 import edu.caltech.nanodb.queryast.FromClause;
 import edu.caltech.nanodb.queryast.SelectClause;
 import edu.caltech.nanodb.relations.TableInfo;
+import edu.caltech.nanodb.relations.TableSchema;
+import edu.caltech.nanodb.storage.SequentialTupleFile;
 
 
 /**
@@ -34,6 +41,34 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
     private static Logger logger = Logger.getLogger(CostBasedJoinPlanner.class);
 
 
+    /**
+     * The largest number of rows (LIMIT plus OFFSET) for which an ordered
+     * query uses a {@link TopNSortNode} instead of sorting its entire result.
+     * A top-N sort holds all of the rows it keeps in memory.
+     */
+    public static final int MAX_TOP_N_TUPLES = 10000;
+
+
+    /**
+     * The system property that specifies the largest number of leaves that
+     * are joined by enumerating all join orders with dynamic programming.
+     * Queries joining more leaves are planned greedily.
+     */
+    public static final String PROP_JOIN_DP_LIMIT = "nanodb.joinDPLimit";
+
+
+    /** The default largest number of leaves joined by dynamic programming. */
+    public static final int DEFAULT_JOIN_DP_LIMIT = 10;
+
+
+    /**
+     * The largest number of leaves that are ever joined by dynamic
+     * programming, whatever {@link #PROP_JOIN_DP_LIMIT} specifies, since the
+     * planner keeps a plan for every set of leaves.
+     */
+    public static final int MAX_JOIN_DP_LIMIT = 20;
+
+
     /**
      * This helper class is used to keep track of one "join component" in the
      * dynamic programming algorithm.  A join component is simply a query plan
@@ -53,10 +88,10 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
         public PlanNode joinPlan;
 
         /**
-         * This field specifies the collection of leaf-plans that are joined by
-         * the plan in this join-component.
+         * This field specifies the leaves that are joined by the plan in this
+         * join-component, as a bit-set of the leaves' indexes.
          */
-        public HashSet<PlanNode> leavesUsed;
+        public long leavesUsed;
 
         /**
          * This field specifies the collection of all conjuncts use by this join
@@ -66,66 +101,181 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
         public HashSet<Expression> conjunctsUsed;
 
         /**
-         * Constructs a new instance for a <em>leaf node</em>.  It should not
-         * be used for join-plans that join together two or more leaves.  This
-         * constructor simply adds the leaf-plan into the {@link #leavesUsed}
-         * collection.
+         * Constructs a new instance for a <em>leaf node</em>.
          *
          * @param leafPlan the query plan for this leaf of the query.
          *
+         * @param leafIndex the index of the leaf among the leaves of the
+         *        query, which must be less than 64.
+         *
          * @param conjunctsUsed the set of conjuncts used by the leaf plan.
          *        This may be an empty set if no conjuncts apply solely to
          *        this leaf, or it may be nonempty if some conjuncts apply
          *        solely to this leaf.
          */
-        public JoinComponent(PlanNode leafPlan,
+        public JoinComponent(PlanNode leafPlan, int leafIndex,
                              HashSet<Expression> conjunctsUsed) {
-            leavesUsed = new HashSet<>();
-            leavesUsed.add(leafPlan);
-
-            joinPlan = leafPlan;
-
-            this.conjunctsUsed = conjunctsUsed;
+            this(leafPlan, 1L << leafIndex, conjunctsUsed);
         }
 
         /**
-         * Constructs a new instance for a <em>non-leaf node</em>.  It should
-         * not be used for leaf plans!
+         * Constructs a new instance for a plan joining the specified leaves.
          *
          * @param jPlan the query plan that joins together all leaves
-         *        specified in the <tt>leavesUsed</tt> argument.
+         *        specified in the <tt>leavesJoined</tt> argument.
          *
-         * @param leavesJoined the set of two or more leaf plans that are joined
+         * @param leavesJoined the bit-set of the leaves that are joined
          *        together by the join plan.
          *
          * @param conjUsed the set of conjuncts used by the join plan.
          *        Obviously, it is expected that all conjuncts specified here
          *        can actually be evaluated against the join plan.
          */
-        public JoinComponent(PlanNode jPlan, HashSet<PlanNode> leavesJoined,
+        public JoinComponent(PlanNode jPlan, long leavesJoined,
                              HashSet<Expression> conjUsed) {
             joinPlan = jPlan;
             leavesUsed = leavesJoined;
             conjunctsUsed = conjUsed;
         }
+    }
+
+
+    /**
+     * This helper class holds the conjuncts that join two or more leaves of
+     * a query, along with the bit-set of the leaves that each conjunct
+     * references, so that the conjuncts joining two sets of leaves can be
+     * found with a few bitwise operations.
+     */
+    private static class JoinGraph {
+        /** The conjuncts that reference two or more leaves. */
+        private ArrayList<Expression> conjuncts = new ArrayList<>();
+
+        /** The bit-set of the leaves that each conjunct references. */
+        private long[] conjunctLeaves;
 
         /**
-         * Returns the next leaf node joined by the plan.
-         *
-         * @return next plan node joined by the plan in this join-component
+         * Finds the leaves that each conjunct references.  Conjuncts that
+         * reference a single leaf are applied by the leaf plans, and
+         * conjuncts that reference columns of no leaf, such as columns of an
+         * enclosing query, can't be applied by any join.
          */
-        public PlanNode getLeafPlan() {
-            if (leavesUsed.size() != 1) {
-                throw new IllegalStateException(
-                        "JoinComponent is not single leaf");
+        JoinGraph(List<JoinComponent> leafComponents,
+                  Collection<Expression> allConjuncts) {
+            ArrayList<Long> leaves = new ArrayList<>();
+            ArrayList<ColumnName> symbols = new ArrayList<>();
+
+            for (Expression conjunct : allConjuncts) {
+                symbols.clear();
+                conjunct.getAllSymbols(symbols);
+
+                long mask = 0;
+                boolean allRef = true;
+                for (ColumnName colName : symbols) {
+                    long colMask = 0;
+                    for (int i = 0; i < leafComponents.size(); i++) {
+                        Schema schema = leafComponents.get(i).joinPlan.getSchema();
+                        if (schema.getColumnIndex(colName) != -1)
+                            colMask |= 1L << i;
+                    }
+
+                    if (colMask == 0) {
+                        allRef = false;
+                        break;
+                    }
+                    mask |= colMask;
+                }
+
+                if (allRef && Long.bitCount(mask) > 1) {
+                    conjuncts.add(conjunct);
+                    leaves.add(mask);
+                }
             }
-            else {
-                return leavesUsed.iterator().next();
+
+            conjunctLeaves = new long[leaves.size()];
+            for (int i = 0; i < conjunctLeaves.length; i++)
+                conjunctLeaves[i] = leaves.get(i);
+        }
+
+        /** Returns true if a conjunct joins the two disjoint sets of leaves. */
+        boolean isConnected(long left, long right) {
+            long both = left | right;
+            for (long mask : conjunctLeaves) {
+                if ((mask & ~both) == 0 && (mask & left) != 0 &&
+                    (mask & right) != 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns the conjuncts that join the two disjoint sets of leaves,
+         * that is, the conjuncts that can be evaluated against the leaves of
+         * both sets, but not against either set alone.
+         */
+        ArrayList<Expression> getJoinConjuncts(long left, long right) {
+            ArrayList<Expression> result = new ArrayList<>();
+            long both = left | right;
+            for (int i = 0; i < conjunctLeaves.length; i++) {
+                long mask = conjunctLeaves[i];
+                if ((mask & ~both) == 0 && (mask & left) != 0 &&
+                    (mask & right) != 0) {
+                    result.add(conjuncts.get(i));
+                }
             }
+            return result;
+        }
+
+        /**
+         * Returns the connected components of the graph, as bit-sets of the
+         * leaves in each component.  The leaves of a component can be joined
+         * without any cartesian products.
+         */
+        ArrayList<Long> getComponents(int numLeaves) {
+            ArrayList<Long> components = new ArrayList<>();
+            for (int i = 0; i < numLeaves; i++)
+                components.add(1L << i);
+
+            for (long mask : conjunctLeaves) {
+                long merged = mask;
+                Iterator<Long> iter = components.iterator();
+                while (iter.hasNext()) {
+                    long component = iter.next();
+                    if ((component & mask) != 0) {
+                        merged |= component;
+                        iter.remove();
+                    }
+                }
+                components.add(merged);
+            }
+
+            return components;
         }
     }
 
 
+    /**
+     * The columns referenced by the query whose <tt>FROM</tt> clause is
+     * being planned, or {@code null} if they aren't known.  Base-table scans
+     * only read the columns of their table that appear in this collection.
+     */
+    private Collection<ColumnName> referencedColumns;
+
+
+    /**
+     * Returns the largest number of leaves that are joined by enumerating
+     * all join orders, as specified by the {@link #PROP_JOIN_DP_LIMIT}
+     * property, but at most {@link #MAX_JOIN_DP_LIMIT}.
+     *
+     * @return the largest number of leaves joined by dynamic programming
+     */
+    public static int getJoinDPLimit() {
+        int limit = Integer.getInteger(PROP_JOIN_DP_LIMIT,
+            DEFAULT_JOIN_DP_LIMIT);
+        return Math.min(limit, MAX_JOIN_DP_LIMIT);
+    }
+
+
     /**
      * Returns the root of a plan tree suitable for executing the specified
      * query.
@@ -139,7 +289,6 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
      */
     public PlanNode makePlan(SelectClause selClause,
         List<SelectClause> enclosingSelects) throws IOException {
-        selClause = decorrelate(selClause);
 
         List<SelectClause> subquerySelects = null;
         if (enclosingSelects != null) {
@@ -164,17 +313,55 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
         FromClause fromClause = selClause.getFromClause();
         Expression havingExpr = selClause.getHavingExpr();
         Expression whereExpr = selClause.getWhereExpr();
-        Collection<Expression> ununusedConjuncts = new HashSet<>();
-        PredicateUtils.collectConjuncts(whereExpr, ununusedConjuncts);
+        ArrayList<Expression> whereConjuncts = new ArrayList<>();
+        PredicateUtils.collectConjuncts(whereExpr, whereConjuncts);
+        Collection<Expression> ununusedConjuncts = new HashSet<>(whereConjuncts);
+
+        // IN and EXISTS subqueries that can be evaluated as semijoins and
+        // antijoins are set aside, so that they are joined against the
+        // result of the FROM clause instead of being evaluated for each row.
+        ArrayList<Expression> subqueryConjuncts = new ArrayList<>();
+        if (fromClause != null) {
+            for (Expression conjunct : whereConjuncts) {
+                if (canDecorrelate(selClause, conjunct))
+                    subqueryConjuncts.add(conjunct);
+            }
+            ununusedConjuncts.removeAll(subqueryConjuncts);
+        }
 
         // Create an optimal join plan from the top-level from-clause and
         // the top-level conjuncts.
         if (fromClause != null) {
             Collection<Expression> conjuncts = ununusedConjuncts;
-            JoinComponent tempRes = makeJoinPlan(fromClause, conjuncts);
+
+            // Derived tables are planned while the FROM clause is planned,
+            // so the enclosing query's referenced columns must be restored.
+            Collection<ColumnName> enclosingColumns = referencedColumns;
+            referencedColumns = getReferencedColumns(selClause);
+            JoinComponent tempRes;
+            try {
+                tempRes = makeJoinPlan(fromClause, conjuncts);
+            }
+            finally {
+                referencedColumns = enclosingColumns;
+            }
             resPlan = tempRes.joinPlan;
             ununusedConjuncts.removeAll(tempRes.conjunctsUsed);
 
+            Iterator<Expression> subqueryIter = subqueryConjuncts.iterator();
+            while (subqueryIter.hasNext()) {
+                Expression conjunct = subqueryIter.next();
+                PlanNode joinPlan = makeSubqueryJoin(resPlan, conjunct);
+                if (joinPlan != null) {
+                    resPlan = joinPlan;
+                }
+                else {
+                    // The subquery must be evaluated for each row after all.
+                    ununusedConjuncts.add(conjunct);
+                    subqueryIter.remove();
+                }
+            }
+
             // If there are any unused conjuncts, determine how to handle them.
             if (ununusedConjuncts.size() > 0) {
                 Expression pred = PredicateUtils.makePredicate(
@@ -182,14 +369,6 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
                 resPlan = new SimpleFilterNode(resPlan, pred);
             }
 
-            if (fromClause.isDerivedTable()) {
-                SelectClause subClause = fromClause.getSelectClause();
-
-                // Enclosing selects for sub-query.
-                resPlan = makePlan(subClause, subquerySelects);
-                resPlan = new RenameNode(resPlan, fromClause.getResultName());
-            }
-
             if (resPlan != null) {
                 resPlan.setEnvironment(subqueryPlanner.getEnvironment());
             }
@@ -228,8 +407,12 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
                     selClause.getGroupByExprs(), aggregateProcessor.aggregates);
             }
 
+            // Subqueries in the HAVING clause and the SELECT values are
+            // evaluated against the environment that their plans use as a
+            // parent, so that correlated subqueries can see the current row.
             if (havingExpr != null) {
                 resPlan = new SimpleFilterNode(resPlan, havingExpr);
+                resPlan.setEnvironment(subqueryPlanner.getEnvironment());
             }
 
             // If there is no FROM clause, make a trivial ProjectNode()
@@ -239,11 +422,13 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
             else {
                 resPlan = new ProjectNode(resPlan, selectValues);
             }
+            resPlan.setEnvironment(subqueryPlanner.getEnvironment());
         }
 
-        // Subqueries in WHERE clause
-        if (whereExpr != null) {
-            whereExpr.traverse(subqueryPlanner);
+        // Subqueries in WHERE clause, other than those evaluated as joins
+        for (Expression conjunct : whereConjuncts) {
+            if (!subqueryConjuncts.contains(conjunct))
+                conjunct.traverse(subqueryPlanner);
         }
 
         // Handle other clauses such as ORDER BY, LIMIT/OFFSET, etc.
@@ -255,12 +440,17 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
             }
         }
 
+        int limit = selClause.getLimit();
+        int offset = selClause.getOffset();
         if (orderByExprs.size() > 0) {
-            resPlan = new SortNode(resPlan, orderByExprs);
+            // If only the first few rows are needed, keep just those rows
+            // instead of sorting everything.
+            if (limit > 0 && (long) limit + offset <= MAX_TOP_N_TUPLES)
+                resPlan = new TopNSortNode(resPlan, orderByExprs, limit + offset);
+            else
+                resPlan = new SortNode(resPlan, orderByExprs);
         }
 
-        int limit = selClause.getLimit();
-        int offset = selClause.getOffset();
         if (limit != 0 || offset != 0) {
             resPlan = new LimitOffsetNode(resPlan, selClause.getOffset(),
                     selClause.getLimit());
@@ -270,6 +460,312 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
     }
 
 
+    /**
+     * Collects the names of all columns that a query references, including
+     * the wildcards in its <tt>SELECT</tt> clause, and the columns of the
+     * query that its subqueries are correlated with.
+     *
+     * @param selClause the query to collect the referenced columns of
+     *
+     * @return the names of the columns that the query references
+     */
+    private static Collection<ColumnName> getReferencedColumns(
+        SelectClause selClause) {
+
+        HashSet<ColumnName> columns = new HashSet<>();
+        for (SelectValue sv : selClause.getSelectValues()) {
+            if (sv.isWildcard())
+                columns.add(sv.getWildcard());
+            else if (sv.isExpression())
+                sv.getExpression().getAllSymbols(columns);
+            else if (sv.isScalarSubquery())
+                columns.addAll(sv.getScalarSubquery().getCorrelatedColumns());
+        }
+
+        if (selClause.getWhereExpr() != null)
+            selClause.getWhereExpr().getAllSymbols(columns);
+
+        for (Expression gbe : selClause.getGroupByExprs())
+            gbe.getAllSymbols(columns);
+
+        if (selClause.getHavingExpr() != null)
+            selClause.getHavingExpr().getAllSymbols(columns);
+
+        for (OrderByExpression obe : selClause.getOrderByExprs())
+            obe.getExpression().getAllSymbols(columns);
+
+        collectJoinColumns(selClause.getFromClause(), columns);
+
+        return columns;
+    }
+
+
+    /**
+     * Collects the names of the columns used by the join conditions of a
+     * <tt>FROM</tt> clause, and by the projections computed for
+     * <tt>NATURAL</tt> and <tt>USING</tt> joins.
+     *
+     * @param fromClause the <tt>FROM</tt> clause, or {@code null}
+     *
+     * @param columns the collection to add the column names to
+     */
+    private static void collectJoinColumns(FromClause fromClause,
+                                           Collection<ColumnName> columns) {
+        if (fromClause == null || !fromClause.isJoinExpr())
+            return;
+
+        if (fromClause.getOnExpression() != null)
+            fromClause.getOnExpression().getAllSymbols(columns);
+
+        if (fromClause.getComputedJoinExpr() != null)
+            fromClause.getComputedJoinExpr().getAllSymbols(columns);
+
+        if (fromClause.getComputedSelectValues() != null) {
+            for (SelectValue sv : fromClause.getComputedSelectValues()) {
+                if (sv.isWildcard())
+                    columns.add(sv.getWildcard());
+                else if (sv.isExpression())
+                    sv.getExpression().getAllSymbols(columns);
+            }
+        }
+
+        collectJoinColumns(fromClause.getLeftChild(), columns);
+        collectJoinColumns(fromClause.getRightChild(), columns);
+    }
+
+
+    /**
+     * Returns the columns of a base table that are among the referenced
+     * columns of the query being planned.
+     *
+     * @param tableSchema the schema of the base table, with the name the
+     *        query uses for the table
+     *
+     * @return an array with a {@code true} element for each referenced
+     *         column, or {@code null} if all of the columns are referenced
+     *         or the referenced columns aren't known
+     */
+    private boolean[] getProjectedColumns(Schema tableSchema) {
+        if (referencedColumns == null)
+            return null;
+
+        boolean[] projected = new boolean[tableSchema.numColumns()];
+        int numProjected = 0;
+        for (ColumnName colName : referencedColumns) {
+            for (int iCol : tableSchema.findColumns(colName).keySet()) {
+                if (!projected[iCol]) {
+                    projected[iCol] = true;
+                    numProjected++;
+                }
+            }
+        }
+
+        if (numProjected == projected.length)
+            return null;
+
+        return projected;
+    }
+
+
+    /**
+     * Returns true if a conjunct of a query's <tt>WHERE</tt> clause is an
+     * <tt>IN</tt>, <tt>NOT IN</tt>, <tt>EXISTS</tt> or <tt>NOT EXISTS</tt>
+     * predicate whose subquery can be evaluated as a semijoin or antijoin
+     * against the query's <tt>FROM</tt> clause.  The subquery must be a
+     * simple <tt>SELECT</tt>-<tt>FROM</tt>-<tt>WHERE</tt> block that is
+     * only correlated with the query itself.  <tt>EXISTS</tt> subqueries
+     * must be correlated, and <tt>NOT IN</tt> subqueries must not be, since
+     * a correlated <tt>NOT IN</tt> would need to check for <tt>NULL</tt>s
+     * separately for each row.
+     *
+     * @param selClause the query whose <tt>WHERE</tt> clause holds the
+     *        conjunct
+     *
+     * @param conjunct the conjunct to examine
+     *
+     * @return true if {@link #makeSubqueryJoin} can evaluate the conjunct
+     */
+    private boolean canDecorrelate(SelectClause selClause,
+                                   Expression conjunct) {
+        boolean negated = false;
+        if (conjunct instanceof BooleanOperator) {
+            BooleanOperator boolOp = (BooleanOperator) conjunct;
+            if (boolOp.getType() != BooleanOperator.Type.NOT_EXPR)
+                return false;
+
+            conjunct = boolOp.getTerm(0);
+            negated = true;
+        }
+
+        if (!(conjunct instanceof InSubqueryOperator ||
+              conjunct instanceof ExistsOperator)) {
+            return false;
+        }
+
+        SelectClause subquery = ((SubqueryOperator) conjunct).getSubquery();
+        if (subquery.getFromClause() == null ||
+            !subquery.getGroupByExprs().isEmpty() ||
+            subquery.getHavingExpr() != null ||
+            subquery.getLimit() != 0 || subquery.getOffset() != 0 ||
+            !subquery.isCorrelatedOnlyWith(selClause)) {
+            return false;
+        }
+
+        for (SelectValue selVal : subquery.getSelectValues()) {
+            if (selVal.isExpression() &&
+                containsSubqueryOrAggregate(selVal.getExpression())) {
+                return false;
+            }
+        }
+
+        if (subquery.getWhereExpr() != null &&
+            containsSubqueryOrAggregate(subquery.getWhereExpr())) {
+            return false;
+        }
+
+        // The join predicate refers to the columns of both queries, so
+        // their table names must not overlap.
+        Set<String> tableNames = selClause.getFromSchema().getTableNames();
+        for (String tableName : subquery.getFromSchema().getTableNames()) {
+            if (tableName == null || tableNames.contains(tableName))
+                return false;
+        }
+
+        if (conjunct instanceof InSubqueryOperator) {
+            if (negated && subquery.isCorrelated())
+                return false;
+
+            List<SelectValue> selVals = subquery.getSelectValues();
+            if (selVals.size() != 1 || !selVals.get(0).isExpression())
+                return false;
+
+            Expression expr = ((InSubqueryOperator) conjunct).getExpression();
+            ArrayList<Expression> exprs = new ArrayList<>();
+            exprs.add(expr);
+            PredicateUtils.findExprsUsingSchemas(exprs, true,
+                new ArrayList<Expression>(), selClause.getFromSchema());
+
+            return exprs.isEmpty() && !containsSubqueryOrAggregate(expr);
+        }
+        else {
+            return subquery.isCorrelated();
+        }
+    }
+
+
+    /**
+     * Returns true if the expression contains a subquery or an aggregate
+     * function call.
+     */
+    private static boolean containsSubqueryOrAggregate(Expression expr) {
+        final boolean[] found = { false };
+        expr.traverse(new ExpressionProcessor() {
+            public void enter(Expression node) {
+                if (node instanceof SubqueryOperator) {
+                    found[0] = true;
+                }
+                else if (node instanceof FunctionCall) {
+                    FunctionCall call = (FunctionCall) node;
+                    if (call.getFunction() instanceof AggregateFunction)
+                        found[0] = true;
+                }
+            }
+
+            public Expression leave(Expression node) {
+                return node;
+            }
+        });
+        return found[0];
+    }
+
+
+    /**
+     * Joins the plan of a query's <tt>FROM</tt> clause with the subquery of
+     * a conjunct accepted by {@link #canDecorrelate}.  Conjuncts of the
+     * subquery's <tt>WHERE</tt> clause that only refer to the subquery's
+     * own tables are applied in the subquery's plan, and the correlated
+     * conjuncts become the join predicate.  <tt>expr IN (SELECT v ...)</tt>
+     * also adds <tt>expr = v</tt> to the join predicate.
+     * <p>
+     * <tt>IN</tt> and <tt>EXISTS</tt> become semijoins, and
+     * <tt>NOT EXISTS</tt> becomes an antijoin; the cheapest join node is
+     * chosen for these.  <tt>NOT IN</tt> becomes a null-aware hash
+     * antijoin, since no other join node handles <tt>NULL</tt>s the way
+     * <tt>NOT IN</tt> requires.
+     *
+     * @param plan the plan for the query's <tt>FROM</tt> clause
+     *
+     * @param conjunct the conjunct holding the subquery
+     *
+     * @return the join plan, or {@code null} if the conjunct is a
+     *         <tt>NOT IN</tt> that can't be evaluated with a hash join
+     *
+     * @throws IOException if an IO error occurs during planning
+     */
+    private PlanNode makeSubqueryJoin(PlanNode plan, Expression conjunct)
+        throws IOException {
+
+        boolean negated = false;
+        if (conjunct instanceof BooleanOperator) {
+            conjunct = ((BooleanOperator) conjunct).getTerm(0);
+            negated = true;
+        }
+
+        SelectClause subquery = ((SubqueryOperator) conjunct).getSubquery();
+
+        ArrayList<Expression> joinConjuncts = new ArrayList<>();
+        PredicateUtils.collectConjuncts(subquery.getWhereExpr(),
+            joinConjuncts);
+
+        HashSet<Expression> localConjuncts = new HashSet<>();
+        PredicateUtils.findExprsUsingSchemas(joinConjuncts, true,
+            localConjuncts, subquery.getFromSchema());
+
+        // The subquery's tables are scanned for the subquery's own columns,
+        // not for the columns of the query being planned.
+        Collection<ColumnName> enclosingColumns = referencedColumns;
+        referencedColumns = getReferencedColumns(subquery);
+        JoinComponent subComp;
+        try {
+            subComp = makeJoinPlan(subquery.getFromClause(), localConjuncts);
+        }
+        finally {
+            referencedColumns = enclosingColumns;
+        }
+        PlanNode subPlan = subComp.joinPlan;
+        localConjuncts.removeAll(subComp.conjunctsUsed);
+        if (!localConjuncts.isEmpty()) {
+            subPlan = new SimpleFilterNode(subPlan,
+                PredicateUtils.makePredicate(localConjuncts));
+        }
+        subPlan.prepare();
+
+        boolean in = conjunct instanceof InSubqueryOperator;
+        if (in) {
+            Expression value =
+                subquery.getSelectValues().get(0).getExpression();
+            joinConjuncts.add(0, new CompareOperator(
+                CompareOperator.Type.EQUALS,
+                ((InSubqueryOperator) conjunct).getExpression(), value));
+        }
+        Expression predicate = PredicateUtils.makePredicate(joinConjuncts);
+
+        if (negated && in) {
+            HashJoinNode hashJoin = new HashJoinNode(plan, subPlan,
+                JoinType.ANTIJOIN, predicate);
+            hashJoin.setNullAware(true);
+            hashJoin.prepare();
+            if (hashJoin.getNumJoinKeys() != 1)
+                return null;
+
+            return hashJoin;
+        }
+
+        return makeJoinNode(plan, subPlan,
+            negated ? JoinType.ANTIJOIN : JoinType.SEMIJOIN, predicate);
+    }
+
+
     /**
      * Given the top-level {@code FromClause} for a SELECT-FROM-WHERE block,
      * this helper generates an optimal join plan for the {@code FromClause}.
@@ -415,7 +911,8 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
             PlanNode leafPlan =
                 makeLeafPlan(leafClause, conjuncts, leafConjuncts);
 
-            JoinComponent leaf = new JoinComponent(leafPlan, leafConjuncts);
+            JoinComponent leaf = new JoinComponent(leafPlan,
+                leafComponents.size(), leafConjuncts);
             leafComponents.add(leaf);
         }
 
@@ -450,9 +947,12 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
         // Create basic plan based on fromClause type
         PlanNode resPlan;
         if (fromClause.isBaseTable()) {
-            // Use FileScanNode
-            resPlan = makeSimpleSelect(fromClause.getTableName(),
-                    null, null);
+            // Use FileScanNode, which only reads the columns the query uses
+            FileScanNode scanNode = (FileScanNode) makeSimpleSelect(
+                    fromClause.getTableName(), null, null);
+            scanNode.setProjectedColumns(
+                    getProjectedColumns(fromClause.getSchema()));
+            resPlan = scanNode;
         }
         else if (fromClause.isDerivedTable()) {
             // Get query plan for subquery
@@ -486,15 +986,7 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
             JoinType joinType = fromClause.getJoinType();
             Expression predicate = fromClause.getOnExpression();
 
-            boolean isRightOuterJoin = (joinType == JoinType.RIGHT_OUTER);
-            if (isRightOuterJoin) {
-                joinType = JoinType.LEFT_OUTER;
-            }
-            resPlan = new NestedLoopJoinNode(leftNode, rightNode, joinType,
-                    predicate);
-            if (isRightOuterJoin) {
-                ((ThetaJoinNode) resPlan).swap();
-            }
+            resPlan = makeJoinNode(leftNode, rightNode, joinType, predicate);
         }
         else {
             throw new IOException("makeLeafPlan: Unknown FromClause type");
@@ -509,7 +1001,6 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
         resPlan.prepare();
 
         // Optimize to apply selections as early as possible
-        // Note that this is not optimal in presence of indexes
         if (fromClause.isBaseTable() || fromClause.isDerivedTable()) {
             HashSet<Expression> exprsUsingSchemas = new HashSet<Expression>();
             PredicateUtils.findExprsUsingSchemas(conjuncts, false,
@@ -520,6 +1011,10 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
                         exprsUsingSchemas);
                 resPlan = PlanUtils.addPredicateToPlan(resPlan, pred);
                 resPlan.prepare();
+
+                // The selections may allow an index to be used instead.
+                if (fromClause.isBaseTable())
+                    resPlan = makeIndexScanPlan(fromClause, resPlan, pred);
             }
         }
 
@@ -528,14 +1023,72 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
 
 
     /**
-     * This helper method builds up a full join-plan using a dynamic programming
-     * approach.  The implementation maintains a collection of optimal
-     * intermediate plans that join <em>n</em> of the leaf nodes, each with its
-     * own associated cost, and then uses that collection to generate a new
-     * collection of optimal intermediate plans that join <em>n+1</em> of the
-     * leaf nodes.  This process completes when all leaf plans are joined
-     * together; there will be <em>one</em> plan, and it will be the optimal
-     * join plan (as far as our limited estimates can determine, anyway).
+     * Considers reading a base table through each of its indexes instead of
+     * scanning the whole table, when the leaf's selection predicate restricts
+     * the first column of the index to key ranges.  Each index-scan plan
+     * applies the entire predicate, just like the file-scan plan, so the
+     * cheapest plan is returned.
+     *
+     * @param fromClause the base-table from-clause that the leaf is for
+     *
+     * @param fileScanPlan the prepared leaf plan that scans the whole table
+     *
+     * @param predicate the selection predicate applied by the leaf plan
+     *
+     * @return the prepared leaf plan with the lowest cost
+     */
+    private PlanNode makeIndexScanPlan(FromClause fromClause,
+        PlanNode fileScanPlan, Expression predicate) {
+
+        PlanNode best = fileScanPlan;
+        Schema leafSchema = fileScanPlan.getSchema();
+
+        for (IndexInfo indexInfo : getLeafIndexes(fileScanPlan)) {
+            int colIndex = indexInfo.getTableColumnRefs().getCol(0);
+            List<IndexScanNode.KeyRange> keyRanges =
+                IndexScanNode.findKeyRanges(predicate, leafSchema, colIndex);
+            if (keyRanges == null)
+                continue;
+
+            PlanNode plan = new IndexScanNode(indexInfo, keyRanges, null);
+            if (fromClause.isRenamed())
+                plan = new RenameNode(plan, fromClause.getResultName());
+            plan.prepare();
+
+            plan = PlanUtils.addPredicateToPlan(plan, predicate);
+            plan.prepare();
+
+            if (plan.getCost().isCheaperThan(best.getCost()))
+                best = plan;
+        }
+
+        if (best != fileScanPlan) {
+            logger.debug("Chose index scan " + best + " with cost " +
+                best.getCost());
+        }
+
+        return best;
+    }
+
+
+    /**
+     * This helper method builds up a full join-plan.  If there are at most
+     * {@link #getJoinDPLimit} leaves, the optimal plan is found with dynamic
+     * programming over the sets of leaves, which are represented as bit-sets
+     * of the leaves' indexes.  The sets are visited in increasing numeric
+     * order, so that every subset of a set is visited before the set itself.
+     * For each set, the optimal plans of every way of splitting it into two
+     * sets that a conjunct joins are considered as the inputs of a join,
+     * which produces bushy plans as well as left-deep plans, and the
+     * cheapest join is kept.  Since the plans of the sets are kept in an
+     * array indexed by the bit-set, no collections are allocated for the
+     * candidate plans.
+     * <p>
+     * Leaves that no conjuncts join together, directly or indirectly, are
+     * only joined with a cartesian product once each group of joined leaves
+     * has been planned.  Queries with more leaves are planned by
+     * {@link #generateGreedyJoin}, since the number of sets grows
+     * exponentially with the number of leaves.
      *
      * @param leafComponents the collection of leaf join-components, generated
      *        by the {@link #generateLeafJoinComponents} method.
@@ -548,93 +1101,489 @@ public class CostBasedJoinPlanner extends AbstractPlannerImpl {
     private JoinComponent generateOptimalJoin(
         ArrayList<JoinComponent> leafComponents, Set<Expression> conjuncts) {
 
-        // This object maps a collection of leaf-plans (represented as a
-        // hash-set) to the optimal join-plan for that collection of leaf plans.
-        //
-        // This collection starts out only containing the leaf plans themselves,
-        // and on each iteration of the loop below, join-plans are grown by one
-        // leaf.  For example:
-        //   * In the first iteration, all plans joining 2 leaves are created.
-        //   * In the second iteration, all plans joining 3 leaves are created.
-        //   * etc.
-        // At the end, the collection will contain ONE entry, which is the
-        // optimal way to join all N leaves.  Go Go Gadget Dynamic Programming!
-        HashMap<HashSet<PlanNode>, JoinComponent> joinPlans = new HashMap<>();
-
-        // Initially populate joinPlans with just the N leaf plans.
-        for (JoinComponent leaf : leafComponents) {
-            joinPlans.put(leaf.leavesUsed, leaf);
-        }
-
-        while (joinPlans.size() > 1) {
-            logger.debug("Current set of join-plans has " + joinPlans.size()
-                + " plans in it.");
-
-            // This is the set of "next plans" we will generate.  Plans only
-            // get stored if they are the first plan that joins together the
-            // specified leaves, or if they are better than the current plan.
-            HashMap<HashSet<PlanNode>, JoinComponent> nextJoinPlans =
-                new HashMap<>();
-
-            for (JoinComponent plan : joinPlans.values()) {
-                for (JoinComponent leafComponent : leafComponents) {
-                    if (plan.leavesUsed.contains(leafComponent.getLeafPlan())) {
+        int numLeaves = leafComponents.size();
+        if (numLeaves == 1)
+            return leafComponents.get(0);
+
+        if (numLeaves > Long.SIZE) {
+            throw new IllegalArgumentException(
+                "Can't join more than " + Long.SIZE + " tables, got " +
+                numLeaves);
+        }
+
+        JoinGraph graph = new JoinGraph(leafComponents, conjuncts);
+        if (numLeaves > getJoinDPLimit()) {
+            logger.debug("Planning join of " + numLeaves +
+                " leaves greedily");
+            return generateGreedyJoin(leafComponents, graph);
+        }
+
+        // The optimal plan for each set of leaves, or null if the leaves
+        // can't be joined without a cartesian product.
+        JoinComponent[] joinPlans = new JoinComponent[1 << numLeaves];
+        for (JoinComponent leaf : leafComponents)
+            joinPlans[(int) leaf.leavesUsed] = leaf;
+
+        ArrayList<JoinComponent> componentPlans = new ArrayList<>();
+        for (long component : graph.getComponents(numLeaves)) {
+            // Visit the subsets of the component in increasing order.
+            long leaves = 0;
+            while ((leaves = (leaves - component) & component) != 0) {
+                if (Long.bitCount(leaves) < 2)
+                    continue;
+
+                PlanNode bestPlan = null;
+                long bestLeft = 0;
+                ArrayList<Expression> bestConjuncts = null;
+
+                // Consider each way of splitting the leaves into a left and
+                // a right input.
+                for (long left = (leaves - 1) & leaves; left != 0;
+                     left = (left - 1) & leaves) {
+                    long right = leaves ^ left;
+
+                    JoinComponent leftComp = joinPlans[(int) left];
+                    JoinComponent rightComp = joinPlans[(int) right];
+                    if (leftComp == null || rightComp == null ||
+                        !graph.isConnected(left, right)) {
                         continue;
                     }
-                    // Collect conjuncts
-                    HashSet<Expression> tmpConjuncts =
-                        new HashSet<Expression>();
-                    PredicateUtils.findExprsUsingSchemas(conjuncts, false,
-                            tmpConjuncts, plan.joinPlan.getSchema(),
-                            leafComponent.joinPlan.getSchema());
-                    tmpConjuncts.removeAll(plan.conjunctsUsed);
-                    tmpConjuncts.removeAll(leafComponent.conjunctsUsed);
-                    Expression pred =
-                        PredicateUtils.makePredicate(tmpConjuncts);
-
-                    // Create possible plan
-                    PlanNode tmpPlan = new NestedLoopJoinNode(plan.joinPlan,
-                            leafComponent.joinPlan, JoinType.INNER, pred);
-                    tmpPlan.prepare();
-                    PlanCost tmpPlanCost = tmpPlan.getCost();
-
-                    // Collect leaves used
-                    HashSet<PlanNode> tmpLeavesUsed = new HashSet<>();
-                    tmpLeavesUsed.addAll(plan.leavesUsed);
-                    tmpLeavesUsed.addAll(leafComponent.leavesUsed);
-
-                    // Add previously used conjuncts
-                    tmpConjuncts.addAll(plan.conjunctsUsed);
-                    tmpConjuncts.addAll(leafComponent.conjunctsUsed);
-
-                    // Check if add plan
-                    JoinComponent tmpJoin = new JoinComponent(tmpPlan,
-                            tmpLeavesUsed, tmpConjuncts);
-                    if (nextJoinPlans.containsKey(tmpLeavesUsed)) {
-                        PlanCost prevCost =
-                            nextJoinPlans.get(tmpLeavesUsed).joinPlan.getCost();
-                        if (prevCost.cpuCost > tmpPlanCost.cpuCost) {
-                            nextJoinPlans.put(tmpLeavesUsed, tmpJoin);
-                        }
-                    }
-                    else {
-                        nextJoinPlans.put(tmpLeavesUsed, tmpJoin);
+
+                    ArrayList<Expression> joinConjuncts =
+                        graph.getJoinConjuncts(left, right);
+                    PlanNode plan = makeJoinNode(leftComp.joinPlan,
+                        rightComp.joinPlan, JoinType.INNER,
+                        PredicateUtils.makePredicate(joinConjuncts));
+
+                    if (bestPlan == null ||
+                        plan.getCost().isCheaperThan(bestPlan.getCost())) {
+                        bestPlan = plan;
+                        bestLeft = left;
+                        bestConjuncts = joinConjuncts;
                     }
+                }
 
+                if (bestPlan != null) {
+                    joinPlans[(int) leaves] = newJoinComponent(bestPlan,
+                        joinPlans[(int) bestLeft],
+                        joinPlans[(int) (leaves ^ bestLeft)], bestConjuncts);
                 }
             }
 
-            // Now that we have generated all plans joining N leaves, time to
-            // create all plans joining N + 1 leaves.
-            joinPlans = nextJoinPlans;
+            JoinComponent componentPlan = joinPlans[(int) component];
+            if (componentPlan == null) {
+                // The leaves are only joined by conjuncts referencing three
+                // or more of them, so some pairs must be joined with a
+                // cartesian product first.
+                ArrayList<JoinComponent> componentLeaves = new ArrayList<>();
+                for (JoinComponent leaf : leafComponents) {
+                    if ((leaf.leavesUsed & component) != 0)
+                        componentLeaves.add(leaf);
+                }
+                componentPlan = generateGreedyJoin(componentLeaves, graph);
+            }
+            componentPlans.add(componentPlan);
         }
 
-        // At this point, the set of join plans should only contain one plan,
-        // and it should be the optimal plan.
+        // Join the groups of leaves that no conjuncts join together.
+        return generateGreedyJoin(componentPlans, graph);
+    }
+
 
-        assert joinPlans.size() == 1
-            : "There can be only one optimal join plan!";
-        return joinPlans.values().iterator().next();
+    /**
+     * This helper method builds up a full join-plan greedily, by repeatedly
+     * joining the two join-components whose join produces the fewest tuples,
+     * until one component joins all of the leaves.  Components are only
+     * joined with a cartesian product when no conjuncts join any of the
+     * remaining components.  The plans are not always optimal, but only a
+     * polynomial number of joins are considered, so this is used for queries
+     * joining too many leaves to consider every join order.
+     *
+     * @param components the join-components to join together
+     *
+     * @param graph the conjuncts joining the leaves of the components
+     *
+     * @return a single {@link JoinComponent} object that joins all of the
+     *         components together
+     */
+    private JoinComponent generateGreedyJoin(List<JoinComponent> components,
+                                             JoinGraph graph) {
+        ArrayList<JoinComponent> remaining = new ArrayList<>(components);
+        while (remaining.size() > 1) {
+            PlanNode bestPlan = null;
+            boolean bestConnected = false;
+            int bestI = -1;
+            int bestJ = -1;
+
+            for (int i = 0; i < remaining.size(); i++) {
+                for (int j = i + 1; j < remaining.size(); j++) {
+                    long left = remaining.get(i).leavesUsed;
+                    long right = remaining.get(j).leavesUsed;
+                    boolean connected = graph.isConnected(left, right);
+                    if (bestConnected && !connected)
+                        continue;
+
+                    PlanNode plan = makeJoinNode(remaining.get(i).joinPlan,
+                        remaining.get(j).joinPlan, JoinType.INNER,
+                        PredicateUtils.makePredicate(
+                            graph.getJoinConjuncts(left, right)));
+
+                    PlanCost cost = plan.getCost();
+                    if (bestPlan == null || connected && !bestConnected ||
+                        cost.numTuples < bestPlan.getCost().numTuples ||
+                        cost.numTuples == bestPlan.getCost().numTuples &&
+                        cost.isCheaperThan(bestPlan.getCost())) {
+                        bestPlan = plan;
+                        bestConnected = connected;
+                        bestI = i;
+                        bestJ = j;
+                    }
+                }
+            }
+
+            JoinComponent left = remaining.get(bestI);
+            JoinComponent right = remaining.get(bestJ);
+            JoinComponent join = newJoinComponent(bestPlan, left, right,
+                graph.getJoinConjuncts(left.leavesUsed, right.leavesUsed));
+
+            // Remove the later component first, so the earlier index stays
+            // valid.
+            remaining.remove(bestJ);
+            remaining.set(bestI, join);
+        }
+
+        return remaining.get(0);
+    }
+
+
+    /**
+     * Creates the join-component for a plan joining two join-components.
+     *
+     * @param joinPlan the plan joining the two components
+     *
+     * @param left one of the components joined by the plan
+     *
+     * @param right the other component joined by the plan
+     *
+     * @param joinConjuncts the conjuncts that the plan uses to join the
+     *        components
+     *
+     * @return the join-component for the plan
+     */
+    private static JoinComponent newJoinComponent(PlanNode joinPlan,
+        JoinComponent left, JoinComponent right,
+        Collection<Expression> joinConjuncts) {
+
+        HashSet<Expression> conjunctsUsed = new HashSet<>(left.conjunctsUsed);
+        conjunctsUsed.addAll(right.conjunctsUsed);
+        conjunctsUsed.addAll(joinConjuncts);
+
+        return new JoinComponent(joinPlan, left.leavesUsed | right.leavesUsed,
+            conjunctsUsed);
+    }
+
+
+    /**
+     * Creates the cheapest join node for joining two subplans.  A nested-loop
+     * join can evaluate any predicate; if the predicate contains equijoin
+     * conditions then hash joins that build on either input, and a merge join
+     * that sorts whichever inputs aren't already ordered on the join keys,
+     * are considered too, as are index nested-loop joins that probe an index
+     * on either input's table.  Whichever node is chosen, the joined tuples have
+     * the columns of the left subplan before the columns of the right
+     * subplan.
+     *
+     * @param left the left subplan of the join
+     *
+     * @param right the right subplan of the join
+     *
+     * @param joinType the type of join to perform
+     *
+     * @param predicate the join predicate, or {@code null} if none
+     *
+     * @return the prepared join node with the lowest cost
+     */
+    private PlanNode makeJoinNode(PlanNode left, PlanNode right,
+        JoinType joinType, Expression predicate) {
+
+        // Each candidate is prepared once, when it is added to the list.
+        ArrayList<ThetaJoinNode> candidates = new ArrayList<>();
+
+        // Nested-loop joins only handle left-outer joins, so right-outer
+        // joins are evaluated as left-outer joins with the inputs swapped.
+        if (joinType == JoinType.RIGHT_OUTER) {
+            ThetaJoinNode nestedLoop = new NestedLoopJoinNode(left, right,
+                JoinType.LEFT_OUTER, predicate);
+            nestedLoop.swap();
+            nestedLoop.prepare();
+            candidates.add(nestedLoop);
+        }
+        else {
+            ThetaJoinNode nestedLoop = new NestedLoopJoinNode(left, right,
+                joinType, predicate);
+            nestedLoop.prepare();
+            candidates.add(nestedLoop);
+        }
+
+        HashJoinNode hashJoin = new HashJoinNode(left, right, joinType,
+            predicate);
+        hashJoin.prepare();
+        if (hashJoin.getNumJoinKeys() > 0) {
+            candidates.add(hashJoin);
+
+            // Hash joins build on their right input, so also consider
+            // building on the left input, by swapping the inputs and the
+            // side that an outer join preserves.
+            JoinType swappedType = null;
+            if (joinType == JoinType.INNER)
+                swappedType = JoinType.INNER;
+            else if (joinType == JoinType.LEFT_OUTER)
+                swappedType = JoinType.RIGHT_OUTER;
+            else if (joinType == JoinType.RIGHT_OUTER)
+                swappedType = JoinType.LEFT_OUTER;
+
+            if (swappedType != null) {
+                ThetaJoinNode swapped = new HashJoinNode(left, right,
+                    swappedType, predicate);
+                swapped.swap();
+                swapped.prepare();
+                candidates.add(swapped);
+            }
+
+            candidates.add(makeMergeJoinNode(left, right, joinType,
+                predicate));
+
+            addIndexJoinNodes(candidates, left, right, joinType, predicate);
+        }
+
+        ThetaJoinNode best = null;
+        for (ThetaJoinNode candidate : candidates) {
+            if (best == null ||
+                candidate.getCost().isCheaperThan(best.getCost())) {
+                best = candidate;
+            }
+        }
+
+        logger.debug("Chose join node " + best + " with cost " +
+            best.getCost());
+
+        return best;
+    }
+
+
+    /**
+     * Adds an index nested-loop join to the candidates for each index that
+     * can be probed with the join keys.  The index may be on the table of
+     * either subplan, as long as that subplan is a leaf plan.  Index
+     * nested-loop joins treat their left child as the outer relation, so
+     * probing an index on the left subplan's table is done by swapping the
+     * inputs, which is only possible for inner and right-outer joins.  The
+     * join nodes are prepared to find out whether they can probe the index,
+     * and are added to the candidates already prepared.
+     *
+     * @param candidates the list of candidate join nodes to add to
+     *
+     * @param left the left subplan of the join
+     *
+     * @param right the right subplan of the join
+     *
+     * @param joinType the type of join to perform
+     *
+     * @param predicate the join predicate, which must contain at least one
+     *        equijoin condition
+     */
+    private void addIndexJoinNodes(List<ThetaJoinNode> candidates,
+        PlanNode left, PlanNode right, JoinType joinType,
+        Expression predicate) {
+
+        if (joinType == JoinType.INNER || joinType == JoinType.LEFT_OUTER ||
+            joinType == JoinType.SEMIJOIN || joinType == JoinType.ANTIJOIN) {
+            for (IndexInfo indexInfo : getLeafIndexes(right)) {
+                IndexNestedLoopJoinNode indexJoin = new IndexNestedLoopJoinNode(
+                    left, right, indexInfo, joinType, predicate);
+                indexJoin.prepare();
+                if (indexJoin.getNumProbeColumns() > 0)
+                    candidates.add(indexJoin);
+            }
+        }
+
+        if (joinType == JoinType.INNER || joinType == JoinType.RIGHT_OUTER) {
+            JoinType swappedType = (joinType == JoinType.INNER) ?
+                JoinType.INNER : JoinType.LEFT_OUTER;
+
+            for (IndexInfo indexInfo : getLeafIndexes(left)) {
+                IndexNestedLoopJoinNode indexJoin = new IndexNestedLoopJoinNode(
+                    left, right, indexInfo, swappedType, predicate);
+                indexJoin.swap();
+                indexJoin.prepare();
+                if (indexJoin.getNumProbeColumns() > 0)
+                    candidates.add(indexJoin);
+            }
+        }
+    }
+
+
+    /**
+     * Returns the indexes on the table of a leaf plan, as produced by
+     * {@link #makeLeafPlan}.  If the plan isn't a leaf plan (see
+     * {@link PlanUtils#getLeafScan}), an empty list is returned.
+     *
+     * @param plan the plan to find the indexes of
+     *
+     * @return the indexes on the table that the plan scans
+     */
+    private List<IndexInfo> getLeafIndexes(PlanNode plan) {
+        ArrayList<IndexInfo> indexes = new ArrayList<>();
+
+        FileScanNode scan = PlanUtils.getLeafScan(plan);
+        if (scan == null || scan.getTableInfo() == null)
+            return indexes;
+
+        TableInfo tableInfo = scan.getTableInfo();
+
+        IndexManager indexManager = storageManager.getIndexManager();
+        TableSchema schema = tableInfo.getSchema();
+        for (String indexName : schema.getIndexes().keySet()) {
+            try {
+                IndexInfo indexInfo =
+                    indexManager.openIndex(tableInfo, indexName);
+
+                if (indexInfo.getTupleFile() instanceof SequentialTupleFile)
+                    indexes.add(indexInfo);
+            }
+            catch (IOException e) {
+                logger.warn("Couldn't open index " + indexName +
+                    " on table " + tableInfo.getTableName(), e);
+            }
+        }
+
+        return indexes;
+    }
+
+
+    /**
+     * Creates a merge join of two subplans, sorting each subplan on its join
+     * keys unless it already produces results in that order.  The right
+     * input of a merge join is rescanned for duplicate keys, so it is also
+     * sorted if it doesn't support marking.  Merge joins only handle
+     * left-outer joins, so right-outer joins are evaluated as left-outer joins
+     * with the inputs swapped.
+     *
+     * @param left the left subplan of the join
+     *
+     * @param right the right subplan of the join
+     *
+     * @param joinType the type of join to perform
+     *
+     * @param predicate the join predicate, which must contain at least one
+     *        equijoin condition
+     *
+     * @return a prepared merge-join node
+     */
+    private ThetaJoinNode makeMergeJoinNode(PlanNode left, PlanNode right,
+        JoinType joinType, Expression predicate) {
+
+        boolean swapped = (joinType == JoinType.RIGHT_OUTER);
+        JoinType mergeType = swapped ? JoinType.LEFT_OUTER : joinType;
+
+        // Find out which keys each input must be ordered on.  If neither
+        // input needs sorting, this node is the merge join itself.
+        MergeJoinNode keyFinder =
+            new MergeJoinNode(left, right, mergeType, predicate);
+        if (swapped)
+            keyFinder.swap();
+        keyFinder.prepare();
+
+        List<Expression> leftKeys = swapped ?
+            keyFinder.getRightJoinKeys() : keyFinder.getLeftJoinKeys();
+        List<Expression> rightKeys = swapped ?
+            keyFinder.getLeftJoinKeys() : keyFinder.getRightJoinKeys();
+
+        // After swapping, the original left input is the one rescanned.
+        PlanNode sortedLeft = sortOnKeys(left, leftKeys, swapped);
+        PlanNode sortedRight = sortOnKeys(right, rightKeys, !swapped);
+        if (sortedLeft == left && sortedRight == right)
+            return keyFinder;
+
+        MergeJoinNode mergeJoin =
+            new MergeJoinNode(sortedLeft, sortedRight, mergeType, predicate);
+        if (swapped)
+            mergeJoin.swap();
+        mergeJoin.prepare();
+
+        return mergeJoin;
+    }
+
+
+    /**
+     * Returns a plan producing the results of a subplan in ascending order of
+     * the specified keys, adding a {@link SortNode} if the subplan's results
+     * aren't already in that order.
+     *
+     * @param plan the prepared subplan
+     *
+     * @param keys the expressions that the results must be ordered on
+     *
+     * @param needsMarking true if the returned plan must support marking
+     *
+     * @return the subplan itself if it is suitably ordered, or a sort node
+     *         over the subplan
+     */
+    private PlanNode sortOnKeys(PlanNode plan, List<Expression> keys,
+                                boolean needsMarking) {
+
+        if (isOrderedOn(plan, keys) &&
+            (!needsMarking || plan.supportsMarking())) {
+            return plan;
+        }
+
+        ArrayList<OrderByExpression> orderByExprs = new ArrayList<>();
+        for (Expression key : keys)
+            orderByExprs.add(new OrderByExpression(key));
+
+        return new SortNode(plan, orderByExprs);
+    }
+
+
+    /**
+     * Returns true if a prepared plan produces its results in ascending order
+     * of the specified column references.
+     */
+    private boolean isOrderedOn(PlanNode plan, List<Expression> keys) {
+        List<OrderByExpression> order = plan.resultsOrderedBy();
+        if (order == null || order.size() < keys.size())
+            return false;
+
+        Schema schema = plan.getSchema();
+        for (int i = 0; i < keys.size(); i++) {
+            OrderByExpression orderByExpr = order.get(i);
+            if (!orderByExpr.isAscending())
+                return false;
+
+            int keyIndex = getColumnIndex(keys.get(i), schema);
+            if (keyIndex == -1 ||
+                keyIndex != getColumnIndex(orderByExpr.getExpression(), schema))
+                return false;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Returns the index of the column that an expression refers to, or -1 if
+     * the expression isn't a reference to a single column of the schema.
+     */
+    private int getColumnIndex(Expression expr, Schema schema) {
+        if (!(expr instanceof ColumnValue))
+            return -1;
+
+        try {
+            return schema.getColumnIndex(((ColumnValue) expr).getColumnName());
+        }
+        catch (SchemaNameException e) {
+            return -1;
+        }
     }
 
 
@@ -12,6 +12,14 @@ package edu.caltech.nanodb.queryeval;
  * @see TableStats
  */
 public class PlanCost {
+    /**
+     * The CPU cost that one disk-block access is considered to be equivalent
+     * to, when comparing the costs of plans.  A block holds many tuples, and
+     * reading it is much slower than processing one of them.
+     */
+    public static final float BLOCK_IO_COST = 10;
+
+
     /**
      * The estimated number of tuples produced by the node.  We use a
      * floating-point value because the computations frequently involve
@@ -72,6 +80,37 @@ public class PlanCost {
     }
 
 
+    /**
+     * Returns the overall cost of the plan, combining its CPU cost and the
+     * cost of its disk-block accesses.
+     *
+     * @return the overall cost of the plan, in the units of {@link #cpuCost}
+     */
+    public float getTotalCost() {
+        return cpuCost + numBlockIOs * BLOCK_IO_COST;
+    }
+
+
+    /**
+     * Returns true if this cost is lower than another cost, comparing their
+     * {@link #getTotalCost total costs}.  Plans with the same total cost are
+     * compared on the number of tuples they produce, since plans producing
+     * fewer tuples are cheaper for the plan nodes above them.
+     *
+     * @param other the cost to compare to
+     *
+     * @return true if this cost is lower than the other cost
+     */
+    public boolean isCheaperThan(PlanCost other) {
+        float total = getTotalCost();
+        float otherTotal = other.getTotalCost();
+        if (total != otherTotal)
+            return total < otherTotal;
+
+        return numTuples < other.numTuples;
+    }
+
+
     @Override
     public String toString() {
         return String.format("[tuples=%.1f, tupSize=%.1f, cpuCost=%.1f, blockIOs=%d]",
@@ -10,7 +10,9 @@ import edu.caltech.nanodb.expressions.BooleanOperator;
 import edu.caltech.nanodb.expressions.ColumnValue;
 import edu.caltech.nanodb.expressions.CompareOperator;
 import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.InValuesOperator;
 import edu.caltech.nanodb.expressions.LiteralValue;
+import edu.caltech.nanodb.expressions.TypeCastException;
 import edu.caltech.nanodb.expressions.TypeConverter;
 
 import edu.caltech.nanodb.relations.ColumnInfo;
@@ -23,6 +25,13 @@ import org.apache.log4j.Logger;
 /**
  * This utility class is used to estimate the selectivity of predicates that
  * appear on Select and Theta-Join plan-nodes.
+ * <p>
+ * When a column's statistics describe the distribution of its values (see
+ * {@link ColumnStats#hasDistribution}), equality, range and <tt>IN</tt>
+ * predicates are estimated from the column's most common values and
+ * histogram, and equijoins are estimated by matching up the most common
+ * values of the two columns.  Otherwise, values are assumed to be uniformly
+ * distributed between the column's minimum and maximum values.
  */
 public class SelectivityEstimator {
 
@@ -128,6 +137,11 @@ public class SelectivityEstimator {
             CompareOperator comp = (CompareOperator) expr;
             selectivity = estimateCompareSelectivity(comp, exprSchema, stats);
         }
+        else if (expr instanceof InValuesOperator) {
+            // This is a test of whether a value is in a list of values.
+            InValuesOperator in = (InValuesOperator) expr;
+            selectivity = estimateInValuesSelectivity(in, exprSchema, stats);
+        }
 
         return selectivity;
     }
@@ -246,6 +260,78 @@ public class SelectivityEstimator {
     }
 
 
+    /**
+     * This function computes a selectivity estimate for a range of values of
+     * a single column, such as the key ranges that an index scan reads.  A
+     * range whose bounds are equal is estimated like an equality comparison;
+     * other ranges are estimated from the column's minimum and maximum
+     * values when the column's type supports it.
+     *
+     * @param low the lower bound of the range, or {@code null} if the range
+     *        has no lower bound
+     *
+     * @param high the upper bound of the range, or {@code null} if the range
+     *        has no upper bound
+     *
+     * @param sqlType the SQL type of the column
+     *
+     * @param colStats statistics for the column
+     *
+     * @return a selectivity estimate in the range [0, 1].
+     */
+    public static float estimateRangeSelectivity(Object low, Object high,
+        SQLDataType sqlType, ColumnStats colStats) {
+
+        if (low == null && high == null)
+            return NO_SELECTIVITY;
+
+        if (low != null && high != null &&
+            CompareOperator.areObjectsEqual(low, high)) {
+            // The range is a single value.
+            float equal = estimateEqualsFraction(colStats, low);
+            if (equal >= 0)
+                return equal;
+
+            int numValues = colStats.getNumUniqueValues();
+            if (numValues != ColumnStats.UNKNOWN_NUM_VALUES && numValues != 0)
+                return 1.0f / numValues;
+
+            return DEFAULT_SELECTIVITY;
+        }
+
+        if (typeSupportsCompareEstimates(sqlType)) {
+            // Use the column's distribution if there is one.
+            float below = (low == null) ? 0 :
+                estimateLessFraction(colStats, low, false);
+            float upTo = (high == null) ? getNonNullFraction(colStats) :
+                estimateLessFraction(colStats, high, true);
+            if (below >= 0 && upTo >= 0)
+                return Math.max(0, upTo - below);
+        }
+
+        if (typeSupportsCompareEstimates(sqlType) &&
+            colStats.hasDifferentMinMaxValues()) {
+
+            Object min = colStats.getMinValue();
+            Object max = colStats.getMaxValue();
+            if (min != ColumnStats.UNKNOWN_OBJECT &&
+                max != ColumnStats.UNKNOWN_OBJECT) {
+                return computeRatio(low != null ? low : min,
+                    high != null ? high : max, min, max);
+            }
+        }
+
+        // Estimate each bound as a separate comparison.
+        float selectivity = 1.0f;
+        if (low != null)
+            selectivity *= DEFAULT_SELECTIVITY;
+        if (high != null)
+            selectivity *= DEFAULT_SELECTIVITY;
+
+        return selectivity;
+    }
+
+
     /**
      * This helper function computes a selectivity estimate for a comparison
      * between a column and a literal value.  Note that the comparison is always
@@ -278,6 +364,12 @@ public class SelectivityEstimator {
         // Pull out the critical values for making the estimates.
 
         int colIndex = exprSchema.getColumnIndex(columnValue.getColumnName());
+
+        // The column may come from an enclosing query, if the expression is
+        // part of a correlated subquery.
+        if (colIndex == -1)
+            return selectivity;
+
         ColumnInfo colInfo = exprSchema.getColumnInfo(colIndex);
         SQLDataType sqlType = colInfo.getType().getBaseType();
         ColumnStats colStats = stats.get(colIndex);
@@ -290,6 +382,17 @@ public class SelectivityEstimator {
             // Compute the equality value.  Then, if inequality, invert the
             // result.
 
+            float equal = estimateEqualsFraction(colStats, value);
+            if (equal >= 0) {
+                if (compType == CompareOperator.Type.EQUALS)
+                    selectivity = equal;
+                else
+                    selectivity = Math.max(0,
+                        getNonNullFraction(colStats) - equal);
+
+                break;
+            }
+
             int numValues = colStats.getNumUniqueValues();
             // Compute the selectivity. Default if numValues is unknown or 0.
             // Assumes values are uniformly distributed among unique values.
@@ -309,6 +412,19 @@ public class SelectivityEstimator {
             // Compute the greater-or-equal value.  Then, if less-than,
             // invert the result.
 
+            if (typeSupportsCompareEstimates(sqlType)) {
+                float less = estimateLessFraction(colStats, value, false);
+                if (less >= 0) {
+                    if (compType == CompareOperator.Type.LESS_THAN)
+                        selectivity = less;
+                    else
+                        selectivity = Math.max(0,
+                            getNonNullFraction(colStats) - less);
+
+                    break;
+                }
+            }
+
             // Only estimate selectivity for this kind of expression if the
             // column's type supports it.
             if (typeSupportsCompareEstimates(sqlType) &&
@@ -334,6 +450,20 @@ public class SelectivityEstimator {
             // Compute the less-or-equal value.  Then, if greater-than,
             // invert the result.
 
+            if (typeSupportsCompareEstimates(sqlType)) {
+                float lessOrEqual =
+                    estimateLessFraction(colStats, value, true);
+                if (lessOrEqual >= 0) {
+                    if (compType == CompareOperator.Type.LESS_OR_EQUAL)
+                        selectivity = lessOrEqual;
+                    else
+                        selectivity = Math.max(0,
+                            getNonNullFraction(colStats) - lessOrEqual);
+
+                    break;
+                }
+            }
+
             // Only estimate selectivity for this kind of expression if the
             // column's type supports it.
             if (typeSupportsCompareEstimates(sqlType) &&
@@ -393,9 +523,20 @@ public class SelectivityEstimator {
         int colOneIndex = exprSchema.getColumnIndex(columnOne.getColumnName());
         int colTwoIndex = exprSchema.getColumnIndex(columnTwo.getColumnName());
 
+        // Either column may come from an enclosing query, if the expression
+        // is part of a correlated subquery.
+        if (colOneIndex == -1 || colTwoIndex == -1)
+            return selectivity;
+
         ColumnStats colOneStats = stats.get(colOneIndex);
         ColumnStats colTwoStats = stats.get(colTwoIndex);
 
+        if (compType == CompareOperator.Type.EQUALS) {
+            float equal = estimateEquiJoinSelectivity(colOneStats, colTwoStats);
+            if (equal >= 0)
+                return equal;
+        }
+
         int v1 = colOneStats.getNumUniqueValues();
         int v2 = colTwoStats.getNumUniqueValues();
 
@@ -413,6 +554,353 @@ public class SelectivityEstimator {
     }
 
 
+    /**
+     * This helper function computes a selectivity estimate for an <tt>IN</tt>
+     * predicate that tests a column against a list of literal values, such as
+     * <tt>T1.A IN (1, 2, 3)</tt>.  The estimate is the sum of the estimates
+     * for the column being equal to each value.
+     *
+     * @param in the <tt>IN</tt> predicate
+     *
+     * @param exprSchema a schema specifying the environment that the expression
+     *        will be evaluated within
+     *
+     * @param stats a collection of column-statistics to use in making
+     *        selectivity estimates
+     *
+     * @return a selectivity estimate in the range [0, 1].
+     */
+    private static float estimateInValuesSelectivity(InValuesOperator in,
+        Schema exprSchema, ArrayList<ColumnStats> stats) {
+
+        if (!(in.getExpression() instanceof ColumnValue))
+            return DEFAULT_SELECTIVITY;
+
+        ColumnValue columnValue = (ColumnValue) in.getExpression();
+        int colIndex = exprSchema.getColumnIndex(columnValue.getColumnName());
+        if (colIndex == -1)
+            return DEFAULT_SELECTIVITY;
+
+        ColumnStats colStats = stats.get(colIndex);
+        int numValues = colStats.getNumUniqueValues();
+
+        float selectivity = 0;
+        for (Expression e : in.getValues()) {
+            if (!(e instanceof LiteralValue))
+                return DEFAULT_SELECTIVITY;
+
+            float equal = estimateEqualsFraction(colStats,
+                ((LiteralValue) e).evaluate());
+            if (equal < 0) {
+                if (numValues == ColumnStats.UNKNOWN_NUM_VALUES ||
+                    numValues == 0) {
+                    return DEFAULT_SELECTIVITY;
+                }
+                equal = 1.0f / numValues;
+            }
+            selectivity += equal;
+        }
+
+        logger.debug("Estimated selectivity of IN operator \"" + in +
+            "\" as " + selectivity);
+
+        return Math.min(selectivity, NO_SELECTIVITY);
+    }
+
+
+    /**
+     * Returns the number of rows that a column's distribution describes,
+     * including the rows where the column is <tt>NULL</tt>.
+     *
+     * @param colStats statistics for the column, which must have a
+     *        distribution
+     *
+     * @return the number of rows the column's statistics describe
+     */
+    private static int getNumRows(ColumnStats colStats) {
+        return colStats.getNumNonNullValues() +
+            Math.max(0, colStats.getNumNullValues());
+    }
+
+
+    /**
+     * Returns the fraction of a column's rows that are not <tt>NULL</tt>,
+     * which is the most that any comparison on the column can select.
+     *
+     * @param colStats statistics for the column
+     *
+     * @return the fraction of the column's rows that are not <tt>NULL</tt>
+     */
+    private static float getNonNullFraction(ColumnStats colStats) {
+        if (!colStats.hasDistribution() || getNumRows(colStats) == 0)
+            return NO_SELECTIVITY;
+
+        return (float) colStats.getNumNonNullValues() / getNumRows(colStats);
+    }
+
+
+    /**
+     * Estimates the fraction of a column's rows that are equal to a value,
+     * using the column's most common values.  Values that aren't among the
+     * most common values are assumed to share the remaining rows equally,
+     * and values outside the range of the column's histogram aren't present.
+     *
+     * @param colStats statistics for the column
+     * @param value the value to estimate
+     *
+     * @return the estimated fraction of rows, or -1 if the column's
+     *         statistics don't describe the distribution of its values
+     */
+    private static float estimateEqualsFraction(ColumnStats colStats,
+                                                Object value) {
+        if (!colStats.hasDistribution() ||
+            colStats.getNumUniqueValues() == ColumnStats.UNKNOWN_NUM_VALUES) {
+            return -1;
+        }
+
+        int numRows = getNumRows(colStats);
+        if (numRows == 0 || value == null)
+            return 0;
+
+        try {
+            Object[] mcvValues = colStats.getMostCommonValues();
+            int[] mcvCounts = colStats.getMostCommonCounts();
+            for (int i = 0; i < mcvValues.length; i++) {
+                if (CompareOperator.areObjectsEqual(mcvValues[i], value))
+                    return (float) mcvCounts[i] / numRows;
+            }
+
+            int numOtherDistinct =
+                colStats.getNumUniqueValues() - mcvValues.length;
+            if (numOtherDistinct <= 0)
+                return 0;
+
+            Object[] bounds = colStats.getHistogramBounds();
+            if (bounds != null &&
+                (compareValues(value, bounds[0]) < 0 ||
+                 compareValues(value, bounds[bounds.length - 1]) > 0)) {
+                return 0;
+            }
+
+            return (float) colStats.getNumOtherValues() / numRows /
+                numOtherDistinct;
+        }
+        catch (TypeCastException e) {
+            // The value can't be compared with the column's values.
+            return -1;
+        }
+    }
+
+
+    /**
+     * Estimates the fraction of a column's rows that are less than a value,
+     * or less than or equal to it, using the column's most common values and
+     * histogram.
+     *
+     * @param colStats statistics for the column
+     * @param value the value to compare the column's values to
+     * @param orEqual true if values equal to the value are also counted
+     *
+     * @return the estimated fraction of rows, or -1 if the column's
+     *         statistics don't describe the distribution of its values
+     */
+    private static float estimateLessFraction(ColumnStats colStats,
+                                              Object value, boolean orEqual) {
+        if (!colStats.hasDistribution() || value == null)
+            return -1;
+
+        int numRows = getNumRows(colStats);
+        if (numRows == 0)
+            return 0;
+
+        try {
+            float rows = 0;
+
+            Object[] mcvValues = colStats.getMostCommonValues();
+            int[] mcvCounts = colStats.getMostCommonCounts();
+            for (int i = 0; i < mcvValues.length; i++) {
+                int comp = compareValues(mcvValues[i], value);
+                if (comp < 0 || (orEqual && comp == 0))
+                    rows += mcvCounts[i];
+            }
+
+            int numOther = colStats.getNumOtherValues();
+            if (numOther > 0) {
+                Object[] bounds = colStats.getHistogramBounds();
+                if (bounds == null)
+                    return -1;
+
+                rows += numOther * estimateHistogramFraction(bounds, value);
+            }
+
+            return rows / numRows;
+        }
+        catch (TypeCastException e) {
+            // The value can't be compared with the column's values.
+            return -1;
+        }
+    }
+
+
+    /**
+     * Estimates the fraction of the values described by an equi-depth
+     * histogram that are less than a value.  Each bucket holds the same
+     * number of values, and values are assumed to be spread uniformly within
+     * a bucket.
+     *
+     * @param bounds the bucket boundaries of the histogram
+     * @param value the value to compare the histogram's values to
+     *
+     * @return the estimated fraction of the histogram's values
+     */
+    private static float estimateHistogramFraction(Object[] bounds,
+                                                   Object value) {
+        int numBuckets = bounds.length - 1;
+
+        if (compareValues(value, bounds[0]) <= 0)
+            return 0;
+
+        if (compareValues(value, bounds[numBuckets]) > 0)
+            return 1;
+
+        // Find the bucket containing the value.
+        int i = 0;
+        while (compareValues(value, bounds[i + 1]) > 0)
+            i++;
+
+        float within = 0.5f;
+        if (!CompareOperator.areObjectsEqual(bounds[i], bounds[i + 1]))
+            within = computeRatio(bounds[i], value, bounds[i], bounds[i + 1]);
+
+        return (i + within) / numBuckets;
+    }
+
+
+    /**
+     * Estimates the selectivity of an equijoin between two columns by
+     * matching up the columns' most common values.  Matching values
+     * contribute the product of their frequencies; the remaining values of
+     * each column are assumed to join uniformly with the other column's
+     * values that weren't matched.  The smaller of the estimates made from
+     * each side is used.
+     *
+     * @param stats1 statistics for the first column
+     * @param stats2 statistics for the second column
+     *
+     * @return a selectivity estimate in the range [0, 1], or -1 if the
+     *         columns' statistics don't describe their distributions
+     */
+    private static float estimateEquiJoinSelectivity(ColumnStats stats1,
+                                                     ColumnStats stats2) {
+        if (!stats1.hasDistribution() || !stats2.hasDistribution())
+            return -1;
+
+        int numDistinct1 = stats1.getNumUniqueValues();
+        int numDistinct2 = stats2.getNumUniqueValues();
+        if (numDistinct1 == ColumnStats.UNKNOWN_NUM_VALUES ||
+            numDistinct2 == ColumnStats.UNKNOWN_NUM_VALUES) {
+            return -1;
+        }
+
+        int numRows1 = getNumRows(stats1);
+        int numRows2 = getNumRows(stats2);
+        if (numRows1 == 0 || numRows2 == 0)
+            return 0;
+
+        Object[] values1 = stats1.getMostCommonValues();
+        Object[] values2 = stats2.getMostCommonValues();
+        int[] counts1 = stats1.getMostCommonCounts();
+        int[] counts2 = stats2.getMostCommonCounts();
+
+        // Match up the most common values of the two columns.
+        float matchProduct = 0;
+        float matchFreq1 = 0;
+        float matchFreq2 = 0;
+        int numMatches = 0;
+        boolean[] matched2 = new boolean[values2.length];
+        try {
+            for (int i = 0; i < values1.length; i++) {
+                for (int j = 0; j < values2.length; j++) {
+                    if (!matched2[j] && CompareOperator.areObjectsEqual(
+                            values1[i], values2[j])) {
+                        float freq1 = (float) counts1[i] / numRows1;
+                        float freq2 = (float) counts2[j] / numRows2;
+                        matchProduct += freq1 * freq2;
+                        matchFreq1 += freq1;
+                        matchFreq2 += freq2;
+                        matched2[j] = true;
+                        numMatches++;
+                        break;
+                    }
+                }
+            }
+        }
+        catch (TypeCastException e) {
+            // The columns' values can't be compared.
+            return -1;
+        }
+
+        int numOther1 = stats1.getNumOtherValues();
+        int numOther2 = stats2.getNumOtherValues();
+        float mcvFreq1 =
+            (float) (stats1.getNumNonNullValues() - numOther1) / numRows1;
+        float mcvFreq2 =
+            (float) (stats2.getNumNonNullValues() - numOther2) / numRows2;
+
+        float unmatchedFreq1 = mcvFreq1 - matchFreq1;
+        float unmatchedFreq2 = mcvFreq2 - matchFreq2;
+        float otherFreq1 = (float) numOther1 / numRows1;
+        float otherFreq2 = (float) numOther2 / numRows2;
+
+        int otherDistinct1 = numDistinct1 - values1.length;
+        int otherDistinct2 = numDistinct2 - values2.length;
+
+        // Estimate the selectivity from the first column's point of view,
+        // then from the second column's.
+        float selectivity1 = matchProduct;
+        if (otherDistinct2 > 0)
+            selectivity1 += unmatchedFreq1 * otherFreq2 / otherDistinct2;
+        if (numDistinct2 > numMatches) {
+            selectivity1 += otherFreq1 * (otherFreq2 + unmatchedFreq2) /
+                (numDistinct2 - numMatches);
+        }
+
+        float selectivity2 = matchProduct;
+        if (otherDistinct1 > 0)
+            selectivity2 += unmatchedFreq2 * otherFreq1 / otherDistinct1;
+        if (numDistinct1 > numMatches) {
+            selectivity2 += otherFreq2 * (otherFreq1 + unmatchedFreq1) /
+                (numDistinct1 - numMatches);
+        }
+
+        float selectivity = Math.min(selectivity1, selectivity2);
+        return Math.max(0, Math.min(selectivity, NO_SELECTIVITY));
+    }
+
+
+    /**
+     * Compares two values, using the database's rules for type conversions.
+     *
+     * @param obj1 the first value to compare
+     * @param obj2 the second value to compare
+     *
+     * @return a negative number, zero, or a positive number if the first
+     *         value is less than, equal to, or greater than the second
+     *
+     * @throws TypeCastException if the values can't be compared
+     */
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object obj1, Object obj2) {
+        TypeConverter.Pair pair = TypeConverter.coerceComparison(obj1, obj2);
+        if (!(pair.value1 instanceof Comparable)) {
+            throw new TypeCastException("Cannot compare values of type " +
+                pair.value1.getClass());
+        }
+
+        return ((Comparable) pair.value1).compareTo(pair.value2);
+    }
+
+
     /**
      * This method computes the function
      * (<em>high</em><sub>1</sub> - <em>low</em><sub>1</sub>) /
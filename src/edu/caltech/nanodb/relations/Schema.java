@@ -15,6 +15,7 @@ import java.util.SortedMap;
 import java.util.TreeMap;
 
 import edu.caltech.nanodb.expressions.ColumnName;
+import edu.caltech.nanodb.storage.TupleLayout;
 
 
 /**
@@ -85,6 +86,14 @@ public class Schema implements Serializable, Iterable<ColumnInfo> {
     private HashMap<String, ArrayList<IndexedColumnInfo>> colsHashedByColumn;
 
 
+    /**
+     * The layout of tuples with this schema in data pages, or {@code null}
+     * if it hasn't been computed yet.  It is discarded whenever a column is
+     * added.  See {@link TupleLayout#forSchema}.
+     */
+    private transient TupleLayout tupleLayout;
+
+
 
     public Schema() {
         columnInfos = new ArrayList<ColumnInfo>();
@@ -160,6 +169,28 @@ public class Schema implements Serializable, Iterable<ColumnInfo> {
     }
 
 
+    /**
+     * Returns the layout of tuples with this schema in data pages, or
+     * {@code null} if it hasn't been computed.  Use
+     * {@link TupleLayout#forSchema} to compute it when necessary.
+     *
+     * @return the layout of tuples with this schema, or {@code null}
+     */
+    public TupleLayout getTupleLayout() {
+        return tupleLayout;
+    }
+
+
+    /**
+     * Records the layout of tuples with this schema in data pages.
+     *
+     * @param tupleLayout the layout of tuples with this schema
+     */
+    public void setTupleLayout(TupleLayout tupleLayout) {
+        this.tupleLayout = tupleLayout;
+    }
+
+
     public Iterator<ColumnInfo> iterator() {
         return Collections.unmodifiableList(columnInfos).iterator();
     }
@@ -169,6 +200,8 @@ public class Schema implements Serializable, Iterable<ColumnInfo> {
         if (colInfo == null)
             throw new NullPointerException("colInfo cannot be null");
 
+        tupleLayout = null;
+
         String colName = colInfo.getName();
         String tblName = colInfo.getTableName();
 
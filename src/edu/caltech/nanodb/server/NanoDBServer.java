@@ -18,6 +18,7 @@ import edu.caltech.nanodb.commands.SelectCommand;
 import edu.caltech.nanodb.sqlparse.NanoSqlLexer;
 import edu.caltech.nanodb.sqlparse.NanoSqlParser;
 import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.transactions.TransactionManager;
 
 
 /**
@@ -167,6 +168,13 @@ public class NanoDBServer {
         // Post-command cleanup:
         storageManager.getBufferManager().unpinAllSessionPages();
 
+        // A transaction chosen as a deadlock victim, or that hit a write
+        // conflict, is rolled back only now, after the command has released
+        // its pins and latches.
+        TransactionManager txnManager = storageManager.getTransactionManager();
+        if (result.failed() && txnManager != null)
+            txnManager.rollbackAbortedTransaction(result.getFailure());
+
         // TODO:  Make this controllable via a property
         if (FLUSH_DATA_AFTER_CMD) {
             try {
@@ -28,6 +28,11 @@ import edu.caltech.nanodb.server.properties.UnrecognizedPropertyException;
  * The buffer manager reduces the number of disk IO operations by managing an
  * in-memory cache of data pages.  It also imposes a limit on the maximum
  * amount of space that can be used for data pages in the database.
+ * <p>
+ * The buffer manager may be used by many sessions at once, so its operations
+ * are synchronized on the buffer manager object.  Code that must perform
+ * several operations atomically, such as checking for a page and then adding
+ * it, can synchronize on the buffer manager as well.
  *
  * @todo Eventually add integrity checks, e.g. to make sure every cached
  *       page's file appears in the collection of cached files.
@@ -348,7 +353,7 @@ public class BufferManager {
      *         manager, and an IO error occurred while writing the page to
      *         persistent storage.
      */
-    public byte[] allocBuffer(int size) throws IOException {
+    public synchronized byte[] allocBuffer(int size) throws IOException {
         if (size <= 0)
             throw new IllegalArgumentException("size must be > 0, got " + size);
 
@@ -375,7 +380,7 @@ public class BufferManager {
     }
 
 
-    public void releaseBuffer(byte[] buffer) {
+    public synchronized void releaseBuffer(byte[] buffer) {
         // Verify that this was a buffer we allocated?
         // TODO:  System.identityHashCode() is not guaranteed to return a
         //        distinct value for every object, so we can have collisions
@@ -404,7 +409,7 @@ public class BufferManager {
      *         already been opened, or <tt>null</tt> if the file isn't currently
      *         open.
      */
-    public DBFile getFile(String filename) {
+    public synchronized DBFile getFile(String filename) {
         DBFile dbFile = cachedFiles.get(filename);
 
         logger.debug(String.format(
@@ -415,7 +420,7 @@ public class BufferManager {
     }
 
 
-    public void addFile(DBFile dbFile) {
+    public synchronized void addFile(DBFile dbFile) {
         if (dbFile == null)
             throw new IllegalArgumentException("dbFile cannot be null");
 
@@ -441,7 +446,7 @@ public class BufferManager {
      *
      * @param dbPage the page that was pinned by the session
      */
-    public void recordPagePinned(DBPage dbPage) {
+    public synchronized void recordPagePinned(DBPage dbPage) {
         int sessionID = SessionState.get().getSessionID();
 
         // Retrieve the set of pages pinned by the current session.
@@ -471,7 +476,7 @@ public class BufferManager {
      *
      * @param dbPage the page that was unpinned
      */
-    public void recordPageUnpinned(DBPage dbPage) {
+    public synchronized void recordPageUnpinned(DBPage dbPage) {
         int sessionID = SessionState.get().getSessionID();
 
         // Retrieve the set of pages pinned by the current session.
@@ -514,7 +519,7 @@ public class BufferManager {
      * generally done at the end of each transaction so that pages aren't
      * pinned forever, and can actually be evicted from the buffer manager.
      */
-    public void unpinAllSessionPages() {
+    public synchronized void unpinAllSessionPages() {
         // Unpin all pages pinned by this session.
         int sessionID = SessionState.get().getSessionID();
 
@@ -548,7 +553,7 @@ public class BufferManager {
     }
 
 
-    public void recordPageInvalidated(DBPage dbPage) {
+    public synchronized void recordPageInvalidated(DBPage dbPage) {
         if (dbPage == null)
             throw new IllegalArgumentException("dbPage cannot be null");
 
@@ -582,7 +587,7 @@ public class BufferManager {
      * @param pageNo the page number in the {@code DBFile} to retrieve
      * @return the requested {@code DBPage}, or {@code null} if not found
      */
-    public DBPage getPage(DBFile dbFile, int pageNo) {
+    public synchronized DBPage getPage(DBFile dbFile, int pageNo) {
         DBPage dbPage = cachedPages.get(new CachedPageInfo(dbFile, pageNo));
 
         logger.debug(String.format(
@@ -614,7 +619,7 @@ public class BufferManager {
      * @throws IllegalStateException if the page already appears in the Buffer
      *         Manager.
      */
-    public void addPage(DBPage dbPage) throws IOException {
+    public synchronized void addPage(DBPage dbPage) throws IOException {
         if (dbPage == null)
             throw new IllegalArgumentException("dbPage cannot be null");
 
@@ -763,7 +768,7 @@ public class BufferManager {
      * @throws IOException if an IO error occurs while updating the write-ahead
      *         log, or while writing the file's contents.
      */
-    public void writeDBFile(DBFile dbFile, int minPageNo, int maxPageNo,
+    public synchronized void writeDBFile(DBFile dbFile, int minPageNo, int maxPageNo,
                             boolean sync) throws IOException {
 
         logger.info(String.format("Writing all dirty pages for file %s to disk%s.",
@@ -819,7 +824,7 @@ public class BufferManager {
      * @throws IOException if an IO error occurs while updating the write-ahead
      *         log, or while writing the file's contents.
      */
-    public void writeDBFile(DBFile dbFile, boolean sync) throws IOException {
+    public synchronized void writeDBFile(DBFile dbFile, boolean sync) throws IOException {
         writeDBFile(dbFile, 0, Integer.MAX_VALUE, sync);
     }
 
@@ -837,7 +842,7 @@ public class BufferManager {
      * @throws IOException if an IO error occurs while updating the write-ahead
      *         log, or while writing the file's contents.
      */
-    public void writeAll(boolean sync) throws IOException {
+    public synchronized void writeAll(boolean sync) throws IOException {
         logger.info("Writing ALL dirty pages in the Buffer Manager to disk.");
 
         Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
@@ -889,7 +894,7 @@ public class BufferManager {
      * @throws IOException if an IO error occurs while updating the write-ahead
      *         log, or the file's contents
      */
-    public void flushDBFile(DBFile dbFile) throws IOException {
+    public synchronized void flushDBFile(DBFile dbFile) throws IOException {
         logger.info("Flushing all pages for file " + dbFile +
             " from the Buffer Manager.");
 
@@ -942,7 +947,7 @@ public class BufferManager {
      * @throws IOException if an IO error occurs while updating the write-ahead
      *         log, or the file's contents
      */
-    public void flushAll() throws IOException {
+    public synchronized void flushAll() throws IOException {
         logger.info("Flushing ALL database pages from the Buffer Manager.");
 
         Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
@@ -987,7 +992,7 @@ public class BufferManager {
      *
      * @throws IOException if an IO error occurs while writing out dirty pages
      */
-    public void removeDBFile(DBFile dbFile) throws IOException {
+    public synchronized void removeDBFile(DBFile dbFile) throws IOException {
         logger.info("Removing DBFile " + dbFile + " from buffer manager");
         flushDBFile(dbFile);
         cachedFiles.remove(dbFile.getDataFile().getName());
@@ -1005,7 +1010,7 @@ public class BufferManager {
      *
      * @throws IOException if an IO error occurs while writing out dirty pages
      */
-    public List<DBFile> removeAll() throws IOException {
+    public synchronized List<DBFile> removeAll() throws IOException {
         logger.info("Removing ALL DBFiles from buffer manager");
 
         // Flush all pages, ensuring that dirty pages will be written too.
@@ -4,6 +4,7 @@ package edu.caltech.nanodb.storage;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.log4j.Logger;
 
@@ -17,9 +18,13 @@ import edu.caltech.nanodb.storage.writeahead.LogSequenceNumber;
  * (zero-based) index in the file, and whether the page has been changed in
  * memory, are tracked by the object.
  * <p>
- * Database pages do not provide any locking mechanisms to guard against
- * concurrent access.  Locking must be managed at a level above what this class
- * provides.
+ * Each page has a <em>latch</em>, a short-term reader/writer lock that
+ * sessions can use to guard the page's contents while they are reading or
+ * changing them.  Latches are not transactional locks; they are held only
+ * for the duration of an operation on the page, and it is up to the code
+ * that accesses the page to acquire them in a deadlock-free order.  See the
+ * {@link #latchShared}, {@link #latchExclusive} and {@link #unlatch}
+ * methods.
  * <p>
  * The class provides methods to read and write a wide range of data types.
  * Multibyte values are stored in big-endian format, with the most significant
@@ -93,6 +98,14 @@ public class DBPage implements Pinnable, AutoCloseable {
     private byte[] oldPageData;
 
 
+    /**
+     * The latch guarding the page's contents against concurrent access.
+     * Since a page may only be evicted once it is unpinned, sessions must
+     * hold a pin on the page for as long as they hold its latch.
+     */
+    private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+
+
     /**
      * Constructs a new, empty table-page for the specified table file.
      * Note that the page data is not loaded into the object; that must be
@@ -195,25 +208,32 @@ public class DBPage implements Pinnable, AutoCloseable {
     @Override
     public void pin() {
         logger.debug(String.format("Pinning page %d", this.getPageNo()));
-        pinCount++;
 
-        // To facilitate debugging of pinned-page leaks!
-        bufferManager.recordPagePinned(this);
+        // The Buffer Manager decides whether pages can be evicted while
+        // holding its own monitor, so pin-counts are updated under it too.
+        synchronized (bufferManager) {
+            pinCount++;
+
+            // To facilitate debugging of pinned-page leaks!
+            bufferManager.recordPagePinned(this);
+        }
     }
 
 
     @Override
     public void unpin() {
         logger.debug(String.format("Unpinning page %d", this.getPageNo()));
-        if (pinCount <= 0) {
-            throw new IllegalStateException(
-                "pinCount is not positive (value is " + pinCount + ")");
-        }
+        synchronized (bufferManager) {
+            if (pinCount <= 0) {
+                throw new IllegalStateException(
+                    "pinCount is not positive (value is " + pinCount + ")");
+            }
 
-        // To facilitate debugging of pinned-page leaks!
-        bufferManager.recordPageUnpinned(this);
+            // To facilitate debugging of pinned-page leaks!
+            bufferManager.recordPageUnpinned(this);
 
-        pinCount--;
+            pinCount--;
+        }
 
         // Don't do anything else to the data page, because at this point,
         // it may still contain dirty data that needs to be flushed to disk
@@ -221,6 +241,51 @@ public class DBPage implements Pinnable, AutoCloseable {
     }
 
 
+    /**
+     * Acquires the page's latch in shared mode, blocking until no other
+     * session holds it in exclusive mode.  Shared latches allow a session to
+     * read the page while other sessions read it too.
+     */
+    public void latchShared() {
+        latch.readLock().lock();
+    }
+
+
+    /**
+     * Acquires the page's latch in exclusive mode, blocking until no other
+     * session holds it.  An exclusive latch is required to modify the page
+     * while other sessions may be accessing it.
+     */
+    public void latchExclusive() {
+        latch.writeLock().lock();
+    }
+
+
+    /**
+     * Releases the page's latch, which the current thread must hold in
+     * either shared or exclusive mode.
+     */
+    public void unlatch() {
+        if (latch.isWriteLockedByCurrentThread())
+            latch.writeLock().unlock();
+        else
+            latch.readLock().unlock();
+    }
+
+
+    /**
+     * Returns true if the current thread holds the page's latch in exclusive
+     * mode.  Code that reads the page may be called while the page is being
+     * changed, and can use this to avoid also latching the page in shared
+     * mode, since {@link #unlatch} would then release the exclusive latch.
+     *
+     * @return true if the current thread holds the latch exclusively
+     */
+    public boolean isLatchedExclusively() {
+        return latch.isWriteLockedByCurrentThread();
+    }
+
+
     @Override
     public int getPinCount() {
         return pinCount;
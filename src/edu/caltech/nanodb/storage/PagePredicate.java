@@ -0,0 +1,423 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.CompareOperator;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.LiteralValue;
+
+import edu.caltech.nanodb.relations.ColumnType;
+import edu.caltech.nanodb.relations.SQLDataType;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.SchemaNameException;
+
+
+/**
+ * This class evaluates a conjunction of simple comparisons directly against
+ * tuple data stored in a {@link DBPage}, using the layout described in
+ * {@link PageTuple}.  This allows a file scan to reject tuples without
+ * constructing a tuple object for them, or decoding any of their values.
+ * <p>
+ * Only conjuncts of the form <tt>column op literal</tt> (or <tt>literal op
+ * column</tt>) are supported, where the column is a numeric column and the
+ * literal is a number, or the column is a <tt>CHAR</tt> or <tt>VARCHAR</tt>
+ * column and the literal is a string.  These comparisons produce the same
+ * results as {@link CompareOperator} would produce on the decoded values.
+ * Other conjuncts must be evaluated against the tuples in the usual way.
+ */
+public class PagePredicate {
+
+    /** A conjunct of the form <tt>column op literal</tt>. */
+    private static class ColumnComparison {
+        int colIndex;
+
+        CompareOperator.Type type;
+
+        /** True if the column is compared as a <tt>long</tt>. */
+        boolean compareLongs;
+
+        /** True if the column is compared as a <tt>float</tt>. */
+        boolean compareFloats;
+
+        long longValue;
+
+        float floatValue;
+
+        double doubleValue;
+
+        /** The bytes of a string literal, for string columns. */
+        byte[] stringValue;
+    }
+
+
+    /** The schema of the tuples that the predicate is evaluated against. */
+    private Schema schema;
+
+
+    /** The comparisons, ordered by the index of the column they use. */
+    private ArrayList<ColumnComparison> comparisons = new ArrayList<>();
+
+
+    /** The type of each column in the schema. */
+    private ColumnType[] columnTypes;
+
+
+    /** The layout of the tuples, used to step over their values. */
+    private TupleLayout layout;
+
+
+    /** The number of bytes in the tuples' <tt>NULL</tt>-bitmap. */
+    private int nullFlagsSize;
+
+
+    /**
+     * Creates a page predicate with no conjuncts, for tuples with the
+     * specified schema.
+     *
+     * @param schema the schema of the tuples the predicate is evaluated
+     *        against
+     */
+    public PagePredicate(Schema schema) {
+        if (schema == null)
+            throw new IllegalArgumentException("schema cannot be null");
+
+        this.schema = schema;
+
+        columnTypes = new ColumnType[schema.numColumns()];
+        for (int i = 0; i < columnTypes.length; i++)
+            columnTypes[i] = schema.getColumnInfo(i).getType();
+
+        layout = TupleLayout.forSchema(schema);
+        nullFlagsSize = layout.getNullFlagsSize();
+    }
+
+
+    /** Returns true if the predicate has no conjuncts. */
+    public boolean isEmpty() {
+        return comparisons.isEmpty();
+    }
+
+
+    /** Returns the number of conjuncts in the predicate. */
+    public int getNumConjuncts() {
+        return comparisons.size();
+    }
+
+
+    /**
+     * Adds a conjunct to the predicate, if the conjunct can be evaluated
+     * against the tuple data in a page.
+     *
+     * @param term the conjunct to add
+     *
+     * @return true if the conjunct was added, or false if it must be
+     *         evaluated against tuples instead
+     */
+    public boolean addConjunct(Expression term) {
+        if (!(term instanceof CompareOperator))
+            return false;
+
+        CompareOperator cmp = (CompareOperator) term;
+        Expression lhs = cmp.getLeftExpression();
+        Expression rhs = cmp.getRightExpression();
+        CompareOperator.Type type = cmp.getType();
+
+        if (lhs instanceof LiteralValue && rhs instanceof ColumnValue) {
+            Expression tmp = lhs;
+            lhs = rhs;
+            rhs = tmp;
+            type = flip(type);
+        }
+
+        if (!(lhs instanceof ColumnValue && rhs instanceof LiteralValue))
+            return false;
+
+        int colIndex;
+        try {
+            colIndex = schema.getColumnIndex(
+                ((ColumnValue) lhs).getColumnName());
+        }
+        catch (SchemaNameException e) {
+            // Let the usual evaluation report the problem.
+            return false;
+        }
+
+        // The column may come from an enclosing query's environment.
+        if (colIndex < 0)
+            return false;
+
+        Object value = rhs.evaluate(null);
+        if (value == null) {
+            // Comparisons with NULL are never true, but they are rare enough
+            // not to bother with.
+            return false;
+        }
+
+        ColumnComparison comparison = new ColumnComparison();
+        comparison.colIndex = colIndex;
+        comparison.type = type;
+
+        if (!setComparisonValue(comparison, columnTypes[colIndex], value))
+            return false;
+
+        comparisons.add(comparison);
+        Collections.sort(comparisons, new Comparator<ColumnComparison>() {
+            @Override
+            public int compare(ColumnComparison c1, ColumnComparison c2) {
+                return Integer.compare(c1.colIndex, c2.colIndex);
+            }
+        });
+
+        return true;
+    }
+
+
+    /**
+     * Sets up how a column of the specified type is compared to a literal,
+     * following the type coercions that {@link CompareOperator} performs.
+     *
+     * @return true if the column can be compared to the literal, or false
+     *         if the comparison isn't supported
+     */
+    private static boolean setComparisonValue(ColumnComparison comparison,
+        ColumnType colType, Object value) {
+
+        boolean integral = (value instanceof Integer ||
+            value instanceof Long || value instanceof Short ||
+            value instanceof Byte);
+
+        switch (colType.getBaseType()) {
+        case TINYINT:
+        case SMALLINT:
+        case INTEGER:
+        case BIGINT:
+            if (integral)
+                comparison.compareLongs = true;
+            else if (value instanceof Float)
+                comparison.compareFloats = true;
+            else if (!(value instanceof Double))
+                return false;
+            break;
+
+        case FLOAT:
+            // A float is only widened to a double if the literal is a double.
+            if (integral || value instanceof Float)
+                comparison.compareFloats = true;
+            else if (!(value instanceof Double))
+                return false;
+            break;
+
+        case DOUBLE:
+            if (!integral && !(value instanceof Double ||
+                               value instanceof Float)) {
+                return false;
+            }
+            break;
+
+        case CHAR:
+        case VARCHAR:
+            if (!(value instanceof String))
+                return false;
+
+            // Stored strings are US-ASCII, so the bytes of the column and
+            // the literal compare in the same order as the strings.
+            String str = (String) value;
+            byte[] bytes = new byte[str.length()];
+            for (int i = 0; i < bytes.length; i++) {
+                char ch = str.charAt(i);
+                if (ch >= 128)
+                    return false;
+
+                bytes[i] = (byte) ch;
+            }
+            comparison.stringValue = bytes;
+            return true;
+
+        default:
+            return false;
+        }
+
+        Number num = (Number) value;
+        comparison.longValue = num.longValue();
+        comparison.floatValue = num.floatValue();
+        comparison.doubleValue = num.doubleValue();
+        return true;
+    }
+
+
+    /**
+     * Evaluates the predicate against a tuple stored in a data page.
+     *
+     * @param dbPage the page containing the tuple
+     * @param tupleStart the offset of the tuple's <tt>NULL</tt>-bitmap in
+     *        the page
+     *
+     * @return true if the tuple satisfies every conjunct in the predicate
+     */
+    public boolean evaluate(DBPage dbPage, int tupleStart) {
+        byte[] data = dbPage.getPageData();
+
+        // Walk forward through the tuple's values, only as far as the last
+        // column that is compared.
+        int iCol = 0;
+        int valueOffset = tupleStart + nullFlagsSize;
+
+        for (ColumnComparison comparison : comparisons) {
+            while (iCol < comparison.colIndex) {
+                if (!isNull(data, tupleStart, iCol)) {
+                    valueOffset +=
+                        layout.getValueSize(dbPage, iCol, valueOffset);
+                }
+                iCol++;
+            }
+
+            // Comparisons with NULL are never true.
+            if (isNull(data, tupleStart, iCol))
+                return false;
+
+            if (!compareValue(dbPage, valueOffset, comparison))
+                return false;
+        }
+
+        return true;
+    }
+
+
+    private static boolean isNull(byte[] data, int tupleStart, int iCol) {
+        return (data[tupleStart + iCol / 8] & (1 << (iCol % 8))) != 0;
+    }
+
+
+    private boolean compareValue(DBPage dbPage, int offset,
+                                 ColumnComparison comparison) {
+        ColumnType colType = columnTypes[comparison.colIndex];
+        int compResult;
+
+        switch (colType.getBaseType()) {
+        case TINYINT:
+        case SMALLINT:
+        case INTEGER:
+        case BIGINT:
+            long longValue;
+            if (colType.getBaseType() == SQLDataType.TINYINT)
+                longValue = dbPage.readByte(offset);
+            else if (colType.getBaseType() == SQLDataType.SMALLINT)
+                longValue = dbPage.readShort(offset);
+            else if (colType.getBaseType() == SQLDataType.INTEGER)
+                longValue = dbPage.readInt(offset);
+            else
+                longValue = dbPage.readLong(offset);
+
+            if (comparison.compareLongs)
+                compResult = Long.compare(longValue, comparison.longValue);
+            else if (comparison.compareFloats)
+                compResult = Float.compare(longValue, comparison.floatValue);
+            else
+                compResult = Double.compare(longValue, comparison.doubleValue);
+            break;
+
+        case FLOAT:
+            float floatValue = dbPage.readFloat(offset);
+            if (comparison.compareFloats)
+                compResult = Float.compare(floatValue, comparison.floatValue);
+            else
+                compResult = Double.compare(floatValue, comparison.doubleValue);
+            break;
+
+        case DOUBLE:
+            compResult = Double.compare(dbPage.readDouble(offset),
+                comparison.doubleValue);
+            break;
+
+        case CHAR:
+            // Fixed-size strings are padded with 0-bytes, which aren't part
+            // of the value.
+            byte[] data = dbPage.getPageData();
+            int len = colType.getLength();
+            while (len > 0 && data[offset + len - 1] == 0)
+                len--;
+
+            compResult = compareBytes(data, offset, len,
+                comparison.stringValue);
+            break;
+
+        case VARCHAR:
+            compResult = compareBytes(dbPage.getPageData(), offset + 2,
+                dbPage.readUnsignedShort(offset), comparison.stringValue);
+            break;
+
+        default:
+            throw new IllegalStateException(
+                "Unexpected column type " + colType.getBaseType());
+        }
+
+        return compare(comparison.type, compResult);
+    }
+
+
+    /** Compares a range of bytes to another array of bytes, unsigned. */
+    private static int compareBytes(byte[] data, int offset, int len,
+                                    byte[] value) {
+        int n = Math.min(len, value.length);
+        for (int i = 0; i < n; i++) {
+            int b1 = data[offset + i] & 0xFF;
+            int b2 = value[i] & 0xFF;
+            if (b1 != b2)
+                return b1 - b2;
+        }
+
+        return len - value.length;
+    }
+
+
+    private static boolean compare(CompareOperator.Type type, int compResult) {
+        switch (type) {
+        case EQUALS:
+            return compResult == 0;
+
+        case NOT_EQUALS:
+            return compResult != 0;
+
+        case LESS_THAN:
+            return compResult < 0;
+
+        case GREATER_THAN:
+            return compResult > 0;
+
+        case LESS_OR_EQUAL:
+            return compResult <= 0;
+
+        case GREATER_OR_EQUAL:
+            return compResult >= 0;
+
+        default:
+            throw new IllegalArgumentException(
+                "Unrecognized comparison type " + type);
+        }
+    }
+
+
+    /** Returns the comparison with its operands swapped. */
+    private static CompareOperator.Type flip(CompareOperator.Type type) {
+        switch (type) {
+        case LESS_THAN:
+            return CompareOperator.Type.GREATER_THAN;
+
+        case GREATER_THAN:
+            return CompareOperator.Type.LESS_THAN;
+
+        case LESS_OR_EQUAL:
+            return CompareOperator.Type.GREATER_OR_EQUAL;
+
+        case GREATER_OR_EQUAL:
+            return CompareOperator.Type.LESS_OR_EQUAL;
+
+        default:
+            return type;
+        }
+    }
+}
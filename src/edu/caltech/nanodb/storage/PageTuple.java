@@ -38,6 +38,21 @@ import edu.caltech.nanodb.relations.Tuple;
  * Thus, concrete subclasses of this class can provide page-level data
  * management as needed.
  * </p>
+ * <p>
+ * The offsets of the tuple's values are computed lazily, only as far as the
+ * last column that has been accessed, so that reading the first few columns
+ * of a wide tuple doesn't require walking all of its values.  A tuple may
+ * also be restricted to a projection of its columns with
+ * {@link #setProjectedColumns}; the other columns then read as
+ * <tt>NULL</tt>, and are never decoded.
+ * </p>
+ * <p>
+ * Values are located and decoded using the {@link TupleLayout} of the
+ * tuple's schema, which is computed once per schema.  The leading fixed-size
+ * columns of a tuple are found at constant offsets unless an earlier column
+ * is <tt>NULL</tt>, and each column is decoded according to the type that
+ * the layout recorded for it.
+ * </p>
  */
 public abstract class PageTuple implements Tuple {
 
@@ -68,27 +83,59 @@ public abstract class PageTuple implements Tuple {
     private Schema schema;
 
 
+    /** The layout of tuples with this tuple's schema. */
+    private TupleLayout layout;
+
+
     /**
      * This array contains the cached offsets of each value in this tuple.
-     * The array is populated when a tuple is constructed.  For columns with
-     * a value of <tt>NULL</tt>, the offset will be 0.
+     * The array is populated lazily; only the first
+     * {@link #numOffsetsComputed} entries are valid.  For columns with a
+     * value of <tt>NULL</tt>, the offset will be 0.
      *
      * @see #NULL_OFFSET
      */
     private int[] valueOffsets;
 
 
+    /** The number of leading entries of {@link #valueOffsets} that are valid. */
+    private int numOffsetsComputed;
+
+
+    /**
+     * The offset in the page where the value of the first column whose offset
+     * hasn't been computed yet would start.
+     */
+    private int nextValueOffset;
+
+
+    /**
+     * The index of the tuple's first <tt>NULL</tt> column, the number of
+     * columns if no column is <tt>NULL</tt>, or -1 if this hasn't been
+     * determined yet.
+     */
+    private int firstNullColumn;
+
+
     /**
      * The offset in the page where the tuple's data ends.  Note that this value
      * is <u>one byte past</u> the end of the tuple's data; as with most Java
      * sequences, the starting offset is inclusive and the ending offset is
      * exclusive.  Also, as a consequence, this value could be past the end of
      * the byte-array that the tuple resides in, if the tuple is at the end of
-     * the byte-array.
+     * the byte-array.  This is only valid once the offsets of all columns
+     * have been computed.
      */
     private int endOffset;
 
 
+    /**
+     * The columns of the tuple that are read, or {@code null} if all columns
+     * are read.  Columns that aren't projected are reported as <tt>NULL</tt>.
+     */
+    private boolean[] projectedColumns;
+
+
     /**
      * Construct a new tuple object that is backed by the data in the database
      * page.  This tuple is able to be read from or written to.
@@ -111,12 +158,14 @@ public abstract class PageTuple implements Tuple {
         this.pageOffset = pageOffset;
         this.schema = schema;
 
+        layout = TupleLayout.forSchema(schema);
+
         // Pin ourselves immediately so that we don't lose the DBPage.
         pin();
 
         valueOffsets = new int[schema.numColumns()];
 
-        computeValueOffsets();
+        resetValueOffsets();
     }
 
 
@@ -127,7 +176,7 @@ public abstract class PageTuple implements Tuple {
      * @return {@code true} since page tuples are backed by disk pages.
      */
     public boolean isDiskBacked() {
-        return false;
+        return true;
     }
 
 
@@ -186,12 +235,41 @@ public abstract class PageTuple implements Tuple {
     }
 
 
+    /**
+     * Moves this tuple object to the tuple at another location, so that a
+     * single object can be reused to read a sequence of tuples.  Any pins
+     * held on the tuple are moved to the new page.  The projection of the
+     * tuple's columns, if any, is retained.
+     *
+     * @param dbPage     the database page that holds the tuple
+     * @param pageOffset the offset of the tuple's actual data in the page
+     */
+    protected void setLocation(DBPage dbPage, int pageOffset) {
+        if (pageOffset < 0 || pageOffset >= dbPage.getPageSize()) {
+            throw new IllegalArgumentException("pageOffset must be in range [0, " +
+                dbPage.getPageSize() + "); got " + pageOffset);
+        }
+
+        if (dbPage != this.dbPage) {
+            for (int i = 0; i < pinCount; i++) {
+                dbPage.pin();
+                this.dbPage.unpin();
+            }
+            this.dbPage = dbPage;
+        }
+
+        this.pageOffset = pageOffset;
+        resetValueOffsets();
+    }
+
+
     public int getOffset() {
         return pageOffset;
     }
 
 
     public int getEndOffset() {
+        computeValueOffsets(schema.numColumns());
         return endOffset;
     }
 
@@ -202,7 +280,39 @@ public abstract class PageTuple implements Tuple {
      * @return the storage-size of the tuple in bytes.
      */
     public int getSize() {
-        return endOffset - pageOffset;
+        return getEndOffset() - pageOffset;
+    }
+
+
+    /**
+     * Restricts the columns that are read from this tuple.  Columns outside
+     * of the projection are reported as <tt>NULL</tt> without being decoded,
+     * so this must only be used when nothing reads those columns.  A tuple
+     * with a projection cannot be modified.
+     *
+     * @param projectedColumns an array with a {@code true} element for each
+     *        column that is read, or {@code null} to read all columns
+     */
+    public void setProjectedColumns(boolean[] projectedColumns) {
+        if (projectedColumns != null &&
+            projectedColumns.length != schema.numColumns()) {
+            throw new IllegalArgumentException(
+                "Projection has " + projectedColumns.length +
+                " columns, but the tuple has " + schema.numColumns());
+        }
+
+        this.projectedColumns = projectedColumns;
+    }
+
+
+    /**
+     * Returns the columns that are read from this tuple, or {@code null} if
+     * all columns are read.
+     *
+     * @return the projection of this tuple's columns, or {@code null}
+     */
+    public boolean[] getProjectedColumns() {
+        return projectedColumns;
     }
 
 
@@ -303,22 +413,39 @@ public abstract class PageTuple implements Tuple {
     private int getDataStartOffset() {
         // Compute how many bytes the NULL flags take, at the start of the
         // tuple data.
-        int nullFlagBytes = getNullFlagsSize(schema.numColumns());
-        return pageOffset + nullFlagBytes;
+        return pageOffset + layout.getNullFlagsSize();
+    }
+
+
+    /**
+     * Discards the cached value offsets, so that they are computed again from
+     * the start of the tuple's data when they are next needed.
+     */
+    private void resetValueOffsets() {
+        numOffsetsComputed = 0;
+        nextValueOffset = getDataStartOffset();
+        firstNullColumn = -1;
     }
 
 
     /**
      * This helper function computes and caches the offset of each column
-     * value in the tuple.  If a column has a <tt>NULL</tt> value then
-     * {@link #NULL_OFFSET} is used for the offset.
+     * value in the tuple, up to the specified number of columns.  Offsets
+     * that were already computed are not computed again.  If a column has a
+     * <tt>NULL</tt> value then {@link #NULL_OFFSET} is used for the offset.
+     *
+     * @param numCols the number of leading columns to compute offsets for
      */
-    private void computeValueOffsets() {
-        int numCols = schema.numColumns();
+    private void computeValueOffsets(int numCols) {
+        if (numCols <= numOffsetsComputed)
+            return;
+
+        if (numOffsetsComputed == 0)
+            computeConstantOffsets();
 
-        int valOffset = getDataStartOffset();
+        int valOffset = nextValueOffset;
 
-        for (int iCol = 0; iCol < numCols; iCol++) {
+        for (int iCol = numOffsetsComputed; iCol < numCols; iCol++) {
             if (getNullFlag(iCol)) {
                 // This column is marked as being NULL.
                 valueOffsets[iCol] = NULL_OFFSET;
@@ -327,37 +454,57 @@ public abstract class PageTuple implements Tuple {
                 // This column is not NULL.  Store the current offset, then
                 // move forward past this value's bytes.
                 valueOffsets[iCol] = valOffset;
-
-                ColumnType colType = schema.getColumnInfo(iCol).getType();
-                valOffset += getColumnValueSize(colType, valOffset);
+                valOffset += layout.getValueSize(dbPage, iCol, valOffset);
             }
         }
 
-        endOffset = valOffset;
+        numOffsetsComputed = Math.max(numOffsetsComputed, numCols);
+        nextValueOffset = valOffset;
+
+        if (numOffsetsComputed == schema.numColumns())
+            endOffset = valOffset;
     }
 
 
     /**
-     * Returns the number of bytes used by the column-value at the specified
-     * offset, with the specified type.
-     *
-     * @param colType the column type, which includes both the basic SQL data
-     *        type (e.g. <tt>VARCHAR</tt>) and the size/length of the column's
-     *        type.
+     * Fills in the offsets of the leading fixed-size columns that precede
+     * the tuple's first <tt>NULL</tt> column.  These are constant for the
+     * tuple's schema, so they are taken from the layout rather than found
+     * by walking over the values.
+     */
+    private void computeConstantOffsets() {
+        if (firstNullColumn == -1)
+            firstNullColumn = layout.findFirstNullColumn(dbPage, pageOffset);
+
+        int numConstant =
+            Math.min(layout.getNumConstantOffsets(), firstNullColumn);
+
+        int dataStart = getDataStartOffset();
+        for (int iCol = 0; iCol < numConstant; iCol++)
+            valueOffsets[iCol] = dataStart + layout.getConstantOffset(iCol);
+
+        numOffsetsComputed = numConstant;
+        nextValueOffset = dataStart + layout.getConstantOffset(numConstant);
+
+        if (numOffsetsComputed == schema.numColumns())
+            endOffset = nextValueOffset;
+    }
+
+
+    /**
+     * Returns the offset of the specified column's value, computing the
+     * offsets of the columns before it if necessary.
      *
-     * @param valueOffset the offset in the data where the column's value
-     *        actually starts
+     * @param colIndex the index of the column
      *
-     * @return the total number of bytes used by the column-value
+     * @return the offset of the column's value, or {@link #NULL_OFFSET} if
+     *         the column is <tt>NULL</tt>
      */
-    private int getColumnValueSize(ColumnType colType, int valueOffset) {
-        // VARCHAR is special - the storage size depends on the size of the
-        // data value being stored.  In this case, read out the data length.
-        int dataLength = 0;
-        if (colType.getBaseType() == SQLDataType.VARCHAR)
-            dataLength = dbPage.readUnsignedShort(valueOffset);
+    private int getValueOffset(int colIndex) {
+        if (colIndex >= numOffsetsComputed)
+            computeValueOffsets(colIndex + 1);
 
-        return getStorageSize(colType, dataLength);
+        return valueOffsets[colIndex];
     }
 
 
@@ -366,11 +513,15 @@ public abstract class PageTuple implements Tuple {
      * <tt>NULL</tt> value.
      *
      * @return <tt>true</tt> if the specified column is currently set to
-     *         <tt>NULL</tt>, or <tt>false</tt> otherwise.
+     *         <tt>NULL</tt> or isn't projected, or <tt>false</tt> otherwise.
      */
     public boolean isNullValue(int colIndex) {
         checkColumnIndex(colIndex);
-        return (valueOffsets[colIndex] == NULL_OFFSET);
+
+        if (projectedColumns != null && !projectedColumns[colIndex])
+            return true;
+
+        return (getValueOffset(colIndex) == NULL_OFFSET);
     }
 
 
@@ -394,54 +545,8 @@ public abstract class PageTuple implements Tuple {
         checkColumnIndex(colIndex);
 
         Object value = null;
-        if (!isNullValue(colIndex)) {
-            int offset = valueOffsets[colIndex];
-
-            ColumnType colType = schema.getColumnInfo(colIndex).getType();
-            switch (colType.getBaseType()) {
-
-            case INTEGER:
-                value = Integer.valueOf(dbPage.readInt(offset));
-                break;
-
-            case SMALLINT:
-                value = Short.valueOf(dbPage.readShort(offset));
-                break;
-
-            case BIGINT:
-                value = Long.valueOf(dbPage.readLong(offset));
-                break;
-
-            case TINYINT:
-                value = Byte.valueOf(dbPage.readByte(offset));
-                break;
-
-            case FLOAT:
-                value = Float.valueOf(dbPage.readFloat(offset));
-                break;
-
-            case DOUBLE:
-                value = Double.valueOf(dbPage.readDouble(offset));
-                break;
-
-            case CHAR:
-                value = dbPage.readFixedSizeString(offset, colType.getLength());
-                break;
-
-            case VARCHAR:
-                value = dbPage.readVarString65535(offset);
-                break;
-
-            case FILE_POINTER:
-                value = new FilePointer(dbPage.readUnsignedShort(offset),
-                                        dbPage.readUnsignedShort(offset + 2));
-                break;
-
-            default:
-                throw new UnsupportedOperationException(
-                    "Cannot currently store type " + colType.getBaseType());
-            }
-        }
+        if (!isNullValue(colIndex))
+            value = layout.readValue(dbPage, colIndex, valueOffsets[colIndex]);
 
         return value;
     }
@@ -459,6 +564,15 @@ public abstract class PageTuple implements Tuple {
     public void setColumnValue(int colIndex, Object value) {
         checkColumnIndex(colIndex);
 
+        if (projectedColumns != null) {
+            throw new IllegalStateException(
+                "Cannot modify a tuple with a projection of its columns");
+        }
+
+        // Changing a value moves the values after it, so all of the value
+        // offsets are needed.
+        computeValueOffsets(schema.numColumns());
+
         if (value == null) {
             // Set the column-value to NULL.
             setNullColumnValue(colIndex);
@@ -502,7 +616,7 @@ public abstract class PageTuple implements Tuple {
 
             // Update valueOffsets array, by shifting forward affected data.
             pageOffset += size;
-            computeValueOffsets();
+            resetValueOffsets();
         }
     }
 
@@ -579,10 +693,10 @@ public abstract class PageTuple implements Tuple {
 
         // Update valueOffsets array
         pageOffset -= lengthChange;
-        computeValueOffsets();
+        resetValueOffsets();
 
         // Finally, write data to the updated offset.
-        writeNonNullValue(dbPage, valueOffsets[iCol], colType, value);
+        writeNonNullValue(dbPage, getValueOffset(iCol), colType, value);
     }
 
 
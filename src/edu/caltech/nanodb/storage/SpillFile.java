@@ -0,0 +1,323 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.relations.Tuple;
+
+
+/**
+ * <p>
+ * A spill file is a temporary file that plan nodes use to hold tuples that
+ * don't fit in memory, such as the partitions of a hash join whose build
+ * side is too large.  Tuples are appended to the file, and then once writing
+ * is finished the file can be read back (as many times as necessary) in the
+ * order the tuples were written.
+ * </p>
+ * <p>
+ * Spill files are not database files:  they don't go through the Buffer
+ * Manager, they aren't logged, and they don't survive a restart.  Each value
+ * is written with a one-byte tag describing its Java type, so that tuples
+ * computed by expressions round-trip exactly.  The file is removed from disk
+ * when {@link #delete} is called; plan nodes delete their spill files when
+ * they are cleaned up.
+ * </p>
+ */
+public class SpillFile {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(SpillFile.class);
+
+
+    /**
+     * The system property that can be used to specify the directory that
+     * spill files are created in.  If unspecified, the JVM's temporary
+     * directory is used.
+     */
+    public static final String PROP_SPILL_DIR = "nanodb.spilldir";
+
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_BOOLEAN = 1;
+    private static final byte TAG_BYTE = 2;
+    private static final byte TAG_SHORT = 3;
+    private static final byte TAG_INTEGER = 4;
+    private static final byte TAG_LONG = 5;
+    private static final byte TAG_FLOAT = 6;
+    private static final byte TAG_DOUBLE = 7;
+    private static final byte TAG_STRING = 8;
+    private static final byte TAG_DECIMAL = 9;
+    private static final byte TAG_FILE_POINTER = 10;
+
+
+    /** The temporary file holding the spilled tuples. */
+    private File file;
+
+
+    /** The stream tuples are written to, or {@code null} once writing ends. */
+    private DataOutputStream output;
+
+
+    /** The stream tuples are read from, if the file is being read. */
+    private DataInputStream input;
+
+
+    /** The number of tuples written to the file. */
+    private int numTuples;
+
+
+    /** The number of tuples read since reading was last started. */
+    private int numTuplesRead;
+
+
+    /** The number of bytes written to the file. */
+    private long size;
+
+
+    /**
+     * Creates a new, empty spill file that is ready for writing.
+     *
+     * @param prefix a prefix for the temporary file's name, to make it
+     *        easier to tell what created a particular file
+     *
+     * @throws IOException if the file cannot be created
+     */
+    public SpillFile(String prefix) throws IOException {
+        String dirName = System.getProperty(PROP_SPILL_DIR);
+        File dir = (dirName != null) ? new File(dirName) : null;
+
+        file = File.createTempFile(prefix, ".spill", dir);
+
+        output = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(file)));
+
+        logger.debug("Created spill file " + file);
+    }
+
+
+    /**
+     * Appends a tuple to the end of the spill file.
+     *
+     * @param tuple the tuple to write
+     *
+     * @throws IOException if the tuple cannot be written, or if it contains
+     *         a value that cannot be spilled
+     *
+     * @throws IllegalStateException if reading of the file has started
+     */
+    public void addTuple(Tuple tuple) throws IOException {
+        if (output == null)
+            throw new IllegalStateException("Spill file is no longer writable");
+
+        int start = output.size();
+
+        int numCols = tuple.getColumnCount();
+        output.writeShort(numCols);
+        for (int i = 0; i < numCols; i++)
+            writeValue(tuple.getColumnValue(i));
+
+        // DataOutputStream.size() saturates at Integer.MAX_VALUE, so track
+        // the total separately and just use the difference here.
+        size += output.size() - start;
+        numTuples++;
+    }
+
+
+    private void writeValue(Object value) throws IOException {
+        if (value == null) {
+            output.writeByte(TAG_NULL);
+        }
+        else if (value instanceof Integer) {
+            output.writeByte(TAG_INTEGER);
+            output.writeInt((Integer) value);
+        }
+        else if (value instanceof String) {
+            byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+            output.writeByte(TAG_STRING);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+        else if (value instanceof Long) {
+            output.writeByte(TAG_LONG);
+            output.writeLong((Long) value);
+        }
+        else if (value instanceof Double) {
+            output.writeByte(TAG_DOUBLE);
+            output.writeDouble((Double) value);
+        }
+        else if (value instanceof Float) {
+            output.writeByte(TAG_FLOAT);
+            output.writeFloat((Float) value);
+        }
+        else if (value instanceof Short) {
+            output.writeByte(TAG_SHORT);
+            output.writeShort((Short) value);
+        }
+        else if (value instanceof Byte) {
+            output.writeByte(TAG_BYTE);
+            output.writeByte((Byte) value);
+        }
+        else if (value instanceof Boolean) {
+            output.writeByte(TAG_BOOLEAN);
+            output.writeBoolean((Boolean) value);
+        }
+        else if (value instanceof BigDecimal) {
+            output.writeByte(TAG_DECIMAL);
+            output.writeUTF(value.toString());
+        }
+        else if (value instanceof FilePointer) {
+            FilePointer fptr = (FilePointer) value;
+            output.writeByte(TAG_FILE_POINTER);
+            output.writeInt(fptr.getPageNo());
+            output.writeInt(fptr.getOffset());
+        }
+        else {
+            throw new IOException("Cannot spill values of type " +
+                value.getClass().getName());
+        }
+    }
+
+
+    /**
+     * Starts reading the spill file from the first tuple.  This ends writing
+     * to the file; no more tuples may be added.  Reading may be restarted
+     * any number of times.
+     *
+     * @throws IOException if the file cannot be opened for reading
+     */
+    public void startReading() throws IOException {
+        if (output != null) {
+            output.close();
+            output = null;
+        }
+
+        if (input != null)
+            input.close();
+
+        input = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(file)));
+        numTuplesRead = 0;
+    }
+
+
+    /**
+     * Returns the next tuple from the spill file, or {@code null} if all
+     * tuples have been read.
+     *
+     * @return the next tuple from the spill file, or {@code null} if all
+     *         tuples have been read
+     *
+     * @throws IOException if the tuple cannot be read
+     *
+     * @throws IllegalStateException if {@link #startReading} hasn't been
+     *         called
+     */
+    public TupleLiteral getNextTuple() throws IOException {
+        if (input == null)
+            throw new IllegalStateException("Spill file is not being read");
+
+        if (numTuplesRead == numTuples)
+            return null;
+
+        int numCols = input.readUnsignedShort();
+        TupleLiteral tuple = new TupleLiteral(numCols);
+        for (int i = 0; i < numCols; i++)
+            tuple.setColumnValue(i, readValue());
+
+        numTuplesRead++;
+        return tuple;
+    }
+
+
+    private Object readValue() throws IOException {
+        byte tag = input.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+
+            case TAG_BOOLEAN:
+                return input.readBoolean();
+
+            case TAG_BYTE:
+                return input.readByte();
+
+            case TAG_SHORT:
+                return input.readShort();
+
+            case TAG_INTEGER:
+                return input.readInt();
+
+            case TAG_LONG:
+                return input.readLong();
+
+            case TAG_FLOAT:
+                return input.readFloat();
+
+            case TAG_DOUBLE:
+                return input.readDouble();
+
+            case TAG_STRING:
+                byte[] bytes = new byte[input.readInt()];
+                input.readFully(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+
+            case TAG_DECIMAL:
+                return new BigDecimal(input.readUTF());
+
+            case TAG_FILE_POINTER:
+                int pageNo = input.readInt();
+                int offset = input.readInt();
+                return new FilePointer(pageNo, offset);
+
+            default:
+                throw new IOException("Unrecognized value tag " + tag +
+                    " in spill file " + file);
+        }
+    }
+
+
+    /** Returns the number of tuples written to the spill file. */
+    public int getNumTuples() {
+        return numTuples;
+    }
+
+
+    /** Returns the number of bytes written to the spill file. */
+    public long getSize() {
+        return size;
+    }
+
+
+    /**
+     * Closes and deletes the spill file.  The object cannot be used after
+     * this method is called.
+     */
+    public void delete() {
+        try {
+            if (output != null)
+                output.close();
+
+            if (input != null)
+                input.close();
+        }
+        catch (IOException e) {
+            logger.warn("Couldn't close spill file " + file, e);
+        }
+        output = null;
+        input = null;
+
+        if (!file.delete())
+            logger.warn("Couldn't delete spill file " + file);
+    }
+}
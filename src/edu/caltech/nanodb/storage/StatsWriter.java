@@ -5,14 +5,30 @@ import java.util.ArrayList;
 
 import org.apache.log4j.Logger;
 
+import edu.caltech.nanodb.expressions.TypeConverter;
 import edu.caltech.nanodb.queryeval.ColumnStats;
 import edu.caltech.nanodb.queryeval.TableStats;
 import edu.caltech.nanodb.relations.ColumnInfo;
+import edu.caltech.nanodb.relations.ColumnType;
+import edu.caltech.nanodb.relations.SQLDataType;
 import edu.caltech.nanodb.relations.Schema;
 
 
 /**
- * Created by donnie on 2/27/14.
+ * <p>
+ * This class reads and writes the statistics of a table, which are stored in
+ * the table's header page after its schema.  The table-level statistics come
+ * first, followed by the basic statistics of each column (number of distinct
+ * values, number of <tt>NULL</tt>s, and minimum and maximum values).
+ * </p>
+ * <p>
+ * After those, each column has a flag byte indicating whether the
+ * distribution of the column's values follows:  the number of
+ * non-<tt>NULL</tt> values, the most common values and their counts, and
+ * the bounds of the column's histogram.  The distribution of a column is
+ * only written if it fits in the rest of the header page, so that large
+ * values can't overflow the page.
+ * </p>
  */
 public class StatsWriter {
     /** A logging object for reporting anything interesting that happens. */
@@ -47,7 +63,31 @@ public class StatsWriter {
     private static final int COLSTAT_NULLMASK_MAX_VALUE = 0x01;
 
 
+    /**
+     * The flag written before a column's distribution when the distribution
+     * is stored.
+     */
+    private static final int COLSTAT_HAS_DISTRIBUTION = 0x01;
+
+
     public void writeTableStats(Schema schema, TableStats stats, PageWriter pgWriter) {
+        writeTableStats(schema, stats, pgWriter,
+            pgWriter.getDBPage().getPageSize());
+    }
+
+
+    /**
+     * Writes a table's statistics to a page, leaving out column
+     * distributions that would extend past the specified offset.
+     *
+     * @param schema the schema of the table
+     * @param stats the table's statistics
+     * @param pgWriter the writer to write the statistics with
+     * @param endOffset the offset in the page that the statistics must end
+     *        at, so that values stored after it are not overwritten
+     */
+    public void writeTableStats(Schema schema, TableStats stats,
+                                PageWriter pgWriter, int endOffset) {
         logger.debug("Writing table-statistics:  " + stats);
 
         int startPosition = pgWriter.getPosition();
@@ -105,6 +145,42 @@ public class StatsWriter {
                 pgWriter.writeObject(colInfo.getType(), maxVal);
         }
 
+        // Write out the value distribution of each column that has one, as
+        // long as there is room for the flag bytes of the remaining columns.
+        for (int i = 0; i < colStats.size(); i++) {
+            ColumnStats c = colStats.get(i);
+            ColumnType colType = schema.getColumnInfo(i).getType();
+
+            int available = endOffset - pgWriter.getPosition() -
+                (colStats.size() - i);
+            if (!c.hasDistribution() ||
+                getDistributionSize(c, colType) > available) {
+                pgWriter.writeByte(0);
+                continue;
+            }
+
+            pgWriter.writeByte(COLSTAT_HAS_DISTRIBUTION);
+            pgWriter.writeInt(c.getNumNonNullValues());
+
+            Object[] mcvValues = c.getMostCommonValues();
+            int[] mcvCounts = c.getMostCommonCounts();
+            pgWriter.writeByte(mcvValues.length);
+            for (int j = 0; j < mcvValues.length; j++) {
+                pgWriter.writeObject(colType, mcvValues[j]);
+                pgWriter.writeInt(mcvCounts[j]);
+            }
+
+            Object[] bounds = c.getHistogramBounds();
+            if (bounds != null) {
+                pgWriter.writeByte(bounds.length);
+                for (Object bound : bounds)
+                    pgWriter.writeObject(colType, bound);
+            }
+            else {
+                pgWriter.writeByte(0);
+            }
+        }
+
         if (logger.isDebugEnabled()) {
             int size = pgWriter.getPosition() - startPosition;
             logger.debug("Table statistics occupy " + size + " bytes.");
@@ -149,6 +225,81 @@ public class StatsWriter {
             colStats.add(c);
         }
 
+        for (int i = 0; i < schema.numColumns(); i++) {
+            int flags = pgReader.readUnsignedByte();
+            if ((flags & COLSTAT_HAS_DISTRIBUTION) == 0)
+                continue;
+
+            ColumnStats c = colStats.get(i);
+            ColumnType colType = schema.getColumnInfo(i).getType();
+
+            c.setNumNonNullValues(pgReader.readInt());
+
+            int numMCVs = pgReader.readUnsignedByte();
+            Object[] mcvValues = new Object[numMCVs];
+            int[] mcvCounts = new int[numMCVs];
+            for (int j = 0; j < numMCVs; j++) {
+                mcvValues[j] = pgReader.readObject(colType);
+                mcvCounts[j] = pgReader.readInt();
+            }
+            c.setMostCommonValues(mcvValues, mcvCounts);
+
+            int numBounds = pgReader.readUnsignedByte();
+            if (numBounds > 0) {
+                Object[] bounds = new Object[numBounds];
+                for (int j = 0; j < numBounds; j++)
+                    bounds[j] = pgReader.readObject(colType);
+                c.setHistogramBounds(bounds);
+            }
+
+            logger.debug(String.format("Read column-stat distribution:  " +
+                "nonnull=%d, %d most common values, %d histogram bounds",
+                c.getNumNonNullValues(), numMCVs, numBounds));
+        }
+
         return new TableStats(numDataPages, numTuples, avgTupleSize, colStats);
     }
+
+
+    /**
+     * Returns the number of bytes needed to store the value distribution of
+     * a column, including the flag byte that precedes it.
+     *
+     * @param c the column's statistics
+     * @param colType the type of the column
+     *
+     * @return the number of bytes needed to store the column's distribution
+     */
+    private static int getDistributionSize(ColumnStats c, ColumnType colType) {
+        // The flag, the number of non-NULL values, and the two list sizes.
+        int size = 1 + 4 + 1 + 1;
+
+        for (Object value : c.getMostCommonValues())
+            size += getValueSize(value, colType) + 4;
+
+        Object[] bounds = c.getHistogramBounds();
+        if (bounds != null) {
+            for (Object bound : bounds)
+                size += getValueSize(bound, colType);
+        }
+
+        return size;
+    }
+
+
+    /**
+     * Returns the number of bytes needed to store a value of a column.
+     *
+     * @param value the value
+     * @param colType the type of the column
+     *
+     * @return the number of bytes needed to store the value
+     */
+    private static int getValueSize(Object value, ColumnType colType) {
+        int dataLength = 0;
+        if (colType.getBaseType() == SQLDataType.VARCHAR)
+            dataLength = TypeConverter.getStringValue(value).length();
+
+        return PageTuple.getStorageSize(colType, dataLength);
+    }
 }
@@ -23,7 +23,12 @@ import edu.caltech.nanodb.server.properties.UnrecognizedPropertyException;
 
 import edu.caltech.nanodb.storage.btreefile.BTreeTupleFileManager;
 import edu.caltech.nanodb.storage.heapfile.HeapTupleFileManager;
+import edu.caltech.nanodb.storage.writeahead.WALRecordType;
+import edu.caltech.nanodb.transactions.DeadlockException;
+import edu.caltech.nanodb.transactions.LockMode;
+import edu.caltech.nanodb.transactions.Snapshot;
 import edu.caltech.nanodb.transactions.TransactionManager;
+import edu.caltech.nanodb.transactions.WriteConflictException;
 
 
 /**
@@ -450,25 +455,30 @@ public class StorageManager {
     public DBPage loadDBPage(DBFile dbFile, int pageNo, boolean create)
         throws IOException {
 
-        // Try to retrieve from the buffer manager.
-        DBPage dbPage = bufferManager.getPage(dbFile, pageNo);
-        if (dbPage == null) {
-            // Buffer manager didn't have it.  Read the page directly from
-            // the file, then add it to the buffer manager.
-            dbPage = new DBPage(bufferManager, dbFile, pageNo);
-            try {
-                fileManager.loadPage(dbFile, pageNo, dbPage.getPageData(), create);
-                bufferManager.addPage(dbPage);
-            }
-            catch (IOException e) {
-                // Make sure to release the DBPage's buffer, or else we will
-                // have a resource leak...
-                dbPage.invalidate();
-                throw e;
+        // Hold the buffer manager's monitor so that two sessions missing on
+        // the same page can't both load it and add it.
+        synchronized (bufferManager) {
+            // Try to retrieve from the buffer manager.
+            DBPage dbPage = bufferManager.getPage(dbFile, pageNo);
+            if (dbPage == null) {
+                // Buffer manager didn't have it.  Read the page directly from
+                // the file, then add it to the buffer manager.
+                dbPage = new DBPage(bufferManager, dbFile, pageNo);
+                try {
+                    fileManager.loadPage(dbFile, pageNo, dbPage.getPageData(),
+                                         create);
+                    bufferManager.addPage(dbPage);
+                }
+                catch (IOException e) {
+                    // Make sure to release the DBPage's buffer, or else we
+                    // will have a resource leak...
+                    dbPage.invalidate();
+                    throw e;
+                }
             }
-        }
 
-        return dbPage;
+            return dbPage;
+        }
     }
 
 
@@ -515,6 +525,158 @@ public class StorageManager {
     }
 
 
+    /**
+     * This method logs the insertion of a tuple into a heap-file data page,
+     * using a compact record that holds only the new tuple's bytes and slot.
+     * Any other changes to the page should be logged with
+     * {@link #logDBPageWrite} before the tuple is inserted.
+     *
+     * @param dbPage the page the tuple was inserted into
+     * @param slot the slot that the new tuple was stored in
+     * @param tupleOffset the offset of the new tuple's data in the page
+     * @param tupleLength the length of the new tuple's data
+     */
+    public void logTupleInsert(DBPage dbPage, int slot, int tupleOffset,
+                               int tupleLength) throws IOException {
+        if (transactionManager != null) {
+            transactionManager.recordTupleChange(WALRecordType.INSERT_TUPLE,
+                dbPage, slot, tupleOffset, tupleLength);
+        }
+    }
+
+
+    /**
+     * This method logs the deletion of a tuple from a heap-file data page,
+     * using a compact record that holds only the old tuple's bytes and slot.
+     * Any other changes to the page should be logged with
+     * {@link #logDBPageWrite} before the tuple is deleted.
+     *
+     * @param dbPage the page the tuple was deleted from
+     * @param slot the slot that the tuple was stored in
+     * @param tupleOffset the offset the tuple's data had in the page
+     * @param tupleLength the length of the tuple's data
+     */
+    public void logTupleDelete(DBPage dbPage, int slot, int tupleOffset,
+                               int tupleLength) throws IOException {
+        if (transactionManager != null) {
+            transactionManager.recordTupleChange(WALRecordType.DELETE_TUPLE,
+                dbPage, slot, tupleOffset, tupleLength);
+        }
+    }
+
+
+    /**
+     * This method logs an in-place update of a tuple in a heap-file data
+     * page, using a compact record that holds only the changed bytes of the
+     * tuple.  Any other changes to the page should be logged with
+     * {@link #logDBPageWrite} before the tuple is updated.
+     *
+     * @param dbPage the page containing the tuple
+     * @param slot the slot of the tuple
+     * @param tupleOffset the offset of the tuple's data in the page
+     * @param tupleLength the length of the tuple's data
+     */
+    public void logTupleUpdate(DBPage dbPage, int slot, int tupleOffset,
+                               int tupleLength) throws IOException {
+        if (transactionManager != null) {
+            transactionManager.recordTupleChange(WALRecordType.UPDATE_TUPLE,
+                dbPage, slot, tupleOffset, tupleLength);
+        }
+    }
+
+
+    /**
+     * This method locks an entire tuple file on behalf of the current
+     * transaction.  If transaction processing is disabled, or no transaction
+     * is in progress, this method does nothing.
+     *
+     * @param dbFile the tuple file to lock
+     * @param mode the lock mode to acquire
+     *
+     * @throws DeadlockException if the lock couldn't be acquired without
+     *         deadlocking; the current transaction is rolled back once the
+     *         command has failed
+     */
+    public void lockTable(DBFile dbFile, LockMode mode) {
+        if (transactionManager != null)
+            transactionManager.lockTable(dbFile.getDataFile().getName(), mode);
+    }
+
+
+    /**
+     * This method locks a single tuple on behalf of the current transaction.
+     * If transaction processing is disabled, or no transaction is in
+     * progress, this method does nothing.
+     *
+     * @param dbFile the tuple file containing the tuple
+     * @param fptr the location of the tuple within the file
+     * @param mode the lock mode to acquire; must be {@link LockMode#S} or
+     *        {@link LockMode#X}
+     *
+     * @throws DeadlockException if the lock couldn't be acquired without
+     *         deadlocking; the current transaction is rolled back once the
+     *         command has failed
+     */
+    public void lockTuple(DBFile dbFile, FilePointer fptr, LockMode mode) {
+        if (transactionManager != null) {
+            transactionManager.lockRow(dbFile.getDataFile().getName(), fptr,
+                mode);
+        }
+    }
+
+
+    /**
+     * Returns the snapshot that tuple-file scans should use to decide which
+     * tuple versions are visible, or {@code null} if transaction processing
+     * or multi-version concurrency control is disabled, or no transaction
+     * is in progress.  When this is {@code null}, only tuple versions that
+     * haven't been deleted are visible.
+     *
+     * @return the current transaction's snapshot, or {@code null}
+     */
+    public Snapshot getSnapshot() {
+        if (transactionManager == null)
+            return null;
+
+        return transactionManager.getSnapshot();
+    }
+
+
+    /**
+     * Returns the lowest transaction ID whose deletions may still need to be
+     * seen by some transaction.  Tuple versions deleted by transactions
+     * below this ID can be removed from tuple files.
+     *
+     * @return the lowest transaction ID that is not yet safe to vacuum
+     */
+    public int getVacuumHorizon() {
+        if (transactionManager == null)
+            return Integer.MAX_VALUE;
+
+        return transactionManager.getVacuumHorizon();
+    }
+
+
+    /**
+     * Aborts the current transaction because the specified tuple was
+     * changed by a concurrent transaction after the current transaction's
+     * snapshot was taken.  The transaction is rolled back once the command
+     * has failed.
+     *
+     * @param dbFile the tuple file containing the tuple
+     * @param fptr the location of the tuple within the file
+     *
+     * @throws WriteConflictException always
+     */
+    public void abortOnWriteConflict(DBFile dbFile, FilePointer fptr) {
+        if (transactionManager == null)
+            throw new IllegalStateException("Transactions are disabled!");
+
+        transactionManager.abortOnWriteConflict("tuple " + fptr + " of " +
+            dbFile.getDataFile().getName());
+    }
+
+
     /**
      * This method allows all data to be flushed from the Buffer Manager.  It
      * should not be used in practice, but it is useful to remove buffering to
@@ -128,10 +128,14 @@ public interface TupleFile {
      *        column-type of the specified columns.  Only the columns being
      *        modified need to be specified in this collection.
      *
+     * @return the tuple in the file that holds the new values.  Tuple files
+     *         that keep multiple versions of tuples may return a different
+     *         tuple than the one passed in.
+     *
      * @throws IOException if an IO error occurs while trying to modify the
      *         tuple's values.
      */
-    void updateTuple(Tuple tuple, Map<String, Object> newValues)
+    Tuple updateTuple(Tuple tuple, Map<String, Object> newValues)
         throws IOException;
 
 
@@ -0,0 +1,270 @@
+package edu.caltech.nanodb.storage;
+
+
+import edu.caltech.nanodb.relations.ColumnType;
+import edu.caltech.nanodb.relations.SQLDataType;
+import edu.caltech.nanodb.relations.Schema;
+
+
+/**
+ * <p>
+ * This class describes how the tuples of a particular schema are laid out
+ * in data pages, so that {@link PageTuple} doesn't have to examine each
+ * column's type every time it reads a value.  The layout is computed once
+ * per schema, and records:
+ * </p>
+ * <ul>
+ *   <li>the base type of each column, in an array that values are decoded
+ *       by switching on, so that decoding a value is a jump in the compiled
+ *       code rather than a call through an interface</li>
+ *   <li>the storage size of each fixed-size column</li>
+ *   <li>the offset of each column in the leading run of fixed-size columns,
+ *       relative to the start of the tuple's data.  When none of those
+ *       columns is <tt>NULL</tt>, their values can be found without walking
+ *       over the values before them.</li>
+ * </ul>
+ * <p>
+ * The layout of a schema is stored on the schema itself, and retrieved with
+ * {@link #forSchema}.  Tuple files build their schema's layout when the
+ * table is opened, so reading tuples never has to compute one or take a
+ * lock to find it.  Layouts are immutable, so threads that see a schema's
+ * layout also see all of its contents.
+ * </p>
+ */
+public final class TupleLayout {
+
+    /** The number of columns in the schema. */
+    private final int numColumns;
+
+
+    /** The number of bytes in each tuple's <tt>NULL</tt>-bitmap. */
+    private final int nullFlagsSize;
+
+
+    /** The type of each column. */
+    private final ColumnType[] columnTypes;
+
+
+    /** The base type of each column, which selects how it is decoded. */
+    private final SQLDataType[] baseTypes;
+
+
+    /**
+     * The storage size of each column's values, or -1 for columns whose
+     * values vary in size.
+     */
+    private final int[] fixedSizes;
+
+
+    /**
+     * The offsets of the values of the leading fixed-size columns, relative
+     * to the start of the tuple's data.  Entry <em>i</em> is the total size
+     * of the columns before column <em>i</em>, so the array has one more
+     * entry than there are leading fixed-size columns; the last entry is the
+     * offset of the first variable-size column, or of the end of the data.
+     */
+    private final int[] constantOffsets;
+
+
+    /**
+     * Returns the layout for tuples with the specified schema, computing it
+     * and storing it on the schema if the schema doesn't have one yet.  Two
+     * threads may both compute the layout of a new schema; they compute the
+     * same thing, so it doesn't matter which one is kept.
+     *
+     * @param schema the schema of the tuples
+     *
+     * @return the layout of the schema's tuples
+     */
+    public static TupleLayout forSchema(Schema schema) {
+        TupleLayout layout = schema.getTupleLayout();
+        if (layout == null) {
+            layout = new TupleLayout(schema);
+            schema.setTupleLayout(layout);
+        }
+        return layout;
+    }
+
+
+    /**
+     * Computes the layout of tuples with the specified schema.
+     *
+     * @param schema the schema of the tuples
+     */
+    private TupleLayout(Schema schema) {
+        numColumns = schema.numColumns();
+        nullFlagsSize = PageTuple.getNullFlagsSize(numColumns);
+
+        columnTypes = new ColumnType[numColumns];
+        baseTypes = new SQLDataType[numColumns];
+        fixedSizes = new int[numColumns];
+
+        int numConstant = -1;
+        for (int i = 0; i < numColumns; i++) {
+            ColumnType colType = schema.getColumnInfo(i).getType();
+            columnTypes[i] = colType;
+            baseTypes[i] = colType.getBaseType();
+
+            switch (colType.getBaseType()) {
+            case VARCHAR:
+                fixedSizes[i] = -1;
+                if (numConstant == -1)
+                    numConstant = i;
+                break;
+
+            default:
+                fixedSizes[i] = PageTuple.getStorageSize(colType, 0);
+            }
+        }
+
+        if (numConstant == -1)
+            numConstant = numColumns;
+
+        constantOffsets = new int[numConstant + 1];
+        for (int i = 0; i < numConstant; i++)
+            constantOffsets[i + 1] = constantOffsets[i] + fixedSizes[i];
+    }
+
+
+    /** Returns the number of columns in the tuples. */
+    public int getNumColumns() {
+        return numColumns;
+    }
+
+
+    /** Returns the number of bytes in each tuple's <tt>NULL</tt>-bitmap. */
+    public int getNullFlagsSize() {
+        return nullFlagsSize;
+    }
+
+
+    /**
+     * Returns the type of the specified column.
+     *
+     * @param colIndex the index of the column
+     *
+     * @return the column's type
+     */
+    public ColumnType getColumnType(int colIndex) {
+        return columnTypes[colIndex];
+    }
+
+
+    /**
+     * Returns the number of leading columns whose values are at a constant
+     * offset in the tuple's data when none of them is <tt>NULL</tt>.  This is
+     * the index of the first variable-size column, or the number of columns
+     * if every column has a fixed size.
+     *
+     * @return the number of leading fixed-size columns
+     */
+    public int getNumConstantOffsets() {
+        return constantOffsets.length - 1;
+    }
+
+
+    /**
+     * Returns the offset of a leading fixed-size column's value relative to
+     * the start of the tuple's data, assuming that none of the columns
+     * before it is <tt>NULL</tt>.
+     *
+     * @param colIndex the index of the column, which may be up to
+     *        {@link #getNumConstantOffsets()} inclusive
+     *
+     * @return the offset of the column's value in the tuple's data
+     */
+    public int getConstantOffset(int colIndex) {
+        return constantOffsets[colIndex];
+    }
+
+
+    /**
+     * Returns the number of bytes used by a non-<tt>NULL</tt> column value.
+     *
+     * @param dbPage the page containing the value
+     * @param colIndex the index of the column
+     * @param valueOffset the offset of the value in the page
+     *
+     * @return the storage size of the value
+     */
+    public int getValueSize(DBPage dbPage, int colIndex, int valueOffset) {
+        int size = fixedSizes[colIndex];
+        if (size < 0) {
+            // VARCHAR values have a two-byte length before the characters.
+            size = 2 + dbPage.readUnsignedShort(valueOffset);
+        }
+        return size;
+    }
+
+
+    /**
+     * Reads a non-<tt>NULL</tt> column value from a page.
+     *
+     * @param dbPage the page containing the value
+     * @param colIndex the index of the column
+     * @param valueOffset the offset of the value in the page
+     *
+     * @return the column value
+     */
+    public Object readValue(DBPage dbPage, int colIndex, int valueOffset) {
+        switch (baseTypes[colIndex]) {
+
+        case INTEGER:
+            return Integer.valueOf(dbPage.readInt(valueOffset));
+
+        case SMALLINT:
+            return Short.valueOf(dbPage.readShort(valueOffset));
+
+        case BIGINT:
+            return Long.valueOf(dbPage.readLong(valueOffset));
+
+        case TINYINT:
+            return Byte.valueOf(dbPage.readByte(valueOffset));
+
+        case FLOAT:
+            return Float.valueOf(dbPage.readFloat(valueOffset));
+
+        case DOUBLE:
+            return Double.valueOf(dbPage.readDouble(valueOffset));
+
+        case CHAR:
+            // The storage size of a CHAR value is the column's length.
+            return dbPage.readFixedSizeString(valueOffset,
+                fixedSizes[colIndex]);
+
+        case VARCHAR:
+            return dbPage.readVarString65535(valueOffset);
+
+        case FILE_POINTER:
+            return new FilePointer(dbPage.readUnsignedShort(valueOffset),
+                dbPage.readUnsignedShort(valueOffset + 2));
+
+        default:
+            // PageTuple.getStorageSize() rejected any other type when the
+            // layout was built.
+            throw new IllegalStateException(
+                "Unexpected type " + baseTypes[colIndex]);
+        }
+    }
+
+
+    /**
+     * Returns the index of the first <tt>NULL</tt> column of a tuple, by
+     * examining its <tt>NULL</tt>-bitmap a byte at a time.
+     *
+     * @param dbPage the page containing the tuple
+     * @param tupleStart the offset of the tuple's <tt>NULL</tt>-bitmap
+     *
+     * @return the index of the first <tt>NULL</tt> column, or the number of
+     *         columns if no column is <tt>NULL</tt>
+     */
+    public int findFirstNullColumn(DBPage dbPage, int tupleStart) {
+        for (int i = 0; i < nullFlagsSize; i++) {
+            int flags = dbPage.readUnsignedByte(tupleStart + i);
+            if (flags != 0)
+                return Math.min(numColumns,
+                    i * 8 + Integer.numberOfTrailingZeros(flags));
+        }
+        return numColumns;
+    }
+}
@@ -49,6 +49,23 @@ public class BTreeFilePageTuple extends PageTuple {
     private int nextTupleIndex;
 
 
+    /**
+     * Once a tuple has been returned from the tuple file, other sessions may
+     * modify the leaf page it came from.  Therefore, the tuple's column
+     * values are copied out of the page while the page is latched, and are
+     * returned from then on.  This is {@code null} until that happens.
+     */
+    private Object[] cachedValues;
+
+
+    /**
+     * The tuple file's structure version at the time the column values were
+     * cached.  If the version is unchanged, the tuple's key still falls
+     * within the key-range of the leaf page the tuple came from.
+     */
+    private int structureVersion;
+
+
     public BTreeFilePageTuple(Schema schema, DBPage dbPage, int pageOffset,
                               int tupleIndex) {
         super(dbPage, pageOffset, schema);
@@ -102,6 +119,52 @@ public class BTreeFilePageTuple extends PageTuple {
     }
 
 
+    /**
+     * Copies the tuple's column values out of its page, so that they remain
+     * available when other sessions modify the page.  The caller must hold
+     * the page's latch.
+     *
+     * @param structureVersion the tuple file's current structure version
+     */
+    public void cacheColumnValues(int structureVersion) {
+        Object[] values = new Object[getColumnCount()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = super.getColumnValue(i);
+
+        cachedValues = values;
+
+        this.structureVersion = structureVersion;
+    }
+
+
+    public boolean hasCachedValues() {
+        return cachedValues != null;
+    }
+
+
+    public int getStructureVersion() {
+        return structureVersion;
+    }
+
+
+    @Override
+    public boolean isNullValue(int colIndex) {
+        if (cachedValues != null)
+            return cachedValues[colIndex] == null;
+
+        return super.isNullValue(colIndex);
+    }
+
+
+    @Override
+    public Object getColumnValue(int colIndex) {
+        if (cachedValues != null)
+            return cachedValues[colIndex];
+
+        return super.getColumnValue(colIndex);
+    }
+
+
     @Override
     protected void insertTupleDataRange(int off, int len) {
         throw new UnsupportedOperationException(
@@ -6,13 +6,19 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.log4j.Logger;
 
+import edu.caltech.nanodb.expressions.ColumnName;
+import edu.caltech.nanodb.expressions.ColumnValue;
 import edu.caltech.nanodb.expressions.OrderByExpression;
 import edu.caltech.nanodb.expressions.TupleComparator;
 import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.queryeval.ColumnStats;
+import edu.caltech.nanodb.queryeval.ColumnStatsCollector;
 import edu.caltech.nanodb.queryeval.TableStats;
+import edu.caltech.nanodb.relations.ColumnInfo;
 import edu.caltech.nanodb.relations.TableSchema;
 import edu.caltech.nanodb.relations.Tuple;
 import edu.caltech.nanodb.storage.DBFile;
@@ -23,6 +29,7 @@ import edu.caltech.nanodb.storage.PageTuple;
 import edu.caltech.nanodb.storage.SequentialTupleFile;
 import edu.caltech.nanodb.storage.StorageManager;
 import edu.caltech.nanodb.storage.TupleFileManager;
+import edu.caltech.nanodb.storage.TupleLayout;
 
 import static edu.caltech.nanodb.storage.btreefile.BTreePageTypes.*;
 
@@ -54,6 +61,20 @@ import static edu.caltech.nanodb.storage.btreefile.BTreePageTypes.*;
  *     an unsigned short stored at index 1 (after the page-type value in index
  *     0).  The final empty page stores 0 as its next-page pointer value.</li>
  * </ul>
+ * <p>
+ * Many sessions may access a B<sup>+</sup> tree file concurrently.  Most
+ * operations only read or change a single leaf page, so they descend the
+ * tree optimistically:  the tree latch is held in shared mode, and only the
+ * leaf page is latched, in shared mode for searches and in exclusive mode
+ * for changes.  If a change turns out to require a structure modification,
+ * such as splitting a leaf page, the operation releases its latches and
+ * starts again with the tree latch held exclusively.  Since inner pages are
+ * only changed by structure modifications, they never need to be latched.
+ * </p>
+ * <p>
+ * Tuples returned from the file hold a copy of their column values, since
+ * other sessions may change the leaf page after its latch is released.
+ * </p>
  */
 public class BTreeTupleFile implements SequentialTupleFile {
     /** A logging object for reporting anything interesting that happens. */
@@ -116,6 +137,27 @@ public class BTreeTupleFile implements SequentialTupleFile {
     private InnerPageOperations innerPageOps;
 
 
+    /**
+     * The tree latch allows many sessions to search and modify the tree at
+     * once, while serializing structure modifications.  Operations that only
+     * read or modify a single leaf page hold this latch in shared mode, and
+     * latch the leaf page itself.  Operations that split, merge or
+     * redistribute pages, or that change the root page or the free list,
+     * hold this latch exclusively.
+     */
+    private final ReentrantReadWriteLock treeLatch =
+        new ReentrantReadWriteLock();
+
+
+    /**
+     * This value is incremented by every structure modification, so that
+     * tuples returned to callers can tell whether the leaf pages they came
+     * from still cover their keys.  It is only changed while the tree latch
+     * is held exclusively.
+     */
+    private int structureVersion;
+
+
     // private IndexInfo idxFileInfo;
 
 
@@ -143,6 +185,10 @@ public class BTreeTupleFile implements SequentialTupleFile {
         this.schema = schema;
         this.stats = stats;
 
+        // Build the layout of the table's tuples now, so that reading them
+        // never has to.
+        TupleLayout.forSchema(schema);
+
         fileOps = new FileOperations(storageManager, dbFile);
         innerPageOps = new InnerPageOperations(storageManager, this, fileOps);
         leafPageOps = new LeafPageOperations(storageManager, this, fileOps,
@@ -172,9 +218,19 @@ public class BTreeTupleFile implements SequentialTupleFile {
     }
 
 
+    /**
+     * Tuples in a B<sup>+</sup> tree file are ordered on all of their columns,
+     * in schema order, as compared by {@link TupleComparator#compareTuples}.
+     */
     @Override
     public List<OrderByExpression> getOrderSpec() {
-        throw new UnsupportedOperationException("NYI");
+        ArrayList<OrderByExpression> orderSpec = new ArrayList<>();
+        for (int i = 0; i < schema.numColumns(); i++) {
+            ColumnInfo colInfo = schema.getColumnInfo(i);
+            orderSpec.add(new OrderByExpression(new ColumnValue(
+                new ColumnName(colInfo.getTableName(), colInfo.getName()))));
+        }
+        return orderSpec;
     }
 
 
@@ -182,14 +238,25 @@ public class BTreeTupleFile implements SequentialTupleFile {
     public Tuple getFirstTuple() throws IOException {
         BTreeFilePageTuple tup = null;
 
-        // By passing a completely empty Tuple (no columns), we can cause the
-        // navigateToLeafPage() method to choose the leftmost leaf page.
+        treeLatch.readLock().lock();
+        try {
+            // By passing a completely empty Tuple (no columns), we can cause
+            // the navigateToLeafPage() method to choose the leftmost leaf
+            // page.
+
+            TupleLiteral noTup = new TupleLiteral();
+            LeafPage leaf = navigateToLeafPage(noTup, false, null, false);
 
-        TupleLiteral noTup = new TupleLiteral();
-        LeafPage leaf = navigateToLeafPage(noTup, false, null);
+            if (leaf != null) {
+                if (leaf.getNumTuples() > 0)
+                    tup = returnTuple(leaf.getTuple(0));
 
-        if (leaf != null && leaf.getNumTuples() > 0)
-            tup = leaf.getTuple(0);
+                leaf.getDBPage().unlatch();
+            }
+        }
+        finally {
+            treeLatch.readLock().unlock();
+        }
 
         return tup;
     }
@@ -199,69 +266,99 @@ public class BTreeTupleFile implements SequentialTupleFile {
     public Tuple getNextTuple(Tuple tup) throws IOException {
         BTreeFilePageTuple tuple = (BTreeFilePageTuple) tup;
 
-        DBPage dbPage;
-        int nextIndex;
-        LeafPage leaf;
-        BTreeFilePageTuple nextTuple = null;
-
-        if (tuple.isDeleted()) {
-            // The tuple was deleted, so we need to find out the page number
-            // and index of the next tuple.
-
-            int nextPageNo = tuple.getNextTuplePageNo();
-            if (nextPageNo != 0) {
-                dbPage = storageManager.loadDBPage(dbFile, nextPageNo);
-                nextIndex = tuple.getNextTupleIndex();
-
+        treeLatch.readLock().lock();
+        try {
+            LeafPage leaf;
+            if (tuple.hasCachedValues() &&
+                tuple.getStructureVersion() == structureVersion) {
+                // The tree's structure hasn't changed since the tuple was
+                // read, so the tuple's key still falls within the leaf page
+                // it came from, even if the tuple has since been deleted.
+                DBPage dbPage = tuple.getDBPage();
+                dbPage.latchShared();
                 leaf = new LeafPage(dbPage, schema);
-                if (nextIndex >= leaf.getNumTuples()) {
-                    throw new IllegalStateException(String.format(
-                        "The \"next tuple\" field of deleted tuple is too " +
-                        "large (must be less than %d; got %d)",
-                        leaf.getNumTuples(), nextIndex));
-                }
-
-                nextTuple = leaf.getTuple(nextIndex);
             }
+            else {
+                // The tuple may have moved to another leaf page, so find
+                // the leaf where its key now belongs.
+                leaf = navigateToLeafPage(tuple, false, null, false);
+                if (leaf == null)
+                    return null;
+            }
+
+            return getNextTupleInLeaves(leaf, tuple);
         }
-        else {
-            // Get the page that holds the current entry, and see where it
-            // falls within the page.
-            dbPage = tuple.getDBPage();
-            leaf = new LeafPage(dbPage, schema);
+        finally {
+            treeLatch.readLock().unlock();
+        }
+    }
 
-            // Use the offset of the passed-in entry to find the next entry.
 
-            // The next tuple follows the current tuple, unless the current
-            // tuple was deleted!  In that case, the next tuple is actually
-            // where the current tuple used to be.
-            nextIndex = tuple.getTupleIndex() + 1;
+    /**
+     * This helper method finds the first tuple that follows the specified
+     * tuple, starting with the specified leaf page and following the leaves'
+     * next-page pointers as necessary.  Since other sessions may have added
+     * or removed tuples in the leaf page since the tuple was read, the
+     * tuple's position is found again by comparing it to the page's tuples.
+     *
+     * @param leaf the leaf page where the tuple's key belongs, which must be
+     *        latched by the caller.  The latch is released before the method
+     *        returns.
+     *
+     * @param tuple the tuple to find the successor of
+     *
+     * @return the next tuple in the file, or {@code null} if there are no
+     *         more tuples
+     *
+     * @throws IOException if an IO error occurs while reading leaf pages
+     */
+    private BTreeFilePageTuple getNextTupleInLeaves(LeafPage leaf,
+        BTreeFilePageTuple tuple) throws IOException {
 
-            if (nextIndex < leaf.getNumTuples()) {
-                // Still more entries in this leaf.
-                nextTuple = leaf.getTuple(nextIndex);
+        DBPage latched = leaf.getDBPage();
+        try {
+            int nextIndex = tuple.getTupleIndex();
+            if (!tuple.isDeleted() && nextIndex < leaf.getNumTuples() &&
+                TupleComparator.comparePartialTuples(
+                    leaf.getTuple(nextIndex), tuple) == 0) {
+                // The tuple hasn't moved, so the next tuple follows it.
+                nextIndex++;
             }
             else {
+                nextIndex = 0;
+                while (nextIndex < leaf.getNumTuples() &&
+                       TupleComparator.comparePartialTuples(
+                           leaf.getTuple(nextIndex), tuple) <= 0) {
+                    nextIndex++;
+                }
+            }
+
+            while (nextIndex >= leaf.getNumTuples()) {
                 // No more entries in this leaf.  Must go to the next leaf.
+                // Leaf pages are only linked or unlinked by structure
+                // modifications, so the next-page pointer remains valid
+                // after the current leaf is unlatched.
                 int nextPageNo = leaf.getNextPageNo();
-                if (nextPageNo != 0) {
-                    dbPage = storageManager.loadDBPage(dbFile, nextPageNo);
+                latched.unlatch();
+                latched = null;
 
-                    leaf = new LeafPage(dbPage, schema);
-                    if (leaf.getNumTuples() > 0) {
-                        nextTuple = leaf.getTuple(0);
-                    }
-                    else {
-                        // This would be *highly* unusual.  Leaves are
-                        // supposed to be at least 1/2 full, always!
-                        logger.error(String.format(
-                            "Next leaf node %d has no entries?!", nextPageNo));
-                    }
-                }
+                if (nextPageNo == 0)
+                    return null;
+
+                DBPage dbPage = storageManager.loadDBPage(dbFile, nextPageNo);
+                dbPage.latchShared();
+                latched = dbPage;
+
+                leaf = new LeafPage(dbPage, schema);
+                nextIndex = 0;
             }
-        }
 
-        return nextTuple;
+            return returnTuple(leaf.getTuple(nextIndex));
+        }
+        finally {
+            if (latched != null)
+                latched.unlatch();
+        }
     }
 
 
@@ -269,29 +366,43 @@ public class BTreeTupleFile implements SequentialTupleFile {
     public Tuple getTuple(FilePointer fptr)
         throws InvalidFilePointerException, IOException {
 
-        DBPage dbPage;
+        treeLatch.readLock().lock();
         try {
-            // This could throw EOFException if page doesn't actually exist.
-            dbPage = storageManager.loadDBPage(dbFile, fptr.getPageNo());
-        }
-        catch (EOFException eofe) {
-            throw new InvalidFilePointerException("Specified page " +
-                fptr.getPageNo() + " doesn't exist in file " + dbFile, eofe);
-        }
-
-        // In the B+ tree file format, the file-pointer points to the actual
-        // tuple itself.
-
-        int fpOffset = fptr.getOffset();
-        LeafPage leaf = new LeafPage(dbPage, schema);
-        for (int i = 0; i < leaf.getNumTuples(); i++) {
-            BTreeFilePageTuple tup = leaf.getTuple(i);
-            if (tup.getOffset() == fpOffset)
-                return tup;
+            DBPage dbPage;
+            try {
+                // This could throw EOFException if page doesn't actually
+                // exist.
+                dbPage = storageManager.loadDBPage(dbFile, fptr.getPageNo());
+            }
+            catch (EOFException eofe) {
+                throw new InvalidFilePointerException("Specified page " +
+                    fptr.getPageNo() + " doesn't exist in file " + dbFile, eofe);
+            }
 
-            // Tuple offsets within a page will be monotonically increasing.
-            if (tup.getOffset() > fpOffset)
-                break;
+            // In the B+ tree file format, the file-pointer points to the
+            // actual tuple itself.
+
+            int fpOffset = fptr.getOffset();
+            dbPage.latchShared();
+            try {
+                LeafPage leaf = new LeafPage(dbPage, schema);
+                for (int i = 0; i < leaf.getNumTuples(); i++) {
+                    BTreeFilePageTuple tup = leaf.getTuple(i);
+                    if (tup.getOffset() == fpOffset)
+                        return returnTuple(tup);
+
+                    // Tuple offsets within a page will be monotonically
+                    // increasing.
+                    if (tup.getOffset() > fpOffset)
+                        break;
+                }
+            }
+            finally {
+                dbPage.unlatch();
+            }
+        }
+        finally {
+            treeLatch.readLock().unlock();
         }
 
         throw new InvalidFilePointerException("No tuple at offset " + fptr);
@@ -303,37 +414,32 @@ public class BTreeTupleFile implements SequentialTupleFile {
         logger.debug("Finding first tuple that equals " + searchKey +
             " in BTree file " + dbFile);
 
-        LeafPage leaf = navigateToLeafPage(searchKey, false, null);
-        if (leaf == null) {
-            logger.debug("BTree file is empty!");
+        treeLatch.readLock().lock();
+        try {
+            LeafPage leaf = navigateToLeafPage(searchKey, false, null, false);
+            if (leaf == null) {
+                logger.debug("BTree file is empty!");
+                return null;
+            }
+
+            logger.debug("Navigated to leaf page " + leaf.getPageNo());
+            BTreeFilePageTuple tup = findFirstTupleInLeaves(leaf, searchKey,
+                true);
+            if (tup == null)
+                return null;
+
+            if (TupleComparator.comparePartialTuples(tup, searchKey) == 0)
+                return tup;  // Found it!
+
+            // The first tuple at or after the search key is after it, so no
+            // tuple equals the search key.
+            tup.unpin();
+            tup.getDBPage().unpin();
             return null;
         }
-
-        logger.debug("Navigated to leaf page " + leaf.getPageNo());
-        if (leaf.getNumTuples() > 0) {
-            // We have at least one tuple to look at, so scan through to find
-            // the first tuple that equals what we are looking for.
-            for (int i = 0; i < leaf.getNumTuples(); i++) {
-                BTreeFilePageTuple tup = leaf.getTuple(i);
-                int cmp = TupleComparator.comparePartialTuples(tup, searchKey);
-                logger.debug("Comparing search key to tuple " + tup +
-                    ", got cmp = " + cmp);
-
-                if (cmp == 0) {
-                    // Found it!
-                    return tup;
-                }
-                else if (cmp > 0) {
-                    // Subsequent tuples will appear after the search key, so
-                    // there's no point in going on.
-                    leaf.getDBPage().unpin();
-                    return null;
-                }
-            }
+        finally {
+            treeLatch.readLock().unlock();
         }
-
-        leaf.getDBPage().unpin();
-        return null;
     }
 
 
@@ -341,22 +447,80 @@ public class BTreeTupleFile implements SequentialTupleFile {
     public PageTuple findFirstTupleGreaterThan(Tuple searchKey)
         throws IOException {
 
-        LeafPage leaf = navigateToLeafPage(searchKey, false, null);
-
-        if (leaf != null && leaf.getNumTuples() > 0) {
-            // We have at least one tuple to look at, so scan through to find
-            // the first tuple that equals what we are looking for.
-            for (int i = 0; i < leaf.getNumTuples(); i++) {
-                BTreeFilePageTuple tup = leaf.getTuple(i);
-                int cmp = TupleComparator.comparePartialTuples(tup, searchKey);
-                if (cmp > 0)
-                    return tup;  // Found it!
-            }
+        treeLatch.readLock().lock();
+        try {
+            LeafPage leaf = navigateToLeafPage(searchKey, false, null, false);
+            if (leaf == null)
+                return null;
 
-            leaf.getDBPage().unpin();
+            return findFirstTupleInLeaves(leaf, searchKey, false);
+        }
+        finally {
+            treeLatch.readLock().unlock();
         }
+    }
+
+
+    /**
+     * This helper method finds the first tuple that is greater than (or
+     * optionally equal to) the specified search key, starting with the
+     * specified leaf page and following the leaves' next-page pointers as
+     * necessary.  The search key may be a prefix of the tuples' columns.
+     * Tuples before the one returned are unpinned, as are the pages of leaves
+     * that are passed over.  The returned tuple's column values are copied
+     * out of its page before the page is unlatched.
+     *
+     * @param leaf the leaf page to start the search in, which must be latched
+     *        by the caller.  The latch is released before the method returns.
+     *
+     * @param searchKey the search key to compare tuples to
+     *
+     * @param orEqual if true, a tuple that equals the search key may be
+     *        returned; otherwise the tuple must be greater than the key
+     *
+     * @return the first matching tuple, or {@code null} if every tuple from
+     *         the leaf page onward is before the search key
+     *
+     * @throws IOException if an IO error occurs while reading leaf pages
+     */
+    private BTreeFilePageTuple findFirstTupleInLeaves(LeafPage leaf,
+        Tuple searchKey, boolean orEqual) throws IOException {
+
+        DBPage latched = leaf.getDBPage();
+        try {
+            while (true) {
+                for (int i = 0; i < leaf.getNumTuples(); i++) {
+                    BTreeFilePageTuple tup = leaf.getTuple(i);
+                    int cmp = TupleComparator.comparePartialTuples(tup,
+                        searchKey);
+                    if (cmp > 0 || (orEqual && cmp == 0))
+                        return returnTuple(tup);
+
+                    // Tuples that aren't returned mustn't stay pinned.
+                    tup.unpin();
+                }
+
+                // Every tuple in this leaf is before the search key, so
+                // continue with the next leaf.
+                int nextPageNo = leaf.getNextPageNo();
+                latched.unlatch();
+                latched.unpin();
+                latched = null;
+
+                if (nextPageNo == 0)
+                    return null;
 
-        return null;
+                DBPage dbPage = storageManager.loadDBPage(dbFile, nextPageNo);
+                dbPage.latchShared();
+                latched = dbPage;
+
+                leaf = new LeafPage(dbPage, schema);
+            }
+        }
+        finally {
+            if (latched != null)
+                latched.unlatch();
+        }
     }
 
 
@@ -364,11 +528,6 @@ public class BTreeTupleFile implements SequentialTupleFile {
     public Tuple addTuple(Tuple tup) throws IOException {
         logger.debug("Adding tuple " + tup + " to BTree file " + dbFile);
 
-        // Navigate to the leaf-page, creating one if the BTree file is
-        // currently empty.
-        ArrayList<Integer> pagePath = new ArrayList<>();
-        LeafPage leaf = navigateToLeafPage(tup, true, pagePath);
-
         // TODO:  This is definitely not ideal, but should get us going.
         TupleLiteral tupLit;
         if (tup instanceof TupleLiteral)
@@ -377,12 +536,51 @@ public class BTreeTupleFile implements SequentialTupleFile {
             tupLit = new TupleLiteral(tup);
         tupLit.setStorageSize(PageTuple.getTupleStorageSize(schema, tupLit));
 
-        return leafPageOps.addTuple(leaf, tupLit, pagePath);
+        // First, optimistically assume that the leaf-page has room for the
+        // new tuple, so that only the leaf needs to be latched exclusively.
+        treeLatch.readLock().lock();
+        try {
+            LeafPage leaf = navigateToLeafPage(tupLit, false, null, true);
+            if (leaf != null) {
+                try {
+                    if (leaf.getFreeSpace() >= tupLit.getStorageSize())
+                        return returnTuple(leaf.addTuple(tupLit));
+                }
+                finally {
+                    leaf.getDBPage().unlatch();
+                }
+            }
+        }
+        finally {
+            treeLatch.readLock().unlock();
+        }
+
+        // Adding the tuple requires a structure modification:  the file is
+        // empty, or tuples must be relocated or the leaf split.
+        treeLatch.writeLock().lock();
+        try {
+            structureVersion++;
+
+            // Navigate to the leaf-page, creating one if the BTree file is
+            // currently empty.
+            ArrayList<Integer> pagePath = new ArrayList<>();
+            LeafPage leaf = navigateToLeafPage(tupLit, true, pagePath, true);
+            try {
+                return returnTuple(
+                    leafPageOps.addTuple(leaf, tupLit, pagePath));
+            }
+            finally {
+                leaf.getDBPage().unlatch();
+            }
+        }
+        finally {
+            treeLatch.writeLock().unlock();
+        }
     }
 
 
     @Override
-    public void updateTuple(Tuple tup, Map<String, Object> newValues)
+    public Tuple updateTuple(Tuple tup, Map<String, Object> newValues)
         throws IOException {
 
         throw new UnsupportedOperationException("NYI");
@@ -393,13 +591,84 @@ public class BTreeTupleFile implements SequentialTupleFile {
     public void deleteTuple(Tuple tup) throws IOException {
         BTreeFilePageTuple tuple = (BTreeFilePageTuple) tup;
 
-        ArrayList<Integer> pagePath = new ArrayList<>();
-        LeafPage leaf = navigateToLeafPage(tup, false, pagePath);
-
         logger.debug("Deleting tuple " + tuple + " from file " + dbFile);
 
-        leafPageOps.deleteTuple(leaf, tuple, pagePath);
-        tuple.setDeleted();
+        // First, optimistically assume that the leaf-page will not need to
+        // be coalesced with a sibling, or its tuples redistributed.
+        treeLatch.readLock().lock();
+        try {
+            ArrayList<Integer> pagePath = new ArrayList<>();
+            LeafPage leaf = navigateToLeafPage(tup, false, pagePath, true);
+            if (leaf != null) {
+                try {
+                    int index = leaf.getTupleIndex(tup);
+                    if (index != -1 && isSafeToDelete(leaf, index, pagePath)) {
+                        leaf.deleteTuple(tuple);
+                        tuple.setDeleted();
+                        return;
+                    }
+                }
+                finally {
+                    leaf.getDBPage().unlatch();
+                }
+            }
+        }
+        finally {
+            treeLatch.readLock().unlock();
+        }
+
+        treeLatch.writeLock().lock();
+        try {
+            structureVersion++;
+
+            ArrayList<Integer> pagePath = new ArrayList<>();
+            LeafPage leaf = navigateToLeafPage(tup, false, pagePath, true);
+            try {
+                leafPageOps.deleteTuple(leaf, tuple, pagePath);
+                tuple.setDeleted();
+            }
+            finally {
+                leaf.getDBPage().unlatch();
+            }
+        }
+        finally {
+            treeLatch.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Returns true if the specified tuple can be deleted from a leaf page
+     * without any structure modification; that is, the leaf will remain at
+     * least half full, or it is the root and will not become empty.
+     *
+     * @param leaf the leaf page containing the tuple
+     * @param index the index of the tuple within the leaf page
+     * @param pagePath the path of pages taken from the root page to the leaf
+     *
+     * @return true if the tuple can be deleted from the leaf page alone
+     */
+    private boolean isSafeToDelete(LeafPage leaf, int index,
+                                   List<Integer> pagePath) {
+        if (pagePath.size() == 1)
+            return leaf.getNumTuples() > 1;
+
+        int usedSpace = leaf.getUsedSpace() - leaf.getTupleSize(index);
+        return usedSpace >= leaf.getTotalSpace() / 2;
+    }
+
+
+    /**
+     * Prepares a tuple from a latched leaf page to be returned to the
+     * caller, by copying its column values out of the page.
+     *
+     * @param tup the tuple to return
+     *
+     * @return the same tuple
+     */
+    private BTreeFilePageTuple returnTuple(BTreeFilePageTuple tup) {
+        tup.cacheColumnValues(structureVersion);
+        return tup;
     }
 
 
@@ -409,6 +678,11 @@ public class BTreeTupleFile implements SequentialTupleFile {
      * the search-key provided by the caller.  Note that this method does not
      * determine whether the search-key actually exists; rather, it simply
      * navigates to the leaf in the file where the search-key would appear.
+     * <p>
+     * The caller must hold the tree latch.  Since inner pages are only
+     * changed while the tree latch is held exclusively, they are not latched
+     * during the descent.  The leaf page is returned latched, and the caller
+     * must unlatch it when done.
      *
      * @param searchKey the search-key being used to navigate the
      *        B<sup>+</sup> tree structure
@@ -417,13 +691,17 @@ public class BTreeTupleFile implements SequentialTupleFile {
      *        (i.e. not even containing leaf pages) then this argument can be
      *        used to create a new leaf page where the search-key can be
      *        stored.  This allows the method to be used for adding tuples to
-     *        the file.
+     *        the file.  The tree latch must be held exclusively to create a
+     *        leaf page.
      *
      * @param pagePath If this optional argument is specified, then the method
      *        stores the sequence of page-numbers it visits as it navigates
      *        from root to leaf.  If {@code null} is passed then nothing is
      *        stored as the method traverses the B<sup>+</sup> tree structure.
      *
+     * @param exclusive if true, the leaf page is latched in exclusive mode;
+     *        otherwise it is latched in shared mode
+     *
      * @return the leaf-page where the search-key would appear, or
      *         {@code null} if the B<sup>+</sup> tree file is currently empty
      *         and {@code createIfNeeded} is {@code false}.
@@ -432,7 +710,8 @@ public class BTreeTupleFile implements SequentialTupleFile {
      *         B<sup>+</sup> tree file's structure
      */
     private LeafPage navigateToLeafPage(Tuple searchKey,
-        boolean createIfNeeded, List<Integer> pagePath) throws IOException {
+        boolean createIfNeeded, List<Integer> pagePath, boolean exclusive)
+        throws IOException {
 
         // The header page tells us where the root page starts.
         DBPage dbpHeader = storageManager.loadDBPage(dbFile, 0);
@@ -444,8 +723,10 @@ public class BTreeTupleFile implements SequentialTupleFile {
             // The file doesn't have any data-pages at all yet.  Create one if
             // the caller wants it.
 
-            if (!createIfNeeded)
+            if (!createIfNeeded || !treeLatch.isWriteLockedByCurrentThread()) {
+                dbpHeader.unpin();
                 return null;
+            }
 
             // We need to create a brand new leaf page and make it the root.
 
@@ -469,6 +750,7 @@ public class BTreeTupleFile implements SequentialTupleFile {
 
             logger.debug("BTree file root pageNo is " + rootPageNo);
         }
+        dbpHeader.unpin();
 
         // Next, descend down the file's structure until we find the proper
         // leaf-page based on the key value(s).
@@ -496,9 +778,15 @@ public class BTreeTupleFile implements SequentialTupleFile {
                     nextPageNo = innerPage.getPointer(i);
                     break;
                 }
-                // Take right pointer.
+                // Take right pointer, unless the search key is a prefix of
+                // the inner key.  Tuples matching a prefix may be on either
+                // side of the key, so take the left pointer to find the
+                // first one.
                 else if (compareKeys == 0) {
-                    nextPageNo = innerPage.getPointer(i + 1);
+                    if (searchKey.getColumnCount() < curKey.getColumnCount())
+                        nextPageNo = innerPage.getPointer(i);
+                    else
+                        nextPageNo = innerPage.getPointer(i + 1);
                     break;
                 }
                 // Always take right pointer at end.
@@ -508,8 +796,10 @@ public class BTreeTupleFile implements SequentialTupleFile {
                 }
             }
 
-            // Load next page.
-            dbPage = storageManager.loadDBPage(dbFile, nextPageNo);
+            // Load next page.  The inner page isn't needed anymore.
+            DBPage nextPage = storageManager.loadDBPage(dbFile, nextPageNo);
+            dbPage.unpin();
+            dbPage = nextPage;
             pageType = dbPage.readByte(0);
 
             // Update pagePath.
@@ -519,21 +809,75 @@ public class BTreeTupleFile implements SequentialTupleFile {
         }
 
         // Construct new LeafPage from leaf.
-        LeafPage result;
-        if (pageType != BTREE_LEAF_PAGE) {
+        if (pageType != BTREE_LEAF_PAGE)
             throw new IOException("Invalid page type encountered: " + pageType);
-        }
-        else {
-            result = new LeafPage(dbPage, schema);
-        }
 
-        return result;
+        // The leaf's key-range can't change while we hold the tree latch, so
+        // it's fine that the page wasn't latched while its type was read.
+        if (exclusive)
+            dbPage.latchExclusive();
+        else
+            dbPage.latchShared();
+
+        return new LeafPage(dbPage, schema);
     }
 
 
     @Override
     public void analyze() throws IOException {
-        throw new UnsupportedOperationException("NYI");
+        int totalBytes = 0;
+        int numDataPages = 0;
+        int numTuples = 0;
+        float avgTupleSize = 0;
+        ArrayList<ColumnStats> columnStats = new ArrayList<ColumnStats>();
+        ArrayList<ColumnStatsCollector> csc =
+            new ArrayList<ColumnStatsCollector>();
+
+        // Construct ColumnStatsCollectors.
+        int numColumns = schema.numColumns();
+        for (int i = 0; i < numColumns; i++) {
+            ColumnInfo columnInfo = schema.getColumnInfo(i);
+            csc.add(new ColumnStatsCollector(columnInfo.getType().getBaseType()));
+        }
+
+        // Scan the tuples in order.  Each leaf page's tuples are visited
+        // together, so a change in page number means a new leaf page.
+        int lastPageNo = -1;
+        BTreeFilePageTuple tup = (BTreeFilePageTuple) getFirstTuple();
+        while (tup != null) {
+            int pageNo = tup.getDBPage().getPageNo();
+            if (pageNo != lastPageNo) {
+                numDataPages++;
+                lastPageNo = pageNo;
+            }
+
+            totalBytes += tup.getSize();
+            for (int iCol = 0; iCol < numColumns; iCol++)
+                csc.get(iCol).addValue(tup.getColumnValue(iCol));
+
+            numTuples++;
+
+            // Don't unpin the tuple until we are done using it to find the
+            // next tuple.
+            BTreeFilePageTuple next = (BTreeFilePageTuple) getNextTuple(tup);
+            if (tup.isPinned())
+                tup.unpin();
+
+            tup = next;
+        }
+
+        // Compute columnStats using ColumnStatsCollectors.
+        for (int iCol = 0; iCol < numColumns; iCol++)
+            columnStats.add(csc.get(iCol).getColumnStats());
+
+        // Check for division by 0 before computing average tuple size.
+        if (numTuples != 0)
+            avgTupleSize = (float) totalBytes / numTuples;
+
+        // Save table stats.
+        stats = new TableStats(numDataPages, numTuples, avgTupleSize,
+            columnStats);
+        btreeFileManager.saveMetadata(this);
     }
 
 
@@ -542,7 +886,14 @@ public class BTreeTupleFile implements SequentialTupleFile {
         BTreeFileVerifier verifier =
             new BTreeFileVerifier(storageManager, this);
 
-        return verifier.verify();
+        // The verifier walks the entire tree, so keep other sessions out.
+        treeLatch.writeLock().lock();
+        try {
+            return verifier.verify();
+        }
+        finally {
+            treeLatch.writeLock().unlock();
+        }
     }
 
 
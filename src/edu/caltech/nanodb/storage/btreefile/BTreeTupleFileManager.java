@@ -100,8 +100,43 @@ public class BTreeTupleFileManager implements TupleFileManager {
 
     @Override
     public void saveMetadata(TupleFile tupleFile) throws IOException {
-        // TODO
-        throw new UnsupportedOperationException("NYI:  deleteTupleFile()");
+
+        if (tupleFile == null)
+            throw new IllegalArgumentException("tupleFile cannot be null");
+
+        if (!(tupleFile instanceof BTreeTupleFile)) {
+            throw new IllegalArgumentException(
+                "tupleFile must be an instance of BTreeTupleFile");
+        }
+
+        DBFile dbFile = tupleFile.getDBFile();
+
+        TableSchema schema = tupleFile.getSchema();
+        TableStats stats = tupleFile.getStats();
+
+        // Table schema is stored into the header page, so get it and prepare
+        // to write out the schema information.
+        DBPage headerPage = storageManager.loadDBPage(dbFile, 0);
+        PageWriter hpWriter = new PageWriter(headerPage);
+        // Skip past the page-size value.
+        hpWriter.setPosition(HeaderPage.OFFSET_SCHEMA_START);
+
+        // Write out the schema details now.
+        SchemaWriter schemaWriter = new SchemaWriter();
+        schemaWriter.writeTableSchema(schema, hpWriter);
+
+        // Compute and store the schema's size.
+        int schemaEndPos = hpWriter.getPosition();
+        int schemaSize = schemaEndPos - HeaderPage.OFFSET_SCHEMA_START;
+        HeaderPage.setSchemaSize(headerPage, schemaSize);
+
+        // Write out the statistics after the schema.
+        StatsWriter statsWriter = new StatsWriter();
+        statsWriter.writeTableStats(schema, stats, hpWriter);
+        int statsSize = hpWriter.getPosition() - schemaEndPos;
+        HeaderPage.setStatsSize(headerPage, statsSize);
+        storageManager.logDBPageWrite(headerPage);
+        headerPage.unpin();
     }
 
 
@@ -26,9 +26,12 @@ import edu.caltech.nanodb.storage.DBPage;
  *   <li>Next the table's schema is recorded in the header page.  See the
  *       {@link edu.caltech.nanodb.storage.SchemaWriter} class for details on
  *       how a table's schema is stored.</li>
- *   <li>Finally, the table's statistics are stored.  See the
+ *   <li>Then the table's statistics are stored.  See the
  *       {@link edu.caltech.nanodb.storage.StatsWriter} class for details on
  *       how a table's statistics are stored.</li>
+ *   <li>Finally, the end of the page holds the version of the file's
+ *       storage format, and the first page in the list of non-full data
+ *       pages.</li>
  * </ul>
  * <p>
  * Even with all this information, usually only a few hundred bytes are required
@@ -76,6 +79,24 @@ public class HeaderPage {
     public static final int BACK_OFFSET_FIRST_PAGE = 4;
 
 
+    /**
+     * The offset from the back of the header page where the version of the
+     * heap file's storage format is stored.  This value is an unsigned
+     * short.
+     */
+    public static final int BACK_OFFSET_FORMAT_VERSION = 6;
+
+
+    /**
+     * The version of the storage format that this code reads and writes.
+     * Version 1 files start each tuple with a transaction header (see
+     * {@link HeapFilePageTuple#TUPLE_HEADER_SIZE}).  Files written before
+     * the format was versioned have a version of 0, since the end of the
+     * header page was left zeroed.
+     */
+    public static final int FORMAT_VERSION = 1;
+
+
     /**
      * This value indicates that we are pointing at the end of the linked list
      * of non-full pages.
@@ -184,6 +205,49 @@ public class HeaderPage {
     }
 
 
+    /**
+     * Returns the offset in the header page where the table statistics must
+     * end, so that they don't overwrite the values stored at the back of the
+     * page.
+     *
+     * @param dbPage the header page of the heap table file
+     * @return the offset within the header page that the table statistics
+     *         must end at
+     */
+    public static int getStatsEndOffset(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return dbPage.getPageSize() - BACK_OFFSET_FORMAT_VERSION;
+    }
+
+
+    /**
+     * Returns the version of the storage format that the heap file was
+     * written in.
+     *
+     * @param dbPage the header page of the heap table file
+     * @return the storage format version of the file
+     */
+    public static int getFormatVersion(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return dbPage.readUnsignedShort(
+            dbPage.getPageSize() - BACK_OFFSET_FORMAT_VERSION);
+    }
+
+
+    /**
+     * Sets the version of the storage format that the heap file is written
+     * in.
+     *
+     * @param dbPage the header page of the heap table file
+     * @param version the storage format version of the file
+     */
+    public static void setFormatVersion(DBPage dbPage, int version) {
+        verifyIsHeaderPage(dbPage);
+        dbPage.writeShort(dbPage.getPageSize() - BACK_OFFSET_FORMAT_VERSION,
+            version);
+    }
+
+
     /**
      * Returns the page number of the first page in the linked list of non-full
      * pages. Returns END_OF_LIST if there are no non-full pages
@@ -0,0 +1,186 @@
+package edu.caltech.nanodb.storage.heapfile;
+
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.PagePredicate;
+
+import edu.caltech.nanodb.transactions.Snapshot;
+
+
+/**
+ * <p>
+ * A cursor over a range of a heap file's data pages.  Unlike
+ * {@link HeapTupleFile#getNextTuple}, which constructs a new tuple object
+ * and pins its page again for every tuple, the cursor keeps the data page it
+ * is reading pinned until it moves on to the next page, and repositions a
+ * single {@link HeapFilePageTuple} object over the page's slots.  A scan
+ * therefore allocates objects and updates pin-counts once per page rather
+ * than once per tuple.
+ * </p>
+ * <p>
+ * The tuple returned by {@link #next} is only valid until the next call to
+ * {@code next()}, and is not pinned; callers that need to keep a tuple must
+ * copy it, or pin it if it must stay on its page.  The cursor must be
+ * {@linkplain #close closed} if it isn't read to the end, so that it
+ * releases the page it holds.
+ * </p>
+ */
+public class HeapFileCursor {
+
+    /** The heap file being scanned. */
+    private HeapTupleFile tupleFile;
+
+
+    /** The page after the last data page to scan. */
+    private int endPageNo;
+
+
+    /**
+     * A predicate that tuples must satisfy to be returned, or {@code null}
+     * if all tuples are returned.
+     */
+    private PagePredicate filter;
+
+
+    /**
+     * The data page the cursor is positioned on, which the cursor keeps
+     * pinned, or {@code null} if the cursor is between pages.
+     */
+    private DBPage dbPage;
+
+
+    /** The number of the next page to read when {@link #dbPage} is null. */
+    private int nextPageNo;
+
+
+    /** The slot of {@link #dbPage} that the cursor is positioned on. */
+    private int slot;
+
+
+    /** The tuple object that is repositioned over each tuple returned. */
+    private HeapFilePageTuple tuple;
+
+
+    /** True once the cursor has reached the end of its range of pages. */
+    private boolean done;
+
+
+    /**
+     * Constructs a cursor positioned before the first tuple of a range of
+     * data pages.  Cursors are opened with {@link HeapTupleFile#openCursor}.
+     */
+    HeapFileCursor(HeapTupleFile tupleFile, int startPageNo, int endPageNo,
+                   PagePredicate filter) {
+        this.tupleFile = tupleFile;
+        this.endPageNo = endPageNo;
+        this.filter = filter;
+
+        nextPageNo = startPageNo;
+    }
+
+
+    /**
+     * Advances the cursor to the next tuple that satisfies the cursor's
+     * predicate.
+     *
+     * @return the cursor's tuple object, positioned on the next tuple, or
+     *         {@code null} if there are no more tuples in the range
+     *
+     * @throws IOException if an IO error occurs while reading the file
+     */
+    public HeapFilePageTuple next() throws IOException {
+        if (done)
+            return null;
+
+        Snapshot snapshot = tupleFile.getSnapshot();
+        while (true) {
+            if (dbPage == null) {
+                if (nextPageNo >= endPageNo) {
+                    done = true;
+                    return null;
+                }
+
+                try {
+                    dbPage = tupleFile.loadPage(nextPageNo);
+                }
+                catch (EOFException e) {
+                    // We ran out of pages.
+                    done = true;
+                    return null;
+                }
+
+                nextPageNo++;
+                slot = -1;
+            }
+
+            dbPage.latchShared();
+            try {
+                for (slot++; slot < DataPage.getNumSlots(dbPage); slot++) {
+                    int offset = tupleFile.readTupleOffset(dbPage, slot,
+                                                           snapshot, filter);
+                    if (offset == DataPage.EMPTY_SLOT)
+                        continue;
+
+                    if (tuple == null) {
+                        // The cursor holds the page's pin, so the tuple
+                        // doesn't need one of its own.
+                        tuple = new HeapFilePageTuple(tupleFile.getSchema(),
+                                                      dbPage, slot, offset);
+                        tuple.unpin();
+                    }
+                    else {
+                        tuple.moveTo(dbPage, slot, offset);
+                    }
+
+                    return tuple;
+                }
+            }
+            finally {
+                dbPage.unlatch();
+            }
+
+            // Reached the end of this page, so go on to the next one.
+            dbPage.unpin();
+            dbPage = null;
+        }
+    }
+
+
+    /**
+     * Repositions the cursor on the specified tuple, so that {@link #next}
+     * returns the tuple that follows it.  This allows a scan to resume at a
+     * tuple that was returned earlier.
+     *
+     * @param ptup a tuple of the file being scanned
+     *
+     * @throws IOException if an IO error occurs while reading the file
+     */
+    public void moveTo(HeapFilePageTuple ptup) throws IOException {
+        int pageNo = ptup.getDBPage().getPageNo();
+        if (dbPage == null || dbPage.getPageNo() != pageNo) {
+            DBPage page = tupleFile.loadPage(pageNo);
+            if (dbPage != null)
+                dbPage.unpin();
+
+            dbPage = page;
+            nextPageNo = pageNo + 1;
+        }
+
+        slot = ptup.getSlot();
+        done = false;
+    }
+
+
+    /** Releases the page held by the cursor, and ends the scan. */
+    public void close() {
+        if (dbPage != null) {
+            dbPage.unpin();
+            dbPage = null;
+        }
+
+        done = true;
+    }
+}
@@ -11,8 +11,42 @@ import edu.caltech.nanodb.storage.PageTuple;
 
 
 /**
+ * <p>
+ * A tuple stored in a heap file's data page.  Each tuple is preceded by a
+ * small header that records which transaction created this version of the
+ * tuple, in which of that transaction's commands, and which transaction
+ * deleted it (if any).  The header is used to decide which tuple versions a
+ * transaction's {@link edu.caltech.nanodb.transactions.Snapshot} can see.
+ * </p>
+ * <p>
+ * The header is laid out as follows; the tuple's slot points to the start
+ * of the header, and the tuple's column data immediately follows it:
+ * </p>
+ * <ul>
+ *   <li>creator transaction ID (4 bytes)</li>
+ *   <li>deleter transaction ID (4 bytes)</li>
+ *   <li>creator command ID (2 bytes, unsigned)</li>
+ * </ul>
+ * <p>
+ * Other sessions may add and remove tuples in the same data page while this
+ * tuple is in use, which moves the tuple's data within the page.  The tuple
+ * therefore latches its page in shared mode whenever it reads the page, and
+ * first looks up its current offset in its slot.
+ * </p>
  */
 public class HeapFilePageTuple extends PageTuple {
+    /** The offset of the creator transaction ID within the tuple header. */
+    public static final int OFFSET_CREATOR_TXN_ID = 0;
+
+    /** The offset of the deleter transaction ID within the tuple header. */
+    public static final int OFFSET_DELETER_TXN_ID = 4;
+
+    /** The offset of the creator command ID within the tuple header. */
+    public static final int OFFSET_CREATOR_COMMAND_ID = 8;
+
+    /** The size of the header that precedes each tuple's data. */
+    public static final int TUPLE_HEADER_SIZE = 10;
+
     /**
      * The slot that this tuple corresponds to.  The tuple doesn't actually
      * manipulate the slot table directly; that is for the
@@ -31,11 +65,12 @@ public class HeapFilePageTuple extends PageTuple {
      *
      * @param slot the slot number of the tuple
      *
-     * @param pageOffset the offset of the tuple's actual data in the page
+     * @param pageOffset the offset of the tuple's header in the page, as
+     *        stored in the tuple's slot
      */
     public HeapFilePageTuple(Schema schema, DBPage dbPage, int slot,
                              int pageOffset) {
-        super(dbPage, pageOffset, schema);
+        super(dbPage, pageOffset + TUPLE_HEADER_SIZE, schema);
 
         if (slot < 0) {
             throw new IllegalArgumentException(
@@ -79,10 +114,157 @@ public class HeapFilePageTuple extends PageTuple {
     }
 
 
+    /**
+     * Moves this tuple object to the tuple in another slot, so that scans
+     * can read many tuples with one object.  The caller must ensure that
+     * the slot holds a tuple at the specified offset.
+     *
+     * @param dbPage the data page that holds the tuple
+     *
+     * @param slot the slot number of the tuple
+     *
+     * @param pageOffset the offset of the tuple's header in the page, as
+     *        stored in the tuple's slot
+     */
+    void moveTo(DBPage dbPage, int slot, int pageOffset) {
+        setLocation(dbPage, pageOffset + TUPLE_HEADER_SIZE);
+        this.slot = slot;
+    }
+
+
+    /**
+     * Updates this tuple's location from its slot, in case changes to other
+     * tuples in the page have moved this tuple's data.  The caller must hold
+     * the page's latch.  If the slot is now empty, the tuple was removed by
+     * a session that doesn't respect transactional locks, and the location
+     * is left as it was.
+     */
+    void refreshLocation() {
+        DBPage dbPage = getDBPage();
+        if (slot >= DataPage.getNumSlots(dbPage))
+            return;
+
+        int pageOffset = DataPage.getSlotValue(dbPage, slot);
+        if (pageOffset != DataPage.EMPTY_SLOT &&
+            pageOffset != getHeaderOffset()) {
+            moveTo(dbPage, slot, pageOffset);
+        }
+    }
+
+
+    /**
+     * Latches this tuple's page in shared mode, unless the current thread
+     * is changing the page and already holds its latch exclusively, and
+     * refreshes the tuple's location.
+     *
+     * @return true if the page was latched, and must be unlatched after it
+     *         has been read
+     */
+    private boolean latchForRead() {
+        DBPage dbPage = getDBPage();
+        boolean latched = !dbPage.isLatchedExclusively();
+        if (latched)
+            dbPage.latchShared();
+
+        refreshLocation();
+        return latched;
+    }
+
+
+    @Override
+    public boolean isNullValue(int colIndex) {
+        boolean latched = latchForRead();
+        try {
+            return super.isNullValue(colIndex);
+        }
+        finally {
+            if (latched)
+                getDBPage().unlatch();
+        }
+    }
+
+
+    @Override
+    public Object getColumnValue(int colIndex) {
+        boolean latched = latchForRead();
+        try {
+            return super.getColumnValue(colIndex);
+        }
+        finally {
+            if (latched)
+                getDBPage().unlatch();
+        }
+    }
+
+
+    /**
+     * Returns the offset of this tuple's header in the page.  Since the
+     * tuple's data may move when its values are changed, this is computed
+     * from the current offset of the tuple's data.
+     */
+    private int getHeaderOffset() {
+        return getOffset() - TUPLE_HEADER_SIZE;
+    }
+
+
+    public int getCreatorTxnID() {
+        return readHeaderInt(OFFSET_CREATOR_TXN_ID);
+    }
+
+
+    public int getCreatorCommandID() {
+        boolean latched = latchForRead();
+        try {
+            return getDBPage().readUnsignedShort(
+                getHeaderOffset() + OFFSET_CREATOR_COMMAND_ID);
+        }
+        finally {
+            if (latched)
+                getDBPage().unlatch();
+        }
+    }
+
+
+    public int getDeleterTxnID() {
+        return readHeaderInt(OFFSET_DELETER_TXN_ID);
+    }
+
+
+    /**
+     * Records the transaction that deleted this tuple version.  The caller
+     * must hold the page's latch exclusively.
+     *
+     * @param txnID the ID of the deleting transaction
+     */
+    public void setDeleterTxnID(int txnID) {
+        refreshLocation();
+        getDBPage().writeInt(getHeaderOffset() + OFFSET_DELETER_TXN_ID, txnID);
+    }
+
+
+    /** Reads an integer field of the tuple's header. */
+    private int readHeaderInt(int fieldOffset) {
+        boolean latched = latchForRead();
+        try {
+            return getDBPage().readInt(getHeaderOffset() + fieldOffset);
+        }
+        finally {
+            if (latched)
+                getDBPage().unlatch();
+        }
+    }
+
+
     public static HeapFilePageTuple storeNewTuple(Schema schema,
-        DBPage dbPage, int slot, int pageOffset, Tuple tuple) {
+        DBPage dbPage, int slot, int pageOffset, Tuple tuple,
+        int creatorTxnID, int creatorCommandID) {
 
-        PageTuple.storeTuple(dbPage, pageOffset, schema, tuple);
+        dbPage.writeInt(pageOffset + OFFSET_CREATOR_TXN_ID, creatorTxnID);
+        dbPage.writeInt(pageOffset + OFFSET_DELETER_TXN_ID, 0);
+        dbPage.writeShort(pageOffset + OFFSET_CREATOR_COMMAND_ID,
+            creatorCommandID);
+        PageTuple.storeTuple(dbPage, pageOffset + TUPLE_HEADER_SIZE, schema,
+            tuple);
 
         return new HeapFilePageTuple(schema, dbPage, slot, pageOffset);
     }
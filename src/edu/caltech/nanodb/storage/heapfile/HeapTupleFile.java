@@ -10,6 +10,7 @@ import java.util.Map;
 
 import org.apache.log4j.Logger;
 
+import edu.caltech.nanodb.expressions.TupleLiteral;
 import edu.caltech.nanodb.relations.ColumnInfo;
 import edu.caltech.nanodb.queryeval.ColumnStats;
 import edu.caltech.nanodb.queryeval.ColumnStatsCollector;
@@ -22,15 +23,49 @@ import edu.caltech.nanodb.storage.DBPage;
 import edu.caltech.nanodb.storage.FilePointer;
 import edu.caltech.nanodb.storage.TupleFile;
 import edu.caltech.nanodb.storage.InvalidFilePointerException;
+import edu.caltech.nanodb.storage.PagePredicate;
 import edu.caltech.nanodb.storage.PageTuple;
 import edu.caltech.nanodb.storage.StorageManager;
 import edu.caltech.nanodb.storage.TupleFileManager;
+import edu.caltech.nanodb.storage.TupleLayout;
+
+import edu.caltech.nanodb.transactions.LockMode;
+import edu.caltech.nanodb.transactions.Snapshot;
 
 
 /**
+ * <p>
  * This class implements the TupleFile interface for heap files.
+ * </p>
+ * <p>
+ * Many sessions may access a heap file concurrently.  Every change to a page
+ * is made while holding the page's latch exclusively, and pages are read
+ * while holding their latch in shared mode.  Operations that change the list
+ * of non-full pages, or that add pages to the file, latch the header page
+ * exclusively for their whole duration, so they are serialized; they latch
+ * the header page before any data page, and are the only operations that
+ * latch more than one data page at a time.  Latches are never held while
+ * waiting for a transactional lock.
+ * </p>
  */
 public class HeapTupleFile implements TupleFile {
+    /**
+     * This interface is implemented by objects that need to know about the
+     * tuple versions that {@link #vacuum} removes, e.g. so that the index
+     * entries that refer to a version can be removed along with it.
+     */
+    public interface VacuumListener {
+        /**
+         * Called before a tuple version is physically removed from the file.
+         *
+         * @param tuple the tuple version that is about to be removed
+         *
+         * @throws IOException if an IO error occurs
+         */
+        void beforeVersionRemoved(HeapFilePageTuple tuple) throws IOException;
+    }
+
+
     /**
      * The size of a slot entry which points to where the data is stored
      * on the page.
@@ -124,6 +159,10 @@ public class HeapTupleFile implements TupleFile {
         this.dbFile = dbFile;
         this.schema = schema;
         this.stats = stats;
+
+        // Build the layout of the table's tuples now, so that reading them
+        // never has to.
+        TupleLayout.forSchema(schema);
     }
 
 
@@ -155,32 +194,91 @@ public class HeapTupleFile implements TupleFile {
      */
     @Override
     public Tuple getFirstTuple() throws IOException {
+        // Header page is page 0, so first data page is page 1.
+        return getFirstTuple(1, Integer.MAX_VALUE);
+    }
+
+
+    /**
+     * Returns the first tuple in a range of this table file's data pages, or
+     * <tt>null</tt> if there are no tuples in those pages.  Together with
+     * {@link #getNextTuple(Tuple, int)}, this allows a table file to be
+     * scanned in several parts, for example by parallel workers.
+     *
+     * @param startPageNo the first data page of the range, which must be at
+     *        least 1
+     * @param endPageNo the page after the last data page of the range; pages
+     *        past the end of the file are ignored
+     *
+     * @return the first tuple in the range, or <tt>null</tt>
+     *
+     * @throws IOException if an IO error occurs while reading the file
+     */
+    public Tuple getFirstTuple(int startPageNo, int endPageNo)
+        throws IOException {
+        return getFirstTuple(startPageNo, endPageNo, null);
+    }
+
+
+    /**
+     * Returns the first tuple in a range of this table file's data pages
+     * that satisfies a page predicate, or <tt>null</tt> if there are no such
+     * tuples in those pages.  Tuples that don't satisfy the predicate are
+     * skipped without constructing tuple objects for them.
+     *
+     * @param startPageNo the first data page of the range, which must be at
+     *        least 1
+     * @param endPageNo the page after the last data page of the range; pages
+     *        past the end of the file are ignored
+     * @param filter a predicate that tuples must satisfy, or {@code null}
+     *        if all tuples are returned
+     *
+     * @return the first tuple in the range satisfying the predicate, or
+     *         <tt>null</tt>
+     *
+     * @throws IOException if an IO error occurs while reading the file
+     */
+    public Tuple getFirstTuple(int startPageNo, int endPageNo,
+                               PagePredicate filter) throws IOException {
+
+        if (startPageNo <= HEADER_PAGE_NO) {
+            throw new IllegalArgumentException(
+                "startPageNo must be a data page; got " + startPageNo);
+        }
+
+        Snapshot snapshot = storageManager.getSnapshot();
         HeapFilePageTuple first = null;
         try {
             // Scan through the data pages until we hit the end of the table
             // file.  It may be that the first run of data pages is empty,
             // so just keep looking until we hit the end of the file.
 
-            // Header page is page 0, so first data page is page 1.
 page_scan:  // So we can break out of the outer loop from inside the inner one
-            for (int iPage = 1; /* nothing */ ; iPage++) {
+            for (int iPage = startPageNo; iPage < endPageNo; iPage++) {
                 // Look for data on this page.
                 DBPage dbPage = storageManager.loadDBPage(dbFile, iPage);
-                int numSlots = DataPage.getNumSlots(dbPage);
-                for (int iSlot = 0; iSlot < numSlots; iSlot++) {
-                    // Get the offset of the tuple in the page.  If it's 0 then
-                    // the slot is empty, and we skip to the next slot.
-                    int offset = DataPage.getSlotValue(dbPage, iSlot);
-                    if (offset == DataPage.EMPTY_SLOT)
-                        continue;
-
-                    // This is the first tuple in the file.  Build up the
-                    // HeapFilePageTuple object and return it.
-                    first = new HeapFilePageTuple(schema, dbPage, iSlot, offset);
+                dbPage.latchShared();
+                try {
+                    for (int iSlot = 0; iSlot < DataPage.getNumSlots(dbPage);
+                         iSlot++) {
+                        // Skip empty slots, and tuples that aren't visible
+                        // or don't satisfy the predicate.
+                        int offset = readTupleOffset(dbPage, iSlot, snapshot,
+                                                     filter);
+                        if (offset == DataPage.EMPTY_SLOT)
+                            continue;
+
+                        // This is the first tuple in the file.  Build up the
+                        // HeapFilePageTuple object and return it.
+                        first = new HeapFilePageTuple(schema, dbPage, iSlot,
+                                                      offset);
+                        break page_scan;
+                    }
+                }
+                finally {
+                    dbPage.unlatch();
                     dbPage.unpin();
-                    break page_scan;
                 }
-                dbPage.unpin();
             }
         }
         catch (EOFException e) {
@@ -216,27 +314,40 @@ page_scan:  // So we can break out of the outer loop from inside the inner one
                 dbFile.getDataFile().getName(), eofe);
         }
 
-        // The file-pointer points to the slot for the tuple, not the tuple itself.
-        // So, we need to look up that slot's value to get to the tuple data.
-
-        int slot;
+        dbPage.latchShared();
         try {
-            slot = DataPage.getSlotIndexFromOffset(dbPage, fptr.getOffset());
-        }
-        catch (IllegalArgumentException iae) {
-            throw new InvalidFilePointerException(iae);
-        }
+            // The file-pointer points to the slot for the tuple, not the
+            // tuple itself.  So, we need to look up that slot's value to get
+            // to the tuple data.
+
+            int slot;
+            try {
+                slot = DataPage.getSlotIndexFromOffset(dbPage,
+                                                       fptr.getOffset());
+            }
+            catch (IllegalArgumentException iae) {
+                throw new InvalidFilePointerException(iae);
+            }
 
-        // Pull the tuple's offset from the specified slot, and make sure
-        // there is actually a tuple there!
+            // Pull the tuple's offset from the specified slot, and make sure
+            // there is actually a tuple there!
 
-        int offset = DataPage.getSlotValue(dbPage, slot);
-        if (offset == DataPage.EMPTY_SLOT) {
-            throw new InvalidFilePointerException("Slot " + slot +
-                " on page " + fptr.getPageNo() + " is empty.");
-        }
+            int offset = DataPage.getSlotValue(dbPage, slot);
+            if (offset != DataPage.EMPTY_SLOT &&
+                storageManager.getSnapshot() == null) {
+                offset = lockTupleForRead(dbPage, slot);
+            }
 
-        return new HeapFilePageTuple(schema, dbPage, slot, offset);
+            if (offset == DataPage.EMPTY_SLOT) {
+                throw new InvalidFilePointerException("Slot " + slot +
+                    " on page " + fptr.getPageNo() + " is empty.");
+            }
+
+            return new HeapFilePageTuple(schema, dbPage, slot, offset);
+        }
+        finally {
+            dbPage.unlatch();
+        }
     }
 
 
@@ -250,6 +361,47 @@ page_scan:  // So we can break out of the outer loop from inside the inner one
      */
     @Override
     public Tuple getNextTuple(Tuple tup) throws IOException {
+        return getNextTuple(tup, Integer.MAX_VALUE);
+    }
+
+
+    /**
+     * Returns the tuple that follows the specified tuple, or {@code null} if
+     * there are no more tuples before the specified page.  This is used to
+     * scan a range of the file's data pages that was started with
+     * {@link #getFirstTuple(int, int)}.
+     *
+     * @param tup the "previous tuple" that specifies where to start looking
+     *        for the next tuple
+     * @param endPageNo the page after the last data page of the range
+     *
+     * @return the next tuple in the range, or {@code null}
+     *
+     * @throws IOException if an IO error occurs while reading the file
+     */
+    public Tuple getNextTuple(Tuple tup, int endPageNo) throws IOException {
+        return getNextTuple(tup, endPageNo, null);
+    }
+
+
+    /**
+     * Returns the tuple that follows the specified tuple and satisfies a
+     * page predicate, or {@code null} if there are no more such tuples
+     * before the specified page.  Tuples that don't satisfy the predicate
+     * are skipped without constructing tuple objects for them.
+     *
+     * @param tup the "previous tuple" that specifies where to start looking
+     *        for the next tuple
+     * @param endPageNo the page after the last data page to scan
+     * @param filter a predicate that tuples must satisfy, or {@code null}
+     *        if all tuples are returned
+     *
+     * @return the next tuple satisfying the predicate, or {@code null}
+     *
+     * @throws IOException if an IO error occurs while reading the file
+     */
+    public Tuple getNextTuple(Tuple tup, int endPageNo, PagePredicate filter)
+        throws IOException {
 
         /* Procedure:
          *   1)  Get slot index of current tuple.
@@ -265,6 +417,7 @@ page_scan:  // So we can break out of the outer loop from inside the inner one
                 "Tuple must be of type HeapFilePageTuple; got " + tup.getClass());
         }
         HeapFilePageTuple ptup = (HeapFilePageTuple) tup;
+        Snapshot snapshot = storageManager.getSnapshot();
 
         // Retrieve the location info from the previous tuple.  Since the
         // tuple (and/or its backing page) may already have a pin-count of 0,
@@ -287,27 +440,36 @@ page_scan:  // So we can break out of the outer loop from inside the inner one
 
 page_scan:  // So we can break out of the outer loop from inside the inner loop.
         while (true) {
-            int numSlots = DataPage.getNumSlots(dbPage);
-
-            while (nextSlot < numSlots) {
-                int nextOffset = DataPage.getSlotValue(dbPage, nextSlot);
-                if (nextOffset != DataPage.EMPTY_SLOT) {
-                    // Creating this tuple will pin the page a second time.
-                    nextTup = new HeapFilePageTuple(schema, dbPage, nextSlot,
-                                                    nextOffset);
-                    break page_scan;
-                }
+            dbPage.latchShared();
+            try {
+                while (nextSlot < DataPage.getNumSlots(dbPage)) {
+                    int nextOffset =
+                        readTupleOffset(dbPage, nextSlot, snapshot, filter);
+                    if (nextOffset != DataPage.EMPTY_SLOT) {
+                        // Creating this tuple will pin the page a second
+                        // time.
+                        nextTup = new HeapFilePageTuple(schema, dbPage,
+                                                        nextSlot, nextOffset);
+                        break page_scan;
+                    }
 
-                nextSlot++;
+                    nextSlot++;
+                }
+            }
+            finally {
+                dbPage.unlatch();
             }
 
             // If we got here then we reached the end of this page with no
             // tuples.  Go on to the next data-page, and start with the first
             // tuple in that page.
 
+            prevPageNo = dbPage.getPageNo();
+            if (prevPageNo + 1 >= endPageNo)
+                break;
+
             try {
                 DBPage prevPage = dbPage;
-                prevPageNo = dbPage.getPageNo();
                 dbPage = storageManager.loadDBPage(dbFile, prevPageNo + 1);
                 nextSlot = 0;
                 prevPage.unpin();
@@ -324,6 +486,245 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
     }
 
 
+    /**
+     * Opens a cursor over a range of this table file's data pages.  The
+     * cursor returns the tuples that satisfy a page predicate, reusing one
+     * tuple object for all of them and pinning each data page only once.
+     *
+     * @param startPageNo the first data page of the range, which must be at
+     *        least 1
+     * @param endPageNo the page after the last data page of the range; pages
+     *        past the end of the file are ignored
+     * @param filter a predicate that tuples must satisfy, or {@code null}
+     *        if all tuples are returned
+     *
+     * @return a cursor positioned before the first tuple in the range
+     */
+    public HeapFileCursor openCursor(int startPageNo, int endPageNo,
+                                     PagePredicate filter) {
+        if (startPageNo <= HEADER_PAGE_NO) {
+            throw new IllegalArgumentException(
+                "startPageNo must be a data page; got " + startPageNo);
+        }
+
+        return new HeapFileCursor(this, startPageNo, endPageNo, filter);
+    }
+
+
+    /**
+     * Loads and pins one of this file's pages, on behalf of a cursor.
+     *
+     * @param pageNo the number of the page to load
+     *
+     * @return the pinned page
+     *
+     * @throws EOFException if the page is past the end of the file
+     * @throws IOException if an IO error occurs while reading the page
+     */
+    DBPage loadPage(int pageNo) throws IOException {
+        return storageManager.loadDBPage(dbFile, pageNo);
+    }
+
+
+    /**
+     * Returns the snapshot that the current transaction reads from, or
+     * {@code null} if it reads the latest tuple versions.
+     */
+    Snapshot getSnapshot() {
+        return storageManager.getSnapshot();
+    }
+
+
+    /**
+     * Returns the offset of the tuple in the specified slot of a data page,
+     * if the slot holds a tuple that is visible to the snapshot and that
+     * satisfies the predicate.  If there is no snapshot, the tuple is locked
+     * for reading first.  The caller must hold the page's latch in shared
+     * mode; it is released while waiting for the tuple's lock, so the page
+     * may change during this call.
+     *
+     * @param dbPage the data page to read
+     * @param slot the slot of the tuple
+     * @param snapshot the snapshot to check visibility for, or {@code null}
+     * @param filter a predicate that the tuple must satisfy, or {@code null}
+     *
+     * @return the offset of the tuple's header in the page, or
+     *         {@link DataPage#EMPTY_SLOT} if the tuple isn't returned
+     */
+    int readTupleOffset(DBPage dbPage, int slot, Snapshot snapshot,
+                        PagePredicate filter) {
+        if (slot >= DataPage.getNumSlots(dbPage))
+            return DataPage.EMPTY_SLOT;
+
+        int offset = DataPage.getSlotValue(dbPage, slot);
+        if (offset == DataPage.EMPTY_SLOT)
+            return DataPage.EMPTY_SLOT;
+
+        if (snapshot == null) {
+            offset = lockTupleForRead(dbPage, slot);
+            if (offset == DataPage.EMPTY_SLOT)
+                return DataPage.EMPTY_SLOT;
+        }
+
+        if (!isVisible(dbPage, offset, snapshot))
+            return DataPage.EMPTY_SLOT;
+
+        if (filter != null && !filter.evaluate(dbPage,
+                offset + HeapFilePageTuple.TUPLE_HEADER_SIZE)) {
+            return DataPage.EMPTY_SLOT;
+        }
+
+        return offset;
+    }
+
+
+    /**
+     * Returns true if the tuple version starting at the specified offset is
+     * visible to the snapshot.  If there is no snapshot, only tuples that
+     * haven't been deleted are visible.
+     *
+     * @param dbPage the data page containing the tuple
+     * @param offset the offset of the tuple's header in the page
+     * @param snapshot the snapshot to check visibility for, or {@code null}
+     *
+     * @return true if the tuple version is visible
+     */
+    private static boolean isVisible(DBPage dbPage, int offset,
+                                     Snapshot snapshot) {
+        int deleterTxnID = dbPage.readInt(
+            offset + HeapFilePageTuple.OFFSET_DELETER_TXN_ID);
+
+        if (snapshot == null)
+            return deleterTxnID == Snapshot.NO_TXN_ID;
+
+        return snapshot.isVisible(
+            dbPage.readInt(offset + HeapFilePageTuple.OFFSET_CREATOR_TXN_ID),
+            dbPage.readUnsignedShort(
+                offset + HeapFilePageTuple.OFFSET_CREATOR_COMMAND_ID),
+            deleterTxnID);
+    }
+
+
+    /**
+     * Returns true if a tuple version is visible to the current snapshot.
+     * Scans of the file skip invisible versions themselves, but
+     * {@link #getTuple} returns whichever version a file-pointer refers to,
+     * so callers that follow file-pointers stored elsewhere (e.g. in an
+     * index) must check the version they get back.
+     *
+     * @param tuple a tuple version read from this file
+     *
+     * @return true if the tuple version is visible
+     */
+    public boolean isVisible(HeapFilePageTuple tuple) {
+        DBPage dbPage = tuple.getDBPage();
+        dbPage.latchShared();
+        try {
+            tuple.refreshLocation();
+            return isVisible(dbPage,
+                tuple.getOffset() - HeapFilePageTuple.TUPLE_HEADER_SIZE,
+                storageManager.getSnapshot());
+        }
+        finally {
+            dbPage.unlatch();
+        }
+    }
+
+
+    /**
+     * Returns true if a tuple version has been deleted by the current
+     * transaction, or by a transaction that had committed when the current
+     * snapshot was taken.  Unlike {@link #isVisible}, this ignores whether
+     * the version's creation is visible, so it can be used to decide whether
+     * another version of a row still exists, e.g. when enforcing unique
+     * constraints.
+     *
+     * @param tuple a tuple version read from this file
+     *
+     * @return true if the tuple version has been deleted
+     */
+    public boolean isDeleted(HeapFilePageTuple tuple) {
+        int deleterTxnID = tuple.getDeleterTxnID();
+        if (deleterTxnID == Snapshot.NO_TXN_ID)
+            return false;
+
+        Snapshot snapshot = storageManager.getSnapshot();
+        return snapshot == null || deleterTxnID == snapshot.getTxnID() ||
+            snapshot.isCommitted(deleterTxnID);
+    }
+
+
+    /**
+     * Returns true if updating or deleting a tuple keeps the old version in
+     * the file, so that other transactions' snapshots can still see it.
+     * The old version, and anything that refers to it, such as index
+     * entries, must then be kept until {@link #vacuum} removes them.
+     *
+     * @return true if old tuple versions are kept until they are vacuumed
+     */
+    public boolean keepsOldVersions() {
+        return storageManager.getSnapshot() != null;
+    }
+
+
+    /**
+     * Acquires an exclusive lock on a tuple that is about to be updated or
+     * deleted.  When reading from a snapshot, the tuple may have been
+     * updated or deleted by a transaction that committed after the snapshot
+     * was taken; in that case the current transaction is aborted, since it
+     * would otherwise overwrite the other transaction's change.
+     *
+     * @param ptup the tuple to lock
+     * @param snapshot the current transaction's snapshot, or {@code null}
+     */
+    private void lockTupleForWrite(HeapFilePageTuple ptup, Snapshot snapshot) {
+        FilePointer fptr = ptup.getExternalReference();
+        storageManager.lockTuple(dbFile, fptr, LockMode.X);
+
+        if (snapshot != null) {
+            int deleterTxnID = ptup.getDeleterTxnID();
+            if (deleterTxnID != Snapshot.NO_TXN_ID &&
+                deleterTxnID != snapshot.getTxnID()) {
+                storageManager.abortOnWriteConflict(dbFile, fptr);
+            }
+        }
+    }
+
+
+    /**
+     * Acquires a shared lock on the tuple in the specified slot for the
+     * current transaction.  The caller must hold the page's latch in shared
+     * mode; since the lock may have to be waited for, the latch is released
+     * while the lock is acquired.  Another transaction may therefore have
+     * modified the page in the meantime, so the slot's value is read again
+     * after the lock is granted.
+     *
+     * @param dbPage the data page containing the tuple
+     * @param slot the slot of the tuple to lock
+     *
+     * @return the current offset of the tuple's data, or
+     *         {@link DataPage#EMPTY_SLOT} if the tuple has been deleted
+     */
+    private int lockTupleForRead(DBPage dbPage, int slot) {
+        if (storageManager.getTransactionManager() != null) {
+            dbPage.unlatch();
+            try {
+                storageManager.lockTuple(dbFile, new FilePointer(
+                    dbPage.getPageNo(), DataPage.getSlotOffset(slot)),
+                    LockMode.S);
+            }
+            finally {
+                dbPage.latchShared();
+            }
+        }
+
+        if (slot >= DataPage.getNumSlots(dbPage))
+            return DataPage.EMPTY_SLOT;
+
+        return DataPage.getSlotValue(dbPage, slot);
+    }
+
+
     /**
      * Adds the specified tuple into the table file.  A new
      * <tt>HeapFilePageTuple</tt> object corresponding to the tuple is returned.
@@ -351,7 +752,8 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
          * Generate the data necessary for storing the tuple into the file.
          */
 
-        int tupSize = PageTuple.getTupleStorageSize(schema, tup);
+        int tupSize = HeapFilePageTuple.TUPLE_HEADER_SIZE +
+            PageTuple.getTupleStorageSize(schema, tup);
         logger.debug("Adding new tuple of size " + tupSize + " bytes.");
 
         // Sanity check:  Make sure that the tuple would actually fit in a page
@@ -364,104 +766,189 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
                 " is larger than page size " + dbFile.getPageSize() + ".");
         }
 
-        // Get first non-full page in linked-list
+        // Take the table's intention lock before changing anything, so that
+        // we don't modify a table another transaction has locked entirely.
+        storageManager.lockTable(dbFile, LockMode.IX);
+
+        // The header page stays latched while the list of non-full pages is
+        // searched and changed, which also serializes the allocation of new
+        // pages at the end of the file.
+        HeapFilePageTuple pageTup;
         DBPage header = storageManager.loadDBPage(dbFile, HEADER_PAGE_NO);
+        header.latchExclusive();
+        try {
+            pageTup = storeNewTuple(header, tup, tupSize);
+        }
+        finally {
+            header.unlatch();
+            header.unpin();
+        }
+
+        // The new tuple's slot may have belonged to a tuple that another
+        // transaction deleted and still holds a lock on, so the lock is only
+        // acquired once no latches are held.
+        storageManager.lockTuple(dbFile, pageTup.getExternalReference(),
+            LockMode.X);
+
+        return pageTup;
+    }
+
+
+    /**
+     * Stores a new tuple in the first page in the list of non-full pages
+     * with enough space for it, or in a new page at the end of the file.
+     * The caller must hold the header page's latch exclusively.
+     *
+     * @param header the file's header page
+     * @param tup the tuple to store
+     * @param tupSize the size of the new tuple, including its header
+     *
+     * @return the new tuple, which is not pinned
+     *
+     * @throws IOException if an IO error occurs
+     */
+    private HeapFilePageTuple storeNewTuple(DBPage header, Tuple tup,
+                                            int tupSize) throws IOException {
+        // Get first non-full page in linked-list
         int pageNo = HeaderPage.getFirstPage(header);
         int firstPage = pageNo;
         // Search for a page to put the tuple in.  If we hit the end of the
-        // data file, create a new page.
+        // data file, create a new page.  Each page is latched while it is
+        // examined; the page the tuple goes into stays latched until the
+        // tuple has been stored.
         DBPage dbPage = null;
         DBPage prevPage = header;
-        while (true) {
-            // Try to load the page without creating a new one.
-            try {
-                if (pageNo == END_OF_LIST) { break; };
-                dbPage = storageManager.loadDBPage(dbFile, pageNo);
-            }
-            catch (EOFException eofe) {
-                // Couldn't load the current page, because it doesn't exist.
-                // Break out of the loop.
-                logger.debug("Reached end of data file without finding " +
-                             "space for new tuple.");
-                break;
-            }
+        try {
+            while (true) {
+                // Try to load the page without creating a new one.
+                try {
+                    if (pageNo == END_OF_LIST) { break; };
+                    dbPage = storageManager.loadDBPage(dbFile, pageNo);
+                }
+                catch (EOFException eofe) {
+                    // Couldn't load the current page, because it doesn't
+                    // exist.  Break out of the loop.
+                    logger.debug("Reached end of data file without finding " +
+                                 "space for new tuple.");
+                    break;
+                }
+                dbPage.latchExclusive();
 
-            int freeSpace = DataPage.getFreeSpaceInPage(dbPage);
+                int freeSpace = DataPage.getFreeSpaceInPage(dbPage);
 
-            logger.trace(String.format("Page %d has %d bytes of free space.",
-                         pageNo, freeSpace));
+                logger.trace(String.format(
+                    "Page %d has %d bytes of free space.", pageNo, freeSpace));
 
-            // If this page has enough free space to add a new tuple, break
-            // out of the loop.  (The "+ SLOT_ENTRY_SIZE" is for the new slot entry we will
-            // also need.)
-            if (freeSpace >= tupSize + SLOT_ENTRY_SIZE) {
-                logger.debug("Found space for new tuple in page " + pageNo + ".");
-                break;
-            }
+                // If this page has enough free space to add a new tuple,
+                // break out of the loop.  (The "+ SLOT_ENTRY_SIZE" is for the
+                // new slot entry we will also need.)
+                if (freeSpace >= tupSize + SLOT_ENTRY_SIZE) {
+                    logger.debug("Found space for new tuple in page " +
+                                 pageNo + ".");
+                    break;
+                }
 
-            // If we reached this point then the page doesn't have enough
-            // space, so go on to the next data page.
-            pageNo = DataPage.getNextNonFullPage(dbPage);
-            if (prevPage != header) {
-                prevPage.unpin();
+                // If we reached this point then the page doesn't have enough
+                // space, so go on to the next data page.  The list's links
+                // only change while the header page is latched, so the
+                // previous page doesn't need to stay latched.
+                pageNo = DataPage.getNextNonFullPage(dbPage);
+                dbPage.unlatch();
+                if (prevPage != header) {
+                    prevPage.unpin();
+                }
+                prevPage = dbPage;
+                dbPage = null;  // So the next section will work properly.
             }
-            prevPage = dbPage;
-            dbPage = null;  // So the next section will work properly.
-        }
-
-        if (dbPage == null) {
-            // Try to create a new page at the end of the file.  In this
-            // circumstance, pageNo is set to the next page to be added.
-            pageNo = dbFile.getNumPages();
-            logger.debug("Creating new page " + pageNo + " to store new tuple.");
-            dbPage = storageManager.loadDBPage(dbFile, pageNo, true);
-            DataPage.initNewPage(dbPage);
-            // We add the new page to the front of the linked list to optimize for
-            // next insertions.
-            DataPage.setNextNonFullPage(dbPage, firstPage);
-            HeaderPage.setFirstPage(header, pageNo);
-            storageManager.logDBPageWrite(header);
-            if (prevPage != header && prevPage != null) {
-                prevPage.unpin();
+
+            if (dbPage == null) {
+                // Try to create a new page at the end of the file.  In this
+                // circumstance, pageNo is set to the next page to be added.
+                pageNo = dbFile.getNumPages();
+                logger.debug("Creating new page " + pageNo +
+                             " to store new tuple.");
+                dbPage = storageManager.loadDBPage(dbFile, pageNo, true);
+                dbPage.latchExclusive();
+                DataPage.initNewPage(dbPage);
+                // We add the new page to the front of the linked list to
+                // optimize for next insertions.
+                DataPage.setNextNonFullPage(dbPage, firstPage);
+                HeaderPage.setFirstPage(header, pageNo);
+                storageManager.logDBPageWrite(header);
+                if (prevPage != header) {
+                    prevPage.unpin();
+                }
+                prevPage = header;
             }
-            prevPage = header;
-        }
 
-        int slot = DataPage.allocNewTuple(dbPage, tupSize);
-        int tupOffset = DataPage.getSlotValue(dbPage, slot);
+            // Log any other changes to the page first, so that the new tuple
+            // can be logged with a compact insert-tuple record.
+            storageManager.logDBPageWrite(dbPage);
 
-        logger.debug(String.format(
-            "New tuple will reside on page %d, slot %d.", pageNo, slot));
+            int slot = DataPage.allocNewTuple(dbPage, tupSize);
+            int tupOffset = DataPage.getSlotValue(dbPage, slot);
 
-        HeapFilePageTuple pageTup =
-            HeapFilePageTuple.storeNewTuple(schema, dbPage, slot, tupOffset, tup);
+            logger.debug(String.format(
+                "New tuple will reside on page %d, slot %d.", pageNo, slot));
 
-        // Page is full if it cannot fit two more tuples of the same size as
-        // the last insertion. (The "+ SLOT_ENTRY_SIZE" is for the new slot entry we will
-        // also need.)
-        int spaceLeft = DataPage.getFreeSpaceInPage(dbPage);
-        if (spaceLeft < tupSize + SLOT_ENTRY_SIZE) {
-            // Remove from linked list of full pages
-            int nextPageNo = DataPage.getNextNonFullPage(dbPage);
-            DataPage.setNextNonFullPage(prevPage, nextPageNo);
-            DataPage.setNextNonFullPage(dbPage, END_OF_LIST);
-            storageManager.logDBPageWrite(prevPage);
-        }
+            Snapshot snapshot = storageManager.getSnapshot();
+            HeapFilePageTuple pageTup;
+            if (snapshot != null) {
+                pageTup = HeapFilePageTuple.storeNewTuple(schema, dbPage,
+                    slot, tupOffset, tup, snapshot.getTxnID(),
+                    snapshot.getCommandID());
+            }
+            else {
+                pageTup = HeapFilePageTuple.storeNewTuple(schema, dbPage,
+                    slot, tupOffset, tup, Snapshot.NO_TXN_ID, 0);
+            }
+            storageManager.logTupleInsert(dbPage, slot, tupOffset, tupSize);
+
+            // Page is full if it cannot fit two more tuples of the same size
+            // as the last insertion. (The "+ SLOT_ENTRY_SIZE" is for the new
+            // slot entry we will also need.)
+            int spaceLeft = DataPage.getFreeSpaceInPage(dbPage);
+            if (spaceLeft < tupSize + SLOT_ENTRY_SIZE) {
+                // Remove from linked list of full pages
+                int nextPageNo = DataPage.getNextNonFullPage(dbPage);
+                if (prevPage != header)
+                    prevPage.latchExclusive();
+                try {
+                    DataPage.setNextNonFullPage(prevPage, nextPageNo);
+                    storageManager.logDBPageWrite(prevPage);
+                }
+                finally {
+                    if (prevPage != header)
+                        prevPage.unlatch();
+                }
+                DataPage.setNextNonFullPage(dbPage, END_OF_LIST);
+            }
 
-        DataPage.sanityCheck(dbPage);
-        if (prevPage != header && prevPage != null) {
-            prevPage.unpin();
+            DataPage.sanityCheck(dbPage);
+            pageTup.unpin();
+            storageManager.logDBPageWrite(dbPage);
+            return pageTup;
+        }
+        finally {
+            if (prevPage != header && prevPage != null) {
+                prevPage.unpin();
+            }
+            if (dbPage != null) {
+                dbPage.unlatch();
+                dbPage.unpin();
+            }
         }
-        header.unpin();
-        pageTup.unpin();
-        storageManager.logDBPageWrite(dbPage);
-        dbPage.unpin();
-        return pageTup;
     }
 
 
     // Inherit interface-method documentation.
     /**
+     * When reading from a snapshot, the tuple isn't modified in place.
+     * Instead, the old version is marked as deleted by the current
+     * transaction, and a new version holding the new values is added to the
+     * file; the new version is returned.  Otherwise the tuple is modified in
+     * place and returned.
+     *
      * @review (donnie) This method will fail if a tuple is modified in a way
      *         that requires more space than is currently available in the data
      *         page.  One solution would be to move the tuple to a different
@@ -469,7 +956,7 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
      *         of additional issues.  So, if the page runs out of data, oh well.
      */
     @Override
-    public void updateTuple(Tuple tup, Map<String, Object> newValues)
+    public Tuple updateTuple(Tuple tup, Map<String, Object> newValues)
         throws IOException {
 
         if (!(tup instanceof HeapFilePageTuple)) {
@@ -477,22 +964,62 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
                 "Tuple must be of type HeapFilePageTuple; got " + tup.getClass());
         }
         HeapFilePageTuple ptup = (HeapFilePageTuple) tup;
+        Snapshot snapshot = storageManager.getSnapshot();
+        lockTupleForWrite(ptup, snapshot);
+
+        if (snapshot != null) {
+            TupleLiteral newTup = new TupleLiteral(ptup);
+            for (Map.Entry<String, Object> entry : newValues.entrySet()) {
+                newTup.setColumnValue(schema.getColumnIndex(entry.getKey()),
+                    entry.getValue());
+            }
 
-        for (Map.Entry<String, Object> entry : newValues.entrySet()) {
-            String colName = entry.getKey();
-            Object value = entry.getValue();
-
-            int colIndex = schema.getColumnIndex(colName);
-            ptup.setColumnValue(colIndex, value);
+            // Mark the old version deleted before adding the new one, since
+            // adding a tuple may move the old version within its page.
+            markDeleted(ptup, snapshot);
+            return addTuple(newTup);
         }
 
         DBPage dbPage = ptup.getDBPage();
-        DataPage.sanityCheck(dbPage);
-        storageManager.logDBPageWrite(dbPage);
+        dbPage.latchExclusive();
+        try {
+            // Other tuples' changes may have moved this one since it was
+            // read.
+            ptup.refreshLocation();
+            storageManager.logDBPageWrite(dbPage);
+
+            for (Map.Entry<String, Object> entry : newValues.entrySet()) {
+                String colName = entry.getKey();
+                Object value = entry.getValue();
+
+                int colIndex = schema.getColumnIndex(colName);
+                ptup.setColumnValue(colIndex, value);
+            }
+
+            DataPage.sanityCheck(dbPage);
+
+            // If the tuple's size didn't change, this is logged as a compact
+            // update-tuple record; otherwise the WAL falls back to a page
+            // update.
+            int slot = ptup.getSlot();
+            storageManager.logTupleUpdate(dbPage, slot,
+                DataPage.getSlotValue(dbPage, slot),
+                DataPage.getTupleLength(dbPage, slot));
+        }
+        finally {
+            dbPage.unlatch();
+        }
+
+        return ptup;
     }
 
 
     // Inherit interface-method documentation.
+    /**
+     * When reading from a snapshot, the tuple is only marked as deleted by
+     * the current transaction, so that other transactions' snapshots can
+     * still see it.  It is physically removed later by {@link #optimize}.
+     */
     @Override
     public void deleteTuple(Tuple tup) throws IOException {
 
@@ -501,30 +1028,96 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
                 "Tuple must be of type HeapFilePageTuple; got " + tup.getClass());
         }
         HeapFilePageTuple ptup = (HeapFilePageTuple) tup;
+        Snapshot snapshot = storageManager.getSnapshot();
+        lockTupleForWrite(ptup, snapshot);
 
-        DBPage dbPage = ptup.getDBPage();
-        // Check if full before removal. We need to add it back to the
-        // non-full linked list of pages. If next page is END_OF_LIST, then
-        // the page was full.
-        int nextPageNo = DataPage.getNextNonFullPage(dbPage);
-        if (nextPageNo == END_OF_LIST) {
-            DBPage header = storageManager.loadDBPage(dbFile, HEADER_PAGE_NO);
-            // Append to front of linked-list
-            int currFirstPage = HeaderPage.getFirstPage(header);
-            DataPage.setNextNonFullPage(dbPage, currFirstPage);
-            HeaderPage.setFirstPage(header, dbPage.getPageNo());
-            storageManager.logDBPageWrite(header);
-            header.unpin();
-        }
-        DataPage.deleteTuple(dbPage, ptup.getSlot());
-        DataPage.sanityCheck(dbPage);
-        storageManager.logDBPageWrite(dbPage);
+        if (snapshot != null)
+            markDeleted(ptup, snapshot);
+        else
+            removeTuple(ptup.getDBPage(), ptup.getSlot());
 
         // Note that we don't invalidate the page-tuple when it is deleted,
         // so that the tuple can still be unpinned, etc.
     }
 
 
+    /**
+     * Records the current transaction as the deleter of a tuple version.
+     * Only the tuple header changes, so this is logged as a compact
+     * update-tuple record.
+     */
+    private void markDeleted(HeapFilePageTuple ptup, Snapshot snapshot)
+        throws IOException {
+
+        DBPage dbPage = ptup.getDBPage();
+        dbPage.latchExclusive();
+        try {
+            storageManager.logDBPageWrite(dbPage);
+
+            ptup.setDeleterTxnID(snapshot.getTxnID());
+
+            int slot = ptup.getSlot();
+            storageManager.logTupleUpdate(dbPage, slot,
+                DataPage.getSlotValue(dbPage, slot),
+                DataPage.getTupleLength(dbPage, slot));
+        }
+        finally {
+            dbPage.unlatch();
+        }
+    }
+
+
+    /**
+     * Physically removes the tuple in the specified slot from a data page,
+     * adding the page back to the list of non-full pages if necessary.  The
+     * page may be added to the list, so the header page is latched before
+     * the data page, as {@link #addTuple} does.
+     */
+    private void removeTuple(DBPage dbPage, int slot) throws IOException {
+        DBPage header = storageManager.loadDBPage(dbFile, HEADER_PAGE_NO);
+        header.latchExclusive();
+        dbPage.latchExclusive();
+        try {
+            // Another session may have removed the tuple since the caller
+            // read it, if it doesn't respect transactional locks.
+            if (slot >= DataPage.getNumSlots(dbPage) ||
+                DataPage.getSlotValue(dbPage, slot) == DataPage.EMPTY_SLOT) {
+                return;
+            }
+
+            // Check if full before removal. We need to add it back to the
+            // non-full linked list of pages. If next page is END_OF_LIST,
+            // then the page was full.
+            int nextPageNo = DataPage.getNextNonFullPage(dbPage);
+            if (nextPageNo == END_OF_LIST) {
+                // Append to front of linked-list
+                int currFirstPage = HeaderPage.getFirstPage(header);
+                DataPage.setNextNonFullPage(dbPage, currFirstPage);
+                HeaderPage.setFirstPage(header, dbPage.getPageNo());
+                storageManager.logDBPageWrite(header);
+            }
+            storageManager.logDBPageWrite(dbPage);
+
+            int tupOffset = DataPage.getSlotValue(dbPage, slot);
+            int tupLength = DataPage.getTupleLength(dbPage, slot);
+
+            DataPage.deleteTuple(dbPage, slot);
+            DataPage.sanityCheck(dbPage);
+
+            // Deleting the tuple at the start of the page's tuple data
+            // doesn't move any other tuples, so it can be logged as a compact
+            // delete-tuple record; otherwise the WAL falls back to a page
+            // update.
+            storageManager.logTupleDelete(dbPage, slot, tupOffset, tupLength);
+        }
+        finally {
+            dbPage.unlatch();
+            header.unlatch();
+            header.unpin();
+        }
+    }
+
+
     @Override
     public void analyze() throws IOException {
         HeapFilePageTuple cur = null;
@@ -535,6 +1128,7 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
         ArrayList<ColumnStats> columnStats = new ArrayList<ColumnStats>();
         ArrayList<ColumnStatsCollector> csc = new ArrayList<ColumnStatsCollector>();
         TableSchema schema = getSchema();
+        Snapshot snapshot = storageManager.getSnapshot();
 
         // Construct ColumnStatsCollectors.
         int numColumns = schema.numColumns();
@@ -553,28 +1147,46 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
                 // Look for data on this page.
                 // An EOFException will be thrown when we read the end, bringing us to the catch block.
                 DBPage dbPage = storageManager.loadDBPage(dbFile, iPage);
-
-                int numSlots = DataPage.getNumSlots(dbPage);
-                if (numSlots > 0) {
-                    numDataPages++;
-                    totalBytes += DataPage.getTupleDataEnd(dbPage) - DataPage.getTupleDataStart(dbPage);
-                }
-                for (int iSlot = 0; iSlot < numSlots; iSlot++) {
-                    // Get the offset of the tuple in the page.  If it's 0 then
-                    // the slot is empty, and we skip to the next slot.
-                    int offset = DataPage.getSlotValue(dbPage, iSlot);
-                    if (offset == DataPage.EMPTY_SLOT)
-                        continue;
-
-                    cur = new HeapFilePageTuple(schema, dbPage, iSlot, offset);
-
-                    for (int iCol = 0; iCol < numColumns; iCol++) {
-                        csc.get(iCol).addValue(cur.getColumnValue(iCol));
+                dbPage.latchShared();
+                try {
+                    int numSlots = DataPage.getNumSlots(dbPage);
+                    if (numSlots > 0) {
+                        numDataPages++;
+                        totalBytes += DataPage.getTupleDataEnd(dbPage) -
+                            DataPage.getTupleDataStart(dbPage);
                     }
-                    numTuples++;
+                    for (int iSlot = 0; iSlot < numSlots; iSlot++) {
+                        // Get the offset of the tuple in the page.  If it's 0
+                        // then the slot is empty, and we skip to the next
+                        // slot.
+                        int offset = DataPage.getSlotValue(dbPage, iSlot);
+                        if (offset == DataPage.EMPTY_SLOT ||
+                            !isVisible(dbPage, offset, snapshot)) {
+                            continue;
+                        }
+
+                        // Reuse one tuple object for the whole scan.  The
+                        // page is pinned by loadDBPage() for as long as it is
+                        // read.
+                        if (cur == null) {
+                            cur = new HeapFilePageTuple(schema, dbPage, iSlot,
+                                                        offset);
+                            cur.unpin();
+                        }
+                        else {
+                            cur.moveTo(dbPage, iSlot, offset);
+                        }
+
+                        for (int iCol = 0; iCol < numColumns; iCol++) {
+                            csc.get(iCol).addValue(cur.getColumnValue(iCol));
+                        }
+                        numTuples++;
+                    }
+                }
+                finally {
+                    dbPage.unlatch();
                     dbPage.unpin();
                 }
-                dbPage.unpin();
             }
         }
         catch (EOFException e) {
@@ -606,8 +1218,86 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
     }
 
 
+    /**
+     * Vacuums the tuple file; see {@link #vacuum}.  Since nothing is told
+     * about the versions that are removed, tables with indexes must be
+     * vacuumed with a listener that removes the versions' index entries.
+     */
     @Override
     public void optimize() throws IOException {
-        throw new UnsupportedOperationException("Not yet implemented!");
+        vacuum(null);
+    }
+
+
+    /**
+     * Vacuums the tuple file, physically removing tuple versions that were
+     * deleted by transactions that no current or future snapshot can fail
+     * to see.  The table is locked exclusively while this is done.
+     *
+     * @param listener an optional listener that is told about each version
+     *        before it is removed, or {@code null}
+     *
+     * @throws IOException if an IO error occurs
+     */
+    public void vacuum(VacuumListener listener) throws IOException {
+        storageManager.lockTable(dbFile, LockMode.X);
+
+        int horizon = storageManager.getVacuumHorizon();
+        int numRemoved = 0;
+        try {
+            // Header page is page 0, so first data page is page 1.
+            for (int iPage = 1; /* nothing */ ; iPage++) {
+                DBPage dbPage = storageManager.loadDBPage(dbFile, iPage);
+
+                // Go through the slots backwards, since removing a tuple may
+                // also remove empty slots at the end of the slot table.
+                for (int iSlot = DataPage.getNumSlots(dbPage) - 1;
+                     iSlot >= 0; iSlot--) {
+                    // The page is only latched while the slot is examined,
+                    // since removing the tuple latches the header page.
+                    HeapFilePageTuple tuple = null;
+                    dbPage.latchShared();
+                    try {
+                        int offset = (iSlot < DataPage.getNumSlots(dbPage)) ?
+                            DataPage.getSlotValue(dbPage, iSlot) :
+                            DataPage.EMPTY_SLOT;
+
+                        if (offset != DataPage.EMPTY_SLOT) {
+                            int deleterTxnID = dbPage.readInt(offset +
+                                HeapFilePageTuple.OFFSET_DELETER_TXN_ID);
+                            if (deleterTxnID != Snapshot.NO_TXN_ID &&
+                                deleterTxnID < horizon) {
+                                tuple = new HeapFilePageTuple(schema, dbPage,
+                                    iSlot, offset);
+                            }
+                        }
+                    }
+                    finally {
+                        dbPage.unlatch();
+                    }
+
+                    if (tuple == null)
+                        continue;
+
+                    try {
+                        if (listener != null)
+                            listener.beforeVersionRemoved(tuple);
+                    }
+                    finally {
+                        tuple.unpin();
+                    }
+
+                    removeTuple(dbPage, iSlot);
+                    numRemoved++;
+                }
+                dbPage.unpin();
+            }
+        }
+        catch (EOFException e) {
+            // We ran out of pages.
+        }
+
+        logger.debug(String.format("Vacuumed %d dead tuple versions from %s",
+            numRemoved, dbFile));
     }
 }
@@ -46,6 +46,11 @@ public class HeapTupleFileManager implements TupleFileManager {
             dbFile, schema.numColumns()));
 
         TableStats stats = new TableStats(schema.numColumns());
+        DBPage headerPage = storageManager.loadDBPage(dbFile, 0);
+        HeaderPage.setFormatVersion(headerPage, HeaderPage.FORMAT_VERSION);
+        storageManager.logDBPageWrite(headerPage);
+        headerPage.unpin();
+
         HeapTupleFile tupleFile = new HeapTupleFile(storageManager, this,
             dbFile, schema, stats);
         saveMetadata(tupleFile);
@@ -63,6 +68,16 @@ public class HeapTupleFileManager implements TupleFileManager {
         DBPage headerPage = storageManager.loadDBPage(dbFile, 0);
         PageReader hpReader = new PageReader(headerPage);
         headerPage.unpin();
+
+        // Tuples in files of other format versions can't be read correctly.
+        int version = HeaderPage.getFormatVersion(headerPage);
+        if (version != HeaderPage.FORMAT_VERSION) {
+            throw new IOException(String.format("Heap file %s has storage " +
+                "format version %d, but only version %d is supported.  " +
+                "Recreate the table and load its data again.", dbFile,
+                version, HeaderPage.FORMAT_VERSION));
+        }
+
         // Skip past the page-size value.
         hpReader.setPosition(HeaderPage.OFFSET_SCHEMA_START);
 
@@ -116,7 +131,8 @@ public class HeapTupleFileManager implements TupleFileManager {
         // Write in empty statistics, so that the values are at least
         // initialized to something.
         StatsWriter statsWriter = new StatsWriter();
-        statsWriter.writeTableStats(schema, stats, hpWriter);
+        statsWriter.writeTableStats(schema, stats, hpWriter,
+            HeaderPage.getStatsEndOffset(headerPage));
         int statsSize = hpWriter.getPosition() - schemaEndPos;
         HeaderPage.setStatsSize(headerPage, statsSize);
         storageManager.logDBPageWrite(headerPage);
@@ -5,6 +5,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.HashMap;
 
 import org.apache.log4j.Logger;
 
@@ -16,6 +17,7 @@ import edu.caltech.nanodb.storage.DBFileType;
 import edu.caltech.nanodb.storage.DBFileWriter;
 import edu.caltech.nanodb.storage.DBPage;
 import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.storage.heapfile.DataPage;
 import edu.caltech.nanodb.transactions.TransactionManager;
 import edu.caltech.nanodb.transactions.TransactionState;
 import edu.caltech.nanodb.util.ArrayUtil;
@@ -40,6 +42,16 @@ import edu.caltech.nanodb.util.ArrayUtil;
  * needed during recovery processing, when transaction state is dictated by the
  * log file, not what is in thread-local storage.
  * </p>
+ * <p>
+ * Several sessions may write log records at once, so every append to the
+ * log is made while holding this object's monitor.  The monitor covers
+ * choosing the record's LSN, writing the record, and advancing
+ * {@link #nextLSN} past it, so records never overlap and the log stays in
+ * LSN order.  The buffer manager's lock may be taken while the monitor is
+ * held (to load WAL pages), so nothing that runs under the buffer manager's
+ * lock may take the monitor; {@link #getFirstLSN} and {@link #getNextLSN}
+ * therefore just read volatile fields.
+ * </p>
  */
 public class WALManager {
 
@@ -79,6 +91,14 @@ public class WALManager {
     public static final int OFFSET_FIRST_RECORD = 6;
 
 
+    /**
+     * Maximum file ID that may be assigned by a
+     * {@link WALRecordType#DEFINE_FILE} record, since file IDs are stored as
+     * unsigned shorts.
+     */
+    public static final int MAX_FILE_ID = 65535;
+
+
     /**
      * This static helper method simply takes a WAL file number and translates
      * it into a corresponding filename based on that number.
@@ -102,14 +122,33 @@ public class WALManager {
      * This object holds the log sequence number of the first write-ahead log
      * record where recovery would need to start from.
      */
-    private LogSequenceNumber firstLSN;
+    private volatile LogSequenceNumber firstLSN;
 
 
     /**
      * This object holds the log sequence number where the next write-ahead log
-     * record will be written.
+     * record will be written.  It is only advanced while holding this
+     * object's monitor.
+     */
+    private volatile LogSequenceNumber nextLSN;
+
+
+    /**
+     * This mapping holds the file IDs that have been assigned to data files
+     * by {@link WALRecordType#DEFINE_FILE} records since {@link #firstLSN}.
+     * It is used when writing records.  Like the file-ID lookups and the
+     * {@code DEFINE_FILE} records themselves, it is only accessed while
+     * holding this object's monitor.
+     */
+    private HashMap<String, Integer> fileIDs = new HashMap<>();
+
+
+    /**
+     * This is the reverse of {@link #fileIDs}, used to resolve file IDs back
+     * into filenames when records are read during rollback and recovery.
+     * It is guarded by this object's monitor.
      */
-    private LogSequenceNumber nextLSN;
+    private HashMap<Integer, String> fileNames = new HashMap<>();
 
 
     public WALManager(StorageManager storageManager,
@@ -222,6 +261,13 @@ public class WALManager {
         firstLSN = nextLSN;
         txnMgr.forceWAL(nextLSN);
 
+        // No record before the new firstLSN will ever be read again, so the
+        // file IDs defined there must be redefined before they are reused.
+        synchronized (this) {
+            fileIDs.clear();
+            fileNames.clear();
+        }
+
         recoveryInfo.firstLSN = firstLSN;
         recoveryInfo.nextLSN = nextLSN;
 
@@ -270,6 +316,80 @@ public class WALManager {
     }
 
 
+    /**
+     * This helper function reads the body of a {@link WALRecordType#DEFINE_FILE}
+     * record, positioned just after the record's type byte, and adds the
+     * file ID to the file-ID dictionary.  The reader is left positioned just
+     * after the record.
+     *
+     * @param walReader reads current WAL file.
+     *
+     * @throws IOException if an IO error occurs reading from walReader.
+     */
+    private void readFileDefinition(DBFileReader walReader) throws IOException {
+        int fileID = walReader.readUnsignedShort();
+        String fileName = walReader.readVarString255();
+        walReader.readInt();  // Start offset of the record.
+        checkFooter(walReader, WALRecordType.DEFINE_FILE);
+
+        logger.debug(String.format("File ID %d refers to file %s",
+            fileID, fileName));
+
+        synchronized (this) {
+            fileIDs.put(fileName, fileID);
+            fileNames.put(fileID, fileName);
+        }
+    }
+
+
+    /**
+     * This helper function reads a file ID from a WAL record, and resolves it
+     * to the corresponding filename using the file-ID dictionary.
+     *
+     * @param walReader reads current WAL file.
+     *
+     * @return the name of the file that the record refers to
+     *
+     * @throws IOException if an IO error occurs reading from walReader, or if
+     *         the file ID was never defined in the write-ahead log.
+     */
+    private String readFileName(DBFileReader walReader) throws IOException {
+        int fileID = walReader.readUnsignedShort();
+        String fileName;
+        synchronized (this) {
+            fileName = fileNames.get(fileID);
+        }
+        if (fileName == null) {
+            throw new WALFileException(String.format(
+                "WAL record refers to undefined file ID %d", fileID));
+        }
+        return fileName;
+    }
+
+
+    /**
+     * This helper function reads the file ID and page number from a WAL
+     * record, and loads the corresponding page.
+     *
+     * @param walReader reads current WAL file.
+     *
+     * @return the data page that the record refers to
+     *
+     * @throws IOException if an IO error occurs reading from walReader, or
+     *         while loading the page.
+     */
+    private DBPage readDBPage(DBFileReader walReader) throws IOException {
+        String fileName = readFileName(walReader);
+        int pageNo = walReader.readUnsignedShort();
+
+        logger.debug(String.format("File name: %s, PageNo: %d",
+            fileName, pageNo));
+
+        DBFile dbFile = storageManager.openDBFile(fileName);
+        return storageManager.loadDBPage(dbFile, pageNo);
+    }
+
+
     /**
      * This helper function performs redo processing using the write-ahead
      * log.  As the log is traversed, the <tt>RecoveryInfo</tt> object is also
@@ -293,6 +413,14 @@ public class WALManager {
             byte typeID = walReader.readByte();
             WALRecordType type = WALRecordType.valueOf(typeID);
 
+            if (type == WALRecordType.DEFINE_FILE) {
+                // File definitions don't belong to any transaction.
+                readFileDefinition(walReader);
+                oldLSN = currLSN;
+                currLSN = computeNextLSN(currLSN.getLogFileNo(), walReader.getPosition());
+                continue;
+            }
+
             int transactionID = walReader.readInt();
 
             logger.debug(String.format(
@@ -312,7 +440,7 @@ public class WALManager {
             case UPDATE_PAGE:
             case UPDATE_PAGE_REDO_ONLY:
                 prevLSN = readPrevLSN(walReader);
-                String fileName = walReader.readVarString255();
+                String fileName = readFileName(walReader);
                 // We use int for pageNo because it represents an unsigned short.
                 int pageNo = walReader.readShort();
                 DBFile dbFile = storageManager.openDBFile(fileName);
@@ -327,6 +455,19 @@ public class WALManager {
                 logger.debug(String.format("File offset: %d", fileOffset));
                 checkFooter(walReader, type);
                 break;
+            case INSERT_TUPLE:
+            case DELETE_TUPLE:
+            case UPDATE_TUPLE:
+                prevLSN = readPrevLSN(walReader);
+                dbPage = readDBPage(walReader);
+                dbPage.setPageLSN(currLSN);
+                logger.debug("Applying tuple redo...");
+                applyTupleRedo(type, walReader, dbPage);
+                dbPage.unpin();
+                fileOffset = walReader.readInt();
+                logger.debug(String.format("File offset: %d", fileOffset));
+                checkFooter(walReader, type);
+                break;
             case COMMIT_TXN:
             case ABORT_TXN:
                 prevLSN = readPrevLSN(walReader);
@@ -442,6 +583,10 @@ public class WALManager {
 
             case UPDATE_PAGE:
             case UPDATE_PAGE_REDO_ONLY:
+            case DEFINE_FILE:
+            case INSERT_TUPLE:
+            case DELETE_TUPLE:
+            case UPDATE_TUPLE:
                 // For these records, the WAL record's start offset is stored
                 // immediately before the last type-byte.  We go back 5 bytes
                 // because reading the type ID moves the position forward by
@@ -464,6 +609,13 @@ public class WALManager {
             if (currLSN.compareTo(recoveryInfo.firstLSN) < 0)
                 break;
 
+            // File definitions don't belong to any transaction, and were
+            // already applied to the file-ID dictionary during redo.
+            if (type == WALRecordType.DEFINE_FILE) {
+                oldLSN = currLSN;
+                continue;
+            }
+
             // Skip over the "record type" byte, which is at startOffset.
             // This sets up to read the transaction ID, next.
             walReader.setPosition(startOffset + 1);
@@ -494,7 +646,7 @@ public class WALManager {
             // Only undo for the UPDATE_PAGE case.
             case UPDATE_PAGE:
                 prevLSN = readPrevLSN(walReader);
-                String fileName = walReader.readVarString255();
+                String fileName = readFileName(walReader);
                 // We use int for pageNo because it represents an unsigned short.
                 int pageNo = walReader.readShort();
                 DBFile dbFile = storageManager.openDBFile(fileName);
@@ -514,6 +666,28 @@ public class WALManager {
 
                 int curFileOffset = walReader.readInt();
 
+                logger.debug(String.format("File offset: %d", curFileOffset));
+                checkFooter(walReader, type);
+                break;
+            case INSERT_TUPLE:
+            case DELETE_TUPLE:
+            case UPDATE_TUPLE:
+                readPrevLSN(walReader);
+                dbPage = readDBPage(walReader);
+                dbPage.setPageLSN(currLSN);
+
+                logger.debug("Applying tuple undo...");
+                prevLSN = recoveryInfo.getLastLSN(transactionID);
+                ByteArrayOutputStream redoOnlyBAOS = new ByteArrayOutputStream();
+                numSegments = applyTupleUndo(type, walReader, dbPage,
+                    new DataOutputStream(redoOnlyBAOS));
+                redoOnlyLSN = writeRedoOnlyUpdatePageRecord(transactionID,
+                    prevLSN, dbPage, numSegments, redoOnlyBAOS.toByteArray());
+                dbPage.unpin();
+                logger.debug(String.format("RedoOnlyLSN: %s", redoOnlyLSN.toString()));
+                recoveryInfo.updateInfo(transactionID, redoOnlyLSN);
+
+                curFileOffset = walReader.readInt();
                 logger.debug(String.format("File offset: %d", curFileOffset));
                 checkFooter(walReader, type);
                 break;
@@ -521,7 +695,7 @@ public class WALManager {
             // everything is aligned.
             case UPDATE_PAGE_REDO_ONLY:
                 prevLSN = readPrevLSN(walReader);
-                fileName = walReader.readVarString255();
+                fileName = readFileName(walReader);
                 // We use int for pageNo because it represents an unsigned short.
                 pageNo = walReader.readShort();
                 numSegments = walReader.readShort();
@@ -687,7 +861,7 @@ public class WALManager {
      *         it isn't one of the values {@link WALRecordType#START_TXN},
      *         {@link WALRecordType#COMMIT_TXN}, or {@link WALRecordType#ABORT_TXN}.
      */
-    public LogSequenceNumber writeTxnRecord(WALRecordType type,
+    public synchronized LogSequenceNumber writeTxnRecord(WALRecordType type,
         int transactionID, LogSequenceNumber prevLSN) throws IOException {
 
         if (type != WALRecordType.START_TXN &&
@@ -790,7 +964,7 @@ public class WALManager {
      * @throws IllegalArgumentException if <tt>dbPage</tt> is <tt>null</tt>, or
      *         if it shows no updates.
      */
-    public LogSequenceNumber writeUpdatePageRecord(DBPage dbPage)
+    public synchronized LogSequenceNumber writeUpdatePageRecord(DBPage dbPage)
         throws IOException {
 
         if (dbPage == null)
@@ -806,6 +980,10 @@ public class WALManager {
                 "No transaction is currently in progress!");
         }
 
+        // This may write a file-definition record, so it must happen before
+        // we figure out where the update record goes.
+        int fileID = getFileID(dbPage.getDBFile());
+
         LogSequenceNumber lsn = nextLSN;
 
         logger.debug(String.format("Writing an %s record for transaction %d at LSN %s",
@@ -823,8 +1001,8 @@ public class WALManager {
         walWriter.writeShort(prevLSN.getLogFileNo());
         walWriter.writeInt(prevLSN.getFileOffset());
 
-        // Store the filename and page number that is being updated.
-        walWriter.writeVarString255(dbPage.getDBFile().getDataFile().getName());
+        // Store the file ID and page number that is being updated.
+        walWriter.writeShort(fileID);
         walWriter.writeShort(dbPage.getPageNo());
 
         // This offset is where we will store the number of data segments we
@@ -1047,9 +1225,9 @@ public class WALManager {
      * @throws IllegalArgumentException if <tt>dbPage</tt> is <tt>null</tt>, or
      *         if <tt>changes</tt> is <tt>null</tt>.
      */
-    public LogSequenceNumber writeRedoOnlyUpdatePageRecord(int transactionID,
-        LogSequenceNumber prevLSN, DBPage dbPage, int numSegments,
-        byte[] changes) throws IOException {
+    public synchronized LogSequenceNumber writeRedoOnlyUpdatePageRecord(
+        int transactionID, LogSequenceNumber prevLSN, DBPage dbPage,
+        int numSegments, byte[] changes) throws IOException {
 
         if (dbPage == null)
             throw new IllegalArgumentException("dbPage must be specified");
@@ -1057,6 +1235,10 @@ public class WALManager {
         if (changes == null)
             throw new IllegalArgumentException("changes must be specified");
 
+        // This may write a file-definition record, so it must happen before
+        // we figure out where the update record goes.
+        int fileID = getFileID(dbPage.getDBFile());
+
         // Record the WAL record.  First thing to do:  figure out where it goes.
 
         LogSequenceNumber lsn = nextLSN;
@@ -1073,7 +1255,7 @@ public class WALManager {
         walWriter.writeShort(prevLSN.getLogFileNo());
         walWriter.writeInt(prevLSN.getFileOffset());
 
-        walWriter.writeVarString255(dbPage.getDBFile().getDataFile().getName());
+        walWriter.writeShort(fileID);
         walWriter.writeShort(dbPage.getPageNo());
 
         // Write the redo-only data.
@@ -1140,6 +1322,420 @@ public class WALManager {
     }
 
 
+    /**
+     * Returns the file ID that WAL records use to refer to the specified
+     * file.  If the file doesn't have an ID yet, a new one is assigned and a
+     * {@link WALRecordType#DEFINE_FILE} record is written to the log.  The
+     * lookup, the record and the new map entries happen under this object's
+     * monitor, so two sessions can't assign different IDs to one file or one
+     * ID to two files.
+     *
+     * @param dbFile the file to retrieve the file ID for
+     *
+     * @return the file ID of the file
+     *
+     * @throws IOException if the write-ahead log cannot be updated for some
+     *         reason, or if all file IDs have been used up.
+     */
+    private synchronized int getFileID(DBFile dbFile) throws IOException {
+        String fileName = dbFile.getDataFile().getName();
+        Integer fileID = fileIDs.get(fileName);
+        if (fileID != null)
+            return fileID;
+
+        fileID = fileNames.size();
+        if (fileID > MAX_FILE_ID) {
+            throw new WALFileException("Ran out of WAL file IDs; cannot " +
+                "assign an ID to file " + fileName);
+        }
+
+        LogSequenceNumber lsn = nextLSN;
+
+        logger.debug(String.format("Writing a %s record for file %s (ID %d) " +
+            "at LSN %s", WALRecordType.DEFINE_FILE, fileName, fileID, lsn));
+
+        DBFileWriter walWriter = getWALFileWriter(lsn);
+
+        walWriter.writeByte(WALRecordType.DEFINE_FILE.getID());
+        walWriter.writeShort(fileID);
+        walWriter.writeVarString255(fileName);
+
+        walWriter.writeInt(lsn.getFileOffset());
+        walWriter.writeByte(WALRecordType.DEFINE_FILE.getID());
+
+        lsn.setRecordSize(walWriter.getPosition() - lsn.getFileOffset());
+        nextLSN = computeNextLSN(nextLSN.getLogFileNo(), walWriter.getPosition());
+
+        fileIDs.put(fileName, fileID);
+        fileNames.put(fileID, fileName);
+
+        return fileID;
+    }
+
+
+    /**
+     * This helper reports whether all differences between two versions of a
+     * page fall within the specified byte-ranges.
+     *
+     * @param oldData the old version of the page data
+     * @param newData the new version of the page data
+     * @param ranges a sequence of (start index, length) pairs
+     *
+     * @return true if every changed byte lies within one of the ranges
+     */
+    private static boolean changesConfinedTo(byte[] oldData, byte[] newData,
+                                             int... ranges) {
+        int index = 0;
+        while (index < oldData.length) {
+            index += ArrayUtil.sizeOfIdenticalRange(oldData, newData, index);
+            if (index == oldData.length)
+                break;
+
+            int size = ArrayUtil.sizeOfDifferentRange(oldData, newData, index);
+            for (int i = index; i < index + size; i++) {
+                boolean covered = false;
+                for (int r = 0; r < ranges.length && !covered; r += 2)
+                    covered = (i >= ranges[r] && i < ranges[r] + ranges[r + 1]);
+
+                if (!covered)
+                    return false;
+            }
+
+            index += size;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * This method writes a compact tuple-level record to the write-ahead log
+     * for a change to a single tuple in a heap-file data page.  Only the
+     * tuple's bytes and slot details are recorded, instead of the undo and
+     * redo bytes of every changed segment of the page.  The redo information
+     * in these records always describes the exact bytes to store, so that
+     * redo processing remains idempotent.
+     * <p>
+     * If the page's changes since it was last logged are not confined to the
+     * specified tuple and its slot (for example, because other tuples had to
+     * be moved within the page), this method falls back to writing a
+     * standard {@link WALRecordType#UPDATE_PAGE} record.
+     *
+     * @param type the kind of record to write; one of
+     *        {@link WALRecordType#INSERT_TUPLE},
+     *        {@link WALRecordType#DELETE_TUPLE} or
+     *        {@link WALRecordType#UPDATE_TUPLE}.
+     *
+     * @param dbPage the heap-file data page containing the tuple
+     *
+     * @param slot the slot of the tuple that was changed
+     *
+     * @param tupleOffset the offset of the tuple's data within the page.  For
+     *        deletes, this is the offset the tuple had before it was removed.
+     *
+     * @param tupleLength the length of the tuple's data.  For deletes, this
+     *        is the length the tuple had before it was removed.
+     *
+     * @return the Log Sequence Number of the WAL record that was written
+     *
+     * @throws IOException if the write-ahead log cannot be updated for some
+     *         reason.
+     *
+     * @throws IllegalArgumentException if <tt>dbPage</tt> is <tt>null</tt>,
+     *         if it shows no updates, or if <tt>type</tt> is not a tuple
+     *         record type.
+     */
+    public LogSequenceNumber writeTupleRecord(WALRecordType type,
+        DBPage dbPage, int slot, int tupleOffset, int tupleLength)
+        throws IOException {
+
+        if (type != WALRecordType.INSERT_TUPLE &&
+            type != WALRecordType.DELETE_TUPLE &&
+            type != WALRecordType.UPDATE_TUPLE) {
+            throw new IllegalArgumentException("Invalid record type " + type +
+                " passed to writeTupleRecord().");
+        }
+
+        if (dbPage == null)
+            throw new IllegalArgumentException("dbPage must be specified");
+
+        if (!dbPage.isDirty())
+            throw new IllegalArgumentException("dbPage has no updates to store");
+
+        byte[] oldData = dbPage.getOldPageData();
+        byte[] newData = dbPage.getPageData();
+        int slotOffset = DataPage.getSlotOffset(slot);
+
+        boolean confined;
+        if (type == WALRecordType.INSERT_TUPLE) {
+            confined = changesConfinedTo(oldData, newData,
+                DataPage.OFFSET_NUM_SLOTS, 2, slotOffset, 2,
+                tupleOffset, tupleLength);
+        }
+        else if (type == WALRecordType.DELETE_TUPLE) {
+            confined = changesConfinedTo(oldData, newData,
+                DataPage.OFFSET_NUM_SLOTS, 2, slotOffset, 2);
+        }
+        else {
+            confined = changesConfinedTo(oldData, newData,
+                tupleOffset, tupleLength);
+        }
+
+        // For updates, narrow the change down to the bytes that actually
+        // differ within the tuple.
+        int changeStart = tupleOffset;
+        int changeEnd = tupleOffset + tupleLength;
+        if (confined && type == WALRecordType.UPDATE_TUPLE) {
+            while (changeStart < changeEnd &&
+                   oldData[changeStart] == newData[changeStart]) {
+                changeStart++;
+            }
+            while (changeEnd > changeStart &&
+                   oldData[changeEnd - 1] == newData[changeEnd - 1]) {
+                changeEnd--;
+            }
+
+            if (changeStart == changeEnd)
+                confined = false;
+        }
+
+        if (!confined) {
+            logger.debug(String.format("Changes to page %d of %s aren't " +
+                "confined to slot %d; writing a page-update record instead " +
+                "of a %s record.", dbPage.getPageNo(), dbPage.getDBFile(),
+                slot, type));
+
+            return writeUpdatePageRecord(dbPage);
+        }
+
+        // Retrieve and verify the transaction state.
+        TransactionState txnState = SessionState.get().getTxnState();
+        if (!txnState.isTxnInProgress()) {
+            throw new IllegalStateException(
+                "No transaction is currently in progress!");
+        }
+
+        // Only the append itself needs the log's monitor; the analysis above
+        // just reads the page, which the caller has latched.
+        synchronized (this) {
+            // This may write a file-definition record, so it must happen
+            // before we figure out where the tuple record goes.
+            int fileID = getFileID(dbPage.getDBFile());
+
+            LogSequenceNumber lsn = nextLSN;
+
+            logger.debug(String.format("Writing a %s record for transaction %d " +
+                "at LSN %s", type, txnState.getTransactionID(), lsn));
+
+            DBFileWriter walWriter = getWALFileWriter(lsn);
+
+            walWriter.writeByte(type.getID());
+            walWriter.writeInt(txnState.getTransactionID());
+
+            // We need to store the previous log sequence number for this record.
+            LogSequenceNumber prevLSN = txnState.getLastLSN();
+            walWriter.writeShort(prevLSN.getLogFileNo());
+            walWriter.writeInt(prevLSN.getFileOffset());
+
+            walWriter.writeShort(fileID);
+            walWriter.writeShort(dbPage.getPageNo());
+            walWriter.writeShort(slot);
+
+            if (type == WALRecordType.UPDATE_TUPLE) {
+                int changeSize = changeEnd - changeStart;
+                walWriter.writeShort(changeStart);
+                walWriter.writeShort(changeSize);
+                walWriter.write(oldData, changeStart, changeSize);
+                walWriter.write(newData, changeStart, changeSize);
+            }
+            else {
+                // Number of slots before and after the change.
+                int oldNumSlots =
+                    ((oldData[DataPage.OFFSET_NUM_SLOTS] & 0xFF) << 8) |
+                     (oldData[DataPage.OFFSET_NUM_SLOTS + 1] & 0xFF);
+                walWriter.writeShort(oldNumSlots);
+                walWriter.writeShort(DataPage.getNumSlots(dbPage));
+
+                walWriter.writeShort(tupleOffset);
+                walWriter.writeShort(tupleLength);
+
+                // Inserts record the new tuple (redo data), deletes record the
+                // old tuple (undo data).
+                if (type == WALRecordType.INSERT_TUPLE)
+                    walWriter.write(newData, tupleOffset, tupleLength);
+                else
+                    walWriter.write(oldData, tupleOffset, tupleLength);
+            }
+
+            // Write the start of the record at the end so that we can get back
+            // to the record's start when scanning the log backwards.
+
+            walWriter.writeInt(lsn.getFileOffset());
+            walWriter.writeByte(type.getID());
+
+            // Store the LSN of the change on the page.
+            lsn.setRecordSize(walWriter.getPosition() - lsn.getFileOffset());
+            dbPage.setPageLSN(lsn);
+            dbPage.syncOldPageData();
+
+            // Since we issued a new write-ahead log record for the current
+            // transaction, update the "last LSN" value for the transaction.
+            txnState.setLastLSN(lsn);
+
+            nextLSN = computeNextLSN(nextLSN.getLogFileNo(), walWriter.getPosition());
+
+            return lsn;
+        }
+    }
+
+
+    /**
+     * This helper function applies the redo information in an
+     * {@link WALRecordType#INSERT_TUPLE}, {@link WALRecordType#DELETE_TUPLE}
+     * or {@link WALRecordType#UPDATE_TUPLE} record.  The {@code walReader}
+     * argument is expected to be positioned just after the record's page
+     * number, and will be advanced past the tuple details.
+     *
+     * @param type the record type
+     * @param walReader a reader positioned at the tuple details
+     * @param dbPage the page that the redo should be applied to
+     *
+     * @throws IOException if an IO error occurs reading from walReader
+     */
+    private void applyTupleRedo(WALRecordType type, DBFileReader walReader,
+                                DBPage dbPage) throws IOException {
+
+        int slot = walReader.readUnsignedShort();
+
+        if (type == WALRecordType.UPDATE_TUPLE) {
+            int index = walReader.readUnsignedShort();
+            int size = walReader.readUnsignedShort();
+
+            // Skip over the undo data.
+            walReader.movePosition(size);
+
+            byte[] redoData = new byte[size];
+            walReader.read(redoData);
+            dbPage.write(index, redoData);
+            return;
+        }
+
+        walReader.readUnsignedShort();  // Number of slots before the change.
+        int newNumSlots = walReader.readUnsignedShort();
+        int tupleOffset = walReader.readUnsignedShort();
+        int tupleLength = walReader.readUnsignedShort();
+
+        if (type == WALRecordType.INSERT_TUPLE) {
+            byte[] tupleData = new byte[tupleLength];
+            walReader.read(tupleData);
+
+            dbPage.writeShort(DataPage.OFFSET_NUM_SLOTS, newNumSlots);
+            dbPage.writeShort(DataPage.getSlotOffset(slot), tupleOffset);
+            dbPage.write(tupleOffset, tupleData);
+        }
+        else {
+            // Skip over the old tuple data.
+            walReader.movePosition(tupleLength);
+
+            dbPage.writeShort(DataPage.getSlotOffset(slot), DataPage.EMPTY_SLOT);
+            dbPage.writeShort(DataPage.OFFSET_NUM_SLOTS, newNumSlots);
+        }
+    }
+
+
+    /**
+     * This helper function uses an {@link WALRecordType#INSERT_TUPLE},
+     * {@link WALRecordType#DELETE_TUPLE} or {@link WALRecordType#UPDATE_TUPLE}
+     * record to undo a change to a data page, and at the same time generates
+     * the segments that must go into a corresponding redo-only WAL record.
+     * The {@code walReader} argument is expected to be positioned just after
+     * the record's page number, and will be advanced past the tuple details.
+     *
+     * @param type the record type
+     * @param walReader a reader positioned at the tuple details
+     * @param dbPage the data page that undo operations should be applied to
+     * @param redoOnly the stream to write the redo-only segments to
+     *
+     * @return the number of segments written to {@code redoOnly}
+     *
+     * @throws IOException if an IO error occurs while applying the undo
+     *         operation
+     */
+    private int applyTupleUndo(WALRecordType type, DBFileReader walReader,
+        DBPage dbPage, DataOutputStream redoOnly) throws IOException {
+
+        int slot = walReader.readUnsignedShort();
+        int numSegments;
+
+        if (type == WALRecordType.UPDATE_TUPLE) {
+            int index = walReader.readUnsignedShort();
+            int size = walReader.readUnsignedShort();
+
+            byte[] undoData = new byte[size];
+            walReader.read(undoData);
+
+            // Skip past the redo data, because don't care about it.
+            walReader.movePosition(size);
+
+            writeUndoSegment(dbPage, redoOnly, index, undoData);
+            numSegments = 1;
+        }
+        else {
+            int oldNumSlots = walReader.readUnsignedShort();
+            walReader.readUnsignedShort();  // Number of slots after the change.
+            int tupleOffset = walReader.readUnsignedShort();
+            int tupleLength = walReader.readUnsignedShort();
+
+            int slotOffset = DataPage.getSlotOffset(slot);
+
+            if (type == WALRecordType.INSERT_TUPLE) {
+                // The tuple's bytes are left in the page as free space.
+                walReader.movePosition(tupleLength);
+
+                writeUndoSegment(dbPage, redoOnly, slotOffset,
+                    shortToBytes(DataPage.EMPTY_SLOT));
+                writeUndoSegment(dbPage, redoOnly, DataPage.OFFSET_NUM_SLOTS,
+                    shortToBytes(oldNumSlots));
+                numSegments = 2;
+            }
+            else {
+                byte[] tupleData = new byte[tupleLength];
+                walReader.read(tupleData);
+
+                writeUndoSegment(dbPage, redoOnly, DataPage.OFFSET_NUM_SLOTS,
+                    shortToBytes(oldNumSlots));
+                writeUndoSegment(dbPage, redoOnly, slotOffset,
+                    shortToBytes(tupleOffset));
+                writeUndoSegment(dbPage, redoOnly, tupleOffset, tupleData);
+                numSegments = 3;
+            }
+        }
+
+        redoOnly.flush();
+        return numSegments;
+    }
+
+
+    /** Encodes a short value in the same byte-order that pages use. */
+    private static byte[] shortToBytes(int value) {
+        return new byte[] { (byte) (0xFF & (value >> 8)), (byte) (0xFF & value) };
+    }
+
+
+    /**
+     * Writes undo data into a page, and records the same data as a segment of
+     * a redo-only record.
+     */
+    private void writeUndoSegment(DBPage dbPage, DataOutputStream redoOnly,
+                                  int index, byte[] data) throws IOException {
+        dbPage.write(index, data);
+
+        redoOnly.writeShort(index);
+        redoOnly.writeShort(data.length);
+        redoOnly.write(data);
+    }
+
+
     /**
      * This method performs the operations necessary to rollback the current
      * transaction from the database.  The transaction details are taken from
@@ -1197,7 +1793,7 @@ public class WALManager {
 
                 logger.debug(String.format("Previous lsn is %s", lsn));
 
-                String filename = walReader.readVarString255();
+                String filename = readFileName(walReader);
                 short dbPageNo = walReader.readShort();
 
                 DBFile dbFile = storageManager.openDBFile(filename);
@@ -1209,6 +1805,21 @@ public class WALManager {
 
                 writeRedoOnlyUpdatePageRecord(dbPage, numSegments, changes);
             }
+            else if (type == WALRecordType.INSERT_TUPLE ||
+                     type == WALRecordType.DELETE_TUPLE ||
+                     type == WALRecordType.UPDATE_TUPLE) {
+
+                lsn = readPrevLSN(walReader);
+                DBPage dbPage = readDBPage(walReader);
+
+                ByteArrayOutputStream redoOnlyBAOS = new ByteArrayOutputStream();
+                int numSegments = applyTupleUndo(type, walReader, dbPage,
+                    new DataOutputStream(redoOnlyBAOS));
+
+                writeRedoOnlyUpdatePageRecord(dbPage, numSegments,
+                    redoOnlyBAOS.toByteArray());
+                dbPage.unpin();
+            }
             else {
                 throw new WALFileException(String.format("Expected update or " +
                     "start txn record type, but found %s", type));
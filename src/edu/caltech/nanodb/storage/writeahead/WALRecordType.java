@@ -25,6 +25,34 @@ public enum WALRecordType {
      */
     UPDATE_PAGE_REDO_ONLY(3),
 
+    /**
+     * The record associates a compact numeric file ID with a data file's
+     * name.  Subsequent records refer to the file by this ID rather than
+     * storing the filename in every record.
+     */
+    DEFINE_FILE(4),
+
+    /**
+     * The record represents a "&lt;<i>T<sub>i</sub></i>:  insert tuple
+     * <i>t</i> into slot <i>s</i>&gt;" record.  Only the new tuple's bytes
+     * and the slot details are stored; the undo operation is implied.
+     */
+    INSERT_TUPLE(5),
+
+    /**
+     * The record represents a "&lt;<i>T<sub>i</sub></i>:  delete tuple
+     * <i>t</i> from slot <i>s</i>&gt;" record.  Only the old tuple's bytes
+     * and the slot details are stored; the redo operation is implied.
+     */
+    DELETE_TUPLE(6),
+
+    /**
+     * The record represents a "&lt;<i>T<sub>i</sub></i>:  update tuple
+     * <i>t</i> &rarr; <i>t'</i> in slot <i>s</i>&gt;" record, where the
+     * tuple's size and location in the page did not change.
+     */
+    UPDATE_TUPLE(7),
+
     /**
      * The record represents a "&lt;<i>T<sub>i</sub></i>:  commit
      * transaction&gt;" record.
@@ -0,0 +1,21 @@
+package edu.caltech.nanodb.transactions;
+
+
+/**
+ * This exception is thrown by the {@link LockManager} when a lock request
+ * would cause a deadlock, or when a thread is interrupted while waiting for
+ * a lock.  The transaction that receives this exception has been chosen as
+ * the victim, and must be rolled back.  It is an unchecked exception since
+ * locks are acquired deep within tuple-file operations, which can only
+ * report {@link java.io.IOException}s.
+ */
+public class DeadlockException extends RuntimeException {
+    public DeadlockException(String msg) {
+        super(msg);
+    }
+
+
+    public DeadlockException(String msg, Throwable cause) {
+        super(msg, cause);
+    }
+}
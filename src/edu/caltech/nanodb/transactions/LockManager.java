@@ -0,0 +1,544 @@
+package edu.caltech.nanodb.transactions;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.storage.FilePointer;
+
+
+/**
+ * <p>
+ * The lock manager provides concurrency control between transactions using
+ * strict two-phase locking.  Tables are locked by the name of their tuple
+ * file, and rows are locked by the {@link FilePointer} of the tuple within
+ * that file.  Before a row is locked in {@link LockMode#S} or
+ * {@link LockMode#X} mode, the table is locked in the corresponding
+ * intention mode ({@link LockMode#IS} or {@link LockMode#IX}), so that
+ * table-level and row-level locks interact correctly.
+ * </p>
+ * <p>
+ * Locks are never released individually; all of a transaction's locks are
+ * released together by {@link #releaseAll} when the transaction commits or
+ * rolls back.  When a transaction holds more than a configurable number of
+ * row locks on a single table, its row locks are <em>escalated</em> to a
+ * single table-level lock.
+ * </p>
+ * <p>
+ * A transaction that must wait for a lock is blocked until the lock can be
+ * granted.  Before blocking, the waits-for graph is checked for a cycle
+ * through the requesting transaction; if one is found, the requester is
+ * chosen as the victim and a {@link DeadlockException} is thrown.
+ * </p>
+ *
+ * @design All state is guarded by the lock manager's own monitor, and
+ *         waiting transactions block on it with {@link Object#wait()}.  This
+ *         is simple and adequate for the small number of concurrent clients
+ *         that the shared server supports.
+ */
+public class LockManager {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(LockManager.class);
+
+
+    /**
+     * The default number of row locks that a transaction may hold on a
+     * single table before its locks are escalated to a table lock.
+     */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 5000;
+
+
+    /**
+     * Identifies a lockable resource:  either an entire table, or a single
+     * row within a table.
+     */
+    private static class Resource {
+        /** The name of the table's tuple file. */
+        String fileName;
+
+        /** The row within the table, or {@code null} for the whole table. */
+        FilePointer fptr;
+
+
+        Resource(String fileName, FilePointer fptr) {
+            this.fileName = fileName;
+            this.fptr = fptr;
+        }
+
+
+        boolean isRow() {
+            return fptr != null;
+        }
+
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Resource) {
+                Resource other = (Resource) obj;
+                return fileName.equals(other.fileName) &&
+                    (fptr == null ? other.fptr == null : fptr.equals(other.fptr));
+            }
+            return false;
+        }
+
+
+        @Override
+        public int hashCode() {
+            int hash = fileName.hashCode();
+            if (fptr != null)
+                hash = 31 * hash + fptr.hashCode();
+            return hash;
+        }
+
+
+        @Override
+        public String toString() {
+            return fptr == null ? fileName : fileName + fptr;
+        }
+    }
+
+
+    /** A pending request by a transaction for a lock on a resource. */
+    private static class Request {
+        int txnID;
+
+        Resource resource;
+
+        /**
+         * The mode the transaction will hold once the request is granted.
+         * For upgrades, this combines the old and the requested modes.
+         */
+        LockMode mode;
+
+
+        Request(int txnID, Resource resource, LockMode mode) {
+            this.txnID = txnID;
+            this.resource = resource;
+            this.mode = mode;
+        }
+    }
+
+
+    /** The granted locks and the queue of waiting requests for a resource. */
+    private static class LockEntry {
+        HashMap<Integer, LockMode> granted = new HashMap<>();
+
+        LinkedList<Request> waiting = new LinkedList<>();
+
+
+        boolean isUnused() {
+            return granted.isEmpty() && waiting.isEmpty();
+        }
+    }
+
+
+    /** The lock state of every resource that is locked or waited for. */
+    private HashMap<Resource, LockEntry> lockTable = new HashMap<>();
+
+
+    /** The resources that each transaction currently holds locks on. */
+    private HashMap<Integer, HashSet<Resource>> txnLocks = new HashMap<>();
+
+
+    /**
+     * The number of row locks that each transaction holds on each table,
+     * for deciding when to escalate.
+     */
+    private HashMap<Integer, HashMap<String, Integer>> rowLockCounts =
+        new HashMap<>();
+
+
+    /**
+     * The requests that each blocked transaction is waiting on.  Together
+     * with {@link #lockTable}, this defines the waits-for graph.  A
+     * transaction may wait on several requests at once, since the workers
+     * of a parallel plan all run in their session's transaction.
+     */
+    private HashMap<Integer, ArrayList<Request>> waitingRequests =
+        new HashMap<>();
+
+
+    /**
+     * The number of row locks a transaction may hold on one table before
+     * they are escalated to a table lock.
+     */
+    private int escalationThreshold;
+
+
+    public LockManager(int escalationThreshold) {
+        if (escalationThreshold <= 0) {
+            throw new IllegalArgumentException(
+                "escalationThreshold must be positive; got " +
+                escalationThreshold);
+        }
+
+        this.escalationThreshold = escalationThreshold;
+    }
+
+
+    public LockManager() {
+        this(DEFAULT_ESCALATION_THRESHOLD);
+    }
+
+
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+
+    /**
+     * Acquires a lock on an entire table for the specified transaction,
+     * blocking until the lock can be granted.  If the transaction already
+     * holds a weaker lock on the table, the lock is upgraded.
+     *
+     * @param txnID the transaction requesting the lock
+     * @param fileName the name of the table's tuple file
+     * @param mode the lock mode to acquire
+     *
+     * @throws DeadlockException if waiting for the lock would deadlock, in
+     *         which case the transaction must be rolled back
+     */
+    public synchronized void lockTable(int txnID, String fileName,
+                                       LockMode mode) {
+        acquire(txnID, new Resource(fileName, null), mode);
+    }
+
+
+    /**
+     * Acquires a shared or exclusive lock on a single row for the specified
+     * transaction, blocking until the lock can be granted.  The table is
+     * first locked in the corresponding intention mode.  If the transaction
+     * already holds a table lock that covers the row, no row lock is
+     * acquired.
+     *
+     * @param txnID the transaction requesting the lock
+     * @param fileName the name of the table's tuple file
+     * @param fptr the location of the row within the tuple file
+     * @param mode the lock mode to acquire; must be {@link LockMode#S} or
+     *        {@link LockMode#X}
+     *
+     * @throws DeadlockException if waiting for the lock would deadlock, in
+     *         which case the transaction must be rolled back
+     */
+    public synchronized void lockRow(int txnID, String fileName,
+                                     FilePointer fptr, LockMode mode) {
+        if (mode != LockMode.S && mode != LockMode.X) {
+            throw new IllegalArgumentException(
+                "Rows can only be locked in S or X mode; got " + mode);
+        }
+
+        Resource table = new Resource(fileName, null);
+        LockMode tableMode = getHeldMode(txnID, table);
+        if (tableMode != null && tableMode.covers(mode))
+            return;
+
+        acquire(txnID, table, mode == LockMode.S ? LockMode.IS : LockMode.IX);
+        acquire(txnID, new Resource(fileName, fptr), mode);
+
+        HashMap<String, Integer> counts = rowLockCounts.get(txnID);
+        if (counts != null) {
+            Integer count = counts.get(fileName);
+            if (count != null && count > escalationThreshold)
+                escalate(txnID, fileName);
+        }
+    }
+
+
+    /**
+     * Returns the mode that the transaction holds on the specified table, or
+     * {@code null} if it holds no lock on the table.
+     */
+    public synchronized LockMode getTableLockMode(int txnID, String fileName) {
+        return getHeldMode(txnID, new Resource(fileName, null));
+    }
+
+
+    /**
+     * Returns the mode that the transaction holds on the specified row, or
+     * {@code null} if it holds no lock on the row itself.  Note that the row
+     * may still be covered by a lock on the entire table.
+     */
+    public synchronized LockMode getRowLockMode(int txnID, String fileName,
+                                                FilePointer fptr) {
+        return getHeldMode(txnID, new Resource(fileName, fptr));
+    }
+
+
+    /**
+     * Releases all locks held by the specified transaction, waking up any
+     * transactions that were waiting for them.  Under strict two-phase
+     * locking this is only done when the transaction commits or rolls back.
+     *
+     * @param txnID the transaction whose locks should be released
+     */
+    public synchronized void releaseAll(int txnID) {
+        HashSet<Resource> resources = txnLocks.remove(txnID);
+        rowLockCounts.remove(txnID);
+        if (resources == null)
+            return;
+
+        logger.debug(String.format("Releasing %d locks held by transaction %d",
+            resources.size(), txnID));
+
+        for (Resource resource : resources)
+            releaseLock(txnID, resource);
+
+        notifyAll();
+    }
+
+
+    private LockMode getHeldMode(int txnID, Resource resource) {
+        LockEntry entry = lockTable.get(resource);
+        if (entry == null)
+            return null;
+
+        return entry.granted.get(txnID);
+    }
+
+
+    private void acquire(int txnID, Resource resource, LockMode mode) {
+        LockEntry entry = lockTable.get(resource);
+        if (entry == null) {
+            entry = new LockEntry();
+            lockTable.put(resource, entry);
+        }
+
+        LockMode held = entry.granted.get(txnID);
+        if (held != null && held.covers(mode))
+            return;
+
+        Request request = new Request(txnID, resource,
+            held == null ? mode : held.combine(mode));
+
+        // Upgrades only need to be compatible with the other holders; new
+        // requests must also be compatible with everything already queued.
+        if (held != null ? isCompatible(entry, request)
+                         : canGrant(entry, request)) {
+            grant(entry, request);
+            return;
+        }
+
+        // Upgrades go to the front of the queue, since the transaction
+        // already holds a lock on the resource and others may be waiting
+        // on it.
+        if (held != null)
+            entry.waiting.addFirst(request);
+        else
+            entry.waiting.addLast(request);
+
+        ArrayList<Request> txnWaiting = waitingRequests.get(txnID);
+        if (txnWaiting == null) {
+            txnWaiting = new ArrayList<>();
+            waitingRequests.put(txnID, txnWaiting);
+        }
+        txnWaiting.add(request);
+
+        boolean acquired = false;
+        try {
+            while (!canGrant(entry, request)) {
+                if (isDeadlocked(txnID)) {
+                    logger.info(String.format("Transaction %d would deadlock " +
+                        "waiting for %s lock on %s; aborting it", txnID,
+                        request.mode, resource));
+
+                    throw new DeadlockException("Transaction " + txnID +
+                        " was chosen as a deadlock victim while waiting " +
+                        "for a lock on " + resource);
+                }
+
+                logger.debug(String.format("Transaction %d waiting for %s " +
+                    "lock on %s", txnID, request.mode, resource));
+                wait();
+            }
+
+            grant(entry, request);
+            acquired = true;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DeadlockException("Transaction " + txnID +
+                " was interrupted while waiting for a lock on " + resource, e);
+        }
+        finally {
+            entry.waiting.remove(request);
+            txnWaiting.remove(request);
+            if (txnWaiting.isEmpty())
+                waitingRequests.remove(txnID);
+            if (!acquired && entry.isUnused())
+                lockTable.remove(resource);
+
+            // Removing the request may allow requests behind it to proceed.
+            notifyAll();
+        }
+    }
+
+
+    /**
+     * Returns true if the request is compatible with every lock granted to
+     * other transactions on the resource.
+     */
+    private boolean isCompatible(LockEntry entry, Request request) {
+        for (Map.Entry<Integer, LockMode> g : entry.granted.entrySet()) {
+            if (g.getKey() != request.txnID &&
+                !request.mode.isCompatibleWith(g.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Returns true if a queued request can be granted:  it must be compatible
+     * with the granted locks, and with every request ahead of it in the
+     * queue, so that waiting writers are not starved by a stream of readers.
+     */
+    private boolean canGrant(LockEntry entry, Request request) {
+        if (!isCompatible(entry, request))
+            return false;
+
+        for (Request ahead : entry.waiting) {
+            if (ahead == request)
+                break;
+
+            if (!request.mode.isCompatibleWith(ahead.mode))
+                return false;
+        }
+        return true;
+    }
+
+
+    private void grant(LockEntry entry, Request request) {
+        LockMode old = entry.granted.put(request.txnID, request.mode);
+        if (old != null)
+            return;
+
+        HashSet<Resource> resources = txnLocks.get(request.txnID);
+        if (resources == null) {
+            resources = new HashSet<>();
+            txnLocks.put(request.txnID, resources);
+        }
+        resources.add(request.resource);
+
+        if (request.resource.isRow()) {
+            HashMap<String, Integer> counts = rowLockCounts.get(request.txnID);
+            if (counts == null) {
+                counts = new HashMap<>();
+                rowLockCounts.put(request.txnID, counts);
+            }
+            Integer count = counts.get(request.resource.fileName);
+            counts.put(request.resource.fileName, count == null ? 1 : count + 1);
+        }
+    }
+
+
+    private void releaseLock(int txnID, Resource resource) {
+        LockEntry entry = lockTable.get(resource);
+        if (entry == null)
+            return;
+
+        entry.granted.remove(txnID);
+        if (entry.isUnused())
+            lockTable.remove(resource);
+    }
+
+
+    /**
+     * Replaces all of a transaction's row locks on a table with a single
+     * table lock.  If the transaction had written any rows, the table is
+     * locked in {@link LockMode#X} mode; otherwise it is locked in
+     * {@link LockMode#S} mode.
+     */
+    private void escalate(int txnID, String fileName) {
+        Resource table = new Resource(fileName, null);
+        LockMode intention = getHeldMode(txnID, table);
+        LockMode target = (intention == LockMode.IS) ? LockMode.S : LockMode.X;
+
+        logger.debug(String.format("Escalating row locks of transaction %d " +
+            "on %s to a %s table lock", txnID, fileName, target));
+
+        acquire(txnID, table, target);
+
+        ArrayList<Resource> rows = new ArrayList<>();
+        Iterator<Resource> iter = txnLocks.get(txnID).iterator();
+        while (iter.hasNext()) {
+            Resource resource = iter.next();
+            if (resource.isRow() && resource.fileName.equals(fileName)) {
+                rows.add(resource);
+                iter.remove();
+            }
+        }
+
+        for (Resource row : rows)
+            releaseLock(txnID, row);
+
+        rowLockCounts.get(txnID).remove(fileName);
+        notifyAll();
+    }
+
+
+    /**
+     * Returns true if the waits-for graph contains a cycle through the
+     * specified transaction.  A waiting transaction waits for every other
+     * transaction that holds an incompatible lock on the resource, or that
+     * is ahead of it in the resource's queue with an incompatible request.
+     * A transaction with several blocked requests waits for the union of
+     * what each request waits for, since it can't finish (and release its
+     * locks) until all of them are granted.
+     */
+    private boolean isDeadlocked(int txnID) {
+        HashSet<Integer> visited = new HashSet<>();
+        LinkedList<Integer> toVisit = new LinkedList<>();
+        toVisit.add(txnID);
+
+        while (!toVisit.isEmpty()) {
+            int waiter = toVisit.removeFirst();
+            ArrayList<Request> requests = waitingRequests.get(waiter);
+            if (requests == null)
+                continue;  // This transaction isn't blocked.
+
+            for (Request request : requests) {
+                for (int holder : getWaitsFor(request)) {
+                    if (holder == txnID)
+                        return true;
+
+                    if (visited.add(holder))
+                        toVisit.add(holder);
+                }
+            }
+        }
+
+        return false;
+    }
+
+
+    private HashSet<Integer> getWaitsFor(Request request) {
+        HashSet<Integer> result = new HashSet<>();
+        LockEntry entry = lockTable.get(request.resource);
+
+        for (Map.Entry<Integer, LockMode> g : entry.granted.entrySet()) {
+            if (g.getKey() != request.txnID &&
+                !request.mode.isCompatibleWith(g.getValue())) {
+                result.add(g.getKey());
+            }
+        }
+
+        for (Request ahead : entry.waiting) {
+            if (ahead == request)
+                break;
+
+            if (ahead.txnID != request.txnID &&
+                !request.mode.isCompatibleWith(ahead.mode)) {
+                result.add(ahead.txnID);
+            }
+        }
+
+        return result;
+    }
+}
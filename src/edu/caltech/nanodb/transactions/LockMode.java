@@ -0,0 +1,98 @@
+package edu.caltech.nanodb.transactions;
+
+
+/**
+ * This enumeration specifies the modes that locks can be acquired in by the
+ * {@link LockManager}.  Intention modes are only acquired on tables; rows are
+ * only locked in {@link #S} or {@link #X} mode.
+ */
+public enum LockMode {
+    /** Intention-shared:  the transaction will read some rows of a table. */
+    IS,
+
+    /** Intention-exclusive:  the transaction will write some rows of a table. */
+    IX,
+
+    /** Shared:  the transaction reads the entire resource. */
+    S,
+
+    /**
+     * Shared and intention-exclusive:  the transaction reads the entire
+     * table, and writes some rows of it.
+     */
+    SIX,
+
+    /** Exclusive:  the transaction reads and writes the entire resource. */
+    X;
+
+
+    /**
+     * The lock-compatibility matrix.  The entry {@code [a][b]} is true if a
+     * lock in mode <i>a</i> may be granted while another transaction holds a
+     * lock in mode <i>b</i> on the same resource.
+     */
+    private static final boolean[][] COMPATIBLE = {
+        //          IS     IX     S      SIX    X
+        /* IS  */ { true,  true,  true,  true,  false },
+        /* IX  */ { true,  true,  false, false, false },
+        /* S   */ { true,  false, true,  false, false },
+        /* SIX */ { true,  false, false, false, false },
+        /* X   */ { false, false, false, false, false }
+    };
+
+
+    /**
+     * Returns true if a lock in this mode can be held by one transaction
+     * while another transaction holds a lock in the specified mode.
+     *
+     * @param other the mode of the lock held by the other transaction
+     *
+     * @return true if the two modes are compatible
+     */
+    public boolean isCompatibleWith(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+
+    /**
+     * Returns true if holding a lock in this mode grants at least all of the
+     * access that a lock in the specified mode would grant.
+     *
+     * @param other the mode to compare against
+     *
+     * @return true if this mode is at least as strong as {@code other}
+     */
+    public boolean covers(LockMode other) {
+        return combine(other) == this;
+    }
+
+
+    /**
+     * Returns the weakest mode that covers both this mode and the specified
+     * mode.  This is the mode a lock must be upgraded to when a transaction
+     * holding this mode requests the other one.
+     *
+     * @param other the mode being requested
+     *
+     * @return the least upper bound of the two modes
+     */
+    public LockMode combine(LockMode other) {
+        if (this == other)
+            return this;
+
+        if (this == X || other == X)
+            return X;
+
+        if (this == SIX || other == SIX)
+            return SIX;
+
+        if ((this == S && other == IX) || (this == IX && other == S))
+            return SIX;
+
+        if (this == S || other == S)
+            return S;
+
+        // The only remaining combination is IS with IX.
+        return IX;
+    }
+}
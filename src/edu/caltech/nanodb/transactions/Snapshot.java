@@ -0,0 +1,179 @@
+package edu.caltech.nanodb.transactions;
+
+
+import java.util.Set;
+
+
+/**
+ * <p>
+ * A snapshot records which transactions had committed when a transaction
+ * started, so that the transaction can read a consistent version of the
+ * database without taking any locks.  Tuples in heap files record the ID of
+ * the transaction that created them and the ID of the transaction that
+ * deleted them; a tuple version is visible to a snapshot if its creation is
+ * visible and its deletion is not.
+ * </p>
+ * <p>
+ * Changes made by a transaction are visible to the transaction itself, but
+ * only to commands after the one that made them.  This keeps a command such
+ * as <tt>UPDATE</tt> from seeing (and updating again) the new tuple versions
+ * that it creates.
+ * </p>
+ * <p>
+ * Since rolled-back transactions have their changes physically undone, any
+ * transaction ID that appears in a tuple, and that isn't still in progress,
+ * must belong to a committed transaction.
+ * </p>
+ */
+public class Snapshot {
+    /**
+     * The transaction ID stored in tuples that were not created or deleted
+     * by any transaction, e.g. because transaction processing was disabled
+     * when the change was made.
+     */
+    public static final int NO_TXN_ID = 0;
+
+
+    /**
+     * The largest command ID a transaction may reach, since command IDs are
+     * stored in tuples as unsigned two-byte values.
+     */
+    public static final int MAX_COMMAND_ID = 65535;
+
+
+    /** The transaction that this snapshot was taken for. */
+    private int txnID;
+
+
+    /** The current command within the transaction. */
+    private int commandID;
+
+
+    /**
+     * All transactions with an ID below this value had completed when the
+     * snapshot was taken.
+     */
+    private int xmin;
+
+
+    /**
+     * All transactions with an ID at or above this value had not started
+     * when the snapshot was taken.
+     */
+    private int xmax;
+
+
+    /** The transactions that were in progress when the snapshot was taken. */
+    private Set<Integer> activeTxnIDs;
+
+
+    /**
+     * Creates a new snapshot.
+     *
+     * @param txnID the transaction the snapshot is for
+     * @param activeTxnIDs the other transactions in progress at the time the
+     *        snapshot is taken
+     * @param xmax the first transaction ID that had not yet been assigned
+     */
+    public Snapshot(int txnID, Set<Integer> activeTxnIDs, int xmax) {
+        this.txnID = txnID;
+        this.activeTxnIDs = activeTxnIDs;
+        this.xmax = xmax;
+
+        xmin = txnID;
+        for (int id : activeTxnIDs)
+            xmin = Math.min(xmin, id);
+    }
+
+
+    public int getTxnID() {
+        return txnID;
+    }
+
+
+    public int getCommandID() {
+        return commandID;
+    }
+
+
+    /**
+     * Advances to the next command of the transaction.  Changes made by
+     * earlier commands become visible to the transaction.
+     */
+    public void advanceCommandID() {
+        if (commandID == MAX_COMMAND_ID) {
+            throw new IllegalStateException("Transaction " + txnID +
+                " cannot execute more than " + MAX_COMMAND_ID + " commands");
+        }
+        commandID++;
+    }
+
+
+    /**
+     * Returns the lowest transaction ID whose changes this snapshot might
+     * not see.  Tuple versions deleted by transactions below this ID are
+     * invisible to the snapshot.
+     */
+    public int getXmin() {
+        return xmin;
+    }
+
+
+    /**
+     * Returns true if the changes of another transaction are visible to
+     * this snapshot; that is, the other transaction committed before the
+     * snapshot was taken.
+     *
+     * @param otherTxnID the ID of the other transaction
+     *
+     * @return true if the other transaction's changes are visible
+     */
+    public boolean isCommitted(int otherTxnID) {
+        if (otherTxnID == NO_TXN_ID || otherTxnID < xmin)
+            return true;
+
+        if (otherTxnID >= xmax)
+            return false;
+
+        return !activeTxnIDs.contains(otherTxnID);
+    }
+
+
+    /**
+     * Returns true if a tuple version with the specified header values is
+     * visible to this snapshot.
+     *
+     * @param creatorTxnID the transaction that created the tuple version
+     * @param creatorCommandID the command within the creating transaction
+     *        that created the tuple version
+     * @param deleterTxnID the transaction that deleted the tuple version, or
+     *        {@link #NO_TXN_ID} if it hasn't been deleted
+     *
+     * @return true if the tuple version is visible
+     */
+    public boolean isVisible(int creatorTxnID, int creatorCommandID,
+                             int deleterTxnID) {
+        if (creatorTxnID == txnID) {
+            if (creatorCommandID >= commandID)
+                return false;
+        }
+        else if (!isCommitted(creatorTxnID)) {
+            return false;
+        }
+
+        if (deleterTxnID == NO_TXN_ID)
+            return true;
+
+        if (deleterTxnID == txnID)
+            return false;
+
+        return !isCommitted(deleterTxnID);
+    }
+
+
+    @Override
+    public String toString() {
+        return String.format("Snapshot[txnID=%d, commandID=%d, xmin=%d, " +
+            "xmax=%d, active=%s]", txnID, commandID, xmin, xmax, activeTxnIDs);
+    }
+}
@@ -3,6 +3,8 @@ package edu.caltech.nanodb.transactions;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -22,6 +24,7 @@ import edu.caltech.nanodb.storage.BufferManagerObserver;
 import edu.caltech.nanodb.storage.DBFile;
 import edu.caltech.nanodb.storage.DBFileType;
 import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.FilePointer;
 import edu.caltech.nanodb.storage.StorageManager;
 
 import edu.caltech.nanodb.storage.writeahead.LogSequenceNumber;
@@ -29,6 +32,8 @@ import edu.caltech.nanodb.storage.writeahead.RecoveryInfo;
 import edu.caltech.nanodb.storage.writeahead.WALManager;
 import edu.caltech.nanodb.storage.writeahead.WALRecordType;
 
+import edu.caltech.nanodb.util.ArrayUtil;
+
 
 /**
  */
@@ -44,6 +49,23 @@ public class TransactionManager implements BufferManagerObserver {
     public static final String PROP_TXNS = "nanodb.txns";
 
 
+    /**
+     * The system property that can be used to turn on or off multi-version
+     * concurrency control.  When it is on, transactions read from a snapshot
+     * without taking locks; when it is off, readers take shared locks.
+     */
+    public static final String PROP_MVCC = "nanodb.txns.mvcc";
+
+
+    /**
+     * The system property that can be used to specify how many row locks a
+     * transaction may hold on a single table before they are escalated to a
+     * table lock.
+     */
+    public static final String PROP_LOCK_ESCALATION =
+        "nanodb.locks.escalation";
+
+
     /**
      * This is the name of the file that the Transaction Manager uses to keep
      * track of overall transaction state.
@@ -65,6 +87,18 @@ public class TransactionManager implements BufferManagerObserver {
     }
 
 
+    /**
+     * Returns true if transactions read tuple versions from snapshots, or
+     * false if readers use shared locks instead.  Multi-version concurrency
+     * control defaults to "on" when transactions are enabled.
+     *
+     * @return true if multi-version concurrency control is enabled
+     */
+    public static boolean isMVCCEnabled() {
+        return "on".equalsIgnoreCase(System.getProperty(PROP_MVCC, "on"));
+    }
+
+
     private static class TransactionPropertyHandler implements PropertyHandler {
 
         @Override
@@ -74,6 +108,9 @@ public class TransactionManager implements BufferManagerObserver {
             if (PROP_TXNS.equals(propertyName)) {
                 return isEnabled();
             }
+            else if (PROP_MVCC.equals(propertyName)) {
+                return isMVCCEnabled();
+            }
             else {
                 throw new UnrecognizedPropertyException("No property named " +
                         propertyName);
@@ -85,7 +122,8 @@ public class TransactionManager implements BufferManagerObserver {
                 throws UnrecognizedPropertyException, ReadOnlyPropertyException,
                 TypeCastException {
 
-            if (PROP_TXNS.equals(propertyName)) {
+            if (PROP_TXNS.equals(propertyName) ||
+                PROP_MVCC.equals(propertyName)) {
                 throw new ReadOnlyPropertyException(propertyName +
                         " is read-only");
             }
@@ -106,6 +144,20 @@ public class TransactionManager implements BufferManagerObserver {
     private WALManager walManager;
 
 
+    /**
+     * The lock manager that provides isolation between concurrently
+     * executing transactions.
+     */
+    private LockManager lockManager;
+
+
+    /**
+     * The snapshots of all transactions currently in progress, keyed by
+     * transaction ID.  This is declared final since we synchronize on it.
+     */
+    private final HashMap<Integer, Snapshot> activeTxns = new HashMap<>();
+
+
     /**
      * This variable keeps track of the next transaction ID that should be used
      * for a transaction.  It is initialized when the transaction manager is
@@ -135,9 +187,12 @@ public class TransactionManager implements BufferManagerObserver {
 
         walManager = new WALManager(storageManager, bufferManager);
 
+        lockManager = new LockManager(Integer.getInteger(PROP_LOCK_ESCALATION,
+            LockManager.DEFAULT_ESCALATION_THRESHOLD));
+
         // Register properties that the Transaction Manager exposes.
         server.getPropertyRegistry().registerProperties(
-            new TransactionPropertyHandler(), PROP_TXNS);
+            new TransactionPropertyHandler(), PROP_TXNS, PROP_MVCC);
 
     }
 
@@ -259,6 +314,11 @@ public class TransactionManager implements BufferManagerObserver {
     }
 
 
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
+
     /**
      * Returns the "next transaction ID" value without incrementing it.
      * This operation is thread-safe.
@@ -288,9 +348,21 @@ public class TransactionManager implements BufferManagerObserver {
         if (txnState.isTxnInProgress())
             throw new IllegalStateException("A transaction is already in progress!");
 
-        int txnID = getAndIncrementNextTxnID();
+        // Assign the transaction ID and take the snapshot together, so that
+        // every transaction with a lower ID is either in the snapshot's
+        // active set or already complete.
+        int txnID;
+        Snapshot snapshot;
+        synchronized (activeTxns) {
+            txnID = getAndIncrementNextTxnID();
+            snapshot = new Snapshot(txnID,
+                new HashSet<>(activeTxns.keySet()), txnID + 1);
+            activeTxns.put(txnID, snapshot);
+        }
+
         txnState.setTransactionID(txnID);
         txnState.setUserStartedTxn(userStarted);
+        txnState.setSnapshot(snapshot);
 
         logger.debug("Starting transaction with ID " + txnID +
             (userStarted ? " (user-started)" : ""));
@@ -300,26 +372,242 @@ public class TransactionManager implements BufferManagerObserver {
     }
 
 
+    /**
+     * Advances the current transaction to its next command, so that the
+     * command sees the changes made by the transaction's earlier commands.
+     * This is called before each command executes.
+     */
+    public void startCommand() {
+        TransactionState txnState = SessionState.get().getTxnState();
+        if (txnState.isTxnInProgress())
+            txnState.getSnapshot().advanceCommandID();
+    }
+
+
+    /**
+     * Returns the snapshot that the current transaction should read tuple
+     * versions with, or {@code null} if no transaction is in progress or
+     * multi-version concurrency control is disabled.
+     *
+     * @return the current transaction's snapshot, or {@code null}
+     */
+    public Snapshot getSnapshot() {
+        if (!isMVCCEnabled())
+            return null;
+
+        return SessionState.get().getTxnState().getSnapshot();
+    }
+
+
+    /**
+     * Returns the oldest transaction ID whose deletions might still be
+     * invisible to some transaction in progress.  Tuple versions deleted by
+     * a transaction with a lower ID can no longer be seen by anyone, and may
+     * be removed by a vacuum.
+     *
+     * @return the lowest transaction ID that is not yet safe to vacuum
+     */
+    public int getVacuumHorizon() {
+        synchronized (activeTxns) {
+            int horizon = getNextTxnID();
+            for (Snapshot snapshot : activeTxns.values())
+                horizon = Math.min(horizon, snapshot.getXmin());
+
+            return horizon;
+        }
+    }
+
+
+    /**
+     * Returns true if the page is dirty but all of its changes have already
+     * been recorded in the write-ahead log, so there is nothing more to log.
+     * Pages that have never been logged always need a record, so that they
+     * get a page-LSN for enforcing the write-ahead logging rule.
+     */
+    private static boolean hasNoUnloggedChanges(DBPage dbPage) {
+        if (dbPage.getPageLSN() == null)
+            return false;
+
+        byte[] oldData = dbPage.getOldPageData();
+        return ArrayUtil.sizeOfIdenticalRange(oldData, dbPage.getPageData(), 0)
+            == oldData.length;
+    }
+
+
+    /**
+     * Writes a "start transaction" record for the current transaction, if
+     * one hasn't already been written.
+     */
+    private void logTxnStartIfNeeded() throws IOException {
+        TransactionState txnState = SessionState.get().getTxnState();
+        if (!txnState.hasLoggedTxnStart()) {
+            walManager.writeTxnRecord(WALRecordType.START_TXN);
+            txnState.setLoggedTxnStart(true);
+        }
+    }
+
+
     public void recordPageUpdate(DBPage dbPage) throws IOException {
         if (!dbPage.isDirty()) {
             logger.debug("Page reports it is not dirty; not logging update.");
             return;
         }
 
+        if (hasNoUnloggedChanges(dbPage)) {
+            logger.debug("Page has no changes since it was last logged; " +
+                "not logging update.");
+            return;
+        }
+
         logger.debug("Recording page-update for page " + dbPage.getPageNo() +
             " of file " + dbPage.getDBFile());
 
-        TransactionState txnState = SessionState.get().getTxnState();
-        if (!txnState.hasLoggedTxnStart()) {
-            walManager.writeTxnRecord(WALRecordType.START_TXN);
-            txnState.setLoggedTxnStart(true);
-        }
+        logTxnStartIfNeeded();
 
         walManager.writeUpdatePageRecord(dbPage);
         dbPage.syncOldPageData();
     }
 
 
+    /**
+     * Records a change to a single tuple in a heap-file data page, using one
+     * of the compact tuple-level WAL records.  The write-ahead log manager
+     * falls back to a page-update record if the page has other changes.
+     *
+     * @param type one of {@link WALRecordType#INSERT_TUPLE},
+     *        {@link WALRecordType#DELETE_TUPLE} or
+     *        {@link WALRecordType#UPDATE_TUPLE}
+     *
+     * @param dbPage the data page containing the tuple
+     * @param slot the slot of the tuple
+     * @param tupleOffset the offset of the tuple's data in the page
+     * @param tupleLength the length of the tuple's data
+     *
+     * @throws IOException if the write-ahead log cannot be updated
+     *
+     * @see WALManager#writeTupleRecord
+     */
+    public void recordTupleChange(WALRecordType type, DBPage dbPage, int slot,
+        int tupleOffset, int tupleLength) throws IOException {
+
+        if (!dbPage.isDirty() || hasNoUnloggedChanges(dbPage)) {
+            logger.debug("Page has no unlogged changes; not logging " + type);
+            return;
+        }
+
+        logger.debug("Recording " + type + " for slot " + slot + " of page " +
+            dbPage.getPageNo() + " of file " + dbPage.getDBFile());
+
+        logTxnStartIfNeeded();
+
+        walManager.writeTupleRecord(type, dbPage, slot, tupleOffset,
+            tupleLength);
+    }
+
+
+    /**
+     * Locks an entire table on behalf of the current transaction.  If no
+     * transaction is in progress, no lock is acquired.
+     *
+     * @param fileName the name of the table's tuple file
+     * @param mode the lock mode to acquire
+     *
+     * @throws DeadlockException if the lock could not be acquired without
+     *         deadlocking.  The current transaction is rolled back by
+     *         {@link #rollbackAbortedTransaction} once the command has
+     *         failed.
+     */
+    public void lockTable(String fileName, LockMode mode) {
+        TransactionState txnState = SessionState.get().getTxnState();
+        if (!txnState.isTxnInProgress())
+            return;
+
+        lockManager.lockTable(txnState.getTransactionID(), fileName, mode);
+    }
+
+
+    /**
+     * Locks a single row on behalf of the current transaction.  If no
+     * transaction is in progress, no lock is acquired.
+     *
+     * @param fileName the name of the table's tuple file
+     * @param fptr the location of the row within the tuple file
+     * @param mode the lock mode to acquire; must be {@link LockMode#S} or
+     *        {@link LockMode#X}
+     *
+     * @throws DeadlockException if the lock could not be acquired without
+     *         deadlocking.  The current transaction is rolled back by
+     *         {@link #rollbackAbortedTransaction} once the command has
+     *         failed.
+     */
+    public void lockRow(String fileName, FilePointer fptr, LockMode mode) {
+        TransactionState txnState = SessionState.get().getTxnState();
+        if (!txnState.isTxnInProgress())
+            return;
+
+        lockManager.lockRow(txnState.getTransactionID(), fileName, fptr, mode);
+    }
+
+
+    /**
+     * Aborts the current transaction because it tried to modify a tuple
+     * version that a concurrent transaction has already updated or deleted.
+     * The transaction is rolled back by {@link #rollbackAbortedTransaction}
+     * once the command has failed.
+     *
+     * @param description a description of the tuple being modified
+     *
+     * @throws WriteConflictException always
+     */
+    public void abortOnWriteConflict(String description) {
+        int txnID = SessionState.get().getTxnState().getTransactionID();
+        throw new WriteConflictException("Transaction " + txnID +
+            " cannot modify " + description + ", since it was changed by a " +
+            "concurrent transaction");
+    }
+
+
+    /**
+     * Rolls back the current transaction if a command failed because the
+     * transaction was chosen as a deadlock victim or hit a write conflict.
+     * The server calls this
+     * after the failed command's plan has been cleaned up and its pages
+     * unpinned, since rolling back while the command still held pins and
+     * latches on the pages being restored could deadlock or leave them
+     * inconsistent.
+     *
+     * @param failure the exception that the command failed with
+     */
+    public void rollbackAbortedTransaction(Throwable failure) {
+        if (!SessionState.get().getTxnState().isTxnInProgress())
+            return;
+
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof DeadlockException ||
+                t instanceof WriteConflictException) {
+                rollbackVictim((RuntimeException) t);
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Rolls back the current transaction after it was chosen as a deadlock
+     * victim or hit a write conflict, so that its locks are released and the
+     * other transactions can proceed.
+     */
+    private void rollbackVictim(RuntimeException e) {
+        logger.info("Rolling back aborted transaction:  " + e.getMessage());
+        try {
+            rollbackTransaction();
+        }
+        catch (TransactionException te) {
+            logger.error("Couldn't roll back deadlock victim!", te);
+        }
+    }
+
+
     public void commitTransaction() throws TransactionException {
         SessionState state = SessionState.get();
         TransactionState txnState = state.getTxnState();
@@ -352,8 +640,11 @@ public class TransactionManager implements BufferManagerObserver {
                 "recording transaction-commit to WAL.");
         }
 
-        // Now that the transaction is successfully committed, clear the current
-        // transaction state.
+        // Now that the transaction is successfully committed, release its
+        // locks and clear the current transaction state.  The transaction is
+        // removed from the active set first, so that transactions waiting on
+        // its locks see it as complete.
+        endTransaction(txnID);
         logger.debug("Transaction completed, resetting transaction state.");
         txnState.clear();
     }
@@ -389,13 +680,22 @@ public class TransactionManager implements BufferManagerObserver {
                 "recording transaction-rollback to WAL.");
         }
 
-        // Now that the transaction is successfully rolled back, clear the
-        // current transaction state.
+        // Now that the transaction is successfully rolled back, release its
+        // locks and clear the current transaction state.
+        endTransaction(txnID);
         logger.debug("Transaction completed, resetting transaction state.");
         txnState.clear();
     }
 
 
+    private void endTransaction(int txnID) {
+        synchronized (activeTxns) {
+            activeTxns.remove(txnID);
+        }
+        lockManager.releaseAll(txnID);
+    }
+
+
     /**
      * This method is registered on the {@link BufferManager}, to ensure that
      * the write-ahead logging rule is enforced.  Specifically, all dirty
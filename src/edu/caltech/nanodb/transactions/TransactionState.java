@@ -42,6 +42,13 @@ public class TransactionState {
     private LogSequenceNumber lastLSN = null;
 
 
+    /**
+     * The snapshot that determines which tuple versions the transaction can
+     * see.
+     */
+    private Snapshot snapshot = null;
+
+
     public int getTransactionID() {
         return transactionID;
     }
@@ -92,9 +99,20 @@ public class TransactionState {
     }
 
 
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+
+    public void setSnapshot(Snapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+
     public void clear() {
         transactionID = NO_TRANSACTION;
         lastLSN = null;
+        snapshot = null;
         userStartedTxn = false;
         performedWrites = false;
         loggedTxnStart = false;
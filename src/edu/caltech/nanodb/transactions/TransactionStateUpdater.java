@@ -60,6 +60,10 @@ public class TransactionStateUpdater implements CommandEventListener {
                 throw new EventDispatchException(e);
             }
         }
+
+        // Let the command see the changes made by earlier commands in the
+        // same transaction.
+        transactionManager.startCommand();
     }
 
 
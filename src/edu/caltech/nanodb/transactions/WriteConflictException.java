@@ -0,0 +1,16 @@
+package edu.caltech.nanodb.transactions;
+
+
+/**
+ * This exception is thrown when a transaction tries to update or delete a
+ * tuple version that a concurrent transaction has already updated or
+ * deleted, and that the first transaction's snapshot therefore cannot see
+ * the latest version of.  The transaction that receives this exception must
+ * be rolled back.  Like {@link DeadlockException}, it is unchecked since it
+ * is raised from within tuple-file operations.
+ */
+public class WriteConflictException extends RuntimeException {
+    public WriteConflictException(String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,241 @@
+package edu.caltech.test.nanodb.expressions;
+
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.ArithmeticOperator;
+import edu.caltech.nanodb.expressions.BooleanOperator;
+import edu.caltech.nanodb.expressions.ColumnName;
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.CompareOperator;
+import edu.caltech.nanodb.expressions.CompiledExpression;
+import edu.caltech.nanodb.expressions.Environment;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.ExpressionCompiler;
+import edu.caltech.nanodb.expressions.ExpressionException;
+import edu.caltech.nanodb.expressions.IsNullOperator;
+import edu.caltech.nanodb.expressions.LiteralValue;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.relations.ColumnInfo;
+import edu.caltech.nanodb.relations.ColumnType;
+import edu.caltech.nanodb.relations.SQLDataType;
+import edu.caltech.nanodb.relations.Schema;
+
+
+/**
+ * This test class exercises the {@link ExpressionCompiler} class, by
+ * checking that compiled expressions produce the same results as evaluating
+ * the expressions against an environment.
+ */
+@Test
+public class TestExpressionCompiler {
+
+    private static Schema makeSchema() {
+        Schema schema = new Schema();
+        schema.addColumnInfo(new ColumnInfo("A", "T",
+            new ColumnType(SQLDataType.INTEGER)));
+        schema.addColumnInfo(new ColumnInfo("B", "T",
+            new ColumnType(SQLDataType.DOUBLE)));
+        schema.addColumnInfo(new ColumnInfo("C", "T",
+            new ColumnType(SQLDataType.VARCHAR)));
+        return schema;
+    }
+
+
+    private static ColumnValue column(String name) {
+        return new ColumnValue(new ColumnName(name));
+    }
+
+
+    private static final TupleLiteral[] TUPLES = {
+        new TupleLiteral(1, 2.5, "one"),
+        new TupleLiteral(5, -1.0, "five"),
+        new TupleLiteral(null, 0.0, null),
+        new TupleLiteral(3, null, "three")
+    };
+
+
+    /** Evaluates an expression against an environment holding a tuple. */
+    private static Object interpret(Expression expr, Schema schema,
+                                    TupleLiteral tuple) {
+        Environment env = new Environment();
+        env.addTuple(schema, tuple);
+        return expr.evaluate(env);
+    }
+
+
+    public void testSameResultsAsEvaluation() {
+        Schema schema = makeSchema();
+
+        BooleanOperator and = new BooleanOperator(BooleanOperator.Type.AND_EXPR);
+        and.addTerm(new CompareOperator(CompareOperator.Type.GREATER_THAN,
+            column("A"), new LiteralValue(2)));
+        and.addTerm(new CompareOperator(CompareOperator.Type.LESS_OR_EQUAL,
+            column("B"), new LiteralValue(0)));
+
+        BooleanOperator or = new BooleanOperator(BooleanOperator.Type.OR_EXPR);
+        or.addTerm(new IsNullOperator(column("C"), false));
+        or.addTerm(new CompareOperator(CompareOperator.Type.EQUALS,
+            new ColumnValue(new ColumnName("T", "C")),
+            new LiteralValue("one")));
+
+        BooleanOperator not = new BooleanOperator(BooleanOperator.Type.NOT_EXPR);
+        not.addTerm(or);
+
+        Expression[] exprs = {
+            column("A"),
+            new LiteralValue(42),
+            new ArithmeticOperator(ArithmeticOperator.Type.MULTIPLY,
+                new ArithmeticOperator(ArithmeticOperator.Type.ADD,
+                    column("A"), new LiteralValue(1)), column("B")),
+            new ArithmeticOperator(ArithmeticOperator.Type.REMAINDER,
+                column("A"), new LiteralValue(2)),
+            and,
+            or,
+            not,
+            new IsNullOperator(column("B"), true),
+            new CompareOperator(CompareOperator.Type.NOT_EQUALS,
+                new LiteralValue(3), column("A"))
+        };
+
+        for (Expression expr : exprs) {
+            CompiledExpression compiled =
+                ExpressionCompiler.compile(expr, schema, new Environment());
+
+            for (TupleLiteral tup : TUPLES) {
+                Object expected = interpret(expr, schema, tup);
+                Object result = compiled.evaluate(tup);
+                assert expected == null ? result == null :
+                    expected.equals(result) : expr + " on " + tup +
+                    ":  got " + result + ", expected " + expected;
+
+                Environment env = new Environment();
+                env.addTuple(schema, tup);
+                if (expected == null || expected instanceof Boolean) {
+                    assert compiled.evaluatePredicate(tup) ==
+                        expr.evaluatePredicate(env) : expr + " on " + tup;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Checks that columns of an enclosing query are resolved through the
+     * parents of the environment, and that columns that can't be resolved
+     * are still reported when the expression is evaluated.
+     */
+    public void testColumnsResolvedThroughEnvironment() {
+        Schema schema = makeSchema();
+
+        Schema outerSchema = new Schema();
+        outerSchema.addColumnInfo(new ColumnInfo("D", "OUTER",
+            new ColumnType(SQLDataType.INTEGER)));
+
+        Environment outerEnv = new Environment();
+        outerEnv.addTuple(outerSchema, new TupleLiteral(new Object[] { 10 }));
+
+        Environment env = new Environment();
+        env.addParentEnvironment(outerEnv);
+
+        Expression expr = new ArithmeticOperator(ArithmeticOperator.Type.ADD,
+            column("A"), column("D"));
+        CompiledExpression compiled =
+            ExpressionCompiler.compile(expr, schema, env);
+        assert compiled.evaluate(TUPLES[1]).equals(15);
+
+        outerEnv.clear();
+        outerEnv.addTuple(outerSchema, new TupleLiteral(new Object[] { 20 }));
+        assert compiled.evaluate(TUPLES[1]).equals(25);
+
+        compiled = ExpressionCompiler.compile(column("E"), schema, env);
+        try {
+            compiled.evaluate(TUPLES[0]);
+            assert false : "Expected an unknown column to be reported";
+        }
+        catch (ExpressionException e) {
+            // Success.
+        }
+    }
+
+
+    /** Checks that subclasses of expression classes evaluate themselves. */
+    public void testExpressionSubclassesNotCompiled() {
+        LiteralValue overridden = new LiteralValue(1) {
+            public Object evaluate(Environment env) {
+                return 2;
+            }
+        };
+
+        CompiledExpression compiled = ExpressionCompiler.compile(
+            new ArithmeticOperator(ArithmeticOperator.Type.ADD,
+                column("A"), overridden), makeSchema(), new Environment());
+        assert compiled.evaluate(TUPLES[0]).equals(3);
+    }
+
+
+    /**
+     * Checks that arithmetic and comparisons over numeric columns are
+     * evaluated as primitives, and that values of another type than the
+     * schema describes are still evaluated correctly.
+     */
+    public void testPrimitiveEvaluation() {
+        Schema schema = makeSchema();
+
+        Expression sum = new ArithmeticOperator(ArithmeticOperator.Type.ADD,
+            column("A"), new LiteralValue(Integer.MAX_VALUE));
+        CompiledExpression compiled =
+            ExpressionCompiler.compile(sum, schema, new Environment());
+        assert compiled.getValueKind() == CompiledExpression.INT_VALUE;
+
+        // Integer arithmetic wraps around, just as it does for Integers.
+        assert compiled.evaluatePrimitive(TUPLES[0]);
+        assert compiled.getLongResult() == Integer.MIN_VALUE;
+        assert !compiled.evaluatePrimitive(TUPLES[2]);
+        assert compiled.evaluate(TUPLES[2]) == null;
+
+        Expression quotient = new ArithmeticOperator(
+            ArithmeticOperator.Type.DIVIDE, column("A"), new LiteralValue(2L));
+        compiled = ExpressionCompiler.compile(quotient, schema,
+            new Environment());
+        assert compiled.getValueKind() == CompiledExpression.DOUBLE_VALUE;
+        assert compiled.evaluate(TUPLES[1]).equals(2.5);
+
+        compiled = ExpressionCompiler.compile(column("C"), schema,
+            new Environment());
+        assert compiled.getValueKind() == CompiledExpression.OBJECT_VALUE;
+
+        // Column A claims to be an INTEGER, but these tuples hold other
+        // kinds of numbers.
+        TupleLiteral[] tuples = {
+            new TupleLiteral(2.75, 2.5, "x"),
+            new TupleLiteral(3000000000L, 2.5, "y")
+        };
+
+        Expression[] exprs = {
+            new CompareOperator(CompareOperator.Type.GREATER_THAN,
+                column("A"), column("B")),
+            new ArithmeticOperator(ArithmeticOperator.Type.MULTIPLY,
+                column("A"), new LiteralValue(2)),
+            new IsNullOperator(new ArithmeticOperator(
+                ArithmeticOperator.Type.SUBTRACT, column("A"), column("B")),
+                false)
+        };
+
+        for (Expression expr : exprs) {
+            compiled = ExpressionCompiler.compile(expr, schema,
+                new Environment());
+            for (TupleLiteral tup : TUPLES) {
+                Object expected = interpret(expr, schema, tup);
+                Object result = compiled.evaluate(tup);
+                assert expected == null ? result == null :
+                    expected.equals(result) : expr + " on " + tup;
+            }
+            for (TupleLiteral tup : tuples) {
+                Object expected = interpret(expr, schema, tup);
+                assert expected.equals(compiled.evaluate(tup)) :
+                    expr + " on " + tup;
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package edu.caltech.test.nanodb.expressions;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.ColumnName;
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.Environment;
+import edu.caltech.nanodb.expressions.ExistsOperator;
+import edu.caltech.nanodb.expressions.InSubqueryOperator;
+import edu.caltech.nanodb.expressions.LiteralValue;
+import edu.caltech.nanodb.expressions.ScalarSubquery;
+import edu.caltech.nanodb.expressions.SubqueryOperator;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.plannodes.ProjectNode;
+import edu.caltech.nanodb.queryast.SelectClause;
+import edu.caltech.nanodb.queryast.SelectValue;
+import edu.caltech.nanodb.relations.ColumnInfo;
+import edu.caltech.nanodb.relations.ColumnType;
+import edu.caltech.nanodb.relations.SQLDataType;
+import edu.caltech.nanodb.relations.Schema;
+
+
+/**
+ * This test class checks that uncorrelated subqueries are only evaluated
+ * once, no matter how many rows they are evaluated against, and that
+ * correlated subqueries are evaluated once for each distinct value of the
+ * columns they reference from the enclosing query.
+ */
+@Test
+public class TestSubqueryOperators {
+
+    /** A plan producing a single value, that counts its evaluations. */
+    private static class CountingPlan extends ProjectNode {
+        int numEvaluations;
+
+        CountingPlan(Object value) {
+            super(makeValues(value));
+        }
+
+        private static List<SelectValue> makeValues(Object value) {
+            List<SelectValue> values = new ArrayList<>();
+            values.add(new SelectValue(new LiteralValue(value), "V"));
+            return values;
+        }
+
+        @Override
+        public void initialize() {
+            super.initialize();
+            numEvaluations++;
+        }
+    }
+
+
+    private static CountingPlan setPlan(SubqueryOperator op, Object value) {
+        CountingPlan plan = new CountingPlan(value);
+        plan.prepare();
+        op.setSubqueryPlan(plan);
+        return plan;
+    }
+
+
+    /** Makes an environment holding a single row with a column "A". */
+    private static Environment makeEnvironment(Object value) {
+        Schema schema = new Schema();
+        schema.addColumnInfo(new ColumnInfo("A", "T",
+            new ColumnType(SQLDataType.INTEGER)));
+
+        Environment env = new Environment();
+        env.addTuple(schema, new TupleLiteral(new Object[] { value }));
+        return env;
+    }
+
+
+    public void testScalarSubqueryEvaluatedOnce() {
+        ScalarSubquery op = new ScalarSubquery(new SelectClause());
+        CountingPlan plan = setPlan(op, 42);
+
+        for (int i = 0; i < 5; i++)
+            assert op.evaluate(makeEnvironment(i)).equals(42);
+        assert plan.numEvaluations == 1;
+
+        // A new plan means the subquery must be evaluated again.
+        plan = setPlan(op, 43);
+        assert op.evaluate(makeEnvironment(0)).equals(43);
+        assert plan.numEvaluations == 1;
+    }
+
+
+    public void testInSubqueryEvaluatedOnce() {
+        InSubqueryOperator op = new InSubqueryOperator(
+            new ColumnValue(new ColumnName("A")), new SelectClause());
+        CountingPlan plan = setPlan(op, 3);
+
+        assert op.evaluate(makeEnvironment(3)).equals(Boolean.TRUE);
+        assert op.evaluate(makeEnvironment(4)).equals(Boolean.FALSE);
+        assert op.evaluate(makeEnvironment(3L)).equals(Boolean.TRUE);
+        assert op.evaluate(makeEnvironment(3.0)).equals(Boolean.TRUE);
+        assert op.evaluate(makeEnvironment(3.5)).equals(Boolean.FALSE);
+        assert op.evaluate(makeEnvironment(null)) == null;
+        assert plan.numEvaluations == 1;
+
+        // Values that can't be hashed are compared one by one.
+        plan = setPlan(op, "3");
+        assert op.evaluate(makeEnvironment(3)).equals(Boolean.TRUE);
+        assert op.evaluate(makeEnvironment("3")).equals(Boolean.TRUE);
+        assert op.evaluate(makeEnvironment(4)).equals(Boolean.FALSE);
+        assert plan.numEvaluations == 1;
+
+        // A subquery producing NULL never contains anything.
+        plan = setPlan(op, null);
+        assert op.evaluate(makeEnvironment(3)).equals(Boolean.FALSE);
+        assert plan.numEvaluations == 1;
+    }
+
+
+    public void testExistsEvaluatedOnce() {
+        ExistsOperator op = new ExistsOperator(new SelectClause());
+        CountingPlan plan = setPlan(op, 1);
+
+        for (int i = 0; i < 5; i++)
+            assert op.evaluate(makeEnvironment(i)).equals(Boolean.TRUE);
+        assert plan.numEvaluations == 1;
+    }
+
+
+    /** Makes a subquery that is correlated with the column "T.A". */
+    private static SelectClause makeCorrelatedSubquery() {
+        return new SelectClause() {
+            @Override
+            public boolean isCorrelated() {
+                return true;
+            }
+
+            @Override
+            public Set<ColumnName> getCorrelatedColumns() {
+                return Collections.singleton(new ColumnName("T", "A"));
+            }
+        };
+    }
+
+
+    public void testCorrelatedSubqueriesCached() {
+        SubqueryOperator[] ops = {
+            new ScalarSubquery(makeCorrelatedSubquery()),
+            new InSubqueryOperator(new ColumnValue(new ColumnName("A")),
+                makeCorrelatedSubquery()),
+            new ExistsOperator(makeCorrelatedSubquery())
+        };
+
+        for (SubqueryOperator op : ops) {
+            CountingPlan plan = setPlan(op, 2);
+
+            // Skewed values of the correlated column, where 2 and 2L are the
+            // same value.
+            Object[] values = { 1, 2, 1, 1, 2L, 3, 1, 2, 3, 1 };
+            for (Object value : values)
+                op.evaluate(makeEnvironment(value));
+
+            assert plan.numEvaluations == 3 : op;
+        }
+    }
+
+
+    public void testCorrelatedSubqueryCacheBounded() {
+        ScalarSubquery op = new ScalarSubquery(makeCorrelatedSubquery());
+        CountingPlan plan = setPlan(op, 42);
+
+        int n = SubqueryOperator.MAX_CACHED_RESULTS;
+        for (int i = 0; i < n; i++)
+            assert op.evaluate(makeEnvironment(i)).equals(42);
+        assert plan.numEvaluations == n;
+
+        // Using the first value again keeps it in the cache, so the second
+        // value is the one that is dropped to make room for a new value.
+        op.evaluate(makeEnvironment(0));
+        op.evaluate(makeEnvironment(n));
+        assert plan.numEvaluations == n + 1;
+
+        op.evaluate(makeEnvironment(0));
+        assert plan.numEvaluations == n + 1;
+
+        op.evaluate(makeEnvironment(1));
+        assert plan.numEvaluations == n + 2;
+    }
+}
@@ -0,0 +1,207 @@
+package edu.caltech.test.nanodb.functions;
+
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.functions.AggregateFunction;
+import edu.caltech.nanodb.functions.Avg;
+import edu.caltech.nanodb.functions.Count;
+import edu.caltech.nanodb.functions.CountDistinct;
+import edu.caltech.nanodb.functions.CountStar;
+import edu.caltech.nanodb.functions.Max;
+import edu.caltech.nanodb.functions.Min;
+import edu.caltech.nanodb.functions.StdDev;
+import edu.caltech.nanodb.functions.Sum;
+import edu.caltech.nanodb.functions.SumDistinct;
+import edu.caltech.nanodb.functions.Variance;
+
+
+/**
+ * This class checks that aggregate functions produce the same results when
+ * they are handed primitive values as when they are handed the same values
+ * as objects, including the types of the results, and when their state is
+ * computed in parts and merged.
+ */
+@Test
+public class TestPrimitiveAggregates {
+
+    private static AggregateFunction[] makeAggregates() {
+        AggregateFunction[] aggFns = {
+            new Sum(), new Avg(), new Count(), new Min(), new Max(),
+            new StdDev(), new Variance(), new SumDistinct(),
+            new CountDistinct(), new CountStar()
+        };
+
+        for (AggregateFunction aggFn : aggFns)
+            aggFn.clearResult();
+
+        return aggFns;
+    }
+
+
+    /** Adds a value to an aggregate as a primitive, if it is one. */
+    private static void addPrimitive(AggregateFunction aggFn, Object value) {
+        if (value instanceof Integer)
+            aggFn.addIntValue((Integer) value);
+        else if (value instanceof Long)
+            aggFn.addLongValue((Long) value);
+        else if (value instanceof Double)
+            aggFn.addDoubleValue((Double) value);
+        else
+            aggFn.addValue(value);
+    }
+
+
+    private static void checkSameResults(Object[] values) {
+        AggregateFunction[] objectFns = makeAggregates();
+        AggregateFunction[] primitiveFns = makeAggregates();
+
+        // MIN and MAX can't compare values of different types, and must
+        // report that either way.
+        boolean[] failed = new boolean[objectFns.length];
+        for (Object value : values) {
+            for (int i = 0; i < objectFns.length; i++) {
+                if (failed[i])
+                    continue;
+
+                try {
+                    objectFns[i].addValue(value);
+                }
+                catch (ClassCastException e) {
+                    failed[i] = true;
+                }
+
+                try {
+                    addPrimitive(primitiveFns[i], value);
+                    assert !failed[i] : objectFns[i].getClass();
+                }
+                catch (ClassCastException e) {
+                    assert failed[i] : objectFns[i].getClass();
+                }
+            }
+        }
+
+        for (int i = 0; i < objectFns.length; i++) {
+            if (failed[i])
+                continue;
+
+            Object expected = objectFns[i].getResult();
+            Object result = primitiveFns[i].getResult();
+            assert expected == null ? result == null :
+                expected.equals(result) : objectFns[i].getClass() +
+                ":  got " + result + ", expected " + expected;
+        }
+    }
+
+
+    public void testIntegerValues() {
+        checkSameResults(new Object[] { 3, null, -7, 12, 3, 0 });
+        checkSameResults(new Object[] { Integer.MAX_VALUE, 1, 5 });
+        checkSameResults(new Object[] { 42 });
+        checkSameResults(new Object[] { null });
+        checkSameResults(new Object[] {});
+    }
+
+
+    public void testLongAndDoubleValues() {
+        checkSameResults(new Object[] { Long.MAX_VALUE, 2L, -5L, null, 2L });
+        checkSameResults(new Object[] { 2.5, -0.0, 0.0, null, 1e10, 2.5 });
+        checkSameResults(new Object[] { Double.NaN, 1.0 });
+    }
+
+
+    /**
+     * Checks that values of mixed types are promoted in the same way as
+     * adding objects promotes them.
+     */
+    public void testMixedValues() {
+        checkSameResults(new Object[] { Integer.MAX_VALUE, 1, 10L, 2 });
+        checkSameResults(new Object[] { 1, 2L, 0.5 });
+        checkSameResults(new Object[] { (short) 4 });
+        checkSameResults(new Object[] { (short) 4, 5, 2.5f });
+        checkSameResults(new Object[] { 2.5f, 1.5 });
+    }
+
+
+    public void testResults() {
+        AggregateFunction[] aggFns = makeAggregates();
+        for (int i = 1; i <= 4; i++) {
+            for (AggregateFunction aggFn : aggFns)
+                aggFn.addIntValue(i);
+        }
+
+        Object[] expected = {
+            10, 2.5, 4, 1, 4, Math.pow(1.25, .5), 1.25, 10, 4, 4
+        };
+        for (int i = 0; i < aggFns.length; i++) {
+            assert aggFns[i].getResult().equals(expected[i]) :
+                aggFns[i].getClass() + ":  " + aggFns[i].getResult();
+        }
+
+        // Integer sums wrap around, just like adding Integers does.
+        Sum sum = new Sum();
+        sum.clearResult();
+        sum.addIntValue(Integer.MAX_VALUE);
+        sum.addIntValue(1);
+        assert sum.getResult().equals(Integer.MIN_VALUE);
+    }
+
+
+    /**
+     * Checks that aggregating values in two parts and merging the parts'
+     * state produces the same results as aggregating all of the values.
+     */
+    private static void checkMergedResults(Object[] values, int split) {
+        AggregateFunction[] allFns = makeAggregates();
+        AggregateFunction[] firstFns = makeAggregates();
+        AggregateFunction[] secondFns = makeAggregates();
+
+        for (int i = 0; i < allFns.length; i++) {
+            assert allFns[i].supportsMerge() : allFns[i].getClass();
+
+            for (int j = 0; j < values.length; j++) {
+                addPrimitive(allFns[i], values[j]);
+                addPrimitive(j < split ? firstFns[i] : secondFns[i],
+                    values[j]);
+            }
+
+            firstFns[i].mergeState(secondFns[i]);
+
+            Object expected = allFns[i].getResult();
+            Object result = firstFns[i].getResult();
+            assert expected == null ? result == null :
+                expected.equals(result) : allFns[i].getClass() +
+                ":  got " + result + ", expected " + expected;
+        }
+    }
+
+
+    public void testMergeState() {
+        Object[] values = { 3, null, -7, 12, 3, 0, 12, 5 };
+        for (int split = 0; split <= values.length; split++)
+            checkMergedResults(values, split);
+
+        checkMergedResults(new Object[] { 2L, 5L, null, 2L }, 2);
+        checkMergedResults(new Object[] { 1.5, 2.5, 1.5, 4.0 }, 1);
+        checkMergedResults(new Object[] { null, null }, 1);
+    }
+
+
+    /** Checks that copies of a distinct aggregate don't share their state. */
+    public void testCloneDistinct() throws Exception {
+        AggregateFunction[] aggFns = { new SumDistinct(), new CountDistinct() };
+        for (AggregateFunction aggFn : aggFns) {
+            aggFn.clearResult();
+
+            AggregateFunction copy1 = (AggregateFunction) aggFn.clone();
+            AggregateFunction copy2 = (AggregateFunction) aggFn.clone();
+            copy1.addIntValue(4);
+            copy2.addIntValue(4);
+            copy2.addIntValue(6);
+
+            boolean sum = aggFn instanceof SumDistinct;
+            assert copy1.getResult().equals(sum ? 4 : 1);
+            assert copy2.getResult().equals(sum ? 10 : 2);
+        }
+    }
+}
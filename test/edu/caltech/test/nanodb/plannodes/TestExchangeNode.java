@@ -0,0 +1,343 @@
+package edu.caltech.test.nanodb.plannodes;
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.commands.SelectCommand;
+import edu.caltech.nanodb.expressions.ColumnName;
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.plannodes.ExchangeNode;
+import edu.caltech.nanodb.plannodes.FileScanNode;
+import edu.caltech.nanodb.plannodes.PlanNode;
+import edu.caltech.nanodb.plannodes.PlanUtils;
+import edu.caltech.nanodb.plannodes.ProjectNode;
+import edu.caltech.nanodb.plannodes.SimpleFilterNode;
+import edu.caltech.nanodb.queryast.SelectValue;
+import edu.caltech.nanodb.relations.TableInfo;
+import edu.caltech.nanodb.storage.SpillFile;
+import edu.caltech.nanodb.storage.TupleFile;
+import edu.caltech.nanodb.storage.heapfile.HeapTupleFile;
+
+import edu.caltech.test.nanodb.sql.SqlTestCase;
+
+
+/**
+ * This class exercises the exchange plan node, and checks that queries
+ * evaluated in parallel produce the same results as they do serially.
+ */
+@Test
+public class TestExchangeNode extends SqlTestCase {
+
+    private static final int NUM_ROWS = 10000;
+
+
+    public TestExchangeNode() {
+        super("setup_testExchange");
+    }
+
+
+    @BeforeClass
+    public void loadRows() throws Exception {
+        TupleFile tupleFile = openTable("TEST_EXCH_T1").getTupleFile();
+        for (int i = 0; i < NUM_ROWS; i++) {
+            tupleFile.addTuple(new TupleLiteral(i,
+                (i % 10 == 0) ? null : Long.valueOf(7L * i), "row " + i, i % 10));
+        }
+
+        tupleFile = openTable("TEST_EXCH_T2").getTupleFile();
+        for (int i = 0; i < NUM_ROWS; i += 3)
+            tupleFile.addTuple(new TupleLiteral(i, "t2 " + i));
+
+        // With statistics, the planner joins the tables with a hash join.
+        tryDoCommand("ANALYZE test_exch_t1, test_exch_t2;", false);
+    }
+
+
+    private TableInfo openTable(String tableName) throws Exception {
+        return server.getStorageManager().getTableManager().openTable(tableName);
+    }
+
+
+    private Expression parsePredicate(String where) throws Exception {
+        SelectCommand cmd = (SelectCommand) server.parseCommand(
+            "SELECT * FROM test_exch_t1 WHERE " + where + ";");
+        return cmd.getSelectClause().getWhereExpr();
+    }
+
+
+    /** Sorts results by their string form, so they can be compared. */
+    private static List<TupleLiteral> sorted(List<TupleLiteral> results) {
+        List<TupleLiteral> sorted = new ArrayList<>(results);
+        Collections.sort(sorted, new Comparator<TupleLiteral>() {
+            public int compare(TupleLiteral a, TupleLiteral b) {
+                return a.toString().compareTo(b.toString());
+            }
+        });
+        return sorted;
+    }
+
+
+    private static boolean containsExchange(PlanNode plan) {
+        String tree = PlanNode.printNodeTreeToString(plan, false);
+        return tree.contains("Exchange[");
+    }
+
+
+    /** Checks that page ranges of a heap file cover the file exactly once. */
+    public void testPageRanges() throws Exception {
+        TableInfo tableInfo = openTable("TEST_EXCH_T1");
+        int numPages = ((HeapTupleFile) tableInfo.getTupleFile())
+            .getDBFile().getNumPages();
+        assert numPages > 10 : "Only " + numPages + " pages";
+
+        List<TupleLiteral> all = new ArrayList<>();
+        for (int start = 1; start < numPages; start += 4) {
+            FileScanNode scan = new FileScanNode(tableInfo, null);
+            assert scan.supportsPageRanges();
+            scan.setPageRange(start, start + 4);
+            all.addAll(evaluate(scan, start % 2 == 0));
+        }
+
+        assert all.size() == NUM_ROWS : all.size();
+        for (int i = 0; i < NUM_ROWS; i++)
+            assert all.get(i).getColumnValue(0).equals(i) : all.get(i);
+
+        // A range past the end of the file is empty.
+        FileScanNode scan = new FileScanNode(tableInfo, null);
+        scan.setPageRange(numPages + 5, numPages + 10);
+        assert evaluate(scan, false).isEmpty();
+    }
+
+
+    public void testExchangeNode() throws Exception {
+        TableInfo tableInfo = openTable("TEST_EXCH_T1");
+
+        List<SelectValue> values = new ArrayList<>();
+        values.add(new SelectValue(new ColumnValue(new ColumnName("C")), null));
+        values.add(new SelectValue(new ColumnValue(new ColumnName("A")), null));
+
+        PlanNode plan = new ProjectNode(new SimpleFilterNode(
+            new FileScanNode(tableInfo, parsePredicate("a >= 1000")),
+            parsePredicate("b < 40000 OR b IS NULL")), values);
+
+        assert ExchangeNode.isPartitionable(plan);
+
+        // Subqueries can't be evaluated by the workers.
+        assert !ExchangeNode.isPartitionable(new FileScanNode(tableInfo,
+            parsePredicate("a IN (SELECT a FROM test_exch_t2)")));
+
+        List<TupleLiteral> expected = sorted(evaluate(plan.duplicate(), false));
+        int expectedSize = 0;
+        for (int i = 1000; i < NUM_ROWS; i++) {
+            if (i % 10 == 0 || 7L * i < 40000)
+                expectedSize++;
+        }
+        assert expected.size() == expectedSize : expected.size();
+
+        for (int numPartitions : new int[] { 1, 3, 8 }) {
+            ExchangeNode exchange = new ExchangeNode(plan.duplicate(),
+                numPartitions);
+            assert sorted(evaluate(exchange, false)).equals(expected);
+            assert sorted(evaluate(exchange, true)).equals(expected);
+        }
+
+        // Stopping early must stop the workers.
+        ExchangeNode exchange = new ExchangeNode(plan.duplicate(), 4);
+        exchange.prepare();
+        for (int i = 0; i < 3; i++) {
+            exchange.initialize();
+            assert exchange.getNextTuple() != null;
+        }
+        exchange.cleanUp();
+    }
+
+
+    /** Checks that a worker's failure is reported to the consumer. */
+    public void testWorkerFailure() throws Exception {
+        PlanNode plan = new FileScanNode(openTable("TEST_EXCH_T1"),
+            parsePredicate("a + c > 5"));
+
+        try {
+            evaluate(new ExchangeNode(plan, 4), false);
+            assert false : "Expected the worker's failure to be reported";
+        }
+        catch (RuntimeException e) {
+            // Success.
+        }
+    }
+
+
+    /**
+     * Checks that the planner evaluates scans of large tables in parallel,
+     * and that the queries produce the same results as they do serially.
+     */
+    public void testParallelQueries() throws Exception {
+        String[] queries = {
+            "SELECT * FROM test_exch_t1 WHERE a % 7 = 3",
+            "SELECT c, b * 2 FROM test_exch_t1 WHERE b > 30000",
+            "SELECT COUNT(*), SUM(b), MIN(c), MAX(a) FROM test_exch_t1",
+            "SELECT g, COUNT(b), AVG(b) FROM test_exch_t1 GROUP BY g",
+            "SELECT t1.a, t2.d FROM test_exch_t1 t1 " +
+                "JOIN test_exch_t2 t2 ON t1.a = t2.a WHERE t1.b < 7000",
+            "SELECT a, c FROM test_exch_t1 WHERE a < 100 ORDER BY c LIMIT 5",
+            "SELECT a FROM test_exch_t1 WHERE a < 200 AND a IN " +
+                "(SELECT a FROM test_exch_t2 WHERE a < 50)",
+            "SELECT a FROM test_exch_t1 WHERE a < 200 AND b > " +
+                "(SELECT MIN(a) FROM test_exch_t2 WHERE a < 50)"
+        };
+
+        // The IN subquery is evaluated as a semijoin, but the last query's
+        // scalar subquery keeps its scan of test_exch_t1 serial.
+        boolean[] parallel =
+            { true, true, true, true, true, true, true, false };
+
+        String oldParallelism = System.getProperty(PlanUtils.PROP_PARALLELISM);
+        System.setProperty(PlanUtils.PROP_PARALLEL_MIN_PAGES, "8");
+        try {
+            List<List<TupleLiteral>> expected = new ArrayList<>();
+            System.setProperty(PlanUtils.PROP_PARALLELISM, "1");
+            for (String query : queries) {
+                assert !containsExchange(PlanUtils.addExchangeNodes(
+                    makePlan(query)));
+                expected.add(getResultTuples(query));
+            }
+
+            System.setProperty(PlanUtils.PROP_PARALLELISM, "4");
+            for (int i = 0; i < queries.length; i++) {
+                assert containsExchange(PlanUtils.addExchangeNodes(
+                    makePlan(queries[i]))) == parallel[i] : queries[i];
+
+                List<TupleLiteral> results = getResultTuples(queries[i]);
+                if (queries[i].contains("ORDER BY")) {
+                    assert results.equals(expected.get(i)) : queries[i];
+                }
+                else {
+                    assert sorted(results).equals(sorted(expected.get(i))) :
+                        queries[i];
+                }
+            }
+        }
+        finally {
+            if (oldParallelism != null)
+                System.setProperty(PlanUtils.PROP_PARALLELISM, oldParallelism);
+            else
+                System.clearProperty(PlanUtils.PROP_PARALLELISM);
+
+            System.clearProperty(PlanUtils.PROP_PARALLEL_MIN_PAGES);
+        }
+    }
+
+
+    /**
+     * Checks that two lists of results hold the same tuples, allowing
+     * <tt>DOUBLE</tt> values to differ in their least significant digits,
+     * since their sums may be computed in a different order.
+     */
+    private static void checkSameResults(List<TupleLiteral> results,
+        List<TupleLiteral> expected, String query) {
+
+        assert results.size() == expected.size() : query;
+        for (int i = 0; i < results.size(); i++) {
+            TupleLiteral result = results.get(i);
+            TupleLiteral expectedTup = expected.get(i);
+            assert result.getColumnCount() == expectedTup.getColumnCount();
+
+            for (int iCol = 0; iCol < result.getColumnCount(); iCol++) {
+                Object value = result.getColumnValue(iCol);
+                Object expectedValue = expectedTup.getColumnValue(iCol);
+                if (value instanceof Double && expectedValue instanceof Double) {
+                    double d = (Double) value;
+                    double e = (Double) expectedValue;
+                    assert Math.abs(d - e) <= 1e-9 * Math.abs(e) :
+                        query + ":  got " + result + ", expected " + expectedTup;
+                }
+                else {
+                    assert expectedValue == null ? value == null :
+                        expectedValue.equals(value) :
+                        query + ":  got " + result + ", expected " + expectedTup;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Checks that grouping and aggregation over a parallel scan produces the
+     * same results as it does serially, both when the partitions' groups
+     * fit in memory and when they don't.
+     */
+    public void testParallelAggregation() throws Exception {
+        String[] queries = {
+            "SELECT g, COUNT(*), COUNT(b), SUM(b), AVG(a), MIN(c), MAX(b), " +
+                "STDDEV(a), VARIANCE(b) FROM test_exch_t1 GROUP BY g",
+            "SELECT g, COUNT(DISTINCT b), SUM(DISTINCT a) " +
+                "FROM test_exch_t1 WHERE a > 500 GROUP BY g",
+            "SELECT COUNT(*), AVG(b), MIN(a) FROM test_exch_t1 WHERE b > 1000",
+            "SELECT a, COUNT(*), SUM(b) FROM test_exch_t1 GROUP BY a"
+        };
+
+        String oldParallelism = System.getProperty(PlanUtils.PROP_PARALLELISM);
+        System.setProperty(PlanUtils.PROP_PARALLEL_MIN_PAGES, "8");
+        try {
+            List<List<TupleLiteral>> expected = new ArrayList<>();
+            System.setProperty(PlanUtils.PROP_PARALLELISM, "1");
+            for (String query : queries)
+                expected.add(sorted(getResultTuples(query)));
+
+            System.setProperty(PlanUtils.PROP_PARALLELISM, "4");
+            for (int i = 0; i < queries.length; i++) {
+                String tree = PlanNode.printNodeTreeToString(
+                    PlanUtils.addExchangeNodes(makePlan(queries[i])), false);
+                assert tree.contains("HashedGroupAggregate[") &&
+                    tree.contains("Exchange[") : tree;
+
+                checkSameResults(sorted(getResultTuples(queries[i])),
+                    expected.get(i), queries[i]);
+            }
+
+            // With little memory, the partitions' groups of the last query
+            // don't fit, so the workers spill the input of the groups that
+            // don't fit.
+            System.setProperty(PlanUtils.PROP_WORK_MEM, "65536");
+            for (int i = 0; i < queries.length; i++) {
+                checkSameResults(sorted(getResultTuples(queries[i])),
+                    expected.get(i), queries[i]);
+            }
+
+            File spillDir = new File("test_datafiles", "spill");
+            spillDir.mkdirs();
+            System.setProperty(SpillFile.PROP_SPILL_DIR, spillDir.getPath());
+            try {
+                PlanNode plan = PlanUtils.addExchangeNodes(
+                    makePlan(queries[queries.length - 1]));
+                plan.initialize();
+                assert plan.getNextTuple() != null;
+                assert spillDir.list().length > 0;
+                plan.cleanUp();
+            }
+            finally {
+                System.clearProperty(SpillFile.PROP_SPILL_DIR);
+                FileUtils.deleteDirectory(spillDir);
+            }
+        }
+        finally {
+            if (oldParallelism != null)
+                System.setProperty(PlanUtils.PROP_PARALLELISM, oldParallelism);
+            else
+                System.clearProperty(PlanUtils.PROP_PARALLELISM);
+
+            System.clearProperty(PlanUtils.PROP_PARALLEL_MIN_PAGES);
+            System.clearProperty(PlanUtils.PROP_WORK_MEM);
+        }
+    }
+}
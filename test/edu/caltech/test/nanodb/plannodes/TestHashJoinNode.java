@@ -0,0 +1,272 @@
+package edu.caltech.test.nanodb.plannodes;
+
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.BooleanOperator;
+import edu.caltech.nanodb.expressions.ColumnName;
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.CompareOperator;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.LiteralValue;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.plannodes.FileScanNode;
+import edu.caltech.nanodb.plannodes.HashJoinNode;
+import edu.caltech.nanodb.plannodes.PlanUtils;
+import edu.caltech.nanodb.relations.JoinType;
+import edu.caltech.nanodb.relations.TableInfo;
+import edu.caltech.nanodb.storage.TableManager;
+import edu.caltech.nanodb.storage.TupleFile;
+
+import edu.caltech.test.nanodb.sql.SqlTestCase;
+
+
+/**
+ * This class exercises the hash-join plan node with each of the join types
+ * it supports, with and without spilling to disk, and checks that the
+ * planner chooses it for equijoins.
+ */
+@Test
+public class TestHashJoinNode extends SqlTestCase {
+
+    private static final int NUM_BIG_ROWS = 3000;
+
+
+    public TestHashJoinNode() {
+        super("setup_testHashJoins");
+    }
+
+
+    private FileScanNode scan(String tableName) throws Exception {
+        TableManager tableManager = server.getStorageManager().getTableManager();
+        TableInfo tableInfo = tableManager.openTable(tableName);
+        return new FileScanNode(tableInfo, null);
+    }
+
+
+    private static Expression equals(String table1, String table2,
+                                     String column) {
+        return new CompareOperator(CompareOperator.Type.EQUALS,
+            new ColumnValue(new ColumnName(table1, column)),
+            new ColumnValue(new ColumnName(table2, column)));
+    }
+
+
+    private HashJoinNode makeJoin(JoinType joinType) throws Exception {
+        return new HashJoinNode(scan("TEST_HJ_T1"), scan("TEST_HJ_T2"),
+            joinType, equals("TEST_HJ_T1", "TEST_HJ_T2", "A"));
+    }
+
+
+    private static final TupleLiteral[] INNER_RESULTS = {
+        new TupleLiteral(2, 20, 2, "two"),
+        new TupleLiteral(2, 20, 2, "deux"),
+        new TupleLiteral(2, 21, 2, "two"),
+        new TupleLiteral(2, 21, 2, "deux"),
+        new TupleLiteral(3, 30, 3, "three")
+    };
+
+
+    public void testInnerJoin() throws Exception {
+        assert sameResultsUnordered(INNER_RESULTS,
+            evaluate(makeJoin(JoinType.INNER)));
+    }
+
+
+    public void testInnerJoinWithResidual() throws Exception {
+        BooleanOperator pred =
+            new BooleanOperator(BooleanOperator.Type.AND_EXPR);
+        pred.addTerm(equals("TEST_HJ_T1", "TEST_HJ_T2", "A"));
+        pred.addTerm(new CompareOperator(
+            CompareOperator.Type.GREATER_THAN,
+            new ColumnValue(new ColumnName("TEST_HJ_T1", "B")),
+            new LiteralValue(20)));
+
+        HashJoinNode join = new HashJoinNode(scan("TEST_HJ_T1"),
+            scan("TEST_HJ_T2"), JoinType.INNER, pred);
+
+        TupleLiteral[] expected = {
+            new TupleLiteral(2, 21, 2, "two"),
+            new TupleLiteral(2, 21, 2, "deux"),
+            new TupleLiteral(3, 30, 3, "three")
+        };
+        assert sameResultsUnordered(expected, evaluate(join));
+        assert join.getNumJoinKeys() == 1;
+    }
+
+
+    public void testOuterJoins() throws Exception {
+        TupleLiteral[] leftExpected = {
+            new TupleLiteral(1, 10, null, null),
+            new TupleLiteral(2, 20, 2, "two"),
+            new TupleLiteral(2, 20, 2, "deux"),
+            new TupleLiteral(2, 21, 2, "two"),
+            new TupleLiteral(2, 21, 2, "deux"),
+            new TupleLiteral(3, 30, 3, "three"),
+            new TupleLiteral(null, 40, null, null),
+            new TupleLiteral(5, 50, null, null)
+        };
+        assert sameResultsUnordered(leftExpected,
+            evaluate(makeJoin(JoinType.LEFT_OUTER)));
+
+        // A left-outer join that builds on its left input.
+        HashJoinNode swapped = makeJoin(JoinType.RIGHT_OUTER);
+        swapped.swap();
+        assert sameResultsUnordered(leftExpected, evaluate(swapped));
+
+        TupleLiteral[] rightExpected = {
+            new TupleLiteral(2, 20, 2, "two"),
+            new TupleLiteral(2, 20, 2, "deux"),
+            new TupleLiteral(2, 21, 2, "two"),
+            new TupleLiteral(2, 21, 2, "deux"),
+            new TupleLiteral(3, 30, 3, "three"),
+            new TupleLiteral(null, null, 4, "four"),
+            new TupleLiteral(null, null, null, "none")
+        };
+        assert sameResultsUnordered(rightExpected,
+            evaluate(makeJoin(JoinType.RIGHT_OUTER)));
+    }
+
+
+    public void testSemiAndAntiJoins() throws Exception {
+        TupleLiteral[] semiExpected = {
+            new TupleLiteral(2, 20),
+            new TupleLiteral(2, 21),
+            new TupleLiteral(3, 30)
+        };
+        assert sameResultsUnordered(semiExpected,
+            evaluate(makeJoin(JoinType.SEMIJOIN)));
+
+        TupleLiteral[] antiExpected = {
+            new TupleLiteral(1, 10),
+            new TupleLiteral(null, 40),
+            new TupleLiteral(5, 50)
+        };
+        assert sameResultsUnordered(antiExpected,
+            evaluate(makeJoin(JoinType.ANTIJOIN)));
+    }
+
+
+    /**
+     * Checks that reading a join's results a batch at a time produces the
+     * same rows, in the same order, as reading them a tuple at a time.
+     */
+    public void testBatches() throws Exception {
+        for (JoinType joinType : new JoinType[] {JoinType.INNER,
+            JoinType.LEFT_OUTER, JoinType.RIGHT_OUTER, JoinType.SEMIJOIN,
+            JoinType.ANTIJOIN}) {
+
+            HashJoinNode join = makeJoin(joinType);
+            assert evaluate(join, true).equals(evaluate(join)) : joinType;
+        }
+
+        HashJoinNode swapped = makeJoin(JoinType.RIGHT_OUTER);
+        swapped.swap();
+        assert evaluate(swapped, true).equals(evaluate(swapped));
+    }
+
+
+    /**
+     * Joins two tables whose build side is much larger than the working
+     * memory, so that the join must partition both inputs to disk.
+     */
+    public void testSpillingJoin() throws Exception {
+        tryDoCommand("CREATE TABLE test_hj_big1 (a INTEGER, b VARCHAR(30));",
+            false);
+        tryDoCommand("CREATE TABLE test_hj_big2 (a INTEGER, c VARCHAR(30));",
+            false);
+
+        TableManager tableManager = server.getStorageManager().getTableManager();
+        TupleFile big1 = tableManager.openTable("TEST_HJ_BIG1").getTupleFile();
+        TupleFile big2 = tableManager.openTable("TEST_HJ_BIG2").getTupleFile();
+        for (int i = 0; i < NUM_BIG_ROWS; i++) {
+            big1.addTuple(new TupleLiteral(i, "left row " + i));
+
+            // Every third key appears twice on the build side, and every
+            // fifth key is missing.
+            if (i % 5 != 0)
+                big2.addTuple(new TupleLiteral(i, "right row " + i));
+            if (i % 3 == 0)
+                big2.addTuple(new TupleLiteral(i, "extra row " + i));
+        }
+
+        String oldWorkMem = System.getProperty(PlanUtils.PROP_WORK_MEM);
+        System.setProperty(PlanUtils.PROP_WORK_MEM, "8192");
+        try {
+            for (JoinType joinType : new JoinType[] {JoinType.INNER,
+                JoinType.LEFT_OUTER, JoinType.RIGHT_OUTER, JoinType.SEMIJOIN,
+                JoinType.ANTIJOIN}) {
+
+                HashJoinNode join = new HashJoinNode(scan("TEST_HJ_BIG1"),
+                    scan("TEST_HJ_BIG2"), joinType,
+                    equals("TEST_HJ_BIG1", "TEST_HJ_BIG2", "A"));
+
+                // The batch results must contain the same rows.
+                int[] batchCounts = new int[NUM_BIG_ROWS];
+                for (TupleLiteral tup : evaluate(join, true))
+                    batchCounts[(Integer) tup.getColumnValue(0)]++;
+
+                int[] counts = new int[NUM_BIG_ROWS];
+                for (TupleLiteral tup : evaluate(join)) {
+                    int a = (Integer) tup.getColumnValue(0);
+                    counts[a]++;
+
+                    if (joinType == JoinType.INNER ||
+                        joinType == JoinType.LEFT_OUTER) {
+                        assert tup.getColumnValue(1).equals("left row " + a);
+                    }
+                }
+
+                for (int i = 0; i < NUM_BIG_ROWS; i++) {
+                    int matches = (i % 5 != 0 ? 1 : 0) + (i % 3 == 0 ? 1 : 0);
+
+                    int expected;
+                    switch (joinType) {
+                        case INNER:
+                        case RIGHT_OUTER:
+                            expected = matches;
+                            break;
+                        case LEFT_OUTER:
+                            expected = Math.max(1, matches);
+                            break;
+                        case SEMIJOIN:
+                            expected = (matches > 0) ? 1 : 0;
+                            break;
+                        default:
+                            expected = (matches > 0) ? 0 : 1;
+                    }
+
+                    assert counts[i] == expected :
+                        joinType + " produced " + counts[i] + " rows for " +
+                        i + ", expected " + expected;
+                    assert batchCounts[i] == expected :
+                        joinType + " produced " + batchCounts[i] +
+                        " rows in batches for " + i + ", expected " + expected;
+                }
+            }
+        }
+        finally {
+            if (oldWorkMem != null)
+                System.setProperty(PlanUtils.PROP_WORK_MEM, oldWorkMem);
+            else
+                System.clearProperty(PlanUtils.PROP_WORK_MEM);
+        }
+    }
+
+
+    /**
+     * Checks that the planner uses a hash join for an equijoin of two tables
+     * with statistics, and that the query produces the right results.
+     */
+    public void testPlannerChoosesHashJoin() throws Exception {
+        tryDoCommand("ANALYZE test_hj_t1, test_hj_t2;", false);
+
+        String query = "SELECT t1.a, t1.b, t2.a, t2.c " +
+            "FROM test_hj_t1 t1 JOIN test_hj_t2 t2 ON t1.a = t2.a";
+
+        String planString = getPlanString(query);
+        assert planString.contains("HashJoin[") : planString;
+
+        assert sameResultsUnordered(INNER_RESULTS, getResultTuples(query));
+    }
+}
@@ -0,0 +1,112 @@
+package edu.caltech.test.nanodb.plannodes;
+
+
+import java.io.File;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.plannodes.PlanNode;
+import edu.caltech.nanodb.plannodes.PlanUtils;
+import edu.caltech.nanodb.storage.SpillFile;
+import edu.caltech.nanodb.storage.TableManager;
+import edu.caltech.nanodb.storage.TupleFile;
+
+import edu.caltech.test.nanodb.sql.SqlTestCase;
+
+
+/**
+ * This class exercises the hashed grouping/aggregate plan node with many
+ * more groups than fit in its working memory, so that it must spill the
+ * input of some groups to disk and aggregate them in later passes.
+ */
+@Test
+public class TestHashedGroupAggregateNode extends SqlTestCase {
+
+    private static final int NUM_ROWS = 3000;
+
+    private static final int NUM_GROUPS = 700;
+
+
+    public TestHashedGroupAggregateNode() {
+        super("setup_testHashedAggregates");
+    }
+
+
+    @BeforeClass
+    public void loadRows() throws Exception {
+        TableManager tableManager = server.getStorageManager().getTableManager();
+        TupleFile tupleFile =
+            tableManager.openTable("TEST_HGA_T1").getTupleFile();
+
+        for (int i = 0; i < NUM_ROWS; i++)
+            tupleFile.addTuple(new TupleLiteral(i % NUM_GROUPS, i));
+    }
+
+
+    /** Checks the aggregates computed for every group. */
+    private static void checkGroups(List<TupleLiteral> results) {
+        assert results.size() == NUM_GROUPS : results.size();
+
+        boolean[] seen = new boolean[NUM_GROUPS];
+        for (TupleLiteral tup : results) {
+            int a = (Integer) tup.getColumnValue(0);
+            assert !seen[a] : "Group " + a + " produced twice";
+            seen[a] = true;
+
+            int count = 0;
+            int sum = 0;
+            for (int b = a; b < NUM_ROWS; b += NUM_GROUPS) {
+                count++;
+                sum += b;
+            }
+            int max = a + (count - 1) * NUM_GROUPS;
+
+            TupleLiteral expected = new TupleLiteral(a, count, sum, a, max);
+            assert tup.equals(expected) : tup + ", expected " + expected;
+        }
+    }
+
+
+    public void testSpillingAggregate() throws Exception {
+        String query = "SELECT a, COUNT(b), SUM(b), MIN(b), MAX(b) " +
+            "FROM test_hga_t1 GROUP BY a";
+
+        // With the default working memory, no spilling is needed.
+        checkGroups(getResultTuples(query));
+        checkGroups(evaluate(makePlan(query), true));
+
+        File spillDir = new File("test_datafiles", "spill");
+        spillDir.mkdirs();
+
+        String oldWorkMem = System.getProperty(PlanUtils.PROP_WORK_MEM);
+        System.setProperty(PlanUtils.PROP_WORK_MEM, "4096");
+        System.setProperty(SpillFile.PROP_SPILL_DIR, spillDir.getPath());
+        try {
+            checkGroups(getResultTuples(query));
+            checkGroups(evaluate(makePlan(query), true));
+
+            // Producing the first group aggregates the in-memory groups,
+            // spilling the input of the rest.
+            PlanNode plan = makePlan(query);
+            plan.initialize();
+            assert plan.getNextTuple() != null;
+            assert spillDir.list().length > 0;
+
+            plan.cleanUp();
+            assert spillDir.list().length == 0 : spillDir.list().length;
+        }
+        finally {
+            if (oldWorkMem != null)
+                System.setProperty(PlanUtils.PROP_WORK_MEM, oldWorkMem);
+            else
+                System.clearProperty(PlanUtils.PROP_WORK_MEM);
+
+            System.clearProperty(SpillFile.PROP_SPILL_DIR);
+            FileUtils.deleteDirectory(spillDir);
+        }
+    }
+}
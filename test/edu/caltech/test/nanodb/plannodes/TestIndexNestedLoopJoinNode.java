@@ -0,0 +1,232 @@
+package edu.caltech.test.nanodb.plannodes;
+
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.BooleanOperator;
+import edu.caltech.nanodb.expressions.ColumnName;
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.CompareOperator;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.LiteralValue;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.indexes.IndexInfo;
+import edu.caltech.nanodb.plannodes.FileScanNode;
+import edu.caltech.nanodb.plannodes.IndexNestedLoopJoinNode;
+import edu.caltech.nanodb.relations.JoinType;
+import edu.caltech.nanodb.relations.TableInfo;
+import edu.caltech.nanodb.storage.TableManager;
+import edu.caltech.nanodb.storage.TupleFile;
+
+import edu.caltech.test.nanodb.sql.SqlTestCase;
+
+
+/**
+ * This class exercises the index nested-loop join plan node with each of the
+ * join types it supports, and checks that the planner chooses it when the
+ * outer relation is much smaller than the indexed inner relation.
+ */
+@Test
+public class TestIndexNestedLoopJoinNode extends SqlTestCase {
+
+    public TestIndexNestedLoopJoinNode() {
+        super("setup_testIndexJoins");
+    }
+
+
+    private FileScanNode scan(String tableName, Expression predicate)
+        throws Exception {
+
+        TableManager tableManager = server.getStorageManager().getTableManager();
+        TableInfo tableInfo = tableManager.openTable(tableName);
+        return new FileScanNode(tableInfo, predicate);
+    }
+
+
+    private IndexInfo openIndex(String tableName, String indexName)
+        throws Exception {
+
+        TableManager tableManager = server.getStorageManager().getTableManager();
+        TableInfo tableInfo = tableManager.openTable(tableName);
+        return server.getStorageManager().getIndexManager().openIndex(
+            tableInfo, indexName);
+    }
+
+
+    private static Expression keysEqual() {
+        return new CompareOperator(CompareOperator.Type.EQUALS,
+            new ColumnValue(new ColumnName("TEST_IJ_T1", "A")),
+            new ColumnValue(new ColumnName("TEST_IJ_T2", "A")));
+    }
+
+
+    private IndexNestedLoopJoinNode makeJoin(JoinType joinType,
+        Expression predicate, Expression innerPredicate) throws Exception {
+
+        return new IndexNestedLoopJoinNode(scan("TEST_IJ_T1", null),
+            scan("TEST_IJ_T2", innerPredicate),
+            openIndex("TEST_IJ_T2", "IDX_IJ_T2_A"), joinType, predicate);
+    }
+
+
+    private static final TupleLiteral[] INNER_RESULTS = {
+        new TupleLiteral(2, 20, 2, "two"),
+        new TupleLiteral(2, 20, 2, "deux"),
+        new TupleLiteral(2, 21, 2, "two"),
+        new TupleLiteral(2, 21, 2, "deux"),
+        new TupleLiteral(3, 30, 3, "three")
+    };
+
+
+    public void testInnerJoin() throws Exception {
+        IndexNestedLoopJoinNode join =
+            makeJoin(JoinType.INNER, keysEqual(), null);
+        assert sameResultsUnordered(INNER_RESULTS, evaluate(join));
+        assert join.getNumProbeColumns() == 1;
+    }
+
+
+    public void testInnerJoinWithFilters() throws Exception {
+        BooleanOperator pred =
+            new BooleanOperator(BooleanOperator.Type.AND_EXPR);
+        pred.addTerm(keysEqual());
+        pred.addTerm(new CompareOperator(
+            CompareOperator.Type.GREATER_THAN,
+            new ColumnValue(new ColumnName("TEST_IJ_T1", "B")),
+            new LiteralValue(20)));
+
+        // The predicate of the inner scan is applied to the tuples that the
+        // index leads to.
+        Expression innerPred = new CompareOperator(
+            CompareOperator.Type.NOT_EQUALS,
+            new ColumnValue(new ColumnName("TEST_IJ_T2", "C")),
+            new LiteralValue("deux"));
+
+        TupleLiteral[] expected = {
+            new TupleLiteral(2, 21, 2, "two"),
+            new TupleLiteral(3, 30, 3, "three")
+        };
+        assert sameResultsUnordered(expected,
+            evaluate(makeJoin(JoinType.INNER, pred, innerPred)));
+    }
+
+
+    public void testOuterJoins() throws Exception {
+        TupleLiteral[] leftExpected = {
+            new TupleLiteral(1, 10, null, null),
+            new TupleLiteral(2, 20, 2, "two"),
+            new TupleLiteral(2, 20, 2, "deux"),
+            new TupleLiteral(2, 21, 2, "two"),
+            new TupleLiteral(2, 21, 2, "deux"),
+            new TupleLiteral(3, 30, 3, "three"),
+            new TupleLiteral(null, 40, null, null),
+            new TupleLiteral(5, 50, null, null)
+        };
+        assert sameResultsUnordered(leftExpected,
+            evaluate(makeJoin(JoinType.LEFT_OUTER, keysEqual(), null)));
+
+        // A right-outer join that probes the index on its left input, by
+        // evaluating it as a left-outer join with the inputs swapped.  The
+        // columns of the left input still come first.
+        IndexNestedLoopJoinNode swapped = new IndexNestedLoopJoinNode(
+            scan("TEST_IJ_T2", null), scan("TEST_IJ_T1", null),
+            openIndex("TEST_IJ_T2", "IDX_IJ_T2_A"), JoinType.LEFT_OUTER,
+            keysEqual());
+        swapped.swap();
+
+        TupleLiteral[] rightExpected = new TupleLiteral[leftExpected.length];
+        for (int i = 0; i < leftExpected.length; i++) {
+            TupleLiteral tup = leftExpected[i];
+            rightExpected[i] = new TupleLiteral(tup.getColumnValue(2),
+                tup.getColumnValue(3), tup.getColumnValue(0),
+                tup.getColumnValue(1));
+        }
+        assert sameResultsUnordered(rightExpected, evaluate(swapped));
+    }
+
+
+    public void testSemiAndAntiJoins() throws Exception {
+        TupleLiteral[] semiExpected = {
+            new TupleLiteral(2, 20),
+            new TupleLiteral(2, 21),
+            new TupleLiteral(3, 30)
+        };
+        assert sameResultsUnordered(semiExpected,
+            evaluate(makeJoin(JoinType.SEMIJOIN, keysEqual(), null)));
+
+        TupleLiteral[] antiExpected = {
+            new TupleLiteral(1, 10),
+            new TupleLiteral(null, 40),
+            new TupleLiteral(5, 50)
+        };
+        assert sameResultsUnordered(antiExpected,
+            evaluate(makeJoin(JoinType.ANTIJOIN, keysEqual(), null)));
+    }
+
+
+    /**
+     * Checks that probe values outside the range of the index column's type
+     * don't match any inner tuple, rather than wrapping around to a value
+     * that does.
+     */
+    public void testOutOfRangeProbeValues() throws Exception {
+        tryDoCommand("CREATE TABLE test_ij_wide (a BIGINT, b INTEGER);",
+            false);
+        tryDoCommand("INSERT INTO test_ij_wide VALUES (4294967298L, 1);",
+            false);
+        tryDoCommand("INSERT INTO test_ij_wide VALUES (3, 2);", false);
+
+        Expression pred = new CompareOperator(CompareOperator.Type.EQUALS,
+            new ColumnValue(new ColumnName("TEST_IJ_WIDE", "A")),
+            new ColumnValue(new ColumnName("TEST_IJ_T2", "A")));
+
+        IndexNestedLoopJoinNode join = new IndexNestedLoopJoinNode(
+            scan("TEST_IJ_WIDE", null), scan("TEST_IJ_T2", null),
+            openIndex("TEST_IJ_T2", "IDX_IJ_T2_A"), JoinType.INNER, pred);
+
+        TupleLiteral[] expected = {
+            new TupleLiteral(3L, 2, 3, "three")
+        };
+        assert sameResultsUnordered(expected, evaluate(join));
+    }
+
+
+    /**
+     * Checks that the planner probes the index of a large inner table when
+     * the outer table is small, on whichever side of the join the indexed
+     * table appears, and that the queries produce the right results.
+     */
+    public void testPlannerChoosesIndexJoin() throws Exception {
+        tryDoCommand("CREATE TABLE test_ij_big (a INTEGER, c VARCHAR(20));",
+            false);
+
+        TableManager tableManager = server.getStorageManager().getTableManager();
+        TupleFile big = tableManager.openTable("TEST_IJ_BIG").getTupleFile();
+        for (int i = 0; i < 500; i++)
+            big.addTuple(new TupleLiteral(i, "row " + i));
+
+        // Creating the index populates it from the existing rows.
+        tryDoCommand("CREATE INDEX idx_ij_big_a ON test_ij_big (a);", false);
+        tryDoCommand("ANALYZE test_ij_t1, test_ij_big;", false);
+
+        TupleLiteral[] expected = {
+            new TupleLiteral(1, 10, 1, "row 1"),
+            new TupleLiteral(2, 20, 2, "row 2"),
+            new TupleLiteral(2, 21, 2, "row 2"),
+            new TupleLiteral(3, 30, 3, "row 3"),
+            new TupleLiteral(5, 50, 5, "row 5")
+        };
+
+        String query = "SELECT t1.a, t1.b, big.a, big.c " +
+            "FROM test_ij_t1 t1 JOIN test_ij_big big ON t1.a = big.a";
+        assert getPlanString(query).contains("IndexNestedLoop[") :
+            getPlanString(query);
+        assert sameResultsUnordered(expected, getResultTuples(query));
+
+        query = "SELECT t1.a, t1.b, big.a, big.c " +
+            "FROM test_ij_big big JOIN test_ij_t1 t1 ON t1.a = big.a";
+        assert getPlanString(query).contains("IndexNestedLoop[") :
+            getPlanString(query);
+        assert sameResultsUnordered(expected, getResultTuples(query));
+    }
+}
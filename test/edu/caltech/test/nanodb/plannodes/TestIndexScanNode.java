@@ -0,0 +1,172 @@
+package edu.caltech.test.nanodb.plannodes;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.indexes.IndexInfo;
+import edu.caltech.nanodb.plannodes.IndexScanNode;
+import edu.caltech.nanodb.relations.TableInfo;
+import edu.caltech.nanodb.storage.TableManager;
+import edu.caltech.nanodb.storage.TupleFile;
+
+import edu.caltech.test.nanodb.sql.SqlTestCase;
+
+
+/**
+ * This class exercises the index scan plan node with equality, range and
+ * <tt>IN</tt>-list key ranges, and checks that the planner uses it for
+ * selective predicates on indexed columns.
+ */
+@Test
+public class TestIndexScanNode extends SqlTestCase {
+
+    public TestIndexScanNode() {
+        super("setup_testIndexScans");
+    }
+
+
+    private IndexInfo openIndex(String tableName, String indexName)
+        throws Exception {
+
+        TableManager tableManager = server.getStorageManager().getTableManager();
+        TableInfo tableInfo = tableManager.openTable(tableName);
+        return server.getStorageManager().getIndexManager().openIndex(
+            tableInfo, indexName);
+    }
+
+
+    /** Returns the values of column A of the tuples, in order. */
+    private static List<Object> keysOf(List<TupleLiteral> tuples) {
+        List<Object> keys = new ArrayList<>();
+        for (TupleLiteral tup : tuples)
+            keys.add(tup.getColumnValue(0));
+
+        return keys;
+    }
+
+
+    public void testScanKeyRanges() throws Exception {
+        IndexInfo indexInfo = openIndex("TEST_IS_T1", "IDX_IS_T1_A");
+
+        List<IndexScanNode.KeyRange> ranges = new ArrayList<>();
+        ranges.add(new IndexScanNode.KeyRange(7, true, null, false));
+        ranges.add(new IndexScanNode.KeyRange(3));
+        ranges.add(new IndexScanNode.KeyRange(null, false, 2, false));
+
+        // The ranges are read in increasing order, skipping NULL keys.
+        List<TupleLiteral> results =
+            evaluate(new IndexScanNode(indexInfo, ranges, null));
+        assert keysOf(results).toString().equals("[1, 3, 3, 7, 8, 10]") :
+            results;
+
+        // A key range with no entries.
+        ranges.clear();
+        ranges.add(new IndexScanNode.KeyRange(4));
+        assert evaluate(new IndexScanNode(indexInfo, ranges, null)).isEmpty();
+
+        // Every key.
+        ranges.clear();
+        ranges.add(new IndexScanNode.KeyRange());
+        assert evaluate(new IndexScanNode(indexInfo, ranges, null)).size() == 8;
+    }
+
+
+    public void testQueriesUsingKeyRanges() throws Exception {
+        tryDoCommand("ANALYZE test_is_t1;", false);
+
+        String[] queries = {
+            "SELECT * FROM test_is_t1 WHERE a = 3",
+            "SELECT * FROM test_is_t1 WHERE 3 = a",
+            "SELECT * FROM test_is_t1 t WHERE t.a BETWEEN 2 AND 5",
+            "SELECT * FROM test_is_t1 WHERE a > 2 AND a <= 7 AND b <> 'five'",
+            "SELECT * FROM test_is_t1 WHERE a IN (10, 1, 3, 4, NULL)",
+            "SELECT * FROM test_is_t1 WHERE a < 2.5",
+            "SELECT * FROM test_is_t1 WHERE a = 3.5",
+            "SELECT * FROM test_is_t1 WHERE a > 5 AND a < 3",
+            "SELECT * FROM test_is_t1 WHERE a < 3000000000L",
+            "SELECT * FROM test_is_t1 WHERE a > -3000000000L AND a < 3",
+            "SELECT * FROM test_is_t1 WHERE a >= 3000000000L",
+            "SELECT * FROM test_is_t1 WHERE a = 4294967298L",
+            "SELECT * FROM test_is_t1 WHERE a IN (4294967298L, 7)"
+        };
+
+        String[] expected = {
+            "[3, 3]",
+            "[3, 3]",
+            "[2, 3, 3, 5]",
+            "[3, 3, 7]",
+            "[1, 3, 3, 10]",
+            "[1, 2]",
+            "[]",
+            "[]",
+            "[1, 2, 3, 3, 5, 7, 8, 10]",
+            "[1, 2]",
+            "[]",
+            "[]",
+            "[7]"
+        };
+
+        for (int i = 0; i < queries.length; i++) {
+            List<Object> keys = keysOf(getResultTuples(queries[i]));
+            List<Object> sortedKeys = new ArrayList<>(keys);
+            sortedKeys.sort(null);
+            assert sortedKeys.toString().equals(expected[i]) :
+                queries[i] + " produced " + keys;
+        }
+    }
+
+
+    /**
+     * Checks that the planner reads a large table through its index for a
+     * selective predicate, even when the matching keys span several leaf
+     * pages of the index, but scans the table for an unselective predicate.
+     */
+    public void testPlannerChoosesIndexScan() throws Exception {
+        tryDoCommand("CREATE TABLE test_is_big (a INTEGER, b INTEGER);",
+            false);
+
+        TableManager tableManager = server.getStorageManager().getTableManager();
+        TupleFile big = tableManager.openTable("TEST_IS_BIG").getTupleFile();
+        for (int i = 0; i < 3000; i++)
+            big.addTuple(new TupleLiteral(i % 100 < 90 ? i % 6 : i, i));
+
+        tryDoCommand("CREATE INDEX idx_is_big_a ON test_is_big (a);", false);
+        tryDoCommand("ANALYZE test_is_big;", false);
+
+        String query = "SELECT * FROM test_is_big WHERE a = 1291";
+        assert getPlanString(query).contains("IndexScan[") :
+            getPlanString(query);
+
+        List<TupleLiteral> results = getResultTuples(query);
+        assert results.size() == 1 && results.get(0).getColumnValue(1)
+            .equals(1291) : results;
+
+        query = "SELECT * FROM test_is_big WHERE a IN (1991, 2999, 5000)";
+        assert getPlanString(query).contains("IndexScan[") :
+            getPlanString(query);
+        assert getResultTuples(query).size() == 2;
+
+        // Keys 0 through 5 each appear 450 times, so their index entries
+        // span several leaf pages.
+        query = "SELECT * FROM test_is_big WHERE a BETWEEN 3 AND 4";
+        results = getResultTuples(query);
+        assert results.size() == 900 : results.size();
+        for (TupleLiteral tup : results) {
+            int b = (Integer) tup.getColumnValue(1);
+            assert b % 100 < 90 && (b % 6 == 3 || b % 6 == 4) : tup;
+        }
+
+        List<IndexScanNode.KeyRange> ranges = new ArrayList<>();
+        ranges.add(new IndexScanNode.KeyRange(2));
+        assert evaluate(new IndexScanNode(openIndex("TEST_IS_BIG",
+            "IDX_IS_BIG_A"), ranges, null)).size() == 450;
+
+        query = "SELECT * FROM test_is_big WHERE a >= 0";
+        assert getPlanString(query).contains("FileScan[") :
+            getPlanString(query);
+    }
+}
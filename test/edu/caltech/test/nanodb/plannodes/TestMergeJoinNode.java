@@ -0,0 +1,279 @@
+package edu.caltech.test.nanodb.plannodes;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.BooleanOperator;
+import edu.caltech.nanodb.expressions.ColumnName;
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.CompareOperator;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.LiteralValue;
+import edu.caltech.nanodb.expressions.OrderByExpression;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.plannodes.FileScanNode;
+import edu.caltech.nanodb.plannodes.MergeJoinNode;
+import edu.caltech.nanodb.plannodes.PlanNode;
+import edu.caltech.nanodb.plannodes.SortNode;
+import edu.caltech.nanodb.relations.JoinType;
+import edu.caltech.nanodb.relations.TableInfo;
+import edu.caltech.nanodb.storage.TableManager;
+import edu.caltech.nanodb.storage.TupleFile;
+
+import edu.caltech.test.nanodb.sql.SqlTestCase;
+
+
+/**
+ * This class exercises the merge-join plan node with each of the join types
+ * it supports, and checks that the planner chooses it for inputs that are
+ * already ordered on the join keys.
+ */
+@Test
+public class TestMergeJoinNode extends SqlTestCase {
+
+    public TestMergeJoinNode() {
+        super("setup_testMergeJoins");
+    }
+
+
+    /** Returns a scan of the table, sorted on column A. */
+    private PlanNode sortedScan(String tableName) throws Exception {
+        TableManager tableManager = server.getStorageManager().getTableManager();
+        TableInfo tableInfo = tableManager.openTable(tableName);
+
+        List<OrderByExpression> orderByExprs = new ArrayList<>();
+        orderByExprs.add(new OrderByExpression(
+            new ColumnValue(new ColumnName(tableName, "A"))));
+
+        return new SortNode(new FileScanNode(tableInfo, null), orderByExprs);
+    }
+
+
+    private static Expression keysEqual() {
+        return new CompareOperator(CompareOperator.Type.EQUALS,
+            new ColumnValue(new ColumnName("TEST_MJ_T1", "A")),
+            new ColumnValue(new ColumnName("TEST_MJ_T2", "A")));
+    }
+
+
+    private MergeJoinNode makeJoin(JoinType joinType, Expression predicate)
+        throws Exception {
+
+        return new MergeJoinNode(sortedScan("TEST_MJ_T1"),
+            sortedScan("TEST_MJ_T2"), joinType, predicate);
+    }
+
+
+    private static final TupleLiteral[] INNER_RESULTS = {
+        new TupleLiteral(2, 20, 2, "two"),
+        new TupleLiteral(2, 20, 2, "deux"),
+        new TupleLiteral(2, 21, 2, "two"),
+        new TupleLiteral(2, 21, 2, "deux"),
+        new TupleLiteral(2, 22, 2, "two"),
+        new TupleLiteral(2, 22, 2, "deux"),
+        new TupleLiteral(3, 30, 3, "three"),
+        new TupleLiteral(6, 60, 6, "six"),
+        new TupleLiteral(6, 60, 6, "seis")
+    };
+
+
+    public void testInnerJoin() throws Exception {
+        List<TupleLiteral> results =
+            evaluate(makeJoin(JoinType.INNER, keysEqual()));
+        assert sameResultsUnordered(INNER_RESULTS, results);
+
+        // The results come out in the order of the left input.
+        for (int i = 1; i < results.size(); i++) {
+            assert (Integer) results.get(i - 1).getColumnValue(0) <=
+                (Integer) results.get(i).getColumnValue(0);
+        }
+    }
+
+
+    public void testInnerJoinWithResidual() throws Exception {
+        MergeJoinNode join = makeJoin(JoinType.INNER, bGreaterThan20());
+
+        TupleLiteral[] expected = {
+            new TupleLiteral(2, 21, 2, "two"),
+            new TupleLiteral(2, 21, 2, "deux"),
+            new TupleLiteral(2, 22, 2, "two"),
+            new TupleLiteral(2, 22, 2, "deux"),
+            new TupleLiteral(3, 30, 3, "three"),
+            new TupleLiteral(6, 60, 6, "six"),
+            new TupleLiteral(6, 60, 6, "seis")
+        };
+        assert sameResultsUnordered(expected, evaluate(join));
+        assert join.getNumJoinKeys() == 1;
+    }
+
+
+    /**
+     * Checks that reading a join's results a batch at a time produces the
+     * same rows, in the same order, as reading them a tuple at a time.
+     */
+    public void testBatches() throws Exception {
+        for (JoinType joinType : new JoinType[] {JoinType.INNER,
+            JoinType.LEFT_OUTER, JoinType.SEMIJOIN, JoinType.ANTIJOIN}) {
+
+            MergeJoinNode join = makeJoin(joinType, keysEqual());
+            assert evaluate(join, true).equals(evaluate(join)) : joinType;
+
+            join = makeJoin(joinType, bGreaterThan20());
+            assert evaluate(join, true).equals(evaluate(join)) : joinType;
+        }
+    }
+
+
+    private static Expression bGreaterThan20() {
+        BooleanOperator pred =
+            new BooleanOperator(BooleanOperator.Type.AND_EXPR);
+        pred.addTerm(keysEqual());
+        pred.addTerm(new CompareOperator(
+            CompareOperator.Type.GREATER_THAN,
+            new ColumnValue(new ColumnName("TEST_MJ_T1", "B")),
+            new LiteralValue(20)));
+
+        return pred;
+    }
+
+
+    public void testOuterJoins() throws Exception {
+        TupleLiteral[] leftExpected = {
+            new TupleLiteral(null, 40, null, null),
+            new TupleLiteral(1, 10, null, null),
+            new TupleLiteral(2, 20, 2, "two"),
+            new TupleLiteral(2, 20, 2, "deux"),
+            new TupleLiteral(2, 21, 2, "two"),
+            new TupleLiteral(2, 21, 2, "deux"),
+            new TupleLiteral(2, 22, 2, "two"),
+            new TupleLiteral(2, 22, 2, "deux"),
+            new TupleLiteral(3, 30, 3, "three"),
+            new TupleLiteral(5, 50, null, null),
+            new TupleLiteral(6, 60, 6, "six"),
+            new TupleLiteral(6, 60, 6, "seis")
+        };
+        assert sameResultsUnordered(leftExpected,
+            evaluate(makeJoin(JoinType.LEFT_OUTER, keysEqual())));
+
+        // A right-outer join, evaluated as a left-outer join with the inputs
+        // swapped.
+        MergeJoinNode swapped = new MergeJoinNode(sortedScan("TEST_MJ_T1"),
+            sortedScan("TEST_MJ_T2"), JoinType.LEFT_OUTER, keysEqual());
+        swapped.swap();
+
+        TupleLiteral[] rightExpected = new TupleLiteral[INNER_RESULTS.length + 2];
+        System.arraycopy(INNER_RESULTS, 0, rightExpected, 0,
+            INNER_RESULTS.length);
+        rightExpected[INNER_RESULTS.length] =
+            new TupleLiteral(null, null, 4, "four");
+        rightExpected[INNER_RESULTS.length + 1] =
+            new TupleLiteral(null, null, null, "none");
+
+        assert sameResultsUnordered(rightExpected, evaluate(swapped));
+    }
+
+
+    public void testSemiAndAntiJoins() throws Exception {
+        TupleLiteral[] semiExpected = {
+            new TupleLiteral(2, 20),
+            new TupleLiteral(2, 21),
+            new TupleLiteral(2, 22),
+            new TupleLiteral(3, 30),
+            new TupleLiteral(6, 60)
+        };
+        assert sameResultsUnordered(semiExpected,
+            evaluate(makeJoin(JoinType.SEMIJOIN, keysEqual())));
+
+        TupleLiteral[] antiExpected = {
+            new TupleLiteral(1, 10),
+            new TupleLiteral(null, 40),
+            new TupleLiteral(5, 50)
+        };
+        assert sameResultsUnordered(antiExpected,
+            evaluate(makeJoin(JoinType.ANTIJOIN, keysEqual())));
+
+        // With a residual predicate, (2, 20) no longer has a match.
+        TupleLiteral[] antiResidualExpected = {
+            new TupleLiteral(1, 10),
+            new TupleLiteral(2, 20),
+            new TupleLiteral(null, 40),
+            new TupleLiteral(5, 50)
+        };
+        assert sameResultsUnordered(antiResidualExpected,
+            evaluate(makeJoin(JoinType.ANTIJOIN, bGreaterThan20())));
+    }
+
+
+    /**
+     * Checks that the right input of a merge join can be rewound after it
+     * has been exhausted, which happens when the last key of the right input
+     * matches several tuples of the left input.
+     */
+    public void testRewindExhaustedRightInput() throws Exception {
+        tryDoCommand("CREATE TABLE test_mj_rw1 (a INTEGER, b INTEGER) " +
+            "PROPERTIES (storage = 'btree');", false);
+        tryDoCommand("CREATE TABLE test_mj_rw2 (a INTEGER, c INTEGER) " +
+            "PROPERTIES (storage = 'btree');", false);
+
+        TableManager tableManager = server.getStorageManager().getTableManager();
+        TableInfo rw1 = tableManager.openTable("TEST_MJ_RW1");
+        TableInfo rw2 = tableManager.openTable("TEST_MJ_RW2");
+        for (int i = 0; i < 3; i++)
+            rw1.getTupleFile().addTuple(new TupleLiteral(5, i));
+        rw2.getTupleFile().addTuple(new TupleLiteral(1, 10));
+        rw2.getTupleFile().addTuple(new TupleLiteral(5, 50));
+
+        Expression pred = new CompareOperator(CompareOperator.Type.EQUALS,
+            new ColumnValue(new ColumnName("TEST_MJ_RW1", "A")),
+            new ColumnValue(new ColumnName("TEST_MJ_RW2", "A")));
+        MergeJoinNode join = new MergeJoinNode(new FileScanNode(rw1, null),
+            new FileScanNode(rw2, null), JoinType.INNER, pred);
+
+        TupleLiteral[] expected = {
+            new TupleLiteral(5, 0, 5, 50),
+            new TupleLiteral(5, 1, 5, 50),
+            new TupleLiteral(5, 2, 5, 50)
+        };
+        assert sameResultsUnordered(expected, evaluate(join));
+    }
+
+
+    /**
+     * Checks that the planner uses a merge join without any sorting when
+     * both inputs are B<sup>+</sup> tree files ordered on the join key, and
+     * that the query produces the right results.
+     */
+    public void testPlannerChoosesMergeJoin() throws Exception {
+        tryDoCommand("CREATE TABLE test_mj_bt1 (a INTEGER, b INTEGER) " +
+            "PROPERTIES (storage = 'btree');", false);
+        tryDoCommand("CREATE TABLE test_mj_bt2 (a INTEGER, c INTEGER) " +
+            "PROPERTIES (storage = 'btree');", false);
+
+        // Keys 0..24 appear twice on the left; keys 0..9 appear twice and
+        // keys 10..19 once on the right.
+        TableManager tableManager = server.getStorageManager().getTableManager();
+        TupleFile bt1 = tableManager.openTable("TEST_MJ_BT1").getTupleFile();
+        TupleFile bt2 = tableManager.openTable("TEST_MJ_BT2").getTupleFile();
+        for (int i = 0; i < 50; i++)
+            bt1.addTuple(new TupleLiteral(i % 25, i));
+        for (int i = 0; i < 30; i++)
+            bt2.addTuple(new TupleLiteral(i % 20, i));
+
+        tryDoCommand("ANALYZE test_mj_bt1, test_mj_bt2;", false);
+
+        String query = "SELECT * FROM test_mj_bt1 t1 JOIN test_mj_bt2 t2 " +
+            "ON t1.a = t2.a";
+
+        String planString = getPlanString(query);
+        assert planString.contains("MergeJoin[") : planString;
+        assert !planString.contains("Sort[") : planString;
+
+        List<TupleLiteral> results = getResultTuples(query);
+        assert results.size() == 2 * 2 * 10 + 2 * 1 * 10;
+        for (TupleLiteral tup : results)
+            assert tup.getColumnValue(0).equals(tup.getColumnValue(2)) : tup;
+    }
+}
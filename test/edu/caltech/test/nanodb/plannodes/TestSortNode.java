@@ -0,0 +1,183 @@
+package edu.caltech.test.nanodb.plannodes;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.ColumnName;
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.OrderByExpression;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.plannodes.FileScanNode;
+import edu.caltech.nanodb.plannodes.PlanUtils;
+import edu.caltech.nanodb.plannodes.SortNode;
+import edu.caltech.nanodb.relations.TableInfo;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.storage.TableManager;
+import edu.caltech.nanodb.storage.TupleFile;
+
+import edu.caltech.test.nanodb.sql.SqlTestCase;
+
+
+/**
+ * This class exercises the sort plan node, both when its input fits in
+ * memory and when the input must be sorted in runs that are spilled to disk
+ * and merged.
+ */
+@Test
+public class TestSortNode extends SqlTestCase {
+
+    private static final int NUM_ROWS = 3000;
+
+
+    public TestSortNode() {
+        super("setup_testSorts");
+    }
+
+
+    @BeforeClass
+    public void loadRows() throws Exception {
+        TableManager tableManager = server.getStorageManager().getTableManager();
+        TupleFile tupleFile =
+            tableManager.openTable("TEST_SORT_T1").getTupleFile();
+
+        // Each value of A appears three times, and B records the order the
+        // rows were added in.
+        for (int i = 0; i < NUM_ROWS; i++) {
+            Integer a = (i % 100 == 0) ? null : (i * 7919) % 1000;
+            tupleFile.addTuple(new TupleLiteral(a, "row " + i));
+        }
+    }
+
+
+    private SortNode sortOnA(boolean ascending) throws Exception {
+        TableManager tableManager = server.getStorageManager().getTableManager();
+        TableInfo tableInfo = tableManager.openTable("TEST_SORT_T1");
+
+        List<OrderByExpression> orderByExprs = new ArrayList<>();
+        orderByExprs.add(new OrderByExpression(
+            new ColumnValue(new ColumnName("TEST_SORT_T1", "A")), ascending));
+
+        SortNode sort = new SortNode(new FileScanNode(tableInfo, null),
+            orderByExprs);
+        sort.prepare();
+        sort.initialize();
+        return sort;
+    }
+
+
+    private static List<TupleLiteral> readAll(SortNode sort) throws Exception {
+        List<TupleLiteral> results = new ArrayList<>();
+        while (true) {
+            Tuple tup = sort.getNextTuple();
+            if (tup == null)
+                break;
+
+            results.add(new TupleLiteral(tup));
+        }
+
+        return results;
+    }
+
+
+    /**
+     * Checks that the tuples are ordered on column A, and that tuples with
+     * equal keys are still in the order they were added to the table.
+     */
+    private static void checkOrder(List<TupleLiteral> results,
+                                   boolean ascending) {
+        assert results.size() == NUM_ROWS : results.size();
+
+        for (int i = 1; i < results.size(); i++) {
+            Integer prevA = (Integer) results.get(i - 1).getColumnValue(0);
+            Integer a = (Integer) results.get(i).getColumnValue(0);
+
+            int cmp;
+            if (prevA == null)
+                cmp = (a == null) ? 0 : -1;
+            else if (a == null)
+                cmp = 1;
+            else
+                cmp = prevA.compareTo(a);
+
+            if (!ascending)
+                cmp = -cmp;
+
+            assert cmp <= 0 : results.get(i - 1) + " before " + results.get(i);
+
+            if (cmp == 0) {
+                int prevRow = rowNumber(results.get(i - 1));
+                int row = rowNumber(results.get(i));
+                assert prevRow < row :
+                    results.get(i - 1) + " before " + results.get(i);
+            }
+        }
+    }
+
+
+    private static int rowNumber(TupleLiteral tup) {
+        return Integer.parseInt(
+            ((String) tup.getColumnValue(1)).substring("row ".length()));
+    }
+
+
+    public void testInMemorySort() throws Exception {
+        for (boolean ascending : new boolean[] {true, false}) {
+            SortNode sort = sortOnA(ascending);
+            checkOrder(readAll(sort), ascending);
+            sort.cleanUp();
+        }
+    }
+
+
+    /**
+     * Sorts the table with a working memory much smaller than the table,
+     * so that many runs are spilled and must be merged over several passes.
+     */
+    public void testExternalSort() throws Exception {
+        String oldWorkMem = System.getProperty(PlanUtils.PROP_WORK_MEM);
+        System.setProperty(PlanUtils.PROP_WORK_MEM, "16384");
+        try {
+            for (boolean ascending : new boolean[] {true, false}) {
+                SortNode sort = sortOnA(ascending);
+                List<TupleLiteral> results = readAll(sort);
+                checkOrder(results, ascending);
+
+                // Reading the sort again after re-initializing it produces
+                // the same results.
+                sort.initialize();
+                assert readAll(sort).equals(results);
+                sort.cleanUp();
+            }
+
+            // Marking works on the merged results too.
+            SortNode sort = sortOnA(true);
+            List<TupleLiteral> results = readAll(sort);
+            sort.initialize();
+
+            for (int i = 0; i < 1000; i++)
+                sort.getNextTuple();
+
+            sort.markCurrentPosition();
+            for (int i = 0; i < 10; i++)
+                sort.getNextTuple();
+
+            sort.resetToLastMark();
+            List<TupleLiteral> rest = readAll(sort);
+            assert rest.equals(results.subList(999, NUM_ROWS));
+
+            sort.resetToLastMark();
+            assert readAll(sort).equals(rest);
+            sort.cleanUp();
+        }
+        finally {
+            if (oldWorkMem != null)
+                System.setProperty(PlanUtils.PROP_WORK_MEM, oldWorkMem);
+            else
+                System.clearProperty(PlanUtils.PROP_WORK_MEM);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package edu.caltech.test.nanodb.plannodes;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.ColumnName;
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.OrderByExpression;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.plannodes.FileScanNode;
+import edu.caltech.nanodb.plannodes.SortNode;
+import edu.caltech.nanodb.plannodes.TopNSortNode;
+import edu.caltech.nanodb.relations.TableInfo;
+import edu.caltech.nanodb.storage.TableManager;
+
+import edu.caltech.test.nanodb.sql.SqlTestCase;
+
+
+/**
+ * This class exercises the top-N sort plan node, by comparing its results
+ * to the leading results of a full sort, and checks that the planner uses
+ * it for ordered queries with a small limit.
+ */
+@Test
+public class TestTopNSortNode extends SqlTestCase {
+
+    private static final int NUM_ROWS = 12;
+
+
+    public TestTopNSortNode() {
+        super("setup_testTopNSorts");
+    }
+
+
+    private FileScanNode scan() throws Exception {
+        TableManager tableManager = server.getStorageManager().getTableManager();
+        TableInfo tableInfo = tableManager.openTable("TEST_TOPN_T1");
+        return new FileScanNode(tableInfo, null);
+    }
+
+
+    private static List<OrderByExpression> orderOnA(boolean ascending) {
+        List<OrderByExpression> orderByExprs = new ArrayList<>();
+        orderByExprs.add(new OrderByExpression(
+            new ColumnValue(new ColumnName("TEST_TOPN_T1", "A")), ascending));
+        return orderByExprs;
+    }
+
+
+    /**
+     * Checks that the node produces the same leading tuples as a full sort,
+     * including the order of tuples with equal keys, for every limit.
+     */
+    public void testMatchesFullSort() throws Exception {
+        for (boolean ascending : new boolean[] {true, false}) {
+            List<TupleLiteral> sorted =
+                evaluate(new SortNode(scan(), orderOnA(ascending)));
+            assert sorted.size() == NUM_ROWS;
+
+            for (int n = 1; n <= NUM_ROWS + 2; n++) {
+                TopNSortNode topN =
+                    new TopNSortNode(scan(), orderOnA(ascending), n);
+
+                List<TupleLiteral> results = evaluate(topN);
+                assert results.equals(
+                    sorted.subList(0, Math.min(n, NUM_ROWS))) :
+                    "Top " + n + " produced " + results;
+            }
+        }
+    }
+
+
+    public void testPlannerChoosesTopNSort() throws Exception {
+        List<TupleLiteral> sorted =
+            evaluate(new SortNode(scan(), orderOnA(false)));
+
+        String query =
+            "SELECT * FROM test_topn_t1 ORDER BY a DESC LIMIT 4 OFFSET 2";
+        assert getPlanString(query).contains("TopNSort[") :
+            getPlanString(query);
+
+        List<TupleLiteral> results = getResultTuples(query);
+        assert results.equals(sorted.subList(2, 6)) : results;
+
+        // Without a limit, or with a large one, the entire result is sorted.
+        query = "SELECT * FROM test_topn_t1 ORDER BY a DESC OFFSET 2";
+        assert !getPlanString(query).contains("TopNSort[") :
+            getPlanString(query);
+
+        query = "SELECT * FROM test_topn_t1 ORDER BY a DESC LIMIT 100000";
+        assert !getPlanString(query).contains("TopNSort[") :
+            getPlanString(query);
+        assert getResultTuples(query).equals(sorted);
+    }
+}
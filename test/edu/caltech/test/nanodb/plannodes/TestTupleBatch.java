@@ -0,0 +1,272 @@
+package edu.caltech.test.nanodb.plannodes;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.commands.SelectCommand;
+import edu.caltech.nanodb.expressions.ArithmeticOperator;
+import edu.caltech.nanodb.expressions.ColumnName;
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.Environment;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.LiteralValue;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.plannodes.BatchPredicate;
+import edu.caltech.nanodb.plannodes.FileScanNode;
+import edu.caltech.nanodb.plannodes.PlanNode;
+import edu.caltech.nanodb.plannodes.ProjectNode;
+import edu.caltech.nanodb.plannodes.SimpleFilterNode;
+import edu.caltech.nanodb.plannodes.TupleBatch;
+import edu.caltech.nanodb.queryast.SelectValue;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.TableInfo;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.storage.TableManager;
+import edu.caltech.nanodb.storage.TupleFile;
+
+import edu.caltech.test.nanodb.sql.SqlTestCase;
+
+
+/**
+ * This class exercises tuple batches, and checks that plan nodes produce
+ * the same results a batch at a time as they do a tuple at a time.
+ */
+@Test
+public class TestTupleBatch extends SqlTestCase {
+
+    private static final int NUM_ROWS = 2500;
+
+
+    public TestTupleBatch() {
+        super("setup_testTupleBatches");
+    }
+
+
+    @BeforeClass
+    public void loadRows() throws Exception {
+        TupleFile tupleFile = openTable().getTupleFile();
+
+        for (int i = 0; i < NUM_ROWS; i++) {
+            tupleFile.addTuple(new TupleLiteral(i,
+                (i % 10 == 0) ? null : Long.valueOf(3L * i),
+                i / 4.0, (i % 7 == 0) ? null : "row " + i));
+        }
+    }
+
+
+    private TableInfo openTable() throws Exception {
+        TableManager tableManager = server.getStorageManager().getTableManager();
+        return tableManager.openTable("TEST_BATCH_T1");
+    }
+
+
+    private Expression parsePredicate(String where) throws Exception {
+        SelectCommand cmd = (SelectCommand) server.parseCommand(
+            "SELECT * FROM test_batch_t1 WHERE " + where + ";");
+        return cmd.getSelectClause().getWhereExpr();
+    }
+
+
+    private static List<TupleLiteral> evaluateTuples(PlanNode plan)
+        throws Exception {
+
+        List<TupleLiteral> results = new ArrayList<>();
+
+        plan.prepare();
+        plan.initialize();
+        while (true) {
+            Tuple tup = plan.getNextTuple();
+            if (tup == null)
+                break;
+
+            results.add(new TupleLiteral(tup));
+        }
+        plan.cleanUp();
+
+        return results;
+    }
+
+
+    private static List<TupleLiteral> evaluateBatches(PlanNode plan)
+        throws Exception {
+
+        List<TupleLiteral> results = new ArrayList<>();
+
+        plan.prepare();
+        plan.initialize();
+        while (true) {
+            TupleBatch batch = plan.getNextBatch();
+            if (batch == null)
+                break;
+
+            assert batch.getNumSelected() > 0;
+            assert batch.getNumRows() <= batch.getCapacity();
+            assert batch.getSchema().numColumns() ==
+                plan.getSchema().numColumns();
+
+            int[] selection = batch.getSelection();
+            for (int i = 0; i < batch.getNumSelected(); i++)
+                results.add(batch.getTuple(selection[i]));
+        }
+        plan.cleanUp();
+
+        return results;
+    }
+
+
+    public void testBatchValues() throws Exception {
+        Schema schema = openTable().getTupleFile().getSchema();
+        TupleBatch batch = new TupleBatch(schema, 4);
+
+        assert batch.getColumnKind(0) == TupleBatch.INT_COLUMN;
+        assert batch.getColumnKind(1) == TupleBatch.LONG_COLUMN;
+        assert batch.getColumnKind(2) == TupleBatch.DOUBLE_COLUMN;
+        assert batch.getColumnKind(3) == TupleBatch.OBJECT_COLUMN;
+
+        TupleLiteral[] tuples = {
+            new TupleLiteral(1, 10L, 1.5, "one"),
+            new TupleLiteral(null, null, null, null),
+            new TupleLiteral(-3, Long.MAX_VALUE, -0.25, "three")
+        };
+        for (TupleLiteral tup : tuples)
+            batch.addTuple(tup);
+
+        assert batch.getNumRows() == 3 && batch.getNumSelected() == 3;
+        assert !batch.isFull();
+        assert batch.getIntColumn(0)[2] == -3;
+        assert batch.getLongColumn(1)[2] == Long.MAX_VALUE;
+        assert batch.getDoubleColumn(2)[0] == 1.5;
+        assert batch.isNull(0, 1) && !batch.isNull(0, 0);
+
+        for (int row = 0; row < tuples.length; row++) {
+            assert batch.getTuple(row).equals(tuples[row]) :
+                batch.getTuple(row);
+            assert new TupleLiteral(batch.getRowView(row)).equals(tuples[row]);
+        }
+
+        // A value of another type turns the column into a column of
+        // objects, without changing the values already in it.
+        batch.addTuple(new TupleLiteral(4.5f, 4L, 4.0, "four"));
+        assert batch.isFull();
+        assert batch.getColumnKind(0) == TupleBatch.OBJECT_COLUMN;
+        assert batch.getValue(0, 3).equals(4.5f);
+        assert batch.getValue(0, 0).equals(1);
+        assert batch.getValue(0, 1) == null;
+
+        batch.getSelection()[0] = 2;
+        batch.setNumSelected(1);
+        assert batch.getNumSelected() == 1;
+
+        batch.clear();
+        assert batch.getNumRows() == 0 && batch.getNumSelected() == 0;
+    }
+
+
+    /**
+     * Checks that file-scan and filter nodes select the same tuples a batch
+     * at a time as they do a tuple at a time, for predicates that can and
+     * can't be evaluated on the column vectors.
+     */
+    public void testFilteredBatches() throws Exception {
+        String[] predicates = {
+            "a > 1000",
+            "1000 >= a AND b <> 30",
+            "b < 600 AND d <> 'row 101'",
+            "c >= 200",
+            "a = 17 OR d = 'row 5'",
+            "a + b > 4000",
+            "a < 0"
+        };
+
+        int[] numColumnComparisons = { 1, 2, 1, -1, 0, 0, 1 };
+
+        Schema schema = openTable().getTupleFile().getSchema();
+        for (int i = 0; i < predicates.length; i++) {
+            Expression pred = parsePredicate(predicates[i]);
+
+            if (numColumnComparisons[i] >= 0) {
+                BatchPredicate batchPred = new BatchPredicate(pred,
+                    schema, new Environment());
+                assert batchPred.getNumColumnComparisons() ==
+                    numColumnComparisons[i] : predicates[i];
+            }
+
+            List<TupleLiteral> expected =
+                evaluateTuples(new FileScanNode(openTable(), pred));
+
+            List<TupleLiteral> results =
+                evaluateBatches(new FileScanNode(openTable(), pred));
+            assert results.equals(expected) : predicates[i];
+
+            results = evaluateBatches(new SimpleFilterNode(
+                new FileScanNode(openTable(), null), pred));
+            assert results.equals(expected) : predicates[i];
+        }
+
+        assert evaluateBatches(new FileScanNode(openTable(), null)).size() ==
+            NUM_ROWS;
+    }
+
+
+    public void testProjectedBatches() throws Exception {
+        Expression pred = parsePredicate("a >= 2000");
+
+        // A projection of columns shares the vectors of its input batches.
+        List<SelectValue> values = new ArrayList<>();
+        values.add(new SelectValue(new ColumnValue(new ColumnName("D")), null));
+        values.add(new SelectValue(new ColumnValue(new ColumnName("A")), null));
+
+        List<TupleLiteral> results = evaluateBatches(new ProjectNode(
+            new FileScanNode(openTable(), pred), values));
+        assert results.size() == 500;
+        assert results.equals(evaluateTuples(new ProjectNode(
+            new FileScanNode(openTable(), pred), values)));
+
+        for (TupleLiteral tup : results) {
+            int a = (Integer) tup.getColumnValue(1);
+            Object d = tup.getColumnValue(0);
+            assert (a % 7 == 0) ? d == null : d.equals("row " + a) : tup;
+        }
+
+        // A projection that computes values fills its batches one tuple at
+        // a time.
+        values.add(new SelectValue(new ArithmeticOperator(
+            ArithmeticOperator.Type.ADD, new ColumnValue(new ColumnName("A")),
+            new LiteralValue(1)), "A1"));
+
+        results = evaluateBatches(new ProjectNode(
+            new FileScanNode(openTable(), pred), values));
+        assert results.size() == 500;
+        for (TupleLiteral tup : results) {
+            assert tup.getColumnValue(2).equals(
+                (Integer) tup.getColumnValue(1) + 1) : tup;
+        }
+    }
+
+
+    /** Checks queries whose plans read their inputs a batch at a time. */
+    public void testQueriesUsingBatches() throws Exception {
+        List<TupleLiteral> results = getResultTuples(
+            "SELECT COUNT(*), SUM(a), COUNT(b) FROM test_batch_t1 " +
+            "WHERE a >= 100 AND b < 3000");
+        assert results.size() == 1;
+
+        // Rows 100 to 999 have b < 3000, and b is NULL for every tenth one.
+        TupleLiteral tup = results.get(0);
+        assert ((Number) tup.getColumnValue(0)).longValue() == 810 : tup;
+        assert ((Number) tup.getColumnValue(1)).longValue() == 445500 : tup;
+        assert ((Number) tup.getColumnValue(2)).longValue() == 810 : tup;
+
+        results = getResultTuples("SELECT t1.a, t2.c FROM test_batch_t1 t1 " +
+            "JOIN test_batch_t1 t2 ON t1.a = t2.a WHERE t1.a < 10");
+        assert results.size() == 10 : results;
+        for (TupleLiteral row : results) {
+            int a = (Integer) row.getColumnValue(0);
+            assert row.getColumnValue(1).equals(a / 4.0) : row;
+        }
+    }
+}
@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -24,6 +25,11 @@ import edu.caltech.nanodb.expressions.ColumnName;
 import edu.caltech.nanodb.expressions.TupleComparator;
 import edu.caltech.nanodb.expressions.TupleLiteral;
 import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.commands.SelectCommand;
+import edu.caltech.nanodb.plannodes.PlanNode;
+import edu.caltech.nanodb.plannodes.TupleBatch;
+import edu.caltech.nanodb.queryast.SelectClause;
+import edu.caltech.nanodb.queryeval.PlannerFactory;
 import edu.caltech.nanodb.server.CommandResult;
 import edu.caltech.nanodb.server.NanoDBServer;
 import edu.caltech.nanodb.storage.StorageManager;
@@ -491,4 +497,99 @@ public class SqlTestCase {
             System.out.println(t);
         }
     }
+
+
+    /**
+     * This helper function parses a <tt>SELECT</tt> query and asks the
+     * current planner for a plan to evaluate it, without running the plan.
+     *
+     * @param query the text of the <tt>SELECT</tt> query to plan.
+     *
+     * @return the plan produced by the planner.
+     */
+    protected PlanNode makePlan(String query) throws Exception {
+        SelectCommand cmd = (SelectCommand) server.parseCommand(query);
+        SelectClause selClause = cmd.getSelectClause();
+        selClause.computeSchema(
+            server.getStorageManager().getTableManager(), null);
+
+        return PlannerFactory.getPlanner(server.getStorageManager())
+            .makePlan(selClause, null);
+    }
+
+
+    /**
+     * This helper function returns the printed form of the plan the planner
+     * chooses for a <tt>SELECT</tt> query, so that tests can check which
+     * plan nodes were used.
+     *
+     * @param query the text of the <tt>SELECT</tt> query to plan.
+     *
+     * @return the plan tree as a string.
+     */
+    protected String getPlanString(String query) throws Exception {
+        return PlanNode.printNodeTreeToString(makePlan(query), false);
+    }
+
+
+    /**
+     * This helper function prepares and runs a plan one tuple at a time,
+     * copying every tuple it produces, and then cleans the plan up.
+     *
+     * @param plan the plan to evaluate.
+     *
+     * @return the tuples produced by the plan, in the order produced.
+     */
+    protected static List<TupleLiteral> evaluate(PlanNode plan)
+        throws Exception {
+        return evaluate(plan, false);
+    }
+
+
+    /**
+     * This helper function prepares and runs a plan, copying every tuple it
+     * produces, and then cleans the plan up.  The plan's results are read
+     * either a tuple at a time or a batch at a time.
+     *
+     * @param plan the plan to evaluate.
+     * @param batches true to read the results with
+     *        {@link PlanNode#getNextBatch}, or false to read them with
+     *        {@link PlanNode#getNextTuple}.
+     *
+     * @return the tuples produced by the plan, in the order produced.
+     */
+    protected static List<TupleLiteral> evaluate(PlanNode plan,
+                                                 boolean batches)
+        throws Exception {
+
+        List<TupleLiteral> results = new ArrayList<>();
+
+        plan.prepare();
+        plan.initialize();
+        try {
+            while (true) {
+                if (batches) {
+                    TupleBatch batch = plan.getNextBatch();
+                    if (batch == null)
+                        break;
+
+                    int[] selection = batch.getSelection();
+                    for (int i = 0; i < batch.getNumSelected(); i++)
+                        results.add(batch.getTuple(selection[i]));
+                }
+                else {
+                    Tuple tup = plan.getNextTuple();
+                    if (tup == null)
+                        break;
+
+                    results.add(new TupleLiteral(tup));
+                }
+            }
+        }
+        finally {
+            plan.cleanUp();
+        }
+
+        return results;
+    }
 }
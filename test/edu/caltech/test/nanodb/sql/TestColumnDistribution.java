@@ -0,0 +1,147 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.commands.SelectCommand;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.plannodes.PlanNode;
+import edu.caltech.nanodb.queryast.SelectClause;
+import edu.caltech.nanodb.queryeval.ColumnStats;
+import edu.caltech.nanodb.queryeval.PlannerFactory;
+import edu.caltech.nanodb.queryeval.TableStats;
+import edu.caltech.nanodb.relations.TableSchema;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.PageReader;
+import edu.caltech.nanodb.storage.SchemaWriter;
+import edu.caltech.nanodb.storage.StatsWriter;
+import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.storage.TupleFile;
+import edu.caltech.nanodb.storage.heapfile.HeaderPage;
+
+
+/**
+ * This class checks that <tt>ANALYZE</tt> records the most common values and
+ * histogram of each column, that they are stored in the table's header page,
+ * and that the planner's estimates use them for skewed columns.
+ */
+@Test
+public class TestColumnDistribution extends SqlTestCase {
+
+    public TestColumnDistribution() {
+        super("setup_testColumnDistribution");
+    }
+
+
+    /**
+     * Fills the table, where column A is 0 in 900 of the 1000 rows and
+     * distinct in the rest, and column B is uniformly distributed, then
+     * analyzes it.
+     */
+    private TupleFile analyzeSkewedTable() throws Exception {
+        TupleFile tupleFile = server.getStorageManager().getTableManager()
+            .openTable("TEST_DIST_T1").getTupleFile();
+
+        if (tupleFile.getStats().numTuples == 0) {
+            for (int i = 0; i < 1000; i++) {
+                int a = (i % 10 == 0) ? i / 10 + 1 : 0;
+                tupleFile.addTuple(new TupleLiteral(a, i, "v" + (i % 3)));
+            }
+            tryDoCommand("ANALYZE test_dist_t1;", false);
+        }
+
+        return tupleFile;
+    }
+
+
+    private void checkSkewedStats(TableStats stats) {
+        assert stats.numTuples == 1000;
+
+        ColumnStats a = stats.getAllColumnStats().get(0);
+        assert a.hasDistribution();
+        assert a.getNumNonNullValues() == 1000;
+        assert a.getMostCommonValues().length == 1 &&
+            a.getMostCommonValues()[0].equals(0) &&
+            a.getMostCommonCounts()[0] == 900 :
+            Arrays.toString(a.getMostCommonValues());
+
+        // The histogram covers the 100 other values.
+        Object[] bounds = a.getHistogramBounds();
+        assert bounds != null && bounds.length == 11;
+        assert bounds[0].equals(1) && bounds[10].equals(100) :
+            Arrays.toString(bounds);
+
+        // Column B has no common values, so it is all in the histogram.
+        ColumnStats b = stats.getAllColumnStats().get(1);
+        assert b.getMostCommonValues().length == 0;
+        assert b.getHistogramBounds()[0].equals(0) &&
+            b.getHistogramBounds()[10].equals(999);
+
+        // Column C only has three values, so they are all recorded, and
+        // strings don't get a histogram.
+        ColumnStats c = stats.getAllColumnStats().get(2);
+        assert c.getMostCommonValues().length == 3;
+        assert c.getHistogramBounds() == null;
+    }
+
+
+    public void testAnalyzeRecordsDistribution() throws Exception {
+        TupleFile tupleFile = analyzeSkewedTable();
+        checkSkewedStats(tupleFile.getStats());
+
+        // Read the statistics back from the header page.
+        StorageManager storageManager = server.getStorageManager();
+        DBPage headerPage =
+            storageManager.loadDBPage(tupleFile.getDBFile(), 0);
+        try {
+            PageReader reader = new PageReader(headerPage);
+            reader.setPosition(HeaderPage.OFFSET_SCHEMA_START);
+            TableSchema schema = new SchemaWriter().readTableSchema(reader);
+            checkSkewedStats(new StatsWriter().readTableStats(reader, schema));
+        }
+        finally {
+            headerPage.unpin();
+        }
+    }
+
+
+    public void testEstimatesUseDistribution() throws Exception {
+        analyzeSkewedTable();
+
+        assertEstimate("SELECT * FROM test_dist_t1 WHERE a = 0", 900);
+        assertEstimate("SELECT * FROM test_dist_t1 WHERE a = 50", 1);
+        assertEstimate("SELECT * FROM test_dist_t1 WHERE a <> 0", 100);
+        assertEstimate("SELECT * FROM test_dist_t1 WHERE a > 50", 50);
+        assertEstimate("SELECT * FROM test_dist_t1 WHERE a <= 10", 910);
+        assertEstimate("SELECT * FROM test_dist_t1 WHERE a IN (0, 7)", 901);
+        assertEstimate("SELECT * FROM test_dist_t1 WHERE b < 250", 250);
+        assertEstimate("SELECT * FROM test_dist_t1 WHERE c = 'v1'", 333);
+
+        // Each of the 100 rows with distinct values of A joins one row, and
+        // each of the 900 zeroes joins the other 900.
+        assertEstimate("SELECT * FROM test_dist_t1 t1 JOIN test_dist_t1 t2 " +
+            "ON t1.a = t2.a", 810100);
+    }
+
+
+    /**
+     * Checks that the planner's estimate of the number of rows a query
+     * produces is within 10% of the expected number.
+     */
+    private void assertEstimate(String query, float expected)
+        throws Exception {
+
+        SelectCommand cmd = (SelectCommand) server.parseCommand(query);
+        SelectClause selClause = cmd.getSelectClause();
+        selClause.computeSchema(
+            server.getStorageManager().getTableManager(), null);
+
+        PlanNode plan = PlannerFactory.getPlanner(server.getStorageManager())
+            .makePlan(selClause, null);
+        float estimate = plan.getCost().numTuples;
+        assert Math.abs(estimate - expected) <= 0.1f * expected + 1 :
+            query + " estimated " + estimate + " rows, expected " + expected;
+    }
+}
@@ -136,4 +136,28 @@ public class TestExists extends SqlTestCase {
         assert checkSizeResults(expected3, result);
         assert checkUnorderedResults(expected3, result);
     }
+
+
+    /**
+     * This method tests an <tt>EXISTS</tt> subquery that is only correlated
+     * through a subquery nested inside it, so that it must still be
+     * evaluated again for each row of the outer query.
+     *
+     * @throws Exception if any query parsing or execution issues occur.
+     */
+    public void testExistsNestedCorrelated() throws Throwable {
+        CommandResult result;
+        TupleLiteral[] expected = {
+            createTupleFromNum(2),
+            createTupleFromNum(3)
+        };
+
+        result = server.doCommand(
+            "SELECT a FROM test_exists_1 t1 WHERE " +
+                "EXISTS (SELECT b FROM test_exists_2 t2 WHERE " +
+                "EXISTS (SELECT b FROM test_exists_2 t3 WHERE t3.b = t1.a * 20))",
+            true);
+        assert checkSizeResults(expected, result);
+        assert checkUnorderedResults(expected, result);
+    }
 }
@@ -89,4 +89,36 @@ public class TestInPredicates extends SqlTestCase {
         assert checkSizeResults(expected2, result);
         assert checkUnorderedResults(expected2, result);
     }
+
+
+    /**
+     * This method tests IN predicates with subqueries that are evaluated
+     * for each row, rather than being joined against the outer query.
+     *
+     * @throws Exception if any query parsing or execution issues occur.
+     */
+    public void testInSubqueryNotJoined() throws Throwable {
+        CommandResult result;
+        TupleLiteral[] expected1 = {
+            createTupleFromNum(1),
+            createTupleFromNum(3),
+            createTupleFromNum(4)
+        };
+        TupleLiteral[] expected2 = {
+            createTupleFromNum(3),
+            createTupleFromNum(4)
+        };
+
+        result = server.doCommand(
+            "SELECT a FROM test_exists_1 WHERE " +
+                "a * 10 IN (SELECT b FROM test_exists_2) OR a = 1", true);
+        assert checkSizeResults(expected1, result);
+        assert checkUnorderedResults(expected1, result);
+
+        result = server.doCommand(
+            "SELECT a FROM test_exists_1 WHERE " +
+                "a * 10.0 IN (SELECT b FROM test_exists_2) OR a < 0", true);
+        assert checkSizeResults(expected2, result);
+        assert checkUnorderedResults(expected2, result);
+    }
 }
@@ -0,0 +1,153 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.commands.SelectCommand;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.plannodes.PlanNode;
+import edu.caltech.nanodb.queryast.SelectClause;
+import edu.caltech.nanodb.queryeval.CostBasedJoinPlanner;
+import edu.caltech.nanodb.queryeval.PlannerFactory;
+import edu.caltech.nanodb.server.CommandResult;
+
+
+/**
+ * This class checks that joins of several tables produce the same results
+ * whether the join order is found with dynamic programming or greedily,
+ * including joins that need cartesian products, and that joins of many
+ * tables are planned quickly.
+ */
+@Test
+public class TestJoinOrders extends SqlTestCase {
+    public TestJoinOrders() {
+        super("setup_testJoinOrders");
+    }
+
+
+    /** Returns the plan the planner makes for a query. */
+    private PlanNode getPlan(String query) throws Exception {
+        SelectCommand cmd = (SelectCommand) server.parseCommand(query);
+        SelectClause selClause = cmd.getSelectClause();
+        selClause.computeSchema(
+            server.getStorageManager().getTableManager(), null);
+
+        return PlannerFactory.getPlanner(server.getStorageManager())
+            .makePlan(selClause, null);
+    }
+
+
+    /**
+     * Checks the results of a query, with join orders found by dynamic
+     * programming, and found greedily.
+     */
+    private void checkQuery(String query, TupleLiteral... expected)
+        throws Exception {
+
+        String oldLimit =
+            System.getProperty(CostBasedJoinPlanner.PROP_JOIN_DP_LIMIT);
+        try {
+            for (String limit : new String[] { "10", "1" }) {
+                System.setProperty(CostBasedJoinPlanner.PROP_JOIN_DP_LIMIT,
+                    limit);
+
+                CommandResult result = server.doCommand(query, true);
+                assert checkSizeResults(expected, result) : query;
+                assert checkUnorderedResults(expected, result) : query;
+            }
+        }
+        finally {
+            if (oldLimit == null)
+                System.clearProperty(CostBasedJoinPlanner.PROP_JOIN_DP_LIMIT);
+            else
+                System.setProperty(CostBasedJoinPlanner.PROP_JOIN_DP_LIMIT, oldLimit);
+        }
+    }
+
+
+    public void testChainJoin() throws Throwable {
+        String query = "SELECT a, e FROM test_jo_1 t1, test_jo_2 t2, " +
+            "test_jo_3 t3, test_jo_4 t4 WHERE t1.b = t2.b AND " +
+            "t2.c = t3.c AND t3.d = t4.d";
+
+        TupleLiteral[] expected = {
+            new TupleLiteral(1, 1),
+            new TupleLiteral(2, 2),
+            new TupleLiteral(2, 3)
+        };
+
+        checkQuery(query, expected);
+
+        tryDoCommand("ANALYZE test_jo_1, test_jo_2, test_jo_3, test_jo_4;");
+        checkQuery(query, expected);
+    }
+
+
+    /**
+     * Checks joins of tables that no conjuncts join together, and of tables
+     * that are only joined by a conjunct referencing three tables.
+     *
+     * @throws Exception if any query parsing or execution issues occur.
+     */
+    public void testCartesianProducts() throws Throwable {
+        checkQuery("SELECT a, e FROM test_jo_1 t1, test_jo_2 t2, " +
+            "test_jo_4 t4 WHERE t1.b = t2.b AND e = 1",
+            new TupleLiteral(1, 1), new TupleLiteral(2, 1),
+            new TupleLiteral(2, 1));
+
+        checkQuery("SELECT t1.a, t2.c FROM test_jo_1 t1, test_jo_2 t2, " +
+            "test_jo_3 t3 WHERE t1.b + t2.b = t3.c - 70",
+            new TupleLiteral(1, 200), new TupleLiteral(1, 201),
+            new TupleLiteral(2, 100));
+    }
+
+
+    /**
+     * Checks that a star join of fifteen tables is planned quickly, and
+     * produces the right results.
+     *
+     * @throws Exception if any query parsing or execution issues occur.
+     */
+    public void testStarJoin() throws Throwable {
+        final int numDims = 14;
+
+        StringBuilder fact = new StringBuilder("CREATE TABLE test_jo_f (");
+        StringBuilder query = new StringBuilder(
+            "SELECT d1.v, d" + numDims + ".v FROM test_jo_f f");
+        StringBuilder where = new StringBuilder();
+        StringBuilder row1 = new StringBuilder();
+        StringBuilder row2 = new StringBuilder();
+
+        for (int i = 1; i <= numDims; i++) {
+            tryDoCommand("CREATE TABLE test_jo_d" + i +
+                " (k INTEGER, v INTEGER);");
+            tryDoCommand("INSERT INTO test_jo_d" + i + " VALUES (1, " + i + ");");
+            tryDoCommand("INSERT INTO test_jo_d" + i + " VALUES (2, " +
+                (i * 10) + ");");
+
+            String sep = (i > 1) ? ", " : "";
+            fact.append(sep).append("k").append(i).append(" INTEGER");
+            query.append(", test_jo_d").append(i).append(" d").append(i);
+            where.append(i > 1 ? " AND " : " WHERE ")
+                .append("f.k").append(i).append(" = d").append(i).append(".k");
+            row1.append(sep).append(1);
+            row2.append(sep).append(i % 2 == 0 ? 2 : 1);
+        }
+
+        tryDoCommand(fact.append(");").toString());
+        tryDoCommand("INSERT INTO test_jo_f VALUES (" + row1 + ");");
+        tryDoCommand("INSERT INTO test_jo_f VALUES (" + row2 + ");");
+        tryDoCommand("INSERT INTO test_jo_f VALUES (" + row2.toString()
+            .replace('1', '3') + ");");
+
+        query.append(where);
+
+        long start = System.currentTimeMillis();
+        getPlan(query + ";");
+        long elapsed = System.currentTimeMillis() - start;
+        assert elapsed < 2000 : "Planning took " + elapsed + " ms";
+
+        checkQuery(query.toString(),
+            new TupleLiteral(1, numDims), new TupleLiteral(1, numDims * 10));
+    }
+}
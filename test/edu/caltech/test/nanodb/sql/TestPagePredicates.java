@@ -0,0 +1,135 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.ArithmeticOperator;
+import edu.caltech.nanodb.expressions.ColumnName;
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.CompareOperator;
+import edu.caltech.nanodb.expressions.LiteralValue;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.relations.ColumnInfo;
+import edu.caltech.nanodb.relations.ColumnType;
+import edu.caltech.nanodb.relations.SQLDataType;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.storage.PagePredicate;
+
+
+/**
+ * This class checks that predicates comparing columns to literals, which
+ * file scans evaluate directly against the data pages of heap files, select
+ * the same rows as the usual evaluation of the predicates would, including
+ * on <tt>NULL</tt> and variable-size values.
+ */
+@Test
+public class TestPagePredicates extends SqlTestCase {
+
+    public TestPagePredicates() {
+        super("setup_testPagePredicates");
+    }
+
+
+    /**
+     * Checks the values of column <tt>a</tt> that a query selects.
+     */
+    private void checkQuery(String where, Object... values) throws Exception {
+        TupleLiteral[] expected = new TupleLiteral[values.length];
+        for (int i = 0; i < values.length; i++)
+            expected[i] = new TupleLiteral(new Object[] { values[i] });
+
+        String query = "SELECT a FROM test_page_preds WHERE " + where;
+        CommandResult result = server.doCommand(query, true);
+        assert checkSizeResults(expected, result) : query;
+        assert checkUnorderedResults(expected, result) : query;
+    }
+
+
+    public void testNumericComparisons() throws Throwable {
+        checkQuery("a > 2", 3, 5);
+        checkQuery("2 >= a", 1, 2);
+        checkQuery("a <> 3", 1, 2, 5);
+        checkQuery("a < 2.5", 1, 2);
+
+        checkQuery("d >= 3.5", 3, null, 5);
+        checkQuery("d = 1.5", 1);
+        checkQuery("e < 30", 1, 2);
+        checkQuery("f = 300", 3);
+        checkQuery("f > 250.5", 3, null, 5);
+        checkQuery("g <= 1.5", 1, 2);
+        checkQuery("g > 2", null, 5);
+    }
+
+
+    public void testStringComparisons() throws Throwable {
+        checkQuery("b = 'apple'", 1);
+        checkQuery("b < 'apple'", 5);
+        checkQuery("b >= 'b'", 3, null);
+        checkQuery("b <> 'app'", 1, 3, null);
+
+        checkQuery("c = 'abc'", 2);
+        checkQuery("c > 'abc'", null, 5);
+        checkQuery("c <= 'ab'", 1);
+    }
+
+
+    public void testMixedConjuncts() throws Throwable {
+        checkQuery("g > 0 AND b > 'a' AND e < 50", 1, null);
+        checkQuery("f > 100 AND a + 1 > 3", 3, 5);
+        checkQuery("c = 'b' OR d < 2", 1, null);
+        checkQuery("e > 10 AND e < 50 AND d > 2", (Object) null);
+        checkQuery("a > 1 AND a < 1");
+    }
+
+
+    public void testDeletedRowsSkipped() throws Throwable {
+        tryDoCommand("DELETE FROM test_page_preds WHERE a = 3;");
+        checkQuery("f >= 300", null, 5);
+        tryDoCommand("INSERT INTO test_page_preds VALUES " +
+            "(3, 'banana', NULL, 3.5, NULL, 300, NULL);");
+        checkQuery("f >= 300", 3, null, 5);
+    }
+
+
+    /**
+     * Checks which conjuncts a page predicate can evaluate against data
+     * pages.
+     */
+    public void testSupportedConjuncts() {
+        Schema schema = new Schema();
+        schema.addColumnInfo(new ColumnInfo("A", "T",
+            new ColumnType(SQLDataType.INTEGER)));
+        schema.addColumnInfo(new ColumnInfo("B", "T",
+            new ColumnType(SQLDataType.VARCHAR)));
+
+        ColumnValue a = new ColumnValue(new ColumnName("T", "A"));
+        ColumnValue b = new ColumnValue(new ColumnName("T", "B"));
+        ColumnValue c = new ColumnValue(new ColumnName("T", "C"));
+
+        PagePredicate pred = new PagePredicate(schema);
+        assert pred.isEmpty();
+
+        assert pred.addConjunct(new CompareOperator(
+            CompareOperator.Type.LESS_THAN, a, new LiteralValue(3)));
+        assert pred.addConjunct(new CompareOperator(
+            CompareOperator.Type.EQUALS, new LiteralValue("x"), b));
+
+        // Comparisons between columns, with expressions, with columns not in
+        // the schema, and between strings and numbers aren't supported.
+        assert !pred.addConjunct(new CompareOperator(
+            CompareOperator.Type.EQUALS, a, b));
+        assert !pred.addConjunct(new CompareOperator(
+            CompareOperator.Type.EQUALS, new ArithmeticOperator(
+                ArithmeticOperator.Type.ADD, a, new LiteralValue(1)),
+            new LiteralValue(3)));
+        assert !pred.addConjunct(new CompareOperator(
+            CompareOperator.Type.EQUALS, c, new LiteralValue(3)));
+        assert !pred.addConjunct(new CompareOperator(
+            CompareOperator.Type.EQUALS, b, new LiteralValue(3)));
+        assert !pred.addConjunct(new CompareOperator(
+            CompareOperator.Type.EQUALS, a, new LiteralValue("3")));
+
+        assert pred.getNumConjuncts() == 2;
+    }
+}
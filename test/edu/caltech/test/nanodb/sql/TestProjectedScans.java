@@ -0,0 +1,130 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.server.CommandResult;
+
+
+/**
+ * This class checks that queries produce the same results when the file
+ * scans of their tables only read the columns that the queries use, for
+ * columns used in each clause of a query, and by correlated subqueries.
+ */
+@Test
+public class TestProjectedScans extends SqlTestCase {
+
+    public TestProjectedScans() {
+        super("setup_testProjectedScans");
+    }
+
+
+    public void testSelectSomeColumns() throws Throwable {
+        CommandResult result = server.doCommand(
+            "SELECT d, a FROM test_proj_t1", true);
+        TupleLiteral[] expected = {
+            new TupleLiteral("uno", 1),
+            new TupleLiteral("dos", 2),
+            new TupleLiteral(null, 3),
+            new TupleLiteral("cuatro", 4)
+        };
+        assert checkSizeResults(expected, result);
+        assert checkUnorderedResults(expected, result);
+
+        result = server.doCommand(
+            "SELECT e, b FROM test_proj_t1 WHERE c > 15 ORDER BY b", true);
+        expected = new TupleLiteral[] {
+            new TupleLiteral(null, null),
+            new TupleLiteral(4.5, "four")
+        };
+        assert checkSizeResults(expected, result);
+        assert checkOrderedResults(expected, result);
+
+        result = server.doCommand(
+            "SELECT x, y, z, a, b, c, d, e " +
+            "FROM test_proj_t2, test_proj_t1 WHERE x = a AND a > 1", true);
+        expected = new TupleLiteral[] {
+            new TupleLiteral(2, "q", 200, 2, null, 20, "dos", null),
+            new TupleLiteral(4, "r", 400, 4, "four", 40, "cuatro", 4.5)
+        };
+        assert checkSizeResults(expected, result);
+        assert checkUnorderedResults(expected, result);
+    }
+
+
+    public void testJoinsAndGrouping() throws Throwable {
+        CommandResult result = server.doCommand(
+            "SELECT y, d FROM test_proj_t1 t1 JOIN test_proj_t2 t2 " +
+            "ON t1.a = t2.x", true);
+        TupleLiteral[] expected = {
+            new TupleLiteral("p", "uno"),
+            new TupleLiteral("q", "dos"),
+            new TupleLiteral("r", "cuatro")
+        };
+        assert checkSizeResults(expected, result);
+        assert checkUnorderedResults(expected, result);
+
+        result = server.doCommand(
+            "SELECT c, COUNT(*), SUM(z) " +
+            "FROM test_proj_t1 LEFT OUTER JOIN test_proj_t2 ON a = x " +
+            "WHERE e > 1 GROUP BY c", true);
+        expected = new TupleLiteral[] {
+            new TupleLiteral(10, 1, 100),
+            new TupleLiteral(null, 1, null),
+            new TupleLiteral(40, 1, 400)
+        };
+        assert checkSizeResults(expected, result);
+        assert checkUnorderedResults(expected, result);
+    }
+
+
+    public void testCorrelatedSubqueries() throws Throwable {
+        CommandResult result = server.doCommand(
+            "SELECT a FROM test_proj_t1 WHERE EXISTS " +
+            "(SELECT * FROM test_proj_t2 WHERE z = c * 10)", true);
+        TupleLiteral[] expected = {
+            new TupleLiteral(new Object[] { 1 }),
+            new TupleLiteral(new Object[] { 2 }),
+            new TupleLiteral(new Object[] { 4 })
+        };
+        assert checkSizeResults(expected, result);
+        assert checkUnorderedResults(expected, result);
+
+        result = server.doCommand(
+            "SELECT x, (SELECT b FROM test_proj_t1 WHERE a = x) " +
+            "FROM test_proj_t2", true);
+        expected = new TupleLiteral[] {
+            new TupleLiteral(1, "one"),
+            new TupleLiteral(2, null),
+            new TupleLiteral(4, "four")
+        };
+        assert checkSizeResults(expected, result);
+        assert checkUnorderedResults(expected, result);
+    }
+
+
+    /**
+     * Checks that the tables of an <tt>IN</tt> or <tt>EXISTS</tt> subquery
+     * in a derived table are scanned for the subquery's columns, rather than
+     * for the columns of the enclosing query.
+     */
+    public void testSubqueriesInDerivedTables() throws Throwable {
+        TupleLiteral[] expected = {
+            new TupleLiteral(new Object[] { 2 }),
+            new TupleLiteral(new Object[] { 4 })
+        };
+
+        CommandResult result = server.doCommand(
+            "SELECT s.a FROM (SELECT a FROM test_proj_t1 WHERE a IN " +
+            "(SELECT x FROM test_proj_t2 WHERE z > 150)) s", true);
+        assert checkSizeResults(expected, result);
+        assert checkUnorderedResults(expected, result);
+
+        result = server.doCommand(
+            "SELECT s.a FROM (SELECT a FROM test_proj_t1 WHERE EXISTS " +
+            "(SELECT * FROM test_proj_t2 WHERE x = a AND z > 150)) s", true);
+        assert checkSizeResults(expected, result);
+        assert checkUnorderedResults(expected, result);
+    }
+}
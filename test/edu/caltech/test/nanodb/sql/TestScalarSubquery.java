@@ -79,6 +79,43 @@ public class TestScalarSubquery extends SqlTestCase {
     }
 
 
+    /**
+     * This method exercises correlated scalar subqueries in a SELECT
+     * predicate, including aggregates over no rows.
+     *
+     * @throws Exception if any query parsing or execution issues occur.
+     */
+    public void testCorrelatedScalarSubquerySelectClause() throws Throwable {
+        CommandResult result;
+        TupleLiteral[] expected1 = {
+            new TupleLiteral(1, null),
+            new TupleLiteral(2, 30),
+            new TupleLiteral(3, 50),
+            new TupleLiteral(4, 60)
+        };
+
+        result = server.doCommand(
+            "SELECT a, (SELECT MAX(b) FROM test_exists_2 WHERE b < a * 20) " +
+            "FROM test_exists_1", true);
+        assert checkSizeResults(expected1, result);
+        assert checkUnorderedResults(expected1, result);
+
+        TupleLiteral[] expected2 = {
+            new TupleLiteral(1, 4),
+            new TupleLiteral(2, 2),
+            new TupleLiteral(3, 0),
+            new TupleLiteral(4, 0)
+        };
+
+        result = server.doCommand(
+            "SELECT a, (SELECT COUNT(*) FROM test_exists_2 t2 " +
+            "           WHERE t2.b > t1.a * 20) " +
+            "FROM test_exists_1 t1", true);
+        assert checkSizeResults(expected2, result);
+        assert checkUnorderedResults(expected2, result);
+    }
+
+
     /**
      * This method executes a scalar subquery that returns too many columns.
      *
@@ -0,0 +1,82 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import java.util.ArrayList;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.server.CommandResult;
+
+
+/**
+ * This class checks that queries over tables spanning several data pages
+ * produce the right results when file scans return the same tuple object
+ * for every row, including queries whose plan nodes hold onto a row while
+ * reading others.
+ */
+@Test
+public class TestScanCursor extends SqlTestCase {
+
+    public TestScanCursor() {
+        super("setup_testScanCursor");
+    }
+
+
+    /** Returns single-column tuples for the values {@code lo..hi}. */
+    private TupleLiteral[] range(int lo, int hi, int step) {
+        ArrayList<TupleLiteral> tuples = new ArrayList<>();
+        for (int i = lo; step > 0 ? i <= hi : i >= hi; i += step)
+            tuples.add(new TupleLiteral(new Object[] { i }));
+
+        return tuples.toArray(new TupleLiteral[0]);
+    }
+
+
+    public void testScanAllPages() throws Throwable {
+        CommandResult result = server.doCommand(
+            "SELECT a FROM test_cursor_t1", true);
+        TupleLiteral[] expected = range(1, 20, 1);
+        assert checkSizeResults(expected, result);
+        assert checkUnorderedResults(expected, result);
+
+        result = server.doCommand(
+            "SELECT a FROM test_cursor_t1 WHERE a > 5 ORDER BY a DESC", true);
+        expected = range(20, 6, -1);
+        assert checkSizeResults(expected, result);
+        assert checkOrderedResults(expected, result);
+
+        result = server.doCommand(
+            "SELECT a FROM test_cursor_t1 ORDER BY a LIMIT 3", true);
+        expected = range(1, 3, 1);
+        assert checkSizeResults(expected, result);
+        assert checkOrderedResults(expected, result);
+    }
+
+
+    public void testJoins() throws Throwable {
+        CommandResult result = server.doCommand(
+            "SELECT a, y FROM test_cursor_t1 LEFT OUTER JOIN test_cursor_t2 " +
+            "ON a = x WHERE a > 14", true);
+        TupleLiteral[] expected = {
+            new TupleLiteral(15, "fifteen"),
+            new TupleLiteral(16, null),
+            new TupleLiteral(17, null),
+            new TupleLiteral(18, null),
+            new TupleLiteral(19, "nineteen"),
+            new TupleLiteral(20, null)
+        };
+        assert checkSizeResults(expected, result);
+        assert checkUnorderedResults(expected, result);
+
+        result = server.doCommand(
+            "SELECT t1.a, t2.a FROM test_cursor_t1 t1, test_cursor_t1 t2 " +
+            "WHERE t2.a = t1.a + 10", true);
+        ArrayList<TupleLiteral> pairs = new ArrayList<>();
+        for (int i = 1; i <= 10; i++)
+            pairs.add(new TupleLiteral(i, i + 10));
+        expected = pairs.toArray(new TupleLiteral[0]);
+        assert checkSizeResults(expected, result);
+        assert checkUnorderedResults(expected, result);
+    }
+}
@@ -0,0 +1,130 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.commands.SelectCommand;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.plannodes.PlanNode;
+import edu.caltech.nanodb.queryast.SelectClause;
+import edu.caltech.nanodb.queryeval.PlannerFactory;
+import edu.caltech.nanodb.server.CommandResult;
+
+
+/**
+ * This class exercises <tt>IN</tt>, <tt>NOT IN</tt>, <tt>EXISTS</tt> and
+ * <tt>NOT EXISTS</tt> subqueries that the planner evaluates as semijoins and
+ * antijoins, checking that duplicates and <tt>NULL</tt>s are handled the way
+ * SQL requires.
+ */
+@Test
+public class TestSubqueryJoins extends SqlTestCase {
+    public TestSubqueryJoins() {
+        super("setup_testSubqueryJoins");
+    }
+
+
+    /** Returns the plan the planner makes for a query. */
+    private String getPlan(String query) throws Exception {
+        SelectCommand cmd = (SelectCommand) server.parseCommand(query);
+        SelectClause selClause = cmd.getSelectClause();
+        selClause.computeSchema(
+            server.getStorageManager().getTableManager(), null);
+
+        PlanNode plan = PlannerFactory.getPlanner(server.getStorageManager())
+            .makePlan(selClause, null);
+        return PlanNode.printNodeTreeToString(plan, false);
+    }
+
+
+    private void checkQuery(String query, String joinType,
+                            TupleLiteral... expected) throws Exception {
+        String plan = getPlan(query + ";");
+        assert plan.contains("(" + joinType + ")") : plan;
+
+        CommandResult result = server.doCommand(query, true);
+        assert checkSizeResults(expected, result) : query;
+        assert checkUnorderedResults(expected, result) : query;
+    }
+
+
+    private static TupleLiteral nullTuple() {
+        return new TupleLiteral(new Object[] { null });
+    }
+
+
+    /**
+     * Checks that rows are produced once even if they match several rows of
+     * the subquery, with and without statistics.
+     *
+     * @throws Exception if any query parsing or execution issues occur.
+     */
+    public void testInSubquery() throws Throwable {
+        String query = "SELECT a FROM test_sj_1 WHERE " +
+            "a IN (SELECT c FROM test_sj_2)";
+
+        checkQuery(query, "SEMIJOIN",
+            createTupleFromNum(1), createTupleFromNum(3));
+
+        checkQuery("SELECT a FROM test_sj_1 WHERE b > 10 AND " +
+            "a IN (SELECT c FROM test_sj_2 WHERE d > 100)", "SEMIJOIN",
+            createTupleFromNum(3));
+
+        tryDoCommand("ANALYZE test_sj_1, test_sj_2;", false);
+        checkQuery(query, "SEMIJOIN",
+            createTupleFromNum(1), createTupleFromNum(3));
+    }
+
+
+    /**
+     * Checks correlated <tt>IN</tt>, <tt>EXISTS</tt> and <tt>NOT EXISTS</tt>
+     * subqueries.
+     *
+     * @throws Exception if any query parsing or execution issues occur.
+     */
+    public void testCorrelatedSubqueries() throws Throwable {
+        checkQuery("SELECT a FROM test_sj_1 WHERE " +
+            "a IN (SELECT c FROM test_sj_2 WHERE d > b * 10)", "SEMIJOIN",
+            createTupleFromNum(1));
+
+        checkQuery("SELECT a FROM test_sj_1 WHERE " +
+            "EXISTS (SELECT * FROM test_sj_2 WHERE c = a)", "SEMIJOIN",
+            createTupleFromNum(1), createTupleFromNum(3));
+
+        checkQuery("SELECT a FROM test_sj_1 WHERE " +
+            "NOT EXISTS (SELECT * FROM test_sj_2 WHERE c = a)", "ANTIJOIN",
+            createTupleFromNum(2), createTupleFromNum(4), nullTuple());
+    }
+
+
+    /**
+     * Checks that <tt>NOT IN</tt> produces no rows if the subquery produces
+     * a <tt>NULL</tt>, and that a <tt>NULL</tt> value is only produced if
+     * the subquery is empty.
+     *
+     * @throws Exception if any query parsing or execution issues occur.
+     */
+    public void testNotInSubquery() throws Throwable {
+        checkQuery("SELECT a FROM test_sj_1 WHERE " +
+            "a NOT IN (SELECT c FROM test_sj_2 WHERE c IS NOT NULL)",
+            "null-aware", createTupleFromNum(2), createTupleFromNum(4));
+
+        checkQuery("SELECT a FROM test_sj_1 WHERE " +
+            "a NOT IN (SELECT c FROM test_sj_2)", "null-aware");
+
+        checkQuery("SELECT a FROM test_sj_1 WHERE " +
+            "a NOT IN (SELECT e FROM test_sj_3)", "null-aware");
+
+        TupleLiteral[] all = {
+            createTupleFromNum(1), createTupleFromNum(2),
+            createTupleFromNum(3), createTupleFromNum(4), nullTuple()
+        };
+
+        checkQuery("SELECT a FROM test_sj_1 WHERE " +
+            "a NOT IN (SELECT f FROM test_sj_4)", "null-aware", all);
+
+        checkQuery("SELECT a FROM test_sj_1 WHERE " +
+            "a NOT IN (SELECT c FROM test_sj_2 WHERE d > 1000)",
+            "null-aware", all);
+    }
+}
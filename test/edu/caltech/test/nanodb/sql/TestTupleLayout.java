@@ -0,0 +1,61 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.server.CommandResult;
+
+
+/**
+ * This class checks that column values are read correctly from stored
+ * tuples, whether they are at constant offsets in the tuple or come after
+ * <tt>NULL</tt> or variable-size values, and when columns are read in any
+ * order.
+ */
+@Test
+public class TestTupleLayout extends SqlTestCase {
+
+    public TestTupleLayout() {
+        super("setup_testTupleLayout");
+    }
+
+
+    public void testReadAllColumns() throws Throwable {
+        CommandResult result = server.doCommand(
+            "SELECT * FROM test_layout_t1", true);
+        TupleLiteral[] expected = {
+            new TupleLiteral(1, 10L, "abc", "one", 100.25f, 1.5),
+            new TupleLiteral(null, 20L, "def", "two", 200.25f, 2.5),
+            new TupleLiteral(3, null, "ghi", null, 300.25f, null),
+            new TupleLiteral(4, 40L, null, "four", null, 4.5),
+            new TupleLiteral(null, null, null, null, null, null)
+        };
+        assert checkSizeResults(expected, result);
+        assert checkUnorderedResults(expected, result);
+    }
+
+
+    public void testReadColumnsOutOfOrder() throws Throwable {
+        CommandResult result = server.doCommand(
+            "SELECT f, c, a, e FROM test_layout_t1", true);
+        TupleLiteral[] expected = {
+            new TupleLiteral(1.5, "abc", 1, 100.25f),
+            new TupleLiteral(2.5, "def", null, 200.25f),
+            new TupleLiteral(null, "ghi", 3, 300.25f),
+            new TupleLiteral(4.5, null, 4, null),
+            new TupleLiteral(null, null, null, null)
+        };
+        assert checkSizeResults(expected, result);
+        assert checkUnorderedResults(expected, result);
+
+        result = server.doCommand(
+            "SELECT b, d FROM test_layout_t1 WHERE e > 150.5", true);
+        expected = new TupleLiteral[] {
+            new TupleLiteral(20L, "two"),
+            new TupleLiteral(null, null)
+        };
+        assert checkSizeResults(expected, result);
+        assert checkUnorderedResults(expected, result);
+    }
+}
@@ -0,0 +1,163 @@
+package edu.caltech.test.nanodb.storage.btreefile;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleComparator;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.storage.SequentialTupleFile;
+import edu.caltech.nanodb.storage.btreefile.BTreeFilePageTuple;
+
+import edu.caltech.test.nanodb.sql.SqlTestCase;
+
+
+/**
+ * This test class exercises the B<sup>+</sup> tree file format with several
+ * sessions inserting into and searching the same file at once.
+ */
+@Test
+public class TestBTreeConcurrency extends SqlTestCase {
+
+    private static final int NUM_WRITERS = 4;
+
+    private static final int ROWS_PER_WRITER = 2000;
+
+
+    private static TupleLiteral makeTuple(int a) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 20 + a % 30; i++)
+            buf.append((char) ('A' + (a + i) % 26));
+
+        return new TupleLiteral(a, buf.toString());
+    }
+
+
+    /**
+     * Several writers insert interleaved keys, probing for each key after
+     * inserting it, while a reader repeatedly scans the file and checks that
+     * the tuples come back in order.
+     */
+    public void testConcurrentInsertAndSearch() throws Exception {
+        tryDoCommand("CREATE TABLE btree_concurrent (a INTEGER, " +
+            "b VARCHAR(50)) PROPERTIES (storage = 'btree');", false);
+
+        final SequentialTupleFile tupleFile = (SequentialTupleFile)
+            server.getStorageManager().getTableManager()
+            .openTable("BTREE_CONCURRENT").getTupleFile();
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int w = 0; w < NUM_WRITERS; w++) {
+            final int writer = w;
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < ROWS_PER_WRITER; i++) {
+                            TupleLiteral tup =
+                                makeTuple(i * NUM_WRITERS + writer);
+                            tupleFile.addTuple(tup);
+
+                            if (tupleFile.findFirstTupleEquals(tup) == null)
+                                throw new AssertionError("Missing " + tup);
+                        }
+                    }
+                    catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+
+        final AtomicBoolean writersDone = new AtomicBoolean(false);
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (!writersDone.get() && error.get() == null) {
+                        Tuple prev = null;
+                        Tuple tup = tupleFile.getFirstTuple();
+                        while (tup != null) {
+                            if (prev != null && TupleComparator.compareTuples(
+                                prev, tup) >= 0) {
+                                throw new AssertionError("Scan returned " +
+                                    prev + " before " + tup);
+                            }
+                            prev = tup;
+                            tup = tupleFile.getNextTuple(tup);
+                        }
+                    }
+                }
+                catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }
+        });
+
+        for (Thread t : threads)
+            t.start();
+        reader.start();
+
+        for (Thread t : threads)
+            t.join(60000);
+        writersDone.set(true);
+        reader.join(60000);
+
+        assert error.get() == null : error.get();
+
+        // Every key must be present, in order.
+        int expected = 0;
+        Tuple tup = tupleFile.getFirstTuple();
+        while (tup != null) {
+            assert (Integer) tup.getColumnValue(0) == expected;
+            expected++;
+            tup = tupleFile.getNextTuple(tup);
+        }
+        assert expected == NUM_WRITERS * ROWS_PER_WRITER;
+
+        assert tupleFile.verify().isEmpty();
+    }
+
+
+    /**
+     * Deletes every other tuple while scanning the file, so that each scan
+     * continues from a tuple that has just been deleted.  The deletions
+     * don't empty any leaf page, so they don't reorganize the tree.
+     */
+    public void testDeleteDuringScan() throws Exception {
+        tryDoCommand("CREATE TABLE btree_scan_delete (a INTEGER, " +
+            "b VARCHAR(50)) PROPERTIES (storage = 'btree');", false);
+
+        SequentialTupleFile tupleFile = (SequentialTupleFile)
+            server.getStorageManager().getTableManager()
+            .openTable("BTREE_SCAN_DELETE").getTupleFile();
+
+        for (int a = 0; a < 200; a++)
+            tupleFile.addTuple(makeTuple(a));
+
+        Tuple tup = tupleFile.getFirstTuple();
+        while (tup != null) {
+            if ((Integer) tup.getColumnValue(0) % 2 == 0) {
+                tupleFile.deleteTuple(tup);
+                assert ((BTreeFilePageTuple) tup).isDeleted();
+            }
+            tup = tupleFile.getNextTuple(tup);
+        }
+
+        int expected = 1;
+        tup = tupleFile.getFirstTuple();
+        while (tup != null) {
+            assert (Integer) tup.getColumnValue(0) == expected : tup;
+            expected += 2;
+            tup = tupleFile.getNextTuple(tup);
+        }
+        assert expected == 201;
+
+        assert tupleFile.verify().isEmpty();
+    }
+}
@@ -0,0 +1,156 @@
+package edu.caltech.test.nanodb.storage.heapfile;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.storage.FilePointer;
+import edu.caltech.nanodb.storage.PageTuple;
+import edu.caltech.nanodb.storage.TupleFile;
+
+import edu.caltech.test.nanodb.sql.SqlTestCase;
+
+
+/**
+ * This test class exercises the heap file format with several sessions
+ * inserting into and deleting from the same file at once.
+ */
+@Test
+public class TestHeapConcurrency extends SqlTestCase {
+
+    private static final int NUM_WRITERS = 4;
+
+    private static final int ROWS_PER_WRITER = 1000;
+
+
+    private static TupleLiteral makeTuple(int a) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 20 + a % 30; i++)
+            buf.append((char) ('A' + (a + i) % 26));
+
+        return new TupleLiteral(a, buf.toString());
+    }
+
+
+    /**
+     * Several writers insert interleaved keys, deleting every third tuple
+     * they insert so that the other writers reuse the freed space, while a
+     * reader repeatedly scans the file.  Afterward every surviving tuple
+     * must be present exactly once, with the values it was inserted with.
+     */
+    public void testConcurrentInsertDelete() throws Exception {
+        tryDoCommand("CREATE TABLE heap_concurrent (a INTEGER, " +
+            "b VARCHAR(50)) PROPERTIES (storage = 'heap', pagesize = 4096);",
+            false);
+
+        final TupleFile tupleFile = server.getStorageManager()
+            .getTableManager().openTable("HEAP_CONCURRENT").getTupleFile();
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int w = 0; w < NUM_WRITERS; w++) {
+            final int writer = w;
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < ROWS_PER_WRITER; i++) {
+                            TupleLiteral tup =
+                                makeTuple(i * NUM_WRITERS + writer);
+                            FilePointer fptr = ((PageTuple)
+                                tupleFile.addTuple(tup)).getExternalReference();
+
+                            if (i % 3 != 0)
+                                continue;
+
+                            Tuple found = tupleFile.getTuple(fptr);
+                            try {
+                                if (!tup.getColumnValue(0).equals(
+                                    found.getColumnValue(0))) {
+                                    throw new AssertionError("Expected " +
+                                        tup + " at " + fptr + ", found " +
+                                        found);
+                                }
+                                tupleFile.deleteTuple(found);
+                            }
+                            finally {
+                                found.unpin();
+                            }
+                        }
+                    }
+                    catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+
+        final AtomicBoolean writersDone = new AtomicBoolean(false);
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (!writersDone.get() && error.get() == null) {
+                        Tuple tup = tupleFile.getFirstTuple();
+                        while (tup != null) {
+                            int a = (Integer) tup.getColumnValue(0);
+                            if (!makeTuple(a).getColumnValue(1).equals(
+                                tup.getColumnValue(1))) {
+                                throw new AssertionError(
+                                    "Scan returned corrupt tuple " + tup);
+                            }
+                            Tuple next = tupleFile.getNextTuple(tup);
+                            tup.unpin();
+                            tup = next;
+                        }
+                    }
+                }
+                catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }
+        });
+
+        for (Thread t : threads)
+            t.start();
+        reader.start();
+
+        for (Thread t : threads)
+            t.join(60000);
+        writersDone.set(true);
+        reader.join(60000);
+
+        for (Thread t : threads)
+            assert !t.isAlive() : "Writer didn't finish";
+        assert !reader.isAlive() : "Reader didn't finish";
+        assert error.get() == null : error.get();
+
+        // Every tuple that wasn't deleted must be present exactly once.
+        int total = NUM_WRITERS * ROWS_PER_WRITER;
+        boolean[] seen = new boolean[total];
+        int count = 0;
+        Tuple tup = tupleFile.getFirstTuple();
+        while (tup != null) {
+            int a = (Integer) tup.getColumnValue(0);
+            assert (a / NUM_WRITERS) % 3 != 0 : "Deleted tuple " + tup;
+            assert !seen[a] : "Duplicate tuple " + tup;
+            assert makeTuple(a).getColumnValue(1).equals(
+                tup.getColumnValue(1)) : tup;
+            seen[a] = true;
+            count++;
+
+            Tuple next = tupleFile.getNextTuple(tup);
+            tup.unpin();
+            tup = next;
+        }
+
+        int deletedPerWriter = (ROWS_PER_WRITER + 2) / 3;
+        assert count == NUM_WRITERS * (ROWS_PER_WRITER - deletedPerWriter) :
+            "Found " + count + " tuples";
+    }
+}
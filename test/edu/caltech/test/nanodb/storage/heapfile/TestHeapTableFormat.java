@@ -1,10 +1,17 @@
 package edu.caltech.test.nanodb.storage.heapfile;
 
 
+import java.io.IOException;
+
 import org.testng.annotations.Test;
 
 import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.relations.TableInfo;
 import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.storage.TableManager;
+import edu.caltech.nanodb.storage.heapfile.HeaderPage;
 import edu.caltech.test.nanodb.storage.TableFormatTestCase;
 
 
@@ -110,6 +117,40 @@ public class TestHeapTableFormat extends TableFormatTestCase {
     }
 
 
+    /**
+     * Checks that new heap files record the current storage format version,
+     * and that files with another version can't be opened.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    public void testFormatVersion() throws Exception {
+        tryDoCommand("CREATE TABLE heap_old_format (a INTEGER) " +
+            "PROPERTIES (storage = 'heap');");
+
+        StorageManager storageManager = server.getStorageManager();
+        TableManager tableManager = storageManager.getTableManager();
+        TableInfo tableInfo = tableManager.openTable("HEAP_OLD_FORMAT");
+
+        // Make the file look like it was written before tuples had
+        // transaction headers.
+        DBPage headerPage = storageManager.loadDBPage(
+            tableInfo.getTupleFile().getDBFile(), 0);
+        assert HeaderPage.getFormatVersion(headerPage) ==
+            HeaderPage.FORMAT_VERSION;
+        HeaderPage.setFormatVersion(headerPage, 0);
+        headerPage.unpin();
+        tableManager.closeTable(tableInfo);
+
+        try {
+            tableManager.openTable("HEAP_OLD_FORMAT");
+            assert false : "Opened a heap file with an old format version";
+        }
+        catch (IOException e) {
+            // Expected.
+        }
+    }
+
+
     /**
      * This test performs a sequence of updates, to fully exercise the
      * tuple-value updating code.
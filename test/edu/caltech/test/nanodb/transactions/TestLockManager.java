@@ -0,0 +1,227 @@
+package edu.caltech.test.nanodb.transactions;
+
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.storage.FilePointer;
+import edu.caltech.nanodb.transactions.DeadlockException;
+import edu.caltech.nanodb.transactions.LockManager;
+import edu.caltech.nanodb.transactions.LockMode;
+
+
+/**
+ * This class exercises the lock manager's compatibility rules, lock
+ * escalation, and deadlock detection.
+ */
+@Test
+public class TestLockManager {
+
+    private static final FilePointer ROW_A = new FilePointer(1, 2);
+
+    private static final FilePointer ROW_B = new FilePointer(1, 4);
+
+
+    public void testLockModeCompatibility() {
+        assert LockMode.IS.isCompatibleWith(LockMode.IX);
+        assert LockMode.IS.isCompatibleWith(LockMode.SIX);
+        assert !LockMode.IS.isCompatibleWith(LockMode.X);
+        assert LockMode.IX.isCompatibleWith(LockMode.IX);
+        assert !LockMode.IX.isCompatibleWith(LockMode.S);
+        assert LockMode.S.isCompatibleWith(LockMode.S);
+        assert !LockMode.SIX.isCompatibleWith(LockMode.SIX);
+
+        assert LockMode.S.combine(LockMode.IX) == LockMode.SIX;
+        assert LockMode.IS.combine(LockMode.IX) == LockMode.IX;
+        assert LockMode.X.covers(LockMode.SIX);
+        assert LockMode.SIX.covers(LockMode.S);
+        assert !LockMode.IX.covers(LockMode.S);
+    }
+
+
+    public void testRowLocksTakeIntentionLocks() {
+        LockManager lockManager = new LockManager();
+
+        lockManager.lockRow(1, "t.tbl", ROW_A, LockMode.S);
+        assert lockManager.getTableLockMode(1, "t.tbl") == LockMode.IS;
+        assert lockManager.getRowLockMode(1, "t.tbl", ROW_A) == LockMode.S;
+
+        // Another reader can lock the same row, and a writer can lock a
+        // different row of the same table.
+        lockManager.lockRow(2, "t.tbl", ROW_A, LockMode.S);
+        lockManager.lockRow(3, "t.tbl", ROW_B, LockMode.X);
+        assert lockManager.getTableLockMode(3, "t.tbl") == LockMode.IX;
+
+        // Upgrading a row lock upgrades the table's intention lock too.
+        lockManager.releaseAll(3);
+        lockManager.lockRow(1, "t.tbl", ROW_B, LockMode.S);
+        lockManager.lockRow(1, "t.tbl", ROW_B, LockMode.X);
+        assert lockManager.getTableLockMode(1, "t.tbl") == LockMode.IX;
+        assert lockManager.getRowLockMode(1, "t.tbl", ROW_B) == LockMode.X;
+
+        lockManager.releaseAll(1);
+        lockManager.releaseAll(2);
+        assert lockManager.getTableLockMode(1, "t.tbl") == null;
+        assert lockManager.getRowLockMode(2, "t.tbl", ROW_A) == null;
+    }
+
+
+    public void testLockEscalation() {
+        LockManager lockManager = new LockManager(3);
+
+        for (int i = 0; i < 4; i++)
+            lockManager.lockRow(1, "t.tbl", new FilePointer(1, 2 + 2 * i),
+                LockMode.S);
+
+        assert lockManager.getTableLockMode(1, "t.tbl") == LockMode.S;
+        assert lockManager.getRowLockMode(1, "t.tbl", ROW_A) == null;
+
+        // Further reads are covered by the table lock; a write escalates the
+        // table lock to SIX.
+        lockManager.lockRow(1, "t.tbl", new FilePointer(2, 2), LockMode.S);
+        assert lockManager.getRowLockMode(1, "t.tbl",
+            new FilePointer(2, 2)) == null;
+
+        lockManager.lockRow(1, "t.tbl", ROW_A, LockMode.X);
+        assert lockManager.getTableLockMode(1, "t.tbl") == LockMode.SIX;
+
+        lockManager.releaseAll(1);
+    }
+
+
+    /**
+     * Verifies that a conflicting request blocks until the holder releases
+     * its locks.
+     */
+    public void testBlockingUntilRelease() throws Exception {
+        final LockManager lockManager = new LockManager();
+        lockManager.lockRow(1, "t.tbl", ROW_A, LockMode.X);
+
+        final AtomicBoolean acquired = new AtomicBoolean(false);
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                lockManager.lockRow(2, "t.tbl", ROW_A, LockMode.S);
+                acquired.set(true);
+            }
+        });
+        t.start();
+
+        Thread.sleep(200);
+        assert !acquired.get();
+
+        lockManager.releaseAll(1);
+        t.join(5000);
+        assert acquired.get();
+        assert lockManager.getRowLockMode(2, "t.tbl", ROW_A) == LockMode.S;
+    }
+
+
+    /**
+     * Creates a deadlock between two transactions, and verifies that the
+     * transaction closing the cycle is chosen as the victim.
+     */
+    public void testDeadlockDetection() throws Exception {
+        final LockManager lockManager = new LockManager();
+        lockManager.lockRow(1, "t.tbl", ROW_A, LockMode.X);
+        lockManager.lockRow(2, "t.tbl", ROW_B, LockMode.X);
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    lockManager.lockRow(1, "t.tbl", ROW_B, LockMode.X);
+                }
+                catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        });
+        t.start();
+        Thread.sleep(200);
+
+        boolean victim = false;
+        try {
+            lockManager.lockRow(2, "t.tbl", ROW_A, LockMode.X);
+        }
+        catch (DeadlockException e) {
+            victim = true;
+        }
+        assert victim;
+
+        // Once the victim's locks are released, the other transaction can
+        // proceed.
+        lockManager.releaseAll(2);
+        t.join(5000);
+        assert error.get() == null;
+        assert lockManager.getRowLockMode(1, "t.tbl", ROW_B) == LockMode.X;
+    }
+
+
+    /**
+     * Blocks two threads of the same transaction on different resources, as
+     * the workers of a parallel plan do, and verifies that a deadlock
+     * through either of them is detected.
+     */
+    public void testDeadlockWithSeveralWaitersPerTxn() throws Exception {
+        final LockManager lockManager = new LockManager();
+        lockManager.lockRow(1, "t.tbl", ROW_A, LockMode.X);
+        lockManager.lockRow(2, "t.tbl", ROW_B, LockMode.X);
+        lockManager.lockRow(3, "u.tbl", ROW_A, LockMode.X);
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread first = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    lockManager.lockRow(2, "t.tbl", ROW_A, LockMode.X);
+                }
+                catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        });
+        Thread second = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    lockManager.lockRow(2, "u.tbl", ROW_A, LockMode.X);
+                }
+                catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        });
+        first.start();
+        Thread.sleep(200);
+        second.start();
+        Thread.sleep(200);
+
+        // Transaction 2 waits for transaction 1 through its first thread,
+        // even though its second thread started waiting afterward.
+        final AtomicBoolean victim = new AtomicBoolean(false);
+        Thread closer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    lockManager.lockRow(1, "t.tbl", ROW_B, LockMode.X);
+                }
+                catch (DeadlockException e) {
+                    victim.set(true);
+                }
+            }
+        });
+        closer.start();
+        closer.join(5000);
+        assert !closer.isAlive() : "Deadlock wasn't detected";
+        assert victim.get();
+
+        // Both of transaction 2's threads get their locks once the other
+        // transactions release theirs.
+        lockManager.releaseAll(1);
+        lockManager.releaseAll(3);
+        first.join(5000);
+        second.join(5000);
+        assert error.get() == null;
+        assert lockManager.getRowLockMode(2, "t.tbl", ROW_A) == LockMode.X;
+        assert lockManager.getRowLockMode(2, "u.tbl", ROW_A) == LockMode.X;
+    }
+}
@@ -0,0 +1,71 @@
+package edu.caltech.test.nanodb.transactions;
+
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.transactions.Snapshot;
+
+
+/**
+ * This class exercises the visibility rules for tuple versions read through
+ * a transaction's snapshot.
+ */
+@Test
+public class TestSnapshot {
+
+    /**
+     * Creates a snapshot for transaction 10, taken while transactions 5 and
+     * 8 were still in progress, and with transaction 11 not yet started.
+     */
+    private Snapshot makeSnapshot() {
+        Snapshot snapshot = new Snapshot(10,
+            new HashSet<>(Arrays.asList(5, 8)), 11);
+        snapshot.advanceCommandID();
+        return snapshot;
+    }
+
+
+    public void testCommittedTransactions() {
+        Snapshot snapshot = makeSnapshot();
+
+        assert snapshot.getXmin() == 5;
+        assert snapshot.isCommitted(Snapshot.NO_TXN_ID);
+        assert snapshot.isCommitted(4);
+        assert !snapshot.isCommitted(5);
+        assert snapshot.isCommitted(7);
+        assert !snapshot.isCommitted(8);
+        assert !snapshot.isCommitted(11);
+    }
+
+
+    public void testCreatorVisibility() {
+        Snapshot snapshot = makeSnapshot();
+
+        assert snapshot.isVisible(Snapshot.NO_TXN_ID, 0, Snapshot.NO_TXN_ID);
+        assert snapshot.isVisible(7, 3, Snapshot.NO_TXN_ID);
+        assert !snapshot.isVisible(8, 0, Snapshot.NO_TXN_ID);
+        assert !snapshot.isVisible(12, 0, Snapshot.NO_TXN_ID);
+
+        // A transaction's own changes become visible to its later commands.
+        assert !snapshot.isVisible(10, 1, Snapshot.NO_TXN_ID);
+        snapshot.advanceCommandID();
+        assert snapshot.isVisible(10, 1, Snapshot.NO_TXN_ID);
+    }
+
+
+    public void testDeleterVisibility() {
+        Snapshot snapshot = makeSnapshot();
+
+        // Deletions by committed transactions hide the version; deletions by
+        // transactions the snapshot can't see do not.
+        assert !snapshot.isVisible(3, 0, 7);
+        assert snapshot.isVisible(3, 0, 8);
+        assert snapshot.isVisible(3, 0, 11);
+
+        // A transaction never sees versions it has deleted itself.
+        assert !snapshot.isVisible(3, 0, 10);
+    }
+}